@@ -22,9 +22,12 @@ import org.eng.aisp.classifier.MemoryCachingLabeledFeatureIterable;
 import org.eng.aisp.feature.IFeatureGramDescriptor;
 import org.eng.aisp.feature.ILabeledFeatureGram;
 import org.eng.aisp.feature.pipeline.CachingFeatureExtractionPipeline;
+import org.eng.aisp.feature.pipeline.DiskFeatureGramCache;
 import org.eng.aisp.feature.pipeline.FeatureExtractionPipeline;
 import org.eng.aisp.feature.pipeline.LabeledFeatureIterable;
+import org.eng.cache.IMultiKeyCache;
 import org.eng.cache.MemoryCache;
+import org.eng.util.CachingIterable;
 
 /**
  * Helper class to allow us to dynamically load classes that may optionally be on the class path.
@@ -67,15 +70,25 @@ public class AISPRuntime {
 	public static AISPRuntime getRuntime() { return runtime; }
 	
 	/**
-	 * Get a disk caching iterable over the given iterable.  This implementation returns null, but extending run-times may override this to provide a disk caching implementation. 
+	 * Get a disk caching iterable over the given iterable.  
+	 * This implementation supports instances of LabeledFeatureIterable and uses the shared {@link DiskFeatureGramCache}, 
+	 * but extending run-times may override this to provide a different disk caching implementation. 
 	 * @param <FDATA>
 	 * @param lfg
-	 * @param memCache	the memory cache to back that the disk cache.
+	 * @param memCache	the memory cache to back that the disk cache.  May be null.
 	 * @return null if not available.
 	 */
+	@SuppressWarnings("unchecked")
 	protected <FDATA> Iterable<ILabeledFeatureGram<FDATA>[]> getDiskCachingIterable(Iterable<ILabeledFeatureGram<FDATA>[]> lfg, MemoryCache<?,?> memCache) {
-		return null;
-		
+		if (!(lfg instanceof LabeledFeatureIterable))
+			return null;
+		DiskFeatureGramCache diskCache = DiskFeatureGramCache.getSharedCache();
+		if (diskCache == null)
+			return null;
+		Iterable<ILabeledFeatureGram<FDATA>[]> fi = ((LabeledFeatureIterable<?,FDATA>)lfg).newDiskCachingIterable(diskCache);
+		if (memCache != null) 
+			fi = new CachingIterable<ILabeledFeatureGram<FDATA>[]>(fi, (IMultiKeyCache<Long,ILabeledFeatureGram<FDATA>[]>)memCache);
+		return fi;
 	}
 
 
@@ -15,23 +15,54 @@
  *******************************************************************************/
 package org.eng.aisp;
 
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Properties;
 
 import org.eng.aisp.util.VectorUtils;
+import org.eng.cache.CacheItemSizer;
+import org.eng.cache.ISizeEstimable;
 import org.eng.util.Vector;
 
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * Implements a data window holding an array of double values.
+ * <p>
+ * Sub-windows are created as views onto the data of the window they are taken from, so that sub-windowing does not copy the data.
+ * Since callers of {@link #getData()} may modify the returned array, an array is never both returned by that method and shared with a view:
+ * <ul>
+ * <li> A view copies its data on the first call, after which the copy is its data, as also seen by {@link #getBackingData()}.
+ * <li> A window whose data is shared with views takes its own copy on the next call, leaving the views with the original.
+ * <li> The sub-windows of a window whose data has been returned are created on a copy of their range, as they were before views.
+ * </ul>
+ * Callers that only read the data can avoid these copies with {@link #getBackingData()}, {@link #getBackingDataOffset()} and {@link #getBackingDataLength()}.
+ * <p>
+ * Views hold their data in the shared array and not in the {@link #data} field, so they must be materialized with {@link #materializeView()} before
+ * being written by serializers that read fields.  This is done for Java serialization and by the Gson instances created with
+ * {@link org.eng.aisp.util.GsonUtils#newGsonBuilder()}.
  * @author dawood
  *
  */
-public class DoubleWindow extends AbstractDataWindow<double[]> implements IDoubleWindow {
+public class DoubleWindow extends AbstractDataWindow<double[]> implements IDoubleWindow, ISizeEstimable {
 
 	private static final long serialVersionUID = -3281224402675779573L;
 	
-	protected final double[] data;
+	/** The data of this window, or null if this is a view whose data has not yet been requested through {@link #getData()}. */
+	protected volatile double[] data;
+
+	/** For views, the array shared with the window from which the view was created, otherwise null. */
+	private transient volatile double[] viewData = null;
+	/** The index in {@link #viewData} of the first value of this window */
+	private transient int viewOffset = 0;
+	/** The number of values from {@link #viewData} in this window */
+	private transient int viewLength = 0;
+	/** True if {@link #data} is shared with views created from this window */
+	private transient boolean dataShared = false;
+	/** True if {@link #data} has been returned by {@link #getData()} and so may be modified by the caller. Once set, {@link #data} no longer changes. */
+	private transient volatile boolean dataExposed = false;
 
 	/**
 	 * Create the instance to use a time-based independent variable.
@@ -82,45 +113,158 @@ public class DoubleWindow extends AbstractDataWindow<double[]> implements IDoubl
 		this.data= data;
 	}
 
+	/**
+	 * Create a view onto a range of the given array, which is shared and not copied.
+	 * @param startTimeMsec
+	 * @param endTimeMsec
+	 * @param samplingRate
+	 * @param sharedData the array containing this window's data.  It must not be modified after this call.
+	 * @param offset index of the first value of this window in sharedData.
+	 * @param length the number of values from sharedData in this window.
+	 */
+	protected DoubleWindow(double startTimeMsec, double endTimeMsec, double samplingRate, double[] sharedData, int offset, int length) {
+		super(startTimeMsec, endTimeMsec, samplingRate, (Vector)null);
+		if (offset < 0 || length < 0 || offset + length > sharedData.length)
+			throw new IllegalArgumentException("offset and length are not within the given data");
+		this.data = null;
+		this.viewData = sharedData;
+		this.viewOffset = offset;
+		this.viewLength = length;
+	}
+
 	@Override
 	public int getSampleSize() {
-		if (data == null)
-			return 0;
-		return data.length;
+		return getBackingDataLength();
 	}
 
+	/**
+	 * Get this window's data.
+	 * For views, the data is copied from the shared array on the first call, after which this instance holds its own copy and is no longer a view.
+	 * For windows whose data is shared with views, the data is copied on the first call after the views were created.
+	 * Subsequent calls return the same array without copying or locking.
+	 * @return the array of data held by this instance, which the caller may modify.
+	 */
 	@Override
 	public double[] getData() {
-		return this.data;
+		if (dataExposed)
+			return this.data;
+		synchronized (this) {
+			materializeView();
+			if (dataShared && this.data != null) 
+				this.data = this.data.clone();
+			dataShared = false;
+			dataExposed = true;	// After setting data, so that unlocked callers see the data to return.
+			return this.data;
+		}
+	}
+
+	/**
+	 * If this window is a view, copy its range of the shared array into {@link #data} so that it is no longer a view.
+	 * Unlike {@link #getData()}, the copy is not considered to be returned to a caller, so that sub-windows may still share it.
+	 * Serializers that read the fields of this instance must call this first. 
+	 */
+	public synchronized void materializeView() {
+		if (viewData != null) {
+			this.data = Arrays.copyOfRange(viewData, viewOffset, viewOffset + viewLength);
+			viewData = null;	// After setting data, so that readers of the backing data see one or the other.
+		}
+	}
+
+	/**
+	 * Get the array containing this window's data without copying it.
+	 * The data of this window is located in the returned array starting at {@link #getBackingDataOffset()} and is {@link #getBackingDataLength()} values long.
+	 * The returned array may be shared with other windows and must not be modified.
+	 * Once {@link #getData()} has been called on a view, this is the array it returned and the offset is 0.
+	 * @return null if this window has no data.
+	 */
+	@JsonIgnore
+	public double[] getBackingData() {
+		double[] v = viewData;
+		return v != null ? v : this.data;
+	}
+
+	/**
+	 * @return the index of this window's first value in the array returned by {@link #getBackingData()}.
+	 */
+	@JsonIgnore
+	public int getBackingDataOffset() {
+		return viewData != null ? viewOffset : 0;
+	}
+
+	/**
+	 * @return the number of values of this window's data in the array returned by {@link #getBackingData()}.
+	 */
+	@JsonIgnore
+	public int getBackingDataLength() {
+		if (viewData != null)
+			return viewLength;
+		double[] d = this.data;
+		return d == null ? 0 : d.length;
+	}
+
+	/**
+	 * @return true if this window was created as a view onto the data of another window.
+	 */
+	@JsonIgnore
+	public boolean isView() {
+		return viewData != null;
 	}
-	
+
+	/**
+	 * Get a copy of this window's data without keeping the copy in this instance.
+	 * @return never null.
+	 */
+	public double[] copyData() {
+		double[] d = getBackingData();
+		if (d == null)
+			return new double[0];
+		int offset = getBackingDataOffset();
+		return Arrays.copyOfRange(d, offset, offset + getBackingDataLength());
+	}
+
 
 	public DoubleWindow(double startTimeMsec, double endTimeMsec, double samplingRate, Vector independentData, double[] data) {
 		super(startTimeMsec, endTimeMsec, samplingRate, independentData);
 		this.data = data;
 	}
 
+	/**
+	 * Determine if a new view may share the array returned by {@link #getBackingData()}, and if so record that it is shared.
+	 * Callers must hold the lock on this instance until the view has been created.
+	 * @return false if the array has been returned by {@link #getData()}, in which case the view should be created on a copy of its range.
+	 */
+	protected boolean shareBackingData() {
+		if (viewData != null)
+			return true;
+		if (dataExposed || this.data == null)
+			return false;
+		dataShared = true;
+		return true;
+	}
+
+	/**
+	 * Create a view onto the given range of this window's data.
+	 */
 	@Override
 	protected DoubleWindow newSubWindow(double newStartMsec, int startSampleIndex, int endSampleIndex) { 
-		double[] newData;
-		if (startSampleIndex == endSampleIndex) 	// zero length return buffer;
-			newData  = new double[] {}; 
-		else 
-			newData= Arrays.copyOfRange(this.getData(), startSampleIndex, endSampleIndex);
-		double newEndMsec;
 		int newSampleCount = endSampleIndex - startSampleIndex;
-		if (newSampleCount <= 0)
-			newEndMsec = 0;
-		else
-			newEndMsec = newStartMsec + 1000.0 * newSampleCount / getSamplingRate();
-		DoubleWindow w = new DoubleWindow(newStartMsec, newEndMsec, newData );
-		return w;
+		if (newSampleCount <= 0) 	// zero length return buffer;
+			return new DoubleWindow(newStartMsec, 0, new double[] {});
+		double newEndMsec = newStartMsec + 1000.0 * newSampleCount / getSamplingRate();
+		double newSamplingRate = getSamplesPerSecond(newStartMsec, newEndMsec, newSampleCount);
+		synchronized (this) {
+			int offset = getBackingDataOffset() + startSampleIndex;
+			if (shareBackingData())
+				return new DoubleWindow(newStartMsec, newEndMsec, newSamplingRate, getBackingData(), offset, newSampleCount);
+			double[] copy = Arrays.copyOfRange(getBackingData(), offset, offset + newSampleCount);
+			return new DoubleWindow(newStartMsec, newEndMsec, newSamplingRate, copy, 0, newSampleCount);
+		}
 	}
 
 	@Override
 	protected DoubleWindow uncachedPad(double durationMsec, org.eng.aisp.IDataWindow.PadType padType) {
 		double[] newIndependentData = null;	// Let the super class regenerated
-		double[] newData = pad(data, samplesPerSecond, durationMsec, padType);
+		double[] newData = pad(getData(), samplesPerSecond, durationMsec, padType);
 		return new DoubleWindow(startTimeMsec, startTimeMsec + durationMsec, newIndependentData, newData);
 	}
 	
@@ -200,11 +344,40 @@ public class DoubleWindow extends AbstractDataWindow<double[]> implements IDoubl
 		return dwFactory.newDataWindow(0, duration, mergedData);
 	}
 
+	/**
+	 * Estimates the size of this instance as its fields plus its data and any independent values it holds.
+	 * The data of a view is counted as the length of the view, which is the size of the copy it holds once materialized.
+	 */
+	@JsonIgnore
+	@Override
+	public long getEstimatedSizeBytes() {
+		long size = 64;
+		if (getBackingData() != null)
+			size += CacheItemSizer.ARRAY_HEADER_BYTES + 8L * getBackingDataLength();
+		if (independentVector != null && !independentVector.isRegular())
+			size += CacheItemSizer.estimateBytes(independentVector.getVector());
+		return size;
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = super.hashCode();
-		result = prime * result + Arrays.hashCode(data);
+		result = prime * result + hashData(getBackingData(), getBackingDataOffset(), getBackingDataLength());
+		return result;
+	}
+
+	/**
+	 * Compute the same value as {@link Arrays#hashCode(double[])} on the given range of the array.
+	 */
+	private static int hashData(double[] a, int offset, int length) {
+		if (a == null)
+			return 0;
+		int result = 1;
+		for (int i=offset ; i<offset + length ; i++) {
+			long bits = Double.doubleToLongBits(a[i]);
+			result = 31 * result + (int)(bits ^ (bits >>> 32));
+		}
 		return result;
 	}
 
@@ -217,11 +390,28 @@ public class DoubleWindow extends AbstractDataWindow<double[]> implements IDoubl
 		if (!(obj instanceof DoubleWindow))
 			return false;
 		DoubleWindow other = (DoubleWindow) obj;
-		if (!Arrays.equals(data, other.data))
+		double[] a = getBackingData(), b = other.getBackingData();
+		if (a == null || b == null)
+			return a == b;
+		int length = getBackingDataLength();
+		if (length != other.getBackingDataLength())
 			return false;
+		int aOffset = getBackingDataOffset(), bOffset = other.getBackingDataOffset();
+		for (int i=0 ; i<length ; i++) {
+			if (Double.doubleToLongBits(a[aOffset + i]) != Double.doubleToLongBits(b[bOffset + i]))
+				return false;
+		}
 		return true;
 	}
 
+	/**
+	 * Make sure views serialize their own data and not the array they share.
+	 */
+	private void writeObject(ObjectOutputStream out) throws IOException {
+		materializeView();
+		out.defaultWriteObject();
+	}
+
 
 //	@Override
 //	public DoubleWindow append(IDataWindow<double[]> window) {
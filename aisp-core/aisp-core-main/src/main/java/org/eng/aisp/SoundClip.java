@@ -27,6 +27,7 @@ import java.util.List;
 import org.eng.aisp.dataset.LabeledSoundFiles;
 import org.eng.aisp.util.LabeledWindowToDataWindowShuffleIterable;
 import org.eng.aisp.util.PCMUtil;
+import org.eng.cache.CacheItemSizer;
 import org.eng.util.AbstractDefaultIterator;
 import org.eng.util.IShuffleIterable;
 import org.eng.util.Vector;
@@ -291,6 +292,23 @@ public class SoundClip extends DoubleWindow implements Serializable, IDoubleWind
 		this.interleavedDataDimensions = interleavedDataDimensions;
 	}
 	
+	/**
+	 * Create a clip that is a view onto a range of the data in the given clip, which is shared and not copied.
+	 * @param startTimeMsec
+	 * @param endTimeMsec
+	 * @param samplingRate
+	 * @param clip the clip providing the channels, bits per sample and interleaved data dimensions of the new clip.
+	 * @param sharedData the array containing the new clip's data.
+	 * @param offset index of the first value of the new clip in sharedData.
+	 * @param length the number of values in the new clip.
+	 */
+	private SoundClip(double startTimeMsec, double endTimeMsec, double samplingRate, SoundClip clip, double[] sharedData, int offset, int length) {
+		super(startTimeMsec, endTimeMsec, samplingRate, sharedData, offset, length);
+		this.channels = clip.channels;
+		this.bitsPerSample = clip.bitsPerSample;
+		this.interleavedDataDimensions = clip.getInterleavedDataDimensions();
+	}
+
 	/**
 	 * Get the number of PCM bytes for the given inputs.
 	 * @param samples
@@ -425,6 +443,15 @@ public class SoundClip extends DoubleWindow implements Serializable, IDoubleWind
 		PCMUtil.PCMtoWAV(stream,this);
 	}
 
+	/**
+	 * Extend the super class to include the PCM data, if it has been computed.
+	 */
+	@JsonIgnore
+	@Override
+	public long getEstimatedSizeBytes() {
+		return super.getEstimatedSizeBytes() + CacheItemSizer.estimateBytes(pcmData);
+	}
+
 	@Override
 	public int hashCode() {
 		final int prime = 31;
@@ -463,11 +490,19 @@ public class SoundClip extends DoubleWindow implements Serializable, IDoubleWind
 		 * as a sanity check.
 		 */
 		int idc = this.getInterleavedDataDimensions();
-		if (idc == 1) {
-			DoubleWindow dw = super.newSubWindow(newStartMsec, startSampleIndex, endSampleIndex);
-			double[] iv = dw.getIndependentValues();
-			Vector vector = iv == null ? null : new Vector(iv);
-			return new SoundClip(dw.getStartTimeMsec(), dw.getEndTimeMsec(), vector, dw.getData(), idc);
+		if (idc == 1) {	// Share our data with the new clip.
+			int newSampleCount = endSampleIndex - startSampleIndex;
+			if (newSampleCount < 2)
+				throw new IllegalArgumentException("data must be length 2 or larger");
+			double newEndMsec = newStartMsec + 1000.0 * newSampleCount / getSamplingRate();
+			double newSamplingRate = getSamplesPerSecond(newStartMsec, newEndMsec, newSampleCount);
+			synchronized (this) {
+				int offset = getBackingDataOffset() + startSampleIndex;
+				if (shareBackingData())
+					return new SoundClip(newStartMsec, newEndMsec, newSamplingRate, this, getBackingData(), offset, newSampleCount);
+				double[] copy = Arrays.copyOfRange(getBackingData(), offset, offset + newSampleCount);
+				return new SoundClip(newStartMsec, newEndMsec, newSamplingRate, this, copy, 0, newSampleCount);
+			}
 		}
 //		if (idc != 1) {
 //			if (startSampleIndex % idc != 0)
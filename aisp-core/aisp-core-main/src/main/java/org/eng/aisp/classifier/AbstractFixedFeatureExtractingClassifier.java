@@ -76,14 +76,38 @@ public abstract class AbstractFixedFeatureExtractingClassifier<WINDATA, FDATA> e
 		super();
 		this.featureGramDescriptors = featureGramExtractors;
 	}
+
+	/**
+	 * @return the list of feature gram descriptors given at construction.  Not a copy, so should not be modified. 
+	 */
+	public List<IFeatureGramDescriptor<WINDATA,FDATA>> getFeatureGramDescriptors() {
+		return featureGramDescriptors;
+	}
 	
 	@Override
 	public final Map<String, Classification> classify(IDataWindow<WINDATA> sample) throws AISPException {
-		if (featureExtractionPipeline == null)
-			featureExtractionPipeline = AISPRuntime.getRuntime().getFeatureExtractionPipeline(featureGramDescriptors);
 //		IFeature<FDATA> features[] = featureExtractionPipeline.extract(sample); 
-		IFeatureGram<FDATA> features[] = featureExtractionPipeline.extract(sample); 
+		IFeatureGram<FDATA> features[] = extractFeatures(sample); 
 		List<Classification> clist = classify(features);
+		return toClassificationMap(clist);
+	}
+
+	/**
+	 * Extract the feature grams used by this instance from the given data.
+	 * @param sample
+	 * @return an array of feature grams, one for each of this instance's feature gram descriptors.
+	 * @throws AISPException
+	 */
+	protected IFeatureGram<FDATA>[] extractFeatures(IDataWindow<WINDATA> sample) throws AISPException {
+		if (featureExtractionPipeline == null)
+			featureExtractionPipeline = AISPRuntime.getRuntime().getFeatureExtractionPipeline(featureGramDescriptors);
+		return featureExtractionPipeline.extract(sample); 
+	}
+
+	/**
+	 * Map the given classifications by their label names, as returned by {@link #classify(IDataWindow)}.
+	 */
+	protected static Map<String, Classification> toClassificationMap(List<Classification> clist) {
 		Map<String, Classification> cmap = new HashMap<String, Classification>();
 		for (Classification c : clist) 
 			cmap.put(c.getLabelName(), c);
@@ -19,10 +19,16 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 
 import org.eng.aisp.AISPException;
 import org.eng.aisp.AISPLogger;
+import org.eng.aisp.AISPProperties;
 import org.eng.aisp.ILabeledDataWindow;
 import org.eng.aisp.classifier.TrainingSetInfo.LabelInfo;
 import org.eng.aisp.util.BalancedLabeledWindowIterable;
@@ -31,13 +37,23 @@ import org.eng.aisp.util.LabeledWindowIterable;
 import org.eng.aisp.util.Partitioner;
 import org.eng.util.CachingIterable;
 import org.eng.util.CachingShuffleIterable;
+import org.eng.util.ClassUtilities;
 import org.eng.util.DelegatingShuffleIterable;
+import org.eng.util.ExecutorUtil;
 import org.eng.util.IShuffleIterable;
 import org.eng.util.IterableIterable;
 
 
 /**
  * Implements a model evaluation algorithm by holding out 1 of K subsets of training data K times.
+ * <p>
+ * Folds may be trained and evaluated concurrently by setting the fold parallelism to more than 1, either in the constructor
+ * or with the {@value #FOLD_PARALLELISM_PROPERTY_NAME} property.  In this case, each fold trains its own copy of the modeler,
+ * made before any training begins, and at most the given number of folds are trained at the same time to bound memory use.
+ * The partitions are defined as in the sequential mode and the confusion matrices are merged in fold order, so the result
+ * is the same as the sequential mode's for classifiers whose training is repeatable.
+ * Windows are shared by all folds, so the feature grams of each window are computed once and found in the cache of 
+ * the {@link org.eng.aisp.feature.pipeline.CachingFeatureExtractionPipeline} (keyed by window instance id) by the other folds.
  * @author dawood
  *
  */
@@ -49,12 +65,16 @@ public class KFoldModelEvaluator {
 	private boolean verbose;
 	private boolean preShuffle;
 	private boolean parallelCM;
+	private final int foldParallelism;
 	
 	public final static int DEFAULT_SEED = 123345123;
 	public final static boolean DEFAULT_PRESHUFFLE = true;
 	public static final int DEFAULT_FOLD_COUNT = 3;
 	public final static boolean DEFAULT_VERBOSE = false;
 	public final static boolean DEFAULT_PARALLEL= false;
+	public final static String FOLD_PARALLELISM_PROPERTY_NAME = "classifiers.kfold.parallelism";
+	/** The default number of folds trained and evaluated at the same time.  1 evaluates the folds sequentially. */
+	public final static int DEFAULT_FOLD_PARALLELISM = AISPProperties.instance().getProperty(FOLD_PARALLELISM_PROPERTY_NAME, 1);
 
 	public KFoldModelEvaluator() {
 		this(DEFAULT_FOLD_COUNT,DEFAULT_SEED, DEFAULT_PRESHUFFLE, DEFAULT_VERBOSE, DEFAULT_PARALLEL);	// Every element from the first and no maximum
@@ -79,11 +99,27 @@ public class KFoldModelEvaluator {
 	 * @param verbose if true, then put out extra info during evaluation.
 	 */
 	public KFoldModelEvaluator(int foldCount, int seed, boolean preShuffle, boolean verbose, boolean parallelCM) {
+		this(foldCount, seed, preShuffle, verbose, parallelCM, DEFAULT_FOLD_PARALLELISM);
+	}
+
+	/**
+	 * Create the instance to use the given number of folds. 
+	 * @param foldCount must be larger than 1.
+	 * @param seed used to shuffle the the sounds prior to evaluation.
+	 * @param preShuffle if true, then shuffle the data prior to defining folds. 
+	 * @param verbose if true, then put out extra info during evaluation.
+	 * @param parallelCM if true, then classify the test data of each fold in parallel. 
+	 * @param foldParallelism the maximum number of folds to train and evaluate at the same time.  1 evaluates the folds sequentially.
+	 */
+	public KFoldModelEvaluator(int foldCount, int seed, boolean preShuffle, boolean verbose, boolean parallelCM, int foldParallelism) {
+		if (foldParallelism < 1)
+			throw new IllegalArgumentException("foldParallelism must be 1 or larger");
 		this.foldCount = foldCount;
 		this.seed = seed;
 		this.verbose = verbose;
 		this.preShuffle = preShuffle;
 		this.parallelCM = parallelCM;
+		this.foldParallelism = foldParallelism;
 	}
 
 	
@@ -166,7 +202,7 @@ public class KFoldModelEvaluator {
 			AISPLogger.logger.info(msg);
 		}
 		
-		ConfusionMatrix mergedMatrix = null; 
+		List<Fold<LDW>> folds = new ArrayList<Fold<LDW>>();
 		for (int testPartitionIndex=0 ; testPartitionIndex<foldsToEvaluate; testPartitionIndex++) {	// over a held out set 
 
 			// Select N-1 partitions for training and balance that data so all label values have the same number of samples, if requested.
@@ -187,12 +223,23 @@ public class KFoldModelEvaluator {
 			// Provided primarily for junit tests to check on the definition of the training and test data sets.
 			if (partitionListener != null && !partitionListener.partitioned(trainingData, testData))
 				continue;	// Listener (junit test?) requested confusion matrix computation to be skipped.
-			
 
-			ConfusionMatrix matrix = getConfusionMatrix(modeler, trainingData, testData, label, trainingInfo, testInfo, testPartitionIndex); 
+			folds.add(new Fold<LDW>(testPartitionIndex, trainingData, testData, trainingInfo, testInfo));
+		}
+
+		List<ConfusionMatrix> matrices;
+		if (foldParallelism > 1 && folds.size() > 1) 
+			matrices = getConfusionMatricesInParallel(modeler, folds, label);
+		else
+			matrices = getConfusionMatrices(modeler, folds, label);
+
+		// Merge in fold order so the result does not depend on the order in which the folds completed.
+		ConfusionMatrix mergedMatrix = null; 
+		for (int i=0 ; i<folds.size() ; i++) {
+			ConfusionMatrix matrix = matrices.get(i);
 			if (matrix != null) {
 				if (verbose)
-					System.out.println("Accuracy on held out fold #" + testPartitionIndex + ": " + matrix.getAccuracy());
+					System.out.println("Accuracy on held out fold #" + folds.get(i).testPartitionIndex + ": " + matrix.getAccuracy());
 				if (mergedMatrix == null)
 					mergedMatrix = matrix;
 				else
@@ -203,6 +250,119 @@ public class KFoldModelEvaluator {
 		return mergedMatrix;
 	}
 
+	/**
+	 * The training and test data of a fold defined by holding out one of the partitions.
+	 */
+	private static class Fold<LDW> {
+		final int testPartitionIndex;
+		final Iterable<LDW> trainingData;
+		final Iterable<LDW> testData;
+		final TrainingSetInfo trainingInfo;
+		final TrainingSetInfo testInfo;
+
+		Fold(int testPartitionIndex, Iterable<LDW> trainingData, Iterable<LDW> testData, TrainingSetInfo trainingInfo, TrainingSetInfo testInfo) {
+			this.testPartitionIndex = testPartitionIndex;
+			this.trainingData = trainingData;
+			this.testData = testData;
+			this.trainingInfo = trainingInfo;
+			this.testInfo = testInfo;
+		}
+	}
+
+	/**
+	 * Train the given modeler on each fold, one after the other, and compute the confusion matrix of each.
+	 * @return a list of matrices in the order of the given folds.
+	 */
+	private <WINDATA,LDW extends ILabeledDataWindow<WINDATA>> List<ConfusionMatrix> getConfusionMatrices(IClassifier<WINDATA> modeler, List<Fold<LDW>> folds, String label) throws AISPException {
+		List<ConfusionMatrix> matrices = new ArrayList<ConfusionMatrix>();
+		for (Fold<LDW> fold : folds) 
+			matrices.add(getConfusionMatrix(modeler, fold.trainingData, fold.testData, label, fold.trainingInfo, fold.testInfo, fold.testPartitionIndex));
+		return matrices;
+	}
+
+	/**
+	 * Trains a copy of the modeler on each fold taken from a shared index, until all folds have been evaluated. 
+	 */
+	private class FoldWorker<WINDATA,LDW extends ILabeledDataWindow<WINDATA>> implements Callable<Object> {
+
+		private final List<IClassifier<WINDATA>> modelers;
+		private final List<Fold<LDW>> folds;
+		private final String label;
+		private final AtomicInteger sharedIndex;
+		private final ConfusionMatrix[] matrices;
+
+		FoldWorker(List<IClassifier<WINDATA>> modelers, List<Fold<LDW>> folds, String label, AtomicInteger sharedIndex, ConfusionMatrix[] matrices) {
+			this.modelers = modelers;
+			this.folds = folds;
+			this.label = label;
+			this.sharedIndex = sharedIndex;
+			this.matrices = matrices;
+		}
+
+		@Override
+		public Object call() throws Exception {
+			int index;
+			while ((index = sharedIndex.getAndIncrement()) < folds.size()) {
+				Fold<LDW> fold = folds.get(index);
+				matrices[index] = getConfusionMatrix(modelers.get(index), fold.trainingData, fold.testData, label, fold.trainingInfo, fold.testInfo, fold.testPartitionIndex);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Train and evaluate up to {@link #foldParallelism} folds at the same time, each on its own copy of the modeler.
+	 * The given modeler is trained on the last fold, so that it is left in the same state as in the sequential mode.
+	 * @return a list of matrices in the order of the given folds.
+	 */
+	private <WINDATA,LDW extends ILabeledDataWindow<WINDATA>> List<ConfusionMatrix> getConfusionMatricesInParallel(IClassifier<WINDATA> modeler, List<Fold<LDW>> folds, String label) throws AISPException {
+		// Copy the modeler before any training begins so each fold starts from the same untrained state.
+		List<IClassifier<WINDATA>> modelers = new ArrayList<IClassifier<WINDATA>>();
+		for (int i=0 ; i<folds.size()-1 ; i++) {
+			try {
+				modelers.add(ClassUtilities.copy(modeler));
+			} catch (Exception e) {
+				throw new AISPException("Could not copy the modeler to train folds in parallel: " + e.getMessage(), e);
+			}
+		}
+		modelers.add(modeler);
+
+		ExecutorService eservice = ExecutorUtil.getPrioritizingSharedService();
+		List<Future<Object>> flist = new ArrayList<Future<Object>>();
+		AtomicInteger sharedIndex = new AtomicInteger(0);
+		ConfusionMatrix[] matrices = new ConfusionMatrix[folds.size()];
+		int workers = Math.min(foldParallelism, folds.size());
+		for (int i=0 ; i<workers ; i++)  
+			flist.add(eservice.submit(new FoldWorker<WINDATA,LDW>(modelers, folds, label, sharedIndex, matrices)));
+
+		// Wait for completion of all tasks.
+		AISPException error = null;
+		for (Future<Object> f : flist) {
+			try {
+				f.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				if (error == null)
+					error = new AISPException("Interrupted while evaluating folds in parallel", e);
+			} catch (ExecutionException e) {
+				if (error == null) {
+					Throwable cause = e.getCause();
+					if (cause instanceof AISPException)
+						error = (AISPException)cause;
+					else
+						error = new AISPException("Error during parallel fold evaluation: " + cause.getMessage(), cause);
+				}
+			}
+		}
+		if (error != null)
+			throw error;
+		
+		List<ConfusionMatrix> matrixList = new ArrayList<ConfusionMatrix>();
+		for (ConfusionMatrix matrix : matrices)
+			matrixList.add(matrix);
+		return matrixList;
+	}
+
 
 
 	/**	
@@ -359,6 +519,7 @@ public class KFoldModelEvaluator {
 		final int prime = 31;
 		int result = 1;
 		result = prime * result + foldCount;
+		result = prime * result + foldParallelism;
 		result = prime * result + seed;
 		result = prime * result + (verbose ? 1231 : 1237);
 		return result;
@@ -375,6 +536,8 @@ public class KFoldModelEvaluator {
 		KFoldModelEvaluator other = (KFoldModelEvaluator) obj;
 		if (foldCount != other.foldCount)
 			return false;
+		if (foldParallelism != other.foldParallelism)
+			return false;
 		if (seed != other.seed)
 			return false;
 		if (verbose != other.verbose)
@@ -384,7 +547,7 @@ public class KFoldModelEvaluator {
 
 	@Override
 	public String toString() {
-		return "KFoldModelEvaluator [foldCount=" + foldCount + ", seed=" + seed + ", verbose=" + verbose + "]";
+		return "KFoldModelEvaluator [foldCount=" + foldCount + ", seed=" + seed + ", verbose=" + verbose + ", foldParallelism=" + foldParallelism + "]";
 	}
 	
 }
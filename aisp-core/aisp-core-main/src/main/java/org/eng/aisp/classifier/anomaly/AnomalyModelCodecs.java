@@ -0,0 +1,167 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.anomaly;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.eng.aisp.classifier.anomaly.FixedAnomalyDetectorClassifier.UpdateMode;
+import org.eng.aisp.feature.IFeatureGram;
+import org.eng.aisp.feature.IFeatureGramDescriptor;
+import org.eng.aisp.util.IModelCodec;
+import org.eng.aisp.util.ModelCodecInputStream;
+import org.eng.aisp.util.ModelCodecOutputStream;
+
+/**
+ * Provides the {@link IModelCodec} instances for the fixed anomaly detector classifier and the feature and multidimensional detectors it holds.
+ * The per-dimension detectors of a {@link MultidimensionalAnomalyDetector} are written together with Java serialization 
+ * unless each has its own codec, so that their classes are only described once.
+ * The stream state of the classifier is transient and so is not written, as with Java serialization.
+ */
+public class AnomalyModelCodecs {
+
+	/**
+	 * @return the codecs of the classes of this package.
+	 */
+	public static List<IModelCodec<?>> getCodecs() {
+		List<IModelCodec<?>> codecs = new ArrayList<IModelCodec<?>>();
+		codecs.add(new FixedAnomalyDetectorClassifierCodec());
+		codecs.add(new FeatureAnomalyDetectorCodec());
+		codecs.add(new MultidimensionalAnomalyDetectorCodec());
+		return codecs;
+	}
+
+	private static class FixedAnomalyDetectorClassifierCodec implements IModelCodec<FixedAnomalyDetectorClassifier> {
+
+		@Override
+		public Class<FixedAnomalyDetectorClassifier> getModelClass() {
+			return FixedAnomalyDetectorClassifier.class;
+		}
+
+		@Override
+		public int getVersion() {
+			return 1;
+		}
+
+		@Override
+		public void write(ModelCodecOutputStream ostream, FixedAnomalyDetectorClassifier model) throws IOException {
+			ostream.writeStringMap(model.getTags());
+			ostream.writeModelList(model.getFeatureGramDescriptors());
+			ostream.writeString(model.getTrainedLabel());
+			ostream.writeModels(model.getFeatureGramAnomalyDetectors());
+			ostream.writeModel(model.getFeatureGramAnomalyDetectorBuilder());
+			ostream.writeLong(model.getNextAtTime());
+			ostream.writeInt(model.getMinFeatureVotes());
+			UpdateMode updateMode = model.getUpdateMode();
+			ostream.writeString(updateMode == null ? null : updateMode.name());
+			ostream.writeLong(model.getLearnNormalEnvUntilTime());
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public FixedAnomalyDetectorClassifier read(ModelCodecInputStream istream, int version) throws IOException, ClassNotFoundException {
+			Map<String,String> tags = istream.readStringMap();
+			List<IFeatureGramDescriptor<double[],double[]>> fgeList = istream.readModelList();
+			String labelName = istream.readString();
+			Object[] detectors = istream.readModels();
+			if (detectors != null && !(detectors instanceof IAnomalyDetector[]))
+				throw new StreamCorruptedException("Invalid anomaly detectors");
+			IFeatureGramAnomalyDetectorBuilder builder = (IFeatureGramAnomalyDetectorBuilder)istream.readModel();
+			long nextAtTime = istream.readLong();
+			int minFeatureVotes = istream.readInt();
+			String updateModeName = istream.readString();
+			long learnNormalEnvUntilTime = istream.readLong();
+			UpdateMode updateMode;
+			try {
+				updateMode = updateModeName == null ? null : UpdateMode.valueOf(updateModeName);
+			} catch (IllegalArgumentException e) {
+				throw new StreamCorruptedException("Invalid update mode " + updateModeName);
+			}
+			FixedAnomalyDetectorClassifier model = new FixedAnomalyDetectorClassifier(labelName, fgeList, 
+					(IAnomalyDetector<IFeatureGram<double[]>>[])detectors, builder, nextAtTime, minFeatureVotes, updateMode, learnNormalEnvUntilTime);
+			if (tags != null) {
+				for (Map.Entry<String,String> e : tags.entrySet())
+					model.addTag(e.getKey(), e.getValue());
+			}
+			return model;
+		}
+	}
+
+	private static class FeatureAnomalyDetectorCodec implements IModelCodec<FeatureAnomalyDetector> {
+
+		@Override
+		public Class<FeatureAnomalyDetector> getModelClass() {
+			return FeatureAnomalyDetector.class;
+		}
+
+		@Override
+		public int getVersion() {
+			return 1;
+		}
+
+		@Override
+		public void write(ModelCodecOutputStream ostream, FeatureAnomalyDetector model) throws IOException {
+			ostream.writeModel(model.getMultidimensionalDetector());
+			ostream.writeDouble(model.getAcrossFeaturesVotePercentage());
+		}
+
+		@Override
+		public FeatureAnomalyDetector read(ModelCodecInputStream istream, int version) throws IOException, ClassNotFoundException {
+			Object multiDetector = istream.readModel();
+			if (multiDetector != null && !(multiDetector instanceof MultidimensionalAnomalyDetector))
+				throw new StreamCorruptedException("Invalid multidimensional anomaly detector");
+			double acrossFeaturesVotePercentage = istream.readDouble();
+			return new FeatureAnomalyDetector((MultidimensionalAnomalyDetector)multiDetector, acrossFeaturesVotePercentage);
+		}
+	}
+
+	private static class MultidimensionalAnomalyDetectorCodec implements IModelCodec<MultidimensionalAnomalyDetector> {
+
+		@Override
+		public Class<MultidimensionalAnomalyDetector> getModelClass() {
+			return MultidimensionalAnomalyDetector.class;
+		}
+
+		@Override
+		public int getVersion() {
+			return 1;
+		}
+
+		@Override
+		public void write(ModelCodecOutputStream ostream, MultidimensionalAnomalyDetector model) throws IOException {
+			ostream.writeModels(model.detectors);
+			ostream.writeInt(model.minVotes);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public MultidimensionalAnomalyDetector read(ModelCodecInputStream istream, int version) throws IOException, ClassNotFoundException {
+			Object[] detectors = istream.readModels();
+			int minVotes = istream.readInt();
+			if (!(detectors instanceof IAnomalyDetector[]))
+				throw new StreamCorruptedException("Invalid anomaly detectors");
+			try {
+				return new MultidimensionalAnomalyDetector((IAnomalyDetector<Double>[])detectors, minVotes);
+			} catch (IllegalArgumentException e) {
+				throw new StreamCorruptedException("Invalid multidimensional anomaly detector: " + e.getMessage());
+			}
+		}
+	}
+
+}
@@ -41,6 +41,22 @@ public class FeatureAnomalyDetector implements IAnomalyDetector<IFeatureGram<dou
 		this.acrossFeaturesVotePercentage = acrossFeaturesVotePercentage;
 	}
 
+	/**
+	 * Restore an instance written by {@link AnomalyModelCodecs}.
+	 */
+	FeatureAnomalyDetector(MultidimensionalAnomalyDetector multiDetector, double acrossFeaturesVotePercentage) {
+		this.multiDetector = multiDetector;
+		this.acrossFeaturesVotePercentage = acrossFeaturesVotePercentage;
+	}
+
+	MultidimensionalAnomalyDetector getMultidimensionalDetector() {
+		return multiDetector;
+	}
+
+	double getAcrossFeaturesVotePercentage() {
+		return acrossFeaturesVotePercentage;
+	}
+
 	public void update(boolean isOfflineTraining, boolean isNormal, long atTime, IFeatureGram<double[]> featureGram) throws AISPException {
 		IFeature<double[]>[] featureGramFeatures = featureGram.getFeatures();
 		int featureCount = featureGramFeatures.length;
@@ -15,16 +15,25 @@
  *******************************************************************************/
 package org.eng.aisp.classifier.anomaly;
 
+import java.io.IOException;
+import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 import org.eng.aisp.AISPException;
+import org.eng.aisp.AISPProperties;
+import org.eng.aisp.IDataWindow;
 import org.eng.aisp.classifier.AbstractFixedFeatureExtractingClassifier;
 import org.eng.aisp.classifier.Classification;
 import org.eng.aisp.classifier.IFixedClassifier;
 import org.eng.aisp.classifier.anomaly.IAnomalyDetector.AnomalyResult;
 import org.eng.aisp.feature.IFeatureGram;
 import org.eng.aisp.feature.IFeatureGramDescriptor;
+import org.eng.util.ClassUtilities;
 
 /**
  * Provides a classifier that uses 1 or more feature-gram-based anomaly detectors and a configurable minimum to declare anomalies. 
@@ -39,6 +48,15 @@ import org.eng.aisp.feature.IFeatureGramDescriptor;
  * having a value of 'true' and a confidence score that can be considered an <i>anomaly score</i> (a value between
  * 0 and 1 with 1 being very confident that it is an anomaly).  The anomaly score may be useful when a continuous
  * anomaly indication is preferred over the the binary classification value in the trained label.
+ * <p>
+ * {@link #classify(org.eng.aisp.IDataWindow)} tracks a single deployment, updating the detectors of this instance.
+ * To monitor many sensors with one instance, use {@link #classify(String, IDataWindow, UpdateMode)}, which keeps the deployment 
+ * state of each stream separately while sharing the trained detectors.  A stream that is not updated only keeps its
+ * position in the stream, and one that is updated keeps its own copy of the detectors made when it is first updated. 
+ * Streams that are not updated are classified without locking, using a pool of copies of the trained detectors
+ * with one copy per classification made concurrently, since detectors may cache values while classifying.
+ * The number of streams is bounded and streams idle for too long are forgotten (see {@link #setStreamLimits(int, long)}). 
+ * The state of a stream can be saved and restored with {@link #getStreamState(String)} and {@link #setStreamState(String, StreamState)}.
  */
 public class FixedAnomalyDetectorClassifier extends AbstractFixedFeatureExtractingClassifier<double[], double[]> implements IFixedClassifier<double[]> {
 	
@@ -52,6 +70,36 @@ public class FixedAnomalyDetectorClassifier extends AbstractFixedFeatureExtracti
 		ALL
 	}
 	
+	/** The default maximum number of streams tracked by {@link #classify(String, IDataWindow, UpdateMode)} before the least recently used is forgotten */
+	public final static String MAX_STREAMS_PROPERTY_NAME = "classifiers.anomaly.streams.max";
+	public final static int DEFAULT_MAX_STREAMS = AISPProperties.instance().getProperty(MAX_STREAMS_PROPERTY_NAME, 10000);
+
+	/** The default number of seconds without a classification after which a stream is forgotten */
+	public final static String STREAM_IDLE_SECONDS_PROPERTY_NAME = "classifiers.anomaly.streams.idle_seconds";
+	public final static int DEFAULT_STREAM_IDLE_SECONDS = AISPProperties.instance().getProperty(STREAM_IDLE_SECONDS_PROPERTY_NAME, 3600);
+
+	/**
+	 * The deployment state of a single stream classified with {@link FixedAnomalyDetectorClassifier#classify(String, IDataWindow, UpdateMode)}.
+	 * Instances are only meaningful for the classifier, or a copy of it, from which they were obtained.
+	 */
+	public static class StreamState implements Serializable {
+
+		private static final long serialVersionUID = 8207004936373339473L;
+
+		/** The number of windows classified in the stream */
+		private long classifications;
+		/** The stream's own detectors, or null while the stream has not been updated and so uses the shared detectors */
+		private IAnomalyDetector<IFeatureGram<double[]>>[] detectors;
+		private transient long lastUsedMsec;
+
+		/**
+		 * @return the number of windows classified in the stream, including any used to learn the environment.
+		 */
+		public long getClassificationCount() {
+			return classifications;
+		}
+	}
+
 	private IAnomalyDetector<IFeatureGram<double[]>>[] featureGramAnomalyDetectors;
 
 	private final int minFeatureVotes;
@@ -63,6 +111,19 @@ public class FixedAnomalyDetectorClassifier extends AbstractFixedFeatureExtracti
 	private transient boolean deploymentStarted = false;
 	private transient long currentNextAtTime = 0;
 	private IFeatureGramAnomalyDetectorBuilder featureGramAnomalyDetectorBuilder;
+
+	/** The state of each stream, least recently used first */
+	private transient LinkedHashMap<String, StreamState> streams;
+	/** Set by {@link #setStreamLimits(int, long)}, or null to use the defaults */
+	private transient Integer maxStreams;
+	private transient Long maxStreamIdleMsec;
+	/** The detectors in their pre-deployment state, from which the detectors of streams are copied.  Never used to classify, so never modified. */
+	private transient volatile IAnomalyDetector<IFeatureGram<double[]>>[] streamDetectors;
+	/** 
+	 * Copies of {@link #streamDetectors} used to classify the windows of streams that are not updated, each by one thread at a time
+	 * since detectors may cache values while classifying.  There are only as many as the number of such classifications made concurrently.
+	 */
+	private transient ConcurrentLinkedQueue<IAnomalyDetector<IFeatureGram<double[]>>[]> sharedDetectors;
 	
 	/**
 	 * Creates the classifier from pre-trained anomaly detectors, generally called from an AnomalyDetectorClassifier train() method.
@@ -120,6 +181,46 @@ public class FixedAnomalyDetectorClassifier extends AbstractFixedFeatureExtracti
 		this.learnNormalEnvUntilTime = samplesToLearnNormalEnv > 0 ? nextAtTime + samplesToLearnNormalEnv : 0;
 	}
 
+	/**
+	 * Restore an instance written by {@link AnomalyModelCodecs}.
+	 */
+	FixedAnomalyDetectorClassifier(String labelName, List<IFeatureGramDescriptor<double[],double[]>> fgeList, IAnomalyDetector<IFeatureGram<double[]>>[] featureGramAnomalyDetectors, 
+			IFeatureGramAnomalyDetectorBuilder featureGramAnomalyDetectorBuilder, 
+			long nextAtTime, int minFeatureVotes, UpdateMode updateMode, long learnNormalEnvUntilTime) {
+		super(fgeList);
+		this.labelName = labelName;
+		this.featureGramAnomalyDetectors = featureGramAnomalyDetectors;
+		this.featureGramAnomalyDetectorBuilder = featureGramAnomalyDetectorBuilder;
+		this.nextAtTime = nextAtTime;
+		this.minFeatureVotes = minFeatureVotes;
+		this.updateMode = updateMode;
+		this.learnNormalEnvUntilTime = learnNormalEnvUntilTime;
+	}
+
+	IAnomalyDetector<IFeatureGram<double[]>>[] getFeatureGramAnomalyDetectors() {
+		return featureGramAnomalyDetectors;
+	}
+
+	IFeatureGramAnomalyDetectorBuilder getFeatureGramAnomalyDetectorBuilder() {
+		return featureGramAnomalyDetectorBuilder;
+	}
+
+	long getNextAtTime() {
+		return nextAtTime;
+	}
+
+	int getMinFeatureVotes() {
+		return minFeatureVotes;
+	}
+
+	UpdateMode getUpdateMode() {
+		return updateMode;
+	}
+
+	long getLearnNormalEnvUntilTime() {
+		return learnNormalEnvUntilTime;
+	}
+
 	@Override
 	public String getTrainedLabel() {
 		return this.labelName;
@@ -146,6 +247,19 @@ public class FixedAnomalyDetectorClassifier extends AbstractFixedFeatureExtracti
 			reset();
 		}
 
+		List<Classification> clist = classify(features, this.featureGramAnomalyDetectors, currentNextAtTime, this.updateMode);
+		this.currentNextAtTime++;
+
+		return clist;
+	}
+
+	/**
+	 * Classify the feature grams with the given detectors and update the detectors according to the update mode.
+	 * @param detectors the detectors for each feature gram.  Null elements are created with the detector builder.
+	 * @param currentNextAtTime the time of the features in the deployment.
+	 */
+	private List<Classification> classify(IFeatureGram<double[]>[] features, IAnomalyDetector<IFeatureGram<double[]>>[] featureGramAnomalyDetectors, 
+			long currentNextAtTime, UpdateMode updateMode) throws AISPException {
 		int votes = 0;
 		double abnormalConfSum = 0;
 		double normalConfSum = 0;
@@ -166,25 +280,220 @@ public class FixedAnomalyDetectorClassifier extends AbstractFixedFeatureExtracti
 				isAnomaly = false;
 				doUpdate = true;
 			} else {
-				AnomalyResult ar = this.featureGramAnomalyDetectors[i].isAnomaly(currentNextAtTime, fg); 
+				AnomalyResult ar = featureGramAnomalyDetectors[i].isAnomaly(currentNextAtTime, fg); 
 				abnormalConfSum += ar.getAnomalyConfidence();
 				normalConfSum += ar.getNormalConfidence();
 				isAnomaly = ar.isAnomaly(); 
 				// Update the detector with this sample if requested.
-				doUpdate = this.updateMode.equals(UpdateMode.ALL) || (!isAnomaly && this.updateMode.equals(UpdateMode.NORMAL_ONLY));
+				doUpdate = updateMode.equals(UpdateMode.ALL) || (!isAnomaly && updateMode.equals(UpdateMode.NORMAL_ONLY));
 			}
 			if (isAnomaly) 
 				votes++;
 			if (doUpdate)
-				this.featureGramAnomalyDetectors[i].update(learningEnvironment, !isAnomaly, currentNextAtTime, fg);	
+				featureGramAnomalyDetectors[i].update(learningEnvironment, !isAnomaly, currentNextAtTime, fg);	
 		}
 
-		this.currentNextAtTime++;
-
 		List<Classification> clist = createClassificationResult(votes, featureCount, abnormalConfSum, normalConfSum);
 		return clist;
 	}
 
+	/**
+	 * Classify the next window of the given stream using this instance's update mode.
+	 * @see #classify(String, IDataWindow, UpdateMode)
+	 */
+	public Map<String, Classification> classify(String streamID, IDataWindow<double[]> sample) throws AISPException {
+		return classify(streamID, sample, this.updateMode);
+	}
+
+	/**
+	 * Classify the next window of the given stream, independently of all other streams and of {@link #classify(IDataWindow)}.
+	 * The results for each stream are the same as those from a dedicated copy of this instance, as trained, given only the stream's 
+	 * windows through {@link #classify(IDataWindow)}.
+	 * A stream is started on its first window, or after it has been removed or forgotten as described in {@link #setStreamLimits(int, long)}. 
+	 * Classifications of different streams may be made concurrently.  Those of the same stream are made one at a time.
+	 * @param streamID identifies the stream.
+	 * @param sample the next window of the stream.
+	 * @param updateMode defines which windows of the stream update the stream's detectors.
+	 * @return the classifications as defined for {@link #classify(IDataWindow)}.
+	 * @throws AISPException
+	 */
+	public Map<String, Classification> classify(String streamID, IDataWindow<double[]> sample, UpdateMode updateMode) throws AISPException {
+		IFeatureGram<double[]>[] features = extractFeatures(sample);
+		if (features.length == 0)
+			throw new AISPException("Got unexpected zero length features array");
+		StreamState state = getStream(streamID);
+		List<Classification> clist;
+		synchronized (state) {
+			long atTime = this.nextAtTime + state.classifications;
+			boolean learningEnvironment = learnNormalEnvUntilTime > 0 && atTime <= learnNormalEnvUntilTime;	// Which updates the detectors.
+			boolean needsDetectors = featureGramAnomalyDetectorBuilder != null || !updateMode.equals(UpdateMode.NONE) || learningEnvironment;
+			if (state.detectors == null && needsDetectors) 
+				state.detectors = newStreamDetectors();
+			if (state.detectors != null) {
+				clist = classify(features, state.detectors, atTime, updateMode);
+			} else {
+				IAnomalyDetector<IFeatureGram<double[]>>[] shared = takeSharedDetectors();
+				try {
+					clist = classify(features, shared, atTime, UpdateMode.NONE);
+				} finally {
+					sharedDetectors.offer(shared);
+				}
+			}
+			state.classifications++;
+		}
+		return toClassificationMap(clist);
+	}
+
+	/**
+	 * Get the state of the stream, creating it if necessary, and forget streams beyond the limits set by {@link #setStreamLimits(int, long)}. 
+	 */
+	private synchronized StreamState getStream(String streamID) {
+		if (streams == null)
+			streams = new LinkedHashMap<String, StreamState>(16, 0.75f, true);
+		long now = System.currentTimeMillis();
+		StreamState state = streams.get(streamID);
+		if (state == null) {
+			state = new StreamState();
+			streams.put(streamID, state);
+		}
+		state.lastUsedMsec = now;
+		evictStreams(now);
+		return state;
+	}
+
+	/**
+	 * Remove the least recently used streams that are idle too long or beyond the maximum number of streams. 
+	 */
+	private void evictStreams(long now) {
+		int excess = streams.size() - (maxStreams == null ? DEFAULT_MAX_STREAMS : maxStreams);
+		long maxIdleMsec = maxStreamIdleMsec == null ? DEFAULT_STREAM_IDLE_SECONDS * 1000L : maxStreamIdleMsec;
+		Iterator<StreamState> iter = streams.values().iterator();
+		while (iter.hasNext()) {
+			StreamState state = iter.next();
+			if (excess > 0) {
+				excess--;
+			} else if (maxIdleMsec <= 0 || now - state.lastUsedMsec <= maxIdleMsec) {
+				break;
+			}
+			iter.remove();
+		}
+	}
+
+	/**
+	 * Get the detectors in their pre-deployment state, which must not be used to classify.
+	 */
+	private IAnomalyDetector<IFeatureGram<double[]>>[] getStreamDetectors() throws AISPException {
+		IAnomalyDetector<IFeatureGram<double[]>>[] detectors = streamDetectors;
+		if (detectors != null)
+			return detectors;
+		synchronized (this) {
+			if (streamDetectors == null) {
+				detectors = copy(this.featureGramAnomalyDetectors);
+				for (IAnomalyDetector<IFeatureGram<double[]>> detector : detectors)
+					detector.beginNewDeployment();
+				sharedDetectors = new ConcurrentLinkedQueue<IAnomalyDetector<IFeatureGram<double[]>>[]>();
+				streamDetectors = detectors;	// After creating sharedDetectors, which unlocked callers then see.
+			}
+			return streamDetectors;
+		}
+	}
+
+	/**
+	 * Take a copy of the pre-deployment detectors for the caller's exclusive use, which must be returned to {@link #sharedDetectors} when done.
+	 * Copies are only made when all others are in use.
+	 */
+	private IAnomalyDetector<IFeatureGram<double[]>>[] takeSharedDetectors() throws AISPException {
+		IAnomalyDetector<IFeatureGram<double[]>>[] template = getStreamDetectors();
+		IAnomalyDetector<IFeatureGram<double[]>>[] detectors = sharedDetectors.poll();
+		return detectors != null ? detectors : copy(template);
+	}
+
+	/**
+	 * Create the detectors to be updated by a single stream.
+	 */
+	private IAnomalyDetector<IFeatureGram<double[]>>[] newStreamDetectors() throws AISPException {
+		if (featureGramAnomalyDetectorBuilder != null) 
+			return new IAnomalyDetector[this.featureGramDescriptors.size()];	// Built on the first classification 
+		return copy(getStreamDetectors());
+	}
+
+	@SuppressWarnings("unchecked")
+	private static <T extends Serializable> T copy(T object) throws AISPException {
+		try {
+			return (T)ClassUtilities.deserialize(ClassUtilities.serialize(object));
+		} catch (IOException | ClassNotFoundException e) {
+			throw new AISPException("Could not copy stream state: " + e.getMessage(), e);
+		}
+	}
+
+	/**
+	 * Set the limits on the streams tracked by {@link #classify(String, IDataWindow, UpdateMode)}.
+	 * Streams beyond the limits are forgotten, after which their next window starts a new stream.
+	 * The defaults are set by the {@value #MAX_STREAMS_PROPERTY_NAME} and {@value #STREAM_IDLE_SECONDS_PROPERTY_NAME} properties.
+	 * @param maxStreams the number of streams beyond which the least recently classified streams are forgotten.
+	 * @param maxIdleMsec the time after the last classification of a stream after which it is forgotten.  0 or less to never forget idle streams.
+	 */
+	public synchronized void setStreamLimits(int maxStreams, long maxIdleMsec) {
+		if (maxStreams <= 0)
+			throw new IllegalArgumentException("maxStreams must be larger than 0");
+		this.maxStreams = maxStreams;
+		this.maxStreamIdleMsec = maxIdleMsec;
+		if (streams != null)
+			evictStreams(System.currentTimeMillis());
+	}
+
+	/**
+	 * @return the number of streams currently tracked.
+	 */
+	public synchronized int getStreamCount() {
+		return streams == null ? 0 : streams.size();
+	}
+
+	/**
+	 * Forget the given stream so that its next window starts a new stream.
+	 * @param streamID
+	 * @return true if the stream was being tracked.
+	 */
+	public synchronized boolean removeStream(String streamID) {
+		return streams != null && streams.remove(streamID) != null;
+	}
+
+	/**
+	 * Get a copy of the state of the given stream, for example, to save it before it is forgotten or moved to another instance. 
+	 * @param streamID
+	 * @return null if the stream is not being tracked.
+	 * @throws AISPException
+	 */
+	public StreamState getStreamState(String streamID) throws AISPException {
+		StreamState state;
+		synchronized (this) {
+			state = streams == null ? null : streams.get(streamID);
+		}
+		if (state == null)
+			return null;
+		synchronized (state) {
+			return copy(state);
+		}
+	}
+
+	/**
+	 * Set the state of the given stream, replacing any current state.
+	 * @param streamID
+	 * @param state a state from {@link #getStreamState(String)} on this instance or a copy of it.  A copy is retained, so the given instance may be reused.
+	 * @throws AISPException
+	 */
+	public void setStreamState(String streamID, StreamState state) throws AISPException {
+		StreamState copy = copy(state);
+		synchronized (this) {
+			if (streams == null)
+				streams = new LinkedHashMap<String, StreamState>(16, 0.75f, true);
+			long now = System.currentTimeMillis();
+			copy.lastUsedMsec = now;
+			streams.put(streamID, copy);
+			evictStreams(now);
+		}
+	}
+
 	/**
 	 * @param votes
 	 * @param featureCount
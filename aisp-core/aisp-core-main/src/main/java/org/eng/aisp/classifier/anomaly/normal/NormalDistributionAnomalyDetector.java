@@ -31,11 +31,13 @@ public class NormalDistributionAnomalyDetector implements IAnomalyDetector<Doubl
 	private int samplesToAdaptToEnvironment; 
 	private boolean isDirty = true;
 	
-	private transient double threshold;
+	/** Serialized with isDirty so that a copy made after a classification does not lose it */
+	private double threshold;
 	private transient RealDistribution distributionOfOnlineNormals;
 	private transient RealDistribution distributionOfOnlineAbnormals;
-	protected transient OnlineStats onlineNormalStats;
-	protected transient int normalOnlineUpdates = 0;
+	/** The deployment state, serialized so that it can be saved with the state of a stream. Reset by {@link #beginNewDeployment()} */
+	protected OnlineStats onlineNormalStats;
+	protected int normalOnlineUpdates = 0;
 	
 	public NormalDistributionAnomalyDetector(int samplesToAdaptToEnvironment, double normalStddevMultiplier) {
 		if (samplesToAdaptToEnvironment >= 0 && samplesToAdaptToEnvironment <= 1) 
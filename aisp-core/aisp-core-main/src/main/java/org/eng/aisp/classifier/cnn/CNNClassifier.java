@@ -53,6 +53,7 @@ import org.eng.aisp.transform.ITrainingWindowTransform;
 import org.nd4j.evaluation.classification.Evaluation;
 import org.nd4j.linalg.activations.Activation;
 import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
 import org.nd4j.linalg.learning.config.Adam;
 import org.nd4j.linalg.lossfunctions.LossFunctions;
 
@@ -139,6 +140,25 @@ public class CNNClassifier extends AbstractFixableFeatureExtractingClassifier<do
 //	public final static int DEFAULT_START_SCORE_TRACKING_EPOCH_NUM = 0; 	// Probably for debugging Optimizer
 	private final static int START_SCORE_TRACKING_EPOCH_NUM = AISPProperties.instance().getProperty(START_SCORE_TRACKING_EPOCH_NUM_PROPERTY_NAME, DEFAULT_START_SCORE_TRACKING_EPOCH_NUM);
 	
+	/** 
+	 * Controls whether the training and validation data are packed once into float tensors that are reused by every epoch, 
+	 * instead of being rebuilt from the feature grams on each pass. 
+	 */
+	public final static String MATERIALIZE_TRAINING_DATA_PROPERTY_NAME = "classifiers.cnn.training.materialize";
+	public final static boolean DEFAULT_MATERIALIZE_TRAINING_DATA = AISPProperties.instance().getProperty(MATERIALIZE_TRAINING_DATA_PROPERTY_NAME, false);
+	private final boolean materializeTrainingData;
+
+	/** Controls whether materialized training data is presented in a new random order in each epoch.  Ignored if the data is not materialized. */
+	public final static String SHUFFLE_TRAINING_DATA_PROPERTY_NAME = "classifiers.cnn.training.shuffle";
+	public final static boolean DEFAULT_SHUFFLE_TRAINING_DATA = AISPProperties.instance().getProperty(SHUFFLE_TRAINING_DATA_PROPERTY_NAME, false);
+	private final boolean shuffleTrainingData;
+
+	/** The size in megabytes above which materialized training data is memory-mapped from a temporary file instead of held in memory. */
+	public final static String MATERIALIZED_MMAP_THRESHOLD_MB_PROPERTY_NAME = "classifiers.cnn.training.mmap_threshold_mb";
+	public final static int DEFAULT_MATERIALIZED_MMAP_THRESHOLD_MB = 1024;
+	private final static long MATERIALIZED_MMAP_THRESHOLD_BYTES = 1024L * 1024L 
+			* AISPProperties.instance().getProperty(MATERIALIZED_MMAP_THRESHOLD_MB_PROPERTY_NAME, DEFAULT_MATERIALIZED_MMAP_THRESHOLD_MB);
+
 	public final static String VERBOSE_PROPERTY_NAME = "classifiers.cnn.verbose";
 	protected final static boolean VERBOSE = AISPProperties.instance().getProperty(VERBOSE_PROPERTY_NAME, false);
 
@@ -293,6 +313,33 @@ public class CNNClassifier extends AbstractFixableFeatureExtractingClassifier<do
 	 */
 	public CNNClassifier(ITrainingWindowTransform<double[]> transform, 	IFeatureGramDescriptor<double[], double[]> fge,
 			boolean useMemCache, boolean useDiskCache, int nEpochs, int batchSize, int trainingFolds, int epochScoreHistorySize, double minScoreChangePerEpoch) {
+		this(transform, fge, useMemCache, useDiskCache, nEpochs, batchSize, trainingFolds, epochScoreHistorySize, minScoreChangePerEpoch,
+				DEFAULT_MATERIALIZE_TRAINING_DATA, DEFAULT_SHUFFLE_TRAINING_DATA);
+	}
+
+	/**
+	 * 
+	 * @param transform
+	 * @param fge
+	 * @param useMemCache
+	 * @param useDiskCache
+	 * @param nEpochs the maximum number of epochs to use in training
+	 * @param batchSize the size of the batch of training data used during training
+	 * @param trainingFolds sets the size of the validation data set used during training. If greater than 2,
+	 * then N-1 folds are used for training and 1 fold is used for validation (error estimation) during training.
+	 * If set to 0, then the whole training data set is used as the validation set.
+	 * @param epochScoreHistorySize the length of history over which to compute the score change per epoch (see minScoreChangePerEpoch parameter)
+	 * @param minScoreChangePerEpoch used to control early stopping such that if the change in score per epoch is less than this number, then
+	 * training will stop before the max number of epochs.  Set to 0 to disable early stopping.
+	 * @param materializeTrainingData if true, then pack the training and validation data once into float tensors that are reused by each epoch.
+	 * This trades memory, or a temporary file for data larger than the {@value #MATERIALIZED_MMAP_THRESHOLD_MB_PROPERTY_NAME} property, for 
+	 * the time to rebuild each batch from the features in every epoch.  The trained network is the same as without materialization.
+	 * @param shuffleTrainingData if true and materializing the training data, then present the training data in a new random order, 
+	 * generated from a fixed seed, in each epoch.
+	 */
+	public CNNClassifier(ITrainingWindowTransform<double[]> transform, 	IFeatureGramDescriptor<double[], double[]> fge,
+			boolean useMemCache, boolean useDiskCache, int nEpochs, int batchSize, int trainingFolds, int epochScoreHistorySize, double minScoreChangePerEpoch,
+			boolean materializeTrainingData, boolean shuffleTrainingData) {
 		super(true, transform, fge, useMemCache, useDiskCache);
 		if (nEpochs <= 0) 
 			throw new IllegalArgumentException("The number of epochs must be greater than 0.");
@@ -317,6 +364,8 @@ public class CNNClassifier extends AbstractFixableFeatureExtractingClassifier<do
 		if (epochScoreHistorySize > nEpochs)
 			throw new IllegalArgumentException("The epoch score history size must be less or equal to the number of epochs (" + nEpochs + ")"); 
 		this.epochScoreHistorySize = epochScoreHistorySize;
+		this.materializeTrainingData = materializeTrainingData;
+		this.shuffleTrainingData = shuffleTrainingData;
 
 	}
 
@@ -428,7 +477,25 @@ public class CNNClassifier extends AbstractFixableFeatureExtractingClassifier<do
         if (VERBOSE)
         	AISPLogger.logger.info("Will train with early stopping using min " + scoreMetric + " score=" + MIN_EARLY_STOPPING_SCORE);
         
-        ScoreCalculator<Model> scorer = new ClassificationScoreCalculator(scoreMetric, testDataSet);
+        // Iterate the training and test data from float tensors packed once, or rebuild them from the features in each epoch. 
+        DataSetIterator trainingIterator;
+        DataSetIterator testIterator;
+        if (materializeTrainingData) {
+        	MaterializedDataSetIterator materialized = new MaterializedDataSetIterator(trainingDataSet, shuffleTrainingData, seed, MATERIALIZED_MMAP_THRESHOLD_BYTES);
+        	trainingIterator = materialized;
+        	if (testDataSet == trainingDataSet)
+        		testIterator = materialized.getUnshuffledView();
+        	else
+        		testIterator = new MaterializedDataSetIterator(testDataSet, false, seed, MATERIALIZED_MMAP_THRESHOLD_BYTES);
+        	if (VERBOSE)
+        		AISPLogger.logger.info("Materialized " + materialized.getNumExamples() + " training examples" 
+        				+ (materialized.isMemoryMapped() ? " in a memory-mapped file" : " in memory"));
+        } else {
+        	trainingIterator = trainingDataSet;
+        	testIterator = testDataSet;
+        }
+
+        ScoreCalculator<Model> scorer = new ClassificationScoreCalculator(scoreMetric, testIterator);
 //        ScoreCalculator<Model> scorer = new DataSetLossCalculator(testDataSet, true);  
 //        int startScoringAtEpoch = Math.max(10, nEpochs/8);	
 //        int startScoringAtEpoch = nEpochs/2;	
@@ -450,7 +517,7 @@ public class CNNClassifier extends AbstractFixableFeatureExtractingClassifier<do
 //        		.modelSaver(new LocalFileModelSaver(tmpDir.getAbsolutePath()))
         		.build();
 
-        EarlyStoppingTrainer trainer = new EarlyStoppingTrainer(esConf,conf,trainingDataSet);
+        EarlyStoppingTrainer trainer = new EarlyStoppingTrainer(esConf,conf,trainingIterator);
 
         if (VERBOSE) {
         	ScoreCalculator otherScorer = null; // new ClassificationScoreCalculator(scoreMetric, trainingDataSet);  
@@ -670,6 +737,7 @@ public class CNNClassifier extends AbstractFixableFeatureExtractingClassifier<do
 		final int maxLen = 5;
 		return "CNNClassifier [batchSize=" + batchSize + ", nChannels=" + nChannels + ", outputNum=" + outputNum
 				+ ", nEpochs=" + nEpochs + ", seed=" + seed 
+				+ ", materializeTrainingData=" + materializeTrainingData + ", shuffleTrainingData=" + shuffleTrainingData
 				+ ", primaryTrainingLabel=" + primaryTrainingLabel
 				+ ", trainingWindowTransform=" + this.trainingWindowTransform 
 				+ ", featureGramDescriptors="
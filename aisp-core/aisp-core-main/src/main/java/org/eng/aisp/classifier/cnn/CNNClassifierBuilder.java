@@ -29,6 +29,8 @@ public class CNNClassifierBuilder extends AbstractClassifierBuilder<double[], do
 	protected int trainingFolds = CNNClassifier.DEFAULT_TRAINING_FOLDS;
 	protected double minScoreChangePerEpoch = CNNClassifier.DEFAULT_MIN_SCORE_CHANGE_PER_EPOCH;
 	protected int epochScoreHistorySize = CNNClassifier.DEFAULT_EPOCH_SCORE_HISTORY_SIZE;
+	protected boolean materializeTrainingData = CNNClassifier.DEFAULT_MATERIALIZE_TRAINING_DATA;
+	protected boolean shuffleTrainingData = CNNClassifier.DEFAULT_SHUFFLE_TRAINING_DATA;
 
 	protected boolean setEarlyStoppingEnabled = CNNClassifier.DEFAULT_USE_EARLY_STOPPING;
 
@@ -59,7 +61,8 @@ public class CNNClassifierBuilder extends AbstractClassifierBuilder<double[], do
 			minScoreChangePerEpoch = this.minScoreChangePerEpoch;
 		else
 			minScoreChangePerEpoch = 0; 
-		return new CNNClassifier(transform, this.getFeatureGramExtractors().get(0), false, useDiskCache, nEpochs, batchSize, trainingFolds, epochScoreHistorySize, minScoreChangePerEpoch);
+		return new CNNClassifier(transform, this.getFeatureGramExtractors().get(0), false, useDiskCache, nEpochs, batchSize, trainingFolds, epochScoreHistorySize, minScoreChangePerEpoch,
+				materializeTrainingData, shuffleTrainingData);
 	}
 	
 	public CNNClassifierBuilder setNumberOfEpochs(int nEpochs) {
@@ -104,6 +107,24 @@ public class CNNClassifierBuilder extends AbstractClassifierBuilder<double[], do
 		return this; 
 	}
 	
+	/**
+	 * @param materializeTrainingData if true, then pack the training data once into float tensors that are reused by each epoch of training.
+	 * @return
+	 */
+	public CNNClassifierBuilder setMaterializeTrainingData(boolean materializeTrainingData) {
+		this.materializeTrainingData = materializeTrainingData;
+		return this; 
+	}
+
+	/**
+	 * @param shuffleTrainingData if true, then present materialized training data in a new random order in each epoch.
+	 * @return
+	 */
+	public CNNClassifierBuilder setShuffleTrainingData(boolean shuffleTrainingData) {
+		this.shuffleTrainingData = shuffleTrainingData;
+		return this; 
+	}
+
 	/**
 	 * Enable/disable early stopping of training based on early stopping metrics. 
 	 * @param enabled 
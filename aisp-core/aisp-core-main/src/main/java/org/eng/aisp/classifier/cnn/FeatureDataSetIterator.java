@@ -32,6 +32,7 @@ import org.eng.aisp.feature.IFeature;
 import org.eng.aisp.feature.ILabeledFeatureGram;
 import org.eng.aisp.feature.pipeline.LabeledFeatureIterable;
 import org.eng.util.AbstractDefaultIterator;
+import org.eng.util.ISizedIterable;
 import org.nd4j.common.util.ArrayUtil;
 import org.nd4j.linalg.api.ndarray.INDArray;
 //import org.nd4j.linalg.cpu.nativecpu.NDArray;
@@ -183,6 +184,23 @@ public class FeatureDataSetIterator extends AbstractDefaultIterator<DataSet> imp
 		return numSubWindow;
 	}
 
+	public int getNumChannels() {
+		return nChannels;
+	}
+
+	/**
+	 * Get the number of examples produced by a full pass over this iterator.
+	 * @return the size of the features if they are an {@link ISizedIterable}, otherwise the count from a pass over the features.
+	 */
+	int countExamples() {
+		if (labeledFeatures instanceof ISizedIterable)
+			return ((ISizedIterable<?>)labeledFeatures).size();
+		int count = 0;
+		for (Iterator<?> it = labeledFeatures.iterator(); it.hasNext(); it.next())
+			count++;
+		return count;
+	}
+
 	@Override
 	public boolean hasNext() {
 		return labeledFeaturesIt.hasNext();
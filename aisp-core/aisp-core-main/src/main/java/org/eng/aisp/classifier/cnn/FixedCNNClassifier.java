@@ -19,25 +19,34 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
 
 import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
 import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
 import org.eng.aisp.AISPException;
+import org.eng.aisp.AISPProperties;
 import org.eng.aisp.classifier.AbstractFixedFeatureExtractingClassifier;
 import org.eng.aisp.classifier.Classification;
 import org.eng.aisp.classifier.IFixedClassifier;
 import org.eng.aisp.classifier.Classification.LabelValue;
+import org.eng.aisp.feature.IFeature;
 import org.eng.aisp.feature.IFeatureGram;
 import org.eng.aisp.feature.IFeatureGramDescriptor;
-import org.eng.aisp.feature.ILabeledFeatureGram;
-import org.eng.aisp.feature.LabeledFeatureGram;
 import org.eng.aisp.util.ArrayIndexComparator;
+import org.nd4j.linalg.api.buffer.DataType;
 import org.nd4j.linalg.api.ndarray.INDArray;
-import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.factory.Nd4j;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+/**
+ * A fixed CNN classifier that can classify on multiple threads concurrently.
+ * <p>
+ * DL4J networks are not thread-safe, so each concurrent classification uses one of a pool of replicas of the network.
+ * The replicas are created as needed up to the configured number and share the single array of model parameters. 
+ * Each replica reuses its input array, which is filled directly from the feature gram.
+ */
 public class FixedCNNClassifier extends AbstractFixedFeatureExtractingClassifier<double[], double[]>  implements IFixedClassifier<double[]>  {
 
 	private static final long serialVersionUID = 2966528639796200129L;
@@ -46,6 +55,30 @@ public class FixedCNNClassifier extends AbstractFixedFeatureExtractingClassifier
 	
     private static final Logger log = LoggerFactory.getLogger(FixedCNNClassifier.class);
     
+	public final static String INFERENCE_REPLICAS_PROPERTY_NAME = "classifiers.cnn.inference.replicas";
+
+	/**
+	 * The default maximum number of replicas of the network used to classify concurrently.
+	 * Value is set by the {@value #INFERENCE_REPLICAS_PROPERTY_NAME} property and defaults to the number of available processors.
+	 */
+	public final static int DEFAULT_INFERENCE_REPLICAS = AISPProperties.instance().getProperty(INFERENCE_REPLICAS_PROPERTY_NAME, Runtime.getRuntime().availableProcessors());
+
+	public final static String INFERENCE_BATCH_SIZE_PROPERTY_NAME = "classifiers.cnn.inference.batch_size";
+
+	/**
+	 * The default maximum number of concurrent classifications evaluated by the network in a single batch.  
+	 * If 1, then each classification is evaluated separately as soon as a replica is available.
+	 * Value is set by the {@value #INFERENCE_BATCH_SIZE_PROPERTY_NAME} property and defaults to 1.
+	 */
+	public final static int DEFAULT_INFERENCE_BATCH_SIZE = AISPProperties.instance().getProperty(INFERENCE_BATCH_SIZE_PROPERTY_NAME, 1);
+
+	public final static String INFERENCE_BATCH_WAIT_MSEC_PROPERTY_NAME = "classifiers.cnn.inference.batch_wait_msec";
+
+	/**
+	 * The default maximum time a classification waits for others to fill a batch, when the batch size is larger than 1.
+	 * Value is set by the {@value #INFERENCE_BATCH_WAIT_MSEC_PROPERTY_NAME} property and defaults to 5.
+	 */
+	public final static int DEFAULT_INFERENCE_BATCH_WAIT_MSEC = AISPProperties.instance().getProperty(INFERENCE_BATCH_WAIT_MSEC_PROPERTY_NAME, 5);
     
 
 	private final String primaryTrainingLabel;
@@ -59,12 +92,51 @@ public class FixedCNNClassifier extends AbstractFixedFeatureExtractingClassifier
 
     private String modelConfig;
     private INDArray modelParams;
+    /** The maximum number of replicas of the network.  0 in instances serialized before this was added, which uses the default */
+    private final int inferenceReplicas;
+    /** The maximum number of classifications in a batch.  0 in instances serialized before this was added, which use the defaults for this and the wait */
+    private final int inferenceBatchSize;
+    /** The maximum time waited to fill a batch */
+    private final int inferenceBatchWaitMsec;
     
     
 	public FixedCNNClassifier(String primaryTrainingLabel, List<IFeatureGramDescriptor<double[],double[]>> fgeList, 
 			int batchSize, int outputNum, Map<Integer, String> numToStrLabelMap, 
 			int numSamplesPerWindow, int numSubWindow, int nChannels, String modelConfig, INDArray modelParams) {
+		this(primaryTrainingLabel, fgeList, batchSize, outputNum, numToStrLabelMap, numSamplesPerWindow, numSubWindow, nChannels,
+				modelConfig, modelParams, DEFAULT_INFERENCE_REPLICAS);
+	}
+
+	/**
+	 * @param inferenceReplicas the maximum number of replicas of the network, and so of concurrent classifications.
+	 */
+	public FixedCNNClassifier(String primaryTrainingLabel, List<IFeatureGramDescriptor<double[],double[]>> fgeList, 
+			int batchSize, int outputNum, Map<Integer, String> numToStrLabelMap, 
+			int numSamplesPerWindow, int numSubWindow, int nChannels, String modelConfig, INDArray modelParams, int inferenceReplicas) {
+		this(primaryTrainingLabel, fgeList, batchSize, outputNum, numToStrLabelMap, numSamplesPerWindow, numSubWindow, nChannels,
+				modelConfig, modelParams, inferenceReplicas, DEFAULT_INFERENCE_BATCH_SIZE, DEFAULT_INFERENCE_BATCH_WAIT_MSEC);
+	}
+
+	/**
+	 * @param inferenceReplicas the maximum number of replicas of the network, and so of concurrently evaluated batches.
+	 * @param inferenceBatchSize the maximum number of concurrent classifications evaluated by the network in a single batch.
+	 * If 1, then each classification is evaluated separately.
+	 * @param inferenceBatchWaitMsec the maximum time a classification waits for others to fill its batch.
+	 */
+	public FixedCNNClassifier(String primaryTrainingLabel, List<IFeatureGramDescriptor<double[],double[]>> fgeList, 
+			int batchSize, int outputNum, Map<Integer, String> numToStrLabelMap, 
+			int numSamplesPerWindow, int numSubWindow, int nChannels, String modelConfig, INDArray modelParams, int inferenceReplicas,
+			int inferenceBatchSize, int inferenceBatchWaitMsec) {
 		super(fgeList);
+		if (inferenceReplicas <= 0)
+			throw new IllegalArgumentException("inferenceReplicas must be larger than 0");
+		if (inferenceBatchSize <= 0)
+			throw new IllegalArgumentException("inferenceBatchSize must be larger than 0");
+		if (inferenceBatchWaitMsec < 0)
+			throw new IllegalArgumentException("inferenceBatchWaitMsec must not be negative");
+		this.inferenceReplicas = inferenceReplicas;
+		this.inferenceBatchSize = inferenceBatchSize;
+		this.inferenceBatchWaitMsec = inferenceBatchWaitMsec;
 		this.primaryTrainingLabel = primaryTrainingLabel;
 		this.batchSize = batchSize;
 		this.outputNum = outputNum;
@@ -81,59 +153,63 @@ public class FixedCNNClassifier extends AbstractFixedFeatureExtractingClassifier
 		
 	}
 
-	private transient MultiLayerNetwork model = null;
-//	private transient ParallelInference  pInferencer= null;
-	private transient Object lock = null; 
+	/** Replicas not currently in use by a classification */
+	private transient LinkedBlockingQueue<Replica> idleReplicas = null;
+	/** The number of replicas created, idle or not */
+	private transient int replicaCount = 0;
+	private transient MultiLayerConfiguration modelConfiguration = null;
+	private transient InferenceCoalescer coalescer = null;
+
+	/**
+	 * A copy of the network that shares the model parameters, and the input array it classifies.
+	 */
+	private static class Replica {
+		final MultiLayerNetwork model;
+		/** The values of the input in NCHW order, copied into input before each classification */
+		final double[] values;
+		final INDArray input;
+
+		Replica(MultiLayerNetwork model, int nChannels, int numSubWindow, int featureLength) {
+			this.model = model;
+			this.values = new double[nChannels * numSubWindow * featureLength];
+			this.input = Nd4j.create(DataType.DOUBLE, 1, nChannels, numSubWindow, featureLength);
+		}
+	}
 	
 	@Override
 	protected List<Classification> classify(IFeatureGram<double[]>[] featureGrams) throws AISPException {
+		if (featureGrams.length > 1)
+			throw new IllegalArgumentException("Only a single feature gram is currently supported");
 		
-		ILabeledFeatureGram<double[]>[] lfgArray = new ILabeledFeatureGram[featureGrams.length];
-		model = initForClassification();
-		
-		// Create LabeldFeatureGrams with empty labels so we can use FeatureDataSetIterator below.
-		Properties p = new Properties();
-		for (int i=0; i<featureGrams.length ; i++) {
-			IFeatureGram<double[]> fg = featureGrams[i];
-			ILabeledFeatureGram<double[]> lfg = new LabeledFeatureGram<double[]>(fg, p); 
-			lfgArray[i] = lfg;
+		double[] output;
+		InferenceCoalescer coalescer = getCoalescer();
+		if (coalescer == null) {
+			Replica replica = acquireReplica();
+			try {
+				fillValues(featureGrams[0], replica.values);
+				replica.input.data().setData(replica.values);
+				output = replica.model.output(replica.input, false).toDoubleVector();
+			} finally {
+				idleReplicas.add(replica);
+			}
+		} else {
+			double[] values = new double[nChannels * numSubWindow * numSamplesPerWindow];
+			fillValues(featureGrams[0], values);
+			try {
+				output = coalescer.submit(values, new long[] { nChannels, numSubWindow, numSamplesPerWindow }).get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new AISPException("Interrupted while waiting for classification", e);
+			} catch (ExecutionException e) {
+				throw new AISPException("Could not classify: " + e.getCause().getMessage(), e.getCause());
+			}
 		}
-		List<ILabeledFeatureGram<double[]>[]> labeledFeatureGrams = new ArrayList<>(); 
-		labeledFeatureGrams.add(lfgArray);
-        FeatureDataSetIterator featureDataSet = new FeatureDataSetIterator(labeledFeatureGrams, batchSize, primaryTrainingLabel, 
-        		numSamplesPerWindow, numSubWindow, nChannels);
-
-        //Load serialized model
-//        MultiLayerNetwork model = null;
-//        ByteArrayInputStream bis = new ByteArrayInputStream(serializedModel);
-//        try {
-//        	model = ModelSerializer.restoreMultiLayerNetwork(bis, false);
-//		} catch (IOException e) {
-//			throw new AISPException(e.getMessage());
-//		}
-        
-        //The below is obtained from ModelSerializer.restoreMultiLayerNetwork() in dl4j package but is much simpler and does not create temp files
+
 		List<Classification> classifications = new ArrayList<Classification>();
 
         Double[] outputArray = new Double[outputNum];
         for (int i=0; i<outputArray.length; i++) {
-        	outputArray[i] = 0.0;
-        }
-        while (featureDataSet.hasNext()){
-            INDArray output = null;
-            DataSet ds = featureDataSet.next();
-            INDArray matrix = ds.getFeatures();
-            synchronized (lock) {	// Using ParallelInferencer does not pass the AbstractClassifierTest.testParallelClassifyUsingConfusionMatrix. (dl4j beta7, dawood 6/2021)
-              output = model.output(matrix, false);
-//            output = pInferencer.output(matrix);
-            }
-        
-	        for (int i=0; i<outputArray.length; i++) {
-	        	for (int j=0; j<output.rows(); j++) {
-	        		outputArray[i] += output.getDouble(j,i);
-	        	}
-	        	outputArray[i] /= output.rows();
-	        }
+        	outputArray[i] = output[i];
         }
         
 		ArrayIndexComparator comparator = new ArrayIndexComparator(outputArray);
@@ -153,16 +229,90 @@ public class FixedCNNClassifier extends AbstractFixedFeatureExtractingClassifier
 		return classifications;
 	}
 
+	/**
+	 * Copy the features into the NCHW values of a single input as done by {@link FeatureDataSetIterator#next(int)}.
+	 * Feature grams with fewer features than the network expects are padded with the last feature, shorter features are padded with 0
+	 * and only the first channel is filled.
+	 */
+	private void fillValues(IFeatureGram<double[]> featureGram, double[] values) {
+		IFeature<double[]>[] lfea = featureGram.getFeatures();
+		for (int j=0; j<numSubWindow; j++) {
+			double[] feSubWin = lfea[Math.min(j, lfea.length - 1)].getData();
+			int offset = j * numSamplesPerWindow;
+			int len = Math.min(numSamplesPerWindow, feSubWin.length);
+			System.arraycopy(feSubWin, 0, values, offset, len);
+			Arrays.fill(values, offset + len, offset + numSamplesPerWindow, 0.0);
+		}
+	}
 
+	/**
+	 * Get the coalescer that batches concurrent classifications. 
+	 * @return null if the batch size is 1.
+	 */
+	private synchronized InferenceCoalescer getCoalescer() {
+		int maxBatchSize = inferenceBatchSize > 0 ? inferenceBatchSize : DEFAULT_INFERENCE_BATCH_SIZE;
+		if (maxBatchSize <= 1)
+			return null;
+		if (coalescer == null) {
+			int maxWaitMsec = inferenceBatchSize > 0 ? inferenceBatchWaitMsec : DEFAULT_INFERENCE_BATCH_WAIT_MSEC;
+			coalescer = new InferenceCoalescer(new InferenceCoalescer.IBatchModel() {
+				@Override
+				public INDArray output(INDArray batch) {
+					Replica replica;
+					try {
+						replica = acquireReplica();
+					} catch (AISPException e) {
+						throw new IllegalStateException(e.getMessage(), e);
+					}
+					try {
+						return replica.model.output(batch, false);
+					} finally {
+						idleReplicas.add(replica);
+					}
+				}
+			}, maxBatchSize, maxWaitMsec);
+		}
+		return coalescer;
+	}
 
-	private synchronized MultiLayerNetwork initForClassification() {
-        if (model == null) {
-			MultiLayerConfiguration confFromJson = MultiLayerConfiguration.fromJson(modelConfig);
-			model = new MultiLayerNetwork(confFromJson);
-			model.init(modelParams, false);
-			lock = new Object();
-        }
-        return model;
+	/**
+	 * Get an idle replica, creating one if all are in use and fewer than the maximum have been created, otherwise waiting for one.
+	 * The caller must add the replica back to {@link #idleReplicas} when done with it.
+	 */
+	private Replica acquireReplica() throws AISPException {
+		MultiLayerConfiguration conf = null;
+		synchronized (this) {
+			if (idleReplicas == null) {
+				idleReplicas = new LinkedBlockingQueue<Replica>();
+				modelConfiguration = MultiLayerConfiguration.fromJson(modelConfig);
+			}
+			Replica replica = idleReplicas.poll();
+			if (replica != null)
+				return replica;
+			int maxReplicas = inferenceReplicas > 0 ? inferenceReplicas : DEFAULT_INFERENCE_REPLICAS;
+			if (replicaCount < maxReplicas) {
+				replicaCount++;
+				conf = modelConfiguration.clone();
+			}
+		}
+		if (conf != null) {
+			try {
+		        MultiLayerNetwork model = new MultiLayerNetwork(conf);
+				model.init(modelParams, false);		// Use, instead of copy, the parameters so they are shared by all replicas.
+				return new Replica(model, nChannels, numSubWindow, numSamplesPerWindow);
+			} catch (RuntimeException e) {
+				synchronized (this) {
+					replicaCount--;
+				}
+				throw e;
+			}
+		}
+		try {
+			return idleReplicas.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new AISPException("Interrupted while waiting for a model replica", e);
+		}
 	}
 
 
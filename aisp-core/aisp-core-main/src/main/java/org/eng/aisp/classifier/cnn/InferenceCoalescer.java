@@ -0,0 +1,245 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.cnn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.eng.util.ExecutorUtil;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * Coalesces concurrent requests to evaluate a network on single examples into batches, so that a single call to the network
+ * evaluates many examples.
+ * <p>
+ * Requests are grouped by the shape of their example.  A group is evaluated when it has the maximum batch size or when its
+ * oldest request has waited the maximum wait time, whichever is first.  The collection of requests runs as a task on the shared
+ * executor while there are requests and ends after it has been idle for a while.  The batches are evaluated by other tasks on
+ * the shared executor, so batches may be evaluated concurrently if the model supports it.
+ */
+class InferenceCoalescer {
+
+	/**
+	 * Evaluates the network on a batch of examples.
+	 */
+	interface IBatchModel {
+		/**
+		 * @param batch examples stacked along the first dimension.
+		 * @return an array with a row of outputs for each example.
+		 */
+		INDArray output(INDArray batch);
+	}
+
+	/** How long the collecting task waits for a request before ending */
+	private final static long IDLE_MSEC = 5000;
+
+	private final static ExecutorService executor = ExecutorUtil.getPrioritizingSharedService();
+
+	private final IBatchModel model;
+	private final int maxBatchSize;
+	private final long maxWaitNanos;
+	private final LinkedBlockingQueue<Request> queue = new LinkedBlockingQueue<Request>();
+	/** True while the collecting task is running.  Guarded by this */
+	private boolean collecting = false;
+
+	private static class Request {
+		final double[] values;
+		final long[] shape;
+		final long arrivalNanos;
+		final CompletableFuture<double[]> result = new CompletableFuture<double[]>();
+
+		Request(double[] values, long[] shape) {
+			this.values = values;
+			this.shape = shape;
+			this.arrivalNanos = System.nanoTime();
+		}
+	}
+
+	/**
+	 * The requests with examples of the same shape.
+	 */
+	private static class Group {
+		final List<Request> requests = new ArrayList<Request>();
+		/** The time by which the group must be evaluated, the arrival of the oldest request plus the maximum wait */
+		long deadlineNanos;
+	}
+
+	/**
+	 * @param model
+	 * @param maxBatchSize the maximum number of examples to evaluate in a single call to the model.
+	 * @param maxWaitMsec the maximum time a request waits for other requests before being evaluated.
+	 */
+	InferenceCoalescer(IBatchModel model, int maxBatchSize, long maxWaitMsec) {
+		if (maxBatchSize <= 0)
+			throw new IllegalArgumentException("maxBatchSize must be larger than 0");
+		if (maxWaitMsec < 0)
+			throw new IllegalArgumentException("maxWaitMsec must not be negative");
+		this.model = model;
+		this.maxBatchSize = maxBatchSize;
+		this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWaitMsec);
+	}
+
+	/**
+	 * Request the output of the model for a single example.
+	 * @param values the values of the example in row-major order.
+	 * @param shape the shape of the example, without the batch dimension.
+	 * @return a future holding the row of the model output for the example.
+	 */
+	Future<double[]> submit(double[] values, long[] shape) {
+		Request request = new Request(values, shape);
+		synchronized (this) {
+			queue.add(request);
+			if (!collecting) 
+				startCollecting();
+		}
+		return request.result;
+	}
+
+	/**
+	 * Start the task that collects the requests.  Must be called holding the lock on this instance.
+	 */
+	private void startCollecting() {
+		collecting = true;
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				collect();
+			}
+		});
+	}
+
+	/**
+	 * Take requests from the queue into groups and evaluate the groups that are full or have waited long enough, 
+	 * until there have been no requests for {@link #IDLE_MSEC}.
+	 */
+	private void collect() {
+		Map<List<Long>, Group> groups = new HashMap<List<Long>, Group>();
+		long idleSince = System.nanoTime();
+		try {
+			while (true) {
+				long now = System.nanoTime();
+				// Evaluate the groups that have waited long enough.
+				long nextDeadline = Long.MAX_VALUE;
+				for (Iterator<Group> it = groups.values().iterator(); it.hasNext(); ) {
+					Group group = it.next();
+					if (group.deadlineNanos - now <= 0) {
+						evaluate(group.requests);
+						it.remove();
+					} else {
+						nextDeadline = Math.min(nextDeadline, group.deadlineNanos);
+					}
+				}
+				if (groups.isEmpty())
+					nextDeadline = idleSince + TimeUnit.MILLISECONDS.toNanos(IDLE_MSEC);
+
+				Request request = queue.poll(Math.max(0, nextDeadline - now), TimeUnit.NANOSECONDS);
+				if (request == null) {
+					if (groups.isEmpty()) {
+						synchronized (this) {
+							if (queue.isEmpty()) {
+								collecting = false;
+								return;
+							}
+						}
+					}
+					continue;
+				}
+				idleSince = System.nanoTime();
+				List<Long> key = asList(request.shape);
+				Group group = groups.get(key);
+				if (group == null) {
+					group = new Group();
+					group.deadlineNanos = request.arrivalNanos + maxWaitNanos;
+					groups.put(key, group);
+				}
+				group.requests.add(request);
+				if (group.requests.size() >= maxBatchSize) {
+					evaluate(group.requests);
+					groups.remove(key);
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			RuntimeException ex = new IllegalStateException("Interrupted while collecting requests", e);
+			for (Group group : groups.values()) {
+				for (Request r : group.requests)
+					r.result.completeExceptionally(ex);
+			}
+			synchronized (this) {
+				collecting = false;
+				if (!queue.isEmpty()) 	// Let a new task handle these.
+					startCollecting();
+			}
+		}
+	}
+
+	private static List<Long> asList(long[] shape) {
+		List<Long> list = new ArrayList<Long>(shape.length);
+		for (long s : shape)
+			list.add(s);
+		return list;
+	}
+
+	/**
+	 * Evaluate the requests, all of the same shape, in a single call to the model on another thread.
+	 */
+	private void evaluate(final List<Request> requests) {
+		executor.submit(new Runnable() {
+			@Override
+			public void run() {
+				evaluateNow(requests);
+			}
+		});
+	}
+
+	private void evaluateNow(List<Request> requests) {
+		try {
+			long[] exampleShape = requests.get(0).shape;
+			int exampleSize = requests.get(0).values.length;
+			long[] shape = new long[exampleShape.length + 1];
+			shape[0] = requests.size();
+			System.arraycopy(exampleShape, 0, shape, 1, exampleShape.length);
+			double[] values = new double[requests.size() * exampleSize];
+			for (int i=0; i<requests.size(); i++)
+				System.arraycopy(requests.get(i).values, 0, values, i * exampleSize, exampleSize);
+			INDArray batch = Nd4j.create(DataType.DOUBLE, shape);
+			batch.data().setData(values);
+
+			INDArray output = model.output(batch);
+			int columns = (int)output.size(1);
+			for (int i=0; i<requests.size(); i++) {
+				double[] row = new double[columns];
+				for (int j=0; j<columns; j++)
+					row[j] = output.getDouble(i, j);
+				requests.get(i).result.complete(row);
+			}
+		} catch (Throwable t) {
+			for (Request r : requests)
+				r.result.completeExceptionally(t);
+		}
+	}
+
+}
@@ -0,0 +1,312 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.cnn;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.channels.FileChannel;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+
+import org.eng.aisp.AISPException;
+import org.nd4j.linalg.api.buffer.DataType;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.DataSetPreProcessor;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+import org.nd4j.linalg.factory.Nd4j;
+
+/**
+ * A DataSetIterator over the examples of a {@link FeatureDataSetIterator} that have been packed once into off-heap float storage in NCHW order.
+ * Each pass over the data then only orders the example indexes and copies the rows of each mini-batch into a new INDArray, instead of 
+ * building the batch again from the feature grams.
+ * <p>
+ * The storage is held in direct buffers, or in buffers memory-mapped from a temporary file when it is larger than a threshold. 
+ * The examples and their order are the same as those of the source iterator unless shuffling is enabled, in which case the examples are 
+ * put in a new random order, generated from the given seed, on each reset.
+ */
+public class MaterializedDataSetIterator implements DataSetIterator {
+
+	private static final long serialVersionUID = -5536287740542327581L;
+
+	/** The largest number of bytes held in a single buffer */
+	private final static long MAX_CHUNK_BYTES = Integer.MAX_VALUE;
+
+	private final int batchSize;
+	private final int numExamples;
+	/** The shape of a single example without the leading dimension, [channels, sub-windows, feature length] */ 
+	private final long[] exampleShape;
+	/** The number of floats in a single example */
+	private final int exampleLength;
+	private final int numLabels;
+	private final int examplesPerChunk;
+	/** The features of the examples, examplesPerChunk examples in each buffer */
+	private final FloatBuffer[] chunks;
+	/** The one-hot labels of the examples, one after the other */
+	private final float[] labels;
+	/** True if the features are memory-mapped from a file */
+	private final boolean mapped;
+
+	private final boolean shuffle;
+	private final Random random;
+	/** The order in which examples are produced */
+	private final int[] order;
+	private int cursor = 0;
+	private DataSetPreProcessor preProcessor;
+
+	/**
+	 * Pack all the examples of the source iterator.
+	 * @param source the examples to pack.  It is reset before and after packing.
+	 * @param shuffle if true, then produce the examples in a new random order on each reset.
+	 * @param seed used to generate the random orders when shuffling.
+	 * @param mmapThresholdBytes if the features require more than this number of bytes, then they are memory-mapped from a temporary file. 
+	 * @throws AISPException if the temporary file could not be created.
+	 */
+	public MaterializedDataSetIterator(FeatureDataSetIterator source, boolean shuffle, long seed, long mmapThresholdBytes) throws AISPException {
+		this(source, shuffle, seed, mmapThresholdBytes, MAX_CHUNK_BYTES);
+	}
+
+	/**
+	 * Package-private to allow testing of features spread across more than one buffer.
+	 * @param maxChunkBytes the largest number of bytes held in a single buffer.
+	 */
+	MaterializedDataSetIterator(FeatureDataSetIterator source, boolean shuffle, long seed, long mmapThresholdBytes, long maxChunkBytes) throws AISPException {
+		this.batchSize = source.batch();
+		this.numExamples = source.countExamples();
+		this.exampleShape = new long[] { source.getNumChannels(), source.getNumSubWindow(), source.getFeatureLength() };
+		long length = exampleShape[0] * exampleShape[1] * exampleShape[2];
+		if (4 * length > maxChunkBytes)
+			throw new IllegalArgumentException("Examples are too large to materialize");
+		this.exampleLength = (int)length;
+		this.numLabels = source.getNumLabels();
+		this.examplesPerChunk = (int)Math.min(Math.max(numExamples, 1), maxChunkBytes / (4 * length));
+		int chunkCount = (numExamples + examplesPerChunk - 1) / examplesPerChunk;
+		long totalBytes = 4L * length * numExamples;
+		this.mapped = totalBytes > mmapThresholdBytes;
+		this.chunks = mapped ? mapChunks(chunkCount) : allocateChunks(chunkCount);
+		this.labels = new float[numExamples * numLabels];
+		this.shuffle = shuffle;
+		this.random = new Random(seed);
+		this.order = new int[numExamples];
+		for (int i=0; i<numExamples; i++)
+			order[i] = i;
+		fill(source);
+	}
+
+	/**
+	 * Create an iterator over the same storage, which produces the examples in their original order.
+	 * This is useful for scoring on the training data without changing its order.
+	 */
+	private MaterializedDataSetIterator(MaterializedDataSetIterator storage) {
+		this.batchSize = storage.batchSize;
+		this.numExamples = storage.numExamples;
+		this.exampleShape = storage.exampleShape;
+		this.exampleLength = storage.exampleLength;
+		this.numLabels = storage.numLabels;
+		this.examplesPerChunk = storage.examplesPerChunk;
+		this.chunks = storage.chunks;
+		this.labels = storage.labels;
+		this.mapped = storage.mapped;
+		this.shuffle = false;
+		this.random = null;
+		this.order = new int[numExamples];
+		for (int i=0; i<numExamples; i++)
+			order[i] = i;
+	}
+
+	/**
+	 * Get an iterator over the same examples that produces them in their original order and does not copy the storage.
+	 * @return never null.
+	 */
+	public MaterializedDataSetIterator getUnshuffledView() {
+		return new MaterializedDataSetIterator(this);
+	}
+
+	private int chunkSize(int chunkIndex) {
+		return Math.min(examplesPerChunk, numExamples - chunkIndex * examplesPerChunk) * exampleLength;
+	}
+
+	private FloatBuffer[] allocateChunks(int chunkCount) {
+		FloatBuffer[] buffers = new FloatBuffer[chunkCount];
+		for (int i=0; i<chunkCount; i++) 
+			buffers[i] = ByteBuffer.allocateDirect(4 * chunkSize(i)).order(ByteOrder.nativeOrder()).asFloatBuffer();
+		return buffers;
+	}
+
+	private FloatBuffer[] mapChunks(int chunkCount) throws AISPException {
+		FloatBuffer[] buffers = new FloatBuffer[chunkCount];
+		File file = null;
+		try {
+			file = File.createTempFile("cnn-training-", ".bin");
+			file.deleteOnExit();
+			try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+				FileChannel channel = raf.getChannel();
+				long offset = 0;
+				for (int i=0; i<chunkCount; i++) {
+					long bytes = 4L * chunkSize(i);
+					buffers[i] = channel.map(FileChannel.MapMode.READ_WRITE, offset, bytes).order(ByteOrder.nativeOrder()).asFloatBuffer();
+					offset += bytes;
+				}
+			}
+		} catch (IOException e) {
+			throw new AISPException("Could not map training data to temporary file " + file, e);
+		} finally {
+			// The mappings remain valid after the file is deleted, and are released when the buffers are garbage collected.
+			if (file != null)
+				file.delete();
+		}
+		return buffers;
+	}
+
+	/**
+	 * Copy all the examples of the source into the storage.
+	 */
+	private void fill(FeatureDataSetIterator source) throws AISPException {
+		source.reset();
+		int count = 0;
+		while (source.hasNext()) {
+			DataSet ds = source.next();
+			int n = (int)ds.getFeatures().size(0);
+			if (count + n > numExamples)
+				throw new AISPException("Source produced more than the expected " + numExamples + " examples");
+			float[] features = ds.getFeatures().reshape(n, exampleLength).data().asFloat();
+			for (int i=0; i<n; i++) {
+				int index = count + i;
+				FloatBuffer chunk = chunks[index / examplesPerChunk].duplicate();
+				chunk.position((index % examplesPerChunk) * exampleLength);
+				chunk.put(features, i * exampleLength, exampleLength);
+				for (int j=0; j<numLabels; j++)
+					labels[index * numLabels + j] = ds.getLabels().getFloat(i, j);
+			}
+			count += n;
+		}
+		source.reset();
+		if (count != numExamples)
+			throw new AISPException("Source produced " + count + " examples instead of the expected " + numExamples);
+	}
+
+	/**
+	 * @return true if the features are memory-mapped from a temporary file.
+	 */
+	public boolean isMemoryMapped() {
+		return mapped;
+	}
+
+	/**
+	 * @return the number of examples produced by a full pass over this iterator.
+	 */
+	public int getNumExamples() {
+		return numExamples;
+	}
+
+	@Override
+	public boolean hasNext() {
+		return cursor < numExamples;
+	}
+
+	@Override
+	public DataSet next() {
+		return next(batchSize);
+	}
+
+	@Override
+	public DataSet next(int num) {
+		int n = Math.min(num, numExamples - cursor);
+		if (n <= 0)
+			throw new NoSuchElementException();
+		// Copy the rows of the batch directly into the native memory of the batch's features.
+		INDArray features = Nd4j.createUninitialized(DataType.FLOAT, new long[] { n, exampleShape[0], exampleShape[1], exampleShape[2] }, 'c');
+		FloatBuffer batchFeatures = features.data().asNio().order(ByteOrder.nativeOrder()).asFloatBuffer();
+		float[] batchLabels = new float[n * numLabels];
+		for (int i=0; i<n; i++) {
+			int index = order[cursor + i];
+			FloatBuffer chunk = chunks[index / examplesPerChunk].duplicate();
+			int position = (index % examplesPerChunk) * exampleLength;
+			chunk.limit(position + exampleLength);
+			chunk.position(position);
+			batchFeatures.put(chunk);
+			System.arraycopy(labels, index * numLabels, batchLabels, i * numLabels, numLabels);
+		}
+		cursor += n;
+		INDArray labelArray = Nd4j.create(batchLabels, new long[] { n, numLabels }, 'c');
+		DataSet ds = new DataSet(features, labelArray);
+		if (preProcessor != null)
+			preProcessor.preProcess(ds);
+		return ds;
+	}
+
+	@Override
+	public int inputColumns() {
+		return (int)exampleShape[2];
+	}
+
+	@Override
+	public int totalOutcomes() {
+		return numLabels;
+	}
+
+	@Override
+	public boolean resetSupported() {
+		return true;
+	}
+
+	@Override
+	public boolean asyncSupported() {
+		return false;
+	}
+
+	/**
+	 * Start a new pass over the examples, in a new random order if shuffling.
+	 */
+	@Override
+	public void reset() {
+		cursor = 0;
+		if (shuffle) {
+			for (int i=numExamples-1; i>0; i--) {
+				int j = random.nextInt(i + 1);
+				int tmp = order[i];
+				order[i] = order[j];
+				order[j] = tmp;
+			}
+		}
+	}
+
+	@Override
+	public int batch() {
+		return batchSize;
+	}
+
+	@Override
+	public void setPreProcessor(DataSetPreProcessor preProcessor) {
+		this.preProcessor = preProcessor;
+	}
+
+	@Override
+	public DataSetPreProcessor getPreProcessor() {
+		return preProcessor;
+	}
+
+	@Override
+	public List<String> getLabels() {
+		return null;
+	}
+
+}
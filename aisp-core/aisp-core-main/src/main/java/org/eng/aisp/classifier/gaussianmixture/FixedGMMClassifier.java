@@ -27,7 +27,6 @@ import org.eng.aisp.classifier.Classification.LabelValue;
 import org.eng.aisp.feature.IFeature;
 import org.eng.aisp.feature.IFeatureGram;
 import org.eng.aisp.feature.IFeatureGramDescriptor;
-import org.eng.aisp.util.ArrayIndexComparator;
 
 /**
  * Implements an untrainable fixed Gaussian Mixture Model suitable for use on the edge.
@@ -123,28 +122,31 @@ public class FixedGMMClassifier extends AbstractFixedFeatureExtractingClassifier
 		
 //		int aboveThreshProbCount = 0;
 
+		double[] logDensityEachLabel = new double[sumLogLikelihoodsPerLabel.length];
 		for (int j=0; j<feSingleArray.length; j++) {
-			double densityOverall = 0.0;
-			double[] densityEachLabel = new double[sumLogLikelihoodsPerLabel.length];
-			
+			double[] data = feSingleArray[j].getData();
+			double maxLogDensity = Double.NEGATIVE_INFINITY;
 			for (int i=0; i<listOfLabelValues.size(); i++) {
-				densityEachLabel[i] = listOfModels.get(i).density(feSingleArray[j].getData());
-				densityOverall += densityEachLabel[i];
+				logDensityEachLabel[i] = listOfModels.get(i).logDensity(data);
+				if (logDensityEachLabel[i] > maxLogDensity)
+					maxLogDensity = logDensityEachLabel[i];
 			}
-			
 
-			double logDensityOverall = Math.log(densityOverall);
+			double logDensityOverall = FixedSingleGaussianMixture.logSumExp(logDensityEachLabel, maxLogDensity);
 			sumLogDensityOverall += logDensityOverall;
 
 			for (int i=0; i<listOfLabelValues.size(); i++) {
-				sumLogLikelihoodsPerLabel[i] += Math.log(densityEachLabel[i]) - logDensityOverall;
+				sumLogLikelihoodsPerLabel[i] += logDensityEachLabel[i] - logDensityOverall;
 			}
 
 		}
 		
-		Double[] avrLogLikelihoodsPerLabel = new Double[sumLogLikelihoodsPerLabel.length];
+		double[] avrLogLikelihoodsPerLabel = new double[sumLogLikelihoodsPerLabel.length];
+		double maxAvrLogLikelihood = Double.NEGATIVE_INFINITY;
 		for (int i=0; i<avrLogLikelihoodsPerLabel.length; i++) {
 			avrLogLikelihoodsPerLabel[i] = sumLogLikelihoodsPerLabel[i]/feSingleArray.length;
+			if (avrLogLikelihoodsPerLabel[i] > maxAvrLogLikelihood)
+				maxAvrLogLikelihood = avrLogLikelihoodsPerLabel[i];
 		}
 
 		double avrLogDensityOverall = sumLogDensityOverall / feSingleArray.length;
@@ -155,25 +157,23 @@ public class FixedGMMClassifier extends AbstractFixedFeatureExtractingClassifier
 //		System.out.println("unknownThreshold: " + unknownThreshold);
 
 		if (avrLogDensityOverall > unknownThreshold) {
-			ArrayIndexComparator comparator = new ArrayIndexComparator(avrLogLikelihoodsPerLabel);
-			Integer[] indexes = comparator.createIndexArray();   //this contains indexes of sorted distances
-			Arrays.sort(indexes, comparator);
+			int[] indexes = sortedIndexes(avrLogLikelihoodsPerLabel);	// ascending
 			
 			List<LabelValue> rankedValues = new ArrayList<LabelValue>();
 			
+			// Subtract the maximum so that exp() does not underflow for all labels.
 			double sum = 0.0;
 			for (int i=0; i<avrLogLikelihoodsPerLabel.length; i++) {
-				sum += Math.exp(avrLogLikelihoodsPerLabel[i]);
+				sum += Math.exp(avrLogLikelihoodsPerLabel[i] - maxAvrLogLikelihood);
 			}
-			if (sum == 0.0) sum = 0.00001;
 			
 			for (int i=0; i<indexes.length; i++) {
 				int j= indexes[indexes.length - i - 1];  //The array was sorted in ascending order, thus reverse indexing
 				double conf;
-				if (sum == 0 || feSingleArray.length == 0)
+				if (sum == 0 || Double.isNaN(sum) || feSingleArray.length == 0)
 					conf = 0;
 				else 
-					conf = Math.exp(avrLogLikelihoodsPerLabel[j])/sum;
+					conf = Math.exp(avrLogLikelihoodsPerLabel[j] - maxAvrLogLikelihood)/sum;
 				rankedValues.add(new LabelValue(listOfLabelValues.get(j), conf)) ;
 			}
 			
@@ -194,6 +194,26 @@ public class FixedGMMClassifier extends AbstractFixedFeatureExtractingClassifier
 		return classifications;
 	}
 
+	/**
+	 * Get the indexes of the values in ascending order of the values, with equal values in the order of their index.
+	 * An insertion sort is used since there are only a few labels.
+	 * @param values
+	 * @return the index of the smallest value first.
+	 */
+	static int[] sortedIndexes(double[] values) {
+		int[] indexes = new int[values.length];
+		for (int i=0; i<indexes.length; i++) {
+			int index = i;
+			int k = i - 1;
+			while (k >= 0 && Double.compare(values[indexes[k]], values[index]) > 0) {
+				indexes[k+1] = indexes[k];
+				k--;
+			}
+			indexes[k+1] = index;
+		}
+		return indexes;
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#hashCode()
 	 */
@@ -264,5 +284,17 @@ public class FixedGMMClassifier extends AbstractFixedFeatureExtractingClassifier
 		return this.primaryTrainingLabel;
 	}
 
+	List<String> getLabelValues() {
+		return listOfLabelValues;
+	}
+
+	List<FixedSingleGaussianMixture> getModels() {
+		return listOfModels;
+	}
+
+	double getUnknownThreshold() {
+		return unknownThreshold;
+	}
+
 
 }
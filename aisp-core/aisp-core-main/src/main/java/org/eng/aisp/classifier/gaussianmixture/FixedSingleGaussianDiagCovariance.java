@@ -47,8 +47,21 @@ public class FixedSingleGaussianDiagCovariance implements IFixedSingleGaussian {
 		this.coeffLog = tmpSumInvVar - (double)dim/2.0 * Math.log(2 * Math.PI);
 	}
 	
+	double[] getMean() {
+		return mean;
+	}
+
+	double[] getDiagVariance() {
+		return diagVariance;
+	}
+
 	@Override
 	public double density(double[] sample) {
+		return Math.exp(logDensity(sample));
+	}
+
+	@Override
+	public double logDensity(double[] sample) {
 //		if (dim != sample.length)
 //			throw new IllegalArgumentException("sample is not the expected length");
 		double exponent = 0.0;
@@ -57,8 +70,7 @@ public class FixedSingleGaussianDiagCovariance implements IFixedSingleGaussian {
 			exponent -= 0.5 * diff * diff  * diagVarianceInv[i];
 		}
 		
-		return Math.exp(coeffLog + exponent);
-		
+		return coeffLog + exponent;
 	}
 
 	@Override
@@ -15,10 +15,15 @@
  *******************************************************************************/
 package org.eng.aisp.classifier.gaussianmixture;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.util.Arrays;
 
 import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.CholeskyDecomposition;
 import org.apache.commons.math3.linear.LUDecomposition;
+import org.apache.commons.math3.linear.NonPositiveDefiniteMatrixException;
+import org.apache.commons.math3.linear.NonSymmetricMatrixException;
 import org.apache.commons.math3.linear.RealMatrix;
 import org.apache.commons.math3.linear.SingularValueDecomposition;
 
@@ -33,6 +38,18 @@ public class FixedSingleGaussianFullCovariance implements IFixedSingleGaussian {
 	private final int dim;
 	private final double[] mean;
 	private final double[][] covarianceInv;
+
+	/** Relative tolerance on the asymmetry of the pseudo-inverse left by the rounding of the SVD */
+	private final static double CHOLESKY_SYMMETRY_THRESHOLD = 1e-9;
+
+	/**
+	 * Rows of the upper triangular Cholesky factor U of the inverse covariance, U'U = covarianceInv, with row i holding columns i..dim-1.
+	 * Null if the inverse covariance is not positive definite, in which case the full quadratic form is evaluated.
+	 * Not serialized, but recomputed from covarianceInv so that previously serialized models also use it.
+	 */
+	private transient double[][] choleskyUpper;
+	/** The log of the normalizing coefficient using the log determinant from the Cholesky factor, which does not overflow as the LU determinant can */
+	private transient double choleskyCoeffLog;
 	
 	public FixedSingleGaussianFullCovariance(double[] mean, double[][] covariance) {
 		this.mean = mean;
@@ -64,11 +81,88 @@ public class FixedSingleGaussianFullCovariance implements IFixedSingleGaussian {
 
 		double covInvMatDetSqrtLog = 0.5 * Math.log(new LUDecomposition(covInvMat).getDeterminant());
 		this.coeffLog = covInvMatDetSqrtLog - (double)dim/2.0 * Math.log(2 * Math.PI);
+		factor();
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		factor();
+	}
+
+	/**
+	 * Restore an instance written by {@link GMMModelCodecs} without recomputing the pseudo-inverse.
+	 */
+	FixedSingleGaussianFullCovariance(double[] mean, double[][] covarianceInv, double coeffLog) {
+		if (mean.length != covarianceInv.length)
+			throw new IllegalArgumentException("mean/covariance matrix dimensions mismatch");
+		this.mean = mean;
+		this.dim = mean.length;
+		this.covarianceInv = covarianceInv;
+		this.coeffLog = coeffLog;
+		factor();
+	}
+
+	double[] getMean() {
+		return mean;
+	}
+
+	double[][] getCovarianceInverse() {
+		return covarianceInv;
+	}
+
+	double getCoefficientLog() {
+		return coeffLog;
+	}
+
+	/**
+	 * Compute the Cholesky factor of the inverse covariance and the coefficient from its log determinant.
+	 */
+	private void factor() {
+		CholeskyDecomposition cholesky;
+		try {
+			cholesky = new CholeskyDecomposition(new Array2DRowRealMatrix(covarianceInv, false), CHOLESKY_SYMMETRY_THRESHOLD,
+					CholeskyDecomposition.DEFAULT_ABSOLUTE_POSITIVITY_THRESHOLD);
+		} catch (NonPositiveDefiniteMatrixException | NonSymmetricMatrixException e) {
+			// Singular covariance, so fall back to the full quadratic form with the pseudo-inverse.
+			choleskyUpper = null;
+			choleskyCoeffLog = coeffLog;
+			return;
+		}
+		double[][] lt = cholesky.getLT().getData();
+		double[][] upper = new double[dim][];
+		double logDetSqrt = 0.0;
+		for (int i=0; i<dim; i++) {
+			upper[i] = Arrays.copyOfRange(lt[i], i, dim);
+			logDetSqrt += Math.log(lt[i][i]);
+		}
+		this.choleskyUpper = upper;
+		this.choleskyCoeffLog = logDetSqrt - (double)dim/2.0 * Math.log(2 * Math.PI);
 	}
 
 	@Override
 	public double density(double[] sample) {
-		
+		return Math.exp(logDensity(sample));
+	}
+
+	@Override
+	public double logDensity(double[] sample) {
+		if (choleskyUpper != null) {
+			// (x-mean)' inv(C) (x-mean) = |U (x-mean)|^2, with U upper triangular.
+			int len = Math.min(dim, sample.length);
+			double[] diff = new double[len];
+			for (int i=0; i<len; i++)
+				diff[i] = sample[i] - mean[i];
+			double tmpSum = 0.0;
+			for (int i=0; i<len; i++) {
+				double[] row = choleskyUpper[i];
+				double y = 0.0;
+				for (int k=i; k<len; k++)
+					y += row[k-i] * diff[k];
+				tmpSum += y * y;
+			}
+			return choleskyCoeffLog - 0.5 * tmpSum;
+		}
+
 		double tmpSum = 0.0;
 		for (int i=0; i<Math.min(covarianceInv.length, sample.length); i++) {
 			double diff1 = sample[i] - mean[i];
@@ -80,8 +174,7 @@ public class FixedSingleGaussianFullCovariance implements IFixedSingleGaussian {
 		
 		double exponent = -0.5 * tmpSum;
 		
-		return Math.exp(coeffLog + exponent);
-		
+		return coeffLog + exponent;
 	}
 
 	@Override
@@ -48,6 +48,14 @@ public class FixedSingleGaussianMixture implements Serializable {
 		this.fixedModels = fixedModels;
 	}
 	
+	double[] getMixtureWeights() {
+		return mixtureWeights;
+	}
+
+	IFixedSingleGaussian[] getFixedModels() {
+		return fixedModels;
+	}
+
 	public static FixedSingleGaussianMixture merge(FixedSingleGaussianMixture ... models) {
 		List<Double> mixtureWeightsList = new ArrayList<>();
 		List<IFixedSingleGaussian> fixedModelsList = new ArrayList<>();
@@ -76,6 +84,13 @@ public class FixedSingleGaussianMixture implements Serializable {
 		return new FixedSingleGaussianMixture(mixtureWeights, fixedModels);
 	}
 	
+	/**
+	 * @return the number of Gaussians in the mixture.
+	 */
+	public int getNumGaussiansToMix() {
+		return numGaussiansToMix;
+	}
+
 	public double density(double[] sample) {
 		double result = 0.0;
 		for (int i=0; i<numGaussiansToMix; i++) {
@@ -83,6 +98,41 @@ public class FixedSingleGaussianMixture implements Serializable {
 		}
 		return result;
 	}
+
+	/**
+	 * Compute the log of the mixture density from the log densities of the components using log-sum-exp,
+	 * so that the result remains finite where {@link #density(double[])} underflows to 0.
+	 * Unlike {@link #density(double[])}, small component densities are not raised to {@link #MIN_POSTERIOR_PROBABILITY}
+	 * since that would make all labels equally likely when all of them underflow.
+	 * @param sample
+	 * @return the log of the density of the mixture.
+	 */
+	public double logDensity(double[] sample) {
+		double[] logTerms = new double[numGaussiansToMix];
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i=0; i<numGaussiansToMix; i++) {
+			logTerms[i] = Math.log(mixtureWeights[i]) + fixedModels[i].logDensity(sample);
+			if (logTerms[i] > max)
+				max = logTerms[i];
+		}
+		if (max == Double.NEGATIVE_INFINITY)	// All weights are 0.
+			return Math.log(numGaussiansToMix * MIN_POSTERIOR_PROBABILITY);
+		return logSumExp(logTerms, max);
+	}
+
+	/**
+	 * Compute log(sum(exp(values))) without overflow or underflow.
+	 * @param values
+	 * @param max the maximum of the values.
+	 */
+	public static double logSumExp(double[] values, double max) {
+		if (max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY)
+			return max;
+		double sum = 0.0;
+		for (int i=0; i<values.length; i++)
+			sum += Math.exp(values[i] - max);
+		return max + Math.log(sum);
+	}
 	
 	public class PosteriorAndSumProb {
 		private final double[] posteriorProb;
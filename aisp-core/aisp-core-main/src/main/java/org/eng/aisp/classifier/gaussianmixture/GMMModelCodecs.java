@@ -0,0 +1,181 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.gaussianmixture;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.eng.aisp.feature.IFeatureGramDescriptor;
+import org.eng.aisp.util.IModelCodec;
+import org.eng.aisp.util.ModelCodecInputStream;
+import org.eng.aisp.util.ModelCodecOutputStream;
+
+/**
+ * Provides the {@link IModelCodec} instances for the fixed GMM classifier and its mixtures of gaussians.
+ * The full covariance gaussian is written with its inverse covariance so that the pseudo-inverse is not recomputed when read.
+ */
+public class GMMModelCodecs {
+
+	/**
+	 * @return the codecs of the classes of this package.
+	 */
+	public static List<IModelCodec<?>> getCodecs() {
+		List<IModelCodec<?>> codecs = new ArrayList<IModelCodec<?>>();
+		codecs.add(new FixedGMMClassifierCodec());
+		codecs.add(new FixedSingleGaussianMixtureCodec());
+		codecs.add(new DiagCovarianceCodec());
+		codecs.add(new FullCovarianceCodec());
+		return codecs;
+	}
+
+	private static class FixedGMMClassifierCodec implements IModelCodec<FixedGMMClassifier> {
+
+		@Override
+		public Class<FixedGMMClassifier> getModelClass() {
+			return FixedGMMClassifier.class;
+		}
+
+		@Override
+		public int getVersion() {
+			return 1;
+		}
+
+		@Override
+		public void write(ModelCodecOutputStream ostream, FixedGMMClassifier model) throws IOException {
+			ostream.writeStringMap(model.getTags());
+			ostream.writeModelList(model.getFeatureGramDescriptors());
+			ostream.writeString(model.getTrainedLabel());
+			ostream.writeStringList(model.getLabelValues());
+			ostream.writeModelList(model.getModels());
+			ostream.writeDouble(model.getUnknownThreshold());
+		}
+
+		@Override
+		public FixedGMMClassifier read(ModelCodecInputStream istream, int version) throws IOException, ClassNotFoundException {
+			Map<String,String> tags = istream.readStringMap();
+			List<IFeatureGramDescriptor<double[],double[]>> fgeList = istream.readModelList();
+			String primaryTrainingLabel = istream.readString();
+			List<String> labelValues = istream.readStringList();
+			List<FixedSingleGaussianMixture> models = istream.readModelList();
+			double unknownThreshold = istream.readDouble();
+			FixedGMMClassifier model;
+			try {
+				model = new FixedGMMClassifier(primaryTrainingLabel, fgeList, labelValues, models, unknownThreshold);
+			} catch (IllegalArgumentException | NullPointerException e) {
+				throw new StreamCorruptedException("Invalid GMM classifier: " + e.getMessage());
+			}
+			if (tags != null) {
+				for (Map.Entry<String,String> e : tags.entrySet())
+					model.addTag(e.getKey(), e.getValue());
+			}
+			return model;
+		}
+	}
+
+	private static class FixedSingleGaussianMixtureCodec implements IModelCodec<FixedSingleGaussianMixture> {
+
+		@Override
+		public Class<FixedSingleGaussianMixture> getModelClass() {
+			return FixedSingleGaussianMixture.class;
+		}
+
+		@Override
+		public int getVersion() {
+			return 1;
+		}
+
+		@Override
+		public void write(ModelCodecOutputStream ostream, FixedSingleGaussianMixture model) throws IOException {
+			ostream.writeDoubleArray(model.getMixtureWeights());
+			ostream.writeModels(model.getFixedModels());
+		}
+
+		@Override
+		public FixedSingleGaussianMixture read(ModelCodecInputStream istream, int version) throws IOException, ClassNotFoundException {
+			double[] weights = istream.readDoubleArray();
+			Object[] gaussians = istream.readModels();
+			if (weights == null || !(gaussians instanceof IFixedSingleGaussian[]) || weights.length != gaussians.length)
+				throw new StreamCorruptedException("Invalid gaussian mixture");
+			return new FixedSingleGaussianMixture(weights, (IFixedSingleGaussian[])gaussians);
+		}
+	}
+
+	private static class DiagCovarianceCodec implements IModelCodec<FixedSingleGaussianDiagCovariance> {
+
+		@Override
+		public Class<FixedSingleGaussianDiagCovariance> getModelClass() {
+			return FixedSingleGaussianDiagCovariance.class;
+		}
+
+		@Override
+		public int getVersion() {
+			return 1;
+		}
+
+		@Override
+		public void write(ModelCodecOutputStream ostream, FixedSingleGaussianDiagCovariance model) throws IOException {
+			ostream.writeDoubleArray(model.getMean());
+			ostream.writeDoubleArray(model.getDiagVariance());
+		}
+
+		@Override
+		public FixedSingleGaussianDiagCovariance read(ModelCodecInputStream istream, int version) throws IOException {
+			double[] mean = istream.readDoubleArray();
+			double[] variance = istream.readDoubleArray();
+			if (mean == null || variance == null || mean.length != variance.length)
+				throw new StreamCorruptedException("Invalid diagonal covariance gaussian");
+			return new FixedSingleGaussianDiagCovariance(mean, variance);
+		}
+	}
+
+	private static class FullCovarianceCodec implements IModelCodec<FixedSingleGaussianFullCovariance> {
+
+		@Override
+		public Class<FixedSingleGaussianFullCovariance> getModelClass() {
+			return FixedSingleGaussianFullCovariance.class;
+		}
+
+		@Override
+		public int getVersion() {
+			return 1;
+		}
+
+		@Override
+		public void write(ModelCodecOutputStream ostream, FixedSingleGaussianFullCovariance model) throws IOException {
+			ostream.writeDoubleArray(model.getMean());
+			ostream.writeDoubleMatrix(model.getCovarianceInverse());
+			ostream.writeDouble(model.getCoefficientLog());
+		}
+
+		@Override
+		public FixedSingleGaussianFullCovariance read(ModelCodecInputStream istream, int version) throws IOException {
+			double[] mean = istream.readDoubleArray();
+			double[][] covarianceInv = istream.readDoubleMatrix();
+			double coeffLog = istream.readDouble();
+			if (mean == null || covarianceInv == null || mean.length != covarianceInv.length)
+				throw new StreamCorruptedException("Invalid full covariance gaussian");
+			for (double[] row : covarianceInv) {
+				if (row == null || row.length != mean.length)
+					throw new StreamCorruptedException("Invalid full covariance gaussian");
+			}
+			return new FixedSingleGaussianFullCovariance(mean, covarianceInv, coeffLog);
+		}
+	}
+
+}
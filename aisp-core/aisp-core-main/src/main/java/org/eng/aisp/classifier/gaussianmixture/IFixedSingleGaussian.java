@@ -19,4 +19,12 @@ import java.io.Serializable;
 
 public interface IFixedSingleGaussian extends Serializable {
 	public double density(double[] sample);
+
+	/**
+	 * Compute the natural log of the density without first computing the density, so that samples far from the mean
+	 * or of high dimension do not underflow to a log density of -Infinity.
+	 * @param sample
+	 * @return the log of {@link #density(double[])}.
+	 */
+	public double logDensity(double[] sample);
 }
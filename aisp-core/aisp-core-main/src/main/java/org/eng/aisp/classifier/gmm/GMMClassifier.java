@@ -125,6 +125,22 @@ public class GMMClassifier extends AbstractFixableFeatureExtractingClassifier<do
 	 */
 	public final static int DEFAULT_NUM_GAUSSIANS = 8;
 
+	public final static String SINGLE_PRECISION_TRAINING_PROPERTY_NAME = "classifiers.gmm.training.single_precision";
+
+	/**
+	 * If true, then the features of each label are held as floats instead of doubles during training, to halve the memory required.
+	 * Value is set by the {@value #SINGLE_PRECISION_TRAINING_PROPERTY_NAME} property and defaults to false.
+	 */
+	public final static boolean DEFAULT_SINGLE_PRECISION_TRAINING = AISPProperties.instance().getProperty(SINGLE_PRECISION_TRAINING_PROPERTY_NAME, false);
+
+	public final static String MINI_BATCH_SIZE_PROPERTY_NAME = "classifiers.gmm.training.mini_batch_size";
+
+	/**
+	 * If larger than 0, then labels with more features than this are trained with mini-batch EM using batches of this many features.
+	 * Value is set by the {@value #MINI_BATCH_SIZE_PROPERTY_NAME} property and defaults to 0, which always uses all features in each EM round.
+	 */
+	public final static int DEFAULT_MINI_BATCH_SIZE = AISPProperties.instance().getProperty(MINI_BATCH_SIZE_PROPERTY_NAME, 0);
+
 
 
 
@@ -133,6 +149,8 @@ public class GMMClassifier extends AbstractFixableFeatureExtractingClassifier<do
 	private final double unknownThreshCoeff;
     
 	private final int numGaussiansToMix;
+	private final boolean singlePrecisionTraining;
+	private final int miniBatchSize;
     private List<String> listOfLabelValues;
     private List<FixedSingleGaussianMixture> listOfModels;
 
@@ -212,8 +230,23 @@ public class GMMClassifier extends AbstractFixableFeatureExtractingClassifier<do
 			IFeatureExtractor<double[], double[]>  extractor,
 			IFeatureProcessor<double[]> featureProcessor, 
 			int windowSizeMsec, int windowShiftMsec, boolean useDiskCache, int numGaussiansToMix, boolean diagonalCovariance, double unknownThreshCoeff) {
+		this(transforms, extractor, featureProcessor, windowSizeMsec, windowShiftMsec, useDiskCache, numGaussiansToMix, diagonalCovariance,
+				unknownThreshCoeff, DEFAULT_SINGLE_PRECISION_TRAINING, DEFAULT_MINI_BATCH_SIZE);
+	}
+
+	/**
+	 * Extends {@link #GMMClassifier(ITrainingWindowTransform, IFeatureExtractor, IFeatureProcessor, int, int, boolean, int, boolean, double)}
+	 * to control the memory and time used to train.
+	 * @param singlePrecisionTraining if true, then hold the features as floats during training to halve the memory required.
+	 * @param miniBatchSize if larger than 0, then labels with more features than this are trained with mini-batch EM using batches of this size.
+	 */
+	public GMMClassifier(ITrainingWindowTransform<double[]> transforms, 
+			IFeatureExtractor<double[], double[]>  extractor,
+			IFeatureProcessor<double[]> featureProcessor, 
+			int windowSizeMsec, int windowShiftMsec, boolean useDiskCache, int numGaussiansToMix, boolean diagonalCovariance, double unknownThreshCoeff,
+			boolean singlePrecisionTraining, int miniBatchSize) {
 		this(transforms, new FeatureGramDescriptor<double[],double[]>(windowSizeMsec, windowShiftMsec, extractor, featureProcessor), 
-				useDiskCache, numGaussiansToMix, diagonalCovariance,  unknownThreshCoeff);
+				useDiskCache, numGaussiansToMix, diagonalCovariance,  unknownThreshCoeff, singlePrecisionTraining, miniBatchSize);
 
 	}
 
@@ -228,6 +261,12 @@ public class GMMClassifier extends AbstractFixableFeatureExtractingClassifier<do
 
 	public GMMClassifier(ITrainingWindowTransform<double[]> transforms, 
 			IFeatureGramDescriptor<double[], double[]>  fge, boolean useDiskCache, int numGaussiansToMix, boolean diagonalCovariance, double unknownThreshCoeff) {
+		this(transforms, fge, useDiskCache, numGaussiansToMix, diagonalCovariance, unknownThreshCoeff, DEFAULT_SINGLE_PRECISION_TRAINING, DEFAULT_MINI_BATCH_SIZE);
+	}
+
+	public GMMClassifier(ITrainingWindowTransform<double[]> transforms, 
+			IFeatureGramDescriptor<double[], double[]>  fge, boolean useDiskCache, int numGaussiansToMix, boolean diagonalCovariance, double unknownThreshCoeff,
+			boolean singlePrecisionTraining, int miniBatchSize) {
 		super(true, transforms,fge, false, useDiskCache);
 
 		this.numGaussiansToMix = numGaussiansToMix;
@@ -237,6 +276,10 @@ public class GMMClassifier extends AbstractFixableFeatureExtractingClassifier<do
 		if (unknownThreshCoeff < 0.0 || Double.isNaN(unknownThreshCoeff)) 
 			throw new IllegalArgumentException("unknownThreshCoeff must be >= 0.0");
 		this.unknownThreshCoeff = unknownThreshCoeff;	
+		if (miniBatchSize < 0)
+			throw new IllegalArgumentException("miniBatchSize must be >= 0");
+		this.singlePrecisionTraining = singlePrecisionTraining;
+		this.miniBatchSize = miniBatchSize;
 	}
 	
 
@@ -381,7 +424,7 @@ public class GMMClassifier extends AbstractFixableFeatureExtractingClassifier<do
 				}
 				int dim = feIt.next().getData().length;   //Assumes all features have same lengths
 //				AISPLogger.logger.info("Training guassian");
-				FixedSingleGaussianMixture model = GMMTrainingUtil.train(dim, numGaussiansToMix, diagonalCovariance, features);
+				FixedSingleGaussianMixture model = GMMTrainingUtil.train(dim, numGaussiansToMix, diagonalCovariance, features, singlePrecisionTraining, miniBatchSize);
 //				AISPLogger.logger.info("Done Training guassian");
 				
 				return new LearnedGMM(labelValue, model);
@@ -495,12 +538,14 @@ public class GMMClassifier extends AbstractFixableFeatureExtractingClassifier<do
 			for( List<IFeature<double[]>> feList : nestedFeatureList) {
 //				double sumLogProbabilities = feList.parallelStream().map(fe -> {
 				double sumLogProbabilities = feList.stream().map(fe -> {
-					double probOverall = 0.0;
-					
+					// Same log-sum-exp as FixedGMMClassifier.classify() so the threshold is comparable and does not underflow.
+					double[] logDensities = new double[listOfLabelValues.size()];
+					double maxLogDensity = Double.NEGATIVE_INFINITY;
 					for (int i=0; i<listOfLabelValues.size(); i++) {
-						probOverall += listOfModels.get(i).density(fe.getData());
+						logDensities[i] = listOfModels.get(i).logDensity(fe.getData());
+						maxLogDensity = Math.max(maxLogDensity, logDensities[i]);
 					}
-					return Math.log(probOverall);
+					return FixedSingleGaussianMixture.logSumExp(logDensities, maxLogDensity);
 				}).collect(Collectors.summingDouble(Double::doubleValue)); 
 				
 				
@@ -542,7 +587,8 @@ public class GMMClassifier extends AbstractFixableFeatureExtractingClassifier<do
 				+ ", featureGramDescriptors=" + (featureGramDescriptors != null
 						? featureGramDescriptors.subList(0, Math.min(featureGramDescriptors.size(), maxLen)) : null)
 				+ ", numGaussiansToMix=" + numGaussiansToMix + ", diagonalCovariance=" + diagonalCovariance
-				+ ", unknownThreshCoeff=" + unknownThreshCoeff + ", listOfLabelValues="
+				+ ", unknownThreshCoeff=" + unknownThreshCoeff + ", singlePrecisionTraining=" + singlePrecisionTraining
+				+ ", miniBatchSize=" + miniBatchSize + ", listOfLabelValues="
 				+ (listOfLabelValues != null ? listOfLabelValues.subList(0, Math.min(listOfLabelValues.size(), maxLen))
 						: null)
 				+ ", listOfModels="
@@ -563,6 +609,8 @@ public class GMMClassifier extends AbstractFixableFeatureExtractingClassifier<do
 		result = prime * result + ((listOfLabelValues == null) ? 0 : listOfLabelValues.hashCode());
 		result = prime * result + ((listOfModels == null) ? 0 : listOfModels.hashCode());
 		result = prime * result + numGaussiansToMix;
+		result = prime * result + (singlePrecisionTraining ? 1231 : 1237);
+		result = prime * result + miniBatchSize;
 		return result;
 	}
 
@@ -594,6 +642,10 @@ public class GMMClassifier extends AbstractFixableFeatureExtractingClassifier<do
 			return false;
 		if (numGaussiansToMix != other.numGaussiansToMix)
 			return false;
+		if (singlePrecisionTraining != other.singlePrecisionTraining)
+			return false;
+		if (miniBatchSize != other.miniBatchSize)
+			return false;
 		return true;
 	}
 
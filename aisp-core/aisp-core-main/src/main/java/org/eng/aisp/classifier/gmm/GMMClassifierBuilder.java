@@ -24,6 +24,8 @@ public class GMMClassifierBuilder extends AbstractClassifierBuilder<double[], do
     protected boolean diagonalCovariance = GMMClassifier.DEFAULT_USE_DIAGONAL_COVARIANCE;
     protected double knownConfidenceCutoff = GMMClassifier.DEFAULT_UNKNOWN_THRESH_COEFF;
     private boolean useDiskCache = GMMClassifier.DEFAULT_USE_DISK_CACHE;
+    private boolean singlePrecisionTraining = GMMClassifier.DEFAULT_SINGLE_PRECISION_TRAINING;
+    private int miniBatchSize = GMMClassifier.DEFAULT_MINI_BATCH_SIZE;
 
 	
 //	public GMMClassifierBuilder(String primaryTrainingLabelName, IFeatureExtractor<double[], double[]> fe) { 
@@ -40,7 +42,7 @@ public class GMMClassifierBuilder extends AbstractClassifierBuilder<double[], do
 	@Override
 	public GMMClassifier build() {
 		return new GMMClassifier(transform, featureExtractor, featureProcessor, windowSizeMsec, windowShiftMsec, useDiskCache, 
-				numGaussians, diagonalCovariance, knownConfidenceCutoff);
+				numGaussians, diagonalCovariance, knownConfidenceCutoff, singlePrecisionTraining, miniBatchSize);
 	}
 	
 	public GMMClassifierBuilder setNumGaussians(int numGaussiansToMix) {
@@ -63,6 +65,22 @@ public class GMMClassifierBuilder extends AbstractClassifierBuilder<double[], do
 		return this;
 	}
 
+	/**
+	 * @param singlePrecisionTraining if true, then hold the features as floats during training to halve the memory required.
+	 */
+	public GMMClassifierBuilder setSinglePrecisionTraining(boolean singlePrecisionTraining) {
+		this.singlePrecisionTraining = singlePrecisionTraining;
+		return this;
+	}
+
+	/**
+	 * @param miniBatchSize if larger than 0, then labels with more features than this are trained with mini-batch EM using batches of this size.
+	 */
+	public GMMClassifierBuilder setMiniBatchSize(int miniBatchSize) {
+		this.miniBatchSize = miniBatchSize;
+		return this;
+	}
+
 
 
 	/**
@@ -92,6 +110,20 @@ public class GMMClassifierBuilder extends AbstractClassifierBuilder<double[], do
 	public boolean isUseDiskCache() {
 		return useDiskCache;
 	}
+
+	/**
+	 * @return the singlePrecisionTraining
+	 */
+	public boolean isSinglePrecisionTraining() {
+		return singlePrecisionTraining;
+	}
+
+	/**
+	 * @return the miniBatchSize
+	 */
+	public int getMiniBatchSize() {
+		return miniBatchSize;
+	}
 	
 	
 
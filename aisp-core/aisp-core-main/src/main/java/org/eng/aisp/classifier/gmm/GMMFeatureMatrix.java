@@ -0,0 +1,112 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.gmm;
+
+import org.eng.aisp.feature.IFeature;
+
+/**
+ * Holds the feature vectors used to train a Gaussian mixture in a single row-major array so that the EM rounds do not
+ * re-iterate the feature objects.  The values are held as doubles or, to halve the memory, as floats.
+ * <p>
+ * Each row holds at most the number of columns given at construction.  Shorter feature vectors are zero padded and their
+ * length is remembered so that a row is returned with the length of the feature it was copied from.
+ */
+class GMMFeatureMatrix {
+
+	private final int rows;
+	private final int columns;
+	/** The rows one after the other, null if singlePrecision was requested */
+	private final double[] doubleValues;
+	/** The rows one after the other, null if singlePrecision was not requested */
+	private final float[] floatValues;
+	/** The length of the feature vector of each row if less than columns, or null if all are at least columns long */
+	private final int[] rowLengths;
+
+	/**
+	 * Copy the data of the given features into a new matrix.
+	 * @param columns the number of values retained from each feature.
+	 * @param features
+	 * @param singlePrecision if true, then hold the values as floats.
+	 */
+	GMMFeatureMatrix(int columns, Iterable<IFeature<double[]>> features, boolean singlePrecision) {
+		int count = 0;
+		boolean shortRows = false;
+		for (IFeature<double[]> fe : features) {
+			if (fe.getData().length < columns)
+				shortRows = true;
+			count++;
+		}
+		if ((long)count * columns > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Too many features to hold in a single matrix: " + count);
+		this.rows = count;
+		this.columns = columns;
+		this.doubleValues = singlePrecision ? null : new double[rows * columns];
+		this.floatValues = singlePrecision ? new float[rows * columns] : null;
+		this.rowLengths = shortRows ? new int[rows] : null;
+
+		int row = 0;
+		for (IFeature<double[]> fe : features) {
+			if (row == rows)
+				break;	// Iterable changed
+			double[] fv = fe.getData();
+			int len = Math.min(columns, fv.length);
+			int offset = row * columns;
+			if (doubleValues != null) {
+				System.arraycopy(fv, 0, doubleValues, offset, len);
+			} else {
+				for (int i=0; i<len; i++)
+					floatValues[offset + i] = (float)fv[i];
+			}
+			if (rowLengths != null)
+				rowLengths[row] = len;
+			row++;
+		}
+	}
+
+	/**
+	 * @return the number of features.
+	 */
+	int getRows() {
+		return rows;
+	}
+
+	/**
+	 * @return the number of values retained from each feature.
+	 */
+	int getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Get the values of a row.
+	 * @param row
+	 * @param buffer an array of length {@link #getColumns()} into which the values may be copied. 
+	 * @return the values, which is the given buffer unless the feature was shorter than the number of columns.
+	 */
+	double[] getRow(int row, double[] buffer) {
+		int len = rowLengths == null ? columns : rowLengths[row];
+		double[] fv = len == columns ? buffer : new double[len];
+		int offset = row * columns;
+		if (doubleValues != null) {
+			System.arraycopy(doubleValues, offset, fv, 0, len);
+		} else {
+			for (int i=0; i<len; i++)
+				fv[i] = floatValues[offset + i];
+		}
+		return fv;
+	}
+
+}
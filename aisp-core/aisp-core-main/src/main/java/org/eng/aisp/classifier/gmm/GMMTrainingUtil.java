@@ -15,8 +15,13 @@
  *******************************************************************************/
 package org.eng.aisp.classifier.gmm;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.eng.aisp.AISPException;
 import org.eng.aisp.classifier.gaussianmixture.FixedSingleGaussianDiagCovariance;
@@ -26,6 +31,7 @@ import org.eng.aisp.classifier.gaussianmixture.IFixedSingleGaussian;
 import org.eng.aisp.classifier.gaussianmixture.FixedSingleGaussianMixture.PosteriorAndSumProb;
 import org.eng.aisp.feature.IFeature;
 import org.eng.aisp.util.MatrixUtil;
+import org.eng.util.ExecutorUtil;
 
 /**
  * Class for training one Gaussian mixture model.
@@ -34,6 +40,12 @@ import org.eng.aisp.util.MatrixUtil;
  * [a] Douglas Reynolds, "Gaussian Mixture Models," {@link https://ll.mit.edu/mission/cybersec/publications/publication-files/full_papers/0802_Reynolds_Biometrics-GMM.pdf}
  * <br>
  * [b] Robert D. Nowak, "Distributed EM algorithms for density estimation and clustering in sensor networks." IEEE transactions on signal processing 51.8 (2003): 2245-2253.
+ * <br>
+ * [c] Percy Liang and Dan Klein, "Online EM for unsupervised models." Proceedings of NAACL-HLT (2009): 611-619.
+ * <p>
+ * The features are copied once into a {@link GMMFeatureMatrix}.  Each EM round then computes the posteriors (E-step) and 
+ * accumulates the sufficient statistics of the M-step over partitions of the rows in parallel, and sums the statistics of the 
+ * partitions in a fixed order so that the result does not depend on the number of threads.
  * 
  * @author wangshiq
  */
@@ -62,9 +74,44 @@ class GMMTrainingUtil {
 	 */
 	public static final double ADDED_VALUE_ON_DIAGONAL_COVARIANCE = 0.0001;
 	
+	/**
+	 * The step size of the i'th mini-batch EM round is (i+2)^-MINI_BATCH_STEP_EXPONENT, per [c].  Must be in (0.5,1].
+	 */
+	public static final double MINI_BATCH_STEP_EXPONENT = 0.7;
+
+	/**
+	 * The minimum number of rows in a partition over which the statistics are accumulated by a single task.
+	 */
+	private static final int MIN_PARTITION_ROWS = 512;
+
+	/**
+	 * The maximum number of partitions, which bounds the memory used for the statistics of the partitions.
+	 */
+	private static final int MAX_PARTITIONS = 64;
 	
-	
+	/**
+	 * A convenience on {@link #train(int, int, boolean, Iterable, boolean, int)} that holds the features as doubles and uses all
+	 * of them in each EM round.
+	 */
 	public static FixedSingleGaussianMixture train(int dim, int numGaussiansToMix, boolean diagonalCovariance, Iterable<IFeature<double[]>> features) throws AISPException {
+		return train(dim, numGaussiansToMix, diagonalCovariance, features, false, 0);
+	}
+
+	/**
+	 * Learn a mixture of Gaussians from the given features with the EM algorithm.
+	 * @param dim the length of the feature vectors. 
+	 * @param numGaussiansToMix
+	 * @param diagonalCovariance if true, then learn diagonal covariances, otherwise full covariances.
+	 * @param features
+	 * @param singlePrecision if true, then hold the features as floats during training to halve the memory required.
+	 * @param miniBatchSize if larger than 0 and smaller than the number of features, then each EM round uses a random batch of
+	 * this many features, and the statistics of the batches are combined with the stepwise EM of [c].  In this case, 
+	 * {@link #EM_MAX_ROUND} rounds are always done.  Otherwise, all features are used in each round. 
+	 * @return never null.
+	 * @throws AISPException if there are no features.
+	 */
+	public static FixedSingleGaussianMixture train(int dim, int numGaussiansToMix, boolean diagonalCovariance, Iterable<IFeature<double[]>> features,
+				boolean singlePrecision, int miniBatchSize) throws AISPException {
 		Random random = new Random(DEFAULT_SEED);	// Produce repeatable results.
 		
 		double[] mixtureWeights = new double[numGaussiansToMix];
@@ -90,6 +137,13 @@ class GMMTrainingUtil {
 			mixtureWeights[m] = mixtureWeight;  //initialize posterior probabilities to uniform distribution
 		}
 		
+		GMMFeatureMatrix matrix = new GMMFeatureMatrix(dim, features, singlePrecision);
+		int sampleCount = matrix.getRows();
+		if (sampleCount == 0)
+			throw new AISPException("No features found to train on.  Was the correct label specified?");
+
+		if (miniBatchSize > 0 && miniBatchSize < sampleCount && numGaussiansToMix > 1) 
+			return trainMiniBatches(matrix, numGaussiansToMix, diagonalCovariance, mixtureWeights, fixedModels, miniBatchSize, random);
 		
 		double prevSumProb = 0.0;
 		
@@ -98,100 +152,10 @@ class GMMTrainingUtil {
 			boolean isLastRound = false;
 			
 			FixedSingleGaussianMixture tmpModel = new FixedSingleGaussianMixture(mixtureWeights, fixedModels);
-			
-			//initialize arrays for new mean and covariance
-			double[][] newMean = new double[numGaussiansToMix][dim];
-			double[][][] newCovariance = new double[numGaussiansToMix][dim][dim];
-			for (int n=0; n<numGaussiansToMix; n++) {
-				Arrays.fill(newMean[n], 0.0);
-				for (int i=0; i<dim; i++) {
-					Arrays.fill(newCovariance[n][i], 0.0);
-				}
-			}
-			
-			//initialize array for sum of posterior probability over all samples
-			double[] posteriorProbAllSamples = new double[numGaussiansToMix];  //for each model in the mixture
-			Arrays.fill(posteriorProbAllSamples, 0.0);
-			
-			int sampleCount = 0;
-			double sumProb = 0.0;
-			
-			for (IFeature<double[]> fe : features) {
-				double[] fv = fe.getData();
-				
-				PosteriorAndSumProb posteriorAndSumProb = tmpModel.computePosteriorAndSumProb(fv);
-				double[] posteriorProb = posteriorAndSumProb.getPosteriorProb();
-				sumProb += posteriorAndSumProb.getSumProb();
-				
-				for (int n=0; n<numGaussiansToMix; n++) {
-					
-					//Compute the numerator for mean
-					for (int i=0; i<Math.min(dim, fv.length); i++) {
-						newMean[n][i] += posteriorProb[n] * fv[i];
-					}
-					
-					//compute sum posterior probability for all samples
-					posteriorProbAllSamples[n] += posteriorProb[n]; 
-					
-
-					
-					//Compute first part of the numerator for covariance
-					for (int i=0; i<Math.min(dim, fv.length); i++) {
-						if (diagonalCovariance) {
-							newCovariance[n][i][i] += posteriorProb[n] * fv[i] * fv[i];
-						} else {
-							for (int j=0; j<Math.min(dim, fv.length); j++) {
-								newCovariance[n][i][j] += posteriorProb[n] * fv[i] * fv[j];
-							}
-						}
-					}
-				}
-				
-				
-				sampleCount++;
-			}
-			if (sampleCount == 0)
-				throw new AISPException("No features found to train on.  Was the correct label specified?");
-			
-			//Compute the final value of mean
-			for (int n=0; n<numGaussiansToMix; n++) {
-				for (int i=0; i<dim; i++) {
-					//Note: We should use division directly when dealing with probabilities for improved precision, using 1.0/probability may result in infinity
-					newMean[n][i] /= posteriorProbAllSamples[n];
-				}
-			}
-			
-			//Compute final value of covariance
-			for (int n=0; n<numGaussiansToMix; n++) {
-				if (diagonalCovariance) {
-					for (int i=0; i<dim; i++) {
-						newCovariance[n][i][i] /= posteriorProbAllSamples[n];   //Complete the first part of variance
-						newCovariance[n][i][i] -= newMean[n][i] * newMean[n][i];  //Subtract the square of mean value to complete the variance computation
-						newCovariance[n][i][i] += ADDED_VALUE_ON_DIAGONAL_COVARIANCE;  //To avoid singularity
-					}
-				} else {
-					for (int i=0; i<dim; i++) {
-						for (int j=0; j<dim; j++) {
-							//Note: We should use division directly when dealing with probabilities for improved precision, using 1.0/probability may result in infinity
-							newCovariance[n][i][j] /= posteriorProbAllSamples[n];   //Complete the first part of covariance
-							newCovariance[n][i][j] -= newMean[n][i] * newMean[n][j];  //Subtract the cross product of mean value to complete the covariance computation
-							if (i == j) {
-								newCovariance[n][i][j] += ADDED_VALUE_ON_DIAGONAL_COVARIANCE;  //To avoid singularity
-							}
-						}
-					}
-				}
-			}
+			SufficientStatistics stats = accumulate(tmpModel, matrix, null, sampleCount, diagonalCovariance);
+			double sumProb = stats.sumProb;
 
-			
 			//Check whether this is the last EM round, based on termination condition
-//			double sumProbRatio = sumProb / prevSumProb;
-//			if ((prevSumProb > 0) && (sumProbRatio >= 1.0) && (sumProbRatio < 1.0 + TERMINATION_REL_INCREMENT)) {
-//				//The case sumProbRatio < 1 won't occur in theory, but we see it happening in practice, perhaps due to numerical inaccuracy
-//				isLastRound = true; 
-//			} else if (numGaussiansToMix == 1) {
-//				isLastRound = true;   //When there is only one Gaussian, then only one round is needed
-//			}
 			if (numGaussiansToMix == 1) {
 				isLastRound = true; // When there is only one Gaussian, then only one round is needed
 			} else if (prevSumProb == 0) {
@@ -204,24 +168,275 @@ class GMMTrainingUtil {
 			}
 			prevSumProb = sumProb;
 			
-			
 			//Update the models and mixture weights (Note: this has to happen at the very end)
-			double scale = 1.0 / sampleCount;
-			for (int n=0; n<numGaussiansToMix; n++) {
-				if (diagonalCovariance) {
-					fixedModels[n] = new FixedSingleGaussianDiagCovariance(newMean[n], MatrixUtil.selectDiagonalComponents(newCovariance[n]));
-				} else{ 
-					fixedModels[n] = new FixedSingleGaussianFullCovariance(newMean[n], newCovariance[n]);
-				}
-
-				mixtureWeights[n] = scale * posteriorProbAllSamples[n];
-			}
+			maximize(stats, sampleCount, diagonalCovariance, mixtureWeights, fixedModels);
 			
 			if (isLastRound) break;
 		}
 		
 		return new FixedSingleGaussianMixture(mixtureWeights, fixedModels);
 	}
-	
+
+	/**
+	 * Run {@link #EM_MAX_ROUND} rounds of stepwise EM, each on a batch of rows taken from a random permutation of the rows.
+	 * The statistics are normalized by the batch size and blended into the running statistics, from which the model is updated.
+	 */
+	private static FixedSingleGaussianMixture trainMiniBatches(GMMFeatureMatrix matrix, int numGaussiansToMix, boolean diagonalCovariance,
+				double[] mixtureWeights, IFixedSingleGaussian[] fixedModels, int miniBatchSize, Random random) {
+		int[] permutation = new int[matrix.getRows()];
+		for (int i=0; i<permutation.length; i++)
+			permutation[i] = i;
+		int[] batch = new int[miniBatchSize];
+		int next = permutation.length;	// Shuffle before the first batch.
+		SufficientStatistics running = null;
+		for (int emRound = 0; emRound < EM_MAX_ROUND; emRound++) {
+			for (int i=0; i<batch.length; i++) {
+				if (next == permutation.length) {
+					shuffle(permutation, random);
+					next = 0;
+				}
+				batch[i] = permutation[next++];
+			}
+			FixedSingleGaussianMixture tmpModel = new FixedSingleGaussianMixture(mixtureWeights, fixedModels);
+			SufficientStatistics stats = accumulate(tmpModel, matrix, batch, batch.length, diagonalCovariance);
+			stats.scale(1.0 / batch.length);
+			if (running == null) {
+				running = stats;
+			} else {
+				double step = Math.pow(emRound + 2, -MINI_BATCH_STEP_EXPONENT);
+				running.scale(1 - step);
+				stats.scale(step);
+				running.add(stats);
+			}
+			maximize(running, 1, diagonalCovariance, mixtureWeights, fixedModels);
+		}
+		return new FixedSingleGaussianMixture(mixtureWeights, fixedModels);
+	}
+
+	private static void shuffle(int[] values, Random random) {
+		for (int i=values.length-1; i>0; i--) {
+			int j = random.nextInt(i + 1);
+			int tmp = values[i];
+			values[i] = values[j];
+			values[j] = tmp;
+		}
+	}
+
+	/**
+	 * Update the models and mixture weights from the given statistics.
+	 * @param stats
+	 * @param sampleCount the number of samples over which the statistics were summed, or 1 if they have been normalized.
+	 */
+	private static void maximize(SufficientStatistics stats, int sampleCount, boolean diagonalCovariance, double[] mixtureWeights, IFixedSingleGaussian[] fixedModels) {
+		int dim = stats.dim;
+		double scale = 1.0 / sampleCount;
+		for (int n=0; n<fixedModels.length; n++) {
+			double posteriorProbAllSamples = stats.posteriorProbAllSamples[n];
+			double[] newMean = new double[dim];
+			for (int i=0; i<dim; i++) {
+				//Note: We should use division directly when dealing with probabilities for improved precision, using 1.0/probability may result in infinity
+				newMean[i] = stats.sumWeightedSamples[n][i] / posteriorProbAllSamples;
+			}
+
+			double[] products = stats.sumWeightedProducts[n];
+			if (diagonalCovariance) {
+				double[] newVariance = new double[dim];
+				for (int i=0; i<dim; i++) {
+					newVariance[i] = products[i] / posteriorProbAllSamples;   //Complete the first part of variance
+					newVariance[i] -= newMean[i] * newMean[i];  //Subtract the square of mean value to complete the variance computation
+					newVariance[i] += ADDED_VALUE_ON_DIAGONAL_COVARIANCE;  //To avoid singularity
+				}
+				fixedModels[n] = new FixedSingleGaussianDiagCovariance(newMean, newVariance);
+			} else {
+				double[][] newCovariance = new double[dim][dim];
+				for (int i=0; i<dim; i++) {
+					for (int j=i; j<dim; j++) {
+						double c = products[i * dim + j] / posteriorProbAllSamples;   //Complete the first part of covariance
+						c -= newMean[i] * newMean[j];  //Subtract the cross product of mean value to complete the covariance computation
+						if (i == j) 
+							c += ADDED_VALUE_ON_DIAGONAL_COVARIANCE;  //To avoid singularity
+						newCovariance[i][j] = c;
+						newCovariance[j][i] = c;
+					}
+				}
+				fixedModels[n] = new FixedSingleGaussianFullCovariance(newMean, newCovariance);
+			}
+
+			mixtureWeights[n] = scale * posteriorProbAllSamples;
+		}
+	}
+
+	/**
+	 * Compute the posteriors of the given rows under the model and sum the statistics needed to update the model.
+	 * The rows are divided into partitions, each summed by one task, and the partition sums are added in order.
+	 * @param model
+	 * @param matrix
+	 * @param rowIndexes the rows to use, or null to use the first count rows.
+	 * @param count the number of rows to use.
+	 * @param diagonalCovariance
+	 */
+	private static SufficientStatistics accumulate(FixedSingleGaussianMixture model, GMMFeatureMatrix matrix, int[] rowIndexes, int count, boolean diagonalCovariance) {
+		int numGaussiansToMix = model.getNumGaussiansToMix();
+		int partitions = Math.max(1, Math.min(MAX_PARTITIONS, count / MIN_PARTITION_ROWS));
+		SufficientStatistics[] partitionStats = new SufficientStatistics[partitions];
+		if (partitions == 1) {
+			partitionStats[0] = new SufficientStatistics(numGaussiansToMix, matrix.getColumns(), diagonalCovariance);
+			partitionStats[0].accumulate(model, matrix, rowIndexes, 0, count);
+		} else {
+			AtomicInteger sharedPartition = new AtomicInteger(0);
+			List<AccumulateStatistics> tasks = new ArrayList<AccumulateStatistics>();
+			int taskCount = Math.min(Runtime.getRuntime().availableProcessors(), partitions);
+			for (int i=0; i<taskCount; i++)
+				tasks.add(new AccumulateStatistics(model, matrix, rowIndexes, count, diagonalCovariance, sharedPartition, partitionStats));
+			ExecutorService executor = ExecutorUtil.getPrioritizingSharedService();
+			try {
+				executor.invokeAll(tasks);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				sharedPartition.set(partitions);	// Stop any that are still running.
+			}
+			// Do any partitions not done above, serially.
+			for (int p=0; p<partitions; p++) {
+				if (partitionStats[p] == null) {
+					partitionStats[p] = new SufficientStatistics(numGaussiansToMix, matrix.getColumns(), diagonalCovariance);
+					partitionStats[p].accumulate(model, matrix, rowIndexes, partitionStart(p, partitions, count), partitionStart(p+1, partitions, count));
+				}
+			}
+		}
+		SufficientStatistics stats = partitionStats[0];
+		for (int p=1; p<partitions; p++)
+			stats.add(partitionStats[p]);
+		return stats;
+	}
+
+	private static int partitionStart(int partition, int partitions, int count) {
+		return (int)((long)partition * count / partitions);
+	}
+
+	/**
+	 * Accumulates the statistics of the partitions taken from a shared index until there are none left.
+	 */
+	private static class AccumulateStatistics implements Callable<Object> {
+		private final FixedSingleGaussianMixture model;
+		private final GMMFeatureMatrix matrix;
+		private final int[] rowIndexes;
+		private final int count;
+		private final boolean diagonalCovariance;
+		private final AtomicInteger sharedPartition;
+		private final SufficientStatistics[] partitionStats;
+
+		public AccumulateStatistics(FixedSingleGaussianMixture model, GMMFeatureMatrix matrix, int[] rowIndexes, int count,
+				boolean diagonalCovariance, AtomicInteger sharedPartition, SufficientStatistics[] partitionStats) {
+			this.model = model;
+			this.matrix = matrix;
+			this.rowIndexes = rowIndexes;
+			this.count = count;
+			this.diagonalCovariance = diagonalCovariance;
+			this.sharedPartition = sharedPartition;
+			this.partitionStats = partitionStats;
+		}
+
+		@Override
+		public Object call() throws Exception {
+			int partitions = partitionStats.length;
+			while (true) {
+				int p = sharedPartition.getAndIncrement();
+				if (p >= partitions)
+					break;	// done
+				SufficientStatistics stats = new SufficientStatistics(model.getNumGaussiansToMix(), matrix.getColumns(), diagonalCovariance);
+				stats.accumulate(model, matrix, rowIndexes, partitionStart(p, partitions, count), partitionStart(p+1, partitions, count));
+				partitionStats[p] = stats;
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * The sums over samples needed by the M-step for each Gaussian in the mixture.
+	 */
+	private static class SufficientStatistics {
+		final int dim;
+		final boolean diagonalCovariance;
+		/** Sum of posterior probability of each Gaussian over all samples */
+		final double[] posteriorProbAllSamples;
+		/** For each Gaussian, the sum of the samples weighted by the posterior */
+		final double[][] sumWeightedSamples;
+		/** For each Gaussian, the sum of the squares (diagonal) or of the row-major upper triangle of the outer products (full) weighted by the posterior */
+		final double[][] sumWeightedProducts;
+		/** The sum of the mixture densities of the samples */
+		double sumProb;
+
+		SufficientStatistics(int numGaussiansToMix, int dim, boolean diagonalCovariance) {
+			this.dim = dim;
+			this.diagonalCovariance = diagonalCovariance;
+			this.posteriorProbAllSamples = new double[numGaussiansToMix];
+			this.sumWeightedSamples = new double[numGaussiansToMix][dim];
+			this.sumWeightedProducts = new double[numGaussiansToMix][diagonalCovariance ? dim : dim * dim];
+		}
+
+		/**
+		 * Add the statistics of the rows in the given range.
+		 * @param rowIndexes if not null, then the range is of indexes into this array of rows.
+		 */
+		void accumulate(FixedSingleGaussianMixture model, GMMFeatureMatrix matrix, int[] rowIndexes, int start, int end) {
+			double[] buffer = new double[dim];
+			for (int r=start; r<end; r++) {
+				double[] fv = matrix.getRow(rowIndexes == null ? r : rowIndexes[r], buffer);
+				int len = Math.min(dim, fv.length);
+
+				PosteriorAndSumProb posteriorAndSumProb = model.computePosteriorAndSumProb(fv);
+				double[] posteriorProb = posteriorAndSumProb.getPosteriorProb();
+				sumProb += posteriorAndSumProb.getSumProb();
+
+				for (int n=0; n<posteriorProb.length; n++) {
+					double p = posteriorProb[n];
+					posteriorProbAllSamples[n] += p;
+					double[] weightedSamples = sumWeightedSamples[n];
+					double[] products = sumWeightedProducts[n];
+					for (int i=0; i<len; i++) 
+						weightedSamples[i] += p * fv[i];
+					if (diagonalCovariance) {
+						for (int i=0; i<len; i++) 
+							products[i] += p * fv[i] * fv[i];
+					} else {
+						for (int i=0; i<len; i++) {
+							double pfi = p * fv[i];
+							int offset = i * dim;
+							for (int j=i; j<len; j++) 
+								products[offset + j] += pfi * fv[j];
+						}
+					}
+				}
+			}
+		}
+
+		void add(SufficientStatistics other) {
+			sumProb += other.sumProb;
+			for (int n=0; n<posteriorProbAllSamples.length; n++) {
+				posteriorProbAllSamples[n] += other.posteriorProbAllSamples[n];
+				add(sumWeightedSamples[n], other.sumWeightedSamples[n]);
+				add(sumWeightedProducts[n], other.sumWeightedProducts[n]);
+			}
+		}
+
+		void scale(double factor) {
+			sumProb *= factor;
+			for (int n=0; n<posteriorProbAllSamples.length; n++) {
+				posteriorProbAllSamples[n] *= factor;
+				scale(sumWeightedSamples[n], factor);
+				scale(sumWeightedProducts[n], factor);
+			}
+		}
+
+		private static void add(double[] sum, double[] values) {
+			for (int i=0; i<sum.length; i++)
+				sum[i] += values[i];
+		}
+
+		private static void scale(double[] values, double factor) {
+			for (int i=0; i<values.length; i++)
+				values[i] *= factor;
+		}
+	}
 
 }
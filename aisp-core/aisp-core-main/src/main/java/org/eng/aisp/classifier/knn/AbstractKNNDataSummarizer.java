@@ -55,7 +55,8 @@ public abstract class AbstractKNNDataSummarizer<DATA extends Serializable> exten
 	protected final double reductionRatio;
 	protected final double stdDevFactor;
 	private boolean isDirty = true;
-	private List<Integer> labeledDataWeights = new ArrayList<Integer>();
+	/** The number of data items merged into each item of {@link #listOfLabeledData} */
+	protected List<Integer> labeledDataWeights = new ArrayList<Integer>();
 	
 	/**
 	 * 
@@ -353,6 +354,28 @@ public abstract class AbstractKNNDataSummarizer<DATA extends Serializable> exten
 		//Find min. distance and standard deviation for detecting unknown labels
 //		final OnlineStats stats = new OnlineStats();
 		
+		double[] minDistSingleSampleArrayPrim = computeMinDistances(); 
+		double mean = StatUtils.mean(minDistSingleSampleArrayPrim);
+		double stddev = Math.sqrt(StatUtils.variance(minDistSingleSampleArrayPrim, mean));
+		
+		if (Double.isNaN(stddev)) 
+			stddev = 0.0001 * mean;  //This may happen if samples are too close to each other
+		
+		double maxDist = mean + stddev * stdDevFactor;
+		
+		if (Double.isNaN(maxDist) || maxDist <= 0.0001)  maxDist = 0.0001;   //This could happen if distances among all samples are too close to each other
+
+		this.setMaxDistBetweenSameLabel(maxDist);
+		this.setLowerBoundDelta(stddev*stdDevFactor);
+		isDirty = false;
+	}
+
+	/**
+	 * For each data point, calculate the distance to its nearest neighbor, ignoring neighbors at a distance of 0. 
+	 * Subclasses that maintain an index over the data may override this to avoid comparing all pairs.
+	 * @return an array of nearest neighbor distances for all points, in undefined order.
+	 */
+	protected double[] computeMinDistances() {
 		// TODO:  see if this is worth doing in parallel for small numbers.
 		double[] minDistSingleSampleArrayPrim; 
 		int size = listOfLabeledData.size(); 
@@ -385,20 +408,14 @@ public abstract class AbstractKNNDataSummarizer<DATA extends Serializable> exten
 		}	
 //		System.out.println("Serial   speed: " + serial.getMean());
 //		System.out.println("Parallel speed: " + parallel.getMean());
-		
-		double mean = StatUtils.mean(minDistSingleSampleArrayPrim);
-		double stddev = Math.sqrt(StatUtils.variance(minDistSingleSampleArrayPrim, mean));
-		
-		if (Double.isNaN(stddev)) 
-			stddev = 0.0001 * mean;  //This may happen if samples are too close to each other
-		
-		double maxDist = mean + stddev * stdDevFactor;
-		
-		if (Double.isNaN(maxDist) || maxDist <= 0.0001)  maxDist = 0.0001;   //This could happen if distances among all samples are too close to each other
+		return minDistSingleSampleArrayPrim;
+	}
 
-		this.setMaxDistBetweenSameLabel(maxDist);
-		this.setLowerBoundDelta(stddev*stdDevFactor);
-		isDirty = false;
+	/**
+	 * Called by subclasses that change {@link #listOfLabeledData} so that the statistics are recomputed when next requested.
+	 */
+	protected void setDirty() {
+		isDirty = true;
 	}
 
 	/**
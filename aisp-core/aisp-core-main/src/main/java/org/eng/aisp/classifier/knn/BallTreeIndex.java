@@ -0,0 +1,526 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.knn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * A ball tree over a changing set of items that finds the item nearest to a query.
+ * Unlike {@link VPTreeIndex}, items can be added and removed one at a time, which is what an incremental summarizer needs.
+ * <p>
+ * Each node has a pivot and a radius that bounds the distance from the pivot to every item below it.  An item is added to the leaf
+ * reached by repeatedly descending to the child with the nearest pivot, and the radii along the way are grown to cover it.
+ * A node with more than {@link #nodeCapacity} children or items is split in two around the two of them that are farthest apart.
+ * Removing an item leaves the radii as they are, which keeps them valid bounds.
+ * Since the tree gets less balanced and its radii looser as items are added and removed, it is rebuilt from the top down whenever the number of
+ * items added and removed since it was last built exceeds the number of items it was built with.  The cost of rebuilding is then spread
+ * over the changes.
+ * <p>
+ * Searches are exact, visiting nodes in order of the smallest possible distance to their items and skipping nodes whose bound exceeds the nearest 
+ * distance found so far.  As in an M-tree, each child and item also holds its distance to the pivot of its parent, so that many of them are skipped
+ * without computing their distance to the query.  The bound relies on the triangle inequality, so when the distance function is not a metric (see {@link VPTreeIndex#isMetric(IDistanceFunction)})
+ * the items are instead kept in a single leaf, without computing any distances to pivots, and searches are a linear scan over them.
+ * <p>
+ * The tree is not thread-safe and not serializable.
+ *
+ * @param <DATA>
+ */
+class BallTreeIndex<DATA> {
+
+	/** Default maximum number of children of an internal node or items of a leaf */
+	final static int DEFAULT_NODE_CAPACITY = 16;
+
+	/** Relative tolerance applied to the bounds from the triangle inequality to allow for rounding in the distance computations */
+	private final static double BOUND_TOLERANCE = 1e-9;
+
+	/**
+	 * An item in the tree.  Subclasses carry whatever else the caller needs to associate with the data.
+	 * An item may be in at most one tree at a time.
+	 */
+	static class Item<DATA> {
+		protected final DATA data;
+		/** Used to break ties between items at the same distance */
+		protected final long id;
+		/** The leaf holding the item, or null if it is not in a tree */
+		private Node<DATA> leaf;
+		/** The distance to the pivot of the leaf */
+		private double leafDistance;
+
+		Item(DATA data, long id) {
+			this.data = data;
+			this.id = id;
+		}
+
+		DATA getData() {
+			return data;
+		}
+
+		/**
+		 * @return true if the item is in a tree.
+		 */
+		boolean isIndexed() {
+			return leaf != null;
+		}
+	}
+
+	/**
+	 * The result of a search.
+	 */
+	static class Neighbor<DATA> {
+		final Item<DATA> item;
+		final double distance;
+
+		Neighbor(Item<DATA> item, double distance) {
+			this.item = item;
+			this.distance = distance;
+		}
+	}
+
+	private static class Node<DATA> {
+		/** The data from which the distances bounded by the radius are measured */
+		final DATA pivot;
+		double radius;
+		Node<DATA> parent;
+		/** The distance to the pivot of the parent */
+		double parentDistance;
+		/** Null for leaves */
+		final List<Node<DATA>> children;
+		/** Null for internal nodes */
+		final List<Item<DATA>> items;
+
+		Node(DATA pivot, boolean leaf) {
+			this.pivot = pivot;
+			this.children = leaf ? null : new ArrayList<Node<DATA>>();
+			this.items = leaf ? new ArrayList<Item<DATA>>() : null;
+		}
+
+		boolean isLeaf() {
+			return items != null;
+		}
+
+		int size() {
+			return isLeaf() ? items.size() : children.size();
+		}
+	}
+
+	/** A node, the smallest possible distance from the query to its items and the distance from the query to its pivot */
+	private static class NodeBound<DATA> implements Comparable<NodeBound<DATA>> {
+		final Node<DATA> node;
+		final double bound;
+		final double pivotDistance;
+
+		NodeBound(Node<DATA> node, double bound, double pivotDistance) {
+			this.node = node;
+			this.bound = bound;
+			this.pivotDistance = pivotDistance;
+		}
+
+		@Override
+		public int compareTo(NodeBound<DATA> o) {
+			return Double.compare(bound, o.bound);
+		}
+	}
+
+	private final IDistanceFunction<DATA> distFunc;
+	private final boolean isMetric;
+	private final int nodeCapacity;
+	private Node<DATA> root = null;
+	private int size = 0;
+	/** The number of items when the tree was last rebuilt */
+	private int builtSize = 0;
+	/** The number of items added and removed since the tree was last rebuilt */
+	private int changes = 0;
+
+	/**
+	 * @param distFunc the distance between items.
+	 * @param nodeCapacity the maximum number of children of an internal node or items of a leaf.  Must be at least 2.
+	 */
+	BallTreeIndex(IDistanceFunction<DATA> distFunc, int nodeCapacity) {
+		if (nodeCapacity < 2)
+			throw new IllegalArgumentException("nodeCapacity must be at least 2");
+		this.distFunc = distFunc;
+		this.isMetric = VPTreeIndex.isMetric(distFunc);
+		this.nodeCapacity = nodeCapacity;
+	}
+
+	/**
+	 * @return the number of items in the tree.
+	 */
+	int size() {
+		return size;
+	}
+
+	/**
+	 * @return the items in the tree, in the order of the leaves holding them so that items near each other in the list are usually near each other in the tree.
+	 */
+	List<Item<DATA>> getItems() {
+		List<Item<DATA>> items = new ArrayList<Item<DATA>>(size);
+		if (root != null)
+			collectItems(root, items);
+		return items;
+	}
+
+	/**
+	 * Add the item to the tree.
+	 * @param item an item that is not in any tree.
+	 */
+	void add(Item<DATA> item) {
+		if (item.leaf != null)
+			throw new IllegalArgumentException("Item is already in a tree");
+		DATA data = item.data;
+		if (root == null)
+			root = new Node<DATA>(data, true);
+		if (!isMetric) {
+			// Searches scan all the items, so keep them in a single leaf.
+			root.items.add(item);
+			item.leaf = root;
+			size++;
+			return;
+		}
+		Node<DATA> node = root;
+		double distance = distFunc.distance(data, node.pivot);
+		while (true) {
+			if (distance > node.radius)
+				node.radius = distance;
+			if (node.isLeaf())
+				break;
+			Node<DATA> nearestChild = null;
+			double nearestDistance = Double.POSITIVE_INFINITY;
+			for (Node<DATA> child : node.children) {
+				double d = distFunc.distance(data, child.pivot);
+				if (nearestChild == null || d < nearestDistance) {
+					nearestChild = child;
+					nearestDistance = d;
+				}
+			}
+			node = nearestChild;
+			distance = nearestDistance;
+		}
+		node.items.add(item);
+		item.leaf = node;
+		item.leafDistance = distance;
+		size++;
+		if (node.size() > nodeCapacity)
+			split(node);
+		changed();
+	}
+
+	/**
+	 * Remove the item from the tree.
+	 * @param item an item in this tree.
+	 */
+	void remove(Item<DATA> item) {
+		Node<DATA> node = item.leaf;
+		if (node == null)
+			throw new IllegalArgumentException("Item is not in a tree");
+		node.items.remove(item);
+		item.leaf = null;
+		size--;
+		// Remove nodes left empty.
+		while (node.size() == 0) {
+			Node<DATA> parent = node.parent;
+			if (parent == null) {
+				root = null;
+				break;
+			}
+			parent.children.remove(node);
+			node = parent;
+		}
+		if (isMetric)
+			changed();
+	}
+
+	/**
+	 * Rebuild the tree if it has changed enough since it was last built.
+	 */
+	private void changed() {
+		changes++;
+		if (changes > Math.max(builtSize, 2 * nodeCapacity)) {
+			List<Item<DATA>> items = new ArrayList<Item<DATA>>(size);
+			if (root != null)
+				collectItems(root, items);
+			root = items.isEmpty() ? null : build(items, 0, items.size());
+			builtSize = size;
+			changes = 0;
+		}
+	}
+
+	private static <DATA> void collectItems(Node<DATA> node, List<Item<DATA>> items) {
+		if (node.isLeaf()) {
+			items.addAll(node.items);
+		} else {
+			for (Node<DATA> child : node.children)
+				collectItems(child, items);
+		}
+	}
+
+	/**
+	 * Build the node over the given range of items.  
+	 * Internal nodes have two children, over the halves of the items ordered along the direction between two items that are far apart.
+	 * @return never null.
+	 */
+	private Node<DATA> build(List<Item<DATA>> items, int start, int end) {
+		// The middle item, which after the ordering done by the parent is near the center of the items, is used as the pivot of a leaf. 
+		DATA pivot = items.get((start + end) / 2).data;
+		Node<DATA> node;
+		if (end - start <= nodeCapacity) {
+			node = new Node<DATA>(pivot, true);
+			for (int i=start ; i<end ; i++) {
+				Item<DATA> item = items.get(i);
+				double d = distFunc.distance(item.data, pivot);
+				node.items.add(item);
+				item.leaf = node;
+				item.leafDistance = d;
+				if (d > node.radius)
+					node.radius = d;
+			}
+			return node;
+		}
+
+		List<Item<DATA>> range = items.subList(start, end);
+		List<DATA> data = new ArrayList<DATA>(range.size());
+		for (Item<DATA> item : range)
+			data.add(item.data);
+		DATA end1 = data.get(farthest(data, pivot));
+		// Keep the distances to the first end, which are needed again to order the items.
+		final double[] positions = new double[range.size()];
+		int farthest = 0;
+		for (int i=0 ; i<positions.length ; i++) {
+			positions[i] = distFunc.distance(data.get(i), end1);
+			if (positions[i] > positions[farthest])
+				farthest = i;
+		}
+		DATA end2 = data.get(farthest);
+		Integer[] order = new Integer[range.size()];
+		// The middle item is only central along the direction used by the parent, so use the item that is nearest to being between the two ends instead.
+		double pivotBound = Double.POSITIVE_INFINITY;
+		for (int i=0 ; i<positions.length ; i++) {
+			DATA d = data.get(i);
+			double d1 = positions[i];
+			double d2 = distFunc.distance(d, end2);
+			positions[i] = d1 - d2;
+			order[i] = i;
+			if (Math.max(d1, d2) < pivotBound) {
+				pivot = d;
+				pivotBound = Math.max(d1, d2);
+			}
+		}
+		node = new Node<DATA>(pivot, false);
+		for (DATA d : data) {
+			double distance = distFunc.distance(d, pivot);
+			if (distance > node.radius)
+				node.radius = distance;
+		}
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer i1, Integer i2) {
+				return Double.compare(positions[i1], positions[i2]);
+			}
+		});
+		List<Item<DATA>> sorted = new ArrayList<Item<DATA>>(range.size());
+		for (Integer i : order)
+			sorted.add(range.get(i));
+		for (int i=0 ; i<sorted.size() ; i++)
+			range.set(i, sorted.get(i));
+
+		int middle = (start + end) / 2;
+		for (Node<DATA> child : new Node[] { build(items, start, middle), build(items, middle, end) }) {
+			node.children.add(child);
+			child.parent = node;
+			child.parentDistance = distFunc.distance(child.pivot, pivot);
+		}
+		return node;
+	}
+
+	/**
+	 * Split the node into two nodes with the same parent, then split the parent if it now has too many children.
+	 */
+	private void split(Node<DATA> node) {
+		int count = node.size();
+		List<DATA> pivots = new ArrayList<DATA>(count);
+		for (int i=0 ; i<count ; i++)
+			pivots.add(node.isLeaf() ? node.items.get(i).data : node.children.get(i).pivot);
+
+		// Use the two pivots that are approximately farthest apart. 
+		int first = farthest(pivots, node.pivot);
+		int second = farthest(pivots, pivots.get(first));
+		if (second == first)	// All the same, so just make sure both nodes are used.
+			second = (first + 1) % count;
+		Node<DATA> node1 = new Node<DATA>(pivots.get(first), node.isLeaf());
+		Node<DATA> node2 = new Node<DATA>(pivots.get(second), node.isLeaf());
+		for (int i=0 ; i<count ; i++) {
+			DATA pivot = pivots.get(i);
+			double d1 = distFunc.distance(pivot, node1.pivot);
+			double d2 = distFunc.distance(pivot, node2.pivot);
+			Node<DATA> target = i == first || (i != second && d1 <= d2) ? node1 : node2;
+			double d = target == node1 ? d1 : d2;
+			if (node.isLeaf()) {
+				Item<DATA> item = node.items.get(i);
+				target.items.add(item);
+				item.leaf = target;
+				item.leafDistance = d;
+			} else {
+				Node<DATA> child = node.children.get(i);
+				target.children.add(child);
+				child.parent = target;
+				child.parentDistance = d;
+				d += child.radius;
+			}
+			if (d > target.radius)
+				target.radius = d;
+		}
+
+		Node<DATA> parent = node.parent;
+		if (parent == null) {
+			parent = new Node<DATA>(node.pivot, false);
+			parent.radius = node.radius;
+			root = parent;
+		} else {
+			parent.children.remove(node);
+		}
+		for (Node<DATA> n : new Node[] { node1, node2 }) {
+			parent.children.add(n);
+			n.parent = parent;
+			n.parentDistance = distFunc.distance(n.pivot, parent.pivot);
+		}
+		if (parent.size() > nodeCapacity)
+			split(parent);
+	}
+
+	/**
+	 * @return the index of the data farthest from the given data.
+	 */
+	private int farthest(List<DATA> data, DATA from) {
+		int farthest = 0;
+		double farthestDistance = -1;
+		for (int i=0 ; i<data.size() ; i++) {
+			double d = distFunc.distance(data.get(i), from);
+			if (d > farthestDistance) {
+				farthest = i;
+				farthestDistance = d;
+			}
+		}
+		return farthest;
+	}
+
+	/**
+	 * Find the item nearest to the query.
+	 * Among items at the same distance, the one with the lowest id is found.
+	 * @param query
+	 * @param exclude if not null, then an item to ignore, usually the one holding the query.
+	 * @param excludeZero if true, then ignore items at a distance of 0 from the query.
+	 * @return null if there are no items other than the ignored ones.
+	 */
+	Neighbor<DATA> nearest(DATA query, Item<DATA> exclude, boolean excludeZero) {
+		return nearest(query, exclude, excludeZero, Double.POSITIVE_INFINITY);
+	}
+
+	/**
+	 * Find the item nearest to the query within the given distance.
+	 * Among items at the same distance, the one with the lowest id is found.
+	 * @param query
+	 * @param exclude if not null, then an item to ignore, usually the one holding the query.
+	 * @param excludeZero if true, then ignore items at a distance of 0 from the query.
+	 * @param maxDistance the largest distance of interest.  Searches are faster when this is small.
+	 * @return null if there are no items within maxDistance other than the ignored ones.
+	 */
+	Neighbor<DATA> nearest(DATA query, Item<DATA> exclude, boolean excludeZero, double maxDistance) {
+		if (root == null)
+			return null;
+		if (!isMetric)
+			return scan(query, exclude, excludeZero, maxDistance);
+		Item<DATA> nearest = null;
+		double nearestDistance = maxDistance;
+		PriorityQueue<NodeBound<DATA>> queue = new PriorityQueue<NodeBound<DATA>>();
+		double rootDistance = distFunc.distance(query, root.pivot);
+		queue.add(new NodeBound<DATA>(root, bound(rootDistance, root.radius), rootDistance));
+		while (!queue.isEmpty()) {
+			NodeBound<DATA> nb = queue.poll();
+			if (nb.bound > nearestDistance)
+				break;
+			Node<DATA> node = nb.node;
+			double pivotDistance = nb.pivotDistance;
+			if (node.isLeaf()) {
+				for (Item<DATA> item : node.items) {
+					if (item == exclude || bound(pivotDistance, item.leafDistance, 0) > nearestDistance)
+						continue;
+					double d = distFunc.distance(query, item.data);
+					if (excludeZero && d == 0)
+						continue;
+					if (d < nearestDistance || (d == nearestDistance && (nearest == null || item.id < nearest.id))) {
+						nearest = item;
+						nearestDistance = d;
+					}
+				}
+			} else {
+				for (Node<DATA> child : node.children) {
+					if (bound(pivotDistance, child.parentDistance, child.radius) > nearestDistance)
+						continue;
+					double d = distFunc.distance(query, child.pivot);
+					double bound = bound(d, child.radius);
+					if (bound <= nearestDistance)
+						queue.add(new NodeBound<DATA>(child, bound, d));
+				}
+			}
+		}
+		return nearest == null ? null : new Neighbor<DATA>(nearest, nearestDistance);
+	}
+
+	/**
+	 * Find the nearest item by computing the distance to all of them, which is used when the distance function is not a metric 
+	 * and the bounds can not skip any nodes.
+	 * @see #nearest(Object, Item, boolean, double)
+	 */
+	private Neighbor<DATA> scan(DATA query, Item<DATA> exclude, boolean excludeZero, double maxDistance) {
+		Item<DATA> nearest = null;
+		double nearestDistance = maxDistance;
+		for (Item<DATA> item : root.items) {
+			if (item == exclude)
+				continue;
+			double d = distFunc.distance(query, item.data);
+			if (excludeZero && d == 0)
+				continue;
+			if (d < nearestDistance || (d == nearestDistance && (nearest == null || item.id < nearest.id))) {
+				nearest = item;
+				nearestDistance = d;
+			}
+		}
+		return nearest == null ? null : new Neighbor<DATA>(nearest, nearestDistance);
+	}
+
+	/**
+	 * @return the smallest possible distance from the query to the items within the radius of a pivot at the given distance from the query.
+	 */
+	private double bound(double pivotDistance, double radius) {
+		return Math.max(0, pivotDistance - radius - BOUND_TOLERANCE * (pivotDistance + radius));
+	}
+
+	/**
+	 * Get the bound on the distance from the query to the items of a node or an item using only the distances already known.
+	 * @param pivotDistance the distance from the query to the pivot of the parent.
+	 * @param parentDistance the distance from the node or item to the pivot of the parent.
+	 * @param radius the radius of the node, or 0 for an item.
+	 * @return the smallest possible distance from the query to the items.
+	 */
+	private double bound(double pivotDistance, double parentDistance, double radius) {
+		return Math.max(0, Math.abs(pivotDistance - parentDistance) - radius - BOUND_TOLERANCE * (pivotDistance + parentDistance + radius));
+	}
+
+}
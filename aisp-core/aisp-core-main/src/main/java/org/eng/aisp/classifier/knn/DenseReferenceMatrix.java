@@ -0,0 +1,286 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.knn;
+
+import java.util.List;
+
+import org.eng.aisp.classifier.knn.BaseKNNDataSummary.LabeledData;
+import org.eng.aisp.classifier.knn.merge.CosineDistanceMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.EuclidianDistanceMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.L1DistanceMergeKNNFunc;
+
+/**
+ * Holds the reference vectors of a KNN data summary in a single row-major array so that the distances from a query
+ * vector to all references can be computed without the boxing, pointer chasing and virtual calls of the general
+ * {@link IDistanceFunction} path.
+ * <p>
+ * The kernels reproduce the arithmetic of {@link org.eng.aisp.util.VectorUtils#euclidianDistance(double[], double[])},
+ * {@link org.eng.aisp.util.VectorUtils#l1Distance(double[], double[])} and {@link org.eng.aisp.util.VectorUtils#cosineDistance(double[], double[])}
+ * exactly.  The loops are unrolled, but accumulate into a single sum in the original order, so the distances are bit-for-bit
+ * the same as those produced by the distance functions.
+ * <p>
+ * When the references are a {@link MappedReferenceList}, they are left in its buffer and copied in blocks of rows into a scratch 
+ * array as the distances are computed, so that the same kernels are used without holding the references on the heap.
+ * <p>
+ * Instances are immutable and obtained through {@link #newMatrix(IDistanceFunction, List)}.
+ */
+class DenseReferenceMatrix {
+
+	private enum Kernel { EUCLIDIAN, L1, COSINE };
+
+	/** The number of rows of a mapped matrix copied to the heap at a time */
+	private final static int MAPPED_BLOCK_ROWS = 256;
+
+	private final Kernel kernel;
+	/** Number of reference vectors */
+	private final int rows;
+	/** Length of each reference vector */
+	private final int columns;
+	/** The reference vectors, one after the other, or null if mapped */
+	private final double[] matrix;
+	/** The mapped reference vectors, or null if on the heap */
+	private final MappedReferenceList mapped;
+	/** The L2 norm of each reference vector, only used by the cosine kernel */
+	private final double[] norms;
+
+	private DenseReferenceMatrix(Kernel kernel, int rows, int columns, double[] matrix, MappedReferenceList mapped, double[] norms) {
+		this.kernel = kernel;
+		this.rows = rows;
+		this.columns = columns;
+		this.matrix = matrix;
+		this.mapped = mapped;
+		this.norms = norms;
+	}
+
+	/**
+	 * Get the kernel that reproduces the given distance function.
+	 * @param distFunc
+	 * @return null if the distance function is not one of those with a kernel.
+	 */
+	private static Kernel getKernel(IDistanceFunction<?> distFunc) {
+		if (distFunc == null)
+			return null;
+		// Require the exact class so that a subclass overriding distance() is not bypassed.
+		else if (distFunc.getClass() == EuclidianDistanceMergeKNNFunc.class)
+			return Kernel.EUCLIDIAN;
+		else if (distFunc.getClass() == L1DistanceMergeKNNFunc.class)
+			return Kernel.L1;
+		else if (distFunc.getClass() == CosineDistanceMergeKNNFunc.class)
+			return Kernel.COSINE;
+		else
+			return null;
+	}
+
+	/**
+	 * @param distFunc
+	 * @return true if {@link #newMatrix(IDistanceFunction, List)} has a kernel for the distance function, which is then able to compute
+	 * the distances to the references of a {@link MappedReferenceList} without copying each of them.
+	 */
+	static boolean hasKernel(IDistanceFunction<?> distFunc) {
+		return getKernel(distFunc) != null;
+	}
+
+	/**
+	 * Create the dense matrix of the given reference data if the distance function has a dense kernel.
+	 * @param distFunc
+	 * @param data the reference data.
+	 * @return null if the distance function is not one of those with a kernel or the data are not all double[] of the same length.
+	 */
+	static DenseReferenceMatrix newMatrix(IDistanceFunction<?> distFunc, List<? extends LabeledData<?>> data) {
+		Kernel kernel = getKernel(distFunc);
+		if (kernel == null || data == null || data.isEmpty())
+			return null;
+		if (data instanceof MappedReferenceList)
+			return newMatrix(kernel, (MappedReferenceList)data);
+
+		int rows = data.size();
+		int columns = -1;
+		for (LabeledData<?> ld : data) {
+			Object d = ld.getData();
+			if (!(d instanceof double[]))
+				return null;
+			int len = ((double[])d).length;
+			if (columns < 0)
+				columns = len;
+			else if (columns != len)
+				return null;
+		}
+		if ((long)rows * columns > Integer.MAX_VALUE)
+			return null;
+
+		double[] matrix = new double[rows * columns];
+		double[] norms = kernel == Kernel.COSINE ? new double[rows] : null;
+		for (int i=0 ; i<rows ; i++) {
+			double[] row = (double[])data.get(i).getData();
+			System.arraycopy(row, 0, matrix, i * columns, columns);
+			if (norms != null)
+				norms[i] = norm(row, 0, columns);
+		}
+		return new DenseReferenceMatrix(kernel, rows, columns, matrix, null, norms);
+	}
+
+	/**
+	 * Create a matrix that reads the references from the buffer of the given list.
+	 * @param kernel
+	 * @param data
+	 * @return never null.
+	 */
+	private static DenseReferenceMatrix newMatrix(Kernel kernel, MappedReferenceList data) {
+		int rows = data.size();
+		int columns = data.getColumns();
+		double[] norms = null;
+		if (kernel == Kernel.COSINE) {
+			norms = new double[rows];
+			double[] block = newBlock(rows, columns);
+			for (int start=0 ; start<rows ; start += MAPPED_BLOCK_ROWS) {
+				int end = Math.min(rows, start + MAPPED_BLOCK_ROWS);
+				data.copyRows(start, end, block);
+				for (int i=start ; i<end ; i++)
+					norms[i] = norm(block, (i - start) * columns, columns);
+			}
+		}
+		return new DenseReferenceMatrix(kernel, rows, columns, null, data, norms);
+	}
+
+	private static double[] newBlock(int rows, int columns) {
+		return new double[Math.min(rows, MAPPED_BLOCK_ROWS) * columns];
+	}
+
+	/**
+	 * @return the number of reference vectors.
+	 */
+	int getRows() {
+		return rows;
+	}
+
+	/**
+	 * Determine if the given query can be compared to the references with {@link #distances(double[], int, int, double[])}.
+	 * @param query
+	 * @return true if the query is a vector of the same length as the references.
+	 */
+	boolean isCompatible(Object query) {
+		return query instanceof double[] && ((double[])query).length == columns;
+	}
+
+	/**
+	 * Compute the distance from the query to each reference in the given range of rows.
+	 * @param query a vector for which {@link #isCompatible(Object)} is true.
+	 * @param startRow first row to compute the distance to.
+	 * @param endRow 1 more than the last row to compute the distance to.
+	 * @param distances array indexed by row into which the distances are stored.
+	 */
+	void distances(double[] query, int startRow, int endRow, double[] distances) {
+		double queryNorm = kernel == Kernel.COSINE ? norm(query, 0, columns) : 0;
+		if (mapped == null) {
+			distances(query, queryNorm, matrix, 0, startRow, endRow, distances);
+			return;
+		}
+		double[] block = newBlock(endRow - startRow, columns);
+		for (int start=startRow ; start<endRow ; start += MAPPED_BLOCK_ROWS) {
+			int end = Math.min(endRow, start + MAPPED_BLOCK_ROWS);
+			mapped.copyRows(start, end, block);
+			distances(query, queryNorm, block, start, start, end, distances);
+		}
+	}
+
+	/**
+	 * Compute the distances to the given range of rows of the given array.
+	 * @param firstRow the row at the start of the array.
+	 */
+	private void distances(double[] query, double queryNorm, double[] m, int firstRow, int startRow, int endRow, double[] distances) {
+		switch (kernel) {
+			case EUCLIDIAN:
+				for (int i=startRow ; i<endRow ; i++)
+					distances[i] = euclidian(query, m, (i - firstRow) * columns, columns);
+				break;
+			case L1:
+				for (int i=startRow ; i<endRow ; i++)
+					distances[i] = l1(query, m, (i - firstRow) * columns, columns);
+				break;
+			case COSINE:
+				for (int i=startRow ; i<endRow ; i++)
+					distances[i] = cosine(query, queryNorm, m, (i - firstRow) * columns, norms[i], columns);
+				break;
+		}
+	}
+
+	private static double euclidian(double[] q, double[] m, int offset, int n) {
+		double sum2 = 0;
+		int i = 0;
+		for ( ; i + 3 < n ; i += 4) {
+			double d0 = q[i]   - m[offset + i];
+			double d1 = q[i+1] - m[offset + i + 1];
+			double d2 = q[i+2] - m[offset + i + 2];
+			double d3 = q[i+3] - m[offset + i + 3];
+			sum2 += d0 * d0;
+			sum2 += d1 * d1;
+			sum2 += d2 * d2;
+			sum2 += d3 * d3;
+		}
+		for ( ; i < n ; i++) {
+			double diff = q[i] - m[offset + i];
+			sum2 += diff * diff;
+		}
+		return Math.sqrt(sum2) / n;
+	}
+
+	private static double l1(double[] q, double[] m, int offset, int n) {
+		double sum = 0;
+		int i = 0;
+		for ( ; i + 3 < n ; i += 4) {
+			double d0 = q[i]   - m[offset + i];
+			double d1 = q[i+1] - m[offset + i + 1];
+			double d2 = q[i+2] - m[offset + i + 2];
+			double d3 = q[i+3] - m[offset + i + 3];
+			sum += Math.abs(d0);
+			sum += Math.abs(d1);
+			sum += Math.abs(d2);
+			sum += Math.abs(d3);
+		}
+		for ( ; i < n ; i++)
+			sum += Math.abs(q[i] - m[offset + i]);
+		return sum / n;
+	}
+
+	private static double cosine(double[] q, double qNorm, double[] m, int offset, double mNorm, int n) {
+		double dotProd = 0;
+		int i = 0;
+		for ( ; i + 3 < n ; i += 4) {
+			dotProd += q[i]   * m[offset + i];
+			dotProd += q[i+1] * m[offset + i + 1];
+			dotProd += q[i+2] * m[offset + i + 2];
+			dotProd += q[i+3] * m[offset + i + 3];
+		}
+		for ( ; i < n ; i++)
+			dotProd += q[i] * m[offset + i];
+		return Math.acos(dotProd / (qNorm * mNorm)) / Math.PI;
+	}
+
+	private static double norm(double[] v, int offset, int n) {
+		double sum = 0;
+		int i = 0;
+		for ( ; i + 3 < n ; i += 4) {
+			sum += v[offset + i]     * v[offset + i];
+			sum += v[offset + i + 1] * v[offset + i + 1];
+			sum += v[offset + i + 2] * v[offset + i + 2];
+			sum += v[offset + i + 3] * v[offset + i + 3];
+		}
+		for ( ; i < n ; i++)
+			sum += v[offset + i] * v[offset + i];
+		return Math.sqrt(sum);
+	}
+
+}
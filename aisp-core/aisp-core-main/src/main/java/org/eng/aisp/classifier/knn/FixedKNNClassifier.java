@@ -328,4 +328,20 @@ public class FixedKNNClassifier  extends AbstractFixedFeatureExtractingClassifie
 		return this.primaryTrainingLabel;
 	}
 
+	double getMaxDistAmplifyFactor() {
+		return maxDistAmplifyFactor;
+	}
+
+	INearestNeighborFunction<double[]> getNearestNeighborFunction() {
+		return nnFunc;
+	}
+
+	KNNDataSummaryClassifier<double[]> getDataSummary() {
+		return dataSummary;
+	}
+
+	FeatureGramNormalizer getNormalizer() {
+		return normalizer;
+	}
+
 }
@@ -0,0 +1,369 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.knn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+import org.eng.aisp.AISPException;
+import org.eng.aisp.AISPProperties;
+import org.eng.aisp.classifier.knn.BallTreeIndex.Neighbor;
+
+/**
+ * A vector summarizer that maintains the summary one labeled vector at a time instead of periodically shrinking it by comparing all pairs
+ * of vectors, so that the time to summarize n vectors grows much more slowly than n squared when the vectors have a low intrinsic dimension.
+ * <p>
+ * A {@link BallTreeIndex} for each label is used to find the nearest vector of the same label already in the summary. 
+ * If it is within the merge threshold, then the new vector is merged into it, otherwise the new vector is added to the summary.
+ * While the summary is larger than its maximum size, the closest pair of vectors of the same label is merged. To find it, each vector is queued 
+ * with the distance to its nearest vector of the same label, which is only searched for once the summary needs to shrink so that summaries that
+ * stay within their maximum size do not pay for it.  Entries made stale by earlier merges are refreshed when they reach the head of the queue
+ * and the queue is compacted whenever the stale entries outnumber the vectors in the summary.
+ * Merges use the same weighted average as {@link KNNVectorSummarizer}, vectors of different labels are never merged 
+ * and the summary keeps at least one vector for each label.
+ * <p>
+ * The nearest neighbor distances used to compute {@link #getLowerBoundDelta()} and {@link #getMaxDistBetweenSameLabel()} are also found through the indexes.
+ * The indexes are only able to skip vectors when the distance function is a metric (see {@link VPTreeIndex#isMetric(IDistanceFunction)}), 
+ * otherwise they do a linear scan.  The indexes are not serialized and are rebuilt from the summary when first needed.
+ */
+public class IncrementalKNNVectorSummarizer extends KNNVectorSummarizer {
+
+	private static final long serialVersionUID = 5016862715390270553L;
+
+	/** Name of aisp.properties property (or system property) that defines the distance within which a new vector is merged into the nearest one of the same label */
+	public static final String MERGE_THRESHOLD_PROPERTY_NAME = "classifiers.nn.incremental.merge_threshold";
+	public static final double DEFAULT_MERGE_THRESHOLD = AISPProperties.instance().getProperty(MERGE_THRESHOLD_PROPERTY_NAME, 0.0);
+
+	private final double mergeThreshold;
+
+	/** Holds the indexes and merge queue.  Built from the summary when null */
+	private transient SummaryIndex summaryIndex = null;
+	
+	/**
+	 * A vector in the summary.
+	 */
+	private static class Entry extends BallTreeIndex.Item<double[]> {
+		final String label;
+		final int weight;
+		/** The position in {@link IncrementalKNNVectorSummarizer#listOfLabeledData} */
+		int position;
+
+		Entry(LabeledData<double[]> ld, int weight, long id) {
+			super(ld.getData(), id);
+			this.label = ld.getLabel();
+			this.weight = weight;
+		}
+	}
+
+	/**
+	 * A pair of vectors of the same label that may be merged.
+	 */
+	private static class MergeCandidate implements Comparable<MergeCandidate> {
+		final Entry entry;
+		/** The nearest vector to entry when this candidate was created */
+		final Entry nearest;
+		/** The distance weighted as in Ward's method so that vectors which already summarize many others are merged less readily */
+		final double cost;
+
+		MergeCandidate(Entry entry, Entry nearest, double distance) {
+			this.entry = entry;
+			this.nearest = nearest;
+			double w1 = entry.weight, w2 = nearest.weight;
+			this.cost = distance * Math.sqrt(w1 * w2 / (w1 + w2));
+		}
+
+		@Override
+		public int compareTo(MergeCandidate o) {
+			int r = Double.compare(cost, o.cost);
+			if (r == 0)
+				r = Long.compare(entry.id, o.entry.id);
+			return r;
+		}
+	}
+
+	/**
+	 * The indexes over the summary and the queue of merge candidates.
+	 */
+	private class SummaryIndex {
+		final Map<String, BallTreeIndex<double[]>> labelIndexes = new HashMap<String, BallTreeIndex<double[]>>();
+		final List<Entry> entries = new ArrayList<Entry>();
+		final PriorityQueue<MergeCandidate> mergeQueue = new PriorityQueue<MergeCandidate>();
+		/** Vectors added to the summary that have not yet been queued as merge candidates */
+		final List<Entry> unqueued = new ArrayList<Entry>();
+		long nextId = 0;
+
+		SummaryIndex() {
+			for (int i=0 ; i<listOfLabeledData.size() ; i++) {
+				Integer weight = i < labeledDataWeights.size() ? labeledDataWeights.get(i) : null;
+				Entry entry = new Entry(listOfLabeledData.get(i), weight == null ? 1 : weight, nextId++);
+				entry.position = i;
+				entries.add(entry);
+				getLabelIndex(entry.label).add(entry);
+			}
+			unqueued.addAll(entries);
+			// Make the weights parallel to the data if they were not.
+			labeledDataWeights = new ArrayList<Integer>(entries.size());
+			for (Entry entry : entries)
+				labeledDataWeights.add(entry.weight);
+		}
+
+		BallTreeIndex<double[]> getLabelIndex(String label) {
+			BallTreeIndex<double[]> index = labelIndexes.get(label);
+			if (index == null) {
+				index = new BallTreeIndex<double[]>(distFunc, BallTreeIndex.DEFAULT_NODE_CAPACITY);
+				labelIndexes.put(label, index);
+			}
+			return index;
+		}
+
+		/**
+		 * Add the vector to the summary, merging it into the nearest vector of the same label if within the threshold.
+		 */
+		void add(String label, double[] data) {
+			if (mergeThreshold >= 0) {
+				Neighbor<double[]> nearest = getLabelIndex(label).nearest(data, null, false, mergeThreshold);
+				if (nearest != null) {
+					merge((Entry)nearest.item, new Entry(new LabeledData<double[]>(label, data), 1, nextId++));
+					return;
+				}
+			}
+			addUnqueued(insert(new LabeledData<double[]>(label, data), 1));
+		}
+
+		/**
+		 * Merge the closest pairs of vectors of the same label until the summary is no larger than the given size or there is nothing left to merge.
+		 */
+		void shrink(int maxSize) {
+			while (entries.size() > maxSize) {
+				queueUnqueued();
+				MergeCandidate candidate = mergeQueue.poll();
+				if (candidate == null)
+					break;
+				if (!candidate.entry.isIndexed()) 
+					continue;
+				if (!candidate.nearest.isIndexed()) {
+					// The nearest vector was merged since the candidate was queued, so look again.
+					queueNearest(candidate.entry);
+					continue;
+				}
+				merge(candidate.entry, candidate.nearest);
+			}
+		}
+
+		/**
+		 * Replace the given vectors, at least the first of which is in the summary, with their weighted average.
+		 */
+		private void merge(Entry e1, Entry e2) {
+			remove(e1);
+			if (e2.isIndexed())
+				remove(e2);
+			double[] combined = combineFeatures(e1.weight, e1.getData(), e2.weight, e2.getData());
+			addUnqueued(insert(new LabeledData<double[]>(e1.label, combined), e1.weight + e2.weight));
+		}
+
+		private Entry insert(LabeledData<double[]> ld, int weight) {
+			Entry entry = new Entry(ld, weight, nextId++);
+			entry.position = entries.size();
+			entries.add(entry);
+			listOfLabeledData.add(ld);
+			labeledDataWeights.add(weight);
+			getLabelIndex(entry.label).add(entry);
+			return entry;
+		}
+
+		/**
+		 * Remove the entry from the summary by moving the last entry into its position.
+		 */
+		private void remove(Entry entry) {
+			labelIndexes.get(entry.label).remove(entry);
+			int position = entry.position;
+			int last = entries.size() - 1;
+			Entry lastEntry = entries.remove(last);
+			LabeledData<double[]> lastData = listOfLabeledData.remove(last);
+			Integer lastWeight = labeledDataWeights.remove(last);
+			if (position != last) {
+				entries.set(position, lastEntry);
+				listOfLabeledData.set(position, lastData);
+				labeledDataWeights.set(position, lastWeight);
+				lastEntry.position = position;
+			}
+		}
+
+		/**
+		 * Remember to queue the entry as a merge candidate when the summary next needs to shrink.
+		 */
+		private void addUnqueued(Entry entry) {
+			unqueued.add(entry);
+			// Drop those merged since they were added so that the list stays no larger than the summary.
+			if (unqueued.size() > 2 * entries.size()) {
+				List<Entry> live = new ArrayList<Entry>(entries.size());
+				for (Entry e : unqueued) {
+					if (e.isIndexed())
+						live.add(e);
+				}
+				unqueued.clear();
+				unqueued.addAll(live);
+			}
+		}
+
+		/**
+		 * Queue the vectors added since this was last called that are still in the summary as merge candidates.
+		 */
+		private void queueUnqueued() {
+			for (Entry entry : unqueued) {
+				if (entry.isIndexed())
+					queueNearest(entry);
+			}
+			unqueued.clear();
+		}
+
+		/**
+		 * Queue the entry as a merge candidate with its nearest vector of the same label, if there is one.
+		 */
+		private void queueNearest(Entry entry) {
+			Neighbor<double[]> nearest = labelIndexes.get(entry.label).nearest(entry.getData(), entry, false);
+			if (nearest == null)
+				return;
+			mergeQueue.add(new MergeCandidate(entry, (Entry)nearest.item, nearest.distance));
+			// Each vector has at most one live candidate, so the rest are for vectors merged since they were queued.
+			if (mergeQueue.size() > 2 * entries.size()) {
+				List<MergeCandidate> live = new ArrayList<MergeCandidate>(entries.size());
+				for (MergeCandidate candidate : mergeQueue) {
+					if (candidate.entry.isIndexed())
+						live.add(candidate);
+				}
+				mergeQueue.clear();
+				mergeQueue.addAll(live);
+			}
+		}
+
+		/**
+		 * Find the distance from each vector to its nearest vector of any label, ignoring those at a distance of 0.
+		 */
+		double[] computeMinDistances() {
+			double[] minDistances = new double[entries.size()];
+			// Go through the vectors in the order of the leaves holding them so that consecutive searches visit the same parts of the indexes.
+			for (BallTreeIndex<double[]> labelIndex : labelIndexes.values()) {
+				for (BallTreeIndex.Item<double[]> item : labelIndex.getItems()) {
+					Entry entry = (Entry)item;
+					// Search the entry's own label first since it is usually nearest, and only look for nearer vectors of the other labels.
+					Neighbor<double[]> nearest = labelIndex.nearest(entry.getData(), entry, true);
+					double minDistance = nearest == null ? Double.MAX_VALUE : nearest.distance;
+					for (BallTreeIndex<double[]> index : labelIndexes.values()) {
+						if (index == labelIndex)
+							continue;
+						nearest = index.nearest(entry.getData(), null, true, minDistance);
+						if (nearest != null && nearest.distance < minDistance)
+							minDistance = nearest.distance;
+					}
+					minDistances[entry.position] = minDistance == Double.MAX_VALUE ? 0 : minDistance;
+				}
+			}
+			return minDistances;
+		}
+	}
+
+	/**
+	 * Use the {@link #DEFAULT_MERGE_THRESHOLD}.
+	 * @see #IncrementalKNNVectorSummarizer(int, IDistanceFunction, double, boolean, double)
+	 */
+	public IncrementalKNNVectorSummarizer(int maxListSize, IDistanceFunction<double[]> distFunc, double stdDevFactor, 
+			boolean enableOutlierDetection) {
+		this(maxListSize, distFunc, stdDevFactor, enableOutlierDetection, DEFAULT_MERGE_THRESHOLD);
+	}
+
+	/**
+	 * @param maxListSize the maximum number of vectors to keep in the summary.
+	 * @param distFunc the function used to compute the distance between vectors.
+	 * @param stdDevFactor see {@link AbstractKNNDataSummarizer}.
+	 * @param enableOutlierDetection
+	 * @param mergeThreshold the distance at or within which a new vector is merged into the nearest vector of the same label.
+	 * Use a negative value to only merge when the summary exceeds its maximum size. 
+	 */
+	public IncrementalKNNVectorSummarizer(int maxListSize, IDistanceFunction<double[]> distFunc, double stdDevFactor, 
+			boolean enableOutlierDetection, double mergeThreshold) {
+		super(maxListSize, distFunc, stdDevFactor, enableOutlierDetection, DEFAULT_REDUCTION_RATIO);
+		this.mergeThreshold = mergeThreshold;
+	}
+
+	private SummaryIndex getSummaryIndex() {
+		if (summaryIndex == null)
+			summaryIndex = new SummaryIndex();
+		return summaryIndex;
+	}
+
+	/**
+	 * Add the given labeled vector to the summary, merging it with the nearest vector of the same label if within the merge threshold, and
+	 * then merging the closest vectors of the same label while the summary is larger than its maximum size.
+	 * @param labelValue
+	 * @param data
+	 * @throws AISPException
+	 */
+	@Override
+	public void mergeData(String labelValue, double[] data) throws AISPException {
+		SummaryIndex index = getSummaryIndex();
+		index.add(labelValue, data);
+		if (index.entries.size() > maxListSize)
+			index.shrink(maxListSize);
+		setDirty();
+	}
+
+	@Override
+	protected double[] computeMinDistances() {
+		return getSummaryIndex().computeMinDistances();
+	}
+
+	@Override
+	public void reset() {
+		super.reset();
+		summaryIndex = null;
+	}
+
+	/**
+	 * @return the distance at or within which a new vector is merged into the nearest vector of the same label.
+	 */
+	public double getMergeThreshold() {
+		return mergeThreshold;
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = super.hashCode();
+		long temp;
+		temp = Double.doubleToLongBits(mergeThreshold);
+		result = prime * result + (int) (temp ^ (temp >>> 32));
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!super.equals(obj))
+			return false;
+		if (!(obj instanceof IncrementalKNNVectorSummarizer))
+			return false;
+		IncrementalKNNVectorSummarizer other = (IncrementalKNNVectorSummarizer) obj;
+		if (Double.doubleToLongBits(mergeThreshold) != Double.doubleToLongBits(other.mergeThreshold))
+			return false;
+		return true;
+	}
+
+}
@@ -66,6 +66,7 @@ public class KNNClassifier extends AbstractFixableFeatureExtractingUpdatableClas
 
 	public static final boolean DEFAULT_NORMALIZE_WHEN_MERGING = false;
 	public static final boolean DEFAULT_ENABLE_OUTLIER_DETECTION = true;
+	public static final boolean DEFAULT_INCREMENTAL_SUMMARIZATION = false;
 	
 	public static final INearestNeighborFunction<double[]> DEFAULT_KNN_FUNCTION = new LpDistanceMergeKNNFunc(DEFAULT_NORMALIZE_FEATURES) ;
 	
@@ -78,6 +79,9 @@ public class KNNClassifier extends AbstractFixableFeatureExtractingUpdatableClas
 	protected final boolean normalizeFeatures; 
 
 	private final INearestNeighborFunction<double[]> nnFunc;
+
+	/** If not null, then the fixed classifier finds approximate nearest neighbors using these parameters */
+	private final LSHParameters approximateSearch;
 	
 	/**
 	 * 
@@ -115,13 +119,56 @@ public class KNNClassifier extends AbstractFixableFeatureExtractingUpdatableClas
 	public KNNClassifier(ITrainingWindowTransform<double[]> transforms,
 			IFeatureGramDescriptor<double[], double[]> fge, INearestNeighborFunction<double[]> nnFunc,
 			double stddevFactor, boolean enableOutlierDetection, int maxListSize, boolean normalizeFeatures) {
+		this(transforms, fge, nnFunc, stddevFactor, enableOutlierDetection, maxListSize, normalizeFeatures, null);
+	}
+
+	/**
+	 * 
+	 * @param transforms
+	 * @param fge if null, then use the {@link #DEFAULT_FEATUREGRAM_EXTRACTOR} defined in this class.
+	 * @param nnFunc
+	 * @param stddevFactor
+	 * @param enableOutlierDetection
+	 * @param maxListSize
+	 * @param normalizeFeatures 
+	 * @param approximateSearch if not null, then the trained classifier finds approximate nearest neighbors using locality-sensitive hashing with these parameters. 
+	 * This is only supported for cosine and Euclidian distance functions, otherwise an exact search is used. 
+	 */
+	public KNNClassifier(ITrainingWindowTransform<double[]> transforms,
+			IFeatureGramDescriptor<double[], double[]> fge, INearestNeighborFunction<double[]> nnFunc,
+			double stddevFactor, boolean enableOutlierDetection, int maxListSize, boolean normalizeFeatures, LSHParameters approximateSearch) {
+		this(transforms, fge, nnFunc, stddevFactor, enableOutlierDetection, maxListSize, normalizeFeatures, approximateSearch, DEFAULT_INCREMENTAL_SUMMARIZATION);
+	}
+
+	/**
+	 * 
+	 * @param transforms
+	 * @param fge if null, then use the {@link #DEFAULT_FEATUREGRAM_EXTRACTOR} defined in this class.
+	 * @param nnFunc
+	 * @param stddevFactor
+	 * @param enableOutlierDetection
+	 * @param maxListSize
+	 * @param normalizeFeatures 
+	 * @param approximateSearch if not null, then the trained classifier finds approximate nearest neighbors using locality-sensitive hashing with these parameters. 
+	 * This is only supported for cosine and Euclidian distance functions, otherwise an exact search is used. 
+	 * @param incrementalSummarization if true, then use an {@link IncrementalKNNVectorSummarizer} to keep the training data within maxListSize, 
+	 * otherwise a {@link KNNVectorSummarizer}.
+	 */
+	public KNNClassifier(ITrainingWindowTransform<double[]> transforms,
+			IFeatureGramDescriptor<double[], double[]> fge, INearestNeighborFunction<double[]> nnFunc,
+			double stddevFactor, boolean enableOutlierDetection, int maxListSize, boolean normalizeFeatures, LSHParameters approximateSearch,
+			boolean incrementalSummarization) {
 //		// preshuffle training data so that merging is not biased by order of data.
 		super(true, transforms, fge == null ? DEFAULT_FEATUREGRAM_EXTRACTOR : fge, false,false);  	
 		this.nnFunc = nnFunc;
+		this.approximateSearch = approximateSearch;
 		this.stdDevFactor = stddevFactor;
 		this.maxDistAmplifyFactor=1.0; //fixed for now
 //		this.maxListSize = maxListSize;
-		dataSummary = new KNNVectorSummarizer(maxListSize, nnFunc, stdDevFactor, 
+		if (incrementalSummarization)
+			dataSummary = new IncrementalKNNVectorSummarizer(maxListSize, nnFunc, stdDevFactor, enableOutlierDetection);
+		else
+			dataSummary = new KNNVectorSummarizer(maxListSize, nnFunc, stdDevFactor, 
 				enableOutlierDetection, DEFAULT_REDUCTION_RATIO);
 		this.normalizeFeatures = normalizeFeatures;
 	}
@@ -202,7 +249,7 @@ public class KNNClassifier extends AbstractFixableFeatureExtractingUpdatableClas
 		
 		
 		KNNDataSummaryClassifier<double[]> newDS = new KNNDataSummaryClassifier<double[]>(this.nnFunc, this.dataSummary.listOfLabeledData,
-				dataSummary.getLowerBoundDelta(), dataSummary.getMaxDistBetweenSameLabel(), dataSummary.isEnableOutlierDetection());
+				dataSummary.getLowerBoundDelta(), dataSummary.getMaxDistBetweenSameLabel(), dataSummary.isEnableOutlierDetection(), approximateSearch);
 
 		return new FixedKNNClassifier(this.primaryTrainingLabel, featureGramDescriptors,
 				this.maxDistAmplifyFactor, this.nnFunc, newDS, normalizer);
@@ -221,13 +268,14 @@ public class KNNClassifier extends AbstractFixableFeatureExtractingUpdatableClas
 						? featureGramDescriptors.subList(0, Math.min(featureGramDescriptors.size(), maxLen)) : null)
 				+ ", classifier=" + classifier + ", nnFunc=" + nnFunc + ", stdDevFactor=" + stdDevFactor
 				+ ", maxDistAmplifyFactor=" + maxDistAmplifyFactor + ", lowerBoundDelta=" + lowerBoundDelta
-				+ ", dataSummary=" + dataSummary + "]";
+				+ ", dataSummary=" + dataSummary + ", approximateSearch=" + approximateSearch + "]";
 	}
 
 	@Override
 	public int hashCode() {
 		final int prime = 31;
 		int result = super.hashCode();
+		result = prime * result + ((approximateSearch == null) ? 0 : approximateSearch.hashCode());
 		result = prime * result + ((dataSummary == null) ? 0 : dataSummary.hashCode());
 		long temp;
 		temp = Double.doubleToLongBits(lowerBoundDelta);
@@ -250,6 +298,11 @@ public class KNNClassifier extends AbstractFixableFeatureExtractingUpdatableClas
 		if (!(obj instanceof KNNClassifier))
 			return false;
 		KNNClassifier other = (KNNClassifier) obj;
+		if (approximateSearch == null) {
+			if (other.approximateSearch != null)
+				return false;
+		} else if (!approximateSearch.equals(other.approximateSearch))
+			return false;
 		if (dataSummary == null) {
 			if (other.dataSummary != null)
 				return false;
@@ -29,6 +29,8 @@ public class KNNClassifierBuilder extends AbstractClassifierBuilder<double[], do
 	protected boolean enableOutlierDetection = KNNClassifier.DEFAULT_ENABLE_OUTLIER_DETECTION;
 	protected boolean normalizeFeatures = KNNClassifier.DEFAULT_NORMALIZE_FEATURES;
 	protected INearestNeighborFunction<double[]> knnFunc = KNNClassifier.DEFAULT_KNN_FUNCTION;
+	protected LSHParameters approximateSearch = null;
+	protected boolean incrementalSummarization = KNNClassifier.DEFAULT_INCREMENTAL_SUMMARIZATION;
 
 	protected KNNClassifierBuilder() { 
 		super(KNNClassifier.DEFAULT_FEATURE_EXTRACTOR, KNNClassifier.DEFAULT_FEATURE_PROCESSOR);
@@ -44,7 +46,8 @@ public class KNNClassifierBuilder extends AbstractClassifierBuilder<double[], do
 			throw new IllegalArgumentException("Only one feature gram extractor is supported");
 		return new KNNClassifier(this.getTransform(),
 				this.getFeatureGramExtractors().get(0),
-				this.knnFunc, this.stdDevFactor, this.enableOutlierDetection, this.maxListSize, this.normalizeFeatures) ;
+				this.knnFunc, this.stdDevFactor, this.enableOutlierDetection, this.maxListSize, this.normalizeFeatures, this.approximateSearch,
+				this.incrementalSummarization) ;
 	}
 	
 	public KNNClassifierBuilder setStdDevFactor(double stdDevFactor) {
@@ -78,5 +81,25 @@ public class KNNClassifierBuilder extends AbstractClassifierBuilder<double[], do
 		this.knnFunc = knnFunc;
 		return this;
 	}
+
+	/**
+	 * Enable approximate nearest neighbor search in the trained classifier using locality-sensitive hashing.
+	 * This is only supported with cosine and Euclidian distance functions, otherwise an exact search is used.
+	 * @param approximateSearch the parameters of the search, or null to use an exact search, which is the default.
+	 */
+	public KNNClassifierBuilder setApproximateSearch(LSHParameters approximateSearch) {
+		this.approximateSearch = approximateSearch;
+		return this;
+	}
+
+	/**
+	 * Choose how the training data is summarized to stay within the max list size.
+	 * @param incrementalSummarization if true, then add the training data to the summary one feature at a time using an {@link IncrementalKNNVectorSummarizer},
+	 * which scales better with the amount of training data.  The default is false, which periodically shrinks the summary using a {@link KNNVectorSummarizer}.
+	 */
+	public KNNClassifierBuilder setIncrementalSummarization(boolean incrementalSummarization) {
+		this.incrementalSummarization = incrementalSummarization;
+		return this;
+	}
 	
 }
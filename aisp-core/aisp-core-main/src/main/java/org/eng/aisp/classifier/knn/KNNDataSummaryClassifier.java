@@ -15,9 +15,12 @@
  *******************************************************************************/
 package org.eng.aisp.classifier.knn;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -26,6 +29,7 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.atomic.AtomicInteger;
 
+import org.eng.aisp.AISPProperties;
 import org.eng.aisp.classifier.Classification;
 import org.eng.aisp.classifier.Classification.LabelValue;
 import org.eng.aisp.util.ArrayIndexComparator;
@@ -39,9 +43,79 @@ public class KNNDataSummaryClassifier<DATA extends Serializable> extends BaseKNN
 	
 	private static final long serialVersionUID = 5030910693361467215L;
 
+	/** Name of caa.properties property (or system property) that defines the minimum number of references for which a vantage-point tree is used to find the nearest neighbors. A negative value disables the tree. */
+	public final static String VPTREE_MIN_SIZE_PROPERTY_NAME = "classifiers.nn.vptree.min_size";
+	public final static int DEFAULT_VPTREE_MIN_SIZE = AISPProperties.instance().getProperty(VPTREE_MIN_SIZE_PROPERTY_NAME, 2048);
+	private final static long VPTREE_SEED = 1;
+
+	/** 
+	 * Built on first use by {@link #getIndex()} if the distance function is a metric, including after deserialization since it is not serialized.
+	 * {@link KNNModelCodecs} writes it with the references so that it need not be rebuilt when the model is loaded.
+	 */
+	private transient VPTreeIndex<DATA> vpTree;
+	private transient volatile boolean vpTreeInitialized = false;
+	/** The minimum number of references for which {@link #vpTree} is built.  Set to {@link #DEFAULT_VPTREE_MIN_SIZE} on deserialization. */
+	private transient int vpTreeMinSize;
+	/** A search of the tree gives up after computing the distance to this fraction of the references, and then a linear scan is done */
+	private final static int VPTREE_MAX_SEARCH_FRACTION = 16;
+	/** The number of consecutive searches that gave up, after which the tree is only tried every {@link #VPTREE_RETRY_INTERVAL} queries */
+	private final static int VPTREE_MAX_MISSES = 8;
+	private final static int VPTREE_RETRY_INTERVAL = 64;
+	private transient volatile int vpTreeMisses = 0;
+
+	/** If not null, then use locality-sensitive hashing to find approximate nearest neighbors */
+	private final LSHParameters approximateSearch;
+	/** Built when this instance is created if approximateSearch is not null and supports the distance function */
+	private LSHIndex lshIndex;
+	private transient volatile boolean lshIndexInitialized = false;
+
+	/** Created on first use by {@link #getDenseMatrix()} */
+	private transient DenseReferenceMatrix denseMatrix;
+	private transient volatile boolean denseMatrixInitialized = false;
+
+	/** Created on first use by {@link #getReferenceLabels()} */
+	private transient ReferenceLabels referenceLabels;
+	private transient volatile boolean referenceLabelsInitialized = false;
+
+	/** 
+	 * The number of nearest references kept by the bounded heap in {@link #nearestPerLabel(int[], double[])} per label, 
+	 * beyond which the nearest reference of each label is found by a scan of all the distances. 
+	 */
+	private final static int NEAREST_PER_LABEL_HEAP_FACTOR = 8;
+	private final static int NEAREST_MIN_HEAP_SIZE = 32;
+
 	public KNNDataSummaryClassifier(IDistanceFunction<DATA> distFunc, List<LabeledData<DATA>> data, 
 			double lowerBoundDelta, double maxDistBetweenSameLabel, boolean enableOutlierDetection) {
+		this(distFunc, data, lowerBoundDelta, maxDistBetweenSameLabel, enableOutlierDetection, null);
+	}
+
+	/**
+	 * @param approximateSearch if not null, then find approximate nearest neighbors using locality-sensitive hashing with these parameters. 
+	 * This is only supported for cosine and Euclidian distance, otherwise an exact search is used.
+	 */
+	public KNNDataSummaryClassifier(IDistanceFunction<DATA> distFunc, List<LabeledData<DATA>> data, 
+			double lowerBoundDelta, double maxDistBetweenSameLabel, boolean enableOutlierDetection, LSHParameters approximateSearch) {
+		this(distFunc, data, lowerBoundDelta, maxDistBetweenSameLabel, enableOutlierDetection, approximateSearch, DEFAULT_VPTREE_MIN_SIZE);
+	}
+
+	/**
+	 * @param vpTreeMinSize the minimum number of references for which a vantage-point tree is built if the distance function is a metric. 
+	 * A negative value disables the tree.
+	 */
+	KNNDataSummaryClassifier(IDistanceFunction<DATA> distFunc, List<LabeledData<DATA>> data, 
+			double lowerBoundDelta, double maxDistBetweenSameLabel, boolean enableOutlierDetection, int vpTreeMinSize) {
+		this(distFunc, data, lowerBoundDelta, maxDistBetweenSameLabel, enableOutlierDetection, null, vpTreeMinSize);
+	}
+
+	private KNNDataSummaryClassifier(IDistanceFunction<DATA> distFunc, List<LabeledData<DATA>> data, 
+			double lowerBoundDelta, double maxDistBetweenSameLabel, boolean enableOutlierDetection, LSHParameters approximateSearch, int vpTreeMinSize) {
 		super(distFunc, data, lowerBoundDelta, maxDistBetweenSameLabel, enableOutlierDetection);
+		this.approximateSearch = approximateSearch;
+		if (approximateSearch != null) {
+			this.lshIndex = LSHIndex.newIndex(distFunc, listOfLabeledData, approximateSearch);
+			this.lshIndexInitialized = true;
+		}
+		this.vpTreeMinSize = vpTreeMinSize;
 //		this.listOfLabeledData.addAll(data);
 //		this.lowerBoundDelta = lowerBoundDelta;
 //		this.maxDistBetweenSameLabel = maxDistBetweenSameLabel;
@@ -50,38 +124,18 @@ public class KNNDataSummaryClassifier<DATA extends Serializable> extends BaseKNN
 
 	public Classification classify(String trainingLabel, DATA data) {
 		
-//		Double[] distances = computeDistancesSerial(data);
-		Double[] distances = computeDistancesParallel(data);
-		if (distances.length == 0)
-			throw new RuntimeException("unexpected zero length distances");
-		
-		ArrayIndexComparator comparator = new ArrayIndexComparator(distances);
-		Integer[] indexes = comparator.createIndexArray();   //this contains indexes of sorted distances
-		Arrays.sort(indexes, comparator);	// Can't use parallelSort() until we get off of 1.7 JVM
-		
-		int minIndex = indexes[0];
-		double minDist = distances[minIndex];
+		// Find the nearest reference for each label, which are the only neighbors used below.
+		Neighbors neighbors = findNeighbors(data, true);
+		int minIndex = neighbors.indexes[0];
+		double minDist = neighbors.distances[0];
 		
 		
 		//find min. distances for all labels
 		List<String> labels = new ArrayList<String>();
 		List<Double> minDistAllLabels = new ArrayList<Double>();
-		
-		for (int i=0; i<indexes.length; i++) {
-			String thisLabel = this.listOfLabeledData.get(indexes[i]).getLabel();
-			
-			boolean labelExists = false;
-			for (String l : labels) {
-				if (l.equals(thisLabel)) {
-					labelExists = true;
-					break;
-				}
-			}
-			
-			if (labelExists == false) {
-				labels.add(thisLabel);
-				minDistAllLabels.add(distances[indexes[i]]);
-			}
+		for (int i=0; i<neighbors.indexes.length; i++) {
+			labels.add(this.listOfLabeledData.get(neighbors.indexes[i]).getLabel());
+			minDistAllLabels.add(neighbors.distances[i]);
 		}
 		
 		//softmax computation
@@ -150,26 +204,414 @@ public class KNNDataSummaryClassifier<DATA extends Serializable> extends BaseKNN
 
 
 	/**
+	 * The nearest reference of each label to a query. 
+	 */
+	private static class Neighbors {
+		/** The index of the nearest reference of each label, ordered by increasing distance and then by increasing index */ 
+		final int[] indexes;
+		/** The distance to each of the references in {@link #indexes} */
+		final double[] distances;
+
+		/**
+		 * @param indexes the index of the nearest reference of each label in any order.
+		 * @param distances the distance to each of the references in indexes.
+		 */
+		Neighbors(int[] indexes, final double[] distances) {
+			// Order the labels by their min distance and then by index, which is the order in which a stable sort 
+			// of all the distances would have first seen them. 
+			Integer[] order = new Integer[indexes.length];
+			for (int i=0 ; i<order.length ; i++)
+				order[i] = i;
+			final int[] unsortedIndexes = indexes; 
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer i1, Integer i2) {
+					int r = Double.compare(distances[i1], distances[i2]);
+					return r != 0 ? r : Integer.compare(unsortedIndexes[i1], unsortedIndexes[i2]); 
+				}
+			});
+			this.indexes = new int[order.length];
+			this.distances = new double[order.length];
+			for (int i=0 ; i<order.length ; i++) {
+				this.indexes[i] = unsortedIndexes[order[i]];
+				this.distances[i] = distances[order[i]];
+			}
+		}
+	}
+
+	/**
+	 * The labels of the references as small integers, so that selecting the nearest reference of each label does not hash the label strings.
+	 */
+	private static class ReferenceLabels {
+		/** The label id of each reference */
+		final int[] ids;
+		/** The number of distinct labels */
+		final int count;
+
+		ReferenceLabels(List<? extends LabeledData<?>> references) {
+			Map<String, Integer> labelIDs = new HashMap<String, Integer>();
+			ids = new int[references.size()];
+			for (int i=0 ; i<ids.length ; i++) {
+				String label = references.get(i).getLabel();
+				Integer id = labelIDs.get(label);
+				if (id == null) {
+					id = labelIDs.size();
+					labelIDs.put(label, id);
+				}
+				ids[i] = id;
+			}
+			count = labelIDs.size();
+		}
+	}
+
+	/**
+	 * Get the label ids of the references, creating them on first use.
+	 * @return never null.
+	 */
+	private ReferenceLabels getReferenceLabels() {
+		if (!referenceLabelsInitialized) {
+			synchronized (this) {
+				if (!referenceLabelsInitialized) {
+					referenceLabels = new ReferenceLabels(listOfLabeledData);
+					referenceLabelsInitialized = true;
+				}
+			}
+		}
+		return referenceLabels;
+	}
+
+	/**
+	 * Find the nearest reference for each label.
+	 * If approximate search is enabled, then only the candidates from the locality-sensitive hash are searched and some labels may not be found. 
+	 * Otherwise, the vantage-point tree is used if available, or the distances to all references are computed. 
+	 * Either way, this is a selection instead of a sort of all the distances.  
 	 * @param data
-	 * @return
+	 * @param parallel if true and the distances to all references are needed, then compute them in parallel.
+	 * @return never null.
 	 */
-	protected Double[] computeDistancesSerial(DATA data) {
-		Double[] distances = new Double[this.listOfLabeledData.size()];
-		for (int i=0; i<this.listOfLabeledData.size(); i++) {
-			DATA reference = this.listOfLabeledData.get(i).getData();
-			distances[i] = distFunc.distance(data, reference);
+	private Neighbors findNeighbors(DATA data, boolean parallel) {
+		LSHIndex lsh = getLSHIndex();
+		if (lsh != null && lsh.isCompatible(data)) {
+			int[] candidates = lsh.candidates((double[])data);
+			if (candidates.length > 0) {
+				double[] distances = new double[candidates.length];
+				for (int i=0 ; i<candidates.length ; i++)
+					distances[i] = distFunc.distance(data, this.listOfLabeledData.get(candidates[i]).getData());
+				return nearestPerLabel(candidates, distances);
+			}
+			// Otherwise, nothing hashed near the query so search all references.
+		}
+
+		VPTreeIndex<DATA> index = getIndex();
+		if (index != null && index.isCompatible(data)) {
+			// After repeatedly exceeding the search budget, only try the tree occasionally in case the queries change. 
+			int misses = vpTreeMisses;
+			if (misses < VPTREE_MAX_MISSES || misses % VPTREE_RETRY_INTERVAL == 0) {
+				int[] nearest = new int[index.getLabelCount()];
+				double[] nearestDistances = new double[nearest.length];
+				int maxDistances = listOfLabeledData.size() / VPTREE_MAX_SEARCH_FRACTION;
+				if (index.nearestPerLabel(data, distFunc, listOfLabeledData, nearest, nearestDistances, maxDistances)) {
+					vpTreeMisses = 0;
+					return new Neighbors(nearest, nearestDistances);
+				}
+			}
+			vpTreeMisses = misses + 1;	// Races are harmless.
 		}
+
+		double[] distances = parallel ? computeDistancesParallel(data) : computeDistancesSerial(data);
+		if (distances.length == 0)
+			throw new RuntimeException("unexpected zero length distances");
+		return nearestPerLabel(null, distances);
+	}
+
+	/**
+	 * Find the nearest of the given references for each label.
+	 * The k nearest references are selected with a bounded heap, with k a multiple of the number of labels. 
+	 * If they include all the labels of the given references, then the first of each label in the order of increasing distance and then 
+	 * increasing index is its nearest reference, otherwise the nearest reference of each label is found by a scan of all the distances.
+	 * @param candidates the indexes of the references, or null for all references. 
+	 * @param distances the distance to each of the candidates.
+	 * @return never null.
+	 */
+	private Neighbors nearestPerLabel(int[] candidates, double[] distances) {
+		ReferenceLabels labels = getReferenceLabels();
+		int k = Math.max(NEAREST_MIN_HEAP_SIZE, NEAREST_PER_LABEL_HEAP_FACTOR * labels.count);
+		if (k < distances.length) {
+			int[] heap = selectNearest(candidates, distances, k);
+			// Visit the selected references in order by taking them from the heap, which leaves the farthest at the end.
+			for (int size=heap.length-1 ; size>0 ; size--) {
+				int farthest = heap[0];
+				heap[0] = heap[size];
+				siftDown(heap, size, 0, candidates, distances);
+				heap[size] = farthest;
+			}
+			int[] nearest = new int[labels.count];
+			Arrays.fill(nearest, -1);
+			int found = 0;
+			for (int i=0 ; i<heap.length && found<labels.count ; i++) {
+				int label = labels.ids[referenceIndex(candidates, heap[i])];
+				if (nearest[label] < 0) {
+					nearest[label] = heap[i];
+					found++;
+				}
+			}
+			if (found == labels.count) 
+				return newNeighbors(candidates, distances, nearest);
+			// Otherwise, there are labels farther than the k nearest, or not among the candidates, so scan them all.
+		}
+
+		int[] nearest = new int[labels.count];
+		Arrays.fill(nearest, -1);
+		int found = 0;
+		for (int i=0; i<distances.length; i++) {
+			int label = labels.ids[referenceIndex(candidates, i)];
+			if (nearest[label] < 0) {
+				nearest[label] = i;
+				found++;
+			} else if (Double.compare(distances[i], distances[nearest[label]]) < 0) {	// Keep the lower index on ties
+				nearest[label] = i;
+			}
+		}
+		if (found < labels.count) {	// Only the labels of the candidates.
+			int[] foundNearest = new int[found];
+			found = 0;
+			for (int i=0 ; i<nearest.length ; i++) {
+				if (nearest[i] >= 0)
+					foundNearest[found++] = nearest[i];
+			}
+			nearest = foundNearest;
+		}
+		return newNeighbors(candidates, distances, nearest);
+	}
+
+	/**
+	 * @param candidates the indexes of the references, or null for all references. 
+	 * @param distances the distance to each of the candidates.
+	 * @param nearest the positions in the distances of the nearest reference of each label.  Modified to hold the indexes of the references. 
+	 */
+	private static Neighbors newNeighbors(int[] candidates, double[] distances, int[] nearest) {
+		double[] nearestDistances = new double[nearest.length];
+		for (int i=0 ; i<nearest.length ; i++) {
+			nearestDistances[i] = distances[nearest[i]];
+			nearest[i] = referenceIndex(candidates, nearest[i]);
+		}
+		return new Neighbors(nearest, nearestDistances);
+	}
+
+	private static int referenceIndex(int[] candidates, int position) {
+		return candidates == null ? position : candidates[position];
+	}
+
+	/**
+	 * Select the k nearest references with a bounded heap whose root is the farthest of those selected so far.
+	 * References are ordered by increasing distance and then increasing index.
+	 * @param candidates the indexes of the references, or null for all references. 
+	 * @param distances the distance to each of the candidates.
+	 * @param k less than the number of distances.
+	 * @return a heap of the positions in distances of the k nearest references.
+	 */
+	private static int[] selectNearest(int[] candidates, double[] distances, int k) {
+		int[] heap = new int[k];
+		for (int i=0 ; i<k ; i++) {
+			// Sift up.
+			int child = i;
+			while (child > 0) {
+				int parent = (child - 1) / 2;
+				if (!isFarther(i, heap[parent], candidates, distances))
+					break;
+				heap[child] = heap[parent];
+				child = parent;
+			}
+			heap[child] = i;
+		}
+		for (int i=k ; i<distances.length ; i++) {
+			if (isFarther(heap[0], i, candidates, distances)) {
+				heap[0] = i;
+				siftDown(heap, k, 0, candidates, distances);
+			}
+		}
+		return heap;
+	}
+
+	private static void siftDown(int[] heap, int size, int parent, int[] candidates, double[] distances) {
+		int position = heap[parent];
+		while (true) {
+			int child = 2 * parent + 1;
+			if (child >= size)
+				break;
+			if (child + 1 < size && isFarther(heap[child + 1], heap[child], candidates, distances))
+				child++;
+			if (!isFarther(heap[child], position, candidates, distances))
+				break;
+			heap[parent] = heap[child];
+			parent = child;
+		}
+		heap[parent] = position;
+	}
+
+	/**
+	 * @return true if the reference at position p1 in distances sorts after the one at p2 in the order of increasing distance and then increasing index.
+	 */
+	private static boolean isFarther(int p1, int p2, int[] candidates, double[] distances) {
+		int r = Double.compare(distances[p1], distances[p2]);
+		if (r != 0)
+			return r > 0;
+		return referenceIndex(candidates, p1) > referenceIndex(candidates, p2);
+	}
+
+	/**
+	 * Restore an instance written by {@link KNNModelCodecs} with the indexes it was written with.
+	 * @param data used as the references of this instance rather than copied, so that a {@link MappedReferenceList} is not loaded onto the heap.
+	 * @param vpTree may be null, in which case it is created when first needed as for a deserialized instance.
+	 * @param lshIndex may be null, in which case it is created when first needed as for a deserialized instance.
+	 */
+	KNNDataSummaryClassifier(IDistanceFunction<DATA> distFunc, List<LabeledData<DATA>> data, double lowerBoundDelta, double maxDistBetweenSameLabel, 
+			boolean enableOutlierDetection, LSHParameters approximateSearch, VPTreeIndex<DATA> vpTree, LSHIndex lshIndex) {
+		super(distFunc, null, lowerBoundDelta, maxDistBetweenSameLabel, enableOutlierDetection);
+		this.listOfLabeledData = data;
+		this.approximateSearch = approximateSearch;
+		this.vpTree = vpTree;
+		this.vpTreeInitialized = vpTree != null;
+		this.vpTreeMinSize = DEFAULT_VPTREE_MIN_SIZE;
+		this.lshIndex = lshIndex;
+		this.lshIndexInitialized = lshIndex != null;
+	}
+
+	/**
+	 * @return the vantage-point tree without creating it, or null if there is none.
+	 */
+	VPTreeIndex<DATA> peekIndex() {
+		return vpTree;
+	}
+
+	/**
+	 * @return the locality-sensitive hash without creating it, or null if there is none.
+	 */
+	LSHIndex peekLSHIndex() {
+		return lshIndex;
+	}
+
+	/**
+	 * Get the vantage-point tree over the reference data, creating it on first use unless it was restored by {@link KNNModelCodecs}.
+	 * @return null if the distance function is not a metric, there are too few references or the data are not supported by {@link VPTreeIndex}.
+	 */
+	VPTreeIndex<DATA> getIndex() {
+		if (!vpTreeInitialized) {
+			synchronized (this) {
+				if (!vpTreeInitialized) {
+					if (vpTree == null)
+						vpTree = newIndex(vpTreeMinSize);
+					vpTreeInitialized = true;
+				}
+			}
+		}
+		return vpTree;
+	}
+
+	private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+		in.defaultReadObject();
+		vpTreeMinSize = DEFAULT_VPTREE_MIN_SIZE;
+	}
+
+	private VPTreeIndex<DATA> newIndex(int minSize) {
+		if (minSize < 0 || listOfLabeledData.size() < minSize || !VPTreeIndex.isMetric(distFunc))
+			return null;
+		return VPTreeIndex.newIndex(distFunc, listOfLabeledData, VPTreeIndex.DEFAULT_LEAF_SIZE, VPTREE_SEED);
+	}
+
+	/**
+	 * Get the locality-sensitive hash over the reference data, creating it if it was not serialized with this instance.
+	 * @return null if approximate search is not enabled, or the distance function or data are not supported by {@link LSHIndex}. 
+	 */
+	private LSHIndex getLSHIndex() {
+		if (approximateSearch == null)
+			return null;
+		if (!lshIndexInitialized) {
+			synchronized (this) {
+				if (!lshIndexInitialized) {
+					if (lshIndex == null)
+						lshIndex = LSHIndex.newIndex(distFunc, listOfLabeledData, approximateSearch);
+					lshIndexInitialized = true;
+				}
+			}
+		}
+		return lshIndex;
+	}
+
+	/**
+	 * @return the parameters of the approximate search, or null if an exact search is used.
+	 */
+	public LSHParameters getApproximateSearch() {
+		return approximateSearch;
+	}
+
+	/**
+	 * @return true if a vantage-point tree is used to find the nearest references.
+	 */
+	boolean isIndexed() {
+		return getIndex() != null;
+	}
+
+	/**
+	 * Get the dense matrix of the reference data, creating it on first use.
+	 * @return null if the distance function or data are not supported by {@link DenseReferenceMatrix}.
+	 */
+	private DenseReferenceMatrix getDenseMatrix() {
+		if (!denseMatrixInitialized) {
+			synchronized (this) {
+				if (!denseMatrixInitialized) {
+					denseMatrix = DenseReferenceMatrix.newMatrix(distFunc, listOfLabeledData);
+					denseMatrixInitialized = true;
+				}
+			}
+		}
+		return denseMatrix;
+	}
+
+	/**
+	 * Compute the distances to the references in the given range.
+	 * @param data
+	 * @param matrix if not null and compatible with the data, then used to compute the distances.
+	 * @param start
+	 * @param end
+	 * @param distances
+	 */
+	private void computeDistances(DATA data, DenseReferenceMatrix matrix, int start, int end, double[] distances) {
+		if (matrix != null && matrix.isCompatible(data)) {
+			matrix.distances((double[])data, start, end, distances);
+		} else {
+			for (int i=start; i<end; i++) {
+				DATA reference = this.listOfLabeledData.get(i).getData();
+				distances[i] = distFunc.distance(data, reference);
+			}
+		}
+	}
+
+	/**
+	 * @param data
+	 * @return
+	 */
+	protected double[] computeDistancesSerial(DATA data) {
+		double[] distances = new double[this.listOfLabeledData.size()];
+		computeDistances(data, getDenseMatrix(), 0, distances.length, distances);
 		return distances;
 	}
 	
+	/**
+	 * Number of distances computed by a {@link ComputeDistance} each time it takes work from the shared index.
+	 */
+	private final static int DISTANCE_BLOCK_SIZE = 256;
+
 	private class ComputeDistance implements Callable<Object> {
 
 		private DATA data;
+		private DenseReferenceMatrix matrix;
 		private AtomicInteger sharedIndex;
-		private Double[] distances;
+		private double[] distances;
 
-		public ComputeDistance(DATA data, AtomicInteger sharedIndex, Double[] distances) {
+		public ComputeDistance(DATA data, DenseReferenceMatrix matrix, AtomicInteger sharedIndex, double[] distances) {
 			this.data = data;
+			this.matrix = matrix;
 			this.sharedIndex = sharedIndex;
 			this.distances = distances;
 		}
@@ -177,22 +619,27 @@ public class KNNDataSummaryClassifier<DATA extends Serializable> extends BaseKNN
 		@Override
 		public Object call() throws Exception {
 			while  (true) {
-				int myIndex = sharedIndex.getAndIncrement();
-				if (myIndex >= distances.length)
+				int start = sharedIndex.getAndAdd(DISTANCE_BLOCK_SIZE);
+				if (start >= distances.length)
 					break;	// done
-				DATA reference = KNNDataSummaryClassifier.this.listOfLabeledData.get(myIndex).getData();
-				distances[myIndex] = distFunc.distance(data, reference);
+				int end = Math.min(distances.length, start + DISTANCE_BLOCK_SIZE);
+				computeDistances(data, matrix, start, end, distances);
 			}
 			return null;
 		}
 		
 	}
-	protected Double[] computeDistancesParallel(DATA data) {
-		Double[] distances = new Double[this.listOfLabeledData.size()];
+	protected double[] computeDistancesParallel(DATA data) {
+		DenseReferenceMatrix matrix = getDenseMatrix();
+		int size = this.listOfLabeledData.size();
+		if (size <= DISTANCE_BLOCK_SIZE)
+			return computeDistancesSerial(data);
+		double[] distances = new double[size];
 		AtomicInteger sharedIndex = new AtomicInteger(0);
 		List<ComputeDistance> cdList = new ArrayList<ComputeDistance>();
-		for (int i=0 ; i<Runtime.getRuntime().availableProcessors(); i++) {
-			ComputeDistance cd = new ComputeDistance(data, sharedIndex, distances);
+		int tasks = Math.min(Runtime.getRuntime().availableProcessors(), (size + DISTANCE_BLOCK_SIZE - 1) / DISTANCE_BLOCK_SIZE);
+		for (int i=0 ; i<tasks; i++) {
+			ComputeDistance cd = new ComputeDistance(data, matrix, sharedIndex, distances);
 			cdList.add(cd);
 		}
 		ExecutorService executor = ExecutorUtil.getPrioritizingSharedService();
@@ -210,29 +657,17 @@ public class KNNDataSummaryClassifier<DATA extends Serializable> extends BaseKNN
 	
 			for (DATA freqComponents : data) {
 	//		freqComponentsList.parallelStream().map(freqComponents -> {
-				Double[] distances = new Double[this.listOfLabeledData.size()];
-				for (int i=0; i<this.listOfLabeledData.size(); i++) {
-					DATA reference = this.listOfLabeledData.get(i).getData();
-					distances[i] = distFunc.distance(freqComponents, reference);
-				}
-				
-				ArrayIndexComparator comparator = new ArrayIndexComparator(distances);
-				Integer[] indexes = comparator.createIndexArray();   //this contains indexes of sorted distances
-				Arrays.sort(indexes, comparator);
+				Neighbors neighbors = findNeighbors(freqComponents, false);
 				
-				int minIndex = indexes[0];
-				double minDist = distances[minIndex];
+				int minIndex = neighbors.indexes[0];
+				double minDist = neighbors.distances[0];
 	
 				String thisLabel = this.listOfLabeledData.get(minIndex).getLabel();
 				
+				// The second neighbor is the nearest reference with another label.
 				double distNearestOtherLabel = -1;
-				for (int i=0; i<indexes.length; i++) {
-					String comparingLabel = this.listOfLabeledData.get(indexes[i]).getLabel();
-					if (!thisLabel.equals(comparingLabel)) {
-						distNearestOtherLabel = distances[i];
-						break;
-					}
-				}
+				if (neighbors.indexes.length > 1) 
+					distNearestOtherLabel = neighbors.distances[1];
 				
 				if (distNearestOtherLabel < 0.00001) distNearestOtherLabel = 0.00001;
 				
@@ -291,4 +726,31 @@ public class KNNDataSummaryClassifier<DATA extends Serializable> extends BaseKNN
 			return new Classification(trainingLabel, rankedValues);
 		}
 
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = super.hashCode();
+		result = prime * result + ((approximateSearch == null) ? 0 : approximateSearch.hashCode());
+		return result;
+	}
+
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (!super.equals(obj))
+			return false;
+		if (!(obj instanceof KNNDataSummaryClassifier))
+			return false;
+		KNNDataSummaryClassifier other = (KNNDataSummaryClassifier) obj;
+		if (approximateSearch == null) {
+			if (other.approximateSearch != null)
+				return false;
+		} else if (!approximateSearch.equals(other.approximateSearch))
+			return false;
+		return true;
+	}
+
 }
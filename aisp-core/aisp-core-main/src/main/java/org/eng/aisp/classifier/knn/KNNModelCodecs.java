@@ -0,0 +1,290 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.knn;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eng.aisp.classifier.knn.BaseKNNDataSummary.LabeledData;
+import org.eng.aisp.feature.FeatureGramNormalizer;
+import org.eng.aisp.feature.IFeatureGramDescriptor;
+import org.eng.aisp.util.IModelCodec;
+import org.eng.aisp.util.ModelCodecInputStream;
+import org.eng.aisp.util.ModelCodecOutputStream;
+
+/**
+ * Provides the {@link IModelCodec} instances for the fixed KNN classifier and its data summary.
+ * The reference vectors of the summary are written as a single block of doubles with an index into the distinct labels for each,
+ * and its vantage-point tree and locality-sensitive hash are written as their arrays so that they are not rebuilt when read.
+ * <p>
+ * When read from a mapped file (see {@link org.eng.aisp.util.ModelCodecs#map(java.io.File)}) and the distance function has a 
+ * {@link DenseReferenceMatrix} kernel, the block of reference vectors is left in the file and read through a {@link MappedReferenceList}.
+ * Other distance functions read each reference on its own, so their references are copied to the heap.
+ */
+public class KNNModelCodecs {
+
+	/**
+	 * @return the codecs of the classes of this package.
+	 */
+	public static List<IModelCodec<?>> getCodecs() {
+		List<IModelCodec<?>> codecs = new ArrayList<IModelCodec<?>>();
+		codecs.add(new FixedKNNClassifierCodec());
+		codecs.add(new KNNDataSummaryCodec());
+		return codecs;
+	}
+
+	private static class FixedKNNClassifierCodec implements IModelCodec<FixedKNNClassifier> {
+
+		@Override
+		public Class<FixedKNNClassifier> getModelClass() {
+			return FixedKNNClassifier.class;
+		}
+
+		@Override
+		public int getVersion() {
+			return 1;
+		}
+
+		@Override
+		public void write(ModelCodecOutputStream ostream, FixedKNNClassifier model) throws IOException {
+			ostream.writeStringMap(model.getTags());
+			ostream.writeModelList(model.getFeatureGramDescriptors());
+			ostream.writeString(model.getTrainedLabel());
+			ostream.writeDouble(model.getMaxDistAmplifyFactor());
+			ostream.writeModel(model.getNearestNeighborFunction());
+			ostream.writeModel(model.getDataSummary());
+			ostream.writeModel(model.getNormalizer());
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public FixedKNNClassifier read(ModelCodecInputStream istream, int version) throws IOException, ClassNotFoundException {
+			Map<String,String> tags = istream.readStringMap();
+			List<IFeatureGramDescriptor<double[],double[]>> fgeList = istream.readModelList();
+			String primaryTrainingLabel = istream.readString();
+			double maxDistAmplifyFactor = istream.readDouble();
+			INearestNeighborFunction<double[]> nnFunc = (INearestNeighborFunction<double[]>)istream.readModel();
+			KNNDataSummaryClassifier<double[]> dataSummary = (KNNDataSummaryClassifier<double[]>)istream.readModel();
+			FeatureGramNormalizer normalizer = (FeatureGramNormalizer)istream.readModel();
+			FixedKNNClassifier model = new FixedKNNClassifier(primaryTrainingLabel, fgeList, maxDistAmplifyFactor, nnFunc, dataSummary, normalizer);
+			if (tags != null) {
+				for (Map.Entry<String,String> e : tags.entrySet())
+					model.addTag(e.getKey(), e.getValue());
+			}
+			return model;
+		}
+	}
+
+	/**
+	 * Writes the summary's references in one of the following layouts, chosen according to their data. 
+	 */
+	private enum DataLayout { 
+		/** double[] all of the same length, written as a single block */
+		MATRIX, 
+		/** double[] of different lengths, written one after the other with their lengths */
+		VECTORS, 
+		/** Anything else, written with Java serialization */
+		OBJECTS 
+	};
+
+	@SuppressWarnings("rawtypes")
+	private static class KNNDataSummaryCodec implements IModelCodec<KNNDataSummaryClassifier> {
+
+		@Override
+		public Class<KNNDataSummaryClassifier> getModelClass() {
+			return KNNDataSummaryClassifier.class;
+		}
+
+		/** Version 2 writes the MATRIX layout as a section that can be mapped */
+		@Override
+		public int getVersion() {
+			return 2;
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public void write(ModelCodecOutputStream ostream, KNNDataSummaryClassifier model) throws IOException {
+			ostream.writeModel(model.getDistFunc());
+			ostream.writeDouble(model.getLowerBoundDelta());
+			ostream.writeDouble(model.getMaxDistBetweenSameLabel());
+			ostream.writeBoolean(model.isEnableOutlierDetection());
+			LSHParameters lsh = model.getApproximateSearch();
+			ostream.writeBoolean(lsh != null);
+			if (lsh != null) {
+				ostream.writeInt(lsh.getTables());
+				ostream.writeInt(lsh.getHashesPerTable());
+				ostream.writeInt(lsh.getProbes());
+				ostream.writeDouble(lsh.getBucketWidth());
+				ostream.writeLong(lsh.getSeed());
+			}
+			List<LabeledData<?>> data = model.getListOfLabeledData();
+			writeData(ostream, data);
+			VPTreeIndex<?> vpTree = model.getIndex();	// Build it now, if not yet built, so that it is not built when loaded.
+			ostream.writeBoolean(vpTree != null);
+			if (vpTree != null)
+				vpTree.write(ostream);
+			LSHIndex lshIndex = model.peekLSHIndex();
+			ostream.writeBoolean(lshIndex != null);
+			if (lshIndex != null)
+				lshIndex.write(ostream);
+		}
+
+		private static void writeData(ModelCodecOutputStream ostream, List<LabeledData<?>> data) throws IOException {
+			int columns = -1;
+			DataLayout layout = DataLayout.MATRIX; 
+			for (LabeledData<?> ld : data) {
+				Object d = ld.getData();
+				if (!(d instanceof double[])) {
+					layout = DataLayout.OBJECTS;
+					break;
+				} 
+				int len = ((double[])d).length;
+				if (columns < 0)
+					columns = len;
+				else if (columns != len)
+					layout = DataLayout.VECTORS;
+			}
+			ostream.writeByte(layout.ordinal());
+			if (layout == DataLayout.OBJECTS) {
+				ostream.writeModel(new ArrayList<LabeledData<?>>(data));
+				return;
+			}
+
+			// Labels are written once and referenced by their index in each row.
+			List<String> labels = new ArrayList<String>();
+			Map<String,Integer> labelIndexes = new HashMap<String,Integer>();
+			int[] rowLabels = new int[data.size()];
+			for (int i=0 ; i<rowLabels.length ; i++) {
+				String label = data.get(i).getLabel();
+				Integer index = labelIndexes.get(label);
+				if (index == null) {
+					index = labels.size();
+					labels.add(label);
+					labelIndexes.put(label, index);
+				}
+				rowLabels[i] = index;
+			}
+			ostream.writeStringList(labels);
+			ostream.writeIntArray(rowLabels);
+			if (layout == DataLayout.MATRIX) {
+				double[][] rows = new double[data.size()][];
+				for (int i=0 ; i<rows.length ; i++)
+					rows[i] = (double[])data.get(i).getData();
+				ostream.writeDoubleSection(rows);
+			} else {
+				for (LabeledData<?> ld : data)
+					ostream.writeDoubleArray((double[])ld.getData());
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public KNNDataSummaryClassifier read(ModelCodecInputStream istream, int version) throws IOException, ClassNotFoundException {
+			IDistanceFunction distFunc = (IDistanceFunction)istream.readModel();
+			double lowerBoundDelta = istream.readDouble();
+			double maxDistBetweenSameLabel = istream.readDouble();
+			boolean enableOutlierDetection = istream.readBoolean();
+			LSHParameters lsh = null;
+			if (istream.readBoolean()) {
+				int tables = istream.readInt();
+				int hashesPerTable = istream.readInt();
+				int probes = istream.readInt();
+				double bucketWidth = istream.readDouble();
+				long seed = istream.readLong();
+				try {
+					lsh = new LSHParameters(tables, hashesPerTable, probes, bucketWidth, seed);
+				} catch (IllegalArgumentException e) {
+					throw new StreamCorruptedException("Invalid LSH parameters: " + e.getMessage());
+				}
+			}
+			List<LabeledData<Serializable>> data = readData(istream, version, distFunc);
+			VPTreeIndex<Serializable> vpTree = null;
+			if (istream.readBoolean())
+				vpTree = VPTreeIndex.read(istream, data.size());
+			LSHIndex lshIndex = null;
+			if (istream.readBoolean())
+				lshIndex = LSHIndex.read(istream, data.size());
+			return new KNNDataSummaryClassifier<Serializable>(distFunc, data, lowerBoundDelta, maxDistBetweenSameLabel, enableOutlierDetection, 
+					lsh, vpTree, lshIndex);
+		}
+
+		/**
+		 * Read the reference data.
+		 * @param istream
+		 * @param version
+		 * @param distFunc the distance function of the summary.  The references are only left in a mapped file if it has a {@link DenseReferenceMatrix} kernel,
+		 * since otherwise each reference would be copied out of the file for every distance computed to it.
+		 * @return never null.
+		 */
+		@SuppressWarnings("unchecked")
+		private static List<LabeledData<Serializable>> readData(ModelCodecInputStream istream, int version, IDistanceFunction<?> distFunc) throws IOException, ClassNotFoundException {
+			int layoutIndex = istream.readUnsignedByte();
+			if (layoutIndex >= DataLayout.values().length)
+				throw new StreamCorruptedException("Invalid data layout " + layoutIndex);
+			DataLayout layout = DataLayout.values()[layoutIndex];
+			if (layout == DataLayout.OBJECTS)
+				return (List<LabeledData<Serializable>>)istream.readModel();
+
+			List<String> labels = istream.readStringList();
+			int[] rowLabels = istream.readIntArray();
+			if (labels == null || rowLabels == null)
+				throw new StreamCorruptedException("Missing labels");
+			if (layout == DataLayout.MATRIX && version >= 2) {
+				if (istream.isMapped() && DenseReferenceMatrix.hasKernel(distFunc)) {
+					ModelCodecInputStream.DoubleSection section = istream.mapDoubleSection();
+					if (section.getRows() != rowLabels.length)
+						throw new StreamCorruptedException("Expected " + rowLabels.length + " rows, but found " + section.getRows());
+					List<?> mapped = new MappedReferenceList(labels, rowLabels, section.getValues(), section.getColumns());
+					return (List<LabeledData<Serializable>>)mapped;
+				}
+				double[][] rows = istream.readDoubleSection();
+				if (rows.length != rowLabels.length)
+					throw new StreamCorruptedException("Expected " + rowLabels.length + " rows, but found " + rows.length);
+				List<LabeledData<Serializable>> data = new ArrayList<LabeledData<Serializable>>(rowLabels.length);
+				for (int i=0 ; i<rows.length ; i++)
+					data.add(new LabeledData<Serializable>(getLabel(labels, rowLabels[i]), rows[i]));
+				return data;
+			}
+			List<LabeledData<Serializable>> data = new ArrayList<LabeledData<Serializable>>(rowLabels.length);
+			if (layout == DataLayout.MATRIX) {
+				int columns = istream.readInt();
+				if (columns < 0)
+					throw new StreamCorruptedException("Invalid vector length " + columns);
+				for (int i=0 ; i<rowLabels.length ; i++) {
+					double[] row = new double[columns];
+					istream.readDoubles(row, 0, columns);
+					data.add(new LabeledData<Serializable>(getLabel(labels, rowLabels[i]), row));
+				}
+			} else {
+				for (int i=0 ; i<rowLabels.length ; i++) 
+					data.add(new LabeledData<Serializable>(getLabel(labels, rowLabels[i]), istream.readDoubleArray()));
+			}
+			return data;
+		}
+
+		private static String getLabel(List<String> labels, int index) throws IOException {
+			if (index < 0 || index >= labels.size())
+				throw new StreamCorruptedException("Invalid label index " + index);
+			return labels.get(index);
+		}
+	}
+
+}
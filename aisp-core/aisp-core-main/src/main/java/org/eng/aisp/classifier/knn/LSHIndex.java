@@ -0,0 +1,378 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.knn;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.eng.aisp.classifier.knn.BaseKNNDataSummary.LabeledData;
+import org.eng.aisp.classifier.knn.merge.CosineDistanceMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.EuclidianDistanceMergeKNNFunc;
+import org.eng.aisp.util.ModelCodecInputStream;
+import org.eng.aisp.util.ModelCodecOutputStream;
+
+/**
+ * A multi-table locality-sensitive hash over the reference vectors of a KNN data summary, used to find candidate nearest neighbors
+ * without computing the distance to every reference.
+ * Random-hyperplane hashes are used for cosine distance and p-stable (Gaussian) hashes for Euclidian distance.
+ * <p>
+ * Each table concatenates {@link LSHParameters#getHashesPerTable()} hashes into a key, which is reduced to 32 bits and packed with the
+ * index of the reference into a sorted long[] so that a bucket is found with a binary search.
+ * A query probes the bucket it hashes to in each table, plus the buckets obtained by changing the single hash whose value is least
+ * certain, in order of increasing uncertainty, up to {@link LSHParameters#getProbes()} buckets per table.
+ * <p>
+ * The candidates are not guaranteed to include the nearest neighbors.  Callers compute the exact distance to the candidates.
+ */
+class LSHIndex implements Serializable {
+
+	private static final long serialVersionUID = 4530861942768310476L;
+
+	private enum Kind { COSINE, EUCLIDIAN };
+
+	/** The number of references sampled to estimate the bucket width */
+	private final static int BUCKET_WIDTH_SAMPLES = 256;
+	/** The bucket width as a multiple of the typical distance between a sampled reference and its nearest sampled neighbor */
+	private final static double BUCKET_WIDTH_FACTOR = 4;
+
+	private final Kind kind;
+	private final int columns;
+	private final int tables;
+	private final int hashesPerTable;
+	private final int probes;
+	/** For Euclidian distance, the width of the buckets along each projection */
+	private final double bucketWidth;
+	/** The random projection vectors, one after the other for each hash of each table */
+	private final double[] projections;
+	/** For Euclidian distance, the random offset for each hash of each table */
+	private final double[] offsets;
+	/** For each table, the key of each reference in the upper 32 bits and the index of the reference in the lower 32 bits, sorted */
+	private final long[][] buckets;
+
+	/**
+	 * Determine if LSH supports the distance function.
+	 * @param distFunc
+	 * @return true if the distance function is the cosine or Euclidian distance.
+	 */
+	static boolean isSupported(IDistanceFunction<?> distFunc) {
+		if (distFunc == null)
+			return false;
+		// Require the exact class so that a subclass overriding distance() is not assumed to be one of these.
+		return distFunc.getClass() == CosineDistanceMergeKNNFunc.class || distFunc.getClass() == EuclidianDistanceMergeKNNFunc.class;
+	}
+
+	/**
+	 * Create the hash tables over the given data.
+	 * @param distFunc a distance function for which {@link #isSupported(IDistanceFunction)} is true.
+	 * @param data the references.
+	 * @param parameters
+	 * @return null if the distance function is not supported, or the data is not all double[] of the same length.
+	 */
+	static LSHIndex newIndex(IDistanceFunction<?> distFunc, List<? extends LabeledData<?>> data, LSHParameters parameters) {
+		if (!isSupported(distFunc) || data == null || data.isEmpty())
+			return null;
+		int columns = -1;
+		for (LabeledData<?> ld : data) {
+			Object d = ld.getData();
+			if (!(d instanceof double[]))
+				return null;
+			int len = ((double[])d).length;
+			if (columns < 0)
+				columns = len;
+			else if (columns != len)
+				return null;
+		}
+		if (columns == 0)
+			return null;
+		Kind kind = distFunc.getClass() == CosineDistanceMergeKNNFunc.class ? Kind.COSINE : Kind.EUCLIDIAN;
+		return new LSHIndex(kind, columns, data, parameters);
+	}
+
+	private LSHIndex(Kind kind, int columns, List<? extends LabeledData<?>> data, LSHParameters parameters) {
+		this.kind = kind;
+		this.columns = columns;
+		this.tables = parameters.getTables();
+		this.hashesPerTable = parameters.getHashesPerTable();
+		this.probes = parameters.getProbes();
+
+		Random rand = new Random(parameters.getSeed());
+		int hashCount = tables * hashesPerTable;
+		this.projections = new double[hashCount * columns];
+		for (int i=0 ; i<projections.length ; i++)
+			projections[i] = rand.nextGaussian();
+
+		if (kind == Kind.EUCLIDIAN) {
+			double width = parameters.getBucketWidth();
+			if (width == 0)
+				width = estimateBucketWidth(data, rand);
+			this.bucketWidth = width;
+			this.offsets = new double[hashCount];
+			for (int i=0 ; i<hashCount ; i++)
+				offsets[i] = rand.nextDouble() * width;
+		} else {
+			this.bucketWidth = 0;
+			this.offsets = null;
+		}
+
+		this.buckets = new long[tables][data.size()];
+		double[] values = new double[hashCount];
+		for (int i=0 ; i<data.size() ; i++) {
+			project((double[])data.get(i).getData(), values);
+			for (int t=0 ; t<tables ; t++)
+				buckets[t][i] = ((long)key(values, t, -1) << 32) | i;
+		}
+		for (long[] table : buckets)
+			Arrays.sort(table);
+	}
+
+	private LSHIndex(Kind kind, int columns, int tables, int hashesPerTable, int probes, double bucketWidth, double[] projections, 
+			double[] offsets, long[][] buckets) {
+		this.kind = kind;
+		this.columns = columns;
+		this.tables = tables;
+		this.hashesPerTable = hashesPerTable;
+		this.probes = probes;
+		this.bucketWidth = bucketWidth;
+		this.projections = projections;
+		this.offsets = offsets;
+		this.buckets = buckets;
+	}
+
+	/**
+	 * Write the index for {@link KNNModelCodecs}.
+	 * @param ostream
+	 * @throws IOException
+	 */
+	void write(ModelCodecOutputStream ostream) throws IOException {
+		ostream.writeByte(kind.ordinal());
+		ostream.writeInt(columns);
+		ostream.writeInt(tables);
+		ostream.writeInt(hashesPerTable);
+		ostream.writeInt(probes);
+		ostream.writeDouble(bucketWidth);
+		ostream.writeDoubleArray(projections);
+		ostream.writeDoubleArray(offsets);
+		for (long[] table : buckets)
+			ostream.writeLongArray(table);
+	}
+
+	/**
+	 * Read an index written by {@link #write(ModelCodecOutputStream)}.
+	 * @param istream
+	 * @param size the number of references over which the index was built.
+	 * @return never null.
+	 * @throws IOException if the arrays do not match the parameters or the given size.
+	 */
+	static LSHIndex read(ModelCodecInputStream istream, int size) throws IOException {
+		int kindIndex = istream.readUnsignedByte();
+		if (kindIndex >= Kind.values().length)
+			throw new StreamCorruptedException("Invalid hash kind " + kindIndex);
+		Kind kind = Kind.values()[kindIndex];
+		int columns = istream.readInt();
+		int tables = istream.readInt();
+		int hashesPerTable = istream.readInt();
+		int probes = istream.readInt();
+		double bucketWidth = istream.readDouble();
+		double[] projections = istream.readDoubleArray();
+		double[] offsets = istream.readDoubleArray();
+		if (columns <= 0 || tables <= 0 || hashesPerTable <= 0 || projections == null 
+				|| (long)projections.length != (long)tables * hashesPerTable * columns
+				|| (kind == Kind.EUCLIDIAN && (offsets == null || offsets.length != tables * hashesPerTable)))
+			throw new StreamCorruptedException("Invalid locality-sensitive hash");
+		long[][] buckets = new long[tables][];
+		for (int t=0 ; t<tables ; t++) {
+			buckets[t] = istream.readLongArray();
+			if (buckets[t] == null || buckets[t].length != size)
+				throw new StreamCorruptedException("Locality-sensitive hash does not match the " + size + " references");
+		}
+		return new LSHIndex(kind, columns, tables, hashesPerTable, probes, bucketWidth, projections, offsets, buckets);
+	}
+
+	/**
+	 * Estimate a bucket width from the distances between a sample of the references and their nearest neighbor within the sample.
+	 */
+	private static double estimateBucketWidth(List<? extends LabeledData<?>> data, Random rand) {
+		int samples = Math.min(BUCKET_WIDTH_SAMPLES, data.size());
+		double[][] sample = new double[samples][];
+		for (int i=0 ; i<samples ; i++)
+			sample[i] = (double[])data.get(rand.nextInt(data.size())).getData();
+		double[] nearest = new double[samples];
+		for (int i=0 ; i<samples ; i++) {
+			double min = Double.POSITIVE_INFINITY;
+			for (int j=0 ; j<samples ; j++) {
+				if (i == j)
+					continue;
+				double sum = 0;
+				for (int k=0 ; k<sample[i].length ; k++) {
+					double diff = sample[i][k] - sample[j][k];
+					sum += diff * diff;
+				}
+				if (sum > 0)
+					min = Math.min(min, sum);
+			}
+			nearest[i] = Math.sqrt(min);
+		}
+		Arrays.sort(nearest);
+		double median = nearest[samples / 2];
+		if (Double.isNaN(median) || Double.isInfinite(median) || median == 0)
+			median = 1;
+		return BUCKET_WIDTH_FACTOR * median;
+	}
+
+	/**
+	 * Determine if the index can be used to find candidates for the given query.
+	 * @param query
+	 * @return true if the query is a vector of the same length as the references.
+	 */
+	boolean isCompatible(Object query) {
+		return query instanceof double[] && ((double[])query).length == columns;
+	}
+
+	/**
+	 * Find the references that hash to the same buckets as the query, or the probed buckets near them.
+	 * @param query a vector for which {@link #isCompatible(Object)} is true.
+	 * @return the distinct indexes of the candidate references in increasing order.  May be empty.
+	 */
+	int[] candidates(double[] query) {
+		double[] values = new double[tables * hashesPerTable];
+		project(query, values);
+		int[] candidates = new int[64];
+		int count = 0;
+		for (int t=0 ; t<tables ; t++) {
+			int[] probeHashes = getProbeHashes(values, t);
+			for (int p=-1 ; p<probeHashes.length ; p++) {
+				int key = key(values, t, p < 0 ? -1 : probeHashes[p]);
+				long[] table = buckets[t];
+				int i = lowerBound(table, (long)key << 32);
+				for ( ; i<table.length && (int)(table[i] >>> 32) == key ; i++) {
+					if (count == candidates.length)
+						candidates = Arrays.copyOf(candidates, 2 * count);
+					candidates[count++] = (int)table[i];
+				}
+			}
+		}
+		Arrays.sort(candidates, 0, count);
+		int distinct = 0;
+		for (int i=0 ; i<count ; i++) {
+			if (distinct == 0 || candidates[i] != candidates[distinct-1])
+				candidates[distinct++] = candidates[i];
+		}
+		return Arrays.copyOf(candidates, distinct);
+	}
+
+	/**
+	 * Compute the value of each hash before quantization.
+	 */
+	private void project(double[] vector, double[] values) {
+		for (int h=0 ; h<values.length ; h++) {
+			int offset = h * columns;
+			double dot = 0;
+			for (int k=0 ; k<columns ; k++)
+				dot += projections[offset + k] * vector[k];
+			if (kind == Kind.EUCLIDIAN)
+				dot = (dot + offsets[h]) / bucketWidth;
+			values[h] = dot;
+		}
+	}
+
+	/**
+	 * Get the hash value from its value before quantization.
+	 * @param perturb if true, then return the neighboring hash value on the side to which the value is closest.
+	 */
+	private long hash(double value, boolean perturb) {
+		if (kind == Kind.COSINE) {
+			long bit = value >= 0 ? 1 : 0;
+			return perturb ? 1 - bit : bit;
+		}
+		double floor = Math.floor(value);
+		long hash = (long)floor;
+		if (perturb)
+			hash += value - floor < 0.5 ? -1 : 1;
+		return hash;
+	}
+
+	/**
+	 * @return how close the value is to the boundary of its hash value, 0 being the closest.
+	 */
+	private double uncertainty(double value) {
+		if (kind == Kind.COSINE)
+			return Math.abs(value);
+		double fraction = value - Math.floor(value);
+		return Math.min(fraction, 1 - fraction);
+	}
+
+	/**
+	 * Get the hashes of the given table to perturb for each probe after the first.
+	 * @return an array of up to probes-1 indexes of hashes within the table, least certain first.
+	 */
+	private int[] getProbeHashes(double[] values, int table) {
+		int count = Math.min(probes - 1, hashesPerTable);
+		if (count <= 0)
+			return new int[0];
+		int base = table * hashesPerTable;
+		Integer[] order = new Integer[hashesPerTable];
+		for (int h=0 ; h<hashesPerTable ; h++)
+			order[h] = h;
+		final double[] uncertainty = new double[hashesPerTable];
+		for (int h=0 ; h<hashesPerTable ; h++)
+			uncertainty[h] = uncertainty(values[base + h]);
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer h1, Integer h2) {
+				return Double.compare(uncertainty[h1], uncertainty[h2]);
+			}
+		});
+		int[] probeHashes = new int[count];
+		for (int i=0 ; i<count ; i++)
+			probeHashes[i] = order[i];
+		return probeHashes;
+	}
+
+	/**
+	 * Compute the key of the given table.
+	 * @param perturbed the index within the table of the hash to perturb, or -1 for none.
+	 * @return a 32 bit key.
+	 */
+	private int key(double[] values, int table, int perturbed) {
+		int base = table * hashesPerTable;
+		long key = table;
+		for (int h=0 ; h<hashesPerTable ; h++) {
+			key = (key ^ hash(values[base + h], h == perturbed)) * 0x9E3779B97F4A7C15L;
+			key ^= key >>> 29;
+		}
+		return (int)(key ^ (key >>> 32));
+	}
+
+	/**
+	 * @return the first index in the sorted array with a value not less than the given value.
+	 */
+	private static int lowerBound(long[] sorted, long value) {
+		int lo = 0, hi = sorted.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (sorted[mid] < value)
+				lo = mid + 1;
+			else
+				hi = mid;
+		}
+		return lo;
+	}
+
+}
@@ -0,0 +1,161 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.knn;
+
+import java.io.Serializable;
+
+/**
+ * Configures the approximate nearest neighbor search of a KNN classifier using locality-sensitive hashing (LSH).
+ * Random-hyperplane hashing is used for cosine distance and p-stable (Gaussian) hashing for Euclidian distance.
+ * Other distance functions always use an exact search.
+ * <p>
+ * Recall is traded for latency with the number of tables and probes.  More tables and more probes per table find more of the true
+ * nearest neighbors but compute the distance to more references.  More hashes per table make each bucket smaller, which reduces the
+ * number of candidates but also the recall.
+ * The seed makes the hash functions, and so the classifications, repeatable.
+ */
+public class LSHParameters implements Serializable {
+
+	private static final long serialVersionUID = -4420616402918047425L;
+
+	public final static int DEFAULT_TABLES = 8;
+	public final static int DEFAULT_HASHES_PER_TABLE = 12;
+	public final static int DEFAULT_PROBES = 8;
+	public final static long DEFAULT_SEED = 1;
+
+	private final int tables;
+	private final int hashesPerTable;
+	private final int probes;
+	private final double bucketWidth;
+	private final long seed;
+
+	/**
+	 * Use the default number of tables, hashes and probes, and a bucket width estimated from the data.
+	 */
+	public LSHParameters() {
+		this(DEFAULT_TABLES, DEFAULT_PROBES);
+	}
+
+	/**
+	 * @param tables the number of hash tables.
+	 * @param probes the number of buckets searched in each table, including the one the query hashes to.
+	 */
+	public LSHParameters(int tables, int probes) {
+		this(tables, DEFAULT_HASHES_PER_TABLE, probes, 0, DEFAULT_SEED);
+	}
+
+	/**
+	 * @param tables the number of hash tables.
+	 * @param hashesPerTable the number of hash functions concatenated to form the key of each table.
+	 * @param probes the number of buckets searched in each table, including the one the query hashes to.
+	 * @param bucketWidth the width of the buckets of the p-stable hash functions used for Euclidian distance, in the units of the features.
+	 * If 0, then estimate it from the distances between a sample of the references.
+	 * @param seed used to generate the hash functions.
+	 */
+	public LSHParameters(int tables, int hashesPerTable, int probes, double bucketWidth, long seed) {
+		if (tables <= 0)
+			throw new IllegalArgumentException("tables must be larger than 0");
+		if (hashesPerTable <= 0 || hashesPerTable > 62)
+			throw new IllegalArgumentException("hashesPerTable must be between 1 and 62");
+		if (probes <= 0)
+			throw new IllegalArgumentException("probes must be larger than 0");
+		if (bucketWidth < 0)
+			throw new IllegalArgumentException("bucketWidth must not be negative");
+		this.tables = tables;
+		this.hashesPerTable = hashesPerTable;
+		this.probes = probes;
+		this.bucketWidth = bucketWidth;
+		this.seed = seed;
+	}
+
+	/**
+	 * @return the tables
+	 */
+	public int getTables() {
+		return tables;
+	}
+
+	/**
+	 * @return the hashesPerTable
+	 */
+	public int getHashesPerTable() {
+		return hashesPerTable;
+	}
+
+	/**
+	 * @return the probes
+	 */
+	public int getProbes() {
+		return probes;
+	}
+
+	/**
+	 * @return the bucketWidth, 0 if estimated from the data.
+	 */
+	public double getBucketWidth() {
+		return bucketWidth;
+	}
+
+	/**
+	 * @return the seed
+	 */
+	public long getSeed() {
+		return seed;
+	}
+
+	@Override
+	public String toString() {
+		return "LSHParameters [tables=" + tables + ", hashesPerTable=" + hashesPerTable + ", probes=" + probes
+				+ ", bucketWidth=" + bucketWidth + ", seed=" + seed + "]";
+	}
+
+	@Override
+	public int hashCode() {
+		final int prime = 31;
+		int result = 1;
+		long temp;
+		temp = Double.doubleToLongBits(bucketWidth);
+		result = prime * result + (int) (temp ^ (temp >>> 32));
+		result = prime * result + hashesPerTable;
+		result = prime * result + probes;
+		result = prime * result + (int) (seed ^ (seed >>> 32));
+		result = prime * result + tables;
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj)
+			return true;
+		if (obj == null)
+			return false;
+		if (!(obj instanceof LSHParameters))
+			return false;
+		LSHParameters other = (LSHParameters) obj;
+		if (Double.doubleToLongBits(bucketWidth) != Double.doubleToLongBits(other.bucketWidth))
+			return false;
+		if (hashesPerTable != other.hashesPerTable)
+			return false;
+		if (probes != other.probes)
+			return false;
+		if (seed != other.seed)
+			return false;
+		if (tables != other.tables)
+			return false;
+		return true;
+	}
+
+}
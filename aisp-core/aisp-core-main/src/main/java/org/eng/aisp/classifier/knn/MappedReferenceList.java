@@ -0,0 +1,133 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.knn;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.DoubleBuffer;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import org.eng.aisp.classifier.knn.BaseKNNDataSummary.LabeledData;
+
+/**
+ * An immutable list of reference vectors whose values are in a buffer, usually a view of a memory-mapped model file, instead of on the heap.
+ * Only the labels are held on the heap.  The vector of an element is copied out of the buffer each time {@link LabeledData#getData()} 
+ * is called, so code that computes distances to many references should use {@link #copyRows(int, int, double[])} instead, 
+ * as {@link DenseReferenceMatrix} does.
+ * <p>
+ * An instance is serialized as a list of heap-resident references, so that the deserialized copy does not depend on the file.
+ */
+class MappedReferenceList extends AbstractList<LabeledData<double[]>> implements RandomAccess, Serializable {
+
+	private static final long serialVersionUID = -2387766215146393617L;
+
+	/** The distinct labels, indexed by {@link #rowLabels} */
+	private final String[] labels;
+	/** The index into {@link #labels} of the label of each row */
+	private final int[] rowLabels;
+	/** The rows, one after the other */
+	private final DoubleBuffer matrix;
+	/** The length of each row */
+	private final int columns;
+
+	/**
+	 * Element of the list that reads its vector from the buffer of the list. 
+	 */
+	private static class MappedLabeledData extends LabeledData<double[]> {
+
+		private static final long serialVersionUID = 5836301578234413712L;
+
+		private final MappedReferenceList list;
+		private final int row;
+
+		MappedLabeledData(MappedReferenceList list, int row) {
+			super(list.labels[list.rowLabels[row]], null);
+			this.list = list;
+			this.row = row;
+		}
+
+		@Override
+		public double[] getData() {
+			double[] data = new double[list.columns];
+			list.copyRows(row, row + 1, data);
+			return data;
+		}
+
+		private Object writeReplace() throws ObjectStreamException {
+			return new LabeledData<double[]>(label, getData());
+		}
+	}
+
+	/**
+	 * @param labels the distinct labels of the rows.
+	 * @param rowLabels the index into the labels of the label of each row.
+	 * @param matrix the rows one after the other, each of the given number of columns.
+	 * @param columns
+	 * @throws StreamCorruptedException if the sizes of the arguments are not consistent or a label index is not valid.
+	 */
+	MappedReferenceList(List<String> labels, int[] rowLabels, DoubleBuffer matrix, int columns) throws StreamCorruptedException {
+		if ((long)rowLabels.length * columns != matrix.remaining())
+			throw new StreamCorruptedException("Matrix of " + matrix.remaining() + " values is not " + rowLabels.length + " rows of " + columns);
+		for (int index : rowLabels) {
+			if (index < 0 || index >= labels.size())
+				throw new StreamCorruptedException("Invalid label index " + index);
+		}
+		this.labels = labels.toArray(new String[labels.size()]);
+		this.rowLabels = rowLabels;
+		this.matrix = matrix.slice();
+		this.columns = columns;
+	}
+
+	@Override
+	public LabeledData<double[]> get(int index) {
+		if (index < 0 || index >= rowLabels.length)
+			throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + rowLabels.length);
+		return new MappedLabeledData(this, index);
+	}
+
+	@Override
+	public int size() {
+		return rowLabels.length;
+	}
+
+	/**
+	 * @return the length of each reference vector.
+	 */
+	int getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Copy the values of the given range of rows into the given array, one row after the other.
+	 * @param startRow first row to copy.
+	 * @param endRow 1 more than the last row to copy.
+	 * @param dest array of at least (endRow - startRow) * {@link #getColumns()} values.
+	 */
+	void copyRows(int startRow, int endRow, double[] dest) {
+		DoubleBuffer rows = matrix.duplicate();	// Leave the position of the shared buffer alone for other threads.
+		rows.position(startRow * columns);
+		rows.get(dest, 0, (endRow - startRow) * columns);
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		return new ArrayList<LabeledData<double[]>>(this);
+	}
+
+}
@@ -0,0 +1,463 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.knn;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.eng.aisp.classifier.knn.BaseKNNDataSummary.LabeledData;
+import org.eng.aisp.classifier.knn.merge.EuclidianDistanceMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.L1DistanceMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.LpDistanceMergeKNNFunc;
+import org.eng.aisp.util.ModelCodecInputStream;
+import org.eng.aisp.util.ModelCodecOutputStream;
+
+/**
+ * A vantage-point tree over the reference data of a KNN data summary, used to find the nearest reference of each label
+ * without computing the distance to every reference.
+ * The tree relies on the triangle inequality and so may only be used with distance functions that are metrics (see {@link #isMetric(IDistanceFunction)}).
+ * <p>
+ * The tree is laid out in arrays over the positions of the references.  A node covering the positions [start,end) has its vantage point
+ * at position start, the references nearer to the vantage point in [start+1, split) and the farther references in [split,end).
+ * Nodes with no more than {@link #leafSize} references are leaves whose references are scanned.
+ * <p>
+ * Searches are exact.  Distances are only compared against the bounds given by the triangle inequality with a small relative tolerance
+ * to allow for rounding, so the results are the same as those of a linear scan over all the references.
+ * The tree does not hold the reference data itself, which is passed to each method and must be the same list used to create the tree.
+ */
+class VPTreeIndex<DATA> implements Serializable {
+
+	private static final long serialVersionUID = -2930358412745023651L;
+
+	/** Default maximum number of references in a leaf */
+	final static int DEFAULT_LEAF_SIZE = 16;
+
+	/** Relative tolerance applied to the bounds from the triangle inequality to allow for rounding in the distance computations */
+	private final static double BOUND_TOLERANCE = 1e-9;
+
+	private final int leafSize;
+	/** The length of the reference vectors */
+	private final int columns;
+	/** The index of the reference at each position in the tree */
+	private final int[] order;
+	/** For the node starting at each position, the position of its outside child */
+	private final int[] split;
+	/** For the node starting at each position, the min and max distance from the vantage point to the references in its inside child */
+	private final double[] insideMin, insideMax;
+	/** For the node starting at each position, the min and max distance from the vantage point to the references in its outside child */
+	private final double[] outsideMin, outsideMax;
+	/** The label slot of each reference */
+	private final int[] labelSlots;
+	/** The number of distinct labels */
+	private final int labelCount;
+	/** 
+	 * For the node starting at each position, a bit mask of the label slots of its references so that nodes can be skipped once the 
+	 * nearest reference of each of their labels is known to be nearer.  Null if there are more than 64 labels.
+	 */
+	private final long[] labelMasks;
+
+	/**
+	 * Determine if the distance function is known to be a metric.
+	 * @param distFunc
+	 * @return true if the distance function is one of the Euclidian, L1 or Lp functions with a p of 0, 1 or more.
+	 */
+	static boolean isMetric(IDistanceFunction<?> distFunc) {
+		if (distFunc == null)
+			return false;
+		// Require the exact class so that a subclass overriding distance() is not assumed to be a metric.
+		Class<?> klass = distFunc.getClass();
+		if (klass == EuclidianDistanceMergeKNNFunc.class || klass == L1DistanceMergeKNNFunc.class)
+			return true;
+		if (klass == LpDistanceMergeKNNFunc.class) {
+			double p = ((LpDistanceMergeKNNFunc)distFunc).getP();
+			return p == 0 || p >= 1;	// Lp with 0<p<1 does not satisfy the triangle inequality.
+		}
+		return false;
+	}
+
+	/**
+	 * Create the tree over the given data.
+	 * @param distFunc a distance function for which {@link #isMetric(IDistanceFunction)} is true.
+	 * @param data the references.
+	 * @param leafSize the maximum number of references in a leaf.
+	 * @param seed the seed used to pick the vantage points.
+	 * @return null if the data is not all the same length or produces non-finite distances, neither of which the tree supports.
+	 */
+	static <DATA> VPTreeIndex<DATA> newIndex(IDistanceFunction<DATA> distFunc, List<? extends LabeledData<DATA>> data, int leafSize, long seed) {
+		if (data == null || data.isEmpty())
+			return null;
+		// The distance functions zero-pad vectors of different lengths, which does not preserve the triangle inequality.
+		int len = -1;
+		for (LabeledData<DATA> ld : data) {
+			Object d = ld.getData();
+			if (!(d instanceof double[]))
+				return null;
+			if (len < 0)
+				len = ((double[])d).length;
+			else if (len != ((double[])d).length)
+				return null;
+		}
+		VPTreeIndex<DATA> index = new VPTreeIndex<DATA>(data, len, Math.max(2, leafSize));
+		double[] distances = new double[data.size()];
+		if (!index.build(distFunc, data, 0, data.size(), distances, new Random(seed)))
+			return null;
+		if (index.labelMasks != null)
+			index.buildLabelMasks(0, data.size());
+		return index;
+	}
+
+	private VPTreeIndex(List<? extends LabeledData<DATA>> data, int columns, int leafSize) {
+		int size = data.size();
+		this.leafSize = leafSize;
+		this.columns = columns;
+		this.order = new int[size];
+		for (int i=0 ; i<size ; i++)
+			order[i] = i;
+		this.split = new int[size];
+		this.insideMin = new double[size];
+		this.insideMax = new double[size];
+		this.outsideMin = new double[size];
+		this.outsideMax = new double[size];
+
+		Map<String, Integer> slots = new HashMap<String, Integer>();
+		this.labelSlots = new int[size];
+		for (int i=0 ; i<size ; i++) {
+			String label = data.get(i).getLabel();
+			Integer slot = slots.get(label);
+			if (slot == null) {
+				slot = slots.size();
+				slots.put(label, slot);
+			}
+			labelSlots[i] = slot;
+		}
+		this.labelCount = slots.size();
+		this.labelMasks = labelCount <= Long.SIZE ? new long[size] : null;
+	}
+
+	private VPTreeIndex(int leafSize, int columns, int[] order, int[] split, double[] insideMin, double[] insideMax, 
+			double[] outsideMin, double[] outsideMax, int[] labelSlots, int labelCount, long[] labelMasks) {
+		this.leafSize = leafSize;
+		this.columns = columns;
+		this.order = order;
+		this.split = split;
+		this.insideMin = insideMin;
+		this.insideMax = insideMax;
+		this.outsideMin = outsideMin;
+		this.outsideMax = outsideMax;
+		this.labelSlots = labelSlots;
+		this.labelCount = labelCount;
+		this.labelMasks = labelMasks;
+	}
+
+	/**
+	 * Write the tree for {@link KNNModelCodecs}.
+	 * @param ostream
+	 * @throws IOException
+	 */
+	void write(ModelCodecOutputStream ostream) throws IOException {
+		ostream.writeInt(leafSize);
+		ostream.writeInt(columns);
+		ostream.writeIntArray(order);
+		ostream.writeIntArray(split);
+		ostream.writeDoubleArray(insideMin);
+		ostream.writeDoubleArray(insideMax);
+		ostream.writeDoubleArray(outsideMin);
+		ostream.writeDoubleArray(outsideMax);
+		ostream.writeIntArray(labelSlots);
+		ostream.writeInt(labelCount);
+		ostream.writeLongArray(labelMasks);
+	}
+
+	/**
+	 * Read a tree written by {@link #write(ModelCodecOutputStream)}.
+	 * @param istream
+	 * @param size the number of references over which the tree was built.
+	 * @return never null.
+	 * @throws IOException if the arrays are not all of the given size.
+	 */
+	static <DATA> VPTreeIndex<DATA> read(ModelCodecInputStream istream, int size) throws IOException {
+		int leafSize = istream.readInt();
+		int columns = istream.readInt();
+		int[] order = istream.readIntArray();
+		int[] split = istream.readIntArray();
+		double[] insideMin = istream.readDoubleArray();
+		double[] insideMax = istream.readDoubleArray();
+		double[] outsideMin = istream.readDoubleArray();
+		double[] outsideMax = istream.readDoubleArray();
+		int[] labelSlots = istream.readIntArray();
+		int labelCount = istream.readInt();
+		long[] labelMasks = istream.readLongArray();
+		if (order == null || order.length != size || split == null || split.length != size 
+				|| insideMin == null || insideMin.length != size || insideMax == null || insideMax.length != size
+				|| outsideMin == null || outsideMin.length != size || outsideMax == null || outsideMax.length != size
+				|| labelSlots == null || labelSlots.length != size || (labelMasks != null && labelMasks.length != size))
+			throw new StreamCorruptedException("Vantage-point tree does not match the " + size + " references");
+		return new VPTreeIndex<DATA>(leafSize, columns, order, split, insideMin, insideMax, outsideMin, outsideMax, labelSlots, labelCount, labelMasks);
+	}
+
+	/**
+	 * Recursively build the node covering the given positions.
+	 * @param distances scratch space indexed by position.
+	 * @return false if a non-finite distance was found.
+	 */
+	private boolean build(IDistanceFunction<DATA> distFunc, List<? extends LabeledData<DATA>> data, int start, int end, double[] distances, Random rand) {
+		if (end - start <= leafSize)
+			return true;
+
+		swap(order, start, start + rand.nextInt(end - start));
+		DATA vantagePoint = data.get(order[start]).getData();
+		for (int i=start+1 ; i<end ; i++) {
+			double d = distFunc.distance(vantagePoint, data.get(order[i]).getData());
+			if (Double.isNaN(d) || Double.isInfinite(d))
+				return false;
+			distances[i] = d;
+		}
+
+		// Both children are non-empty since there are more than leafSize >= 2 references.
+		int mid = (start + 1 + end) / 2;
+		select(distances, order, start+1, end, mid);
+		split[start] = mid;
+		insideMin[start] = min(distances, start+1, mid);
+		insideMax[start] = max(distances, start+1, mid);
+		outsideMin[start] = min(distances, mid, end);
+		outsideMax[start] = max(distances, mid, end);
+
+		return build(distFunc, data, start+1, mid, distances, rand) && build(distFunc, data, mid, end, distances, rand);
+	}
+
+	/**
+	 * Recursively set the label masks of the node covering the given positions.
+	 * @return the label mask of the node.
+	 */
+	private long buildLabelMasks(int start, int end) {
+		long mask = 0;
+		if (end - start <= leafSize) {
+			for (int i=start ; i<end ; i++)
+				mask |= 1L << labelSlots[order[i]];
+		} else {
+			mask = (1L << labelSlots[order[start]]) | buildLabelMasks(start+1, split[start]) | buildLabelMasks(split[start], end);
+		}
+		labelMasks[start] = mask;
+		return mask;
+	}
+
+	/**
+	 * @return the number of distinct labels in the references.
+	 */
+	int getLabelCount() {
+		return labelCount;
+	}
+
+	/**
+	 * Determine if the tree can be used to search for the given query.
+	 * @param query
+	 * @return true if the query is a vector of the same length as the references, since only then do the distances satisfy the triangle inequality. 
+	 */
+	boolean isCompatible(Object query) {
+		return query instanceof double[] && ((double[])query).length == columns;
+	}
+
+	/**
+	 * Find the nearest reference of each label to the query.
+	 * Among references of the same label at the same distance, the one with the lowest index is found.
+	 * @param query
+	 * @param distFunc the distance function used to create the tree.
+	 * @param data the references used to create the tree.
+	 * @param nearest an array of length {@link #getLabelCount()} into which the index of the nearest reference of each label is placed.
+	 * @param nearestDistances an array of length {@link #getLabelCount()} into which the distance to the nearest reference of each label is placed.
+	 * @param maxDistances the maximum number of distances to compute before giving up on the search.  
+	 * When the data does not have a low intrinsic dimension, the tree is not able to exclude many references and a parallel linear scan is faster.
+	 * @return false if the query produced a non-finite distance or more than maxDistances were needed, and a linear scan should be used instead.
+	 */
+	boolean nearestPerLabel(DATA query, IDistanceFunction<DATA> distFunc, List<? extends LabeledData<DATA>> data, int[] nearest, double[] nearestDistances, int maxDistances) {
+		NearestSearch search = new NearestSearch(query, distFunc, data, nearest, nearestDistances, maxDistances);
+		return search.search(0, order.length);
+	}
+
+	/**
+	 * Holds the state of a search for the nearest reference of each label.
+	 */
+	private class NearestSearch {
+		private final DATA query;
+		private final IDistanceFunction<DATA> distFunc;
+		private final List<? extends LabeledData<DATA>> data;
+		private final int[] nearest;
+		private final double[] nearestDistances;
+		private int found = 0;
+		/** The distance beyond which references can be ignored, which is the largest of the nearest distances once every label is found */
+		private double threshold = Double.POSITIVE_INFINITY;
+		/** The distance computed by the last call to {@link #consider(int)} */
+		private double lastDistance;
+		/** The number of distances that may still be computed */
+		private int remaining;
+
+		NearestSearch(DATA query, IDistanceFunction<DATA> distFunc, List<? extends LabeledData<DATA>> data, int[] nearest, double[] nearestDistances, int maxDistances) {
+			this.query = query;
+			this.distFunc = distFunc;
+			this.data = data;
+			this.nearest = nearest;
+			this.nearestDistances = nearestDistances;
+			this.remaining = maxDistances;
+			Arrays.fill(nearest, -1);
+		}
+
+		boolean search(int start, int end) {
+			if (end - start <= leafSize) {
+				for (int i=start ; i<end ; i++) {
+					if (!consider(order[i]))
+						return false;
+				}
+				return true;
+			}
+
+			int vantagePoint = order[start];
+			if (!consider(vantagePoint))
+				return false;
+			double dq = lastDistance;
+			int mid = split[start];
+			// Search the child the query falls in first to reduce the threshold sooner.
+			if (dq < outsideMin[start]) {
+				return searchChild(dq, start+1, mid, insideMin[start], insideMax[start])
+					&& searchChild(dq, mid, end, outsideMin[start], outsideMax[start]);
+			} else {
+				return searchChild(dq, mid, end, outsideMin[start], outsideMax[start])
+					&& searchChild(dq, start+1, mid, insideMin[start], insideMax[start]);
+			}
+		}
+
+		private boolean searchChild(double dq, int start, int end, double min, double max) {
+			double lowerBound = lowerBound(dq, min, max);
+			double tolerance = tolerance(dq, max);
+			if (lowerBound > threshold + tolerance)
+				return true;
+			if (labelMasks != null) {
+				// Skip the child if the nearest reference of each of its labels is already nearer than any reference in it.
+				long mask = labelMasks[start];
+				boolean skip = true;
+				while (skip && mask != 0) {
+					int slot = Long.numberOfTrailingZeros(mask);
+					mask &= mask - 1;
+					skip = nearest[slot] >= 0 && lowerBound > nearestDistances[slot] + tolerance;
+				}
+				if (skip)
+					return true;
+			}
+			return search(start, end);
+		}
+
+		/**
+		 * Compute the distance to the given reference and update the nearest reference of its label.
+		 * @return false if the distance is not finite or too many distances have been computed.
+		 */
+		private boolean consider(int index) {
+			if (--remaining < 0)
+				return false;
+			double d = distFunc.distance(query, data.get(index).getData());
+			if (Double.isNaN(d) || Double.isInfinite(d))
+				return false;
+			lastDistance = d;
+			int slot = labelSlots[index];
+			int current = nearest[slot];
+			if (current < 0) {
+				found++;
+			} else if (!isNearer(d, index, nearestDistances[slot], current)) {
+				return true;
+			}
+			nearest[slot] = index;
+			nearestDistances[slot] = d;
+			if (found == nearest.length)
+				threshold = max(nearestDistances, 0, nearestDistances.length);
+			return true;
+		}
+	}
+
+	private static boolean isNearer(double d1, int index1, double d2, int index2) {
+		return d1 < d2 || (d1 == d2 && index1 < index2);
+	}
+
+	/**
+	 * @return the smallest possible distance from a query at distance dq from a vantage point to a reference between min and max from the vantage point.
+	 */
+	private static double lowerBound(double dq, double min, double max) {
+		return Math.max(0, Math.max(min - dq, dq - max));
+	}
+
+	private static double tolerance(double dq, double max) {
+		return BOUND_TOLERANCE * (dq + max);
+	}
+
+	/**
+	 * Rearrange the values and the parallel indexes in the given range so that the value at the given position is the one that would be there
+	 * if the range were sorted, with no larger values before it and no smaller values after it.
+	 */
+	private static void select(double[] values, int[] indexes, int start, int end, int position) {
+		int lo = start, hi = end - 1;
+		while (lo < hi) {
+			double pivot = values[lo + (hi - lo) / 2];
+			// 3-way partition into [lo,lt) < pivot, [lt,gt] == pivot, (gt,hi] > pivot so that many equal distances do not degrade the selection.
+			int lt = lo, gt = hi, i = lo;
+			while (i <= gt) {
+				if (values[i] < pivot) {
+					swap(values, indexes, lt++, i++);
+				} else if (values[i] > pivot) {
+					swap(values, indexes, i, gt--);
+				} else {
+					i++;
+				}
+			}
+			if (position < lt)
+				hi = lt - 1;
+			else if (position > gt)
+				lo = gt + 1;
+			else
+				return;
+		}
+	}
+
+	private static void swap(double[] values, int[] indexes, int i, int j) {
+		double v = values[i];
+		values[i] = values[j];
+		values[j] = v;
+		swap(indexes, i, j);
+	}
+
+	private static void swap(int[] indexes, int i, int j) {
+		int t = indexes[i];
+		indexes[i] = indexes[j];
+		indexes[j] = t;
+	}
+
+	private static double min(double[] values, int start, int end) {
+		double min = Double.POSITIVE_INFINITY;
+		for (int i=start ; i<end ; i++)
+			min = Math.min(min, values[i]);
+		return min;
+	}
+
+	private static double max(double[] values, int start, int end) {
+		double max = Double.NEGATIVE_INFINITY;
+		for (int i=start ; i<end ; i++)
+			max = Math.max(max, values[i]);
+		return max;
+	}
+
+}
@@ -16,6 +16,7 @@
 package org.eng.aisp.classifier.knn.merge;
 
 import org.eng.aisp.classifier.knn.KNNClassifier;
+import org.eng.aisp.classifier.knn.LSHParameters;
 import org.eng.aisp.feature.IFeatureGramDescriptor;
 import org.eng.aisp.feature.extractor.IFeatureExtractor;
 import org.eng.aisp.feature.processor.IFeatureProcessor;
@@ -46,8 +47,30 @@ public class EuclidianDistanceMergeKNNClassifier extends KNNClassifier {
 	public EuclidianDistanceMergeKNNClassifier(ITrainingWindowTransform<double[]> transforms,
 			IFeatureGramDescriptor<double[], double[]> extractor,
 			double stddevFactor, boolean enableOutlierDetection, int maxListSize, boolean normalizeFeatures, boolean normalizeWhenMerging) {
+		this(transforms, extractor, stddevFactor, enableOutlierDetection, maxListSize, normalizeFeatures, normalizeWhenMerging, null);
+	}	
+
+	/**
+	 * @param approximateSearch if not null, then the trained classifier finds approximate nearest neighbors using locality-sensitive hashing with these parameters. 
+	 */
+	public EuclidianDistanceMergeKNNClassifier(ITrainingWindowTransform<double[]> transforms,
+			IFeatureGramDescriptor<double[], double[]> extractor,
+			double stddevFactor, boolean enableOutlierDetection, int maxListSize, boolean normalizeFeatures, boolean normalizeWhenMerging,
+			LSHParameters approximateSearch) {
+		this(transforms, extractor, stddevFactor, enableOutlierDetection, maxListSize, normalizeFeatures, normalizeWhenMerging, approximateSearch,
+				DEFAULT_INCREMENTAL_SUMMARIZATION);
+	}	
+
+	/**
+	 * @param approximateSearch if not null, then the trained classifier finds approximate nearest neighbors using locality-sensitive hashing with these parameters. 
+	 * @param incrementalSummarization if true, then summarize the training data one feature at a time. 
+	 */
+	public EuclidianDistanceMergeKNNClassifier(ITrainingWindowTransform<double[]> transforms,
+			IFeatureGramDescriptor<double[], double[]> extractor,
+			double stddevFactor, boolean enableOutlierDetection, int maxListSize, boolean normalizeFeatures, boolean normalizeWhenMerging,
+			LSHParameters approximateSearch, boolean incrementalSummarization) {
 		super(transforms, extractor, new EuclidianDistanceMergeKNNFunc(normalizeWhenMerging), stddevFactor, 
-				enableOutlierDetection, maxListSize, normalizeFeatures);
+				enableOutlierDetection, maxListSize, normalizeFeatures, approximateSearch, incrementalSummarization);
 	}	
 	
 	/**
@@ -44,7 +44,8 @@ public class EuclidianDistanceMergeKNNClassifierBuilder extends KNNClassifierBui
 		List<IFeatureGramDescriptor<double[],double[]>> fgeList = this.getFeatureGramExtractors();
 		if (fgeList.size() > 1)
 			throw new IllegalArgumentException("Only one feature gram extractor is supported");
-		return new EuclidianDistanceMergeKNNClassifier(transform,fgeList.get(0),stdDevFactor, enableOutlierDetection, maxListSize, normalizeFeatures, normalizeWhenMerging);
+		return new EuclidianDistanceMergeKNNClassifier(transform,fgeList.get(0),stdDevFactor, enableOutlierDetection, maxListSize, normalizeFeatures, normalizeWhenMerging, approximateSearch,
+				incrementalSummarization);
 	}
 
 	public EuclidianDistanceMergeKNNClassifierBuilder setKnnFunc(INearestNeighborFunction<double[]> knnFunc) {
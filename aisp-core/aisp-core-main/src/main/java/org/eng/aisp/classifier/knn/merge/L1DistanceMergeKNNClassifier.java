@@ -41,8 +41,17 @@ public class L1DistanceMergeKNNClassifier extends KNNClassifier  {
 
 	public L1DistanceMergeKNNClassifier(ITrainingWindowTransform<double[]> transform, IFeatureGramDescriptor<double[],double[]> featureGramExtractor , double stddevFactor, 
 			boolean enableOutlierDetection, int maxListSize, boolean normalizeFeatures, boolean normalizeWhenMerging) {
+		this(transform, featureGramExtractor, stddevFactor, enableOutlierDetection, maxListSize, normalizeFeatures, normalizeWhenMerging, 
+				DEFAULT_INCREMENTAL_SUMMARIZATION);
+	}
+
+	/**
+	 * @param incrementalSummarization if true, then summarize the training data one feature at a time. 
+	 */
+	public L1DistanceMergeKNNClassifier(ITrainingWindowTransform<double[]> transform, IFeatureGramDescriptor<double[],double[]> featureGramExtractor , double stddevFactor, 
+			boolean enableOutlierDetection, int maxListSize, boolean normalizeFeatures, boolean normalizeWhenMerging, boolean incrementalSummarization) {
 		super(transform, featureGramExtractor, new L1DistanceMergeKNNFunc(normalizeWhenMerging), stddevFactor, enableOutlierDetection, 
-				maxListSize, normalizeFeatures);
+				maxListSize, normalizeFeatures, null, incrementalSummarization);
 	}
 
 	/**
@@ -40,7 +40,8 @@ public class L1DistanceMergeKNNClassifierBuilder extends KNNClassifierBuilder {
 		List<IFeatureGramDescriptor<double[],double[]>> fgeList = this.getFeatureGramExtractors();
 		if (fgeList.size() > 1)
 			throw new IllegalArgumentException("Only one feature gram extractor is supported");
-		return new L1DistanceMergeKNNClassifier(transform,fgeList.get(0),stdDevFactor, enableOutlierDetection, maxListSize, normalizeFeatures, normalizeWhenMerging);
+		return new L1DistanceMergeKNNClassifier(transform,fgeList.get(0),stdDevFactor, enableOutlierDetection, maxListSize, normalizeFeatures, normalizeWhenMerging,
+				incrementalSummarization);
 	}
 
 	public L1DistanceMergeKNNClassifierBuilder setKnnFunc(INearestNeighborFunction<double[]> knnFunc) {
@@ -88,7 +88,25 @@ public class LpDistanceMergeKNNClassifier extends KNNClassifier {
 	public LpDistanceMergeKNNClassifier(ITrainingWindowTransform<double[]> transform, 
 			IFeatureGramDescriptor<double[], double[]> fge, double stddevFactor, boolean enableOutlierDetection,
 			int maxListSize, boolean normalizeFeatures, double p, boolean normalizeWhenMerging) {
-		super(transform, fge, new LpDistanceMergeKNNFunc(p, normalizeWhenMerging), stddevFactor, enableOutlierDetection, maxListSize, normalizeFeatures);
+		this(transform, fge, stddevFactor, enableOutlierDetection, maxListSize, normalizeFeatures, p, normalizeWhenMerging, DEFAULT_INCREMENTAL_SUMMARIZATION);
+	}
+
+	/**
+	 * 
+	 * @param transform
+	 * @param fge if null, then use the default as defined by the super class.
+	 * @param stddevFactor
+	 * @param enableOutlierDetection
+	 * @param p
+	 * @param maxListSize
+	 * @param normalizeWhenMerging
+	 * @param incrementalSummarization if true, then summarize the training data one feature at a time. 
+	 */
+	public LpDistanceMergeKNNClassifier(ITrainingWindowTransform<double[]> transform, 
+			IFeatureGramDescriptor<double[], double[]> fge, double stddevFactor, boolean enableOutlierDetection,
+			int maxListSize, boolean normalizeFeatures, double p, boolean normalizeWhenMerging, boolean incrementalSummarization) {
+		super(transform, fge, new LpDistanceMergeKNNFunc(p, normalizeWhenMerging), stddevFactor, enableOutlierDetection, maxListSize, normalizeFeatures,
+				null, incrementalSummarization);
 	}
 
 	public LpDistanceMergeKNNClassifier(IFeatureGramDescriptor<double[], double[]> fge, boolean enableOutlierDetection) {
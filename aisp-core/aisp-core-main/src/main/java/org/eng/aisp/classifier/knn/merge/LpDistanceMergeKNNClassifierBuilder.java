@@ -39,7 +39,8 @@ public class LpDistanceMergeKNNClassifierBuilder extends KNNClassifierBuilder {
 		List<IFeatureGramDescriptor<double[],double[]>> fgeList = this.getFeatureGramExtractors();
 		if (fgeList.size() > 1)
 			throw new IllegalArgumentException("Only one feature gram extractor is supported");
-		return new LpDistanceMergeKNNClassifier(transform,fgeList.get(0),stdDevFactor, enableOutlierDetection, maxListSize, normalizeFeatures, p, normalizeWhenMerging);
+		return new LpDistanceMergeKNNClassifier(transform,fgeList.get(0),stdDevFactor, enableOutlierDetection, maxListSize, normalizeFeatures, p, normalizeWhenMerging,
+				incrementalSummarization);
 	}
 
 	public LpDistanceMergeKNNClassifierBuilder setKnnFunc(INearestNeighborFunction<double[]> knnFunc) {
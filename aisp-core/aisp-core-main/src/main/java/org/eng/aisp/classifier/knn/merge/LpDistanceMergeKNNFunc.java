@@ -43,6 +43,14 @@ public class LpDistanceMergeKNNFunc extends AbstractMergeKNNFunc implements INea
 	}
 
 
+	/**
+	 * @return the p of the Lp norm used to compute the distance.
+	 */
+	public double getP() {
+		return p;
+	}
+
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#toString()
 	 */
@@ -25,6 +25,7 @@ import org.eng.aisp.SoundRecording;
 import org.eng.cache.IMultiKeyCache;
 import org.eng.util.DelegatingShuffleIterable;
 import org.eng.util.IDereferencer;
+import org.eng.util.ILabelProjection;
 
 /**
  * Extends the super class to compose SoundRecordings using the apply() method of a referencing IReferencedSoundSpec. 
@@ -70,7 +71,19 @@ public class ComposedSoundDataSet extends DelegatingShuffleIterable<SoundRecordi
 	 */
 	public ComposedSoundDataSet(Iterable<String> references, IDereferencer<String, ? extends IReferencedSoundSpec> soundRefDeref, 
 			IDereferencer<IReferencedSoundSpec, SoundRecording> recordingDereferencer, boolean applySpec, IMultiKeyCache cache) {
-		super(references, new ReferencedSoundSpecDereferencer(soundRefDeref, recordingDereferencer, applySpec), cache);
+		this(references, soundRefDeref, recordingDereferencer, applySpec, cache, null);
+	}
+
+	/**
+	 * Extends {@link #ComposedSoundDataSet(Iterable, IDereferencer, IDereferencer, boolean, IMultiKeyCache)} with an optional projection of the labels
+	 * of the SoundRecordings.  The projection should only be provided when the labels of the recordings are fully defined by the IReferencedSoundSpec
+	 * (i.e. the recordingDereferencer does not add labels of its own).
+	 * @param labelProjection optional projection of the labels of the SoundRecordings at the given references. May be null.
+	 * @see  DelegatingShuffleIterable#DelegatingShuffleIterable(Iterable, IDereferencer, IMultiKeyCache, ILabelProjection)
+	 */
+	public ComposedSoundDataSet(Iterable<String> references, IDereferencer<String, ? extends IReferencedSoundSpec> soundRefDeref, 
+			IDereferencer<IReferencedSoundSpec, SoundRecording> recordingDereferencer, boolean applySpec, IMultiKeyCache cache, ILabelProjection labelProjection) {
+		super(references, new ReferencedSoundSpecDereferencer(soundRefDeref, recordingDereferencer, applySpec), cache, labelProjection);
 		this.soundRefDeref = soundRefDeref;
 	}
 
@@ -31,6 +31,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Properties;
 import java.util.Set;
 
@@ -47,6 +48,7 @@ import org.eng.cache.MemoryCache;
 import org.eng.util.CSVTable;
 import org.eng.util.DelegatingShuffleIterable;
 import org.eng.util.IDereferencer;
+import org.eng.util.ILabelProjection;
 import org.eng.util.IShuffleIterable;
 import org.eng.util.StringUtil;
 
@@ -1005,6 +1007,46 @@ public class MetaData extends MemorySoundReferenceDataSet implements ISoundRefer
 		}	
 	}
 
+	/**
+	 * Provides the labels and tags of the recordings produced by a {@link RecordingDereferencer} directly from the records of a MetaData instance
+	 * (i.e. as read from the metadata file) without reading the sound files.
+	 * The recordings are created without labels, so their labels are those of the record, adjusted as in {@link MetaData#adjustAugmentedTags(SoundRecording)}.
+	 * The tags do not include the {@link MetaData#FILENAME_TAG} and {@link MetaData#FILE_REFERENCE_TAG} tags added when reading the sound.
+	 */
+	private static class RecordLabelProjection implements ILabelProjection {
+
+		private final MetaData metaData;
+
+		public RecordLabelProjection(MetaData metaData) {
+			this.metaData = metaData;
+		}
+
+		private IReferencedSoundSpec getRecord(String reference) {
+			IReferencedSoundSpec spec = metaData.dereference(reference);
+			if (spec == null)
+				throw new NoSuchElementException("Reference " + reference + " is not contained in the metadata.");
+			return spec;
+		}
+
+		@Override
+		public Properties getLabels(String reference) {
+			Properties labels = new Properties();
+			labels.putAll(getRecord(reference).getLabels());
+			String startMsecValue = labels.getProperty(START_TIME_MSEC_LABEL);
+			if (startMsecValue != null && Double.valueOf(startMsecValue) != 0)
+				labels.remove(START_TIME_MSEC_LABEL);
+			return labels;
+		}
+
+		@Override
+		public Properties getTags(String reference) {
+			Properties tags = new Properties();
+			tags.putAll(getRecord(reference).getTags());
+			tags.remove(START_TIME_MSEC_LABEL);
+			return tags;
+		}
+	}
+
 	/**
 	 * Read the sound contained in this instance.
 	 * @param reference a reference to a Record for which the sound is being requested.
@@ -1043,7 +1085,7 @@ public class MetaData extends MemorySoundReferenceDataSet implements ISoundRefer
 	 */
 	public ISoundDataSet  readSounds(boolean requireAllFiles) throws IOException {
 		if (requireAllFiles) 
-			return new ComposedSoundDataSet(this.getReferences(), this, new RecordingDereferencer(this), false);	// false because RecordingDereferencer applies the segment spec.
+			return new ComposedSoundDataSet(this.getReferences(), this, new RecordingDereferencer(this), false, null, new RecordLabelProjection(this));	// false because RecordingDereferencer applies the segment spec.
 		
 		// If not requiring all files, then go through and check existence.
 		MetaData md = new MetaData(this.getFileName());
@@ -1060,7 +1102,7 @@ public class MetaData extends MemorySoundReferenceDataSet implements ISoundRefer
 		}
 	
 		ISoundDataSet recordingIterable = 
-				new ComposedSoundDataSet(md.getReferences(), md, new RecordingDereferencer(md),false);	// false because RecordingDereferencer applies the segment spec.
+				new ComposedSoundDataSet(md.getReferences(), md, new RecordingDereferencer(md),false, null, new RecordLabelProjection(md));	// false because RecordingDereferencer applies the segment spec.
 		return recordingIterable;
 	}
 	
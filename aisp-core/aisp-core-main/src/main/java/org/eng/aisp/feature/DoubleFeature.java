@@ -45,5 +45,13 @@ public class DoubleFeature extends DoubleWindow implements IFeature<double[]>, I
 		super(startTimeMsec, endTimeMsec, ds);
 	}
 
+	/**
+	 * Get the independent values as provided to the constructor.
+	 * @return null if the independent values are generated from the start time and sampling rate. 
+	 */
+	public Vector getIndependentVector() {
+		return this.independentVector;
+	}
+
 	
 }
@@ -16,13 +16,19 @@
 package org.eng.aisp.feature;
 
 import java.util.Arrays;
+
+import org.eng.cache.CacheItemSizer;
+import org.eng.cache.ISizeEstimable;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * Contains an array of features, generally computed from subwindows of a single IDataWindow.
  * @author dawood
  *
  * @param <FDATA>
  */
-public class FeatureGram<FDATA> implements IFeatureGram<FDATA> {
+public class FeatureGram<FDATA> implements IFeatureGram<FDATA>, ISizeEstimable {
 	
 	private static final long serialVersionUID = 4099782000013783624L;
 	protected final IFeature<FDATA>[] features;
@@ -40,6 +46,12 @@ public class FeatureGram<FDATA> implements IFeatureGram<FDATA> {
 		return features;
 	}
 
+	@JsonIgnore
+	@Override
+	public long getEstimatedSizeBytes() {
+		return CacheItemSizer.OBJECT_HEADER_BYTES + CacheItemSizer.REFERENCE_BYTES + CacheItemSizer.estimateBytes(features); 
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#hashCode()
 	 */
@@ -0,0 +1,82 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.feature;
+
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.eng.aisp.feature.extractor.IFeatureExtractor;
+import org.eng.aisp.feature.processor.IFeatureProcessor;
+import org.eng.aisp.util.IModelCodec;
+import org.eng.aisp.util.ModelCodecInputStream;
+import org.eng.aisp.util.ModelCodecOutputStream;
+
+/**
+ * Provides the {@link IModelCodec} instances for the feature gram descriptors that define the feature extraction of a classifier.
+ * The extractor and processor of a descriptor are written with their own codec if they have one, and otherwise with Java serialization. 
+ */
+public class FeatureModelCodecs {
+
+	/**
+	 * @return the codecs of the classes of this package.
+	 */
+	public static List<IModelCodec<?>> getCodecs() {
+		List<IModelCodec<?>> codecs = new ArrayList<IModelCodec<?>>();
+		codecs.add(new FeatureGramDescriptorCodec());
+		return codecs;
+	}
+
+	@SuppressWarnings("rawtypes")
+	private static class FeatureGramDescriptorCodec implements IModelCodec<FeatureGramDescriptor> {
+
+		@Override
+		public Class<FeatureGramDescriptor> getModelClass() {
+			return FeatureGramDescriptor.class;
+		}
+
+		@Override
+		public int getVersion() {
+			return 1;
+		}
+
+		@Override
+		public void write(ModelCodecOutputStream ostream, FeatureGramDescriptor model) throws IOException {
+			ostream.writeInt(model.windowSizeMsec);
+			ostream.writeInt(model.windowShiftMsec);
+			ostream.writeModel(model.extractor);
+			ostream.writeModel(model.processor);
+		}
+
+		@SuppressWarnings("unchecked")
+		@Override
+		public FeatureGramDescriptor read(ModelCodecInputStream istream, int version) throws IOException, ClassNotFoundException {
+			int windowSizeMsec = istream.readInt();
+			int windowShiftMsec = istream.readInt();
+			Object extractor = istream.readModel();
+			Object processor = istream.readModel();
+			if (!(extractor instanceof IFeatureExtractor) || (processor != null && !(processor instanceof IFeatureProcessor)))
+				throw new StreamCorruptedException("Invalid feature extractor or processor");
+			try {
+				return new FeatureGramDescriptor(windowSizeMsec, windowShiftMsec, (IFeatureExtractor)extractor, (IFeatureProcessor)processor);
+			} catch (IllegalArgumentException e) {
+				throw new StreamCorruptedException("Invalid feature gram descriptor: " + e.getMessage());
+			}
+		}
+	}
+
+}
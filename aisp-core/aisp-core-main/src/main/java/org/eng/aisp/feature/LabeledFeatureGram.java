@@ -17,13 +17,18 @@ package org.eng.aisp.feature;
 
 import java.util.Properties;
 
+import org.eng.cache.CacheItemSizer;
+import org.eng.cache.ISizeEstimable;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
 /**
  * Contains an array of features, generally computed from subwindows of a single IDataWindow, together with the labels from the source IDataWindow.
  * @author dawood
  *
  * @param <FDATA>
  */
-public class LabeledFeatureGram<FDATA> implements ILabeledFeatureGram<FDATA> {
+public class LabeledFeatureGram<FDATA> implements ILabeledFeatureGram<FDATA>, ISizeEstimable {
 
 	private static final long serialVersionUID = -2378918618334424943L;
 	private final IFeatureGram<FDATA> featureGram;
@@ -48,6 +53,15 @@ public class LabeledFeatureGram<FDATA> implements ILabeledFeatureGram<FDATA> {
 		return labels;
 	}
 
+	/**
+	 * Estimates the size of the feature gram, but not the labels as these are generally shared with the window from which the features were computed.
+	 */
+	@JsonIgnore
+	@Override
+	public long getEstimatedSizeBytes() {
+		return CacheItemSizer.OBJECT_HEADER_BYTES + 2 * CacheItemSizer.REFERENCE_BYTES + CacheItemSizer.estimateBytes(featureGram); 
+	}
+
 	/* (non-Javadoc)
 	 * @see java.lang.Object#hashCode()
 	 */
@@ -0,0 +1,46 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.feature.extractor;
+
+import java.util.List;
+
+import org.eng.aisp.IDataWindow;
+import org.eng.aisp.feature.IFeature;
+
+/**
+ * An optional extension of IFeatureExtractor for extractors that can more efficiently extract the features from all the sub-windows of a window
+ * at once, instead of having {@link #apply(IDataWindow)} called on each sub-window.
+ * 
+ * @param <WINDATA> data returned by {@link IDataWindow#getData()} on window from which features are extracted.
+ * @param <FDATA> data returned by {@link IFeature#getData()} on feature created. 
+ */
+public interface IBatchFeatureExtractor<WINDATA, FDATA> extends IFeatureExtractor<WINDATA, FDATA> {
+
+	/**
+	 * Extract the features from the sub-windows of the given window.  
+	 * The sub-windows are those returned by {@link IDataWindow#subWindow(double, double)} with the first starting at the window's start time, 
+	 * each subsequent one starting windowShiftMsec later, and the last one ending at or before the window's end time.
+	 * The features must be the same as those produced by calling {@link #apply(IDataWindow)} on each sub-window.
+	 * Implementations that cache the features of windows should return cached features for the sub-windows found in the cache,
+	 * and only extract the features of the others.
+	 * @param window
+	 * @param windowSizeMsec the duration of each sub-window.  Must be larger than 0.
+	 * @param windowShiftMsec the amount of time between the start of subsequent sub-windows.  If 0 or less, then windowSizeMsec is used.
+	 * @return the features in time order.  Never null.
+	 */
+	List<IFeature<FDATA>> applyBatch(IDataWindow<WINDATA> window, double windowSizeMsec, double windowShiftMsec);
+
+}
@@ -0,0 +1,118 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.feature.extractor.vector;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.eng.aisp.IDataWindow;
+import org.eng.aisp.feature.IFeature;
+import org.eng.aisp.feature.extractor.IBatchFeatureExtractor;
+import org.eng.aisp.feature.extractor.vector.util.ExtendedFFT;
+import org.eng.aisp.processor.AbstractCachingWindowProcessor;
+import org.eng.aisp.util.Signal2D;
+import org.eng.cache.IMultiKeyCache;
+
+/**
+ * Base class for the extractors computed on the FFT power spectrum of a window, which implements {@link #applyBatch(IDataWindow, double, double)}
+ * as a short-time Fourier transform (STFT) over the sub-windows of the window.
+ * The sub-windows are views onto the window's data and their spectra are computed together by {@link ExtendedFFT#power(List, double, int, double)}.
+ * When the feature cache is enabled, sub-windows whose features are found in the cache are not transformed and the features
+ * of the others are added to the cache, as is done by {@link #apply(IDataWindow)}.
+ * Sub-classes implement {@link #applyImpl(IDataWindow, Signal2D)} and {@link #getPowerSamplingRate()}.
+ */
+public abstract class AbstractBatchingFeatureExtractor extends AbstractCachingWindowProcessor<IDataWindow<double[]>, IFeature<double[]>> 
+			implements IBatchFeatureExtractor<double[], double[]> {
+
+	private static final long serialVersionUID = -3127893140238722531L;
+
+	@Override
+	protected IFeature<double[]> applyImpl(IDataWindow<double[]> window) {
+		return applyImpl(window, null);
+	}
+
+	/**
+	 * Extract the feature from the given window.
+	 * @param window
+	 * @param power if not null, then the power spectrum of the window as computed by {@link ExtendedFFT#power(IDataWindow, double, int, double)}
+	 * with the sampling rate given by {@link #getPowerSamplingRate()}, no extra padding and {@link ExtendedFFT#MAX_PEAK_TO_NOISE_FLOOR_RATIO}. 
+	 * Its values may be modified or referenced by the returned feature.  If null, the implementation computes the spectrum, if needed.
+	 * @return never null.
+	 */
+	protected abstract IFeature<double[]> applyImpl(IDataWindow<double[]> window, Signal2D power);
+
+	/**
+	 * Get the target sampling rate with which the power spectrum passed to {@link #applyImpl(IDataWindow, Signal2D)} is computed. 
+	 * @return a negative value if this instance does not compute its features from such a spectrum, in which case
+	 * {@link #applyBatch(IDataWindow, double, double)} passes a null spectrum.
+	 */
+	protected abstract double getPowerSamplingRate();
+
+	/**
+	 * Extracts the features of the sub-windows that are not in the cache from their spectra computed in a single STFT.
+	 */
+	@Override
+	public List<IFeature<double[]>> applyBatch(IDataWindow<double[]> window, double windowSizeMsec, double windowShiftMsec) {
+		if (windowSizeMsec <= 0)
+			throw new IllegalArgumentException("window size must be larger than 0");
+		if (windowShiftMsec <= 0)
+			windowShiftMsec = windowSizeMsec;
+		double windowEndMsec = window.getEndTimeMsec();
+		double startMsec = window.getStartTimeMsec();
+		double endMsec = startMsec + windowSizeMsec; 
+		List<IDataWindow<double[]>> subWindows = new ArrayList<IDataWindow<double[]>>();
+		while (endMsec <= windowEndMsec) {
+			IDataWindow<double[]> subwin = window.subWindow(startMsec, endMsec);
+			if (subwin != null) 
+				subWindows.add(subwin);
+			startMsec += windowShiftMsec;
+			endMsec += windowShiftMsec;
+		}
+
+		// Get the cached features, if any, and the sub-windows for which we need to extract them.
+		@SuppressWarnings("unchecked")
+		IFeature<double[]>[] features = new IFeature[subWindows.size()];
+		IMultiKeyCache cache = USE_FEATURE_CACHE ? getCache() : null; 
+		List<Integer> missIndices = new ArrayList<Integer>();
+		List<IDataWindow<double[]>> missWindows = new ArrayList<IDataWindow<double[]>>();
+		for (int i=0 ; i<features.length ; i++) {
+			IDataWindow<double[]> subwin = subWindows.get(i);
+			if (cache != null) 
+				features[i] = (IFeature<double[]>)cache.get(this, subwin.getInstanceID());
+			if (features[i] == null) {
+				missIndices.add(i);
+				missWindows.add(subwin);
+			}
+		}
+
+		// Extract the features of the others.
+		if (!missWindows.isEmpty()) {
+			double samplingRate = getPowerSamplingRate();
+			Signal2D[] spectra = samplingRate < 0 ? null : 
+				ExtendedFFT.power(missWindows, samplingRate, 0, ExtendedFFT.MAX_PEAK_TO_NOISE_FLOOR_RATIO);
+			for (int i=0 ; i<missWindows.size() ; i++) {
+				IDataWindow<double[]> subwin = missWindows.get(i);
+				IFeature<double[]> f = applyImpl(subwin, spectra == null ? null : spectra[i]);
+				features[missIndices.get(i)] = f;
+				if (cache != null && f != null)
+					cache.put(f, this, subwin.getInstanceID());
+			}
+		}
+		return new ArrayList<IFeature<double[]>>(Arrays.asList(features));
+	}
+
+}
@@ -20,13 +20,12 @@ import org.eng.aisp.feature.DoubleFeature;
 import org.eng.aisp.feature.IFeature;
 import org.eng.aisp.feature.extractor.IFeatureExtractor;
 import org.eng.aisp.feature.extractor.vector.util.ExtendedFFT;
-import org.eng.aisp.processor.AbstractCachingWindowProcessor;
 import org.eng.aisp.util.Signal2D;
 import org.eng.aisp.util.VectorUtils;
 import org.eng.util.Sample;
 import org.eng.util.Vector;
 
-public class FFTFeatureExtractor extends AbstractCachingWindowProcessor<IDataWindow<double[]>, IFeature<double[]>> implements IFeatureExtractor<double[],double[]>{
+public class FFTFeatureExtractor extends AbstractBatchingFeatureExtractor implements IFeatureExtractor<double[],double[]>{
 
 	private static final long serialVersionUID = 645185293977218415L;
 	
@@ -117,17 +116,20 @@ public class FFTFeatureExtractor extends AbstractCachingWindowProcessor<IDataWin
 
 
 	@Override
-	protected IFeature<double[]> applyImpl(IDataWindow<double[]> window) {
+	protected double getPowerSamplingRate() {
+		return targetSamplingRate;
+	}
+
+	@Override
+	protected IFeature<double[]> applyImpl(IDataWindow<double[]> window, Signal2D power) {
 		// Generate an FFTFeature.
 		if (!(window instanceof IDataWindow))
 			throw new IllegalArgumentException("window must be an instance of " + IDataWindow.class.getName());
 		IDataWindow<double[]> recording = (IDataWindow<double[]>) window;
 
-		Signal2D power;
-		if (targetSamplingRate > 0)
-			power = ExtendedFFT.power(recording.getData(), recording.getSamplingRate(), targetSamplingRate, ExtendedFFT.MAX_PEAK_TO_NOISE_FLOOR_RATIO);
-		else
-			power = ExtendedFFT.power(recording, ExtendedFFT.MAX_PEAK_TO_NOISE_FLOOR_RATIO);
+		// A target rate of 0 uses the default rate defined by ExtendedFFT.
+		if (power == null)
+			power = ExtendedFFT.power(recording, targetSamplingRate, 0, ExtendedFFT.MAX_PEAK_TO_NOISE_FLOOR_RATIO);
         double[] fftPower = power.getYValues(); 
 		fftPower[0] = 0;	// Remove DC component.	 TODO: is it better to normalize the full window mean to 0
 
@@ -23,7 +23,6 @@ import org.eng.aisp.IDataWindow;
 import org.eng.aisp.feature.IFeature;
 import org.eng.aisp.feature.extractor.IDoubleFeatureExtractor;
 import org.eng.aisp.feature.extractor.vector.util.ExtendedFFT;
-import org.eng.aisp.processor.AbstractCachingWindowProcessor;
 import org.eng.aisp.util.Signal2D;
 
 /**
@@ -34,7 +33,7 @@ import org.eng.aisp.util.Signal2D;
  * of the feature.
  */
 
-public class MFCCFeatureExtractor extends AbstractCachingWindowProcessor<IDataWindow<double[]>, IFeature<double[]>> implements IDoubleFeatureExtractor { 
+public class MFCCFeatureExtractor extends AbstractBatchingFeatureExtractor implements IDoubleFeatureExtractor { 
 
 	private static final long serialVersionUID = -8897937414560435754L;
 	// These were found to be best when using the DCASE 2016 Task 2 data with GMM classifier
@@ -115,14 +114,19 @@ public class MFCCFeatureExtractor extends AbstractCachingWindowProcessor<IDataWi
 	}
 	
 	@Override
-	protected IFeature<double[]> applyImpl(IDataWindow<double[]> window) {
+	protected double getPowerSamplingRate() {
+		return MFFBFeatureExtractor.getPowerSamplingRate(targetSamplingRate, numBands);
+	}
+
+	@Override
+	protected IFeature<double[]> applyImpl(IDataWindow<double[]> window, Signal2D power) {
 		
 		if (!(window instanceof IDataWindow))
 			throw new IllegalArgumentException("window must be an instance of " + IDataWindow.class.getName());
 		IDataWindow<double[]> recording = (IDataWindow<double[]>) window;
 		
 		// Don't normalize but take the log of the MFFB.
-		Signal2D feature = MFFBFeatureExtractor.computeMFFB(recording, this.targetSamplingRate, numBands, minFreq, maxFreq, false, true, ExtendedFFT.MAX_PEAK_TO_NOISE_FLOOR_RATIO);
+		Signal2D feature = MFFBFeatureExtractor.computeMFFB(recording, this.targetSamplingRate, numBands, minFreq, maxFreq, false, true, ExtendedFFT.MAX_PEAK_TO_NOISE_FLOOR_RATIO, power);
 		double[] trigLogPower = feature.getYValues();
 		
 		
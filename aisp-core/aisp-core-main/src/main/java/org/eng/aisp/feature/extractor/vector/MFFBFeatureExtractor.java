@@ -18,6 +18,7 @@ package org.eng.aisp.feature.extractor.vector;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 
+import org.eng.aisp.DoubleWindow;
 import org.eng.aisp.IDataWindow;
 import org.eng.aisp.IDataWindow;
 import org.eng.aisp.feature.DoubleFeature;
@@ -25,7 +26,6 @@ import org.eng.aisp.feature.IFeature;
 import org.eng.aisp.feature.extractor.IDoubleFeatureExtractor;
 import org.eng.aisp.feature.extractor.vector.util.ExtendedFFT;
 import org.eng.aisp.feature.extractor.vector.util.TriangleFilter;
-import org.eng.aisp.processor.AbstractCachingWindowProcessor;
 import org.eng.aisp.util.Signal2D;
 import org.eng.aisp.util.VectorUtils;
 import org.eng.util.Vector;
@@ -39,7 +39,7 @@ import org.eng.util.Vector;
  *
  */
 
-public class MFFBFeatureExtractor extends AbstractCachingWindowProcessor<IDataWindow<double[]>, IFeature<double[]>>  implements IDoubleFeatureExtractor {
+public class MFFBFeatureExtractor extends AbstractBatchingFeatureExtractor implements IDoubleFeatureExtractor {
 
 	
 	
@@ -153,11 +153,25 @@ public class MFFBFeatureExtractor extends AbstractCachingWindowProcessor<IDataWi
 	}
 	
 	@Override
-	protected IFeature<double[]> applyImpl(IDataWindow<double[]> window) {
+	protected double getPowerSamplingRate() {
+		return getPowerSamplingRate(targetSamplingRate, numBands);
+	}
+
+	/**
+	 * Get the sampling rate of the power spectrum that can be passed to {@link #computeMFFB(IDataWindow, double, int, int, int, boolean, boolean, double, Signal2D)}.
+	 * Shared with MFCCFeatureExtractor.
+	 * @return -1 if the filter bank is computed with extra padding of the FFT and so can not be computed from a spectrum without it.
+	 */
+	protected static double getPowerSamplingRate(double targetSamplingRate, int numBands) {
+		return numBands > 128 ? -1 : targetSamplingRate;		// See TriangleFilter.filter(IDataWindow,...)
+	}
+
+	@Override
+	protected IFeature<double[]> applyImpl(IDataWindow<double[]> window, Signal2D power) {
 		if (!(window instanceof IDataWindow))
 			throw new IllegalArgumentException("window must be an instance of " + IDataWindow.class.getName());
 
-		Signal2D featureData = computeMFFB((IDataWindow)window, targetSamplingRate, numBands, minFreq, maxFreq, normalize,  useLog, ExtendedFFT.MAX_PEAK_TO_NOISE_FLOOR_RATIO);
+		Signal2D featureData = computeMFFB((IDataWindow)window, targetSamplingRate, numBands, minFreq, maxFreq, normalize,  useLog, ExtendedFFT.MAX_PEAK_TO_NOISE_FLOOR_RATIO, power);
 		
 		IFeature<double[]> feature = buildFeature(window, featureData, this.maxFinalCoefficients);
 		return feature;
@@ -195,9 +209,25 @@ public class MFFBFeatureExtractor extends AbstractCachingWindowProcessor<IDataWi
 	 */
 	protected static Signal2D computeMFFB(IDataWindow<double[]> recording, double targetSamplingRate, int numBands, int minFreq, int maxFreq, 
 			boolean normalize, boolean useLog, double maxPeakToNoiseRation) throws IllegalArgumentException {
-		if (recording.getData().length == 0)
+		return computeMFFB(recording, targetSamplingRate, numBands, minFreq, maxFreq, normalize, useLog, maxPeakToNoiseRation, null);
+	}
+
+	/**
+	 * Same as {@link #computeMFFB(IDataWindow, double, int, int, int, boolean, boolean, double)} except that the filters may be applied to the 
+	 * given, already computed, FFT power spectrum of the window.
+	 * @param power if not null, then the spectrum passed to {@link TriangleFilter#filter(Signal2D, int, int, int)}, which must have been computed
+	 * using the sampling rate returned by {@link #getPowerSamplingRate(double, int)}.
+	 */
+	protected static Signal2D computeMFFB(IDataWindow<double[]> recording, double targetSamplingRate, int numBands, int minFreq, int maxFreq, 
+			boolean normalize, boolean useLog, double maxPeakToNoiseRation, Signal2D power) throws IllegalArgumentException {
+		int dataLength = recording instanceof DoubleWindow ? ((DoubleWindow)recording).getBackingDataLength() : recording.getData().length;
+		if (dataLength == 0)
 			throw new IllegalArgumentException("data array can not be zero length");
-	    Signal2D triangle = TriangleFilter.filter(recording, targetSamplingRate, numBands, minFreq, maxFreq, maxPeakToNoiseRation);
+	    Signal2D triangle;
+	    if (power == null)
+	    	triangle = TriangleFilter.filter(recording, targetSamplingRate, numBands, minFreq, maxFreq, maxPeakToNoiseRation);
+	    else
+	    	triangle = TriangleFilter.filter(power, numBands, minFreq, maxFreq);
 	    
 	    double[] trigPower = triangle.getYValues(); 
 		
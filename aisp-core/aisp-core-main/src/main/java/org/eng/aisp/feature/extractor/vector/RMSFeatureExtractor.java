@@ -15,6 +15,7 @@
  *******************************************************************************/
 package org.eng.aisp.feature.extractor.vector;
 
+import org.eng.aisp.DoubleWindow;
 import org.eng.aisp.IDataWindow;
 import org.eng.aisp.feature.DoubleFeature;
 import org.eng.aisp.feature.IDoubleFeature;
@@ -34,14 +35,26 @@ public class RMSFeatureExtractor extends AbstractCachingWindowProcessor<IDataWin
 
     @Override
     protected IDoubleFeature applyImpl(IDataWindow<double[]> recording) {
-        double samples[] = recording.getData();
+		// Read views on their backing data to avoid copying it.
+		double samples[];
+		int offset, length;
+		if (recording instanceof DoubleWindow) {
+			DoubleWindow dw = (DoubleWindow)recording;
+			samples = dw.getBackingData();
+			offset = dw.getBackingDataOffset();
+			length = dw.getBackingDataLength();
+		} else {
+			samples = recording.getData();
+			offset = 0;
+			length = samples.length;
+		}
 
 		double sum = 0;
-		for (double sample : samples) {
-			sum += Math.pow(sample, 2);
+		for (int i=offset ; i<offset + length ; i++) {
+			sum += Math.pow(samples[i], 2);
 		}
 
-		double rms = Math.sqrt(sum / samples.length);
+		double rms = Math.sqrt(sum / length);
 		return new DoubleFeature(recording.getStartTimeMsec(), recording.getEndTimeMsec(), new double[] { rms,rms });
 
     }
@@ -15,6 +15,7 @@
  *******************************************************************************/
 package org.eng.aisp.feature.extractor.vector;
 
+import org.eng.aisp.DoubleWindow;
 import org.eng.aisp.IDataWindow;
 import org.eng.aisp.feature.DoubleFeature;
 import org.eng.aisp.feature.IFeature;
@@ -34,11 +35,23 @@ public class StatsFeatureExtractor extends AbstractCachingWindowProcessor<IDataW
 
     @Override
     protected DoubleFeature applyImpl(IDataWindow<double[]> recording) {
-        double samples[] = recording.getData();
+		// Read views on their backing data to avoid copying it.
+		double samples[];
+		int offset, length;
+		if (recording instanceof DoubleWindow) {
+			DoubleWindow dw = (DoubleWindow)recording;
+			samples = dw.getBackingData();
+			offset = dw.getBackingDataOffset();
+			length = dw.getBackingDataLength();
+		} else {
+			samples = recording.getData();
+			offset = 0;
+			length = samples.length;
+		}
 
         OnlineStats stats = new OnlineStats();
-		for (double sample : samples) {
-			stats.addSample(Math.abs(sample));
+		for (int i=offset ; i<offset + length ; i++) {
+			stats.addSample(Math.abs(samples[i]));
 		}
 
 		double[] fdata = new double[] { stats.getMean(), stats.getMinimum(), stats.getMaximum(), stats.getStdDev() };
@@ -16,13 +16,11 @@
 package org.eng.aisp.feature.extractor.vector.util;
 
 import java.util.Arrays;
+import java.util.List;
 
-import org.apache.commons.math3.complex.Complex;
-import org.apache.commons.math3.transform.DftNormalization;
-import org.apache.commons.math3.transform.FastFourierTransformer;
-import org.apache.commons.math3.transform.TransformType;
 import org.eng.aisp.AISPLogger;
 import org.eng.aisp.AISPProperties;
+import org.eng.aisp.DoubleWindow;
 import org.eng.aisp.IDataWindow;
 import org.eng.aisp.util.Signal2D;
 import org.eng.aisp.util.VectorUtils;
@@ -37,6 +35,9 @@ import org.jtransforms.fft.DoubleFFT_1D;
  * When the signal length is zero-padded to power of two, upsampling is performed through linear interpolation.
  * When the signal is not padded (improves the precision but requires longer processing time), upsampling is performed directly on the frequency domain.
  * The feature computation also ensures that the sum energy of features remains (approximately) the same with different sampling rates.
+ * <p>
+ * Each thread keeps its own FFT plan, windowing coefficients and scratch buffer for the last FFT length it has used
+ * (up to {@link #FFT_CACHED_MAX_LENGTH}), so that repeated calls on equal length windows allocate little more than the returned power spectrum.
  * @author wangshiq
  *
  */
@@ -82,20 +83,194 @@ public class ExtendedFFT {
 	public final static boolean USE_HANNING_WINDOW = HANNING_WINDOWING_PROPERTY_VALUE.equals(AISPProperties.instance().getProperty(WINDOWING_PROPERTY_NAME, DEFAULT_WINDOWING));
 
 
+	public final static String FFT_CACHED_MAX_LENGTH_PROPERTY_NAME = "feature.fft.cached_max_length";
+	/**
+	 * The largest FFT length for which a thread keeps the FFT plan and scratch buffer for reuse in subsequent calls.
+	 * Longer FFTs create their plan and buffer on each call.
+	 * Default is 65536.
+	 */
+	public final static int FFT_CACHED_MAX_LENGTH = AISPProperties.instance().getProperty(FFT_CACHED_MAX_LENGTH_PROPERTY_NAME, 65536);
+
+	/**
+	 * Holds the FFT plan, windowing coefficients and scratch buffer used by a single thread.
+	 * Only those for the most recently used length are kept, and only up to {@link #FFT_CACHED_MAX_LENGTH}, 
+	 * so that a thread holds onto a bounded amount of memory however many lengths it has used.
+	 */
+	private static class Workspace {
+		private DoubleFFT_1D plan;
+		private int planLength = -1;
+		private double[] window;
+		private double[] buffer = new double[0];
+
+		/**
+		 * Get the plan for an FFT of the given length. 
+		 */
+		DoubleFFT_1D getPlan(int fftLength) {
+			if (fftLength > FFT_CACHED_MAX_LENGTH)
+				return new DoubleFFT_1D(fftLength);
+			if (plan == null || planLength != fftLength) {
+				plan = new DoubleFFT_1D(fftLength);
+				planLength = fftLength;
+			}
+			return plan;
+		}
+
+		/**
+		 * Get the windowing coefficients for data of the given length.
+		 * @return null if windowing is not enabled, otherwise an array that must not be modified.
+		 */
+		double[] getWindow(int dataLength) {
+			if (!USE_HAMMING_WINDOW && !USE_HANNING_WINDOW)
+				return null;
+			if (window != null && window.length == dataLength)
+				return window;
+			double[] w = USE_HAMMING_WINDOW ? VectorUtils.getHammingWindow(dataLength) : VectorUtils.getHanningWindow(dataLength);
+			if (dataLength <= FFT_CACHED_MAX_LENGTH)
+				window = w; 
+			return w;
+		}
+
+		/**
+		 * Get a buffer of at least the given length whose contents are undefined. 
+		 */
+		double[] getBuffer(int fftLength) {
+			if (fftLength > FFT_CACHED_MAX_LENGTH)
+				return new double[fftLength];
+			if (buffer.length < fftLength)
+				buffer = new double[fftLength];
+			return buffer;
+		}
+	}
+
+	private final static ThreadLocal<Workspace> workspace = new ThreadLocal<Workspace>() {
+		@Override
+		protected Workspace initialValue() {
+			return new Workspace();
+		}
+	};
+
+	/**
+	 * The largest number of values in the matrix holding the rows transformed together by {@link #power(List, double, int, double)}.
+	 * Longer lists of windows are transformed in blocks of rows.
+	 */
+	private final static int STFT_MAX_MATRIX_LENGTH = 1 << 20;
+
+	/**
+	 * The samples of a window on which the FFT is computed, after any resampling to the target sampling rate.
+	 */
+	private static class SignalSegment {
+		final double[] data;
+		final int offset;
+		final int length;
+		final double samplesPerSecond;
+
+		SignalSegment(double[] data, int offset, int length, double samplesPerSecond) {
+			this.data = data;
+			this.offset = offset;
+			this.length = length;
+			this.samplesPerSecond = samplesPerSecond;
+		}
+	}
+
+	/**
+	 * A convenience on {@link #power(IDataWindow, double, int, double)} that uses the default max sampling rate ( {@link #DEFAULT_FFT_MAX_SAMPLING_RATE} 
+	 * and no extra padding.
+	 */
 	public static Signal2D power(IDataWindow<double[]> recording, double maxPeakToNoiseRation) {
-//		final double durationMsec = recording.getDurationMsec();
-//		final double[] dataOrigWindow = recording.getData();
-//		if (dataOrigWindow.length == 0)
-//			throw new IllegalArgumentException("recording data window can not be zero length");
-//		final int origSamplingRate = (int) recording.getSamplingRate(dataIndex);
-		double[] data = recording.getData();
+		return power(recording, DEFAULT_FFT_MAX_SAMPLING_RATE, 0, maxPeakToNoiseRation);
+	}
+
+	/**
+	 * Compute the power on the data in the given window.
+	 * If the window is a {@link DoubleWindow}, its data is read directly from {@link DoubleWindow#getBackingData()} so that sub-window views 
+	 * do not need to make a copy of their data.
+	 * @param recording
+	 * @param targetSamplingRate see {@link #power(double[], double, double, int, double)}.
+	 * @param extraPowerOf2Padding see {@link #power(double[], double, double, int, double)}.
+	 * @param maxPeakToNoiseRation see {@link #power(double[], double, double, int, double)}.
+	 * @return
+	 */
+	public static Signal2D power(IDataWindow<double[]> recording, double targetSamplingRate, int extraPowerOf2Padding, double maxPeakToNoiseRation) {
+		double[] data;
+		int offset, length;
+		if (recording instanceof DoubleWindow) {
+			DoubleWindow dw = (DoubleWindow)recording;
+			data = dw.getBackingData();
+			offset = dw.getBackingDataOffset();
+			length = dw.getBackingDataLength();
+		} else {
+			data = recording.getData();
+			offset = 0;
+			length = data.length;
+		}
 		double samplesPerSecond = recording.getSamplingRate();
-//		double durationMsec = recording.getDurationMsec();
-//		double expectedDurationMsec = 1000 * (data.length-1) / samplesPerSecond;
-//		double delta  = expectedDurationMsec - (durationMsec / 1000) ;
-//		if (Math.abs(delta) > .0001)
-//			throw new RuntimeException("duration does not match samples and samples/second");
-		return power(data,samplesPerSecond, maxPeakToNoiseRation);
+		return power(data, offset, length, samplesPerSecond, targetSamplingRate, DEFAULT_PAD_TO_POWER_OF_TWO, extraPowerOf2Padding, maxPeakToNoiseRation, null);
+	}
+
+	/**
+	 * Compute the power spectrum of each of the given windows as a short-time Fourier transform.
+	 * The signals of all windows are first windowed into the rows of a single matrix, which are then transformed using the
+	 * plan shared by all rows, before the power of each row is computed.
+	 * Each spectrum is the same as that returned by {@link #power(IDataWindow, double, int, double)} on the corresponding window.
+	 * This is intended for the equal length sub-windows of a larger window, whose data is read without copying if they 
+	 * are {@link DoubleWindow} views.  Rows needing a different FFT length than the previous row start a new matrix.
+	 * @param windows
+	 * @param targetSamplingRate see {@link #power(double[], double, double, int, double)}.
+	 * @param extraPowerOf2Padding see {@link #power(double[], double, double, int, double)}.
+	 * @param maxPeakToNoiseRation see {@link #power(double[], double, double, int, double)}.
+	 * @return an array of the same length as the list of windows, holding the power spectrum of each window in the same order.
+	 */
+	public static Signal2D[] power(List<? extends IDataWindow<double[]>> windows, double targetSamplingRate, int extraPowerOf2Padding, double maxPeakToNoiseRation) {
+		if (targetSamplingRate <= 0)
+			targetSamplingRate = DEFAULT_FFT_MAX_SAMPLING_RATE;
+		final boolean padToPowerOf2 = DEFAULT_PAD_TO_POWER_OF_TWO;
+		int count = windows.size();
+		SignalSegment[] signals = new SignalSegment[count];
+		for (int i=0 ; i<count ; i++) {
+			IDataWindow<double[]> window = windows.get(i);
+			double[] data;
+			int offset, length;
+			if (window instanceof DoubleWindow) {
+				DoubleWindow dw = (DoubleWindow)window;
+				data = dw.getBackingData();
+				offset = dw.getBackingDataOffset();
+				length = dw.getBackingDataLength();
+			} else {
+				data = window.getData();
+				offset = 0;
+				length = data.length;
+			}
+			signals[i] = getSignal(data, offset, length, window.getSamplingRate(), targetSamplingRate, padToPowerOf2);
+		}
+
+		Workspace ws = workspace.get();
+		Signal2D[] spectra = new Signal2D[count];
+		double[] matrix = new double[0];
+		int first = 0;
+		while (first < count) {
+			// Find the rows that share the first row's FFT length and fit in the matrix.
+			int fftLength = getFFTLength(signals[first].length, padToPowerOf2, extraPowerOf2Padding);
+			int maxRows = Math.max(1, STFT_MAX_MATRIX_LENGTH / fftLength);
+			int end = first + 1;
+			while (end < count && end - first < maxRows && getFFTLength(signals[end].length, padToPowerOf2, extraPowerOf2Padding) == fftLength)
+				end++;
+			int rows = end - first;
+			if (matrix.length < rows * fftLength)
+				matrix = new double[rows * fftLength];
+
+			// Window the signals into the rows, transform each row in place and compute the power of each row. 
+			for (int row=0 ; row<rows ; row++)
+				loadSignal(signals[first + row], ws.getWindow(signals[first + row].length), matrix, row * fftLength, fftLength);
+			DoubleFFT_1D plan = ws.getPlan(fftLength);
+			for (int row=0 ; row<rows ; row++) 
+				plan.realForward(matrix, row * fftLength);
+			for (int row=0 ; row<rows ; row++) {
+				spectra[first + row] = getPower(matrix, row * fftLength, fftLength, signals[first + row].samplesPerSecond, targetSamplingRate, 
+						padToPowerOf2, maxPeakToNoiseRation, null);
+			}
+			first = end;
+		}
+		return spectra;
 	}
 
 //	/**
@@ -119,18 +294,30 @@ public class ExtendedFFT {
 	 * @return
 	 */
 	public static Signal2D power(double[] data, double samplesPerSecond, double maxPeakToNoiseRation ) {
-		return power(data,samplesPerSecond,DEFAULT_FFT_MAX_SAMPLING_RATE, DEFAULT_PAD_TO_POWER_OF_TWO, 0, maxPeakToNoiseRation);
+		return power(data, 0, data.length, samplesPerSecond,DEFAULT_FFT_MAX_SAMPLING_RATE, DEFAULT_PAD_TO_POWER_OF_TWO, 0, maxPeakToNoiseRation, null);
 	}
 	
 	/**
 	 * Convenience on {@link #power(double[], double, double, boolean)} that uses the default pad-to-power-of-2 setting ({@link #DEFAULT_PAD_TO_POWER_OF_TWO}.
 	 */
 	public static Signal2D power(double[] data, double samplesPerSecond, double targetSamplingRate, double maxPeakToNoiseRation ) {
-		return power(data,samplesPerSecond,targetSamplingRate, DEFAULT_PAD_TO_POWER_OF_TWO, 0, maxPeakToNoiseRation);
+		return power(data, 0, data.length, samplesPerSecond,targetSamplingRate, DEFAULT_PAD_TO_POWER_OF_TWO, 0, maxPeakToNoiseRation, null);
 	}
 
 	public static Signal2D power(double[] data, double samplesPerSecond, double targetSamplingRate, int extraPowerOf2Padding, double maxPeakToNoiseRation ) {
-		return power(data,samplesPerSecond,targetSamplingRate, DEFAULT_PAD_TO_POWER_OF_TWO, extraPowerOf2Padding, maxPeakToNoiseRation);
+		return power(data, 0, data.length, samplesPerSecond,targetSamplingRate, DEFAULT_PAD_TO_POWER_OF_TWO, extraPowerOf2Padding, maxPeakToNoiseRation, null);
+	}
+
+	/**
+	 * Same as {@link #power(double[], double, double, int, double)} except that the power spectrum is written into the given array, if it is the correct length.
+	 * This allows callers computing the power of many equal length windows to avoid allocating a new power array on each call
+	 * by passing the y values of the previously returned signal.
+	 * @param fftPower the array to hold the power values.  If null or not the length of the spectrum, then a new array is allocated.  
+	 * The array is referenced by the returned signal, so its contents should not be modified while the signal is in use.
+	 * @return a signal whose y values are the given array if it was the correct length.
+	 */
+	public static Signal2D power(double[] data, double samplesPerSecond, double targetSamplingRate, int extraPowerOf2Padding, double maxPeakToNoiseRation, double[] fftPower) {
+		return power(data, 0, data.length, samplesPerSecond,targetSamplingRate, DEFAULT_PAD_TO_POWER_OF_TWO, extraPowerOf2Padding, maxPeakToNoiseRation, fftPower);
 	}
 
 	/**
@@ -138,6 +325,8 @@ public class ExtendedFFT {
 	 * If the given sampling rate is not the same as the target rate, then the data will be resampled to match the given target rate.
 	 * And if padding to power of two is desired, then it will be padded with 0s after resampling, if any.
 	 * @param data
+	 * @param dataOffset the index in data of the first value of the signal.
+	 * @param dataLength the number of values of the signal in data.
 	 * @param samplesPerSecond sampling rate of given data.
 	 * @param targetSamplingRate sampling rate to resample the given data to and on which the FFT will be computed.  
 	 * Data will not be resampled if samplesPerSecond == targetSamplingRate. 
@@ -151,117 +340,129 @@ public class ExtendedFFT {
 	 * be important when taking the log of these returned values thereby limiting the range to the order of this parameter.
 	 * This prevents the classifiers from capturing the noise floor 
 	 * difference of different training samples, which could have an impact with different bits per sample and different sampling rates.
+	 * @param fftPower if not null and of the same length as the computed spectrum, then the array into which the power values are written.
 	 * @return
 	 */
-	private static Signal2D power(final double[] data, final double samplesPerSecond,  double targetSamplingRate, final boolean padToPowerOf2, final int extraPowerOf2Padding, double maxPeakToNoiseRation) {
-		if (data.length == 0)
-			throw new IllegalArgumentException("recording data window can not be zero length");
+	private static Signal2D power(final double[] data, final int dataOffset, final int dataLength, final double samplesPerSecond,  double targetSamplingRate, 
+			final boolean padToPowerOf2, final int extraPowerOf2Padding, double maxPeakToNoiseRation, double[] fftPower) {
 		if (targetSamplingRate <= 0)
 			targetSamplingRate = DEFAULT_FFT_MAX_SAMPLING_RATE;
-	
-		final boolean inPlace;
-		
-		final double scalingParam;
-		final int usefulFFTLength;
-		final double freqStep;
-		final int totalFFTLength;
-		final Complex[] resultsComplex;
-		
-		
-		double[] dataInWindow;
-		if (samplesPerSecond == targetSamplingRate) {
-			dataInWindow = data;
-			inPlace = false;
-		} else if (samplesPerSecond < targetSamplingRate) {
-			if(padToPowerOf2) {
-				//do interpolation to get more values
-				dataInWindow = VectorUtils.interpolate(data, samplesPerSecond, targetSamplingRate);
-				inPlace = true;
-			} else {
-				// We don't need to interpolate because we can allow the FFT to be computed on the given data
-				// and then at the end we adjust the frequencies based on the original sampling rate and not the target sampling rate.
-				dataInWindow = data;
-				inPlace = false;
-			}
+		SignalSegment signal = getSignal(data, dataOffset, dataLength, samplesPerSecond, targetSamplingRate, padToPowerOf2);
+		int fftLength = getFFTLength(signal.length, padToPowerOf2, extraPowerOf2Padding);
+
+		//Apply windowing into the (zero-padded) FFT buffer 
+		Workspace ws = workspace.get();
+		double[] fftData = ws.getBuffer(fftLength);
+		loadSignal(signal, ws.getWindow(signal.length), fftData, 0, fftLength);
+
+		//Using JTransform to compute FFT (supports any input length)
+		ws.getPlan(fftLength).realForward(fftData);
+
+		return getPower(fftData, 0, fftLength, samplesPerSecond, targetSamplingRate, padToPowerOf2, maxPeakToNoiseRation, fftPower);
+	}
+
+	/**
+	 * Get the samples on which the FFT is computed, resampling the given data to the target sampling rate if required.
+	 * @param targetSamplingRate must be larger than 0.
+	 * @return a signal that references the given data if it is not resampled.
+	 */
+	private static SignalSegment getSignal(final double[] data, final int dataOffset, final int dataLength, final double samplesPerSecond,  
+			double targetSamplingRate, final boolean padToPowerOf2) {
+		if (dataLength == 0)
+			throw new IllegalArgumentException("recording data window can not be zero length");
+		if (samplesPerSecond == targetSamplingRate || (samplesPerSecond < targetSamplingRate && !padToPowerOf2)) {
+			// If upsampling without padding, we don't need to interpolate because we can allow the FFT to be computed on the given data
+			// and then at the end we adjust the frequencies based on the original sampling rate and not the target sampling rate.
+			return new SignalSegment(data, dataOffset, dataLength, samplesPerSecond);
+		} 
+		double[] signal;
+		double[] resampleData = dataOffset == 0 && dataLength == data.length ? data : Arrays.copyOfRange(data, dataOffset, dataOffset + dataLength);
+		if (samplesPerSecond < targetSamplingRate) {
+			//do interpolation to get more values
+			signal = VectorUtils.interpolate(resampleData, samplesPerSecond, targetSamplingRate);
 		} else {	// samplesPerSecond > targetSamplingRate
 			// down sample to get the expected number of samples.
-			double durationMsec = 1000 * data.length / samplesPerSecond;
+			double durationMsec = 1000 * dataLength / samplesPerSecond;
 			AISPLogger.logger.fine("Input sampling rate (" + samplesPerSecond + " samples/sec) is higher than " + targetSamplingRate 
 					+ ", downsampling to " + targetSamplingRate  + " ");
 
 			int samples = (int)(targetSamplingRate * durationMsec / 1000.0 + .5);
-			dataInWindow = new double[samples];
-			Sample.downSample(data , dataInWindow, true);
-			inPlace = true;
+			signal = new double[samples];
+			Sample.downSample(resampleData , signal, true);
 		}
+		return new SignalSegment(signal, 0, signal.length, samplesPerSecond);
+	}
 
-//		double newSamplingRate = targetSamplingRate;  //New sampling rate is always equal to targetSamplingRate (sounds with higher sampling rates are downsampled)
-		
-		//Apply windowing
-		if (USE_HAMMING_WINDOW)
-			dataInWindow = VectorUtils.applyHammingWindow(dataInWindow, inPlace);	
-		else if (USE_HANNING_WINDOW)
-			dataInWindow = VectorUtils.applyHanningWindow(dataInWindow, inPlace);	
-		
-		if(padToPowerOf2) {
-			dataInWindow = MathUtil.padToPowerOfTwo(dataInWindow);
-			if (extraPowerOf2Padding > 1)
-				dataInWindow = Arrays.copyOf(dataInWindow, extraPowerOf2Padding*dataInWindow.length);
-			//Using Apache maths to compute FFT (only supports input length that is a power of two)
-	        FastFourierTransformer trans=new FastFourierTransformer(DftNormalization.UNITARY);
-	        resultsComplex = trans.transform(dataInWindow,TransformType.FORWARD);		
-	        usefulFFTLength = resultsComplex.length / 2;   //Divide by two because the amplitude of FFT is symmetric and the highest frequency is in the middle of x-axis
+	private static int getFFTLength(int signalLength, boolean padToPowerOf2, int extraPowerOf2Padding) {
+		int fftLength = padToPowerOf2 ? MathUtil.upperPowerOfTwo(signalLength) : signalLength;
+		if (extraPowerOf2Padding > 1)
+			fftLength *= extraPowerOf2Padding;
+		return fftLength;
+	}
+
+	/**
+	 * Copy the windowed signal into the given FFT buffer at the given offset and pad it with 0s to the FFT length.
+	 * @param window windowing coefficients of the same length as the signal, or null if none.
+	 */
+	private static void loadSignal(SignalSegment signal, double[] window, double[] fftData, int fftOffset, int fftLength) {
+		if (window == null) {
+			System.arraycopy(signal.data, signal.offset, fftData, fftOffset, signal.length);
 		} else {
-			if (extraPowerOf2Padding > 1)
-				dataInWindow = Arrays.copyOf(dataInWindow, extraPowerOf2Padding*dataInWindow.length);
-			//Using JTransform to compute FFT (supports any input length)
-	        DoubleFFT_1D doubleFFT = new DoubleFFT_1D(dataInWindow.length);
-	        double[] resultsFFT = Arrays.copyOf(dataInWindow, dataInWindow.length);
-	        doubleFFT.realForward(resultsFFT);
-	        resultsComplex = new Complex[resultsFFT.length / 2];
-	        
-	        for (int i=0; i < resultsComplex.length; i++) {
-	        	if (i*2 + 1 < resultsFFT.length)
-	        		resultsComplex[i] = new Complex(resultsFFT[i*2], resultsFFT[i*2 + 1]);
-	        	else
-	        		resultsComplex[i] = new Complex(resultsFFT[i*2], 0.0);
-	        }
-	        usefulFFTLength = resultsComplex.length;
+			for (int i=0 ; i<signal.length ; i++)
+				fftData[fftOffset + i] = signal.data[signal.offset + i] * window[i];
 		}
+		Arrays.fill(fftData, fftOffset + signal.length, fftOffset + fftLength, 0);
+	}
+
+	/**
+	 * Compute the power spectrum from the output of {@link DoubleFFT_1D#realForward(double[], int)}.
+	 * @param fftData holds the FFT results starting at fftOffset.
+	 * @param fftPower if not null and of the same length as the computed spectrum, then the array into which the power values are written.
+	 */
+	private static Signal2D getPower(double[] fftData, int fftOffset, int fftLength, double samplesPerSecond, double targetSamplingRate,
+			boolean padToPowerOf2, double maxPeakToNoiseRation, double[] fftPower) {
+		final double scalingParam;
+		final int resultsLength;	// The number of complex FFT results.
+		final int usefulFFTLength;
+		final double freqStep;
+		final int totalFFTLength;
 
-        double lenDouble = (double)dataInWindow.length;  //Use double to avoid integer overflow when the length is large
+        double lenDouble = (double)fftLength;  //Use double to avoid integer overflow when the length is large
         scalingParam = 1.0 / (lenDouble * lenDouble);  //TODO Check the correctness of this scaling factor (theoretically). Checking with the test code seems to confirm that this is correct.
         
+		final double powerScaling;
 		if(padToPowerOf2) {
+			resultsLength = fftLength;
+	        usefulFFTLength = resultsLength / 2;   //Divide by two because the amplitude of FFT is symmetric and the highest frequency is in the middle of x-axis
 //	        freqStep =  1.0/ (double)usefulFFTLength * targetSamplingRate / 2.0;  //Max. frequency is recording.getSamplingRate() / 2.0 due to Nyquist sampling theorem.
 	        freqStep =  (double)targetSamplingRate / usefulFFTLength / 2.0 ;  //Max. frequency is recording.getSamplingRate() / 2.0 due to Nyquist sampling theorem.
 	        totalFFTLength = usefulFFTLength;
+	        powerScaling = scalingParam / lenDouble;	// Use the unitary normalization of the FFT 
 		} else {
+			resultsLength = fftLength / 2;
+			usefulFFTLength = resultsLength;
 	        //Max. frequency is recording.getSamplingRate() / 2.0 due to Nyquist sampling theorem.
 	        //Note: Use original sampling rate here because new sampling rate will be obtained through zero padding in the frequency domain.
 	        freqStep =  1.0/ (double)usefulFFTLength * samplesPerSecond / 2.0;  
 	        totalFFTLength = (int) (targetSamplingRate / 2.0 / freqStep);
-	        
-        
+	        powerScaling = scalingParam;
 		}
         
-        
-        
         // Fill frequency array.
-//        double[] fftFreq= new double[totalFFTLength];
-//        for (int i=0; i<fftFreq.length; i++) 
-//        	fftFreq[i] = i * freqStep;
         Vector fftFreq = new Vector(0, freqStep, totalFFTLength);
 
         // Fill power array
-        double[] fftPower = new double[totalFFTLength];
+        if (fftPower == null || fftPower.length != totalFFTLength)
+        	fftPower = new double[totalFFTLength];
         double thresh = 0.0;
-        for (int i=0; i<fftPower.length; i++) {
-        	if (i < resultsComplex.length) {
-        		double amp = resultsComplex[i].abs();
-		        fftPower[i] = amp * amp * scalingParam;
-		        thresh = Math.max(thresh, fftPower[i]);  //Compute threshold
-        	} 
+        int powerLength = Math.min(totalFFTLength, resultsLength);
+        for (int i=0; i<powerLength; i++) {
+        	// realForward() stores the real and imaginary parts of the i'th coefficient at 2*i and 2*i+1, 
+        	// except the imaginary part of the 0'th, which is 0, holds the real part of the n/2'th.
+        	double re = fftData[fftOffset + 2*i];
+        	double im = padToPowerOf2 && i == 0 ? 0 : fftData[fftOffset + 2*i+1];
+	        fftPower[i] = (re * re + im * im) * powerScaling;
+	        thresh = Math.max(thresh, fftPower[i]);  //Compute threshold
         }
         
         // For frequency components that are below threshold or outside the frequency 
@@ -271,16 +472,12 @@ public class ExtendedFFT {
         // value will greatly extend the range which may reduce sensitivity for some computations.
         thresh /= maxPeakToNoiseRation;
         for (int i=0; i<fftPower.length; i++) {
-        	if ((fftPower[i] < thresh) || (i >= resultsComplex.length)) {
+        	if ((i >= powerLength) || (fftPower[i] < thresh)) {
         		fftPower[i] = thresh;
         	}
         }        
         
         return new Signal2D(fftFreq, fftPower);
 	}
-	
-	
-	
-	
 
 }
@@ -15,8 +15,8 @@
  *******************************************************************************/
 package org.eng.aisp.feature.extractor.vector.util;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import org.eng.aisp.IDataWindow;
 import org.eng.aisp.util.Signal2D;
@@ -39,26 +39,59 @@ public class TriangleFilter  {
 	 * @param maxPeakToNoiseRation 
 	 */
 	public static Signal2D filter(IDataWindow<double[]> recording, double targetSamplingRate, int numBands, int minFreq, int maxFreq, double maxPeakToNoiseRation) {
-		return filter(recording.getData(), recording.getSamplingRate(), targetSamplingRate, numBands, minFreq, maxFreq, maxPeakToNoiseRation);
+		if (numBands > 128)	// See filter(double[]...) 
+			return filter(recording.getData(), recording.getSamplingRate(), targetSamplingRate, numBands, minFreq, maxFreq, maxPeakToNoiseRation);
+		// Let the FFT avoid copying the data of sub-window views more than once.
+		Signal2D power = ExtendedFFT.power(recording, targetSamplingRate, 1, maxPeakToNoiseRation);
+		return filter(power, numBands, minFreq, maxFreq);
 	}
 
 	
-	private static Map<String,Integer> paddingMultiplierCache = new HashMap<String,Integer>();
+	/**
+	 * Identifies the inputs for which a padding multiplier was computed by {@link TriangleFilter#filterWithExtraPadding(double[], double, double, int, int, int, double)}.
+	 */
+	private static class PaddingKey {
+		private final int dataLength;
+		private final double samplesPerSecond;
+		private final double targetSamplingRate;
+		private final int numBands;
+
+		PaddingKey(double[] data, double samplesPerSecond, double targetSamplingRate, int numBands) {
+			this.dataLength = data.length;
+			this.samplesPerSecond = samplesPerSecond;
+			this.targetSamplingRate = targetSamplingRate;
+			this.numBands = numBands;
+		}
 
-	private synchronized static Integer getCachedPaddingMultiplier(double[] data, double samplesPerSecond, double targetSamplingRate, int numBands) {
-		String padKey = getPadKey(data, samplesPerSecond, targetSamplingRate, numBands);
-		Integer multiplier = paddingMultiplierCache.get(padKey);
-		return multiplier;
-	}
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + dataLength;
+			result = prime * result + numBands;
+			long temp;
+			temp = Double.doubleToLongBits(samplesPerSecond);
+			result = prime * result + (int) (temp ^ (temp >>> 32));
+			temp = Double.doubleToLongBits(targetSamplingRate);
+			result = prime * result + (int) (temp ^ (temp >>> 32));
+			return result;
+		}
 
-	private synchronized static void addCachedPaddingMultiplier(double[] data, double samplesPerSecond, double targetSamplingRate, int numBands, int paddingMultiplier) {
-		String padKey = getPadKey(data, samplesPerSecond, targetSamplingRate, numBands);
-		Integer multiplier = paddingMultiplierCache.put(padKey,paddingMultiplier);
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof PaddingKey))
+				return false;
+			PaddingKey other = (PaddingKey) obj;
+			return dataLength == other.dataLength 
+					&& numBands == other.numBands
+					&& Double.doubleToLongBits(samplesPerSecond) == Double.doubleToLongBits(other.samplesPerSecond)
+					&& Double.doubleToLongBits(targetSamplingRate) == Double.doubleToLongBits(other.targetSamplingRate);
+		}
 	}
 
-	private static String getPadKey(double[] data, double samplesPerSecond, double targetSamplingRate, int numBands) {
-		return "" + data.length + samplesPerSecond + targetSamplingRate + numBands;
-	}
+	private final static Map<PaddingKey,Integer> paddingMultiplierCache = new ConcurrentHashMap<PaddingKey,Integer>();
 
 	/**
 	 * Applies FFT extraction and triangular filter on the window's getData() value using the sampling rate for the 0th datum. 
@@ -83,23 +116,35 @@ public class TriangleFilter  {
 
 	private static Signal2D filterWithoutExtraPadding(double[] data, double samplesPerSecond, double targetSamplingRate, int numBands, int minFreq, int maxFreq, double maxPeakToNoiseRation) {
 		Signal2D power = ExtendedFFT.power(data, samplesPerSecond, targetSamplingRate, 1, maxPeakToNoiseRation);
-		double[] fftFreq = power.getXValues().getVector(); 
-		double[] fftPower = power.getYValues(); 
-		Signal2D triangle = TriangleFilter.filter2(fftFreq, fftPower, numBands, minFreq, maxFreq);
-		return triangle;
+		return filter(power, numBands, minFreq, maxFreq);
+	}
+
+	/**
+	 * Applies the triangular filters within the specified frequency range on the given FFT power coefficients.
+	 * This is the same as {@link #filter(IDataWindow, double, int, int, int, double)} when numBands is 128 or less and the power
+	 * was computed by {@link ExtendedFFT#power(IDataWindow, double, int, double)} with no extra padding.
+	 * @param power 
+	 * @param numBands
+	 * @param minFreq
+	 * @param maxFreq
+	 * @return a pair of arrays, each of length numBands.
+	 */
+	public static Signal2D filter(Signal2D power, int numBands, int minFreq, int maxFreq) {
+		TriangleFilterBank filterBank = TriangleFilterBank.getFilterBank(power.getXValues(), numBands, minFreq, maxFreq);
+		double[] bandPower = filterBank.apply(power.getYValues());
+		return new Signal2D(filterBank.getBandFrequencies(), bandPower);
 	}
 
 	private static Signal2D filterWithExtraPadding(double[] data, double samplesPerSecond, double targetSamplingRate, int numBands, int minFreq, int maxFreq, double maxPeakToNoiseRation) {
 		boolean done = true;
-        Integer cachedPaddingMultiplier = getCachedPaddingMultiplier(data,samplesPerSecond, targetSamplingRate, numBands); 
+        PaddingKey padKey = new PaddingKey(data, samplesPerSecond, targetSamplingRate, numBands);
+        Integer cachedPaddingMultiplier = paddingMultiplierCache.get(padKey); 
         int paddingMultiplier = cachedPaddingMultiplier == null ? 1 : cachedPaddingMultiplier;
         		
         Signal2D triangle; 
         do {
 			Signal2D power = ExtendedFFT.power(data, samplesPerSecond, targetSamplingRate, paddingMultiplier, maxPeakToNoiseRation);
-			double[] fftFreq = power.getXValues().getVector(); 
-			double[] fftPower = power.getYValues(); 
-			triangle = TriangleFilter.filter2(fftFreq, fftPower, numBands, minFreq, maxFreq);
+			triangle = filter(power, numBands, minFreq, maxFreq);
 			double[] values = triangle.getYValues();
 			if (cachedPaddingMultiplier == null) {
 				boolean hasZero = false;
@@ -116,63 +161,11 @@ public class TriangleFilter  {
 			}
         } while (!done);
         if (cachedPaddingMultiplier == null)
-        	addCachedPaddingMultiplier(data,samplesPerSecond, targetSamplingRate, numBands, paddingMultiplier);
+        	paddingMultiplierCache.put(padKey, paddingMultiplier);
         return triangle;
 	}
 
 
-	/**
-	 * Applies triangular filter on FFT power coefficients within the specified frequency range.
-	 * @param fftFreq
-	 * @param fftPower
-	 * @param numBands
-	 * @param minFreq
-	 * @param maxFreq
-	 * @param maxPeakToNoiseRation 
-	 * @return an array of length numBands.
-	 */
-	private static Signal2D filter2(final double[] fftFreq, final double[] fftPower, int numBands, int minFreq, int maxFreq) {
-		//compute center frequencies
-		minFreq= Math.max(minFreq, 0);
-		maxFreq = Math.min(maxFreq, (int)fftFreq[fftFreq.length-1]);
-
-		int[] centerFreqs = getCenteredFrequencies(numBands, minFreq, maxFreq);
-
-		double[] power = new double[numBands];
-
-		for(int i = 1; i < numBands+1; i++) {
-			int startFreq  = centerFreqs[i-1];
-			int centerFreq = centerFreqs[i];
-			int stopFreq   = centerFreqs[i+1];
-
-			double delta2 = Math.pow(centerFreq - startFreq, 2);
-			double divisor1 = 1.0 / delta2;
-			delta2 = Math.pow(centerFreq - stopFreq, 2);
-			double divisor2 = 1.0 / delta2;
-			power[i-1] = 0;
-			for (int j=0; j<fftFreq.length; j++) {
-				double freq = fftFreq[j];
-//				if(freq >= startFreq && freq <= centerFreq) {
-//					power[i-1] += fftPower[j] * (freq - startFreq) * divisor1; 
-//				} else if(freq > centerFreq && freq <= stopFreq) {
-//					power[i-1] += fftPower[j] * (stopFreq - freq) * divisor2;
-//				}
-				boolean past = freq > stopFreq;
-				if (freq >= startFreq && !past) { 
-					if (freq <= centerFreq)
-						power[i-1] += fftPower[j] * (freq - startFreq) * divisor1; 
-					else
-						power[i-1] += fftPower[j] * (stopFreq - freq) * divisor2;
-				} else if (past) {
-					break;
-				}
-			}
-			
-		}
-		Vector freqVector = getCachedVector(centerFreqs, numBands, minFreq, maxFreq);
-		return new Signal2D(freqVector,power);
-	}
-
 	private final static IMultiKeyCache centeredFequencyCache = Cache.newMemoryCache();
 
 	/**
@@ -205,27 +198,6 @@ public class TriangleFilter  {
 		return centerFreqs;
 	}
 
-	/** 
-	 * This should always be true, but is put here to allow Inoue-san to turn off for his local testing of the OOM errors 
-	 * found on 35 hours of training data.  Circa 6/2020.
-	 */
-//	private final static boolean doVectorCaching = false; // AISPProperties.instance().getProperty("triangle.frequency.caching.enabled", true);
-	
-	private final static IMultiKeyCache vectorCache = Cache.newMemoryCache();
-
-	private static synchronized Vector getCachedVector(int[] centerFreqs,  int numBands, int minFreq, int maxFreq) {
-		Vector v = (Vector)vectorCache.get(numBands,minFreq,maxFreq);
-		if (v == null) {
-			double[] frequency = new double[numBands];
-			for(int i = 1; i < numBands+1; i++) 
-				frequency[i-1] = centerFreqs[i];
-
-			v = new Vector(frequency);
-			vectorCache.put(v, numBands, minFreq,maxFreq);
-		}
-		return v;
-	}
-
 	public static int freqToMel(int freq) {
 		return (int) (2595.0 * Math.log10(1.0 + (double)freq/700.0));
 	}
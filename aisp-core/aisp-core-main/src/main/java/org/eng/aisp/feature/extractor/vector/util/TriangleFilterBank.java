@@ -0,0 +1,229 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.feature.extractor.vector.util;
+
+import java.util.Arrays;
+
+import org.eng.aisp.AISPProperties;
+import org.eng.cache.BoundedMemoryCache;
+import org.eng.cache.CacheItemSizer;
+import org.eng.cache.IMultiKeyCache;
+import org.eng.cache.ISizeEstimable;
+import org.eng.util.Vector;
+
+/**
+ * An immutable matrix of the triangle filter weights applied to the FFT power coefficients to produce the power in each band.
+ * The matrix is sparse, since each band only covers the FFT frequencies between its neighboring bands' center frequencies,
+ * and so is stored in compressed sparse row (CSR) form with one row per band.
+ * <p>
+ * Instances are shared and are obtained through {@link #getFilterBank(Vector, int, int, int)}, which keeps the most recently used
+ * instances in a cache bounded by {@link #FILTER_BANK_CACHE_MAX_KBYTES}.
+ */
+class TriangleFilterBank implements ISizeEstimable {
+
+	public final static String FILTER_BANK_CACHE_MAX_KBYTES_PROPERTY_NAME = "feature.triangle_filter.cache_max_kbytes";
+	/**
+	 * The maximum size in kilobytes of the filter banks kept for reuse, after which the least recently used are evicted.
+	 * A filter bank takes roughly 24 bytes per FFT coefficient.
+	 * Default is 4096.
+	 */
+	final static int FILTER_BANK_CACHE_MAX_KBYTES = AISPProperties.instance().getProperty(FILTER_BANK_CACHE_MAX_KBYTES_PROPERTY_NAME, 4096);
+
+	/** The number of independently locked partitions of the cache, each with an equal share of its size */
+	private final static int FILTER_BANK_CACHE_STRIPES = 4;
+
+	/** Index into {@link #columns} and {@link #weights} of the first non-zero entry of each band, plus the total number of entries at the end */
+	private final int[] rowStarts;
+	/** The index of the FFT coefficient for each non-zero entry */
+	private final int[] columns;
+	/** The weight applied to the FFT coefficient for each non-zero entry */
+	private final double[] weights;
+	/** The center frequency of each band */
+	private final Vector bandFrequencies;
+
+	/**
+	 * Identifies a filter bank by the FFT frequencies, number of bands and frequency range.
+	 */
+	private static class Key {
+		private final double origin;
+		private final double delta;
+		private final int length;
+		private final int numBands;
+		private final int minFreq;
+		private final int maxFreq;
+
+		Key(Vector fftFreq, int numBands, int minFreq, int maxFreq) {
+			this.origin = fftFreq.getOrigin();
+			this.delta = fftFreq.getDelta();
+			this.length = fftFreq.length();
+			this.numBands = numBands;
+			this.minFreq = minFreq;
+			this.maxFreq = maxFreq;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			long temp;
+			temp = Double.doubleToLongBits(delta);
+			result = prime * result + (int) (temp ^ (temp >>> 32));
+			result = prime * result + length;
+			result = prime * result + maxFreq;
+			result = prime * result + minFreq;
+			result = prime * result + numBands;
+			temp = Double.doubleToLongBits(origin);
+			result = prime * result + (int) (temp ^ (temp >>> 32));
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return Double.doubleToLongBits(delta) == Double.doubleToLongBits(other.delta)
+					&& length == other.length
+					&& maxFreq == other.maxFreq
+					&& minFreq == other.minFreq
+					&& numBands == other.numBands
+					&& Double.doubleToLongBits(origin) == Double.doubleToLongBits(other.origin);
+		}
+	}
+
+	private final static IMultiKeyCache<Key, TriangleFilterBank> filterBankCache = new BoundedMemoryCache<Key, TriangleFilterBank>(
+			1024L * FILTER_BANK_CACHE_MAX_KBYTES, FILTER_BANK_CACHE_STRIPES);
+
+	/**
+	 * Get the filter bank for the given FFT frequencies, number of bands and frequency range.
+	 * Filter banks for FFT frequencies that are regularly spaced (see {@link Vector#isRegular()}), as produced by {@link ExtendedFFT}, are cached.
+	 * @param fftFreq
+	 * @param numBands
+	 * @param minFreq
+	 * @param maxFreq
+	 * @return never null.
+	 */
+	static TriangleFilterBank getFilterBank(Vector fftFreq, int numBands, int minFreq, int maxFreq) {
+		if (!fftFreq.isRegular())
+			return new TriangleFilterBank(fftFreq.getVector(), numBands, minFreq, maxFreq);
+		Key key = new Key(fftFreq, numBands, minFreq, maxFreq);
+		TriangleFilterBank bank = filterBankCache.get(key);
+		if (bank == null) {
+			// Vector.getVector() is not thread-safe, so use a copy of the vector to compute the frequencies.
+			Vector freq = new Vector(fftFreq.getOrigin(), fftFreq.getDelta(), fftFreq.length());
+			bank = new TriangleFilterBank(freq.getVector(), numBands, minFreq, maxFreq);
+			filterBankCache.put(bank, key);
+		}
+		return bank;
+	}
+
+	/**
+	 * Compute the weights of the triangle filters on the given frequencies.
+	 * @param fftFreq
+	 * @param numBands
+	 * @param minFreq
+	 * @param maxFreq
+	 */
+	private TriangleFilterBank(double[] fftFreq, int numBands, int minFreq, int maxFreq) {
+		//compute center frequencies
+		minFreq= Math.max(minFreq, 0);
+		maxFreq = Math.min(maxFreq, (int)fftFreq[fftFreq.length-1]);
+
+		int[] centerFreqs = TriangleFilter.getCenteredFrequencies(numBands, minFreq, maxFreq);
+
+		int[] rowStarts = new int[numBands+1];
+		int[] columns = new int[fftFreq.length];
+		double[] weights = new double[fftFreq.length];
+		int count = 0;
+		for(int i = 1; i < numBands+1; i++) {
+			int startFreq  = centerFreqs[i-1];
+			int centerFreq = centerFreqs[i];
+			int stopFreq   = centerFreqs[i+1];
+
+			double delta2 = Math.pow(centerFreq - startFreq, 2);
+			double divisor1 = 1.0 / delta2;
+			delta2 = Math.pow(centerFreq - stopFreq, 2);
+			double divisor2 = 1.0 / delta2;
+			rowStarts[i-1] = count;
+			for (int j=0; j<fftFreq.length; j++) {
+				double freq = fftFreq[j];
+				if (freq > stopFreq)
+					break;
+				if (freq >= startFreq) {
+					double weight;
+					if (freq <= centerFreq)
+						weight = (freq - startFreq) * divisor1;
+					else
+						weight = (stopFreq - freq) * divisor2;
+					if (weight != 0) {
+						if (count == columns.length) {
+							columns = Arrays.copyOf(columns, 2 * count);
+							weights = Arrays.copyOf(weights, 2 * count);
+						}
+						columns[count] = j;
+						weights[count] = weight;
+						count++;
+					}
+				}
+			}
+		}
+		rowStarts[numBands] = count;
+		this.rowStarts = rowStarts;
+		this.columns = Arrays.copyOf(columns, count);
+		this.weights = Arrays.copyOf(weights, count);
+
+		double[] frequency = new double[numBands];
+		for(int i = 1; i < numBands+1; i++)
+			frequency[i-1] = centerFreqs[i];
+		this.bandFrequencies = new Vector(frequency);
+	}
+
+	/**
+	 * Apply the filters to the given FFT power coefficients.
+	 * @param fftPower power at each of the frequencies used to create this instance.
+	 * @return a new array of length numBands.
+	 */
+	double[] apply(double[] fftPower) {
+		int numBands = rowStarts.length - 1;
+		double[] power = new double[numBands];
+		for (int i=0 ; i<numBands ; i++) {
+			double sum = 0;
+			for (int k=rowStarts[i] ; k<rowStarts[i+1] ; k++)
+				sum += fftPower[columns[k]] * weights[k];
+			power[i] = sum;
+		}
+		return power;
+	}
+
+	@Override
+	public long getEstimatedSizeBytes() {
+		int numBands = rowStarts.length - 1;
+		return CacheItemSizer.OBJECT_HEADER_BYTES + 4 * CacheItemSizer.REFERENCE_BYTES 
+				+ CacheItemSizer.ARRAY_HEADER_BYTES + 4L * rowStarts.length
+				+ 2 * CacheItemSizer.ARRAY_HEADER_BYTES + 12L * columns.length
+				+ CacheItemSizer.DEFAULT_OBJECT_BYTES + CacheItemSizer.ARRAY_HEADER_BYTES + 8L * numBands; 
+	}
+
+	/**
+	 * @return the center frequency of each band, which must not be modified.
+	 */
+	Vector getBandFrequencies() {
+		return bandFrequencies;
+	}
+
+}
@@ -0,0 +1,74 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.feature.pipeline;
+
+import java.util.List;
+
+import org.eng.aisp.IDataWindow;
+import org.eng.aisp.feature.IFeatureGram;
+import org.eng.aisp.feature.IFeatureGramDescriptor;
+
+/**
+ * Extends the super class to read feature grams from a DiskFeatureGramCache when available and to store them there when they are extracted.
+ * @author dawood
+ *
+ * @param <WINDATA>
+ * @param <FDATA>
+ */
+public class DiskCachingFeatureExtractionPipeline<WINDATA,FDATA> extends FeatureExtractionPipeline<WINDATA, FDATA> {
+
+	private final DiskFeatureGramCache diskCache;
+
+	public DiskCachingFeatureExtractionPipeline(List<IFeatureGramDescriptor<WINDATA, FDATA>> featureGramDescriptors, DiskFeatureGramCache diskCache) {
+		super(featureGramDescriptors);
+		if (diskCache == null)
+			throw new IllegalArgumentException("disk cache can not be null");
+		this.diskCache = diskCache;
+	}
+
+	/**
+	 * Override to compute the window's hash only once for all feature grams.
+	 */
+	@Override
+	public IFeatureGram<FDATA>[] extract(IDataWindow<WINDATA> dataWindow) {
+		long windowHash = DiskFeatureGramCache.getWindowHash(dataWindow);
+		@SuppressWarnings("unchecked")
+		IFeatureGram<FDATA>[] fgArray = new IFeatureGram[extractorList.size()];
+		int index = 0;
+		for (FeatureGramExtractor<WINDATA, FDATA> fge : extractorList) {
+			fgArray[index] = extract(dataWindow, windowHash, fge);
+			index++;
+		}
+		return fgArray;
+	}
+
+	@Override
+	protected IFeatureGram<FDATA> extract(IDataWindow<WINDATA> dataWindow, FeatureGramExtractor<WINDATA, FDATA> fge) {
+		return extract(dataWindow, DiskFeatureGramCache.getWindowHash(dataWindow), fge);
+	}
+
+	@SuppressWarnings("unchecked")
+	private IFeatureGram<FDATA> extract(IDataWindow<WINDATA> dataWindow, long windowHash, FeatureGramExtractor<WINDATA, FDATA> fge) {
+		IFeatureGramDescriptor<WINDATA, FDATA> fgd = fge.getFeatureGramDescriptor();
+		IFeatureGram<FDATA> fg = (IFeatureGram<FDATA>)diskCache.get(windowHash, fgd);
+		if (fg == null) {
+			fg = super.extract(dataWindow, fge);
+			diskCache.put(windowHash, fgd, fg);
+		}
+		return fg;
+	}
+
+}
@@ -0,0 +1,781 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.feature.pipeline;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import org.eng.aisp.AISPLogger;
+import org.eng.aisp.AISPProperties;
+import org.eng.aisp.IDataWindow;
+import org.eng.aisp.feature.DoubleFeature;
+import org.eng.aisp.feature.FeatureGram;
+import org.eng.aisp.feature.IFeature;
+import org.eng.aisp.feature.IFeatureGram;
+import org.eng.aisp.feature.IFeatureGramDescriptor;
+import org.eng.util.ClassUtilities;
+import org.eng.util.Vector;
+
+/**
+ * Stores feature grams in a local directory so that they can be read back instead of being extracted again,
+ * for example on later epochs or folds of a training run over a large data set.
+ * <p>
+ * Feature grams are written as flat arrays of double (or float) values into fixed size segment files that are memory-mapped.
+ * Each segment file has a small index file listing the entries it holds, so that the cache can be reloaded by a later process.
+ * Entries are keyed by a 64-bit hash of the window's data, times and sampling rate together with a SHA-256 digest of the
+ * Java serialization of the IFeatureGramDescriptor.  The latter covers the configuration of the extractor and processor so that a 
+ * change in that configuration never reads back features produced by a previous configuration, and unlike the descriptor's hash code
+ * is the same in every process.  Descriptors that can not be serialized are not cached.  Entries that are no longer used in this
+ * way are reclaimed by the least-recently-used eviction of segment files that keeps the total size under a configured maximum.
+ * Entries removed by {@link #invalidate(IFeatureGramDescriptor)} are also removed from the index files, so that they are not
+ * read back by a later process.
+ * <p>
+ * Only feature grams computed from windows of double[] into {@link DoubleFeature} instances are cached.  Others are ignored by
+ * {@link #put(long, IFeatureGramDescriptor, IFeatureGram)}.
+ * <p>
+ * The shared instance is configured with the following properties:
+ * <ul>
+ * <li> {@value #DIR_PROPERTY_NAME} - the directory holding the cache files.  Defaults to a directory under java.io.tmpdir.
+ * <li> {@value #MAX_MBYTES_PROPERTY_NAME} - the maximum size of the files in the directory.  Defaults to {@value #MAX_MBYTES_DEFAULT}.
+ * <li> {@value #SEGMENT_MBYTES_PROPERTY_NAME} - the size of each segment file and so the unit of eviction.  Defaults to {@value #SEGMENT_MBYTES_DEFAULT}.
+ * <li> {@value #USE_FLOAT_PROPERTY_NAME} - if true, then store feature values as floats to halve the space required, at the cost of precision.
+ * Defaults to {@value #USE_FLOAT_DEFAULT}.
+ * </ul>
+ * A directory may only be used by one process at a time.
+ * This class is thread-safe.
+ * @author dawood
+ */
+public class DiskFeatureGramCache {
+
+	public final static String DIR_PROPERTY_NAME = "feature.gram.disk.cache.dir";
+	public final static String MAX_MBYTES_PROPERTY_NAME = "feature.gram.disk.cache.max_mbytes";
+	public final static int MAX_MBYTES_DEFAULT = 4096;
+	public final static String SEGMENT_MBYTES_PROPERTY_NAME = "feature.gram.disk.cache.segment_mbytes";
+	public final static int SEGMENT_MBYTES_DEFAULT = 64;
+	public final static String USE_FLOAT_PROPERTY_NAME = "feature.gram.disk.cache.float";
+	public final static boolean USE_FLOAT_DEFAULT = false;
+
+	private final static String SEGMENT_SUFFIX = ".seg";
+	private final static String INDEX_SUFFIX = ".idx";
+	private final static String TEMP_SUFFIX = ".tmp";
+	private final static String LOCK_FILE_NAME = "cache.lock";
+	private final static int INDEX_MAGIC = 0x41465343;	// 'AFSC'
+	private final static int FORMAT_VERSION = 2;
+	private final static String DIGEST_ALGORITHM = "SHA-256";
+	private final static int DIGEST_BYTES = 32;
+	/** Values of the independent type field for each feature */
+	private final static int NO_INDEPENDENT = 0, REGULAR_INDEPENDENT = 1, EXPLICIT_INDEPENDENT = 2;
+
+	private static DiskFeatureGramCache sharedCache = null;
+	private static boolean sharedCacheFailed = false;
+
+	private final File directory;
+	private final long maxBytes;
+	private final int segmentBytes;
+	private final boolean useFloat;
+	private final RandomAccessFile lockFile;
+	private final FileLock lock;
+
+	/** Segments in least to most recently used order */
+	private final LinkedHashMap<Integer, Segment> segments = new LinkedHashMap<Integer, Segment>(16, 0.75f, true);
+	private final Map<Key, Entry> index = new HashMap<Key, Entry>();
+	private Segment activeSegment = null;
+	private int nextSegmentID = 0;
+	private long totalBytes = 0;
+
+	/** Digests of the descriptors seen by this instance, so that each is only serialized once */
+	private final Map<IFeatureGramDescriptor<?,?>, byte[]> digests = new WeakHashMap<IFeatureGramDescriptor<?,?>, byte[]>();
+
+	/**
+	 * Identifies a feature gram by the window it was computed from and the digest of the descriptor used to compute it.
+	 */
+	private static class Key {
+		final long windowHash;
+		final byte[] descriptorDigest;
+
+		Key(long windowHash, byte[] descriptorDigest) {
+			this.windowHash = windowHash;
+			this.descriptorDigest = descriptorDigest;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int)(windowHash ^ (windowHash >>> 32)) * 31 + Arrays.hashCode(descriptorDigest);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key)obj;
+			return windowHash == other.windowHash && Arrays.equals(descriptorDigest, other.descriptorDigest);
+		}
+	}
+
+	/**
+	 * Locates an encoded feature gram within a segment.
+	 */
+	private static class Entry {
+		final Segment segment;
+		final int offset;
+		final int length;
+
+		Entry(Segment segment, int offset, int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * A segment file, its index file and the keys of the entries it holds.
+	 */
+	private static class Segment {
+		final int id;
+		final File dataFile;
+		final File indexFile;
+		final MappedByteBuffer buffer;
+		final List<Key> keys = new ArrayList<Key>();
+		/** Only non-null while this is the segment being written to */
+		DataOutputStream indexOut;
+		int used = 0;
+		/** The number of calls to get() currently decoding from this segment's mapping */
+		int readers = 0;
+		/** Set once the segment has been removed from the cache. The data file is deleted when there are no more readers */
+		boolean discarded = false;
+
+		Segment(int id, File dataFile, File indexFile, MappedByteBuffer buffer) {
+			this.id = id;
+			this.dataFile = dataFile;
+			this.indexFile = indexFile;
+			this.buffer = buffer;
+		}
+	}
+
+	/**
+	 * Get the cache shared by all users within this JVM, as configured by the properties listed in the class documentation.
+	 * @return null if the cache directory could not be created or is in use by another process.
+	 */
+	public static synchronized DiskFeatureGramCache getSharedCache() {
+		if (sharedCache == null && !sharedCacheFailed) {
+			String dflt = System.getProperty("java.io.tmpdir") + File.separator + "aisp-feature-cache";
+			File dir = new File(AISPProperties.instance().getProperty(DIR_PROPERTY_NAME, dflt));
+			long maxBytes = 1024L * 1024L * AISPProperties.instance().getProperty(MAX_MBYTES_PROPERTY_NAME, MAX_MBYTES_DEFAULT);
+			int segmentBytes = 1024 * 1024 * AISPProperties.instance().getProperty(SEGMENT_MBYTES_PROPERTY_NAME, SEGMENT_MBYTES_DEFAULT);
+			boolean useFloat = AISPProperties.instance().getProperty(USE_FLOAT_PROPERTY_NAME, USE_FLOAT_DEFAULT);
+			try {
+				sharedCache = new DiskFeatureGramCache(dir, maxBytes, segmentBytes, useFloat);
+			} catch (IOException e) {
+				sharedCacheFailed = true;
+				AISPLogger.logger.warning("Could not open disk cache of feature grams in " + dir + ": " + e.getMessage());
+			}
+		}
+		return sharedCache;
+	}
+
+	/**
+	 * Open the cache in the given directory and load any entries previously stored there.
+	 * @param directory directory to hold the cache files.  Created if it does not exist.
+	 * @param maxBytes the maximum number of bytes to be stored in the directory.
+	 * @param segmentBytes the size of each segment file.  Feature grams larger than this are not cached.
+	 * @param useFloat if true, store feature values as floats instead of doubles.
+	 * Entries previously stored using the other precision are discarded.
+	 * @throws IOException if the directory could not be created or is locked by another process.
+	 */
+	public DiskFeatureGramCache(File directory, long maxBytes, int segmentBytes, boolean useFloat) throws IOException {
+		if (maxBytes <= 0 || segmentBytes <= 0)
+			throw new IllegalArgumentException("maximum and segment size must be positive");
+		if (!directory.isDirectory() && !directory.mkdirs())
+			throw new IOException("Could not create directory " + directory);
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+		this.segmentBytes = segmentBytes;
+		this.useFloat = useFloat;
+		this.lockFile = new RandomAccessFile(new File(directory, LOCK_FILE_NAME), "rw");
+		FileLock lock = null;
+		try {
+			lock = lockFile.getChannel().tryLock();
+		} catch (IOException e) {
+			lock = null;
+		}
+		if (lock == null) {
+			lockFile.close();
+			throw new IOException("Directory " + directory + " is in use by another process");
+		}
+		this.lock = lock;
+		loadSegments();
+	}
+
+	/**
+	 * Compute the hash used to identify the given window in the cache.
+	 * @param window
+	 * @return 0 if the window's data is not a double[] and so can not be cached.
+	 */
+	public static long getWindowHash(IDataWindow<?> window) {
+		Object data = window.getData();
+		if (!(data instanceof double[]))
+			return 0;
+		double[] values = (double[])data;
+		long h = 0x9E3779B97F4A7C15L;
+		h = mix(h, Double.doubleToLongBits(window.getStartTimeMsec()));
+		h = mix(h, Double.doubleToLongBits(window.getEndTimeMsec()));
+		h = mix(h, Double.doubleToLongBits(window.getSamplingRate()));
+		h = mix(h, values.length);
+		for (int i=0 ; i<values.length ; i++)
+			h = mix(h, Double.doubleToLongBits(values[i]));
+		// Finalize as in MurmurHash3
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h == 0 ? 1 : h;
+	}
+
+	private static long mix(long h, long value) {
+		value *= 0x87c37b91114253d5L;
+		value = Long.rotateLeft(value, 31);
+		value *= 0x4cf5ad432745937fL;
+		h ^= value;
+		h = Long.rotateLeft(h, 27);
+		return h * 5 + 0x52dce729;
+	}
+
+	/**
+	 * Get the digest that identifies the given descriptor in the cache.
+	 * @param fgd
+	 * @return null if the descriptor can not be serialized and so can not be cached.
+	 */
+	private synchronized byte[] getDescriptorDigest(IFeatureGramDescriptor<?,?> fgd) {
+		byte[] digest = digests.get(fgd);
+		if (digest == null && !digests.containsKey(fgd)) {
+			try {
+				digest = MessageDigest.getInstance(DIGEST_ALGORITHM).digest(ClassUtilities.serialize(fgd));
+			} catch (IOException | NoSuchAlgorithmException e) {
+				AISPLogger.logger.warning("Feature grams of " + fgd + " can not be cached: " + e.getMessage());
+				digest = null;
+			}
+			digests.put(fgd, digest);
+		}
+		return digest;
+	}
+
+	/**
+	 * Get the feature gram stored for the given window and descriptor.
+	 * @param windowHash as returned by {@link #getWindowHash(IDataWindow)}.
+	 * @param fgd
+	 * @return null if not found.
+	 */
+	public IFeatureGram<double[]> get(long windowHash, IFeatureGramDescriptor<?,?> fgd) {
+		if (windowHash == 0)
+			return null;
+		byte[] digest = getDescriptorDigest(fgd);
+		if (digest == null)
+			return null;
+		Key key = new Key(windowHash, digest);
+		Entry entry;
+		ByteBuffer buffer;
+		synchronized (this) {
+			entry = index.get(key);
+			if (entry == null)
+				return null;
+			segments.get(entry.segment.id);		// Mark the segment as most recently used.
+			entry.segment.readers++;			// Keep the data file until we are done decoding.
+			buffer = entry.segment.buffer.duplicate();
+		}
+		// Decode outside the lock. If the segment is evicted in the meantime, its data file is not deleted until we release it.
+		try {
+			buffer.position(entry.offset);
+			buffer.limit(entry.offset + entry.length);
+			return decode(buffer.slice());
+		} catch (RuntimeException e) {
+			AISPLogger.logger.warning("Discarding unreadable feature gram from disk cache: " + e.getMessage());
+			synchronized (this) {
+				index.remove(key);
+			}
+			return null;
+		} finally {
+			synchronized (this) {
+				releaseSegment(entry.segment);
+			}
+		}
+	}
+
+	/**
+	 * Store the feature gram computed from the given window using the given descriptor.
+	 * If needed, the least recently used segment files are removed to stay within the configured size.
+	 * @param windowHash as returned by {@link #getWindowHash(IDataWindow)}.
+	 * @param fgd
+	 * @param featureGram
+	 * @return true if stored, false if the feature gram is not of a type that can be stored or is too large.
+	 */
+	public boolean put(long windowHash, IFeatureGramDescriptor<?,?> fgd, IFeatureGram<?> featureGram) {
+		if (windowHash == 0)
+			return false;
+		int length = getEncodedLength(featureGram);
+		if (length < 0 || length > segmentBytes)
+			return false;
+		byte[] digest = getDescriptorDigest(fgd);
+		if (digest == null)
+			return false;
+		Key key = new Key(windowHash, digest);
+		synchronized (this) {
+			if (index.containsKey(key))
+				return true;
+			try {
+				if (activeSegment == null || activeSegment.used + length > segmentBytes) {
+					sealActiveSegment();
+					activeSegment = newSegment();
+				}
+				ByteBuffer buffer = activeSegment.buffer.duplicate();
+				int offset = activeSegment.used;
+				buffer.position(offset);
+				encode(buffer, featureGram);
+				activeSegment.used += length;
+				totalBytes += length;
+				activeSegment.keys.add(key);
+				writeIndexEntry(activeSegment.indexOut, key, offset, length);
+				index.put(key, new Entry(activeSegment, offset, length));
+			} catch (IOException e) {
+				AISPLogger.logger.warning("Could not write feature gram to disk cache in " + directory + ": " + e.getMessage());
+				return false;
+			}
+			evict();
+		}
+		return true;
+	}
+
+	/**
+	 * Remove all entries stored for the given descriptor.
+	 * The index files of the segments holding them are rewritten without them and segments left with no entries are deleted,
+	 * so that the entries are not loaded again by a later instance.
+	 * @param fgd
+	 * @return the number of entries removed.
+	 */
+	public synchronized int invalidate(IFeatureGramDescriptor<?,?> fgd) {
+		byte[] digest = getDescriptorDigest(fgd);
+		if (digest == null)
+			return 0;
+		Set<Segment> affected = new HashSet<Segment>();
+		int count = 0;
+		Iterator<Map.Entry<Key,Entry>> iter = index.entrySet().iterator();
+		while (iter.hasNext()) {
+			Map.Entry<Key,Entry> mapEntry = iter.next();
+			if (Arrays.equals(mapEntry.getKey().descriptorDigest, digest)) {
+				affected.add(mapEntry.getValue().segment);
+				iter.remove();
+				count++;
+			}
+		}
+		for (Segment segment : affected) {
+			// Keep only the keys of the entries still held in this segment.
+			List<Key> liveKeys = new ArrayList<Key>();
+			for (Key key : segment.keys) {
+				Entry entry = index.get(key);
+				if (entry != null && entry.segment == segment)
+					liveKeys.add(key);
+			}
+			segment.keys.clear();
+			segment.keys.addAll(liveKeys);
+			if (segment == activeSegment)
+				sealActiveSegment();	// Start a new segment on the next put() instead of appending to the rewritten index.
+			if (segment.keys.isEmpty()) {
+				removeSegment(segment);
+			} else {
+				try {
+					rewriteIndex(segment);
+				} catch (IOException e) {
+					AISPLogger.logger.warning("Could not rewrite disk cache index " + segment.indexFile + ": " + e.getMessage());
+					removeSegment(segment);		// Don't let the invalidated entries be loaded again.
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Remove all entries and their files from the cache.
+	 */
+	public synchronized void clear() {
+		for (Segment segment : new ArrayList<Segment>(segments.values()))
+			removeSegment(segment);
+		activeSegment = null;
+	}
+
+	/**
+	 * Close the files in use by this instance and release the lock on the directory.
+	 * Entries remain on disk and may be loaded by a subsequent instance.
+	 * The instance may not be used after this call.
+	 */
+	public synchronized void close() {
+		sealActiveSegment();
+		segments.clear();
+		index.clear();
+		totalBytes = 0;
+		try {
+			lock.release();
+			lockFile.close();
+		} catch (IOException e) {
+			AISPLogger.logger.warning("Could not release lock on " + directory + ": " + e.getMessage());
+		}
+	}
+
+	/**
+	 * @return the number of feature grams available in the cache.
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * @return the number of bytes used by the segment files of the cache.
+	 */
+	public synchronized long getSizeBytes() {
+		return totalBytes;
+	}
+
+	/**
+	 * @return the number of segment files in use.
+	 */
+	public synchronized int getSegmentCount() {
+		return segments.size();
+	}
+
+	/**
+	 * Remove least recently used segments until we are under the maximum number of bytes. The active segment is never removed.
+	 */
+	private void evict() {
+		Iterator<Segment> iter = segments.values().iterator();
+		while (totalBytes > maxBytes && iter.hasNext()) {
+			Segment segment = iter.next();
+			if (segment != activeSegment) {
+				iter.remove();
+				discardSegment(segment);
+			}
+		}
+	}
+
+	private void removeSegment(Segment segment) {
+		segments.remove(segment.id);
+		discardSegment(segment);
+	}
+
+	/**
+	 * Remove the entries and files of a segment that has already been removed from {@link #segments}.
+	 */
+	private void discardSegment(Segment segment) {
+		for (Key key : segment.keys) {
+			Entry entry = index.get(key);
+			if (entry != null && entry.segment == segment)
+				index.remove(key);
+		}
+		totalBytes -= segment.used;
+		if (segment.indexOut != null) {
+			try {
+				segment.indexOut.close();
+			} catch (IOException e) {
+				;	// Ignore as we're deleting the file.
+			}
+			segment.indexOut = null;
+		}
+		if (segment == activeSegment)
+			activeSegment = null;
+		// Delete the index first so that the segment is never reloaded.  Orphaned data files are deleted by loadSegments().
+		if (!segment.indexFile.delete())
+			AISPLogger.logger.warning("Could not delete disk cache index " + segment.indexFile);
+		segment.discarded = true;
+		if (segment.readers == 0)
+			deleteDataFile(segment);
+	}
+
+	/**
+	 * Called when a reader is done with the mapping of the given segment, to delete its data file if it was discarded in the meantime.
+	 */
+	private void releaseSegment(Segment segment) {
+		segment.readers--;
+		if (segment.discarded && segment.readers == 0)
+			deleteDataFile(segment);
+	}
+
+	private static void deleteDataFile(Segment segment) {
+		if (!segment.dataFile.delete() && segment.dataFile.exists())
+			AISPLogger.logger.warning("Could not delete disk cache segment " + segment.dataFile);
+	}
+
+	/**
+	 * Replace the index file of the given sealed segment with one listing only the entries still held in the segment.
+	 * The replacement keeps the modification time of the original so that the segment's age is unchanged when reloaded.
+	 */
+	private void rewriteIndex(Segment segment) throws IOException {
+		File tempFile = new File(directory, segment.indexFile.getName() + TEMP_SUFFIX);
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+			writeIndexHeader(out);
+			for (Key key : segment.keys) {
+				Entry entry = index.get(key);
+				if (entry != null && entry.segment == segment)
+					writeIndexEntry(out, key, entry.offset, entry.length);
+			}
+		}
+		tempFile.setLastModified(segment.indexFile.lastModified());
+		Files.move(tempFile.toPath(), segment.indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+
+	private void sealActiveSegment() {
+		if (activeSegment == null)
+			return;
+		try {
+			activeSegment.buffer.force();
+			activeSegment.indexOut.close();
+		} catch (IOException e) {
+			AISPLogger.logger.warning("Could not close disk cache index " + activeSegment.indexFile + ": " + e.getMessage());
+		}
+		activeSegment.indexOut = null;
+		activeSegment = null;
+	}
+
+	private Segment newSegment() throws IOException {
+		int id = nextSegmentID++;
+		File dataFile = new File(directory, String.format("%08d", id) + SEGMENT_SUFFIX);
+		File indexFile = new File(directory, String.format("%08d", id) + INDEX_SUFFIX);
+		MappedByteBuffer buffer;
+		try (RandomAccessFile raf = new RandomAccessFile(dataFile, "rw")) {
+			buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentBytes);	// Mapping remains valid after the file is closed.
+		}
+		Segment segment = new Segment(id, dataFile, indexFile, buffer);
+		segment.indexOut = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+		writeIndexHeader(segment.indexOut);
+		segments.put(id, segment);
+		return segment;
+	}
+
+	private void writeIndexHeader(DataOutputStream out) throws IOException {
+		out.writeInt(INDEX_MAGIC);
+		out.writeInt(FORMAT_VERSION);
+		out.writeBoolean(useFloat);
+	}
+
+	private static void writeIndexEntry(DataOutputStream out, Key key, int offset, int length) throws IOException {
+		out.writeLong(key.windowHash);
+		out.write(key.descriptorDigest);
+		out.writeInt(offset);
+		out.writeInt(length);
+	}
+
+	/**
+	 * Load the segments found in our directory, in order of their last modification so that the oldest is evicted first.
+	 * Segments that can not be read or were written with a different format are deleted, as are data files without an index file
+	 * and index files left incomplete by {@link #rewriteIndex(Segment)}.
+	 */
+	private void loadSegments() {
+		File[] files = directory.listFiles();
+		if (files == null)
+			return;
+		List<File> indexFileList = new ArrayList<File>();
+		for (File file : files) {
+			String name = file.getName();
+			if (name.endsWith(INDEX_SUFFIX)) {
+				indexFileList.add(file);
+			} else if (name.endsWith(TEMP_SUFFIX)) {
+				file.delete();
+			} else if (name.endsWith(SEGMENT_SUFFIX)) {
+				String baseName = name.substring(0, name.length() - SEGMENT_SUFFIX.length());
+				if (!new File(directory, baseName + INDEX_SUFFIX).exists())
+					file.delete();
+			}
+		}
+		File[] indexFiles = indexFileList.toArray(new File[indexFileList.size()]);
+		Arrays.sort(indexFiles, (f1, f2) -> Long.compare(f1.lastModified(), f2.lastModified()));
+		for (File indexFile : indexFiles) {
+			String name = indexFile.getName();
+			String baseName = name.substring(0, name.length() - INDEX_SUFFIX.length());
+			File dataFile = new File(directory, baseName + SEGMENT_SUFFIX);
+			Segment segment = null;
+			try {
+				int id = Integer.parseInt(baseName);
+				segment = loadSegment(id, dataFile, indexFile);
+				nextSegmentID = Math.max(nextSegmentID, id + 1);
+			} catch (NumberFormatException | IOException e) {
+				segment = null;
+			}
+			if (segment == null) {
+				indexFile.delete();
+				dataFile.delete();
+			} else {
+				segments.put(segment.id, segment);
+				totalBytes += segment.used;
+			}
+		}
+		evict();
+	}
+
+	/**
+	 * @return null if the segment was written with a different format.
+	 */
+	private Segment loadSegment(int id, File dataFile, File indexFile) throws IOException {
+		if (!dataFile.exists())
+			return null;
+		Segment segment;
+		List<Entry> entries = new ArrayList<Entry>();
+		try (RandomAccessFile raf = new RandomAccessFile(dataFile, "r");
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+			if (in.readInt() != INDEX_MAGIC || in.readInt() != FORMAT_VERSION || in.readBoolean() != useFloat)
+				return null;
+			long fileLength = raf.length();
+			segment = new Segment(id, dataFile, indexFile, raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, fileLength));
+			while (true) {
+				long windowHash;
+				try {
+					windowHash = in.readLong();
+				} catch (EOFException e) {
+					break;
+				}
+				byte[] digest = new byte[DIGEST_BYTES];
+				in.readFully(digest);
+				Key key = new Key(windowHash, digest);
+				int offset = in.readInt();
+				int length = in.readInt();
+				if (offset < 0 || length <= 0 || offset + length > fileLength)
+					throw new IOException("Invalid entry in index " + indexFile);
+				segment.keys.add(key);
+				segment.used = Math.max(segment.used, offset + length);
+				entries.add(new Entry(segment, offset, length));
+			}
+		} catch (EOFException e) {
+			return null;	// Truncated header.
+		}
+		// Only add to the index once we know the whole segment is valid.
+		for (int i=0 ; i<entries.size() ; i++)
+			index.put(segment.keys.get(i), entries.get(i));
+		return segment;
+	}
+
+	/**
+	 * Get the number of bytes required to encode the given feature gram.
+	 * @return -1 if the feature gram can not be encoded.
+	 */
+	private int getEncodedLength(IFeatureGram<?> featureGram) {
+		IFeature<?>[] features = featureGram.getFeatures();
+		int valueBytes = useFloat ? 4 : 8;
+		long length = 4;	// Feature count
+		for (IFeature<?> f : features) {
+			if (!(f instanceof DoubleFeature))
+				return -1;
+			DoubleFeature df = (DoubleFeature)f;
+			length += 8 + 8 + 4 + 4;	// start, end, data length, independent type
+			Vector v = df.getIndependentVector();
+			if (v != null)
+				length += v.isRegular() ? 8 + 8 + 4 : 4 + 8L * v.length();
+			length += (long)valueBytes * df.getData().length;
+		}
+		return length > Integer.MAX_VALUE ? -1 : (int)length;
+	}
+
+	private void encode(ByteBuffer buffer, IFeatureGram<?> featureGram) {
+		IFeature<?>[] features = featureGram.getFeatures();
+		buffer.putInt(features.length);
+		for (IFeature<?> f : features) {
+			DoubleFeature df = (DoubleFeature)f;
+			double[] data = df.getData();
+			buffer.putDouble(df.getStartTimeMsec());
+			buffer.putDouble(df.getEndTimeMsec());
+			buffer.putInt(data.length);
+			Vector v = df.getIndependentVector();
+			if (v == null) {
+				buffer.putInt(NO_INDEPENDENT);
+			} else if (v.isRegular()) {
+				buffer.putInt(REGULAR_INDEPENDENT);
+				buffer.putDouble(v.getOrigin());
+				buffer.putDouble(v.getDelta());
+				buffer.putInt(v.length());
+			} else {
+				double[] values = v.getVector();
+				buffer.putInt(EXPLICIT_INDEPENDENT);
+				buffer.putInt(values.length);
+				buffer.asDoubleBuffer().put(values);
+				buffer.position(buffer.position() + 8 * values.length);
+			}
+			if (useFloat) {
+				for (int i=0 ; i<data.length ; i++)
+					buffer.putFloat((float)data[i]);
+			} else {
+				buffer.asDoubleBuffer().put(data);
+				buffer.position(buffer.position() + 8 * data.length);
+			}
+		}
+	}
+
+	private IFeatureGram<double[]> decode(ByteBuffer buffer) {
+		int count = buffer.getInt();
+		IFeature<double[]>[] features = new IFeature[count];
+		for (int i=0 ; i<count ; i++) {
+			double startMsec = buffer.getDouble();
+			double endMsec = buffer.getDouble();
+			double[] data = new double[buffer.getInt()];
+			int independentType = buffer.getInt();
+			Vector v;
+			if (independentType == NO_INDEPENDENT) {
+				v = null;
+			} else if (independentType == REGULAR_INDEPENDENT) {
+				v = new Vector(buffer.getDouble(), buffer.getDouble(), buffer.getInt());
+			} else if (independentType == EXPLICIT_INDEPENDENT) {
+				double[] values = new double[buffer.getInt()];
+				buffer.asDoubleBuffer().get(values);
+				buffer.position(buffer.position() + 8 * values.length);
+				v = new Vector(values);
+			} else {
+				throw new IllegalArgumentException("Unexpected independent type " + independentType);
+			}
+			if (useFloat) {
+				for (int j=0 ; j<data.length ; j++)
+					data[j] = buffer.getFloat();
+			} else {
+				buffer.asDoubleBuffer().get(data);
+				buffer.position(buffer.position() + 8 * data.length);
+			}
+			features[i] = new DoubleFeature(startMsec, endMsec, v, data);
+		}
+		return new FeatureGram<double[]>(features);
+	}
+
+}
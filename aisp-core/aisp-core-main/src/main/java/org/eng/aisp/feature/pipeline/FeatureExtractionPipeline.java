@@ -62,6 +62,17 @@ public class FeatureExtractionPipeline<WINDATA,FDATA> {
 			this.extractorList.add(new FeatureGramExtractor<WINDATA,FDATA>(fgd));
 	}
 
+	/**
+	 * Get the descriptors of the feature grams produced by this instance, in the order they appear in the arrays returned by the extract() methods.
+	 * @return never null.
+	 */
+	public List<IFeatureGramDescriptor<WINDATA,FDATA>> getFeatureGramDescriptors() {
+		List<IFeatureGramDescriptor<WINDATA,FDATA>> fgdList = new ArrayList<IFeatureGramDescriptor<WINDATA,FDATA>>();
+		for (FeatureGramExtractor<WINDATA, FDATA> fge : extractorList) 
+			fgdList.add(fge.getFeatureGramDescriptor());
+		return fgdList;
+	}
+
 	public ILabeledFeatureGram<FDATA>[] extract(ILabeledDataWindow<WINDATA> labeledDataWindow) {
 //		AISPLogger.logger.info("Getting features from labeled window with id " + labeledDataWindow.getDataWindow().getInstanceID());
 		IFeatureGram<FDATA>[] features = extract(labeledDataWindow.getDataWindow());
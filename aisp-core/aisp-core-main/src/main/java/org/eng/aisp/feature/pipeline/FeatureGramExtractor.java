@@ -17,20 +17,20 @@ package org.eng.aisp.feature.pipeline;
 
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import org.eng.aisp.AISPProperties;
 import org.eng.aisp.IDataWindow;
 import org.eng.aisp.feature.FeatureGram;
 import org.eng.aisp.feature.FeatureGramDescriptor;
 import org.eng.aisp.feature.IFeature;
 import org.eng.aisp.feature.IFeatureGram;
 import org.eng.aisp.feature.IFeatureGramDescriptor;
+import org.eng.aisp.feature.extractor.IBatchFeatureExtractor;
 import org.eng.aisp.feature.extractor.IFeatureExtractor;
 import org.eng.aisp.feature.processor.IFeatureProcessor;
 import org.eng.util.ExecutorUtil;
@@ -65,6 +65,15 @@ class FeatureGramExtractor<WINDATA, FDATA> implements Serializable {
 /** The Constant PARALLEL_FEATURE_EXTRACTION_THRESHOLD. */
 //	private final static Semaphore ThreadLimiter = new Semaphore(2*Cores);
 	private static final int PARALLEL_FEATURE_EXTRACTION_THRESHOLD = 2 * Cores;	// 2 is a WAG
+
+	public final static String BATCH_EXTRACTION_PROPERTY_NAME = "feature.gram.batch_extraction.enabled";
+	/**
+	 * If true, then extractors implementing {@link IBatchFeatureExtractor} extract the features of all sub-windows of a window
+	 * in a single call to {@link IBatchFeatureExtractor#applyBatch(IDataWindow, double, double)}, which runs on the calling thread, 
+	 * instead of on each sub-window, possibly in parallel.  This is generally faster when the pipeline is already extracting features 
+	 * from multiple windows in parallel.  Defaults to false.
+	 */
+	public static boolean USE_BATCH_EXTRACTION = AISPProperties.instance().getProperty(BATCH_EXTRACTION_PROPERTY_NAME, false);
 	
 	/**
 	 * Instantiates a new sub feature extractor 7.
@@ -114,6 +123,19 @@ class FeatureGramExtractor<WINDATA, FDATA> implements Serializable {
 		return subFeatures;
 	}
 
+	/**
+	 * Extract the sub features using the extractor's {@link IBatchFeatureExtractor#applyBatch(IDataWindow, double, double)}.
+	 * This is done serially on the given window, since the batch extraction is generally more efficient than parallel extraction on the 
+	 * sub-windows and the pipeline generally extracts features on multiple windows in parallel.
+	 *
+	 * @param window the window
+	 * @return the list
+	 */
+	protected List<IFeature<FDATA>> batchExtractSubFeatures(IDataWindow<WINDATA> window)  {
+		IBatchFeatureExtractor<WINDATA,FDATA> extractor = (IBatchFeatureExtractor<WINDATA,FDATA>)fgDescriptor.getFeatureExtractor();
+		return extractor.applyBatch(window, fgDescriptor.getWindowSizeMsec(), fgDescriptor.getWindowShiftMsec());
+	}
+
 	/**
 	 * Extract feature gram.
 	 *
@@ -136,14 +158,16 @@ class FeatureGramExtractor<WINDATA, FDATA> implements Serializable {
 
 	/**
 	 * The Class SubWindowTask.
+	 * Tasks share an index into the list of start times to claim the next sub-window and 
+	 * store each feature at the start time's index in the shared array of features.
 	 *
 	 * @param <WINDATA> the generic type
 	 * @param <FDATA> the generic type
 	 */
 	private static class SubWindowTask<WINDATA,FDATA>  implements Callable<Object> {
 
-		/** The mapped sub features. */
-		private final Map<Double, IFeature<FDATA>> mappedSubFeatures;
+		/** The sub features, indexed in parallel with startTimes. */
+		private final IFeature<FDATA>[] subFeatures;
 		
 		/** The window. */
 		private final IDataWindow<WINDATA> window;
@@ -151,8 +175,11 @@ class FeatureGramExtractor<WINDATA, FDATA> implements Serializable {
 		/** The extractor. */
 		private final IFeatureExtractor<WINDATA, FDATA> extractor;
 		
-		/** The start time iterator. */
-		private final Iterator<Double> startTimeIterator;
+		/** The start times of the sub-windows. */
+		private final List<Double> startTimes;
+
+		/** The index into startTimes of the next sub-window to be processed by any task. */
+		private final AtomicInteger nextIndex;
 		
 		/** The window size msec. */
 		private final double windowSizeMsec;
@@ -163,17 +190,19 @@ class FeatureGramExtractor<WINDATA, FDATA> implements Serializable {
 		 * @param window the window
 		 * @param extractor the extractor
 		 * @param windowSizeMsec the window size msec
-		 * @param startTimeIterator the start time iterator
-		 * @param mappedSubFeatures the mapped sub features
+		 * @param startTimes the start times of the sub-windows 
+		 * @param nextIndex the index of the next start time to process, shared with the other tasks.
+		 * @param subFeatures the array, of the same size as startTimes, into which features are placed.
 		 */
 		public SubWindowTask(IDataWindow<WINDATA> window, IFeatureExtractor<WINDATA, FDATA> extractor,
-				double windowSizeMsec, Iterator<Double> startTimeIterator,
-				Map<Double, IFeature<FDATA>> mappedSubFeatures) {
+				double windowSizeMsec, List<Double> startTimes, AtomicInteger nextIndex,
+				IFeature<FDATA>[] subFeatures) {
 			this.window = window;
 			this.windowSizeMsec = windowSizeMsec;
 			this.extractor = extractor;
-			this.startTimeIterator = startTimeIterator;
-			this.mappedSubFeatures = mappedSubFeatures;
+			this.startTimes = startTimes;
+			this.nextIndex = nextIndex;
+			this.subFeatures = subFeatures;
 		}
 
 		/* (non-Javadoc)
@@ -181,24 +210,14 @@ class FeatureGramExtractor<WINDATA, FDATA> implements Serializable {
 		 */
 		@Override
 		public Object call() throws Exception {
-			while (true) {
-				Double startTime;
-				synchronized (startTimeIterator) {
-					if (!startTimeIterator.hasNext())
-						return null;;
-					startTime = startTimeIterator.next();
-				}
-				IFeature<FDATA> r = null; 
+			int index;
+			while ((index = nextIndex.getAndIncrement()) < startTimes.size()) {
+				double startTime = startTimes.get(index);
 				IDataWindow<WINDATA> subwin = window.subWindow(startTime, startTime + windowSizeMsec);
-				if (subwin != null)  {
-					r = extractor.apply(subwin);
-					if (r != null) {
-						synchronized(mappedSubFeatures) {
-							mappedSubFeatures.put(startTime,  r);
-						}
-					}
-				}
+				if (subwin != null)  
+					subFeatures[index] = extractor.apply(subwin);
 			}
+			return null;
 		}
 		
 	}
@@ -228,14 +247,14 @@ class FeatureGramExtractor<WINDATA, FDATA> implements Serializable {
 		}
 
 		// In parallel, compute the subwindows for each start time and extract the features from those windows.
-		// We put them in a map keyed by start time so that we can later sort them by start time into the returned list
-		// of features.
+		// We put them in an array in the same order as the start times so that they are already in time order.
 		int nThreads = Runtime.getRuntime().availableProcessors();
-		Map<Double, IFeature<FDATA>> mappedSubFeatures = new Hashtable<Double,IFeature<FDATA>>();
-		Iterator<Double> startTimeIterator = startTimes.iterator();
+		@SuppressWarnings("unchecked")
+		IFeature<FDATA>[] indexedSubFeatures = new IFeature[startTimes.size()];
+		AtomicInteger nextIndex = new AtomicInteger();
 		List<Future<Object>> futures = new ArrayList<Future<Object>>();
 		for (int i=0 ; i<nThreads ; i++) {
-			SubWindowTask<WINDATA,FDATA> task = new SubWindowTask<WINDATA,FDATA>(window, extractor, windowSizeMsec, startTimeIterator, mappedSubFeatures);
+			SubWindowTask<WINDATA,FDATA> task = new SubWindowTask<WINDATA,FDATA>(window, extractor, windowSizeMsec, startTimes, nextIndex, indexedSubFeatures);
 			Future<Object> f  = executor.submit(task);
 			futures.add(f);
 		}
@@ -250,9 +269,8 @@ class FeatureGramExtractor<WINDATA, FDATA> implements Serializable {
 		}
 		
 		// Get the computed subfeatures in time order.
-		List<IFeature<FDATA>> subFeatures = new ArrayList<IFeature<FDATA>>();
-		for (Double startTime : startTimes) {
-			IFeature<FDATA> f = mappedSubFeatures.get(startTime);
+		List<IFeature<FDATA>> subFeatures = new ArrayList<IFeature<FDATA>>(indexedSubFeatures.length);
+		for (IFeature<FDATA> f : indexedSubFeatures) {
 			if (f != null)
 				subFeatures.add(f);
 		}
@@ -292,6 +310,8 @@ class FeatureGramExtractor<WINDATA, FDATA> implements Serializable {
 	    	lfList = new ArrayList<IFeature<FDATA>>();
 			IFeature<FDATA> r = extractor.apply(window);
 			lfList.add(r);
+	    } else if (USE_BATCH_EXTRACTION && fgDescriptor.getFeatureExtractor() instanceof IBatchFeatureExtractor) {
+	    	lfList = batchExtractSubFeatures(window);
 	    } else  {
 	    	double windowShiftMsec = fgDescriptor.getWindowShiftMsec();
 			double startMsec = window.getStartTimeMsec();
@@ -82,6 +82,10 @@ import org.eng.util.ISizedIterable;
  * of 3 might used if using 50% sliding windows.
  * As an example then, For 5 second clips at 44.1khz sampling rate and a batch size of 8, with
  * 50% sliding windows this would be about this would be about 8.5 MB - a relatively small requirement.
+ * <p>
+ * By default, the next batch is extracted in the background while the current batch is being consumed.
+ * The number of batches extracted ahead of the consumer is set with the {@value #PREFETCH_BATCHES_PROPERTY_NAME} property
+ * and each of these adds to the memory requirement above.
  * 
  * @author dawood
  *
@@ -110,6 +114,15 @@ public class LabeledFeatureIterable<WINDATA, FDATA> implements Iterable<ILabeled
 	 */
 	private final static int BatchSize = AISPProperties.instance().getProperty(BATCH_SIZE_PROPERTY_NAME, BATCH_SIZE_DEFAULT);
 
+	/**
+	 * The name of the property that defines the number of batches of feature grams that are extracted in the background ahead of
+	 * the consumer of the iterator.  Each batch holds {@value #BATCH_SIZE_PROPERTY_NAME} feature grams.
+	 * Use 0 to extract each batch only when the previous one has been consumed.
+	 */
+	public final static String PREFETCH_BATCHES_PROPERTY_NAME = "feature.iterable.prefetch_batches";
+	public final static int PREFETCH_BATCHES_DEFAULT = 1;
+	private final static int PrefetchBatches = Math.max(0, AISPProperties.instance().getProperty(PREFETCH_BATCHES_PROPERTY_NAME, PREFETCH_BATCHES_DEFAULT));
+
 	private final Iterable<? extends ILabeledDataWindow<WINDATA>> data;
 	private final FeatureExtractionPipeline<WINDATA,FDATA> featureExtractionPipeline;
 	private Predicate<ILabeledDataWindow<WINDATA>> dataPredicate;
@@ -166,6 +179,27 @@ public class LabeledFeatureIterable<WINDATA, FDATA> implements Iterable<ILabeled
 
 	}
 
+	private LabeledFeatureIterable(Iterable<? extends ILabeledDataWindow<WINDATA>> data,
+			Predicate<ILabeledDataWindow<WINDATA>> dataPredicate,
+			FeatureExtractionPipeline<WINDATA,FDATA> featureExtractionPipeline, boolean useStreaming) {
+		this.data = data;
+		this.dataPredicate = dataPredicate;
+		this.featureExtractionPipeline = featureExtractionPipeline; 
+		this.useStreaming = useStreaming;
+	}
+
+	/**
+	 * Create a streaming instance over the same data and feature gram descriptors as this instance, but that reads its
+	 * feature grams from the given disk cache when present and otherwise extracts them and adds them to the cache.
+	 * @param diskCache
+	 * @return never null.
+	 */
+	public LabeledFeatureIterable<WINDATA,FDATA> newDiskCachingIterable(DiskFeatureGramCache diskCache) {
+		List<IFeatureGramDescriptor<WINDATA,FDATA>> fgdList = this.featureExtractionPipeline.getFeatureGramDescriptors();
+		FeatureExtractionPipeline<WINDATA,FDATA> fep = new DiskCachingFeatureExtractionPipeline<WINDATA,FDATA>(fgdList, diskCache);
+		return new LabeledFeatureIterable<WINDATA,FDATA>(this.data, this.dataPredicate, fep, true);
+	}
+
 	
 	/**
 	 * Just wrap a list around the given feature gram extractor.
@@ -220,7 +254,7 @@ public class LabeledFeatureIterable<WINDATA, FDATA> implements Iterable<ILabeled
 	private Iterator<ILabeledFeatureGram<FDATA>[]> streamedIterator() { 
 		IBatchedFeatureExtractor<WINDATA, FDATA> batchedFeatureExtractor;
 		batchedFeatureExtractor = new StreamingBatchedFeatureExtractor();
-		return new LabeledFeatureIterator(this.data.iterator(), this.dataPredicate, batchedFeatureExtractor, this.featureExtractionPipeline, this.BatchSize);
+		return new LabeledFeatureIterator(this.data.iterator(), this.dataPredicate, batchedFeatureExtractor, this.featureExtractionPipeline, this.BatchSize, PrefetchBatches);
 	}
 
 	@Override
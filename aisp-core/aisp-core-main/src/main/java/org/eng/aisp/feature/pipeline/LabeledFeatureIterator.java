@@ -15,24 +15,36 @@
  *******************************************************************************/
 package org.eng.aisp.feature.pipeline;
 
+import java.lang.ref.WeakReference;
 import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
 import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Predicate;
 
 import org.eng.aisp.ILabeledDataWindow;
 import org.eng.aisp.feature.ILabeledFeatureGram;
 import org.eng.aisp.feature.pipeline.FeatureExtractionPipeline;
+import org.eng.util.ExecutorUtil;
 
 /**
  * Package-local class to  support the iterative extraction of features from data windows.
+ * <p>
+ * Batches can optionally be read ahead of the consumer.  When a non-zero prefetch depth is given, a background task
+ * pulls the windows for the next batches from the data iterator and extracts their features while the current batch is being consumed.
+ * Up to the prefetch depth of batches are held ready in memory.  The order of the returned features is the same as
+ * when no prefetching is done.  Any exception raised in the background is rethrown from {@link #hasNext()}/{@link #next()}.
+ * The background task ends when the data is exhausted, when {@link #close()} is called or when the iterator is no longer referenced.
  * @author dawood
  *
  * @param <WINDATA>
  * @param <FDATA>
  */
-class LabeledFeatureIterator<WINDATA, FDATA> implements Iterator<ILabeledFeatureGram<FDATA>[]> {
+class LabeledFeatureIterator<WINDATA, FDATA> implements Iterator<ILabeledFeatureGram<FDATA>[]>, AutoCloseable {
 	// private Iterable<? extends ILabeledDataWindow<WINDATA>> dataIterable;
 	// private Iterator<? extends ILabeledDataWindow<WINDATA>> dataIterator;
 	//
@@ -46,7 +58,23 @@ class LabeledFeatureIterator<WINDATA, FDATA> implements Iterator<ILabeledFeature
 	private final FeatureExtractionPipeline<WINDATA,FDATA> featureExtractionPipeline;
 	private final int batchSize;
 	private final Predicate<ILabeledDataWindow<WINDATA>> dataPredicate;
+	private final int prefetchDepth;
 
+	/** Created on the first call to hasNext() when prefetching is enabled */
+	private BatchPrefetcher<WINDATA,FDATA> prefetcher = null;
+	private Future<?> prefetchFuture = null;
+	/** Set when the prefetcher has no more batches for us */
+	private boolean prefetchDone = false;
+
+
+	/**
+	 * A convenience on {@link #LabeledFeatureIterator(Iterator, Predicate, IBatchedFeatureExtractor, FeatureExtractionPipeline, int, int)} with no prefetching. 
+	 */
+	public LabeledFeatureIterator(Iterator<? extends ILabeledDataWindow<WINDATA>> data, Predicate<? extends ILabeledDataWindow<WINDATA>> dataPredicate,
+			IBatchedFeatureExtractor<WINDATA, FDATA> batchedFeatureExtractor, 
+			FeatureExtractionPipeline<WINDATA,FDATA> fep, int batchSize) {
+		this(data, dataPredicate, batchedFeatureExtractor, fep, batchSize, 0);
+	}
 
 	/**
 	 * 
@@ -56,10 +84,12 @@ class LabeledFeatureIterator<WINDATA, FDATA> implements Iterator<ILabeledFeature
 	 * an implementation that can work in parallel on the feature extractions.
 	 * @param fep the feature extraction pipeline to be applied to extract an array of features from a given data window.
 	 * @param batchSize size of the group of data windows that have their features extracted in parallel using the batchedFeatureExtractor.
+	 * @param prefetchDepth the number of batches to extract in the background ahead of the consumer.  0 to extract each batch
+	 * synchronously when the previous one has been consumed.
 	 */
 	public LabeledFeatureIterator(Iterator<? extends ILabeledDataWindow<WINDATA>> data, Predicate<? extends ILabeledDataWindow<WINDATA>> dataPredicate,
 			IBatchedFeatureExtractor<WINDATA, FDATA> batchedFeatureExtractor, 
-			FeatureExtractionPipeline<WINDATA,FDATA> fep, int batchSize) {
+			FeatureExtractionPipeline<WINDATA,FDATA> fep, int batchSize, int prefetchDepth) {
 		if (data == null) 
 			throw new IllegalArgumentException("data must not be null");
 		if (batchedFeatureExtractor == null) 
@@ -68,14 +98,116 @@ class LabeledFeatureIterator<WINDATA, FDATA> implements Iterator<ILabeledFeature
 			throw new IllegalArgumentException("fep must not be null");
 		if (batchSize <= 0)
 			throw new IllegalArgumentException("batchSize (" + batchSize + ") must not be a positive integer.");
+		if (prefetchDepth < 0)
+			throw new IllegalArgumentException("prefetchDepth (" + prefetchDepth + ") must not be negative.");
 		this.data = data;
 		this.dataPredicate = (Predicate<ILabeledDataWindow<WINDATA>>) dataPredicate;
 		this.batchedFeatureExtractor = batchedFeatureExtractor; 
 		this.featureExtractionPipeline = fep;
 		this.batchSize = batchSize;
+		this.prefetchDepth = prefetchDepth;
 	}
 
+	/**
+	 * Pull the next batch of windows from the data iterator and extract their features.
+	 * @return null if no features could be extracted from the next batch of windows.
+	 */
+	private static <WINDATA,FDATA> Iterable<? extends ILabeledFeatureGram<FDATA>[]> extractNextBatch(Iterator<? extends ILabeledDataWindow<WINDATA>> data, 
+			Predicate<ILabeledDataWindow<WINDATA>> dataPredicate, int batchSize,
+			IBatchedFeatureExtractor<WINDATA, FDATA> batchedFeatureExtractor, FeatureExtractionPipeline<WINDATA,FDATA> featureExtractionPipeline) {
+		List<ILabeledDataWindow<WINDATA>> ldwList = new ArrayList<>();
+		
+		// TODO: we might want to parallelize this so we don't serialize on potential db/file system access.
+		while ( ldwList.size()<batchSize && data.hasNext()) {
+			ILabeledDataWindow<WINDATA> ldw = data.next();
+			if (dataPredicate == null || dataPredicate.test(ldw)) {
+//				System.out.println("ldw=" + ldw);
+				ldwList.add(ldw);
+			}
+		}
+		return ldwList.size() > 0 ? batchedFeatureExtractor.nextBatch(ldwList, featureExtractionPipeline) : null;
+	}
+
+	/**
+	 * Holds a batch, the end of the batches or an error as produced by the BatchPrefetcher.
+	 */
+	private static class PrefetchedBatch<FDATA> {
+		final Iterable<? extends ILabeledFeatureGram<FDATA>[]> batch;
+		final Throwable error;
+
+		PrefetchedBatch(Iterable<? extends ILabeledFeatureGram<FDATA>[]> batch, Throwable error) {
+			this.batch = batch;
+			this.error = error;
+		}
+	}
+
+	/**
+	 * Runs in the background to fill a bounded queue with the batches of features that the iterator will return.
+	 * Only a weak reference is held to the owning iterator so that we can stop if it is abandoned without being closed. 
+	 */
+	private static class BatchPrefetcher<WINDATA,FDATA> implements Runnable {
+
+		/** The maximum amount of time to wait for space in the queue before checking if the owner is still alive */
+		private final static long OFFER_TIMEOUT_MSEC = 1000;
+
+		private final WeakReference<LabeledFeatureIterator<WINDATA,FDATA>> owner;
+		private final Iterator<? extends ILabeledDataWindow<WINDATA>> data;
+		private final Predicate<ILabeledDataWindow<WINDATA>> dataPredicate;
+		private final int batchSize;
+		private final IBatchedFeatureExtractor<WINDATA, FDATA> batchedFeatureExtractor;
+		private final FeatureExtractionPipeline<WINDATA,FDATA> featureExtractionPipeline;
+		private final BlockingQueue<PrefetchedBatch<FDATA>> queue; 
+		private volatile boolean closed = false;
+
+		BatchPrefetcher(LabeledFeatureIterator<WINDATA,FDATA> owner, int prefetchDepth) {
+			this.owner = new WeakReference<LabeledFeatureIterator<WINDATA,FDATA>>(owner);
+			this.data = owner.data;
+			this.dataPredicate = owner.dataPredicate;
+			this.batchSize = owner.batchSize;
+			this.batchedFeatureExtractor = owner.batchedFeatureExtractor;
+			this.featureExtractionPipeline = owner.featureExtractionPipeline;
+			this.queue = new ArrayBlockingQueue<PrefetchedBatch<FDATA>>(prefetchDepth);
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!closed && data.hasNext()) {
+					Iterable<? extends ILabeledFeatureGram<FDATA>[]> iterable = extractNextBatch(data, dataPredicate, batchSize, batchedFeatureExtractor, featureExtractionPipeline);
+					if (Thread.currentThread().isInterrupted())
+						return;
+					if (iterable != null && !enqueue(new PrefetchedBatch<FDATA>(iterable, null)))
+						return;
+				}
+				enqueue(new PrefetchedBatch<FDATA>(null, null)); 
+			} catch (Throwable t) {
+				enqueue(new PrefetchedBatch<FDATA>(null, t)); 
+			}
+		}
+
+		/**
+		 * Wait for space in the queue and add the given item to it.
+		 * @return false if the item was not queued because we were closed, interrupted or our owner was garbage collected.
+		 */
+		private boolean enqueue(PrefetchedBatch<FDATA> item) {
+			try {
+				while (!closed) {
+					if (queue.offer(item, OFFER_TIMEOUT_MSEC, TimeUnit.MILLISECONDS))
+						return true;
+					if (owner.get() == null)
+						closed = true;
+				}
+			} catch (InterruptedException e) {
+				closed = true;
+			}
+			return false;
+		}
 
+		void close() {
+			closed = true;
+			queue.clear();
+		}
+	}
 
 	@Override
 	public boolean hasNext() {
@@ -83,18 +215,14 @@ class LabeledFeatureIterator<WINDATA, FDATA> implements Iterator<ILabeledFeature
 
 		// Check the current batch and get a new one if the current one is exhausted
 		status = nextBatchResultIt != null && nextBatchResultIt.hasNext();
-		if (!status) { // Need to try the next batch.
-			List<ILabeledDataWindow<WINDATA>> ldwList = new ArrayList<>();
-			
-			// TODO: we might want to parallelize this so we don't serialize on potential db/file system access.
-			while ( ldwList.size()<batchSize && data.hasNext()) {
-				ILabeledDataWindow<WINDATA> ldw = data.next();
-				if (this.dataPredicate == null || this.dataPredicate.test(ldw)) {
-//					System.out.println("ldw=" + ldw);
-					ldwList.add(ldw);
-				}
-			}
-			Iterable<? extends ILabeledFeatureGram<FDATA>[]> iterable = ldwList.size() > 0 ? batchedFeatureExtractor.nextBatch(ldwList, featureExtractionPipeline) : null;
+		if (status)
+			return true;
+		if (prefetchDepth > 0)
+			return prefetchedHasNext();
+
+		// Need to try the next batch. A batch can come back empty if feature extraction failed on all its windows, so keep going until the data runs out.
+		while (!status && data.hasNext() && !Thread.currentThread().isInterrupted()) { 
+			Iterable<? extends ILabeledFeatureGram<FDATA>[]> iterable = extractNextBatch(data, dataPredicate, batchSize, batchedFeatureExtractor, featureExtractionPipeline);
 			if (iterable == null) {
 				status = false;
 				nextBatchResultIt = null;
@@ -107,13 +235,63 @@ class LabeledFeatureIterator<WINDATA, FDATA> implements Iterator<ILabeledFeature
 		return status;
 	}
 
+	/**
+	 * Get the next batch from the background prefetcher, starting it if this is the first call.
+	 * Rethrows any exception raised while extracting the batch.
+	 */
+	private boolean prefetchedHasNext() {
+		if (prefetchDone)
+			return false;
+		if (prefetcher == null) {
+			prefetcher = new BatchPrefetcher<WINDATA,FDATA>(this, prefetchDepth);
+			prefetchFuture = ExecutorUtil.getSharedService().submit(prefetcher);
+		}
+		try {
+			while (true) {
+				PrefetchedBatch<FDATA> pb = prefetcher.queue.take();
+				if (pb.batch == null) {		// End of data or an error.
+					prefetchDone = true;
+					nextBatchResultIt = null;
+					if (pb.error instanceof RuntimeException)
+						throw (RuntimeException)pb.error;
+					else if (pb.error instanceof Error)
+						throw (Error)pb.error;
+					else if (pb.error != null)
+						throw new RuntimeException("Error extracting features: " + pb.error.getMessage(), pb.error);
+					return false;
+				}
+				nextBatchResultIt = pb.batch.iterator();
+				if (nextBatchResultIt.hasNext())
+					return true;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			close();
+			return false;
+		}
+	}
+
 	@Override
 	public ILabeledFeatureGram<FDATA>[] next() {
-		if (nextBatchResultIt == null && !hasNext())
+		if (!hasNext())
 			throw new NoSuchElementException();
 
 		ILabeledFeatureGram<FDATA>[] f = this.nextBatchResultIt.next();
 		return f; 
 	}
 
+	/**
+	 * Stop any background extraction of batches.  
+	 * Subsequent calls to {@link #hasNext()} return false when prefetching is enabled. 
+	 */
+	@Override
+	public void close() {
+		if (prefetcher != null) {
+			prefetcher.close();
+			prefetchFuture.cancel(true);
+		}
+		prefetchDone = true;
+		nextBatchResultIt = null;
+	}
+
 }
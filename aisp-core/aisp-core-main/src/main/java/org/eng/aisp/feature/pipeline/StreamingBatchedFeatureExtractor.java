@@ -21,13 +21,24 @@ import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.eng.aisp.AISPLogger;
 import org.eng.aisp.AISPProperties;
 import org.eng.aisp.ILabeledDataWindow;
 import org.eng.aisp.feature.ILabeledFeatureGram;
 import org.eng.aisp.feature.pipeline.FeatureExtractionPipeline;
 import org.eng.util.ExecutorUtil;
 
+/**
+ * Extracts the features from a batch of windows in parallel using a single long-lived, bounded thread pool shared by all instances.
+ * Windows whose extraction fails are skipped, logged and counted (see {@link #getFailedExtractionCount()}) so that
+ * a single bad window does not cause the whole batch to be lost.
+ * @author dawood
+ *
+ * @param <WINDATA>
+ * @param <FDATA>
+ */
 class StreamingBatchedFeatureExtractor<WINDATA, FDATA> implements IBatchedFeatureExtractor<WINDATA, FDATA> {
 
 	/** Defines the number of threads for feature extraction in newFixedSizeService.  */ 
@@ -45,9 +56,20 @@ class StreamingBatchedFeatureExtractor<WINDATA, FDATA> implements IBatchedFeatur
 
 	private final static int INOUE_NUMBER_OF_THREADS = AISPProperties.instance().getProperty(INOUE_FEATURE_EXTRACTION_NUMBER_OF_THREADS, DEFAULT_NUMBER_OF_BATCHED_THREADS);
 
-	private final static int NUM_BATCHED_THREADS = Math.max(1, AISPProperties.instance().getProperty(NUM_BATCHED_THREADS_PROPERTY_NAME, INOUE_NUMBER_OF_THREADS));
+	final static int NUM_BATCHED_THREADS = Math.max(1, AISPProperties.instance().getProperty(NUM_BATCHED_THREADS_PROPERTY_NAME, INOUE_NUMBER_OF_THREADS));
 
+	/**
+	 * The pool shared by all instances.  Previously a new pool was created (and shutdown) for each batch, which caused a lot of thread churn
+	 * during training.  Tasks submitted here use the separate executor in FeatureGramExtractor for sub-window extraction, so they
+	 * never wait on tasks in this pool and can not deadlock it.
+	 */
+	// TODO: We use Futures instead of a parallelStream to avoid what seems to be a bug in streams on IBM's Java 8 JRE. -dawood 10/30/2017
+	// The bug/hand was only seen when training a MultiClassifier inside tomcat 8 on Ubuntu.
+	// See https://github.ibm.com/IoT-Sound/iot-sound/issues/221
+	private final static ExecutorService executor = ExecutorUtil.newFixedSizeService(NUM_BATCHED_THREADS, true);
 
+	/** The number of windows for which feature extraction failed over the life of this instance. */
+	private final AtomicLong failedExtractions = new AtomicLong();
 
 	public StreamingBatchedFeatureExtractor() {
 		super();
@@ -55,61 +77,68 @@ class StreamingBatchedFeatureExtractor<WINDATA, FDATA> implements IBatchedFeatur
 
 	/**
 	 * Implement to maintain the order of the extracted features to be in the same order as the input.
+	 * Windows for which extraction fails are logged and left out of the returned batch, which may then be shorter than the input.
+	 * @return null if no features could be extracted from any of the given windows.
 	 */
 	@Override
 	public Iterable<? extends ILabeledFeatureGram<FDATA>[]> nextBatch(List<? extends ILabeledDataWindow<WINDATA>> data,
 			FeatureExtractionPipeline<WINDATA, FDATA> featurePipeline) {
-		
 
-		// TODO: We use Futures instead of a parallelStream to avoid what seems to be a bug in streams on IBM's Java 8 JRE. -dawood 10/30/2017
-		// The bug/hand was only seen when training a MultiClassifier inside tomcat 8 on Ubuntu.
-		// See https://github.ibm.com/IoT-Sound/iot-sound/issues/221
-//		ExecutorService eservice = ExecutorUtil.getSharedService();
-//		ExecutorService eservice = ExecutorUtil.newService(true);
-		ExecutorService eservice = ExecutorUtil.newFixedSizeService(NUM_BATCHED_THREADS, true);
-
-		List<Future<Object>> flist = new ArrayList<Future<Object>>();
-		List<BatchItemTask<WINDATA, FDATA>> batchList = new ArrayList<BatchItemTask<WINDATA,FDATA>>();
+		List<Future<ILabeledFeatureGram<FDATA>[]>> flist = new ArrayList<Future<ILabeledFeatureGram<FDATA>[]>>();
 		for (ILabeledDataWindow<WINDATA> ldw : data) {
 			if (ldw != null) {
 				BatchItemTask<WINDATA, FDATA> task = new BatchItemTask<WINDATA, FDATA>(ldw, featurePipeline);
-				Future<Object> f = eservice.submit(task);
-				flist.add(f);
-				batchList.add(task);
+				flist.add(executor.submit(task));
 			}
 		}
-		
 
-		// Wait for completion of all tasks.
-		for (Future<Object> f : flist) {
+		// Wait for completion of all tasks and pull the results out in order of the input.
+		List<ILabeledFeatureGram<FDATA>[]> resultList = new ArrayList<ILabeledFeatureGram<FDATA>[]>();
+		int index = 0;
+		for (Future<ILabeledFeatureGram<FDATA>[]> f : flist) {
+			ILabeledFeatureGram<FDATA>[] result = null;
+			Throwable error = null;
 			try {
-				f.get();
+				result = f.get();
 			} catch (InterruptedException e) {
+				// Cancel the rest of the batch and let the caller see the interrupt.
+				for (Future<ILabeledFeatureGram<FDATA>[]> f2 : flist) 
+					f2.cancel(true);
 				Thread.currentThread().interrupt();
+				return null;
 			} catch (ExecutionException e) {
-				e.printStackTrace();
+				error = e.getCause();
+			}
+			if (result != null) {
+				resultList.add(result);
+			} else {
+				long count = failedExtractions.incrementAndGet();
+				String msg = "Skipping window " + index + " of batch of size " + flist.size() + " (" + count + " total failures). Feature extraction ";
+				if (error == null)
+					msg += "produced no features.";
+				else
+					msg += "failed with " + error.getClass().getName() + ": " + error.getMessage();
+				AISPLogger.logger.warning(msg);
 			}
+			index++;
 		}
 
-		// Pull the results out in order of the input.
-		List<ILabeledFeatureGram<FDATA>[]> resultList = new ArrayList<ILabeledFeatureGram<FDATA>[]>();
-		for (BatchItemTask<WINDATA,FDATA> task : batchList) {
-			if (task.result != null)
-				resultList.add(task.result);
-		}
-		eservice.shutdown();	
-		
-		if (resultList.size() != batchList.size())
-			resultList = null; 
-		
-		return resultList;
+		return resultList.isEmpty() ? null : resultList;
+	}
+
+	/**
+	 * Get the number of data windows that have been skipped by {@link #nextBatch(List, FeatureExtractionPipeline)} because 
+	 * feature extraction failed or produced no features.
+	 * @return 0 or larger.
+	 */
+	public long getFailedExtractionCount() {
+		return failedExtractions.get();
 	}
 
-	static class BatchItemTask<WINDATA, FDATA> implements Callable<Object> {
+	static class BatchItemTask<WINDATA, FDATA> implements Callable<ILabeledFeatureGram<FDATA>[]> {
 
-		private ILabeledDataWindow<WINDATA> labeledDataWindow;
-		private FeatureExtractionPipeline<WINDATA, FDATA> featurePipeline;
-		private ILabeledFeatureGram<FDATA>[] result;
+		private final ILabeledDataWindow<WINDATA> labeledDataWindow;
+		private final FeatureExtractionPipeline<WINDATA, FDATA> featurePipeline;
 
 		public BatchItemTask(ILabeledDataWindow<WINDATA> ldw, FeatureExtractionPipeline<WINDATA, FDATA> featurePipeline) {
 			this.labeledDataWindow = ldw;
@@ -117,9 +146,8 @@ class StreamingBatchedFeatureExtractor<WINDATA, FDATA> implements IBatchedFeatur
 		}
 
 		@Override
-		public Object call() throws Exception {
-			result = featurePipeline.extract(labeledDataWindow);
-			return null;
+		public ILabeledFeatureGram<FDATA>[] call() throws Exception {
+			return featurePipeline.extract(labeledDataWindow);
 		}
 
 	}
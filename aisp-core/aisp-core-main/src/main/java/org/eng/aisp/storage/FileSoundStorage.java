@@ -23,21 +23,35 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.concurrent.locks.ReentrantLock;
 
 import org.eng.aisp.AISPLogger;
+import org.eng.aisp.AISPProperties;
 import org.eng.aisp.SoundClip;
 import org.eng.aisp.SoundRecording;
+import org.eng.aisp.dataset.IReferencedSoundSpec;
+import org.eng.aisp.dataset.ISoundDataSet;
 import org.eng.aisp.dataset.MetaData;
+import org.eng.aisp.dataset.ReferencedSoundSpec;
 import org.eng.storage.AbstractReadOnlyStorage;
 import org.eng.storage.FieldValues;
 import org.eng.storage.INamedItemStorage;
 import org.eng.storage.StorageException;
 import org.eng.util.FileUtils;
+import org.eng.util.ILabelProjectingIterable;
+import org.eng.util.ILabelProjection;
 import org.eng.util.IMutator;
 import org.eng.util.MutatingShuffleIterable;
 
 /**
  * Provides file-based storage using unsegmented files in a metadata.csv file.
+ * <p>
+ * Optionally, the metadata is kept in an append-only log (see {@link MetaDataLog}) instead of the metadata.csv file, so that adding,
+ * updating and deleting sounds does not read and rewrite the metadata of all sounds, and finding a sound does not parse it.
+ * This is enabled with the {@value #METADATA_LOG_ENABLED_PROPERTY_NAME} property or the {@link #FileSoundStorage(File, boolean)} constructor.
+ * If a metadata.csv file exists when the log is first created, the log is initialized from it.  
+ * The metadata.csv file is no longer updated, but can be written with {@link #exportMetaData(String)}. 
+ * <p>
  * This class is intended to be thread-safe but NOT process-safe.
  * @author DavidWood
  *
@@ -48,6 +62,16 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 	protected final File metaDataFile;
 //	protected final File metaDataDir;
 	protected final Object fileLock;
+	/** When using the metadata log, locks held while changing or reading a sound and its record in the log, selected by {@link #getIDLock(String)} */
+	private final ReentrantLock[] idLocks;
+	/** True while this instance is registered as a user of the metadata log through {@link MetaDataLog#acquireLog(File, File)}.  Guarded by fileLock */
+	private boolean metaDataLogAcquired = false;
+	/** If true, then the metadata is kept in a {@link MetaDataLog} instead of the metadata file */
+	protected final boolean useMetaDataLog;
+
+	public final static String METADATA_LOG_ENABLED_PROPERTY_NAME = "storage.file.metadata.log.enabled";
+	public final static boolean DEFAULT_METADATA_LOG_ENABLED = false;
+	private final static boolean MetaDataLogEnabled = AISPProperties.instance().getProperty(METADATA_LOG_ENABLED_PROPERTY_NAME, DEFAULT_METADATA_LOG_ENABLED);
 
 	private static final String MetaDataFileName = MetaData.DEFAULT_METADATA_FILE_NAME; // "metadata.csv";
 	protected static final String HIDDEN_NAME_LABEL = "__nAmE__";
@@ -64,16 +88,39 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 		return lock;
 	}
 
+	private final static int ID_LOCK_COUNT = 64;
+	private final static Map<File, ReentrantLock[]> IDLocks = new HashMap<File, ReentrantLock[]>();
+	private static synchronized ReentrantLock[] getIDLocks(File f) {
+		ReentrantLock[] locks = IDLocks.get(f);
+		if (locks == null) {
+			locks = new ReentrantLock[ID_LOCK_COUNT];
+			for (int i=0 ; i<locks.length ; i++)
+				locks[i] = new ReentrantLock();
+			IDLocks.put(f, locks);
+		}
+		return locks;
+	}
+
 	public FileSoundStorage(String soundDir) {
 		this(new File(soundDir));
 	}
 
 	public FileSoundStorage(File soundDir) {
+		this(soundDir, MetaDataLogEnabled);
+	}
+
+	/**
+	 * @param soundDir directory holding the sounds and their metadata.
+	 * @param useMetaDataLog if true, then keep the metadata in an append-only log instead of the metadata.csv file.
+	 */
+	public FileSoundStorage(File soundDir, boolean useMetaDataLog) {
 		
 		this.soundDir = soundDir;
+		this.useMetaDataLog = useMetaDataLog;
 //		this.metaDataDir = new File(soundDir.getAbsolutePath());
 		this.metaDataFile = new File(soundDir.getAbsolutePath() +  "/" + MetaDataFileName);
 		fileLock= getFileLock(metaDataFile);
+		idLocks = getIDLocks(metaDataFile);
 
 		synchronized(fileLock) {
 			if (!soundDir.exists())		
@@ -86,6 +133,8 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 
 	/** Only to be modified while holding the fileLock */
 	private MetaData cachedMetaData = null; 
+	/** When using the metadata log, the {@link MetaDataLog#getVersion()} from which the cachedMetaData was created. Only to be modified while holding the fileLock */
+	private long cachedMetaDataVersion = -1; 
 	
 	protected void resetMetaDataCache() {
 		synchronized(fileLock) { 
@@ -123,6 +172,8 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 	 * @throws StorageException
 	 */
 	protected MetaData loadMetaData() throws StorageException {
+		if (useMetaDataLog)
+			return loadMetaDataFromLog();
 		synchronized(fileLock) { 
 			if (cachedMetaData == null || isCacheStale()) {
 				try {
@@ -142,6 +193,110 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 		return cachedMetaData;
 	}
 
+	/**
+	 * Get the metadata log for the sound directory, initializing it from the metadata file if it does not exist.
+	 * @return never null.
+	 * @throws StorageException
+	 */
+	protected MetaDataLog getMetaDataLog() throws StorageException {
+		try {
+			synchronized(fileLock) {
+				if (!metaDataLogAcquired) {
+					MetaDataLog log = MetaDataLog.acquireLog(soundDir, metaDataFile);
+					metaDataLogAcquired = true;
+					return log;
+				}
+			}
+			return MetaDataLog.getLog(soundDir, metaDataFile);
+		} catch (IOException e) {
+			throw new StorageException("Could not open metadata log in " + soundDir, e);
+		}
+	}
+
+	/**
+	 * Create a MetaData instance containing the current contents of the metadata log. 
+	 * The instance is cached until the log is next changed.
+	 * @return never null.
+	 * @throws StorageException
+	 */
+	private MetaData loadMetaDataFromLog() throws StorageException {
+		MetaDataLog log = getMetaDataLog();
+		synchronized(fileLock) { 
+			long version = log.getVersion();	// Before getting the entries, so a concurrent change causes a reload next time.
+			if (cachedMetaData == null || cachedMetaDataVersion != version) {
+				try {
+					MetaData md = new MetaData(metaDataFile.getAbsolutePath());
+					for (MetaDataLog.Entry entry : log.getEntries()) 
+						md.add(new ReferencedSoundSpec(entry.getID(), 0, 0, entry.getLabels(), entry.getTags()));
+					cachedMetaData = md;
+					cachedMetaDataVersion = version;
+				} catch (IOException e) {
+					throw new StorageException("Could not read metadata log in " + soundDir, e);
+				}
+			}
+		}
+		return cachedMetaData;
+	}
+
+	/**
+	 * Create a MetaData instance containing only the given entry so the sound can be read as it would be from the metadata file.
+	 */
+	private MetaData newMetaData(MetaDataLog.Entry entry) {
+		MetaData md = new MetaData(metaDataFile.getAbsolutePath());
+		md.add(new ReferencedSoundSpec(entry.getID(), 0, 0, entry.getLabels(), entry.getTags()));
+		return md;
+	}
+
+	/**
+	 * Write the sound to a wav file with the given id and add or replace its record in the metadata log.
+	 * @param log
+	 * @param id
+	 * @param sr an annotated sound.
+	 * @param isUpdate if true, then only store the record if the id is already present in the log.
+	 * @return false if isUpdate is true and the id was not present.
+	 */
+	private boolean writeToLog(MetaDataLog log, String id, SoundRecording sr, boolean isUpdate) throws StorageException {
+		try {
+			sr.getDataWindow().writeWav(getSoundFileName(id));
+			// Let MetaData produce the labels and tags as it would when appending to the metadata file.
+			MetaData md = new MetaData(metaDataFile.getAbsolutePath());
+			IReferencedSoundSpec spec = md.dereference(md.add(id, sr));
+			if (isUpdate)
+				return log.replace(id, spec.getLabels(), spec.getTags());
+			log.put(id, spec.getLabels(), spec.getTags());
+			return true;
+		} catch (IOException e) {
+			throw new StorageException("Could not write sound " + id, e);
+		}
+	}
+
+	/**
+	 * Get the lock to hold while writing, deleting or reading the sound file of the given id together with its record in the metadata log.
+	 */
+	private ReentrantLock getIDLock(String id) {
+		return idLocks[(id.hashCode() & Integer.MAX_VALUE) % idLocks.length];
+	}
+
+	private String getSoundFileName(String id) {
+		return soundDir.getAbsolutePath() + "/" + id;
+	}
+
+	/**
+	 * Write the metadata of all sounds to a metadata file in the CSV format read by {@link MetaData#read(String)}.
+	 * This is useful when the metadata is kept in the metadata log, in which case the metadata file is not otherwise updated. 
+	 * @param csvFile the name of the metadata file to write.  The sounds are referenced relative to this storage's directory, 
+	 * so this is normally the metadata.csv file in the directory.
+	 * @throws StorageException
+	 */
+	public void exportMetaData(String csvFile) throws StorageException {
+		MetaData md = loadMetaData();
+		try {
+			md.write(csvFile);
+		} catch (IOException e) {
+			throw new StorageException("Could not write metadata to " + csvFile, e);
+		}
+	}
+
 	/**
 	 * Add labels to new SoundRecording to store important data, name, time, etc.
 	 * @param name
@@ -202,6 +357,18 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 	public String addNamed(String name, SoundRecording sound) throws StorageException {
 		// Store the name and other important data in the labels while stored locally. 
 		SoundRecording sr = annotateSoundRecording(name, sound);
+		if (useMetaDataLog) {
+			MetaDataLog log = getMetaDataLog();
+			String id = log.newID();
+			ReentrantLock idLock = getIDLock(id);
+			idLock.lock();
+			try {
+				writeToLog(log, id, sr, false);
+			} finally {
+				idLock.unlock();
+			}
+			return id;
+		}
 		synchronized(fileLock) {
 			AISPLogger.logger.fine("Appending sound to local storage");
 			String filekey;
@@ -219,6 +386,22 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 	public SoundRecording findItem(String id) throws StorageException {
 		if (!isValidID(id))
 			throw new StorageException("Bad id given: '" + id + "'");
+		if (useMetaDataLog) {
+			MetaDataLog log = getMetaDataLog();
+			ReentrantLock idLock = getIDLock(id);
+			idLock.lock();
+			try {
+				MetaDataLog.Entry entry = log.get(id);
+				if (entry == null)
+					return null;
+				SoundRecording sr = newMetaData(entry).readSound(id);
+				return this.deannotateSoundRecording(sr);
+			} catch (IOException e) {
+				throw new StorageException("", e);
+			} finally {
+				idLock.unlock();
+			}
+		}
 		synchronized(fileLock) {
 			try {
 				MetaData md = loadMetaData();
@@ -249,6 +432,26 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 	public boolean update(String id, SoundRecording item) throws StorageException {
 		if (!isValidID(id))
 			throw new StorageException("Bad id given: '" + id + "'");
+		if (useMetaDataLog) {
+			MetaDataLog log = getMetaDataLog();
+			ReentrantLock idLock = getIDLock(id);
+			idLock.lock();
+			try {
+				MetaDataLog.Entry entry;
+				try {
+					entry = log.get(id);
+				} catch (IOException e) {
+					throw new StorageException("", e);
+				}
+				if (entry == null)
+					return false;
+				String name = entry.getLabels().getProperty(HIDDEN_NAME_LABEL);
+				SoundRecording sr = this.annotateSoundRecording(name, item);
+				return writeToLog(log, id, sr, true);
+			} finally {
+				idLock.unlock();
+			}
+		}
 		synchronized(fileLock) {
 			MetaData md = loadMetaData();
 			Properties labels = md.getLabels(id);
@@ -278,16 +481,52 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 		}
 	}
 
+	/**
+	 * Projects the labels and tags of the sounds in the metadata to those produced by {@link FileSoundStorage#deannotateSoundRecording(SoundRecording)}.
+	 */
+	private static class DeAnnotatingLabelProjection implements ILabelProjection {
+
+		private final ILabelProjection projection;
+
+		public DeAnnotatingLabelProjection(ILabelProjection projection) {
+			this.projection = projection;
+		}
+
+		@Override
+		public Properties getLabels(String reference) {
+			Properties labels = projection.getLabels(reference);
+			labels.remove(HIDDEN_NAME_LABEL);
+			labels.remove(HIDDEN_START_TIME_LABEL);
+			return labels;
+		}
+
+		@Override
+		public Properties getTags(String reference) {
+			Properties tags = projection.getTags(reference);
+			tags.remove(MetaData.FILENAME_TAG);
+			tags.remove(MetaData.FILE_REFERENCE_TAG);
+			return tags;
+		}
+	}
+
 	/**
 	 * This returns an iterable that reads the sounds as they are iterated and defined at the time of this call.  
 	 * If while iterating, a sound is removed from the file system, an exception can be thrown during iteration.
+	 * The returned iterable is an {@link ILabelProjectingIterable} that provides the labels of the sounds from the metadata without reading the sounds.
 	 */
 	@Override
 	public Iterable<SoundRecording> items() throws StorageException {
 		synchronized(fileLock) {
 			MetaData md = loadMetaData();
 			try {
-				return new MutatingShuffleIterable<SoundRecording,SoundRecording>(md.readSounds(), new DeAnnotator(), true);
+				ISoundDataSet sounds = md.readSounds();
+				ILabelProjection projection = null;
+				if (sounds instanceof ILabelProjectingIterable) {
+					projection = ((ILabelProjectingIterable<SoundRecording>)sounds).getLabelProjection();
+					if (projection != null)
+						projection = new DeAnnotatingLabelProjection(projection);
+				}
+				return new MutatingShuffleIterable<SoundRecording,SoundRecording>(sounds, new DeAnnotator(), true, projection);
 			} catch (IOException e) {
 				throw new StorageException(e.getMessage(), e);
 			}
@@ -299,9 +538,22 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 		
 	}
 
+	/**
+	 * If using the metadata log, then release this instance's use of it so that its file is closed once no other instance is using it.
+	 * The log is opened again if this instance is used after this call.
+	 */
 	@Override
 	public void disconnect() {
-		
+		synchronized(fileLock) {
+			if (metaDataLogAcquired) {
+				metaDataLogAcquired = false;
+				try {
+					MetaDataLog.releaseLog(soundDir);
+				} catch (IOException e) {
+					AISPLogger.logger.warning("Could not close metadata log in " + soundDir + ": " + e.getMessage());
+				}
+			}
+		}
 	}
 
 	@Override
@@ -320,6 +572,25 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 
 	@Override
 	public boolean delete(Iterable<String> ids) throws StorageException {
+		if (useMetaDataLog) {
+			MetaDataLog log = getMetaDataLog();
+			for (String id : ids) {
+				if (!isValidID(id))
+					throw new StorageException("bad id given to delete: '" + id + "'");
+				ReentrantLock idLock = getIDLock(id);
+				idLock.lock();
+				try {
+					if (!log.remove(id))
+						return false; // not found, bad id.
+					FileUtils.deleteFile(getSoundFileName(id));
+				} catch (IOException e) {
+					throw new StorageException("Could not delete " + id, e);
+				} finally {
+					idLock.unlock();
+				}
+			}
+			return true;
+		}
 		synchronized(fileLock) {
 			for (String id : ids) {
 				if (!isValidID(id))
@@ -354,6 +625,11 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 	@Override
 	public Iterable<String> getIDs() throws StorageException {
 		List<String> sortedIDs = new ArrayList<String>();
+		if (useMetaDataLog) {
+			sortedIDs = getMetaDataLog().getIDs();
+			Collections.reverse(sortedIDs);
+			return sortedIDs;
+		}
 		synchronized(fileLock) {
 			MetaData md = loadMetaData();
 			for (String f : md.getReferences()) {
@@ -366,6 +642,8 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 
 	@Override
 	public long count() throws StorageException {
+		if (useMetaDataLog)
+			return getMetaDataLog().size();
 		synchronized(fileLock) {
 			MetaData md = loadMetaData();
 			return md.size();
@@ -374,6 +652,29 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 
 	@Override
 	public void clear() throws StorageException {
+		if (useMetaDataLog) {
+			MetaDataLog log = getMetaDataLog();
+			synchronized(fileLock) {
+				// Hold all id locks so that no sound is written or deleted while we clear.
+				for (ReentrantLock idLock : idLocks)
+					idLock.lock();
+				try {
+					for (String id : log.getIDs()) 
+						FileUtils.deleteFile(getSoundFileName(id));
+					try {
+						log.clear();
+					} catch (IOException e) {
+						throw new StorageException("Could not clear metadata log in " + soundDir, e);
+					}
+					FileUtils.deleteFile(metaDataFile.getAbsolutePath());	// So it is not mistaken for the current metadata.
+					this.resetMetaDataCache();
+				} finally {
+					for (ReentrantLock idLock : idLocks)
+						idLock.unlock();
+				}
+			}
+			return;
+		}
 		synchronized(fileLock) {
 			MetaData md =  loadMetaData();
 			for (String f : md.getFiles()) {
@@ -398,6 +699,16 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 
 	@Override
 	public String getItemName(String id) throws StorageException {
+		if (useMetaDataLog) {
+			try {
+				MetaDataLog.Entry entry = getMetaDataLog().get(id);
+				if (entry == null)
+					return null;
+				return entry.getLabels().getProperty(HIDDEN_NAME_LABEL);
+			} catch (IOException e) {
+				throw new StorageException("", e);
+			}
+		}
 		MetaData md;
 		synchronized(fileLock) {
 			md = loadMetaData();
@@ -411,6 +722,23 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 	@Override
 	public Iterable<String> findNamedIDs(String name) throws StorageException {
 		List<String> ids = new ArrayList<String>();
+		if (useMetaDataLog) {
+			MetaDataLog log = getMetaDataLog();
+			if (name == null) {
+				ids = log.getIDs();
+			} else {
+				try {
+					for (MetaDataLog.Entry entry : log.getEntries()) {
+						if (name.equals(entry.getLabels().getProperty(HIDDEN_NAME_LABEL)))
+							ids.add(entry.getID());
+					}
+				} catch (IOException e) {
+					throw new StorageException("", e);
+				}
+			}
+			Collections.reverse(ids);	// Must return ids in most recent to least recent inserted order.
+			return ids;
+		}
 		synchronized(fileLock) {
 			MetaData md = loadMetaData();
 			for (String id : md.getReferences()) {
@@ -510,6 +838,11 @@ public class FileSoundStorage extends AbstractReadOnlyStorage<SoundRecording> im
 	public File getSoundFile(String id) throws StorageException {
 		if (id == null)
 			throw new IllegalArgumentException("null id given");
+		if (useMetaDataLog) {
+			if (!getMetaDataLog().contains(id))
+				return null;
+			return new File(getSoundFileName(id));
+		}
 		synchronized(this.fileLock) {
 			MetaData md = loadMetaData();
 			if (md.getLabels(id) == null)
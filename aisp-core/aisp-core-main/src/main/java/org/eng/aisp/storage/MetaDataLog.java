@@ -0,0 +1,811 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.storage;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+import org.eng.aisp.AISPLogger;
+import org.eng.aisp.AISPProperties;
+import org.eng.aisp.dataset.IReferencedSoundSpec;
+import org.eng.aisp.dataset.MetaData;
+
+/**
+ * An append-only binary log of the labels and tags of the sounds in a directory, used by {@link FileSoundStorage} in place of
+ * rewriting its metadata.csv file on every change.
+ * <p>
+ * Adds, updates and deletes append a single record to the {@value #LOG_FILE_NAME} file.  The offset of the most recent record of each
+ * id is held in memory in insertion order, so that a lookup reads a single record.
+ * The offsets are periodically checkpointed to the {@value #INDEX_FILE_NAME} file so that opening the log only replays the records
+ * appended after the last checkpoint.  When the records that have been replaced or deleted take more space than the live records,
+ * the log is compacted by copying the live records to a new log.  Checkpoints and compactions are done after a number of appends
+ * proportional to the number of live records, so their cost is constant when amortized over the appends.
+ * <p>
+ * Readers share a read lock and writers take a write lock, so readers see a consistent snapshot and are not serialized with each other.
+ * A record that was only partially written, for example when the process was killed, is detected with its checksum and truncated
+ * when the log is opened.
+ * <p>
+ * Instances are shared per directory through {@link #getLog(File, File)}.  Users that hold a log across calls register themselves with 
+ * {@link #acquireLog(File, File)} and {@link #releaseLog(File)}, and the log's file is closed when the last of them releases it.
+ * As with {@link FileSoundStorage}, this is thread-safe but NOT process-safe.
+ */
+class MetaDataLog {
+
+	public final static String LOG_FILE_NAME = "metadata.log";
+	public final static String INDEX_FILE_NAME = "metadata.idx";
+
+	public final static String COMPACTION_MIN_BYTES_PROPERTY_NAME = "storage.file.metadata.log.compaction.min-bytes";
+	public final static int DEFAULT_COMPACTION_MIN_BYTES = 1024 * 1024;
+	/** The least number of bytes of replaced and deleted records before the log is compacted */ 
+	private final static int COMPACTION_MIN_BYTES = AISPProperties.instance().getProperty(COMPACTION_MIN_BYTES_PROPERTY_NAME, DEFAULT_COMPACTION_MIN_BYTES);
+
+	public final static String CHECKPOINT_MIN_RECORDS_PROPERTY_NAME = "storage.file.metadata.log.checkpoint.min-records";
+	public final static int DEFAULT_CHECKPOINT_MIN_RECORDS = 10000;
+	/** The least number of records appended before the index is checkpointed */ 
+	private final static int CHECKPOINT_MIN_RECORDS = AISPProperties.instance().getProperty(CHECKPOINT_MIN_RECORDS_PROPERTY_NAME, DEFAULT_CHECKPOINT_MIN_RECORDS);
+
+	private final static int LOG_MAGIC = 0x4149534C;	// AISL
+	private final static int INDEX_MAGIC = 0x41495349;	// AISI
+	private final static int FORMAT_VERSION = 1;
+	/** Magic, version and generation */
+	private final static int LOG_HEADER_BYTES = 4 + 4 + 8;
+	/** Payload length and checksum */
+	private final static int RECORD_HEADER_BYTES = 4 + 4;
+
+	private final static byte PUT_RECORD = 1;
+	private final static byte DELETE_RECORD = 2;
+
+	private final static String ID_FORMAT = "%07d.wav";
+
+	/**
+	 * The labels and tags of a sound stored under an id.
+	 */
+	static class Entry {
+		private final String id;
+		private final Properties labels;
+		private final Properties tags;
+
+		Entry(String id, Properties labels, Properties tags) {
+			this.id = id;
+			this.labels = labels;
+			this.tags = tags;
+		}
+
+		public String getID() {
+			return id;
+		}
+
+		public Properties getLabels() {
+			return labels;
+		}
+
+		public Properties getTags() {
+			return tags;
+		}
+	}
+
+	/**
+	 * The location of a record within the log.
+	 */
+	private static class Location {
+		final long offset;
+		/** Including the record header */
+		final int length;
+
+		Location(long offset, int length) {
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+
+	private final static Map<File, MetaDataLog> Logs = new HashMap<File, MetaDataLog>();
+	/** The number of users registered through acquireLog() for each directory in Logs */
+	private final static Map<File, Integer> UserCounts = new HashMap<File, Integer>();
+
+	/**
+	 * Get the log shared by all users of the given directory, creating it if necessary.
+	 * @param dir the directory holding the log.
+	 * @param importCSV if not null and no log exists in the directory, then a metadata file from which the new log is initialized.
+	 * @return never null.
+	 * @throws IOException
+	 */
+	static synchronized MetaDataLog getLog(File dir, File importCSV) throws IOException {
+		File key = dir.getAbsoluteFile();
+		MetaDataLog log = Logs.get(key);
+		if (log != null && !log.logFile.exists()) {	// Deleted out from under us. 
+			log.close();
+			log = null;
+		}
+		if (log == null) {
+			log = new MetaDataLog(key, importCSV);
+			Logs.put(key, log);
+		}
+		return log;
+	}
+
+	/**
+	 * Get the log of the given directory as {@link #getLog(File, File)} does and register a user of it.
+	 * The log is kept open until each registered user has called {@link #releaseLog(File)}.
+	 * @param dir
+	 * @param importCSV
+	 * @return never null.
+	 * @throws IOException
+	 */
+	static synchronized MetaDataLog acquireLog(File dir, File importCSV) throws IOException {
+		MetaDataLog log = getLog(dir, importCSV);
+		File key = dir.getAbsoluteFile();
+		Integer count = UserCounts.get(key);
+		UserCounts.put(key, count == null ? 1 : count + 1);
+		return log;
+	}
+
+	/**
+	 * Unregister a user registered with {@link #acquireLog(File, File)} and close the log of the directory if it was the last one.
+	 * @param dir
+	 * @throws IOException
+	 */
+	static synchronized void releaseLog(File dir) throws IOException {
+		File key = dir.getAbsoluteFile();
+		Integer count = UserCounts.get(key);
+		if (count == null)
+			return;
+		if (count > 1) {
+			UserCounts.put(key, count - 1);
+		} else {
+			UserCounts.remove(key);
+			closeLog(dir);
+		}
+	}
+
+	/**
+	 * Close the log of the given directory, if open, so that the next call to {@link #getLog(File, File)} opens it from its files.
+	 * @param dir
+	 * @throws IOException
+	 */
+	static synchronized void closeLog(File dir) throws IOException {
+		MetaDataLog log = Logs.remove(dir.getAbsoluteFile());
+		if (log != null)
+			log.close();
+	}
+
+	private final File logFile;
+	private final File indexFile;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+	/** Only accessed while holding the lock */
+	private FileChannel channel;
+	private long generation;
+	private long logLength;
+	private final LinkedHashMap<String,Location> index = new LinkedHashMap<String,Location>();
+	/** The number of bytes of the live records, including their headers */
+	private long liveBytes;
+	private int appendsSinceCheckpoint;
+	private int maxIDIndex;
+	private long version;
+
+	private MetaDataLog(File dir, File importCSV) throws IOException {
+		if (!dir.exists())
+			dir.mkdirs();
+		this.logFile = new File(dir, LOG_FILE_NAME);
+		this.indexFile = new File(dir, INDEX_FILE_NAME);
+		if (!logFile.exists()) {
+			create();
+			if (importCSV != null && importCSV.exists()) 
+				importMetaData(importCSV);
+		} else {
+			open();
+		}
+	}
+
+	/**
+	 * Create an empty log with a new generation, replacing any existing log.
+	 */
+	private void create() throws IOException {
+		this.generation = newGeneration();
+		File tmp = new File(logFile.getPath() + ".tmp");
+		writeHeader(tmp, generation);
+		Files.move(tmp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		indexFile.delete();
+		this.channel = new RandomAccessFile(logFile, "rw").getChannel();
+		this.logLength = LOG_HEADER_BYTES;
+		this.index.clear();
+		this.liveBytes = 0;
+		this.appendsSinceCheckpoint = 0;
+		this.maxIDIndex = 0;
+	}
+
+	private static long newGeneration() {
+		return new Random().nextLong() ^ System.nanoTime();
+	}
+
+	private static void writeHeader(File file, long generation) throws IOException {
+		DataOutputStream dos = new DataOutputStream(new FileOutputStream(file));
+		try {
+			dos.writeInt(LOG_MAGIC);
+			dos.writeInt(FORMAT_VERSION);
+			dos.writeLong(generation);
+		} finally {
+			dos.close();
+		}
+	}
+
+	private void importMetaData(File csv) throws IOException {
+		MetaData md = MetaData.read(csv.getAbsolutePath());
+		for (String ref : md.getReferences()) {
+			IReferencedSoundSpec spec = md.dereference(ref);
+			put(ref, spec.getLabels(), spec.getTags());
+		}
+		writeIndex();
+	}
+
+	/**
+	 * Open the existing log using the checkpointed index, if it matches the log, and replay the records after the checkpoint.
+	 */
+	private void open() throws IOException {
+		this.channel = new RandomAccessFile(logFile, "rw").getChannel();
+		ByteBuffer header = ByteBuffer.allocate(LOG_HEADER_BYTES);
+		readFully(channel, header, 0);
+		header.flip();
+		if (header.getInt() != LOG_MAGIC || header.getInt() != FORMAT_VERSION) {
+			channel.close();
+			throw new IOException("File " + logFile + " is not a metadata log of a supported version");
+		}
+		this.generation = header.getLong();
+
+		long scanStart = LOG_HEADER_BYTES;
+		try {
+			scanStart = readIndex();
+		} catch (IOException e) {
+			if (indexFile.exists())
+				AISPLogger.logger.warning("Ignoring unusable metadata index " + indexFile + ": " + e.getMessage());
+			index.clear();
+			liveBytes = 0;
+			maxIDIndex = 0;
+			scanStart = LOG_HEADER_BYTES;
+		}
+
+		int replayed = replay(scanStart);
+		if (replayed >= CHECKPOINT_MIN_RECORDS)
+			writeIndex();
+	}
+
+	/**
+	 * Load the checkpointed index.
+	 * @return the length of the log covered by the index.
+	 * @throws IOException if the index does not exist or does not match the log.
+	 */
+	private long readIndex() throws IOException {
+		if (!indexFile.exists())
+			throw new FileFormatException("no index");
+		DataInputStream dis = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+		try {
+			if (dis.readInt() != INDEX_MAGIC || dis.readInt() != FORMAT_VERSION)
+				throw new FileFormatException("unsupported format");
+			if (dis.readLong() != generation)
+				throw new FileFormatException("index is for a different log");
+			long coveredLength = dis.readLong();
+			if (coveredLength < LOG_HEADER_BYTES || coveredLength > channel.size())
+				throw new FileFormatException("index covers more than the log");
+			int count = dis.readInt();
+			for (int i=0 ; i<count ; i++) {
+				String id = dis.readUTF();
+				Location loc = new Location(dis.readLong(), dis.readInt());
+				index.put(id, loc);
+				liveBytes += loc.length;
+				updateMaxIDIndex(id);
+			}
+			return coveredLength;
+		} catch (EOFException e) {
+			throw new FileFormatException("index is truncated");
+		} finally {
+			dis.close();
+		}
+	}
+
+	/**
+	 * Apply the records in the log starting at the given offset, truncating the log at the first incomplete or corrupt record.
+	 * @return the number of records applied.
+	 */
+	private int replay(long offset) throws IOException {
+		long size = channel.size();
+		ByteBuffer recordHeader = ByteBuffer.allocate(RECORD_HEADER_BYTES);
+		int count = 0;
+		while (offset < size) {
+			Entry entry = null;
+			boolean isDelete = false;
+			int length = 0;
+			if (offset + RECORD_HEADER_BYTES <= size) {
+				recordHeader.clear();
+				readFully(channel, recordHeader, offset);
+				recordHeader.flip();
+				int payloadLength = recordHeader.getInt();
+				int checksum = recordHeader.getInt();
+				length = RECORD_HEADER_BYTES + payloadLength;
+				if (payloadLength > 0 && offset + length <= size) {
+					byte[] payload = new byte[payloadLength];
+					readFully(channel, ByteBuffer.wrap(payload), offset + RECORD_HEADER_BYTES);
+					if (checksum(payload) == checksum) {
+						isDelete = payload[0] == DELETE_RECORD;
+						entry = decode(payload);
+					}
+				}
+			}
+			if (entry == null) {
+				AISPLogger.logger.warning("Truncating incomplete record at offset " + offset + " of metadata log " + logFile);
+				channel.truncate(offset);
+				break;
+			}
+			if (isDelete)
+				removeLocation(entry.getID());
+			else
+				putLocation(entry.getID(), new Location(offset, length));
+			offset += length;
+			count++;
+		}
+		this.logLength = offset;
+		this.appendsSinceCheckpoint = count;
+		return count;
+	}
+
+	private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) {
+			int n = channel.read(buffer, position);
+			if (n < 0)
+				throw new EOFException();
+			position += n;
+		}
+	}
+
+	private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+		while (buffer.hasRemaining()) 
+			position += channel.write(buffer, position);
+	}
+
+	private static int checksum(byte[] payload) {
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		return (int)crc.getValue();
+	}
+
+	private static byte[] encode(byte op, String id, Properties labels, Properties tags) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream dos = new DataOutputStream(bos);
+		dos.writeByte(op);
+		dos.writeUTF(id);
+		if (op == PUT_RECORD) {
+			writeProperties(dos, labels);
+			writeProperties(dos, tags);
+		}
+		dos.flush();
+		return bos.toByteArray();
+	}
+
+	private static void writeProperties(DataOutputStream dos, Properties p) throws IOException {
+		if (p == null) {
+			dos.writeInt(0);
+			return;
+		}
+		dos.writeInt(p.size());
+		for (String name : p.stringPropertyNames()) {
+			dos.writeUTF(name);
+			dos.writeUTF(p.getProperty(name));
+		}
+	}
+
+	private static Entry decode(byte[] payload) throws IOException {
+		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(payload));
+		byte op = dis.readByte();
+		String id = dis.readUTF();
+		if (op == DELETE_RECORD) 
+			return new Entry(id, null, null);
+		else if (op != PUT_RECORD)
+			throw new FileFormatException("unknown record type " + op);
+		Properties labels = readProperties(dis);
+		Properties tags = readProperties(dis);
+		return new Entry(id, labels, tags);
+	}
+
+	private static Properties readProperties(DataInputStream dis) throws IOException {
+		Properties p = new Properties();
+		int count = dis.readInt();
+		for (int i=0 ; i<count ; i++) {
+			String name = dis.readUTF();
+			p.setProperty(name, dis.readUTF());
+		}
+		return p;
+	}
+
+	private void putLocation(String id, Location loc) {
+		removeLocation(id);		// So that a replaced id moves to the end as it would in the metadata file.
+		index.put(id, loc);
+		liveBytes += loc.length;
+		updateMaxIDIndex(id);
+	}
+
+	private boolean removeLocation(String id) {
+		Location old = index.remove(id);
+		if (old == null)
+			return false;
+		liveBytes -= old.length;
+		return true;
+	}
+
+	private void updateMaxIDIndex(String id) {
+		String baseName = id.replace(".wav", "");
+		try {
+			int t = Integer.parseInt(baseName);
+			if (t > maxIDIndex)
+				maxIDIndex = t;
+		} catch (NumberFormatException e) {
+			;	// ignore
+		}
+	}
+
+	/**
+	 * Append a record and do any checkpointing or compaction that is due.
+	 * Must be called while holding the write lock.
+	 * @return the location of the appended record.
+	 */
+	private Location append(byte op, String id, Properties labels, Properties tags) throws IOException {
+		byte[] payload = encode(op, id, labels, tags);
+		ByteBuffer buffer = ByteBuffer.allocate(RECORD_HEADER_BYTES + payload.length);
+		buffer.putInt(payload.length);
+		buffer.putInt(checksum(payload));
+		buffer.put(payload);
+		buffer.flip();
+		Location loc = new Location(logLength, buffer.remaining());
+		writeFully(channel, buffer, logLength);
+		logLength += loc.length;
+		appendsSinceCheckpoint++;
+		version++;
+		return loc;
+	}
+
+	/**
+	 * Checkpoint or compact if enough records have been appended since the last time.
+	 * Must be called while holding the write lock.
+	 */
+	private void maintain() throws IOException {
+		long garbageBytes = logLength - LOG_HEADER_BYTES - liveBytes;
+		if (garbageBytes > COMPACTION_MIN_BYTES && garbageBytes > liveBytes) 
+			compactLog();
+		else if (appendsSinceCheckpoint >= Math.max(CHECKPOINT_MIN_RECORDS, index.size())) 
+			writeIndex();
+	}
+
+	/**
+	 * Write the in-memory index to the index file.
+	 * @throws IOException
+	 */
+	void checkpoint() throws IOException {
+		lock.writeLock().lock();
+		try {
+			writeIndex();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Copy the live records to a new log.
+	 * @throws IOException
+	 */
+	void compact() throws IOException {
+		lock.writeLock().lock();
+		try {
+			compactLog();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Must be called while holding the write lock, or from the constructor.
+	 */
+	private void writeIndex() throws IOException {
+		File tmp = new File(indexFile.getPath() + ".tmp");
+		DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+		try {
+			dos.writeInt(INDEX_MAGIC);
+			dos.writeInt(FORMAT_VERSION);
+			dos.writeLong(generation);
+			dos.writeLong(logLength);
+			dos.writeInt(index.size());
+			for (Map.Entry<String,Location> e : index.entrySet()) {
+				dos.writeUTF(e.getKey());
+				dos.writeLong(e.getValue().offset);
+				dos.writeInt(e.getValue().length);
+			}
+		} finally {
+			dos.close();
+		}
+		Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		appendsSinceCheckpoint = 0;
+	}
+
+	/**
+	 * Copy the live records to a new log with a new generation, replace the current log with it and checkpoint the index.
+	 * Must be called while holding the write lock.
+	 */
+	private void compactLog() throws IOException {
+		long newGeneration = newGeneration();
+		File tmp = new File(logFile.getPath() + ".tmp");
+		writeHeader(tmp, newGeneration);
+		LinkedHashMap<String,Location> newIndex = new LinkedHashMap<String,Location>();
+		FileChannel newChannel = new RandomAccessFile(tmp, "rw").getChannel();
+		try {
+			long offset = LOG_HEADER_BYTES;
+			for (Map.Entry<String,Location> e : index.entrySet()) {
+				Location loc = e.getValue();
+				ByteBuffer buffer = ByteBuffer.allocate(loc.length);
+				readFully(channel, buffer, loc.offset);
+				buffer.flip();
+				writeFully(newChannel, buffer, offset);
+				newIndex.put(e.getKey(), new Location(offset, loc.length));
+				offset += loc.length;
+			}
+			newChannel.force(false);
+			Files.move(tmp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			channel.close();
+			channel = newChannel;
+			newChannel = null;
+			generation = newGeneration;
+			logLength = offset;
+			index.clear();
+			index.putAll(newIndex);
+		} finally {
+			if (newChannel != null) {
+				newChannel.close();
+				tmp.delete();
+			}
+		}
+		writeIndex();
+	}
+
+	/**
+	 * Get a new id for a sound, which is not used by any other sound in the log.
+	 * @return an id of the form used by {@link MetaData#appendMetaDataSound(String, org.eng.aisp.SoundRecording)}.
+	 */
+	String newID() {
+		lock.writeLock().lock();
+		try {
+			maxIDIndex++;
+			return String.format(ID_FORMAT, maxIDIndex);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Add or replace the labels and tags stored under the given id.
+	 * A replaced id moves to the end of the ids returned by {@link #getIDs()}.
+	 * @param id
+	 * @param labels
+	 * @param tags
+	 * @throws IOException
+	 */
+	void put(String id, Properties labels, Properties tags) throws IOException {
+		lock.writeLock().lock();
+		try {
+			putLocation(id, append(PUT_RECORD, id, labels, tags));
+			maintain();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Replace the labels and tags stored under the given id, if present.
+	 * @param id
+	 * @param labels
+	 * @param tags
+	 * @return false if the id is not present in the log.
+	 * @throws IOException
+	 */
+	boolean replace(String id, Properties labels, Properties tags) throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (!index.containsKey(id))
+				return false;
+			putLocation(id, append(PUT_RECORD, id, labels, tags));
+			maintain();
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove the given id from the log.
+	 * @param id
+	 * @return false if the id is not present in the log.
+	 * @throws IOException
+	 */
+	boolean remove(String id) throws IOException {
+		lock.writeLock().lock();
+		try {
+			if (!index.containsKey(id))
+				return false;
+			append(DELETE_RECORD, id, null, null);
+			removeLocation(id);
+			maintain();
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove all ids by starting a new empty log.
+	 * @throws IOException
+	 */
+	void clear() throws IOException {
+		lock.writeLock().lock();
+		try {
+			channel.close();
+			create();
+			version++;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the labels and tags stored under the given id.
+	 * @param id
+	 * @return null if not present.
+	 * @throws IOException
+	 */
+	Entry get(String id) throws IOException {
+		lock.readLock().lock();
+		try {
+			Location loc = index.get(id);
+			if (loc == null)
+				return null;
+			return read(loc);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Must be called while holding the lock.
+	 */
+	private Entry read(Location loc) throws IOException {
+		byte[] payload = new byte[loc.length - RECORD_HEADER_BYTES];
+		readFully(channel, ByteBuffer.wrap(payload), loc.offset + RECORD_HEADER_BYTES);
+		return decode(payload);
+	}
+
+	boolean contains(String id) {
+		lock.readLock().lock();
+		try {
+			return index.containsKey(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	int size() {
+		lock.readLock().lock();
+		try {
+			return index.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get a count of the changes made to this instance, to be used to determine if a view of the log is out of date.
+	 * @return a value that is changed by each add, update, delete and clear.
+	 */
+	long getVersion() {
+		lock.readLock().lock();
+		try {
+			return version;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the ids in the order they were added.
+	 * @return a snapshot of the ids that is not affected by later changes.
+	 */
+	List<String> getIDs() {
+		lock.readLock().lock();
+		try {
+			return new ArrayList<String>(index.keySet());
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the labels and tags of all ids in the order they were added.
+	 * @return a snapshot of the entries that is not affected by later changes.
+	 * @throws IOException
+	 */
+	List<Entry> getEntries() throws IOException {
+		lock.readLock().lock();
+		try {
+			List<Entry> entries = new ArrayList<Entry>(index.size());
+			Iterator<Location> locations = index.values().iterator();
+			while (locations.hasNext()) 
+				entries.add(read(locations.next()));
+			return entries;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the number of bytes in the log file.
+	 */
+	long getLogLength() {
+		lock.readLock().lock();
+		try {
+			return logLength;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	private void close() throws IOException {
+		lock.writeLock().lock();
+		try {
+			channel.close();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Thrown when the index or a record does not have the expected format.
+	 */
+	private static class FileFormatException extends IOException {
+		private static final long serialVersionUID = -1645379880632916264L;
+
+		FileFormatException(String msg) {
+			super(msg);
+		}
+	}
+}
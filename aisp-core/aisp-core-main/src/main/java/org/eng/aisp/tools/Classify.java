@@ -93,6 +93,7 @@ public class Classify implements ICommandListener {
 			+ "  -server  : Causes a server to be created that listens for http classify requests.\n" 
 			+ "Model/Classifier options:\n"
 			+ "  A classifier must be specified using the following:\n" 
+			+ GetTrainedModelOptions.OptionsHelp
 			+ "  -quiet : limit the output to just the label and confidence for the result\n"
 			+ "      This is the default.\n"
 			+ "  -compare: when labels are present (from a metadata file) on the sounds being\n"
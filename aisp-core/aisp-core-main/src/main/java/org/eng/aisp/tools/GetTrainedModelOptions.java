@@ -27,10 +27,14 @@ public class GetTrainedModelOptions {
 	public final static String OptionsHelp =
 			""
 			+ "  -file file : specifies the file containing the model to load.\n"
+			+ "  -map : memory-map the model file instead of loading it onto the heap, so that\n"
+			+ "      processes using the same file share its memory. Only models written in the\n"
+			+ "      binary format benefit. The file must not be modified while in use.\n"
 			;
 
 
 	private String modelFile;
+	private boolean mapModel;
 
 	/**
 	 * Parse options.  
@@ -39,6 +43,7 @@ public class GetTrainedModelOptions {
 	 */
 	public boolean parseOptions(CommandArgs cmdargs) {
 		this.modelFile= cmdargs.getOption("file");
+		this.mapModel = cmdargs.getFlag("map") || FixedClassifiers.DEFAULT_USE_MAPPING;
 		return true;
 		
 	}
@@ -56,7 +61,10 @@ public class GetTrainedModelOptions {
 
 		if (modelFile != null) { // Load the local model , takes precedence over remote options.
 			try {
-				classifier = (IFixedClassifier<double[]>) FixedClassifiers.read(modelFile);
+				if (mapModel)
+					classifier = (IFixedClassifier<double[]>) FixedClassifiers.map(modelFile);
+				else
+					classifier = (IFixedClassifier<double[]>) FixedClassifiers.read(modelFile);
 			} catch (Exception e) {
 				System.err.println("Could not load classifier from file " + modelFile + ": " + e.getMessage());
 				return null;
@@ -55,6 +55,11 @@ public class Train {
 			+ "  -noinfo : causes no information about the training data to be displayed.\n"
 			+ "      This may be useful to speed training on large training sets.\n"
 			+ "  -file <file> : a file into which the classifier can be written. Optional.\n" 
+			+ "  -format (binary|java) : the format of the file written with -file. binary uses\n"
+			+ "      a compact encoding for the classifiers that support it, which is faster to\n"
+			+ "      read and write, and java serialization for others. java always uses java\n"
+			+ "      serialization.  Either is read by the tools that load a model from a file.\n"
+			+ "      Default is " + (FixedClassifiers.DEFAULT_USE_CODECS ? "binary" : "java") + ".\n"
 			+ "  -data-type (audio|xyz|mag) : specifies the type of data contained in the wav\n"
 			+ "      files and attaches an associated data type tag to the trained model.\n"
 			+ "      Default is audio.\n"
@@ -103,6 +108,18 @@ public class Train {
 			outputFileName = cmdargs.getOption("output");	// For backwards compatability (used to be -output).
 		boolean noinfo = cmdargs.getFlag("noinfo");
 		boolean storeFixed = cmdargs.getFlag("fixed");
+		boolean useCodecs = FixedClassifiers.DEFAULT_USE_CODECS;
+		String format = cmdargs.getOption("format");
+		if (format != null) {
+			if (format.equals("binary")) {
+				useCodecs = true;
+			} else if (format.equals("java")) {
+				useCodecs = false;
+			} else {
+				System.err.println("Format must be one of binary or java");
+				return false;
+			}
+		}
 		DataTypeEnum dataType = DataTypeEnum.Audio;
 		String dataTypeValue = cmdargs.getOption("data-type");
 		int seed = cmdargs.getOption("seed", 0); 
@@ -258,7 +275,7 @@ public class Train {
 			}
 			if (classifier2Save != null) {
 				try {
-					FixedClassifiers.write(outputFileName, classifier2Save);
+					FixedClassifiers.write(outputFileName, classifier2Save, useCodecs);
 					System.out.println("Wrote trained " + (storeFixed ? "fixed " : "") + "classifier to file " + outputFileName);
 				} catch (IOException e) {
 					System.err.println("Could not write classifer to file " + outputFileName + ": " + e.getMessage());
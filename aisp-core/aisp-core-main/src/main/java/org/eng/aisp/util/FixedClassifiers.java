@@ -15,70 +15,115 @@
  *******************************************************************************/
 package org.eng.aisp.util;
 
+import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Arrays;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
 
+import org.eng.aisp.AISPProperties;
 import org.eng.aisp.classifier.IFixedClassifier;
 import org.eng.util.ClassUtilities;
 
 /**
  * Provides general operations on FixedClassifiers, especially reading/writing.
+ * By default classifiers are written with Java serialization.  When enabled with the {@value #USE_CODECS_PROPERTY_NAME} property, 
+ * classifiers that have an {@link IModelCodec} are instead written in the binary form of {@link ModelCodecs}.  Either form is read by {@link #read(InputStream)}.
+ * Tools and processes that read the files written must be at a version that supports the binary form before it is enabled.
+ * <p>
+ * Files written in the binary form may also be loaded with {@link #map(String)}, which leaves the reference vectors of KNN classifiers 
+ * in the memory-mapped file instead of copying them onto the heap, so that processes serving the same models share that memory.
+ * {@link #read(String)} does this when the {@value #USE_MAPPING_PROPERTY_NAME} property is true.
  * @author dawood
  *
  */
 public class FixedClassifiers {
 
+	/** The property that, when true, causes classifiers that have a codec to be written in binary instead of with Java serialization */
+	public final static String USE_CODECS_PROPERTY_NAME = "fixedclassifiers.codecs.enabled";
+	public final static boolean DEFAULT_USE_CODECS = AISPProperties.instance().getProperty(USE_CODECS_PROPERTY_NAME, false);
+
+	/** The property that, when true, causes {@link #read(String)} to memory-map the file as {@link #map(String)} does */
+	public final static String USE_MAPPING_PROPERTY_NAME = "fixedclassifiers.mapping.enabled";
+	public final static boolean DEFAULT_USE_MAPPING = AISPProperties.instance().getProperty(USE_MAPPING_PROPERTY_NAME, false);
+
 	/**
-	 * Write the given classifier to the given stream.
+	 * Write the given classifier to the given stream using the default format.
 	 * The stream is NOT closed upon return.
 	 * @param ostream
 	 * @param classifier
 	 * @throws IOException
 	 */
 	public static void write(OutputStream ostream, IFixedClassifier<?> classifier) throws IOException {
-		byte[] b = ClassUtilities.serialize(classifier);
-		ostream.write(b);
+		write(ostream, classifier, DEFAULT_USE_CODECS);
+	}
+
+	/**
+	 * Write the given classifier to the given stream.
+	 * The stream is NOT closed upon return.
+	 * @param ostream
+	 * @param classifier
+	 * @param useCodecs if true, then write the classifier with its codec if it has one, otherwise always use Java serialization.
+	 * @throws IOException
+	 */
+	public static void write(OutputStream ostream, IFixedClassifier<?> classifier, boolean useCodecs) throws IOException {
+		if (useCodecs)
+			ModelCodecs.write(ostream, classifier);
+		else
+			ClassUtilities.serialize(ostream, classifier);
 		ostream.flush();
 	}
 
 	public static void write(String fileName, IFixedClassifier<?> classifier) throws IOException {
-		FileOutputStream fos = new FileOutputStream(fileName);
-		write(fos,classifier);
-		fos.close();
+		write(fileName, classifier, DEFAULT_USE_CODECS);
+	}
+
+	/**
+	 * Write the classifier to a temporary file in the same directory and then rename it to the given file.
+	 * A process that has mapped the existing file with {@link #map(String)} keeps the old contents rather than seeing a partially written file.
+	 * @param fileName
+	 * @param classifier
+	 * @param useCodecs if true, then write the classifier with its codec if it has one, otherwise always use Java serialization.
+	 * @throws IOException
+	 */
+	public static void write(String fileName, IFixedClassifier<?> classifier, boolean useCodecs) throws IOException {
+		Path target = Paths.get(fileName).toAbsolutePath();
+		// Not Files.createTempFile(), which would restrict the permissions of the model to its owner.
+		Path tmp = File.createTempFile("." + target.getFileName() + ".", ".tmp", target.getParent().toFile()).toPath();
+		try {
+			OutputStream fos = Files.newOutputStream(tmp);
+			try {
+				write(fos,classifier, useCodecs);
+			} finally {
+				fos.close();
+			}
+			try {
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(tmp);
+		}
 	}
 
 	/**
-	 * Read the classifier from the given stream.
+	 * Read the classifier from the given stream, written either with or without a codec.
 	 * @param istream not closed on return.
 	 * @return never null 
 	 * @throws IOException
 	 * @throws ClassNotFoundException
 	 */
 	public static IFixedClassifier<?> read(InputStream istream) throws IOException, ClassNotFoundException {
-		byte b[] = null;
-
-		final int BUFSIZE=8192;
+		return asClassifier(ModelCodecs.read(istream));
+	}
 
-		byte buf[] = new byte[BUFSIZE];
-		int count;
-		do {
-			count = istream.read(buf,0,BUFSIZE);
-			if (count > 0) {
-				if (b == null)  {
-					b = new byte[count];
-					System.arraycopy(buf, 0, b, 0, count);
-				} else {
-					int oldLen = b.length;
-					b = Arrays.copyOf(b, b.length + count);
-					System.arraycopy(buf, 0, b, oldLen, count);
-				}
-			}
-		} while (count > 0);
-		Object o = ClassUtilities.deserialize(b);
+	private static IFixedClassifier<?> asClassifier(Object o) throws IOException {
 		if (o != null && o instanceof IFixedClassifier) {
 			return (IFixedClassifier<?>)o;
 		} else {
@@ -99,9 +144,27 @@ public class FixedClassifiers {
 	 * @throws ClassNotFoundException
 	 */
 	public static IFixedClassifier<?> read(String fileName) throws IOException, ClassNotFoundException {
+		if (DEFAULT_USE_MAPPING)
+			return map(fileName);
 		FileInputStream fis = new FileInputStream(fileName);
-		IFixedClassifier<?> fc = read(fis);
-		fis.close();
-		return fc;
+		try {
+			return read(fis);
+		} finally {
+			fis.close();
+		}
+	}
+
+	/**
+	 * Load the fixed classifier from the given file created with {@link #write(String, IFixedClassifier)}, leaving its large sections in 
+	 * the memory-mapped file.  Classification results are the same as those of the classifier returned by {@link #read(String)}.
+	 * The file must not be modified in place while the classifier is in use, which {@link #write(String, IFixedClassifier)} does not do.
+	 * @param fileName
+	 * @return never null
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 * @see ModelCodecs#map(File)
+	 */
+	public static IFixedClassifier<?> map(String fileName) throws IOException, ClassNotFoundException {
+		return asClassifier(ModelCodecs.map(new File(fileName)));
 	}
 }
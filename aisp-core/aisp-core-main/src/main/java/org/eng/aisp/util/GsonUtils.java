@@ -15,19 +15,27 @@
  *******************************************************************************/
 package org.eng.aisp.util;
 
+import java.io.IOException;
 import java.lang.reflect.Field;
 import java.lang.reflect.Type;
 import java.util.ArrayList;
 import java.util.List;
 
 import org.eng.aisp.AISPException;
+import org.eng.aisp.DoubleWindow;
 
 import com.google.gson.ExclusionStrategy;
 import com.google.gson.FieldAttributes;
+import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonSerializationContext;
 import com.google.gson.JsonSerializer;
+import com.google.gson.TypeAdapter;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonWriter;
 
 public class GsonUtils {
 
@@ -39,6 +47,42 @@ public class GsonUtils {
 	    }
 	}
 	
+	/**
+	 * Materializes {@link DoubleWindow} views with {@link DoubleWindow#materializeView()} before Gson writes their fields,
+	 * since the data of a view is not held in a field until then.
+	 */
+	public static class DoubleWindowAdapterFactory implements TypeAdapterFactory {
+
+		@Override
+		public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> type) {
+			if (!DoubleWindow.class.isAssignableFrom(type.getRawType()))
+				return null;
+			final TypeAdapter<T> delegate = gson.getDelegateAdapter(this, type);
+			return new TypeAdapter<T>() {
+
+				@Override
+				public void write(JsonWriter out, T value) throws IOException {
+					if (value != null)
+						((DoubleWindow)value).materializeView();
+					delegate.write(out, value);
+				}
+
+				@Override
+				public T read(JsonReader in) throws IOException {
+					return delegate.read(in);
+				}
+			};
+		}
+	}
+
+	/**
+	 * Get a builder for Gson instances that can serialize data windows, including sub-window views.
+	 * @return never null.
+	 */
+	public static GsonBuilder newGsonBuilder() {
+		return new GsonBuilder().registerTypeAdapterFactory(new DoubleWindowAdapterFactory());
+	}
+
 	/**
 	 *  Used to fix a problem with KNNVectorSummarizer classifier which mistakenly duplicates a superclass field and 
 	 *  makes it so GSON will not serialize.
@@ -92,7 +136,7 @@ public class GsonUtils {
 	}
 	
 	public static GsonBuilder getGsonInterfaceSerializer(List<Class<?>> interfaces, boolean pretty) {
-		GsonBuilder builder = new GsonBuilder();
+		GsonBuilder builder = newGsonBuilder();
 		if (pretty)
 			builder.setPrettyPrinting();
 
@@ -0,0 +1,64 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.util;
+
+import java.io.IOException;
+
+/**
+ * Writes and reads instances of a single model class in a compact binary form that holds primitive arrays directly, 
+ * for use in place of Java serialization by {@link ModelCodecs}.
+ * <p>
+ * A codec is used only for instances whose class is exactly {@link #getModelClass()}, so that the state added by a subclass is never lost.
+ * Instances of other classes, including the nested objects of a model, are written with Java serialization unless they too have a codec.
+ * Implementations must be stateless and thread-safe, and are made known with {@link ModelCodecs#register(IModelCodec)} 
+ * or by listing them in <code>META-INF/services/org.eng.aisp.util.IModelCodec</code>.
+ * 
+ * @param <MODEL> the class of model encoded.
+ */
+public interface IModelCodec<MODEL> {
+
+	/**
+	 * @return the class of the instances encoded by this codec. 
+	 */
+	public Class<MODEL> getModelClass();
+
+	/**
+	 * Get the version of the encoding written by {@link #write(ModelCodecOutputStream, Object)}.
+	 * The version is stored with each instance and passed back to {@link #read(ModelCodecInputStream, int)} so that
+	 * an encoding can be changed while still reading instances written by earlier versions.
+	 * @return a value from 0 to 255.
+	 */
+	public int getVersion();
+
+	/**
+	 * Write the state of the given model to the stream.
+	 * @param ostream
+	 * @param model never null.
+	 * @throws IOException
+	 */
+	public void write(ModelCodecOutputStream ostream, MODEL model) throws IOException;
+
+	/**
+	 * Read a model written by {@link #write(ModelCodecOutputStream, Object)}.
+	 * @param istream
+	 * @param version the value of {@link #getVersion()} when the model was written.
+	 * @return never null.
+	 * @throws IOException if the version is not supported or the data is not valid.
+	 * @throws ClassNotFoundException if a nested object written with Java serialization can not be loaded.
+	 */
+	public MODEL read(ModelCodecInputStream istream, int version) throws IOException, ClassNotFoundException;
+
+}
@@ -0,0 +1,436 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.util;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StreamCorruptedException;
+import java.lang.reflect.Array;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.eng.util.ClassUtilities;
+
+/**
+ * The stream given to {@link IModelCodec#read(ModelCodecInputStream, int)} to read the values written by the same named methods 
+ * of {@link ModelCodecOutputStream}.
+ * Lengths and tags are validated so that a corrupt stream results in an IOException rather than a huge allocation.
+ * <p>
+ * An instance created on a memory-mapped file by {@link ModelCodecs#map(java.io.File)} can also provide the sections written with 
+ * {@link ModelCodecOutputStream#writeDoubleSection(double[][])} as views of the file, see {@link #mapDoubleSection()}.
+ */
+public class ModelCodecInputStream extends DataInputStream {
+
+	private final byte[] buffer = new byte[8192];
+	private final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+	/** The mapped file being read, or null if reading from a stream */
+	private final ByteBuffer mapped;
+
+	public ModelCodecInputStream(InputStream in) {
+		super(in);
+		this.mapped = null;
+	}
+
+	/**
+	 * Read from the current position of the given buffer, usually a memory-mapped file. 
+	 * The super class does not read ahead, so the position of the buffer is always that of the next value.
+	 * @param mapped
+	 */
+	ModelCodecInputStream(ByteBuffer mapped) {
+		super(new ByteBufferInputStream(mapped));
+		this.mapped = mapped;
+	}
+
+	/**
+	 * A view of the values of a section written with {@link ModelCodecOutputStream#writeDoubleSection(double[][])}.
+	 */
+	public static class DoubleSection {
+		private final int rows;
+		private final int columns;
+		private final DoubleBuffer values;
+
+		private DoubleSection(int rows, int columns, DoubleBuffer values) {
+			this.rows = rows;
+			this.columns = columns;
+			this.values = values;
+		}
+
+		public int getRows() {
+			return rows;
+		}
+
+		public int getColumns() {
+			return columns;
+		}
+
+		/**
+		 * @return a read-only buffer with the rows one after the other.  Callers should use a {@link DoubleBuffer#duplicate()} 
+		 * if they change its position or limit.
+		 */
+		public DoubleBuffer getValues() {
+			return values;
+		}
+	}
+
+	private static class ByteBufferInputStream extends InputStream {
+		private final ByteBuffer buffer;
+
+		ByteBufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0)
+				return 0;
+			if (!buffer.hasRemaining())
+				return -1;
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public long skip(long n) {
+			int skipped = (int)Math.max(0, Math.min(n, buffer.remaining()));
+			buffer.position(buffer.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+
+	/**
+	 * @return true if reading from a memory-mapped file, in which case {@link #mapDoubleSection()} may be used.
+	 */
+	public boolean isMapped() {
+		return mapped != null;
+	}
+
+	/**
+	 * Read a length written before an array or collection.
+	 * @return -1 for null, otherwise the length.
+	 * @throws IOException if the length is less than -1.
+	 */
+	private int readLength() throws IOException {
+		int len = readInt();
+		if (len < -1)
+			throw new StreamCorruptedException("Invalid length " + len);
+		return len;
+	}
+
+	/**
+	 * Read a string written with {@link ModelCodecOutputStream#writeString(String)}.
+	 * @return may be null.
+	 * @throws IOException
+	 */
+	public String readString() throws IOException {
+		int len = readLength();
+		if (len < 0)
+			return null;
+		byte[] b = new byte[len];
+		readFully(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Read a list written with {@link ModelCodecOutputStream#writeStringList(List)}.
+	 * @return may be null.
+	 * @throws IOException
+	 */
+	public List<String> readStringList() throws IOException {
+		int len = readLength();
+		if (len < 0)
+			return null;
+		List<String> list = new ArrayList<String>(Math.min(len, 1024));
+		for (int i=0 ; i<len ; i++)
+			list.add(readString());
+		return list;
+	}
+
+	/**
+	 * Read a map written with {@link ModelCodecOutputStream#writeStringMap(Map)}.
+	 * @return may be null.
+	 * @throws IOException
+	 */
+	public Map<String,String> readStringMap() throws IOException {
+		int len = readLength();
+		if (len < 0)
+			return null;
+		Map<String,String> map = new HashMap<String,String>();
+		for (int i=0 ; i<len ; i++) {
+			String key = readString();
+			map.put(key, readString());
+		}
+		return map;
+	}
+
+	/**
+	 * Read the given range of the array written with {@link ModelCodecOutputStream#writeDoubles(double[], int, int)}.
+	 * @param a
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void readDoubles(double[] a, int offset, int length) throws IOException {
+		final int perBuffer = buffer.length / 8;
+		while (length > 0) {
+			int n = Math.min(length, perBuffer);
+			readFully(buffer, 0, n * 8);
+			byteBuffer.clear();
+			byteBuffer.asDoubleBuffer().get(a, offset, n);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Read an array written with {@link ModelCodecOutputStream#writeDoubleArray(double[])}.
+	 * @return may be null.
+	 * @throws IOException
+	 */
+	public double[] readDoubleArray() throws IOException {
+		int len = readLength();
+		if (len < 0)
+			return null;
+		double[] a = new double[len];
+		readDoubles(a, 0, len);
+		return a;
+	}
+
+	/**
+	 * Read an array written with {@link ModelCodecOutputStream#writeDoubleMatrix(double[][])}.
+	 * @return may be null.
+	 * @throws IOException
+	 */
+	public double[][] readDoubleMatrix() throws IOException {
+		int len = readLength();
+		if (len < 0)
+			return null;
+		double[][] a = new double[len][];
+		for (int i=0 ; i<len ; i++)
+			a[i] = readDoubleArray();
+		return a;
+	}
+
+	/**
+	 * Read the header of a section written with {@link ModelCodecOutputStream#writeDoubleSection(double[][])} and skip the padding after it.
+	 * @return the number of rows and columns.
+	 * @throws IOException
+	 */
+	private int[] readSectionHeader() throws IOException {
+		int rows = readInt();
+		int columns = readInt();
+		int pad = readUnsignedByte();
+		if (rows < 0 || columns < 0 || pad > 7)
+			throw new StreamCorruptedException("Invalid section header");
+		readFully(buffer, 0, pad);
+		return new int[] { rows, columns };
+	}
+
+	/**
+	 * Read a section written with {@link ModelCodecOutputStream#writeDoubleSection(double[][])} onto the heap.
+	 * @return never null.
+	 * @throws IOException
+	 */
+	public double[][] readDoubleSection() throws IOException {
+		int[] shape = readSectionHeader();
+		double[][] a = new double[shape[0]][];
+		byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			for (int i=0 ; i<a.length ; i++) {
+				a[i] = new double[shape[1]];
+				readDoubles(a[i], 0, shape[1]);
+			}
+		} finally {
+			byteBuffer.order(ByteOrder.BIG_ENDIAN);
+		}
+		return a;
+	}
+
+	/**
+	 * Get a section written with {@link ModelCodecOutputStream#writeDoubleSection(double[][])} as a view of the mapped file,
+	 * without copying its values, and skip past it.
+	 * The view remains valid after this stream and the file are closed.
+	 * @return never null.
+	 * @throws IOException
+	 * @throws IllegalStateException if {@link #isMapped()} is false.
+	 */
+	public DoubleSection mapDoubleSection() throws IOException {
+		if (mapped == null)
+			throw new IllegalStateException("Not reading a mapped file");
+		int[] shape = readSectionHeader();
+		long bytes = (long)shape[0] * shape[1] * 8;
+		if (bytes > mapped.remaining())
+			throw new EOFException("Section of " + shape[0] + " rows of " + shape[1] + " extends past the end of the file");
+		ByteBuffer section = mapped.slice();
+		section.limit((int)bytes);
+		mapped.position(mapped.position() + (int)bytes);
+		DoubleBuffer values = section.order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().asReadOnlyBuffer();
+		return new DoubleSection(shape[0], shape[1], values);
+	}
+
+	/**
+	 * Read an array written with {@link ModelCodecOutputStream#writeIntArray(int[])}.
+	 * @return may be null.
+	 * @throws IOException
+	 */
+	public int[] readIntArray() throws IOException {
+		int len = readLength();
+		if (len < 0)
+			return null;
+		int[] a = new int[len];
+		final int perBuffer = buffer.length / 4;
+		for (int offset=0 ; offset<len ; offset += perBuffer) {
+			int n = Math.min(len - offset, perBuffer);
+			readFully(buffer, 0, n * 4);
+			byteBuffer.clear();
+			byteBuffer.asIntBuffer().get(a, offset, n);
+		}
+		return a;
+	}
+
+	/**
+	 * Read an array written with {@link ModelCodecOutputStream#writeLongArray(long[])}.
+	 * @return may be null.
+	 * @throws IOException
+	 */
+	public long[] readLongArray() throws IOException {
+		int len = readLength();
+		if (len < 0)
+			return null;
+		long[] a = new long[len];
+		final int perBuffer = buffer.length / 8;
+		for (int offset=0 ; offset<len ; offset += perBuffer) {
+			int n = Math.min(len - offset, perBuffer);
+			readFully(buffer, 0, n * 8);
+			byteBuffer.clear();
+			byteBuffer.asLongBuffer().get(a, offset, n);
+		}
+		return a;
+	}
+
+	/**
+	 * Read an object written with {@link ModelCodecOutputStream#writeModel(Object)}.
+	 * @return may be null.
+	 * @throws IOException if the object was written with a codec that is no longer registered or by a newer version of the codec.
+	 * @throws ClassNotFoundException
+	 */
+	public Object readModel() throws IOException, ClassNotFoundException {
+		int tag = readUnsignedByte();
+		switch (tag) {
+			case ModelCodecOutputStream.NULL_TAG:
+				return null;
+			case ModelCodecOutputStream.CODEC_TAG:
+				String className = readString();
+				int version = readUnsignedByte();
+				IModelCodec<?> codec = ModelCodecs.getCodec(className);
+				if (codec == null)
+					throw new IOException("No codec is registered for class " + className);
+				if (version > codec.getVersion())
+					throw new IOException("Instance of class " + className + " was written with version " + version 
+							+ " of its codec, which is newer than the supported version " + codec.getVersion());
+				return codec.read(this, version);
+			case ModelCodecOutputStream.JAVA_TAG:
+				return readJava();
+			default:
+				throw new StreamCorruptedException("Invalid tag " + tag);
+		}
+	}
+
+	/**
+	 * Read an array written with {@link ModelCodecOutputStream#writeModels(Object[])}.
+	 * @return may be null.  An array of the same component type as that written.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public Object[] readModels() throws IOException, ClassNotFoundException {
+		int tag = readUnsignedByte();
+		switch (tag) {
+			case ModelCodecOutputStream.NULL_TAG:
+				return null;
+			case ModelCodecOutputStream.CODEC_TAG:
+				Class<?> componentType = Class.forName(readString());
+				int len = readLength();
+				if (len < 0)
+					throw new StreamCorruptedException("Invalid length " + len);
+				Object[] array = (Object[])Array.newInstance(componentType, len);
+				for (int i=0 ; i<len ; i++)
+					array[i] = readModel();
+				return array;
+			case ModelCodecOutputStream.JAVA_TAG:
+				return (Object[])readJava();
+			default:
+				throw new StreamCorruptedException("Invalid tag " + tag);
+		}
+	}
+
+	/**
+	 * Read a list written with {@link ModelCodecOutputStream#writeModelList(List)}.
+	 * @return may be null.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	@SuppressWarnings("unchecked")
+	public <T> List<T> readModelList() throws IOException, ClassNotFoundException {
+		int tag = readUnsignedByte();
+		switch (tag) {
+			case ModelCodecOutputStream.NULL_TAG:
+				return null;
+			case ModelCodecOutputStream.CODEC_TAG:
+				int len = readLength();
+				if (len < 0)
+					throw new StreamCorruptedException("Invalid length " + len);
+				List<T> list = new ArrayList<T>(Math.min(len, 1024));
+				for (int i=0 ; i<len ; i++)
+					list.add((T)readModel());
+				return list;
+			case ModelCodecOutputStream.JAVA_TAG:
+				return (List<T>)readJava();
+			default:
+				throw new StreamCorruptedException("Invalid tag " + tag);
+		}
+	}
+
+	/**
+	 * Read the remainder of an object written with {@link ModelCodecOutputStream#writeModel(Object)} after its JAVA_TAG.
+	 */
+	private Object readJava() throws IOException, ClassNotFoundException {
+		int len = readLength();
+		if (len < 0)
+			throw new StreamCorruptedException("Invalid length " + len);
+		byte[] b = new byte[len];
+		readFully(b);
+		return ClassUtilities.deserialize(b);
+	}
+
+}
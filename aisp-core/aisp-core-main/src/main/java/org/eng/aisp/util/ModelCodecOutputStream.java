@@ -0,0 +1,294 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.util;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.OutputStream;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.eng.util.ClassUtilities;
+
+/**
+ * The stream given to {@link IModelCodec#write(ModelCodecOutputStream, Object)}. 
+ * Adds to the primitives of the super class the writing of primitive arrays in bulk, strings that may be null and nested objects, 
+ * each of which is read back by the same named method of {@link ModelCodecInputStream}.
+ * <p>
+ * Nested objects are written with their own codec when one is registered with {@link ModelCodecs}, and otherwise with Java serialization.
+ * <p>
+ * Large matrices may be written as a section with {@link #writeDoubleSection(double[][])}, which a mapped {@link ModelCodecInputStream} 
+ * can read as a view of the file instead of copying it onto the heap.
+ */
+public class ModelCodecOutputStream extends DataOutputStream {
+
+	final static int NULL_TAG = 0;
+	final static int CODEC_TAG = 1;
+	final static int JAVA_TAG = 2;
+
+	/** The bytes of the primitive arrays are staged through this buffer so that they are written in bulk */
+	private final byte[] buffer = new byte[8192];
+	private final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer);
+
+	public ModelCodecOutputStream(OutputStream out) {
+		super(out);
+	}
+
+	/**
+	 * Write a string that may be null. Unlike {@link #writeUTF(String)}, the length of the string is not limited.
+	 * @param s
+	 * @throws IOException
+	 */
+	public void writeString(String s) throws IOException {
+		if (s == null) {
+			writeInt(-1);
+		} else {
+			byte[] b = s.getBytes(StandardCharsets.UTF_8);
+			writeInt(b.length);
+			write(b);
+		}
+	}
+
+	/**
+	 * Write a list of strings. 
+	 * @param list may be null as may its elements.
+	 * @throws IOException
+	 */
+	public void writeStringList(List<String> list) throws IOException {
+		if (list == null) {
+			writeInt(-1);
+			return;
+		}
+		writeInt(list.size());
+		for (String s : list)
+			writeString(s);
+	}
+
+	/**
+	 * Write a map of strings, typically the tags of a model.
+	 * @param map may be null. Neither keys nor values may be null.
+	 * @throws IOException
+	 */
+	public void writeStringMap(Map<String,String> map) throws IOException {
+		if (map == null) {
+			writeInt(-1);
+			return;
+		}
+		writeInt(map.size());
+		for (Map.Entry<String,String> e : map.entrySet()) {
+			writeString(e.getKey());
+			writeString(e.getValue());
+		}
+	}
+
+	/**
+	 * Write the given range of the array without its length.
+	 * @param a
+	 * @param offset
+	 * @param length
+	 * @throws IOException
+	 */
+	public void writeDoubles(double[] a, int offset, int length) throws IOException {
+		final int perBuffer = buffer.length / 8;
+		while (length > 0) {
+			int n = Math.min(length, perBuffer);
+			byteBuffer.clear();
+			byteBuffer.asDoubleBuffer().put(a, offset, n);
+			write(buffer, 0, n * 8);
+			offset += n;
+			length -= n;
+		}
+	}
+
+	/**
+	 * Write an array of doubles and its length. 
+	 * @param a may be null.
+	 * @throws IOException
+	 */
+	public void writeDoubleArray(double[] a) throws IOException {
+		if (a == null) {
+			writeInt(-1);
+		} else {
+			writeInt(a.length);
+			writeDoubles(a, 0, a.length);
+		}
+	}
+
+	/**
+	 * Write the rows of a matrix as a section that can be read in place from a memory-mapped file by {@link ModelCodecInputStream#mapDoubleSection()}.
+	 * The values are aligned to 8 bytes from the start of this stream and are little-endian, the native order of common hosts, 
+	 * so that a mapped view of them does not swap bytes.
+	 * @param rows the rows of the matrix, all of the same length. 
+	 * @throws IOException
+	 * @throws IllegalArgumentException if the rows are not all of the same length.
+	 */
+	public void writeDoubleSection(double[][] rows) throws IOException {
+		int columns = rows.length == 0 ? 0 : rows[0].length;
+		for (double[] row : rows) {
+			if (row.length != columns)
+				throw new IllegalArgumentException("Rows are not all of the same length");
+		}
+		writeInt(rows.length);
+		writeInt(columns);
+		int pad = (8 - (size() + 1) % 8) % 8;
+		writeByte(pad);
+		for (int i=0 ; i<pad ; i++)
+			writeByte(0);
+		byteBuffer.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			for (double[] row : rows)
+				writeDoubles(row, 0, columns);
+		} finally {
+			byteBuffer.order(ByteOrder.BIG_ENDIAN);
+		}
+	}
+
+	/**
+	 * Write a 2-dimensional array of doubles, whose rows may be of different lengths.
+	 * @param a may be null as may its rows.
+	 * @throws IOException
+	 */
+	public void writeDoubleMatrix(double[][] a) throws IOException {
+		if (a == null) {
+			writeInt(-1);
+			return;
+		}
+		writeInt(a.length);
+		for (double[] row : a)
+			writeDoubleArray(row);
+	}
+
+	/**
+	 * Write an array of ints and its length.
+	 * @param a may be null.
+	 * @throws IOException
+	 */
+	public void writeIntArray(int[] a) throws IOException {
+		if (a == null) {
+			writeInt(-1);
+			return;
+		}
+		writeInt(a.length);
+		final int perBuffer = buffer.length / 4;
+		for (int offset=0 ; offset<a.length ; offset += perBuffer) {
+			int n = Math.min(a.length - offset, perBuffer);
+			byteBuffer.clear();
+			byteBuffer.asIntBuffer().put(a, offset, n);
+			write(buffer, 0, n * 4);
+		}
+	}
+
+	/**
+	 * Write an array of longs and its length.
+	 * @param a may be null.
+	 * @throws IOException
+	 */
+	public void writeLongArray(long[] a) throws IOException {
+		if (a == null) {
+			writeInt(-1);
+			return;
+		}
+		writeInt(a.length);
+		final int perBuffer = buffer.length / 8;
+		for (int offset=0 ; offset<a.length ; offset += perBuffer) {
+			int n = Math.min(a.length - offset, perBuffer);
+			byteBuffer.clear();
+			byteBuffer.asLongBuffer().put(a, offset, n);
+			write(buffer, 0, n * 8);
+		}
+	}
+
+	/**
+	 * Write a nested object with the codec registered for its class, or with Java serialization if there is none.
+	 * @param obj may be null.
+	 * @throws IOException if the object has no codec and is not serializable.
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public void writeModel(Object obj) throws IOException {
+		if (obj == null) {
+			writeByte(NULL_TAG);
+			return;
+		}
+		IModelCodec codec = ModelCodecs.getCodec(obj.getClass());
+		if (codec != null) {
+			writeByte(CODEC_TAG);
+			writeString(obj.getClass().getName());
+			writeByte(codec.getVersion());
+			codec.write(this, obj);
+		} else {
+			if (!(obj instanceof Serializable))
+				throw new NotSerializableException(obj.getClass().getName());
+			byte[] b = ClassUtilities.serialize((Serializable)obj);
+			writeByte(JAVA_TAG);
+			writeInt(b.length);
+			write(b);
+		}
+	}
+
+	/**
+	 * Write an array of nested objects.  
+	 * If each element has a codec, then each is written with {@link #writeModel(Object)}, otherwise the whole array is written with Java
+	 * serialization so that the classes of its elements are described only once.
+	 * @param array may be null as may its elements.
+	 * @throws IOException
+	 */
+	public void writeModels(Object[] array) throws IOException {
+		if (array == null) {
+			writeByte(NULL_TAG);
+		} else if (hasCodecs(array)) {
+			writeByte(CODEC_TAG);
+			writeString(array.getClass().getComponentType().getName());
+			writeInt(array.length);
+			for (Object obj : array)
+				writeModel(obj);
+		} else {
+			writeModel(array);
+		}
+	}
+
+	/**
+	 * Write a list of nested objects in the same way as {@link #writeModels(Object[])}.
+	 * @param list may be null as may its elements.  Read back as an ArrayList.
+	 * @throws IOException
+	 */
+	public void writeModelList(List<?> list) throws IOException {
+		if (list == null) {
+			writeByte(NULL_TAG);
+		} else if (hasCodecs(list.toArray())) {
+			writeByte(CODEC_TAG);
+			writeInt(list.size());
+			for (Object obj : list)
+				writeModel(obj);
+		} else {
+			writeModel(list instanceof ArrayList ? list : new ArrayList<Object>(list));
+		}
+	}
+
+	private static boolean hasCodecs(Object[] array) {
+		for (Object obj : array) {
+			if (obj != null && ModelCodecs.getCodec(obj.getClass()) == null)
+				return false;
+		}
+		return true;
+	}
+
+}
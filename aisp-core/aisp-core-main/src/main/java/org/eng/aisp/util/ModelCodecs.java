@@ -0,0 +1,254 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.io.StreamCorruptedException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.ServiceConfigurationError;
+import java.util.ServiceLoader;
+
+import org.eng.aisp.AISPLogger;
+import org.eng.aisp.classifier.anomaly.AnomalyModelCodecs;
+import org.eng.aisp.classifier.gaussianmixture.GMMModelCodecs;
+import org.eng.aisp.classifier.knn.KNNModelCodecs;
+import org.eng.aisp.feature.FeatureModelCodecs;
+import org.eng.util.ClassUtilities;
+
+/**
+ * The registry of {@link IModelCodec} instances and the reading and writing of models with them.
+ * <p>
+ * A model whose class has a codec is written as a 4 byte magic number, a format version byte and then the model as written by 
+ * {@link ModelCodecOutputStream#writeModel(Object)}.
+ * A model whose class has no codec is written with plain Java serialization, exactly as before codecs were introduced.
+ * {@link #read(InputStream)} detects the format, so models written either way, including those written before codecs existed, can be read.
+ * <p>
+ * A file written this way may also be read with {@link #map(File)}, which leaves the large sections of the model in the file, 
+ * so that processes loading the same model share its pages and loading does not copy them. 
+ * <p>
+ * Codecs are provided for the KNN, GMM and anomaly detector classifiers and the feature gram descriptors used by them.
+ * Others may be added with {@link #register(IModelCodec)} or the {@link ServiceLoader} mechanism.
+ */
+public class ModelCodecs {
+
+	/** Not a valid start of a Java serialization stream, which always starts with 0xACED */
+	private final static byte[] MAGIC = { 0, 'A', 'M', 'C' };
+	/** The version of the layout following {@link #MAGIC} */
+	public final static int FORMAT_VERSION = 1;
+
+	/** Codecs keyed by the name of the class they encode */
+	private final static Map<String, IModelCodec<?>> codecs = new HashMap<String, IModelCodec<?>>();
+
+	static {
+		for (IModelCodec<?> codec : KNNModelCodecs.getCodecs())
+			register(codec);
+		for (IModelCodec<?> codec : GMMModelCodecs.getCodecs())
+			register(codec);
+		for (IModelCodec<?> codec : AnomalyModelCodecs.getCodecs())
+			register(codec);
+		for (IModelCodec<?> codec : FeatureModelCodecs.getCodecs())
+			register(codec);
+		try {
+			@SuppressWarnings("rawtypes")
+			Iterator<IModelCodec> iter = ServiceLoader.load(IModelCodec.class).iterator();
+			while (iter.hasNext())
+				register(iter.next());
+		} catch (ServiceConfigurationError e) {
+			AISPLogger.logger.warning("Could not load model codecs: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Register a codec, replacing any already registered for the same class.
+	 * @param codec
+	 */
+	public static void register(IModelCodec<?> codec) {
+		if (codec.getVersion() < 0 || codec.getVersion() > 255)
+			throw new IllegalArgumentException("Codec version must be from 0 to 255");
+		synchronized (codecs) {
+			codecs.put(codec.getModelClass().getName(), codec);
+		}
+	}
+
+	/**
+	 * Get the codec for instances of exactly the given class.
+	 * @param klass
+	 * @return null if there is none.
+	 */
+	public static IModelCodec<?> getCodec(Class<?> klass) {
+		IModelCodec<?> codec = getCodec(klass.getName());
+		if (codec != null && codec.getModelClass() != klass)	// Same name, different class loader.
+			codec = null;
+		return codec;
+	}
+
+	/**
+	 * Get the codec for instances of the named class.
+	 * @param className
+	 * @return null if there is none.
+	 */
+	static IModelCodec<?> getCodec(String className) {
+		synchronized (codecs) {
+			return codecs.get(className);
+		}
+	}
+
+	/**
+	 * Determine if the given model is written with a codec by {@link #write(OutputStream, Serializable)}.
+	 * @param model
+	 * @return true if there is a codec for the class of the model.
+	 */
+	public static boolean hasCodec(Object model) {
+		return model != null && getCodec(model.getClass()) != null;
+	}
+
+	/**
+	 * Write the model with its codec, or with Java serialization if it has none.
+	 * @param ostream not closed on return.
+	 * @param model
+	 * @throws IOException
+	 */
+	public static void write(OutputStream ostream, Serializable model) throws IOException {
+		if (!hasCodec(model)) {
+			ClassUtilities.serialize(ostream, model);
+			return;
+		}
+		ModelCodecOutputStream mcos = new ModelCodecOutputStream(new BufferedOutputStream(ostream, 65536));
+		mcos.write(MAGIC);
+		mcos.writeByte(FORMAT_VERSION);
+		mcos.writeModel(model);
+		mcos.flush();
+	}
+
+	/**
+	 * A convenience on {@link #write(OutputStream, Serializable)}.
+	 * @param model
+	 * @return never null.
+	 * @throws IOException
+	 */
+	public static byte[] encode(Serializable model) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		write(bos, model);
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Determine if the given bytes start with the header written by {@link #write(OutputStream, Serializable)} for a model with a codec.
+	 * @param b
+	 * @return false if the bytes are too short or are presumably a Java serialization.
+	 */
+	public static boolean isEncoded(byte[] b) {
+		if (b == null || b.length < MAGIC.length)
+			return false;
+		for (int i=0 ; i<MAGIC.length ; i++) {
+			if (b[i] != MAGIC[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Read a model written by {@link #write(OutputStream, Serializable)} or with Java serialization.
+	 * @param istream not closed on return, but may have been read beyond the end of the model.
+	 * @return may be null if null was serialized.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static Object read(InputStream istream) throws IOException, ClassNotFoundException {
+		InputStream bis = new BufferedInputStream(istream, 65536);
+		bis.mark(MAGIC.length);
+		byte[] header = new byte[MAGIC.length];
+		int count = 0, n = 0;
+		while (count < header.length && (n = bis.read(header, count, header.length - count)) > 0)
+			count += n;
+		if (count < header.length || !isEncoded(header)) {
+			bis.reset();
+			return ClassUtilities.deserialize(bis);
+		}
+		ModelCodecInputStream mcis = new ModelCodecInputStream(bis);
+		int version = mcis.readUnsignedByte();
+		if (version != FORMAT_VERSION)
+			throw new StreamCorruptedException("Unsupported model format version " + version);
+		return mcis.readModel();
+	}
+
+	/**
+	 * Read a model from a file written by {@link #write(OutputStream, Serializable)}, memory-mapping the file read-only so that the 
+	 * sections codecs read with {@link ModelCodecInputStream#mapDoubleSection()} are views of the file rather than copies on the heap.
+	 * The file must not be modified or truncated while the model is in use; replace it with a new file instead.
+	 * Files written with Java serialization, or too large to map as a single buffer, are read with {@link #read(InputStream)}.
+	 * @param file
+	 * @return may be null if null was serialized.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static Object map(File file) throws IOException, ClassNotFoundException {
+		ModelCodecInputStream mcis = null;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long size = channel.size();
+			if (size >= MAGIC.length && size <= Integer.MAX_VALUE) {
+				// The mapping remains valid after the channel is closed.
+				MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+				byte[] header = new byte[MAGIC.length];
+				buffer.get(header);
+				if (isEncoded(header))
+					mcis = new ModelCodecInputStream(buffer);
+			}
+		} finally {
+			raf.close();
+		}
+		if (mcis == null) {
+			InputStream istream = new FileInputStream(file);
+			try {
+				return read(istream);
+			} finally {
+				istream.close();
+			}
+		}
+		int version = mcis.readUnsignedByte();
+		if (version != FORMAT_VERSION)
+			throw new StreamCorruptedException("Unsupported model format version " + version);
+		return mcis.readModel();
+	}
+
+	/**
+	 * A convenience on {@link #read(InputStream)}.
+	 * @param b
+	 * @return may be null.
+	 * @throws IOException
+	 * @throws ClassNotFoundException
+	 */
+	public static Object decode(byte[] b) throws IOException, ClassNotFoundException {
+		return read(new ByteArrayInputStream(b));
+	}
+
+}
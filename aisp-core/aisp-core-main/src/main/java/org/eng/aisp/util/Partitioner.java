@@ -26,6 +26,8 @@ import org.eng.aisp.ILabeledDataWindow;
 import org.eng.aisp.classifier.TrainingSetInfo;
 import org.eng.aisp.classifier.TrainingSetInfo.LabelInfo;
 import org.eng.util.DelegatingShuffleIterable;
+import org.eng.util.ILabelProjectingIterable;
+import org.eng.util.ILabelProjection;
 import org.eng.util.IShuffleIterable;
 import org.eng.util.ShufflizingIterable;
 
@@ -91,6 +93,8 @@ public class Partitioner {
 
 	/**
 	 * A version of {@link #partition(Iterable, String, int, int)} that accepts and generated IShuffleIterables.
+	 * If the given iterable is an {@link ILabelProjectingIterable} with a projection, then the labels are taken from the projection 
+	 * and the items are not dereferenced.
 	 * <b>
 	 * See {@link #partition(Iterable, String, int, int)} 
 	 */
@@ -103,11 +107,21 @@ public class Partitioner {
 		for (int i=0 ; i<partitions ; i++) 
 			partitionList.add(new ArrayList<>());
 
+		// Avoid loading the data just to get its labels, if possible.
+		ILabelProjection labelProjection = null;
+		if (labeledData instanceof ILabelProjectingIterable)
+			labelProjection = ((ILabelProjectingIterable<LDW>)labeledData).getLabelProjection();
+
 		// Build a map of labelValues to lists of references to LDW with the that label value.
 		Map<String, List<String>> labelValues = new HashMap<String,List<String>>();
 		for (String ref : labeledData.getReferences()) {
-			LDW ldw = labeledData.dereference(ref); 
-			Properties labels = ldw.getLabels();
+			Properties labels;
+			if (labelProjection != null) {
+				labels = labelProjection.getLabels(ref);
+			} else {
+				LDW ldw = labeledData.dereference(ref); 
+				labels = ldw.getLabels();
+			}
 			add(labelValues, labelName, labels, ref);
 		}
 		if (labelValues.isEmpty())
@@ -681,9 +681,9 @@ public class VectorUtils {
 	 * Taken from the definition at https://en.wikipedia.org/wiki/Window_function.
 	 * Uses a cache using the width as a key to try and avoid recomputing the window.
 	 * @param width.
-	 * @return
+	 * @return an array that may be shared with other callers and so must not be modified.
 	 */
-	private static double[] getHammingWindow(final int width) {
+	public static double[] getHammingWindow(final int width) {
 
 		double[] window = (double[])hammingWindowCache.get(width); 
 		if (window != null)
@@ -707,9 +707,9 @@ public class VectorUtils {
 	 * Taken from the definition at https://en.wikipedia.org/wiki/Hann_function
 	 * Uses a cache using the width as a key to try and avoid recomputing the window.
 	 * @param width.
-	 * @return
+	 * @return an array that may be shared with other callers and so must not be modified.
 	 */
-	private static double[] getHanningWindow(final int width) {
+	public static double[] getHanningWindow(final int width) {
 
 		double[] window = (double[])hanningWindowCache.get(width); 
 		if (window != null)
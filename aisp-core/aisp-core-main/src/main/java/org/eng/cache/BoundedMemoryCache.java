@@ -0,0 +1,238 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A memory cache that holds hard references to its items and bounds the total estimated size of the items it holds.
+ * This is an alternative to the soft references used by {@link MemoryCache}, which leave eviction to the garbage collector
+ * and so can produce long GC pauses and the loss of the whole cache under memory pressure.
+ * <p>
+ * The size of each item is estimated using {@link CacheItemSizer}, so that arrays of doubles and items implementing {@link ISizeEstimable}
+ * (for example, features and feature grams) are accounted for closely.  When adding an item would take the cache over its budget, the least
+ * recently used items are evicted.
+ * <p>
+ * To avoid contention on a single lock, the keys are distributed across a number of stripes, each with its own lock, LRU ordering and an equal share of the
+ * byte budget. The LRU eviction is then exact within a stripe and approximate across the cache.
+ * <p>
+ * Counts of hits, misses and evictions and the number of resident bytes are available to monitor the effectiveness of the cache.
+ * @author dawood
+ *
+ * @param <KEYS>
+ * @param <ITEM>
+ */
+public class BoundedMemoryCache<KEYS, ITEM> extends AbstractMultiKeyCache<KEYS, ITEM> implements IMultiKeyCache<KEYS, ITEM> {
+
+	/** An estimate of the overhead of the hash map entry, container and key array associated with each item */
+	private final static int ENTRY_OVERHEAD_BYTES = 128;
+
+	private final long maxBytes;
+	private final Stripe[] stripes;
+	private final long stripeMaxBytes;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final AtomicLong residentBytes = new AtomicLong();
+
+	private static class SizedContainer {
+		final KeyItemContainer container;
+		final long bytes;
+
+		SizedContainer(KeyItemContainer container, long bytes) {
+			this.container = container;
+			this.bytes = bytes;
+		}
+	}
+
+	/**
+	 * Holds a subset of the cache's items in least to most recently used order.
+	 */
+	private static class Stripe extends LinkedHashMap<Long, SizedContainer> {
+		private static final long serialVersionUID = 1L;
+		long bytes = 0;
+
+		Stripe() {
+			super(64, 0.75f, true);
+		}
+	}
+
+	/**
+	 * A convenience on {@link #BoundedMemoryCache(long, int)} using a number of stripes based on the number of available processors.
+	 */
+	public BoundedMemoryCache(long maxBytes) {
+		this(maxBytes, 4 * Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 *
+	 * @param maxBytes the maximum number of estimated bytes held by the items in the cache.
+	 * @param stripeCount the number of independently locked partitions of the cache.  Rounded up to a power of 2.
+	 */
+	public BoundedMemoryCache(long maxBytes, int stripeCount) {
+		if (maxBytes <= 0)
+			throw new IllegalArgumentException("maxBytes must be positive");
+		if (stripeCount <= 0)
+			throw new IllegalArgumentException("stripeCount must be positive");
+		int count = Integer.highestOneBit(stripeCount);
+		if (count < stripeCount)
+			count <<= 1;
+		this.maxBytes = maxBytes;
+		this.stripes = new Stripe[count];
+		for (int i=0 ; i<count ; i++)
+			stripes[i] = new Stripe();
+		this.stripeMaxBytes = Math.max(1, maxBytes / count);
+	}
+
+	private Stripe getStripe(Long key) {
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		return stripes[(int)h & (stripes.length - 1)];
+	}
+
+	/**
+	 * Extend the super class to count hits and misses.
+	 */
+	@Override
+	public ITEM get(@SuppressWarnings("unchecked") KEYS... keys) {
+		ITEM item = super.get(keys);
+		if (item == null)
+			misses.increment();
+		else
+			hits.increment();
+		return item;
+	}
+
+	@Override
+	protected void store(Long key, KeyItemContainer container) {
+		long bytes = ENTRY_OVERHEAD_BYTES + CacheItemSizer.estimateBytes(container.keys) + CacheItemSizer.estimateBytes(container.itemToCache);
+		Stripe stripe = getStripe(key);
+		synchronized (stripe) {
+			SizedContainer old = stripe.remove(key);
+			if (old != null) {
+				stripe.bytes -= old.bytes;
+				residentBytes.addAndGet(-old.bytes);
+			}
+			if (bytes > stripeMaxBytes) {	// Would evict everything else and still not fit.
+				evictions.increment();
+				return;
+			}
+			stripe.put(key, new SizedContainer(container, bytes));
+			stripe.bytes += bytes;
+			residentBytes.addAndGet(bytes);
+			Iterator<Map.Entry<Long, SizedContainer>> iter = stripe.entrySet().iterator();
+			while (stripe.bytes > stripeMaxBytes && iter.hasNext()) {
+				SizedContainer eldest = iter.next().getValue();
+				iter.remove();
+				stripe.bytes -= eldest.bytes;
+				residentBytes.addAndGet(-eldest.bytes);
+				evictions.increment();
+			}
+		}
+	}
+
+	@Override
+	protected KeyItemContainer lookup(Long key) {
+		Stripe stripe = getStripe(key);
+		SizedContainer sc;
+		synchronized (stripe) {
+			sc = stripe.get(key);
+		}
+		return sc == null ? null : sc.container;
+	}
+
+	@Override
+	protected void remove(Long key) {
+		Stripe stripe = getStripe(key);
+		synchronized (stripe) {
+			SizedContainer old = stripe.remove(key);
+			if (old != null) {
+				stripe.bytes -= old.bytes;
+				residentBytes.addAndGet(-old.bytes);
+			}
+		}
+	}
+
+	@Override
+	public void clear() {
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				residentBytes.addAndGet(-stripe.bytes);
+				stripe.bytes = 0;
+				stripe.clear();
+			}
+		}
+	}
+
+	@Override
+	public int size() {
+		int size = 0;
+		for (Stripe stripe : stripes) {
+			synchronized (stripe) {
+				size += stripe.size();
+			}
+		}
+		return size;
+	}
+
+	/**
+	 * @return the maximum number of estimated bytes held by this cache.
+	 */
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	/**
+	 * @return the estimated number of bytes currently held by this cache.
+	 */
+	public long getResidentBytes() {
+		return residentBytes.get();
+	}
+
+	/**
+	 * @return the number of calls to get() that returned an item.
+	 */
+	public long getHitCount() {
+		return hits.sum();
+	}
+
+	/**
+	 * @return the number of calls to get() that did not return an item.
+	 */
+	public long getMissCount() {
+		return misses.sum();
+	}
+
+	/**
+	 * @return the number of items removed to stay within the byte budget, including those that were too large to be stored.
+	 */
+	public long getEvictionCount() {
+		return evictions.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "BoundedMemoryCache [maxBytes=" + maxBytes + ", residentBytes=" + getResidentBytes() + ", size=" + size()
+				+ ", hits=" + getHitCount() + ", misses=" + getMissCount() + ", evictions=" + getEvictionCount() + "]";
+	}
+
+}
@@ -18,6 +18,8 @@ package org.eng.cache;
 import java.util.ArrayList;
 import java.util.List;
 
+import org.eng.ENGProperties;
+
 /**
  * A central utility for creating and managing caches.
  * The motivation for this class is to centralize caching so that the caches can be cleared during performance analysis.
@@ -48,6 +50,24 @@ public class Cache {
 	
 	private final static List<IMultiKeyCache> activeCaches = new ArrayList<IMultiKeyCache>();
 
+	/**
+	 * The name of the property that selects the type of cache returned by {@link #newManagedMemoryCache()}.
+	 * <ul>
+	 * <li> {@value #SOFT_MANAGED_CACHE_TYPE} - the default, a {@link MemoryCache} holding soft references that are cleared by the garbage collector. 
+	 * <li> {@value #BOUNDED_MANAGED_CACHE_TYPE} - a {@link BoundedMemoryCache} with a budget of {@value #MANAGED_CACHE_MAX_MBYTES_PROPERTY_NAME} megabytes. 
+	 * </ul>
+	 */
+	public final static String MANAGED_CACHE_TYPE_PROPERTY_NAME = "cache.managed.type";
+	public final static String SOFT_MANAGED_CACHE_TYPE = "soft";
+	public final static String BOUNDED_MANAGED_CACHE_TYPE = "bounded";
+	/** 
+	 * The name of the property that defines the maximum size in megabytes of each bounded cache returned by {@link #newManagedMemoryCache()}.
+	 */
+	public final static String MANAGED_CACHE_MAX_MBYTES_PROPERTY_NAME = "cache.managed.max_mbytes";
+	public final static int MANAGED_CACHE_MAX_MBYTES_DEFAULT = 256;
+	private final static String ManagedCacheType = ENGProperties.instance().getProperty(MANAGED_CACHE_TYPE_PROPERTY_NAME, SOFT_MANAGED_CACHE_TYPE);
+	private final static int ManagedCacheMaxMBytes = ENGProperties.instance().getProperty(MANAGED_CACHE_MAX_MBYTES_PROPERTY_NAME, MANAGED_CACHE_MAX_MBYTES_DEFAULT);
+
 	/**
 	 * Get a new cache that is managed by the caller.  The returned cache is
 	 * not considered "global" and will not be cleared on a call to {@link #clearManagedCaches()}.
@@ -61,10 +81,18 @@ public class Cache {
 	/**
 	 * Get a new instance of a cache that can be cleared by a call to {@link #clearManagedCaches()}.
 	 * The returned cache should be removed from the list of caches when it is done being used.
+	 * The type of cache is selected by the {@value #MANAGED_CACHE_TYPE_PROPERTY_NAME} property.
 	 * @return
 	 */
 	public static IMultiKeyCache newManagedMemoryCache() {
-		IMultiKeyCache cache = new MemoryCache();
+		IMultiKeyCache cache;
+		if (ManagedCacheType.equalsIgnoreCase(BOUNDED_MANAGED_CACHE_TYPE)) {
+			cache = new BoundedMemoryCache(1024L * 1024L * ManagedCacheMaxMBytes);
+		} else if (ManagedCacheType.equalsIgnoreCase(SOFT_MANAGED_CACHE_TYPE)) {
+			cache = new MemoryCache();
+		} else {
+			throw new IllegalArgumentException("Unrecognized value for property " + MANAGED_CACHE_TYPE_PROPERTY_NAME + ": " + ManagedCacheType);
+		}
 		synchronized (activeCaches) {
 			activeCaches.add(cache);
 		}
@@ -0,0 +1,84 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.cache;
+
+import java.util.Collection;
+
+/**
+ * Estimates the heap used by items stored in a cache.
+ * Primitive arrays are sized exactly (ignoring alignment), arrays of objects are sized by summing the sizes of their elements and
+ * instances of {@link ISizeEstimable} provide their own estimate.  Other objects are given a fixed size of {@value #DEFAULT_OBJECT_BYTES} bytes.
+ * @author dawood
+ *
+ */
+public class CacheItemSizer {
+
+	/** An estimate of the header of an object on a 64-bit JVM */
+	public final static int OBJECT_HEADER_BYTES = 16;
+	/** An estimate of the header of an array including its length on a 64-bit JVM */
+	public final static int ARRAY_HEADER_BYTES = 16;
+	/** An estimate of the size of a reference */
+	public final static int REFERENCE_BYTES = 8;
+	/** The size used for objects we know nothing about */ 
+	public final static int DEFAULT_OBJECT_BYTES = 64;
+
+	/**
+	 * Estimate the number of bytes of heap held by the given object.
+	 * @param obj may be null
+	 * @return 0 if obj is null.
+	 */
+	public static long estimateBytes(Object obj) {
+		if (obj == null)
+			return 0;
+		if (obj instanceof ISizeEstimable)
+			return ((ISizeEstimable)obj).getEstimatedSizeBytes();
+		if (obj instanceof double[])
+			return ARRAY_HEADER_BYTES + 8L * ((double[])obj).length;
+		if (obj instanceof float[])
+			return ARRAY_HEADER_BYTES + 4L * ((float[])obj).length;
+		if (obj instanceof long[])
+			return ARRAY_HEADER_BYTES + 8L * ((long[])obj).length;
+		if (obj instanceof int[])
+			return ARRAY_HEADER_BYTES + 4L * ((int[])obj).length;
+		if (obj instanceof short[])
+			return ARRAY_HEADER_BYTES + 2L * ((short[])obj).length;
+		if (obj instanceof char[])
+			return ARRAY_HEADER_BYTES + 2L * ((char[])obj).length;
+		if (obj instanceof byte[])
+			return ARRAY_HEADER_BYTES + ((byte[])obj).length;
+		if (obj instanceof boolean[])
+			return ARRAY_HEADER_BYTES + ((boolean[])obj).length;
+		if (obj instanceof Object[]) {
+			Object[] objs = (Object[])obj;
+			long size = ARRAY_HEADER_BYTES + (long)REFERENCE_BYTES * objs.length;
+			for (Object o : objs) 
+				size += estimateBytes(o);
+			return size;
+		}
+		if (obj instanceof Collection) {
+			Collection<?> objs = (Collection<?>)obj;
+			long size = OBJECT_HEADER_BYTES + ARRAY_HEADER_BYTES + 2L * REFERENCE_BYTES * objs.size();
+			for (Object o : objs) 
+				size += estimateBytes(o);
+			return size;
+		}
+		if (obj instanceof String)
+			return OBJECT_HEADER_BYTES + ARRAY_HEADER_BYTES + 8 + ((String)obj).length();	// Assume compact strings.
+		if (obj instanceof Number || obj instanceof Boolean || obj instanceof Character)
+			return OBJECT_HEADER_BYTES + 8;
+		return DEFAULT_OBJECT_BYTES;
+	}
+}
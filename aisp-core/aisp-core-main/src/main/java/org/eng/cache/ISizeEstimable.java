@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.cache;
+
+/**
+ * Implemented by items that can estimate the amount of heap they hold so that they can be stored in a size-bounded cache such as {@link BoundedMemoryCache}.
+ * @author dawood
+ *
+ */
+public interface ISizeEstimable {
+
+	/**
+	 * Get an estimate of the number of bytes of heap held by this instance, including the objects it references that are not expected to be shared. 
+	 * @return a non-negative value.
+	 */
+	public long getEstimatedSizeBytes();
+}
@@ -17,15 +17,21 @@ package org.eng.storage;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
 
 import org.eng.util.FileUtils;
 
 /**
  * Provides  the base interface implementation only requires the subclass to provide a few methods.
  * <p>
+ * The ids of the items are held in memory and recorded in an append-only journal file (see {@link ItemIDJournal}), which is shared
+ * by all instances using the same directory and name. 
+ * Access to the item files is guarded by read/write locks striped by id, so that reads of items proceed concurrently with each other
+ * and with changes to other items.  The subclass's {@link #readItem(String)}, {@link #writeItem(String, Object)} and {@link #deleteItem(String)}
+ * may therefore be called concurrently for different ids.
+ * <p>
  * TODO: This instance is thread-safe but not process safe as no file locking is done in the file system to assure exclusive access.
  *
  * @param <ITEM>
@@ -34,17 +40,17 @@ public abstract class AbstractFiledItemStorage<ITEM> extends AbstractDeleteableI
 
 	/** Directory containing all the files for this instance  */
 	protected final File storageDirectoryFile;
-	/** Path to the directory file containing the list of item ids currently in the instance */
+	/** Path to the file that listed the item ids, most recent first, before the journal was used. Read once if the journal does not exist. */
 	protected final String directoryPath;
 	/** Path to the directory file, as File object */ 
 	protected final File directoryFile;
-	
-	/** Cache of ids on disk */
-	private List<String> cachedIDs = null;
+	/** The journal of ids added and deleted */ 
+	protected final File journalFile;
 
 	protected final String itemsDirectoryPath;
 	protected final File itemsDirectoryFile;
 	
+	private final ItemIDJournal journal;
 
 
 	/**
@@ -83,9 +89,11 @@ public abstract class AbstractFiledItemStorage<ITEM> extends AbstractDeleteableI
 //		this.storageDirectory = storageDirectoryFile.getAbsolutePath(); 
 		this.directoryPath = storageDirectory + "/" + name + ".txt"; 
 		this.directoryFile= new File(directoryPath); 
+		this.journalFile = new File(storageDirectory + "/" + name + ".journal"); 
 		this.itemsDirectoryPath = storageDirectory + "/" + name + "-items";
 		this.itemsDirectoryFile = new File(this.itemsDirectoryPath); 
 		itemsDirectoryFile.mkdirs();
+		this.journal = ItemIDJournal.getJournal(journalFile, directoryFile, itemsDirectoryFile);
 
 		try {
 			connect();
@@ -104,11 +112,11 @@ public abstract class AbstractFiledItemStorage<ITEM> extends AbstractDeleteableI
 	@Override
 	public void disconnect() { 
 		try {
-			if (getCachedIDs().size() == 0)  {
+			if (journal.size() == 0)  {
 				FileUtils.deleteDirContents(itemsDirectoryFile);
 				itemsDirectoryFile.delete();
 			}
-		} catch (StorageException e) {
+		} catch (IOException e) {
 			;// ignored
 		}
 	}
@@ -116,46 +124,39 @@ public abstract class AbstractFiledItemStorage<ITEM> extends AbstractDeleteableI
 	@Override
 	public boolean isConnected() { return storageDirectoryFile.exists(); }
 
-	@Override
-	public synchronized List<String> getIDs() throws StorageException {
-		List<String> forUser = new ArrayList<String>();
-		forUser.addAll(getCachedIDs());
-		return forUser;
-	}
-	
-	private transient long dirLastLoadedTime = 0;
-	
 	/**
-	 * Get the ids in the order returned by {@link #getIDs()} (most recent to least recently inserted).
-	 * @return
-	 * @throws StorageException
+	 * Get the ids most recent to least recently inserted.
 	 */
-	private synchronized List<String> getCachedIDs() throws StorageException {
-		long t = directoryFile.lastModified();
-		if (t > dirLastLoadedTime)  {
-			dirLastLoadedTime = t;
-			cachedIDs = null;
+	@Override
+	public List<String> getIDs() throws StorageException {
+		try {
+			return journal.getIDs();
+		} catch (IOException e) {
+			throw new StorageException("Could not load ids.", e);
 		}
-		if (cachedIDs == null) {
-			try {
-				this.cachedIDs = loadIDs();
-			} catch (IOException e) {
-				throw new StorageException("Could not load ids.", e);
-			}
+	}
+	
+	@Override
+	public long count() throws StorageException {
+		try {
+			return journal.size();
+		} catch (IOException e) {
+			throw new StorageException("Could not load ids.", e);
 		}
-		return cachedIDs;
 	}
 
-
 	@Override
-	public synchronized ITEM findItem(String id) throws StorageException {
+	public ITEM findItem(String id) throws StorageException {
+		ReadWriteLock lock = journal.getLock(id);
+		lock.readLock().lock();
 		try {
-			List<String> ids = getCachedIDs(); 
-			if (!ids.contains(id))
+			if (!journal.contains(id))
 				return null;
 			return readItem(id);
 		} catch (IOException e) {
 			throw new StorageException("Could not load item with id " + id, e);
+		} finally {
+			lock.readLock().unlock();
 		}
 	}
 
@@ -165,21 +166,22 @@ public abstract class AbstractFiledItemStorage<ITEM> extends AbstractDeleteableI
 	 * @throws StorageException if id is not valid.
 	 */
 	private static void validateID(String id) throws StorageException {
-		try {
-			UUID.fromString(id);
-		} catch (IllegalArgumentException e) {
+		if (!ItemIDJournal.isValidID(id))
 			throw new StorageException("Invalid id " + id);
-		}
 	}
 
 	@Override
-	public synchronized String add(ITEM item) throws StorageException {
+	public String add(ITEM item) throws StorageException {
 		String id = UUID.randomUUID().toString();
+		ReadWriteLock lock = journal.getLock(id);
+		lock.writeLock().lock();
 		try {
 			writeItem(id, item);
-			appendID(id);
+			journal.add(id);
 		} catch (IOException e) {
 			throw new StorageException("Could not write item " + item, e);
+		} finally {
+			lock.writeLock().unlock();
 		}
 		return id;
 	}
@@ -187,120 +189,62 @@ public abstract class AbstractFiledItemStorage<ITEM> extends AbstractDeleteableI
 
 
 	@Override
-	public synchronized boolean update(String id, ITEM item) throws StorageException {
+	public boolean update(String id, ITEM item) throws StorageException {
 		validateID(id);
-		List<String> ids = getCachedIDs(); 
-		if (!ids.contains(id))
-			throw new StorageException("id not found");
+		ReadWriteLock lock = journal.getLock(id);
+		lock.writeLock().lock();
 		try {
+			if (!journal.contains(id))
+				throw new StorageException("id not found");
 			writeItem(id,item);
 		} catch (IOException e) {
 			throw new StorageException("Could not update item with id " + id, e);
+		} finally {
+			lock.writeLock().unlock();
 		}
 		return true;
 	}
 
 	@Override
-	public synchronized boolean delete(Iterable<String> ids) throws StorageException {
+	public boolean delete(Iterable<String> ids) throws StorageException {
 		for (String id : ids) 
 			validateID(id);
 		
+		List<ReadWriteLock> locks = journal.getLocks(ids);
+		for (ReadWriteLock lock : locks)
+			lock.writeLock().lock();
 		try {
-			if (!deleteIDs(ids))
-				return false;
-			cachedIDs = null; 
-		} catch (IOException e) {
-			throw new StorageException("Could not delete one or more items", e);
-		}
-		for (String id: ids) {
 			try {
-				deleteItem(id);
+				if (!journal.removeAll(ids))
+					return false;
 			} catch (IOException e) {
-				throw new StorageException("Could not delete json file for item with id " + id, e);
+				throw new StorageException("Could not delete one or more items", e);
 			}
-		}
-		return true;
-	}
-
-	
-	/**
-	 * Append the given id to the directory file and update cachedIDs to include it.
-	 * @param id 
-	 * @throws StorageException
-	 * @throws IOException
-	 */
-	private void appendID(String id) throws StorageException, IOException {
-		List<String> ids = getCachedIDs();  
-		ids.add(0,id);	// updates cachedIDs , most recent are first.
-		writeIDs(ids);
-	}
-
-	/**
-	 * Delete all the ids and return true.
-	 * @param ids
-	 * @return false if any one of the ids is bad or could not be deleted.
-	 * @throws IOException
-	 * @throws StorageException
-	 */
-	private boolean deleteIDs(Iterable<String> ids) throws IOException, StorageException {
-		List<String> currentIDs = getCachedIDs(); 
-		int startSize = currentIDs.size();
-		if (ids == currentIDs) {
-			currentIDs = new ArrayList<String>();
-		} else {
-			for (String id : ids)  {
-				if (!currentIDs.contains(id))
-					return false;
+			for (String id: ids) {
+				try {
+					deleteItem(id);
+				} catch (IOException e) {
+					throw new StorageException("Could not delete json file for item with id " + id, e);
+				}
 			}
-			for (String id : ids) 
-				currentIDs.remove(id);	// updates cachedIDs
-		}
-		if (currentIDs.size() != startSize) {
-			if (currentIDs.size() == 0)
-				FileUtils.deleteFile(this.directoryFile);
-			else
-				writeIDs(currentIDs);
+		} finally {
+			for (ReadWriteLock lock : locks)
+				lock.writeLock().unlock();
 		}
 		return true;
 	}
-	
-	/**
-	 * Overwrite the current file of ids, with the given list of ids.
-	 * @param ids
-	 * @throws IOException
-	 */
-	private void writeIDs(List<String> ids) throws IOException {
-		StringBuilder sb = null; 
-		for (String id : ids) {
-			if (sb == null) {
-				sb = new StringBuilder();
-			} else { 
-				sb.append('\n');
-			}
-			sb.append(id);
-		}
-		if (sb != null)
-			FileUtils.writeStringToTextFile(sb.toString(), this.directoryFile);
-		
-	}
 
 	/**
-	 * Read all the ids out of the ids directory file of ids.
-	 * @return 
-	 * @throws IOException
+	 * Rebuild the ids from the names of the item files, for example if the journal has been lost or damaged.
+	 * Ids are ordered by the modification time of their item files.
+	 * @throws StorageException
 	 */
-	private List<String> loadIDs() throws IOException {
-		if (!this.directoryFile.exists())
-			return new ArrayList<String>();
-		String contents = FileUtils.readTextFileIntoString(this.directoryFile);
-		String ids[] = contents.split("\n");
-		List<String> idList = new ArrayList<String>();
-		for (String id : ids) {
-			id = id.trim();
-			idList.add(id);
+	public void rebuildIDs() throws StorageException {
+		try {
+			journal.rebuild();
+		} catch (IOException e) {
+			throw new StorageException("Could not rebuild ids from " + itemsDirectoryFile, e);
 		}
-		return idList; 
 	}
 
-
 }
@@ -0,0 +1,301 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.storage;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonNull;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonPrimitive;
+
+/**
+ * Encodes the Gson tree of an item in a compact binary form, used by {@link JSONFiledItemStorage} to avoid formatting and parsing 
+ * numbers as decimal text.
+ * <p>
+ * The encoding begins with a header containing {@link #MAGIC}, the schema version, flags and the name of the item's class.
+ * The tree follows, optionally compressed with Deflate.  Each node is a one byte tag followed by its value.  Arrays of only floating
+ * point numbers or only integers are written as a single block of 8 byte values.  All multi-byte values are little-endian.
+ * <p>
+ * Numbers keep their type, so that long values are not rounded through a double, and an item read back from the tree is the same as
+ * one read from its JSON text.
+ */
+class BinaryJsonCodec {
+
+	/** Starts with a 0 byte, which never begins the class name on the first line of a JSON item file. */
+	final static byte[] MAGIC = new byte[] { 0, 'A', 'I', 'B' };
+	final static int SCHEMA_VERSION = 1;
+	private final static int DEFLATED_FLAG = 1;
+
+	private final static byte NULL_TAG = 0;
+	private final static byte FALSE_TAG = 1;
+	private final static byte TRUE_TAG = 2;
+	private final static byte DOUBLE_TAG = 3;
+	private final static byte LONG_TAG = 4;
+	/** A number of arbitrary precision written as its decimal string. */
+	private final static byte DECIMAL_TAG = 5;
+	private final static byte STRING_TAG = 6;
+	private final static byte ARRAY_TAG = 7;
+	private final static byte OBJECT_TAG = 8;
+	private final static byte DOUBLE_ARRAY_TAG = 9;
+	private final static byte LONG_ARRAY_TAG = 10;
+
+	/**
+	 * The class name and tree read from an encoding.
+	 */
+	static class Decoded {
+		final String className;
+		final JsonElement tree;
+
+		Decoded(String className, JsonElement tree) {
+			this.className = className;
+			this.tree = tree;
+		}
+	}
+
+	/**
+	 * Determine if the given bytes begin with the header written by {@link #encode(String, JsonElement, boolean)}.
+	 * @param bytes
+	 * @return
+	 */
+	static boolean isEncoded(byte[] bytes) {
+		if (bytes.length < MAGIC.length)
+			return false;
+		for (int i=0 ; i<MAGIC.length ; i++) {
+			if (bytes[i] != MAGIC[i])
+				return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Encode the tree of an item.
+	 * @param className the name of the item's class.
+	 * @param tree
+	 * @param deflate if true, compress the tree.
+	 * @return never null.
+	 * @throws IOException
+	 */
+	static byte[] encode(String className, JsonElement tree, boolean deflate) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		DataOutputStream header = new DataOutputStream(bos);
+		header.write(MAGIC);
+		header.writeByte(SCHEMA_VERSION);
+		header.writeByte(deflate ? DEFLATED_FLAG : 0);
+		writeString(header, className);
+		header.flush();
+
+		OutputStream os = bos;
+		if (deflate) 
+			os = new DeflaterOutputStream(bos, new Deflater(Deflater.BEST_SPEED), 64 * 1024);
+		DataOutputStream dos = new DataOutputStream(os);
+		writeElement(dos, tree);
+		dos.close();
+		return bos.toByteArray();
+	}
+
+	/**
+	 * Decode bytes written by {@link #encode(String, JsonElement, boolean)}.
+	 * @param bytes
+	 * @return never null.
+	 * @throws IOException if the bytes are not a supported encoding.
+	 */
+	static Decoded decode(byte[] bytes) throws IOException {
+		if (!isEncoded(bytes))
+			throw new IOException("Not a binary item");
+		ByteArrayInputStream bis = new ByteArrayInputStream(bytes, MAGIC.length, bytes.length - MAGIC.length);
+		DataInputStream header = new DataInputStream(bis);
+		int version = header.readUnsignedByte();
+		if (version > SCHEMA_VERSION)
+			throw new IOException("Binary item schema version " + version + " is newer than the supported version " + SCHEMA_VERSION);
+		int flags = header.readUnsignedByte();
+		String className = readString(header);
+
+		InputStream is = bis;
+		if ((flags & DEFLATED_FLAG) != 0)
+			is = new InflaterInputStream(bis);
+		DataInputStream dis = new DataInputStream(is);
+		try {
+			JsonElement tree = readElement(dis);
+			return new Decoded(className, tree);
+		} catch (EOFException e) {
+			throw new IOException("Binary item is truncated", e);
+		} finally {
+			dis.close();
+		}
+	}
+
+	private static void writeInt(DataOutputStream dos, int value) throws IOException {
+		dos.writeInt(Integer.reverseBytes(value));
+	}
+
+	private static int readInt(DataInputStream dis) throws IOException {
+		return Integer.reverseBytes(dis.readInt());
+	}
+
+	private static void writeString(DataOutputStream dos, String s) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeInt(dos, bytes.length);
+		dos.write(bytes);
+	}
+
+	private static String readString(DataInputStream dis) throws IOException {
+		byte[] bytes = new byte[readInt(dis)];
+		dis.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static boolean isFloating(Number n) {
+		return n instanceof Double || n instanceof Float;
+	}
+
+	private static boolean isIntegral(Number n) {
+		return n instanceof Long || n instanceof Integer || n instanceof Short || n instanceof Byte;
+	}
+
+	private static void writeElement(DataOutputStream dos, JsonElement e) throws IOException {
+		if (e == null || e.isJsonNull()) {
+			dos.writeByte(NULL_TAG);
+		} else if (e.isJsonPrimitive()) {
+			JsonPrimitive p = e.getAsJsonPrimitive();
+			if (p.isBoolean()) {
+				dos.writeByte(p.getAsBoolean() ? TRUE_TAG : FALSE_TAG);
+			} else if (p.isNumber()) {
+				Number n = p.getAsNumber();
+				if (isFloating(n)) {
+					dos.writeByte(DOUBLE_TAG);
+					dos.writeLong(Long.reverseBytes(Double.doubleToRawLongBits(n.doubleValue())));
+				} else if (isIntegral(n)) {
+					dos.writeByte(LONG_TAG);
+					dos.writeLong(Long.reverseBytes(n.longValue()));
+				} else {
+					dos.writeByte(DECIMAL_TAG);
+					writeString(dos, n.toString());
+				}
+			} else {
+				dos.writeByte(STRING_TAG);
+				writeString(dos, p.getAsString());
+			}
+		} else if (e.isJsonArray()) {
+			writeArray(dos, e.getAsJsonArray());
+		} else {
+			JsonObject obj = e.getAsJsonObject();
+			dos.writeByte(OBJECT_TAG);
+			writeInt(dos, obj.size());
+			for (Map.Entry<String,JsonElement> member : obj.entrySet()) {
+				writeString(dos, member.getKey());
+				writeElement(dos, member.getValue());
+			}
+		}
+	}
+
+	private static void writeArray(DataOutputStream dos, JsonArray array) throws IOException {
+		int size = array.size();
+		boolean allFloating = size > 0, allIntegral = size > 0;
+		for (int i=0 ; i<size && (allFloating || allIntegral) ; i++) {
+			JsonElement e = array.get(i);
+			if (e.isJsonPrimitive() && e.getAsJsonPrimitive().isNumber()) {
+				Number n = e.getAsNumber();
+				allFloating = allFloating && isFloating(n);
+				allIntegral = allIntegral && isIntegral(n);
+			} else {
+				allFloating = allIntegral = false;
+			}
+		}
+		if (allFloating || allIntegral) {
+			ByteBuffer buffer = ByteBuffer.allocate(8 * size).order(ByteOrder.LITTLE_ENDIAN);
+			if (allFloating) {
+				for (int i=0 ; i<size ; i++)
+					buffer.putDouble(array.get(i).getAsDouble());
+			} else {
+				for (int i=0 ; i<size ; i++)
+					buffer.putLong(array.get(i).getAsLong());
+			}
+			dos.writeByte(allFloating ? DOUBLE_ARRAY_TAG : LONG_ARRAY_TAG);
+			writeInt(dos, size);
+			dos.write(buffer.array());
+		} else {
+			dos.writeByte(ARRAY_TAG);
+			writeInt(dos, size);
+			for (int i=0 ; i<size ; i++)
+				writeElement(dos, array.get(i));
+		}
+	}
+
+	private static JsonElement readElement(DataInputStream dis) throws IOException {
+		byte tag = dis.readByte();
+		switch (tag) {
+			case NULL_TAG:		return JsonNull.INSTANCE;
+			case FALSE_TAG:		return new JsonPrimitive(false);
+			case TRUE_TAG:		return new JsonPrimitive(true);
+			case DOUBLE_TAG:	return new JsonPrimitive(Double.longBitsToDouble(Long.reverseBytes(dis.readLong())));
+			case LONG_TAG:		return new JsonPrimitive(Long.reverseBytes(dis.readLong()));
+			case DECIMAL_TAG:	return new JsonPrimitive(new BigDecimal(readString(dis)));
+			case STRING_TAG:	return new JsonPrimitive(readString(dis));
+			case ARRAY_TAG: {
+				int size = readInt(dis);
+				JsonArray array = new JsonArray(size);
+				for (int i=0 ; i<size ; i++)
+					array.add(readElement(dis));
+				return array;
+			}
+			case OBJECT_TAG: {
+				int size = readInt(dis);
+				JsonObject obj = new JsonObject();
+				for (int i=0 ; i<size ; i++) {
+					String name = readString(dis);
+					obj.add(name, readElement(dis));
+				}
+				return obj;
+			}
+			case DOUBLE_ARRAY_TAG: 
+			case LONG_ARRAY_TAG: {
+				int size = readInt(dis);
+				byte[] bytes = new byte[8 * size];
+				dis.readFully(bytes);
+				ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+				JsonArray array = new JsonArray(size);
+				if (tag == DOUBLE_ARRAY_TAG) {
+					for (int i=0 ; i<size ; i++)
+						array.add(buffer.getDouble());
+				} else {
+					for (int i=0 ; i<size ; i++)
+						array.add(buffer.getLong());
+				}
+				return array;
+			}
+			default:
+				throw new IOException("Unknown tag " + tag + " in binary item");
+		}
+	}
+
+}
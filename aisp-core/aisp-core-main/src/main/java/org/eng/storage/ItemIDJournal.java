@@ -0,0 +1,434 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.eng.ENGLogger;
+import org.eng.util.FileUtils;
+
+/**
+ * Holds the ids of the items in an {@link AbstractFiledItemStorage} in memory, in the order they were added, backed by an append-only
+ * journal file.
+ * <p>
+ * Each add appends a line of the form <code>+id</code> and each delete a tombstone line of the form <code>-id</code>, so neither
+ * rewrites the file.  When the tombstones outnumber the live ids the journal is compacted by rewriting it with only the live ids.
+ * The journal is deleted when the last id is deleted.
+ * <p>
+ * If the journal does not exist, the ids are taken from the older file of ids listed most recent first, which is then replaced by the journal.
+ * If neither exists, the ids are recovered from the names of the item files (see {@link #rebuild()}). 
+ * A line that was only partially written is dropped when the journal is read.
+ * <p>
+ * The journal is re-read if its length is not that last written by this instance, so that changes made to the files by others
+ * are seen, as with the file of ids before.  Instances are shared per journal file through {@link #getJournal(File, File, File)}
+ * so that all storage instances using the same files share the in-memory ids and the per-id locks returned by {@link #getLock(String)}.
+ * <p>
+ * This is thread-safe but not process safe.
+ */
+class ItemIDJournal {
+
+	/** The number of locks over which the ids are striped */
+	private final static int LOCK_STRIPES = 64;
+	/** The least number of tombstones in the journal before it is compacted */
+	private final static int COMPACTION_MIN_TOMBSTONES = 1000;
+
+	private final static char ADD_PREFIX = '+';
+	private final static char DELETE_PREFIX = '-';
+
+	private final static Map<File, ItemIDJournal> Journals = new HashMap<File, ItemIDJournal>();
+
+	/**
+	 * Get the journal shared by all users of the given journal file. 
+	 * @param journalFile the journal file, which need not exist.
+	 * @param legacyIDFile a file listing ids, one per line and most recent first, to use if the journal does not exist.
+	 * @param itemsDirectory directory holding the item files, from which ids are recovered if neither file exists.
+	 * @return never null.
+	 */
+	static synchronized ItemIDJournal getJournal(File journalFile, File legacyIDFile, File itemsDirectory) {
+		File key = journalFile.getAbsoluteFile();
+		ItemIDJournal journal = Journals.get(key);
+		if (journal == null) {
+			journal = new ItemIDJournal(key, legacyIDFile, itemsDirectory);
+			try {
+				journal.size();		// Load the ids now, so that the item file of an add in progress is not taken to be a lost id. 
+			} catch (IOException e) {
+				ENGLogger.logger.warning("Could not read ids from " + key + ": " + e.getMessage());
+			}
+			Journals.put(key, journal);
+		}
+		return journal;
+	}
+
+	private final File journalFile;
+	private final File legacyIDFile;
+	private final File itemsDirectory;
+	private final ReadWriteLock lock = new ReentrantReadWriteLock();
+	private final ReadWriteLock[] stripes = new ReadWriteLock[LOCK_STRIPES];
+
+	/** The ids in the order they were added. Only accessed while holding the lock */
+	private final LinkedHashSet<String> ids = new LinkedHashSet<String>();
+	/** The length of the journal file when last read or written by this instance, or -1 if not yet read. */
+	private long journalLength = -1;
+	private int tombstones;
+	private FileOutputStream journalStream;
+
+	private ItemIDJournal(File journalFile, File legacyIDFile, File itemsDirectory) {
+		this.journalFile = journalFile;
+		this.legacyIDFile = legacyIDFile;
+		this.itemsDirectory = itemsDirectory;
+		for (int i=0 ; i<stripes.length ; i++)
+			stripes[i] = new ReentrantReadWriteLock();
+	}
+
+	/**
+	 * Get the lock for the item file of the given id.  
+	 * Ids are striped over a fixed number of locks, so operations on different ids rarely wait for each other.
+	 * @param id
+	 * @return never null.
+	 */
+	ReadWriteLock getLock(String id) {
+		return stripes[(id.hashCode() & 0x7fffffff) % stripes.length];
+	}
+
+	/**
+	 * Get the distinct locks of the given ids in a fixed order, so they can be acquired together without deadlock.
+	 * @param ids
+	 * @return never null.
+	 */
+	List<ReadWriteLock> getLocks(Iterable<String> ids) {
+		boolean[] used = new boolean[stripes.length];
+		for (String id : ids) 
+			used[(id.hashCode() & 0x7fffffff) % stripes.length] = true;
+		List<ReadWriteLock> locks = new ArrayList<ReadWriteLock>();
+		for (int i=0 ; i<used.length ; i++) {
+			if (used[i])
+				locks.add(stripes[i]);
+		}
+		return locks;
+	}
+
+	/**
+	 * Make sure the in-memory ids reflect the journal file, reading it if it has changed since last read or written.
+	 * Acquires the read lock, which the caller must release.
+	 */
+	private void lockForRead() throws IOException {
+		lock.readLock().lock();
+		if (journalLength >= 0 && journalFile.length() == journalLength) 
+			return;
+		lock.readLock().unlock();
+		lock.writeLock().lock();
+		try {
+			refresh();
+			lock.readLock().lock();	// Downgrade
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Acquire the write lock and make sure the in-memory ids reflect the journal file.
+	 */
+	private void lockForWrite() throws IOException {
+		lock.writeLock().lock();
+		try {
+			refresh();
+		} catch (IOException e) {
+			lock.writeLock().unlock();
+			throw e;
+		}
+	}
+
+	/**
+	 * Must be called while holding the write lock.
+	 */
+	private void refresh() throws IOException {
+		long length = journalFile.length();		// 0 if it does not exist.
+		if (journalLength >= 0 && length == journalLength)
+			return;
+		if (journalLength > 0 && length > journalLength) {	// Appended to by someone else.
+			replay(journalLength);
+		} else if (journalFile.exists()) {
+			clearIDs();
+			replay(0);
+		} else if (legacyIDFile.exists()) {
+			migrate();
+		} else if (journalLength < 0) {
+			recover();
+		} else {	// Deleted by someone else. 
+			clearIDs();
+			journalLength = 0;
+		}
+	}
+
+	private void clearIDs() throws IOException {
+		closeStream();
+		ids.clear();
+		tombstones = 0;
+	}
+
+	/**
+	 * Apply the lines of the journal starting at the given offset, dropping any partially written line at the end.
+	 */
+	private void replay(long offset) throws IOException {
+		closeStream();
+		RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+		try {
+			long length = raf.length();
+			byte[] bytes = new byte[(int)(length - offset)];
+			raf.seek(offset);
+			raf.readFully(bytes);
+			int start = 0;
+			for (int i=0 ; i<bytes.length ; i++) {
+				if (bytes[i] == '\n') {
+					applyLine(new String(bytes, start, i - start, StandardCharsets.UTF_8));
+					start = i + 1;
+				}
+			}
+			if (start < bytes.length) {
+				ENGLogger.logger.warning("Dropping incomplete last line of id journal " + journalFile);
+				length = offset + start;
+				raf.setLength(length);
+			}
+			journalLength = length;
+		} finally {
+			raf.close();
+		}
+	}
+
+	private void applyLine(String line) {
+		if (line.length() < 2 || !isValidID(line.substring(1))) {
+			ENGLogger.logger.warning("Ignoring bad line '" + line + "' in id journal " + journalFile);
+			return;
+		}
+		String id = line.substring(1);
+		if (line.charAt(0) == ADD_PREFIX) {
+			ids.remove(id);
+			ids.add(id);
+		} else if (line.charAt(0) == DELETE_PREFIX) {
+			if (ids.remove(id))
+				tombstones++;
+		} else {
+			ENGLogger.logger.warning("Ignoring bad line '" + line + "' in id journal " + journalFile);
+		}
+	}
+
+	static boolean isValidID(String id) {
+		try {
+			UUID.fromString(id);
+			return true;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Create the journal from the older file of ids, listed most recent first, and delete the older file.
+	 */
+	private void migrate() throws IOException {
+		clearIDs();
+		String contents = FileUtils.readTextFileIntoString(legacyIDFile);
+		List<String> legacyIDs = new ArrayList<String>(Arrays.asList(contents.split("\n")));
+		Collections.reverse(legacyIDs);
+		for (String id : legacyIDs) {
+			id = id.trim();
+			if (!id.isEmpty())
+				ids.add(id);
+		}
+		writeJournal();
+		FileUtils.deleteFile(legacyIDFile);
+	}
+
+	/**
+	 * Recover the ids from the names of the item files, oldest first, and write them to a new journal.
+	 */
+	private void recover() throws IOException {
+		clearIDs();
+		File[] files = itemsDirectory.listFiles();
+		if (files != null) {
+			Arrays.sort(files, new Comparator<File>() {
+				@Override
+				public int compare(File f1, File f2) {
+					int r = Long.compare(f1.lastModified(), f2.lastModified());
+					if (r == 0)
+						r = f1.getName().compareTo(f2.getName());
+					return r;
+				}
+			});
+			for (File f : files) {
+				String name = f.getName();
+				int index = name.indexOf('.');
+				if (index > 0)
+					name = name.substring(0, index);
+				if (f.isFile() && isValidID(name))
+					ids.add(name);
+			}
+		}
+		if (!ids.isEmpty())
+			ENGLogger.logger.warning("Recovered " + ids.size() + " ids from the item files in " + itemsDirectory);
+		writeJournal();
+	}
+
+	/**
+	 * Replace the journal with one containing only the current ids, or delete it if there are none.
+	 * Must be called while holding the write lock.
+	 */
+	private void writeJournal() throws IOException {
+		closeStream();
+		tombstones = 0;
+		if (ids.isEmpty()) {
+			FileUtils.deleteFile(journalFile);
+			journalLength = 0;
+			return;
+		}
+		StringBuilder sb = new StringBuilder();
+		for (String id : ids)
+			sb.append(ADD_PREFIX).append(id).append('\n');
+		byte[] bytes = sb.toString().getBytes(StandardCharsets.UTF_8);
+		File tmp = new File(journalFile.getPath() + ".tmp");
+		FileOutputStream fos = new FileOutputStream(tmp);
+		try {
+			fos.write(bytes);
+		} finally {
+			fos.close();
+		}
+		Files.move(tmp.toPath(), journalFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		journalLength = bytes.length;
+	}
+
+	/**
+	 * Must be called while holding the write lock.
+	 */
+	private void append(char prefix, String id) throws IOException {
+		if (journalStream == null)
+			journalStream = new FileOutputStream(journalFile, true);
+		byte[] bytes = (prefix + id + "\n").getBytes(StandardCharsets.UTF_8);
+		journalStream.write(bytes);
+		journalLength += bytes.length;
+	}
+
+	private void closeStream() throws IOException {
+		if (journalStream != null) {
+			journalStream.close();
+			journalStream = null;
+		}
+	}
+
+	/**
+	 * Add the id to the end of the ids.
+	 * @param id
+	 * @throws IOException
+	 */
+	void add(String id) throws IOException {
+		lockForWrite();
+		try {
+			append(ADD_PREFIX, id);
+			ids.add(id);
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Remove all the given ids, but only if all are present.
+	 * @param toRemove
+	 * @return false if any of the ids is not present, in which case none are removed.
+	 * @throws IOException
+	 */
+	boolean removeAll(Iterable<String> toRemove) throws IOException {
+		lockForWrite();
+		try {
+			for (String id : toRemove) {
+				if (!ids.contains(id))
+					return false;
+			}
+			for (String id : toRemove) {
+				if (ids.remove(id)) {
+					append(DELETE_PREFIX, id);
+					tombstones++;
+				}
+			}
+			if (ids.isEmpty() || (tombstones > COMPACTION_MIN_TOMBSTONES && tombstones > ids.size()))
+				writeJournal();
+			return true;
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+
+	boolean contains(String id) throws IOException {
+		lockForRead();
+		try {
+			return ids.contains(id);
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	int size() throws IOException {
+		lockForRead();
+		try {
+			return ids.size();
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Get the ids most recent first.
+	 * @return a snapshot of the ids that is not affected by later changes.
+	 * @throws IOException
+	 */
+	List<String> getIDs() throws IOException {
+		lockForRead();
+		try {
+			List<String> list = new ArrayList<String>(ids);
+			Collections.reverse(list);
+			return list;
+		} finally {
+			lock.readLock().unlock();
+		}
+	}
+
+	/**
+	 * Replace the ids with those recovered from the names of the item files and rewrite the journal.
+	 * @throws IOException
+	 */
+	void rebuild() throws IOException {
+		lock.writeLock().lock();
+		try {
+			recover();
+		} finally {
+			lock.writeLock().unlock();
+		}
+	}
+}
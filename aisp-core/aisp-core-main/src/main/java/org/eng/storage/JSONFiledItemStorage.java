@@ -18,10 +18,12 @@ package org.eng.storage;
 import java.io.File;
 import java.io.IOException;
 
+import org.eng.ENGProperties;
+import org.eng.aisp.util.GsonUtils;
 import org.eng.util.FileUtils;
 
 import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
 
 /**
  * Provides a limited ability to store Java objects as serialized JSON objects.
@@ -29,6 +31,12 @@ import com.google.gson.GsonBuilder;
  * WARNING: While complex Java classes are supported, currently there is no support for Java objects that use 
  * polymorphism (i.e. interfaces and super classes) in types of their fields. 
  * <p>
+ * Items are written in one of the {@link ItemFormat}s.  The binary formats hold the same Gson tree as the JSON text, but write numbers
+ * and arrays of numbers as raw little-endian values (see {@link BinaryJsonCodec}), which is faster to read and write and smaller for
+ * items with large numeric arrays.  Items are read in whichever format they were written, so existing JSON items remain readable
+ * after changing the format. 
+ * The default format is set with the {@value #ITEM_FORMAT_PROPERTY_NAME} property.
+ * <p>
  * TODO: This instance is thread-safe but not process safe as no file locking is done in the file system to assure exclusive access.
  *
  * @param <ITEM>
@@ -37,11 +45,35 @@ public class JSONFiledItemStorage<ITEM> extends AbstractFiledItemStorage<ITEM> i
 
 
 
-	transient Gson gson = new GsonBuilder().setPrettyPrinting().create();
+	transient Gson gson = GsonUtils.newGsonBuilder().setPrettyPrinting().create();
+
+	/**
+	 * The formats in which items are written.
+	 */
+	public enum ItemFormat {
+		/** Pretty-printed JSON text preceded by a line with the item's class name */
+		JSON,
+		/** The Gson tree of the item encoded in binary */
+		BINARY,
+		/** The binary encoding compressed with Deflate */
+		DEFLATED_BINARY
+	}
 
+	public final static String ITEM_FORMAT_PROPERTY_NAME = "jsonfileditemstorage.format";
+	public final static ItemFormat DEFAULT_ITEM_FORMAT = ItemFormat.JSON;
+
+	private static ItemFormat getDefaultItemFormat() {
+		String value = ENGProperties.instance().getProperty(ITEM_FORMAT_PROPERTY_NAME);
+		if (value == null)
+			return DEFAULT_ITEM_FORMAT;
+		return ItemFormat.valueOf(value.trim().toUpperCase());
+	}
+
+	protected final ItemFormat itemFormat;
 
 	/**
 	 * Create the instance to use the given directory to store the items and name the file containing the ids.
+	 * Items are written in the format given by the {@value #ITEM_FORMAT_PROPERTY_NAME} property.
 	 * @param storageDirectory directory where files associated with this storage instance will be written.
 	 * The directory must already exist otherwise an exception will be thrown. 
 	 * @param name name associated with the directory and that is used to construct a file in the directory that will contain
@@ -49,7 +81,23 @@ public class JSONFiledItemStorage<ITEM> extends AbstractFiledItemStorage<ITEM> i
 	 * valid in the file system.
 	 */
 	public JSONFiledItemStorage(String storageDirectory, String name) {
+		this(storageDirectory,name, getDefaultItemFormat());
+	}
+
+	/**
+	 * Create the instance to use the given directory to store the items and name the file containing the ids.
+	 * @param storageDirectory directory where files associated with this storage instance will be written.
+	 * The directory must already exist otherwise an exception will be thrown. 
+	 * @param name name associated with the directory and that is used to construct a file in the directory that will contain
+	 * the ids of items in the instance.  Since this is used to create a file, it must contain only characters that are
+	 * valid in the file system.
+	 * @param itemFormat the format in which items are written.  Items are read in any format.
+	 */
+	public JSONFiledItemStorage(String storageDirectory, String name, ItemFormat itemFormat) {
 		super(storageDirectory,name);
+		if (itemFormat == null)
+			throw new IllegalArgumentException("itemFormat must not be null");
+		this.itemFormat = itemFormat;
 	}
 
 
@@ -85,10 +133,16 @@ public class JSONFiledItemStorage<ITEM> extends AbstractFiledItemStorage<ITEM> i
 	 */
 	protected void writeItem(String id, ITEM item) throws IOException {
 		String fileName = getJSONFileName(id);
-		String json = gson.toJson(item);
 		String className = item.getClass().getName();
+		if (itemFormat != ItemFormat.JSON) {
+			JsonElement tree = gson.toJsonTree(item);
+			byte[] bytes = BinaryJsonCodec.encode(className, tree, itemFormat == ItemFormat.DEFLATED_BINARY);
+			FileUtils.writeByteArrayToFile(fileName, bytes);
+			return;
+		}
+		String json = gson.toJson(item);
 		String contents = className + "\n" + json;
-		FileUtils.writeStringToTextFile(contents, fileName);
+		FileUtils.writeByteArrayToFile(fileName, contents.getBytes("UTF-8"));	// Read as UTF-8, regardless of the platform's default.
 	}
 
 	/**
@@ -102,7 +156,18 @@ public class JSONFiledItemStorage<ITEM> extends AbstractFiledItemStorage<ITEM> i
 		File file = new File(fileName);
 		if (!file.exists()) 
 			throw new IOException("File for id " + id + " does not exist.  Bad id.");
-		String contents = FileUtils.readTextFileIntoString(fileName);
+		byte[] bytes = FileUtils.readFileIntoByteArray(fileName);
+		if (BinaryJsonCodec.isEncoded(bytes)) {
+			try {
+				BinaryJsonCodec.Decoded decoded = BinaryJsonCodec.decode(bytes);
+				Class itemClass = Class.forName(decoded.className);
+				ITEM item = (ITEM) gson.fromJson(decoded.tree, itemClass);
+				return item;
+			} catch (Exception e) {
+				throw new IOException("Error reading binary file contents from " + file.getAbsolutePath(), e);
+			}
+		}
+		String contents = new String(bytes, "UTF-8");
 		int index = contents.indexOf('\n');
 		if (index < 0) 
 			throw new IOException("Item format error.  No new line found in json file " + file.getAbsolutePath());
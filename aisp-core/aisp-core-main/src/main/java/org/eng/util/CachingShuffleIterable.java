@@ -7,9 +7,10 @@ import org.eng.cache.MemoryCache;
  * Provides caching of the items contain in an arbitrary IShuffleIterable.
  * This may be useful when re-iterating through iterables that may require non-trivial effort to {@link #dereference(String)}.
  * For examples, reading from files or modifying iterable items somehow.
+ * The label projection of the given iterable, if any, is made available through {@link #getLabelProjection()}.
  * @param <ITEM>
  */
-public class CachingShuffleIterable<ITEM> extends AbstractReferenceShuffleIterable<ITEM, CachingShuffleIterable<ITEM>> implements IShuffleIterable<ITEM> {
+public class CachingShuffleIterable<ITEM> extends AbstractReferenceShuffleIterable<ITEM, CachingShuffleIterable<ITEM>> implements IShuffleIterable<ITEM>, ILabelProjectingIterable<ITEM> {
 
 	/** Holds our cached items */ 
 	private final IMultiKeyCache<String, ITEM> cache; 
@@ -41,7 +42,15 @@ public class CachingShuffleIterable<ITEM> extends AbstractReferenceShuffleIterab
 		if (item == null) {
 //			AISPLogger.logger.info("Cache miss on reference : " + reference);
 			item = iterable.dereference(reference);
-			cache.put(item, reference);
+			// Keep the first item cached under a reference so that concurrent iterations (e.g. parallel k-fold evaluation) 
+			// all see the same instance and so share any caching keyed on its identity.
+			synchronized (cache) {
+				ITEM cached = cache.get(reference);
+				if (cached == null)
+					cache.put(item, reference);
+				else
+					item = cached;
+			}
 //		} else {
 //			AISPLogger.logger.info("Cache hit on reference : " + reference);
 		}
@@ -53,4 +62,11 @@ public class CachingShuffleIterable<ITEM> extends AbstractReferenceShuffleIterab
 		return new CachingShuffleIterable<ITEM>(newReferences, this.iterable, this.cache);	// Share out cache with the new instance since we will be using the same references.
 	}
 
+	@Override
+	public ILabelProjection getLabelProjection() {
+		if (iterable instanceof ILabelProjectingIterable)
+			return ((ILabelProjectingIterable<ITEM>)iterable).getLabelProjection();
+		return null;
+	}
+
 }
@@ -24,15 +24,18 @@ import org.eng.cache.IMultiKeyCache;
 
 /**
  * A shuffleable iterable that delegates the process for dereferencing single references to a separate implementation. 
+ * An optional {@link ILabelProjection} may be provided to make the labels of the items available without dereferencing them.
+ * When delegating to an {@link ILabelProjectingIterable}, its projection is used.
  * 
  * @author DavidWood
  *
  */
-public class DelegatingShuffleIterable<DATA> extends AbstractReferenceShuffleIterable<DATA, DelegatingShuffleIterable<DATA>> implements IShuffleIterable<DATA> {
+public class DelegatingShuffleIterable<DATA> extends AbstractReferenceShuffleIterable<DATA, DelegatingShuffleIterable<DATA>> implements IShuffleIterable<DATA>, ILabelProjectingIterable<DATA> {
 
 //	protected IDoubleDataSet<?> dataSet;
 	protected IMultiKeyCache cache;
 	private IDereferencer<String, DATA> dereferencer;
+	private final ILabelProjection labelProjection;
 
 	/**
 	 * Simple class to implement {@link IDereferencer#loadReference(Object)} with an {@link IItemReferenceIterable#dereference(String)}. 
@@ -53,7 +56,8 @@ public class DelegatingShuffleIterable<DATA> extends AbstractReferenceShuffleIte
 	}
 
 	public DelegatingShuffleIterable(Iterable<String> references, IItemReferenceIterable<DATA> iterable) { 
-		this(references, new ShuffleDereferencer<DATA>(iterable));
+		this(references, new ShuffleDereferencer<DATA>(iterable), null, 
+				iterable instanceof ILabelProjectingIterable ? ((ILabelProjectingIterable<DATA>)iterable).getLabelProjection() : null);
 	}
 
 	public DelegatingShuffleIterable(Iterable<String> references, IDereferencer<String, DATA> dereferencer) {
@@ -61,11 +65,22 @@ public class DelegatingShuffleIterable<DATA> extends AbstractReferenceShuffleIte
 	}
 
 	public DelegatingShuffleIterable(Iterable<String> references, IDereferencer<String, DATA> dereferencer, IMultiKeyCache cache) {
+		this(references, dereferencer, cache, null);
+	}
+
+	/**
+	 * @param references
+	 * @param dereferencer
+	 * @param cache if null, then use {@link Cache#newMemoryCache()}.
+	 * @param labelProjection optional projection of the labels of the items at the given references. May be null.
+	 */
+	public DelegatingShuffleIterable(Iterable<String> references, IDereferencer<String, DATA> dereferencer, IMultiKeyCache cache, ILabelProjection labelProjection) {
 		super(references);
 		this.dereferencer = dereferencer;
 		if (cache == null)
 			cache = Cache.newMemoryCache(); 
 		this.cache = cache;
+		this.labelProjection = labelProjection;
 	}
 
 
@@ -91,7 +106,12 @@ public class DelegatingShuffleIterable<DATA> extends AbstractReferenceShuffleIte
 
 	@Override
 	public DelegatingShuffleIterable<DATA> newIterable(Iterable<String> references) {
-		return new DelegatingShuffleIterable<DATA>(references, this.dereferencer, this.cache); 
+		return new DelegatingShuffleIterable<DATA>(references, this.dereferencer, this.cache, this.labelProjection); 
+	}
+
+	@Override
+	public ILabelProjection getLabelProjection() {
+		return labelProjection;
 	}
 
 
@@ -35,6 +35,7 @@ import java.util.Map;
 
 import org.eng.ENGLogger;
 import org.eng.ENGProperties;
+import org.eng.aisp.util.GsonUtils;
 
 import com.google.gson.Gson;
 
@@ -90,7 +91,7 @@ public class HttpUtil {
 	
 	public static String DEFAULT_CONTENT_TYPE = "text/html";
 	public static String DEFAULT_REQUEST_METHOD = "GET";
-	public static Gson gson = new Gson();
+	public static Gson gson = GsonUtils.newGsonBuilder().create();
 	
 //	public static void setVerbose(boolean v) {
 //		Verbose = v;
@@ -0,0 +1,30 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.util;
+
+/**
+ * Implemented by IItemReferenceIterables that may be able to provide the labels and tags of their items by reference without dereferencing them.
+ * Implementations that wrap other iterables generally make the projection of the wrapped iterable available, if any.
+ */
+public interface ILabelProjectingIterable<T> extends IItemReferenceIterable<T> {
+
+	/**
+	 * Get the projection of the labels and tags of the items in this instance.
+	 * @return null if the labels can not be determined without dereferencing the items.
+	 */
+	ILabelProjection getLabelProjection();
+
+}
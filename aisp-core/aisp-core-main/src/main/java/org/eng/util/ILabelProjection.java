@@ -0,0 +1,43 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.util;
+
+import java.util.Properties;
+
+/**
+ * Provides the labels and tags of the items referenced by an {@link IItemReferenceIterable} without dereferencing the items.
+ * This allows, for example, partitioning of data by label value without loading the data.
+ * @see ILabelProjectingIterable
+ */
+public interface ILabelProjection {
+
+	/**
+	 * Get the labels of the item(s) at the given reference.
+	 * @param reference a reference string, presumably one that is a member of the iterable returned by {@link IItemReferenceIterable#getReferences()}.
+	 * @return never null. The labels the dereferenced item has.
+	 * @throw NoSuchElementException if the reference is not known.
+	 */
+	Properties getLabels(String reference);
+
+	/**
+	 * Get the tags of the item(s) at the given reference.
+	 * @param reference a reference string, presumably one that is a member of the iterable returned by {@link IItemReferenceIterable#getReferences()}.
+	 * @return never null. The tags stored with the reference.  Dereferencing may add tags, such as the name of the file from which the item was loaded.
+	 * @throw NoSuchElementException if the reference is not known.
+	 */
+	Properties getTags(String reference);
+
+}
@@ -422,7 +422,7 @@ public class MathUtil {
 	 * @param val non-negative integer
 	 * @return 1 or greater.
 	 */
-	private static int upperPowerOfTwo(int val) {
+	public static int upperPowerOfTwo(int val) {
 		int n=1;
 		 
 	    for (int i=0 ; n < val ; i++) {
@@ -24,15 +24,17 @@ import java.util.List;
  * Mutation is defined with an IShuffleMutator instance that indicates whether or not the the mutator produces more than 1 output for any of its inputs.
  * Mutation is applied in the {@link #dereference(String)} implementation, but in addition, the determine a full set of shufflable references, the constructor
  * will iterate and mutate all items to determine a unique reference for each OUTPUT.
+ * An {@link ILabelProjection} of the OUTPUT items may optionally be provided, since in general the mutation may change the labels.
  * @author dawood
  *
  * @param <INPUT> type of item iterated over to produce OUTPUT items.
  * @param <OUTPUT> type of item produced from an INPUT item.
  */
-public class MutatingShuffleIterable<INPUT,OUTPUT> extends AbstractReferenceShuffleIterable<OUTPUT, ISizedShuffleIterable<OUTPUT>>  implements ISizedShuffleIterable<OUTPUT> {
+public class MutatingShuffleIterable<INPUT,OUTPUT> extends AbstractReferenceShuffleIterable<OUTPUT, ISizedShuffleIterable<OUTPUT>>  implements ISizedShuffleIterable<OUTPUT>, ILabelProjectingIterable<OUTPUT> {
 
 	protected final IShuffleIterable<INPUT> iterable;
 	protected final IShuffleMutator<INPUT, OUTPUT> mutator;
+	protected final ILabelProjection labelProjection;
 
 	private final static String SEPARATOR = "/";
 
@@ -77,10 +79,27 @@ public class MutatingShuffleIterable<INPUT,OUTPUT> extends AbstractReferenceShuf
 		this(iterable, new  ShuffleMutatorProxy<INPUT,OUTPUT>(mutator, isUnaryMutator));
 	}
 
+	/**
+	 * Extends {@link #MutatingShuffleIterable(IShuffleIterable, IMutator, boolean)} with a projection of the labels of the mutated items.
+	 * @param labelProjection provides the labels of the OUTPUT items using the references of this instance.  May be null.
+	 */
+	public MutatingShuffleIterable(IShuffleIterable<INPUT> iterable,IMutator<INPUT,OUTPUT> mutator, boolean isUnaryMutator, ILabelProjection labelProjection) {
+		this(iterable, new  ShuffleMutatorProxy<INPUT,OUTPUT>(mutator, isUnaryMutator), labelProjection);
+	}
+
+	private MutatingShuffleIterable(IShuffleIterable<INPUT> iterable, IShuffleMutator<INPUT,OUTPUT> mutator, ILabelProjection labelProjection) {
+		this(iterable, buildReferences(iterable, mutator), mutator, labelProjection);
+	}
+
 	private MutatingShuffleIterable(IShuffleIterable<INPUT> iterable, Iterable<String> references, IShuffleMutator<INPUT,OUTPUT> mutator) {
+		this(iterable, references, mutator, null);
+	}
+
+	private MutatingShuffleIterable(IShuffleIterable<INPUT> iterable, Iterable<String> references, IShuffleMutator<INPUT,OUTPUT> mutator, ILabelProjection labelProjection) {
 		super(references);
 		this.iterable = iterable;
 		this.mutator = mutator;
+		this.labelProjection = labelProjection;
 	}
 
 	/**
@@ -139,7 +158,12 @@ public class MutatingShuffleIterable<INPUT,OUTPUT> extends AbstractReferenceShuf
 
 	@Override
 	public ISizedShuffleIterable<OUTPUT> newIterable(Iterable<String> references) {
-		return new MutatingShuffleIterable<INPUT,OUTPUT>(this.iterable, references, mutator);
+		return new MutatingShuffleIterable<INPUT,OUTPUT>(this.iterable, references, mutator, labelProjection);
+	}
+
+	@Override
+	public ILabelProjection getLabelProjection() {
+		return labelProjection;
 	}
 
 	/**
@@ -19,6 +19,7 @@ package org.eng;
 
 import org.eng.aisp.AISPTestSuite;
 import org.eng.aisp.SoundTestUtils;
+import org.eng.cache.ENGCacheTestSuite;
 import org.eng.storage.ENGStorageTestSuite;
 import org.eng.util.ENGUtilTestSuite;
 import org.eng.validators.ENGValidatorTestSuite;
@@ -37,6 +38,7 @@ import org.junit.runners.Suite;
 
 	ENGValidatorTestSuite.class,
 	ENGUtilTestSuite.class,
+	ENGCacheTestSuite.class,
 	ENGStorageTestSuite.class,
 	AISPTestSuite.class
         })
@@ -17,15 +17,28 @@ package org.eng.aisp;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.eng.ENGTestUtils;
 import org.eng.aisp.IDataWindow.PadType;
+import org.eng.aisp.feature.extractor.IFeatureExtractor;
+import org.eng.aisp.feature.extractor.vector.FFTFeatureExtractor;
+import org.eng.aisp.feature.extractor.vector.IdentityFeatureExtractor;
+import org.eng.aisp.feature.extractor.vector.LogMelFeatureExtractor;
+import org.eng.aisp.feature.extractor.vector.MFCCFeatureExtractor;
+import org.eng.aisp.feature.extractor.vector.MFFBFeatureExtractor;
+import org.eng.aisp.feature.extractor.vector.RMSFeatureExtractor;
+import org.eng.aisp.feature.extractor.vector.StatsFeatureExtractor;
+import org.eng.aisp.util.GsonUtils;
 import org.eng.aisp.util.PCMUtil;
 import org.eng.util.ClassUtilities;
+import org.eng.util.Vector;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.google.gson.Gson;
+
 
 public class SoundClipTest extends AbstractDoubleDataWindowTest {
 
@@ -155,6 +168,132 @@ public class SoundClipTest extends AbstractDoubleDataWindowTest {
 		}
 	}
 
+	/**
+	 * Make sure sub-windows that share their parent's data produce the same data, times and feature values as the copies
+	 * that were previously created.
+	 */
+	@Test
+	public void testSubWindowViews() throws IOException, ClassNotFoundException {
+		SoundClip clip = SoundTestUtils.createClips(1, 0, 0, 2000, 1, 44100, 16, 1, 0, 1000, true).get(0);
+		IFeatureExtractor<double[], double[]>[] extractors = new IFeatureExtractor[] {
+				new FFTFeatureExtractor(), new MFCCFeatureExtractor(), new MFFBFeatureExtractor(), new MFFBFeatureExtractor(256, false, true),
+				new LogMelFeatureExtractor(), new RMSFeatureExtractor(), new StatsFeatureExtractor(), new IdentityFeatureExtractor()
+		};
+		double[] sharedData = clip.getBackingData();
+		double[] parentData = sharedData.clone();
+		List<SoundClip> subWindows = new ArrayList<SoundClip>();
+		for (IDataWindow<double[]> w : clip.splitOnTime(40, false))
+			subWindows.add((SoundClip)w);
+		subWindows.add((SoundClip)subWindows.get(3).subWindow2(5, 25));	// A view of a view.
+		for (SoundClip view : subWindows) {
+			Assert.assertTrue(view.isView());
+			Assert.assertTrue(view.getBackingData() == sharedData);
+			// Create the sub-window as done before views were introduced.
+			int offset = view.getBackingDataOffset();
+			double[] copiedData = Arrays.copyOfRange(parentData, offset, offset + view.getBackingDataLength());
+			DoubleWindow dw = new DoubleWindow(view.getStartTimeMsec(), view.getStartTimeMsec() + 1000.0 * copiedData.length / clip.getSamplingRate(), copiedData);
+			SoundClip copy = new SoundClip(dw.getStartTimeMsec(), dw.getEndTimeMsec(), new Vector(dw.getIndependentValues()), copiedData, 1);
+			Assert.assertTrue(view.getStartTimeMsec() == copy.getStartTimeMsec());
+			Assert.assertTrue(view.getEndTimeMsec() == copy.getEndTimeMsec());
+			Assert.assertTrue(view.getSamplingRate() == copy.getSamplingRate());
+			Assert.assertTrue(view.getSampleSize() == copy.getSampleSize());
+			Assert.assertTrue(Arrays.equals(view.getIndependentValues(), copy.getIndependentValues()));
+			for (IFeatureExtractor<double[], double[]> fe : extractors) {
+				double[] viewFeature = fe.apply(view).getData();
+				double[] copyFeature = fe.apply(copy).getData();
+				Assert.assertTrue(fe.getClass().getSimpleName(), Arrays.equals(viewFeature, copyFeature));
+			}
+			Assert.assertTrue(Arrays.equals(view.getData(), copy.getData()));
+
+			// Modifying the data of a view must not change the data of its parent.
+			view.getData()[0] += 1;
+			Assert.assertTrue(Arrays.equals(parentData, clip.getData()));
+			view.getData()[0] -= 1;
+
+			// Serialization should write only the view's data. 
+			SoundClip deserialized = (SoundClip) ClassUtilities.deserialize(ClassUtilities.serialize(view));
+			Assert.assertTrue(!deserialized.isView());
+			Assert.assertTrue(Arrays.equals(deserialized.getData(), copy.getData()));
+			Assert.assertTrue(deserialized.equals(view));
+			Assert.assertTrue(deserialized.hashCode() == view.hashCode());
+		}
+	}
+
+	/**
+	 * Make sure changes made through the array returned by getData() are seen by the window that returned it, including
+	 * its equality, hash code and features, and not by any other window sharing or copied from its data.
+	 */
+	@Test
+	public void testModifyViewData() {
+		SoundClip clip = SoundTestUtils.createClips(1, 0, 0, 1000, 1, 44100, 16, 1, 0, 1000, true).get(0);
+		IFeatureExtractor<double[], double[]> fe = new FFTFeatureExtractor();
+		List<? extends IDataWindow<double[]>> views = clip.splitOnTime(40, false);
+		SoundClip view = (SoundClip)views.get(2);
+		SoundClip sibling = (SoundClip)views.get(2).subWindow2(0, 40);	// Same data as view, sharing the parent's array.
+		Assert.assertTrue(view.isView());
+		Assert.assertTrue(sibling.isView());
+		Assert.assertTrue(view.equals(sibling));
+		double[] originalFeature = fe.apply(view).getData();
+
+		// Modify a view.
+		double[] data = view.getData();
+		Assert.assertTrue(!view.isView());
+		Assert.assertTrue(view.getBackingData() == data);
+		Assert.assertTrue(view.getBackingDataOffset() == 0);
+		for (int i=0 ; i<data.length ; i++)
+			data[i] += 1;
+		SoundClip expected = new SoundClip(view.getStartTimeMsec(), view.getEndTimeMsec(), data.clone());
+		Assert.assertTrue(view.equals(expected));
+		Assert.assertTrue(view.hashCode() == expected.hashCode());
+		Assert.assertTrue(!view.equals(sibling));
+		Assert.assertTrue(Arrays.equals(fe.apply(expected).getData(), fe.apply(view).getData()));
+		Assert.assertTrue(!Arrays.equals(originalFeature, fe.apply(view).getData()));
+		Assert.assertTrue(Arrays.equals(originalFeature, fe.apply(sibling).getData()));
+		// Sub-windows of the modified view see its modified data.
+		Assert.assertTrue(Arrays.equals(expected.subWindow2(5, 25).getData(), view.subWindow2(5, 25).getData()));
+
+		// Modify the parent after creating views.
+		double[] parentData = clip.getData();
+		Assert.assertTrue(parentData != sibling.getBackingData());
+		Arrays.fill(parentData, 0);
+		Assert.assertTrue(Arrays.equals(originalFeature, fe.apply(sibling).getData()));
+
+		// Sub-windows created after the parent's data was returned do not see later changes to it.
+		SoundClip after = (SoundClip)clip.subWindow2(0, 40);
+		Assert.assertTrue(after.getBackingData() != parentData);
+		double[] afterData = after.getData().clone();
+		Arrays.fill(parentData, 1);
+		Assert.assertTrue(Arrays.equals(afterData, after.getData()));
+	}
+
+	/**
+	 * Make sure views are written with their own data by Gson, are sized by their length and return the same array from repeated calls to getData().
+	 */
+	@Test
+	public void testViewGsonAndSize() {
+		SoundClip clip = SoundTestUtils.createClips(1, 0, 0, 1000, 1, 44100, 16, 1, 0, 1000, true).get(0);
+		SoundClip view = (SoundClip)clip.splitOnTime(40, false).get(2);
+		SoundClip copy = new SoundClip(view.getStartTimeMsec(), view.getEndTimeMsec(), view.copyData());
+		Assert.assertTrue(view.isView());
+		Assert.assertTrue(view.getEstimatedSizeBytes() == copy.getEstimatedSizeBytes());
+
+		Gson gson = GsonUtils.newGsonBuilder().create();
+		SoundClip deserialized = gson.fromJson(gson.toJson(view), SoundClip.class);
+		Assert.assertTrue(deserialized.getData() != null);
+		Assert.assertTrue(Arrays.equals(copy.getData(), deserialized.getData()));
+		Assert.assertTrue(Arrays.equals(copy.getData(), view.getData()));
+
+		// Materializing a view does not expose its data, so its sub-windows still share it.
+		SoundClip other = (SoundClip)clip.splitOnTime(40, false).get(3);
+		other.materializeView();
+		Assert.assertTrue(!other.isView());
+		Assert.assertTrue(((SoundClip)other.subWindow2(5, 25)).getBackingData() == other.getBackingData());
+
+		// The array returned by getData() is only copied once.
+		double[] data = view.getData();
+		Assert.assertTrue(data == view.getData());
+	}
+
 	@Override
 	protected IDataWindow<double[]> getDataWindow(double startMsec, double endMsec, double[] data) {
 		return new SoundClip(startMsec, endMsec, data);
@@ -15,7 +15,10 @@
  *******************************************************************************/
 package org.eng.aisp.classifier;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.ArrayList;
@@ -33,6 +36,8 @@ import org.eng.aisp.classifier.ConfusionMatrix;
 import org.eng.aisp.classifier.IClassifier;
 import org.eng.aisp.classifier.IFixableClassifier;
 import org.eng.aisp.classifier.IFixedClassifier;
+import org.eng.aisp.util.FixedClassifiers;
+import org.eng.aisp.util.ModelCodecs;
 import org.eng.util.ClassUtilities;
 import org.junit.Assert;
 import org.junit.Assume;
@@ -382,6 +387,38 @@ public abstract class AbstractClassifierTest extends AbstractFixedClassifierTest
 		}
 
 		SoundTestUtils.verifyClassifications(classifier, srList, trainingLabel);
+		testCodecSerializability(classifier, trainingLabel, srList);
+	}
+
+	/**
+	 * Verify the classifier can be written and read with {@link FixedClassifiers}, using its codec if it has one, 
+	 * and that it classifies the same when memory-mapped with {@link FixedClassifiers#map(String)}.
+	 */
+	private void testCodecSerializability(IFixedClassifier<double[]> classifier, String trainingLabel, Iterable<SoundRecording> srList) throws IOException, AISPException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		FixedClassifiers.write(bos, classifier, true);
+		byte[] encoded = bos.toByteArray();
+		Assert.assertEquals(ModelCodecs.hasCodec(classifier), ModelCodecs.isEncoded(encoded));
+		try {
+			classifier = (IFixedClassifier<double[]>)FixedClassifiers.read(new ByteArrayInputStream(encoded));
+		} catch (ClassNotFoundException e) {
+			e.printStackTrace();
+			Assert.fail("Could not read model. See console for stacktrace.");
+		}
+		SoundTestUtils.verifyClassifications(classifier, srList, trainingLabel);
+
+		File file = File.createTempFile("classifier", ".cfr");
+		try {
+			FixedClassifiers.write(file.getAbsolutePath(), classifier, true);
+			IFixedClassifier<double[]> mapped = (IFixedClassifier<double[]>)FixedClassifiers.map(file.getAbsolutePath());
+			for (SoundRecording sr : srList)
+				Assert.assertEquals(classifier.classify(sr.getDataWindow()), mapped.classify(sr.getDataWindow()));
+		} catch (ClassNotFoundException e) {
+			e.printStackTrace();
+			Assert.fail("Could not map model. See console for stacktrace.");
+		} finally {
+			file.delete();
+		}
 	}
 
 
@@ -16,6 +16,7 @@
 package org.eng.aisp.classifier;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
@@ -34,6 +35,8 @@ import org.eng.aisp.classifier.TrainingSetInfo;
 import org.eng.aisp.classifier.KFoldModelEvaluator.IPartitionListener;
 import org.eng.aisp.classifier.TrainingSetInfo.LabelInfo;
 import org.eng.aisp.classifier.TrainingSetInfo.LabelValueInfo;
+import org.eng.aisp.classifier.gmm.GMMClassifier;
+import org.eng.aisp.classifier.knn.merge.EuclidianDistanceMergeKNNClassifierBuilder;
 import org.eng.aisp.ILabeledDataWindow;
 import org.eng.aisp.SoundClip;
 import org.eng.aisp.SoundRecording;
@@ -175,6 +178,87 @@ public class KFoldModelEvaluatorTest {
 	}
 	
 
+	/**
+	 * Get noisy sounds of 3 label values whose frequencies are close enough that the models make some errors.
+	 */
+	private List<SoundRecording> getNoisySounds(String trainingLabel, int countPerLabelValue) {
+		List<SoundRecording> sounds = new ArrayList<SoundRecording>();
+		int[] htz = new int[] { 1000, 1100, 1200 };
+		for (int i=0 ; i<htz.length ; i++) {
+			Properties labels = new Properties();
+			labels.setProperty(trainingLabel, "value" + i);
+			sounds.addAll(SoundTestUtils.createTrainingRecordings(countPerLabelValue, 1, 44000, 16, 0, 250, 0, 0.2, htz[i], labels, true));
+		}
+		return sounds;
+	}
+
+	@Test
+	public void testParallelFoldsMatchSequential() throws AISPException {
+		String trainingLabel = "source";
+		int folds = 4;
+		List<SoundRecording> sounds = getNoisySounds(trainingLabel, 12);
+		Iterable<SoundRecording> shuffleSounds = new ShufflizingIterable<SoundRecording>(sounds);
+
+		for (Iterable<SoundRecording> data : Arrays.asList(sounds, shuffleSounds)) {
+			for (int parallelism : new int[] { 2, folds }) {
+				// GMM
+				KFoldModelEvaluator sequential = new KFoldModelEvaluator(folds, KFoldModelEvaluator.DEFAULT_SEED, true, false, false, 1);
+				KFoldModelEvaluator parallel = new KFoldModelEvaluator(folds, KFoldModelEvaluator.DEFAULT_SEED, true, false, false, parallelism);
+				ConfusionMatrix expected = sequential.getConfusionMatrix(new GMMClassifier(), data, trainingLabel, folds, 0);
+				IClassifier<double[]> classifier = new GMMClassifier();
+				ConfusionMatrix actual = parallel.getConfusionMatrix(classifier, data, trainingLabel, folds, 0);
+				Assert.assertEquals(expected.getTotalSamples(), sounds.size());
+				Assert.assertEquals(expected, actual);
+				Assert.assertEquals(trainingLabel, classifier.getTrainedLabel());	// The given classifier is trained on the last fold.
+
+				// KNN with balanced training data and fewer folds evaluated than defined.
+				expected = sequential.getConfusionMatrix(new EuclidianDistanceMergeKNNClassifierBuilder().build(), data, trainingLabel, folds-1, 5);
+				actual = parallel.getConfusionMatrix(new EuclidianDistanceMergeKNNClassifierBuilder().build(), data, trainingLabel, folds-1, 5);
+				Assert.assertEquals(expected, actual);
+			}
+		}
+
+		// Classification results depend only on the fold, not on the order in which the folds are evaluated.
+		KFoldModelEvaluator sequential = new KFoldModelEvaluator(folds, KFoldModelEvaluator.DEFAULT_SEED, true, false, false, 1);
+		KFoldModelEvaluator parallel = new KFoldModelEvaluator(folds, KFoldModelEvaluator.DEFAULT_SEED, true, false, false, folds);
+		String[] labelValues = new String[] { "value0", "value1", "value2" };
+		ConfusionMatrix expected = sequential.getConfusionMatrix(new TestClassifier(trainingLabel, labelValues), sounds, trainingLabel, folds, 0);
+		ConfusionMatrix actual = parallel.getConfusionMatrix(new TestClassifier(trainingLabel, labelValues), sounds, trainingLabel, folds, 0);
+		Assert.assertEquals(expected, actual);
+	}
+
+	/**
+	 * A classifier that fails to train.
+	 */
+	private static class FailingClassifier extends DumbClassifier {
+		private static final long serialVersionUID = -8377315452101543165L;
+
+		@Override
+		public void train(String trainingLabel, Iterable<? extends ILabeledDataWindow<double[]>> data) throws AISPException {
+			throw new AISPException("Training failed");
+		}
+	}
+
+	@Test
+	public void testParallelFoldFailure() {
+		String trainingLabel = "source";
+		int folds = 3;
+		List<SoundRecording> sounds = getNoisySounds(trainingLabel, 3);
+		KFoldModelEvaluator parallel = new KFoldModelEvaluator(folds, KFoldModelEvaluator.DEFAULT_SEED, true, false, false, folds);
+		try {
+			parallel.getConfusionMatrix(new FailingClassifier(), sounds, trainingLabel, folds, 0);
+			Assert.fail("Did not get exception");
+		} catch (AISPException e) {
+			Assert.assertEquals("Training failed", e.getMessage());
+		}
+		try {
+			new KFoldModelEvaluator(folds, KFoldModelEvaluator.DEFAULT_SEED, true, false, false, 0);
+			Assert.fail("Did not get exception");
+		} catch (IllegalArgumentException e) {
+			;
+		}
+	}
+
 	@Test
 	public void testSmallDataFolds() throws AISPException {
 		int folds = KFoldModelEvaluator.DEFAULT_FOLD_COUNT;
@@ -16,13 +16,19 @@
 package org.eng.aisp.classifier;
 
 
+import org.eng.aisp.classifier.anomaly.FixedAnomalyDetectorClassifierTest;
 import org.eng.aisp.classifier.anomaly.normal.NormalDistributionAnomalyClassifierBuilderTest;
 import org.eng.aisp.classifier.anomaly.normal.NormalDistributionAnomalyClassifierTest;
 import org.eng.aisp.classifier.anomaly.normal.OnlineNormalDistributionAnomalyClassifierTest;
+import org.eng.aisp.classifier.cnn.FixedCNNClassifierTest;
+import org.eng.aisp.classifier.cnn.InferenceCoalescerTest;
+import org.eng.aisp.classifier.cnn.MaterializedDataSetIteratorTest;
 import org.eng.aisp.classifier.dcase.DCASEClassifierTest;
 import org.eng.aisp.classifier.factory.ClassifierFactoriesTest;
+import org.eng.aisp.classifier.gaussianmixture.FixedSingleGaussianMixtureTest;
 import org.eng.aisp.classifier.gmm.GMMClassifierBuilderTest;
 import org.eng.aisp.classifier.gmm.GMMClassifierTest;
+import org.eng.aisp.classifier.gmm.GMMTrainingUtilTest;
 import org.eng.aisp.classifier.knn.KNNTestSuite;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
@@ -42,9 +48,12 @@ import org.junit.runners.Suite;
 
 	GMMClassifierTest.class,	
 	GMMClassifierBuilderTest.class,	
+	GMMTrainingUtilTest.class,
+	FixedSingleGaussianMixtureTest.class,
 	KNNTestSuite.class,
 
 	
+	FixedAnomalyDetectorClassifierTest.class,
 	OnlineNormalDistributionAnomalyClassifierTest.class,
 	NormalDistributionAnomalyClassifierTest.class,
 	NormalDistributionAnomalyClassifierBuilderTest.class,
@@ -53,6 +62,9 @@ import org.junit.runners.Suite;
 	
 
 	// This is passing, but we usually use DCASE and not CNN, so only test DCASE (to speed up manual testing)
+	FixedCNNClassifierTest.class,
+	InferenceCoalescerTest.class,
+	MaterializedDataSetIteratorTest.class,
 //	CNNModelerTest.class,					//CNN test passes as of 3/22/2018, but it takes long to run, thus commented out
 	DCASEClassifierTest.class,
         })
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.anomaly;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.eng.aisp.AISPException;
+import org.eng.aisp.SoundRecording;
+import org.eng.aisp.classifier.Classification;
+import org.eng.aisp.classifier.anomaly.FixedAnomalyDetectorClassifier.StreamState;
+import org.eng.aisp.classifier.anomaly.FixedAnomalyDetectorClassifier.UpdateMode;
+import org.eng.aisp.classifier.anomaly.normal.NormalDistributionAnomalyClassifier;
+import org.eng.aisp.classifier.anomaly.normal.NormalDistributionAnomalyClassifierTest;
+import org.eng.aisp.classifier.anomaly.normal.OnlineNormalDistributionAnomalyClassifier;
+import org.eng.util.ClassUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FixedAnomalyDetectorClassifierTest {
+
+	private final static String TRAINING_LABEL = "state";
+	private final static int STREAMS = 6;
+
+	/**
+	 * Get a classifier trained on normal and abnormal data that adapts to the environment of each deployment.
+	 */
+	private static FixedAnomalyDetectorClassifier getTrainedClassifier() throws AISPException {
+		return getTrainedClassifier(5);
+	}
+
+	/**
+	 * @param samplesToAdaptToEnvironment -1 to not adapt to the environment of each deployment.
+	 */
+	private static FixedAnomalyDetectorClassifier getTrainedClassifier(int samplesToAdaptToEnvironment) throws AISPException {
+		NormalDistributionAnomalyClassifier classifier = new NormalDistributionAnomalyClassifier(AnomalyDetectorClassifier.DEFAULT_FEATURE_GRAM_EXTRACTOR, 
+				AnomalyDetectorClassifier.DEFAULT_VOTE_PERCENT, NormalDistributionAnomalyClassifier.DEFAULT_NORMAL_STDDEV_MULTIPLIER, samplesToAdaptToEnvironment);
+		classifier.train(TRAINING_LABEL, NormalDistributionAnomalyClassifierTest.createTrainingSet(TRAINING_LABEL, 0, 20, 0.1, 5, 0.5));
+		return (FixedAnomalyDetectorClassifier)classifier.getFixedClassifier();
+	}
+
+	/**
+	 * Get the windows of each stream, each stream with a different gain.
+	 */
+	private static List<List<SoundRecording>> getStreams() {
+		List<List<SoundRecording>> streams = new ArrayList<List<SoundRecording>>();
+		for (int i=0; i<STREAMS; i++) {
+			double gain = 1 + 0.1 * i;
+			streams.add(NormalDistributionAnomalyClassifierTest.createTrainingSet(TRAINING_LABEL, 0.01 * i, 12, 0.1 * gain, 4, 0.5 * gain));
+		}
+		return streams;
+	}
+
+	private static FixedAnomalyDetectorClassifier copy(FixedAnomalyDetectorClassifier classifier) throws Exception {
+		return (FixedAnomalyDetectorClassifier)ClassUtilities.deserialize(ClassUtilities.serialize(classifier));
+	}
+
+	private static void assertSame(Map<String, Classification> expected, Map<String, Classification> actual) {
+		Assert.assertEquals(expected.keySet(), actual.keySet());
+		for (String label : expected.keySet()) {
+			Classification e = expected.get(label);
+			Classification a = actual.get(label);
+			Assert.assertEquals(e.getLabelValue(), a.getLabelValue());
+			Assert.assertEquals(e.getConfidence(), a.getConfidence(), 0);
+		}
+	}
+
+	/**
+	 * Interleave the windows of all streams through one instance and compare each stream's results with those of a dedicated instance.
+	 */
+	private static void testInterleavedStreams(FixedAnomalyDetectorClassifier classifier, UpdateMode updateMode) throws Exception {
+		List<List<SoundRecording>> streams = getStreams();
+		List<List<Map<String, Classification>>> expected = new ArrayList<List<Map<String, Classification>>>();
+		for (List<SoundRecording> stream : streams) {
+			// A dedicated copy, as deployed, that uses the given update mode.
+			FixedAnomalyDetectorClassifier dedicated = copy(classifier);
+			List<Map<String, Classification>> results = new ArrayList<Map<String, Classification>>();
+			for (SoundRecording sr : stream)
+				results.add(updateMode == null ? dedicated.classify(sr.getDataWindow()) : dedicated.classify("dedicated", sr.getDataWindow(), updateMode));
+			expected.add(results);
+		}
+
+		FixedAnomalyDetectorClassifier shared = copy(classifier);
+		int windows = streams.get(0).size();
+		boolean sawAnomaly = false;
+		for (int w=0; w<windows; w++) {
+			for (int s=0; s<STREAMS; s++) {
+				SoundRecording sr = streams.get(s).get(w);
+				String streamID = "stream" + s;
+				Map<String, Classification> result = updateMode == null ? shared.classify(streamID, sr.getDataWindow()) 
+						: shared.classify(streamID, sr.getDataWindow(), updateMode);
+				assertSame(expected.get(s).get(w), result);
+				sawAnomaly = sawAnomaly || result.get(TRAINING_LABEL).getLabelValue().equals(FixedAnomalyDetectorClassifier.ABNORMAL_LABEL_VALUE);
+			}
+		}
+		Assert.assertTrue("Expected some anomalies", sawAnomaly);
+		Assert.assertEquals(STREAMS, shared.getStreamCount());
+	}
+
+	@Test
+	public void testAdaptingStreamsMatchDedicated() throws Exception {
+		testInterleavedStreams(getTrainedClassifier(), null);
+	}
+
+	@Test
+	public void testNonUpdatingStreamsMatchDedicated() throws Exception {
+		FixedAnomalyDetectorClassifier classifier = getTrainedClassifier(-1);
+		testInterleavedStreams(classifier, UpdateMode.NONE);
+
+		// Streams that are not updated only keep their position, so their state is much smaller than that of an updated stream.
+		SoundRecording sr = getStreams().get(0).get(0);
+		classifier.classify("none", sr.getDataWindow(), UpdateMode.NONE);
+		classifier.classify("all", sr.getDataWindow(), UpdateMode.ALL);
+		int noneSize = ClassUtilities.serialize(classifier.getStreamState("none")).length;
+		int allSize = ClassUtilities.serialize(classifier.getStreamState("all")).length;
+		Assert.assertTrue(noneSize + " is not less than " + allSize, 4 * noneSize < allSize);
+	}
+
+	/**
+	 * Make sure streams that are not updated get the same results as a dedicated instance when classified concurrently.
+	 */
+	@Test
+	public void testConcurrentNonUpdatingStreams() throws Exception {
+		FixedAnomalyDetectorClassifier classifier = getTrainedClassifier(-1);
+		final List<List<SoundRecording>> streams = getStreams();
+		final List<List<Map<String, Classification>>> expected = new ArrayList<List<Map<String, Classification>>>();
+		for (List<SoundRecording> stream : streams) {
+			FixedAnomalyDetectorClassifier dedicated = copy(classifier);
+			List<Map<String, Classification>> results = new ArrayList<Map<String, Classification>>();
+			for (SoundRecording sr : stream)
+				results.add(dedicated.classify("dedicated", sr.getDataWindow(), UpdateMode.NONE));
+			expected.add(results);
+		}
+
+		final FixedAnomalyDetectorClassifier shared = copy(classifier);
+		final List<Throwable> errors = new ArrayList<Throwable>();
+		List<Thread> threads = new ArrayList<Thread>();
+		for (int s=0; s<STREAMS; s++) {
+			final int stream = s;
+			Thread t = new Thread() {
+				public void run() {
+					try {
+						for (int repeat=0; repeat<5; repeat++) {
+							List<SoundRecording> srList = streams.get(stream);
+							for (int w=0; w<srList.size(); w++) {
+								Map<String, Classification> result = shared.classify("stream" + stream, srList.get(w).getDataWindow(), UpdateMode.NONE);
+								assertSame(expected.get(stream).get(w), result);
+							}
+						}
+					} catch (Throwable e) {
+						synchronized (errors) {
+							errors.add(e);
+						}
+					}
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t : threads)
+			t.join();
+		Assert.assertTrue(errors.toString(), errors.isEmpty());
+		Assert.assertEquals(STREAMS, shared.getStreamCount());
+	}
+
+	@Test
+	public void testLearningStreamsMatchDedicated() throws Exception {
+		testInterleavedStreams(new OnlineNormalDistributionAnomalyClassifier(TRAINING_LABEL, 8), null);
+	}
+
+	@Test
+	public void testStreamsIndependentOfSingleDeployment() throws Exception {
+		FixedAnomalyDetectorClassifier classifier = getTrainedClassifier();
+		List<SoundRecording> stream = getStreams().get(3);
+		List<SoundRecording> other = getStreams().get(0);
+		FixedAnomalyDetectorClassifier dedicated = copy(classifier);
+		for (int i=0; i<stream.size(); i++) {
+			// The single deployment of classify(IDataWindow) sees a different environment.
+			classifier.classify(other.get(i).getDataWindow());
+			SoundRecording sr = stream.get(i);
+			assertSame(dedicated.classify(sr.getDataWindow()), classifier.classify("stream", sr.getDataWindow()));
+		}
+	}
+
+	@Test
+	public void testStreamEviction() throws Exception {
+		FixedAnomalyDetectorClassifier classifier = getTrainedClassifier();
+		SoundRecording sr = getStreams().get(0).get(0);
+		classifier.setStreamLimits(3, 0);
+		for (int i=0; i<5; i++)
+			classifier.classify("stream" + i, sr.getDataWindow());
+		Assert.assertEquals(3, classifier.getStreamCount());
+		Assert.assertNull(classifier.getStreamState("stream0"));
+		Assert.assertNull(classifier.getStreamState("stream1"));
+		Assert.assertEquals(1, classifier.getStreamState("stream4").getClassificationCount());
+
+		// Using a stream makes it the most recently used.
+		classifier.classify("stream2", sr.getDataWindow());
+		classifier.classify("stream5", sr.getDataWindow());
+		Assert.assertNotNull(classifier.getStreamState("stream2"));
+		Assert.assertNull(classifier.getStreamState("stream3"));
+
+		// Idle streams are forgotten.
+		classifier.setStreamLimits(100, 50);
+		Thread.sleep(100);
+		classifier.classify("stream6", sr.getDataWindow());
+		Assert.assertEquals(1, classifier.getStreamCount());
+		Assert.assertTrue(classifier.removeStream("stream6"));
+		Assert.assertEquals(0, classifier.getStreamCount());
+	}
+
+	@Test
+	public void testSnapshotRestore() throws Exception {
+		FixedAnomalyDetectorClassifier classifier = getTrainedClassifier();
+		FixedAnomalyDetectorClassifier other = copy(classifier);
+		List<SoundRecording> stream = getStreams().get(4);
+		int half = stream.size() / 2;
+		for (int i=0; i<half; i++)
+			classifier.classify("stream", stream.get(i).getDataWindow());
+		StreamState state = classifier.getStreamState("stream");
+		Assert.assertEquals(half, state.getClassificationCount());
+
+		// Continue the stream on another copy of the model from the saved state, and on the original.
+		other.setStreamState("moved", (StreamState)ClassUtilities.deserialize(ClassUtilities.serialize(state)));
+		for (int i=half; i<stream.size(); i++) {
+			Map<String, Classification> expected = classifier.classify("stream", stream.get(i).getDataWindow());
+			assertSame(expected, other.classify("moved", stream.get(i).getDataWindow()));
+		}
+		// Restoring rewinds the stream.
+		classifier.setStreamState("stream", state);
+		Assert.assertEquals(half, classifier.getStreamState("stream").getClassificationCount());
+	}
+
+}
@@ -0,0 +1,248 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.cnn;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.deeplearning4j.nn.conf.MultiLayerConfiguration;
+import org.deeplearning4j.nn.conf.NeuralNetConfiguration;
+import org.deeplearning4j.nn.conf.inputs.InputType;
+import org.deeplearning4j.nn.conf.layers.ConvolutionLayer;
+import org.deeplearning4j.nn.conf.layers.DenseLayer;
+import org.deeplearning4j.nn.conf.layers.OutputLayer;
+import org.deeplearning4j.nn.conf.layers.SubsamplingLayer;
+import org.deeplearning4j.nn.multilayer.MultiLayerNetwork;
+import org.deeplearning4j.nn.weights.WeightInit;
+import org.eng.aisp.classifier.Classification;
+import org.eng.aisp.classifier.Classification.LabelValue;
+import org.eng.aisp.feature.DoubleFeature;
+import org.eng.aisp.feature.FeatureGram;
+import org.eng.aisp.feature.IFeature;
+import org.eng.aisp.feature.IFeatureGram;
+import org.eng.aisp.feature.IFeatureGramDescriptor;
+import org.eng.aisp.feature.ILabeledFeatureGram;
+import org.eng.aisp.feature.LabeledFeatureGram;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+import org.nd4j.linalg.activations.Activation;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.lossfunctions.LossFunctions;
+
+/**
+ * Tests the concurrent classification of a small untrained network, on the CPU.
+ */
+public class FixedCNNClassifierTest {
+
+	private static final String LABEL = "label";
+	private static final int SUB_WINDOWS = 12;
+	private static final int FEATURE_LENGTH = 16;
+	private static final int OUTPUTS = 3;
+
+	private static MultiLayerNetwork getNetwork() {
+		MultiLayerConfiguration conf = new NeuralNetConfiguration.Builder()
+				.seed(1)
+				.weightInit(WeightInit.XAVIER)
+				.list()
+				.layer(0, new ConvolutionLayer.Builder(3, 3).stride(1, 1).nOut(8).activation(Activation.RELU).build())
+				.layer(1, new SubsamplingLayer.Builder(SubsamplingLayer.PoolingType.MAX).kernelSize(2,2).stride(2,2).build())
+				.layer(2, new DenseLayer.Builder().activation(Activation.RELU).nOut(32).build())
+				.layer(3, new OutputLayer.Builder(LossFunctions.LossFunction.RECONSTRUCTION_CROSSENTROPY).nOut(OUTPUTS).activation(Activation.SOFTMAX).build())
+				.setInputType(InputType.convolutional(SUB_WINDOWS, FEATURE_LENGTH, 1))
+				.build();
+		MultiLayerNetwork model = new MultiLayerNetwork(conf);
+		model.init();
+		return model;
+	}
+
+	private static FixedCNNClassifier getClassifier(MultiLayerNetwork model, int replicas) {
+		return getClassifier(model, replicas, 1, 0);
+	}
+
+	private static FixedCNNClassifier getClassifier(MultiLayerNetwork model, int replicas, int batchSize, int batchWaitMsec) {
+		Map<Integer,String> labels = new HashMap<Integer,String>();
+		for (int i=0; i<OUTPUTS; i++)
+			labels.put(i, "value" + i);
+		return new FixedCNNClassifier(LABEL, new ArrayList<IFeatureGramDescriptor<double[],double[]>>(), 1, OUTPUTS, labels,
+				FEATURE_LENGTH, SUB_WINDOWS, 1, model.getLayerWiseConfigurations().toJson(), model.params().dup(), replicas,
+				batchSize, batchWaitMsec);
+	}
+
+	/**
+	 * Get feature grams, some with fewer sub-windows or shorter features than the network expects.
+	 */
+	private static List<IFeatureGram<double[]>> getFeatureGrams(int count) {
+		Random rand = new Random(1);
+		List<IFeatureGram<double[]>> featureGrams = new ArrayList<IFeatureGram<double[]>>();
+		for (int i=0; i<count; i++) {
+			int subWindows = i % 5 == 0 ? SUB_WINDOWS - 3 : SUB_WINDOWS;
+			int length = i % 7 == 0 ? FEATURE_LENGTH - 2 : FEATURE_LENGTH;
+			IFeature<double[]>[] features = new IFeature[subWindows];
+			for (int j=0; j<subWindows; j++) {
+				double[] data = new double[length];
+				for (int k=0; k<length; k++)
+					data[k] = rand.nextGaussian();
+				features[j] = new DoubleFeature(j * 10, j * 10 + 20, data);
+			}
+			featureGrams.add(new FeatureGram<double[]>(features));
+		}
+		return featureGrams;
+	}
+
+	/**
+	 * Compute the output of the network for the feature gram through a FeatureDataSetIterator, as classify() used to.
+	 */
+	private static double[] serialOutput(MultiLayerNetwork model, IFeatureGram<double[]> featureGram) throws Exception {
+		Properties p = new Properties();
+		p.setProperty(LABEL, "value0");
+		ILabeledFeatureGram<double[]>[] lfgArray = new ILabeledFeatureGram[] { new LabeledFeatureGram<double[]>(featureGram, p) };
+		List<ILabeledFeatureGram<double[]>[]> labeledFeatureGrams = new ArrayList<ILabeledFeatureGram<double[]>[]>();
+		labeledFeatureGrams.add(lfgArray);
+		FeatureDataSetIterator iterator = new FeatureDataSetIterator(labeledFeatureGrams, 1, LABEL, FEATURE_LENGTH, SUB_WINDOWS, 1);
+		INDArray output = model.output(iterator.next().getFeatures(), false);
+		double[] values = new double[OUTPUTS];
+		for (int i=0; i<OUTPUTS; i++)
+			values[i] = output.getDouble(0, i);
+		return values;
+	}
+
+	private static void assertMatches(double[] expected, Classification c) {
+		assertMatches(expected, c, 0);
+	}
+
+	private static void assertMatches(double[] expected, Classification c, double tolerance) {
+		List<LabelValue> ranked = c.getRankedValues();
+		Assert.assertEquals(expected.length, ranked.size());
+		double prev = Double.POSITIVE_INFINITY;
+		for (LabelValue lv : ranked) {
+			int index = Integer.parseInt(lv.getLabelValue().substring("value".length()));
+			Assert.assertEquals(expected[index], lv.getConfidence(), tolerance);
+			Assert.assertTrue(lv.getConfidence() <= prev);
+			prev = lv.getConfidence();
+		}
+	}
+
+	@Test
+	public void testMatchesSerialPath() throws Exception {
+		MultiLayerNetwork model = getNetwork();
+		FixedCNNClassifier classifier = getClassifier(model, 2);
+		for (IFeatureGram<double[]> fg : getFeatureGrams(20)) {
+			List<Classification> c = classifier.classify(new IFeatureGram[] { fg });
+			Assert.assertEquals(1, c.size());
+			assertMatches(serialOutput(model, fg), c.get(0));
+		}
+	}
+
+	@Test
+	public void testConcurrentClassify() throws Exception {
+		MultiLayerNetwork model = getNetwork();
+		testConcurrentClassify(model, getClassifier(model, 4), 4, 0);
+	}
+
+	@Test
+	public void testConcurrentBatchedClassify() throws Exception {
+		MultiLayerNetwork model = getNetwork();
+		// Batched matrix products may round differently than single examples.
+		testConcurrentClassify(model, getClassifier(model, 2, 8, 20), 16, 1e-6);
+	}
+
+	private void testConcurrentClassify(MultiLayerNetwork model, final FixedCNNClassifier classifier, int threads, double tolerance) throws Exception {
+		final List<IFeatureGram<double[]>> featureGrams = getFeatureGrams(40);
+		final List<double[]> expected = new ArrayList<double[]>();
+		for (IFeatureGram<double[]> fg : featureGrams)
+			expected.add(serialOutput(model, fg));
+
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<List<Classification>>> futures = new ArrayList<Future<List<Classification>>>();
+			for (int repeat=0; repeat<5; repeat++) {
+				for (final IFeatureGram<double[]> fg : featureGrams) {
+					futures.add(executor.submit(new Callable<List<Classification>>() {
+						@Override
+						public List<Classification> call() throws Exception {
+							return classifier.classify(new IFeatureGram[] { fg });
+						}
+					}));
+				}
+			}
+			for (int i=0; i<futures.size(); i++) 
+				assertMatches(expected.get(i % featureGrams.size()), futures.get(i).get().get(0), tolerance);
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	@Test
+	public void testThroughputScales() throws Exception {
+		int cpus = Runtime.getRuntime().availableProcessors();
+		Assume.assumeTrue("Requires more than 1 processor", cpus > 1);
+		int threads = Math.min(cpus, 4);
+		MultiLayerNetwork model = getNetwork();
+		FixedCNNClassifier classifier = getClassifier(model, threads);
+		List<IFeatureGram<double[]>> featureGrams = getFeatureGrams(50);
+		int count = 400;
+		classifyAll(classifier, featureGrams, count, threads);	// warm up all replicas
+		// Use the best of several runs to reduce the effect of other activity on the machine.
+		long serialMsec = Long.MAX_VALUE, parallelMsec = Long.MAX_VALUE;
+		for (int i=0; i<3; i++) {
+			serialMsec = Math.min(serialMsec, classifyAll(classifier, featureGrams, count, 1));
+			parallelMsec = Math.min(parallelMsec, classifyAll(classifier, featureGrams, count, threads));
+		}
+		double speedup = (double)serialMsec / parallelMsec;
+		System.out.println("Classified " + count + " with 1 thread in " + serialMsec + " msec and with " + threads + " threads in " + parallelMsec 
+				+ " msec, speedup=" + speedup);
+		Assert.assertTrue("Speedup with " + threads + " threads was only " + speedup, speedup > 1 + 0.25 * (threads - 1));
+	}
+
+	/**
+	 * Classify the feature grams repeatedly on the given number of threads.
+	 * @return the elapsed msec.
+	 */
+	private static long classifyAll(final FixedCNNClassifier classifier, final List<IFeatureGram<double[]>> featureGrams, final int count, int threads) throws Exception {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		try {
+			List<Future<Object>> futures = new ArrayList<Future<Object>>();
+			long start = System.currentTimeMillis();
+			for (int t=0; t<threads; t++) {
+				final int first = t;
+				final int stride = threads;
+				futures.add(executor.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						for (int i=first; i<count; i+=stride) 
+							classifier.classify(new IFeatureGram[] { featureGrams.get(i % featureGrams.size()) });
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> f : futures)
+				f.get();
+			return System.currentTimeMillis() - start;
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+}
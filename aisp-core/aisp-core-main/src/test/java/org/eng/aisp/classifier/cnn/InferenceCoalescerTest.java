@@ -0,0 +1,151 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.cnn;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.nd4j.linalg.api.ndarray.INDArray;
+import org.nd4j.linalg.factory.Nd4j;
+
+public class InferenceCoalescerTest {
+
+	/**
+	 * Outputs the sum of the values and the number of values of each example, and records the shape of each batch.
+	 */
+	private static class SummingModel implements InferenceCoalescer.IBatchModel {
+		final List<long[]> batchShapes = Collections.synchronizedList(new ArrayList<long[]>());
+
+		@Override
+		public INDArray output(INDArray batch) {
+			batchShapes.add(batch.shape());
+			int examples = (int)batch.size(0);
+			INDArray rows = batch.reshape(examples, batch.length() / examples);
+			double[][] output = new double[examples][2];
+			for (int i=0; i<examples; i++) {
+				output[i][0] = rows.getRow(i).sumNumber().doubleValue();
+				output[i][1] = rows.size(1);
+			}
+			return Nd4j.create(output);
+		}
+	}
+
+	private static double[] getValues(int index, int length) {
+		double[] values = new double[length];
+		for (int i=0; i<length; i++)
+			values[i] = index + i;
+		return values;
+	}
+
+	@Test
+	public void testConcurrentMixedShapes() throws Exception {
+		final int maxBatchSize = 8;
+		SummingModel model = new SummingModel();
+		final InferenceCoalescer coalescer = new InferenceCoalescer(model, maxBatchSize, 20);
+		final long[][] shapes = new long[][] { { 1, 3, 4 }, { 1, 5, 2 }, { 2, 3, 4 } };
+		ExecutorService executor = Executors.newFixedThreadPool(16);
+		try {
+			List<Future<Object>> futures = new ArrayList<Future<Object>>();
+			for (int t=0; t<16; t++) {
+				final int thread = t;
+				futures.add(executor.submit(new Callable<Object>() {
+					@Override
+					public Object call() throws Exception {
+						for (int i=0; i<20; i++) {
+							int index = thread * 100 + i;
+							long[] shape = shapes[index % shapes.length];
+							int length = (int)(shape[0] * shape[1] * shape[2]);
+							double[] values = getValues(index, length);
+							double[] output = coalescer.submit(values, shape).get();
+							double sum = 0;
+							for (double v : values)
+								sum += v;
+							Assert.assertEquals(sum, output[0], 1e-6);
+							Assert.assertEquals(length, output[1], 0);
+						}
+						return null;
+					}
+				}));
+			}
+			for (Future<Object> f : futures)
+				f.get();
+		} finally {
+			executor.shutdown();
+		}
+
+		int batched = 0;
+		for (long[] shape : model.batchShapes) {
+			Assert.assertTrue(shape[0] <= maxBatchSize);
+			if (shape[0] > 1)
+				batched++;
+		}
+		Assert.assertTrue("No requests were batched", batched > 0);
+	}
+
+	@Test
+	public void testLatencyBound() throws Exception {
+		int maxWaitMsec = 100;
+		SummingModel model = new SummingModel();
+		InferenceCoalescer coalescer = new InferenceCoalescer(model, 8, maxWaitMsec);
+		long[] shape = new long[] { 1, 2, 2 };
+		coalescer.submit(getValues(0, 4), shape).get();	// Warm up
+
+		// A single request waits for others up to the maximum wait, but not much longer.
+		long start = System.currentTimeMillis();
+		double[] output = coalescer.submit(getValues(1, 4), shape).get();
+		long msec = System.currentTimeMillis() - start;
+		Assert.assertEquals(1 + 2 + 3 + 4, output[0], 0);
+		Assert.assertTrue("Returned before the wait, in " + msec + " msec", msec >= maxWaitMsec - 10);
+		Assert.assertTrue("Took too long, " + msec + " msec", msec < maxWaitMsec + 1000);
+
+		// A full batch does not wait.
+		coalescer = new InferenceCoalescer(model, 4, 60 * 1000);
+		start = System.currentTimeMillis();
+		List<Future<double[]>> futures = new ArrayList<Future<double[]>>();
+		for (int i=0; i<4; i++)
+			futures.add(coalescer.submit(getValues(i, 4), shape));
+		for (Future<double[]> f : futures)
+			f.get();
+		msec = System.currentTimeMillis() - start;
+		Assert.assertTrue("Full batch took " + msec + " msec", msec < 5000);
+		long[] lastShape = model.batchShapes.get(model.batchShapes.size() - 1);
+		Assert.assertEquals(4, lastShape[0]);
+	}
+
+	@Test
+	public void testModelFailure() throws Exception {
+		InferenceCoalescer coalescer = new InferenceCoalescer(new InferenceCoalescer.IBatchModel() {
+			@Override
+			public INDArray output(INDArray batch) {
+				throw new IllegalStateException("failed");
+			}
+		}, 2, 10);
+		try {
+			coalescer.submit(getValues(0, 4), new long[] { 1, 2, 2 }).get();
+			Assert.fail("Expected an exception");
+		} catch (java.util.concurrent.ExecutionException e) {
+			Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+	}
+
+}
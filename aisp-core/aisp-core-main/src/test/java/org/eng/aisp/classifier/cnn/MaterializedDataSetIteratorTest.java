@@ -0,0 +1,237 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.cnn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Random;
+import java.util.Set;
+
+import org.eng.aisp.AISPException;
+import org.eng.aisp.AISPLogger;
+import org.eng.aisp.SoundRecording;
+import org.eng.aisp.SoundTestUtils;
+import org.eng.aisp.classifier.Classification;
+import org.eng.aisp.classifier.Classification.LabelValue;
+import org.eng.aisp.feature.DoubleFeature;
+import org.eng.aisp.feature.FeatureGram;
+import org.eng.aisp.feature.IFeature;
+import org.eng.aisp.feature.ILabeledFeatureGram;
+import org.eng.aisp.feature.LabeledFeatureGram;
+import org.junit.Assert;
+import org.junit.Test;
+import org.nd4j.linalg.dataset.DataSet;
+import org.nd4j.linalg.dataset.api.iterator.DataSetIterator;
+
+public class MaterializedDataSetIteratorTest {
+
+	private static final String LABEL = "label";
+	private static final int SUB_WINDOWS = 20;
+	private static final int FEATURE_LENGTH = 32;
+	private static final int LABEL_VALUES = 3;
+
+	/**
+	 * Get labeled feature grams, some with fewer sub-windows or shorter features than the first, which are padded by the iterators.
+	 */
+	private static List<ILabeledFeatureGram<double[]>[]> getFeatures(int count) {
+		Random rand = new Random(1);
+		List<ILabeledFeatureGram<double[]>[]> features = new ArrayList<ILabeledFeatureGram<double[]>[]>();
+		for (int i=0; i<count; i++) {
+			int subWindows = i % 5 == 1 ? SUB_WINDOWS - 3 : SUB_WINDOWS;
+			int length = i % 7 == 1 ? FEATURE_LENGTH - 2 : FEATURE_LENGTH;
+			IFeature<double[]>[] fg = new IFeature[subWindows];
+			for (int j=0; j<subWindows; j++) {
+				double[] data = new double[length];
+				for (int k=0; k<length; k++)
+					data[k] = rand.nextGaussian();
+				fg[j] = new DoubleFeature(j * 10, j * 10 + 20, data);
+			}
+			Properties labels = new Properties();
+			labels.setProperty(LABEL, "value" + (i % LABEL_VALUES));
+			features.add(new ILabeledFeatureGram[] { new LabeledFeatureGram<double[]>(new FeatureGram<double[]>(fg), labels) });
+		}
+		return features;
+	}
+
+	private static List<float[]> getRows(DataSetIterator iterator, boolean labels) {
+		List<float[]> rows = new ArrayList<float[]>();
+		iterator.reset();
+		while (iterator.hasNext()) {
+			DataSet ds = iterator.next();
+			int n = (int)ds.getFeatures().size(0);
+			float[] data = (labels ? ds.getLabels() : ds.getFeatures()).reshape(n, -1).castTo(org.nd4j.linalg.api.buffer.DataType.FLOAT).data().asFloat();
+			int length = data.length / n;
+			for (int i=0; i<n; i++) 
+				rows.add(Arrays.copyOfRange(data, i * length, (i + 1) * length));
+		}
+		return rows;
+	}
+
+	private static void assertSameRows(List<float[]> expected, List<float[]> actual) {
+		Assert.assertEquals(expected.size(), actual.size());
+		for (int i=0; i<expected.size(); i++)
+			Assert.assertTrue("Row " + i, Arrays.equals(expected.get(i), actual.get(i)));
+	}
+
+	@Test
+	public void testMatchesSource() throws AISPException {
+		FeatureDataSetIterator source = new FeatureDataSetIterator(getFeatures(53), 8, LABEL, null, null, 1);
+		List<float[]> expectedFeatures = getRows(source, false);
+		List<float[]> expectedLabels = getRows(source, true);
+		Assert.assertEquals(53, expectedFeatures.size());
+
+		long exampleBytes = 4 * SUB_WINDOWS * FEATURE_LENGTH; 
+		MaterializedDataSetIterator inMemory = new MaterializedDataSetIterator(source, false, 1, Long.MAX_VALUE);
+		MaterializedDataSetIterator mapped = new MaterializedDataSetIterator(source, false, 1, 0, 10 * exampleBytes);
+		Assert.assertFalse(inMemory.isMemoryMapped());
+		Assert.assertTrue(mapped.isMemoryMapped());
+		for (MaterializedDataSetIterator iterator : new MaterializedDataSetIterator[] { inMemory, mapped }) {
+			Assert.assertEquals(53, iterator.getNumExamples());
+			Assert.assertEquals(source.totalOutcomes(), iterator.totalOutcomes());
+			for (int epoch=0; epoch<2; epoch++) {
+				assertSameRows(expectedFeatures, getRows(iterator, false));
+				assertSameRows(expectedLabels, getRows(iterator, true));
+			}
+			// Batches have the source's shape and size 
+			iterator.reset();
+			DataSet ds = iterator.next();
+			Assert.assertTrue(Arrays.equals(new long[] { 8, 1, SUB_WINDOWS, FEATURE_LENGTH }, ds.getFeatures().shape()));
+			Assert.assertTrue(Arrays.equals(new long[] { 8, LABEL_VALUES }, ds.getLabels().shape()));
+		}
+	}
+
+	@Test
+	public void testShuffle() throws AISPException {
+		FeatureDataSetIterator source = new FeatureDataSetIterator(getFeatures(40), 6, LABEL, null, null, 1);
+		List<float[]> expected = getRows(source, false);
+		Set<String> expectedSet = new HashSet<String>();
+		for (float[] row : expected)
+			expectedSet.add(Arrays.toString(row));
+
+		MaterializedDataSetIterator shuffled = new MaterializedDataSetIterator(source, true, 3, Long.MAX_VALUE);
+		MaterializedDataSetIterator repeat = new MaterializedDataSetIterator(source, true, 3, Long.MAX_VALUE);
+		List<float[]> previous = null;
+		for (int epoch=0; epoch<3; epoch++) {
+			List<float[]> rows = getRows(shuffled, false);
+			// Repeatable with the same seed
+			assertSameRows(rows, getRows(repeat, false));
+			// A permutation of the source, different in each epoch.
+			Set<String> rowSet = new HashSet<String>();
+			for (float[] row : rows)
+				rowSet.add(Arrays.toString(row));
+			Assert.assertEquals(expectedSet, rowSet);
+			if (previous != null) {
+				boolean same = true;
+				for (int i=0; same && i<rows.size(); i++)
+					same = Arrays.equals(previous.get(i), rows.get(i));
+				Assert.assertFalse("Epoch " + epoch + " has the same order as the previous", same);
+			}
+			previous = rows;
+		}
+
+		// The view shares the storage but is not shuffled.
+		assertSameRows(expected, getRows(shuffled.getUnshuffledView(), false));
+	}
+
+	/**
+	 * Measure the time of passes over the data with and without materialization, which is the time saved in each epoch of training.
+	 */
+	@Test
+	public void testEpochTime() throws AISPException {
+		int epochs = 10;
+		FeatureDataSetIterator source = new FeatureDataSetIterator(getFeatures(500), 32, LABEL, null, null, 1);
+		getRows(source, false);	// warm up
+
+		long start = System.nanoTime();
+		for (int i=0; i<epochs; i++) 
+			iterate(source);
+		double streamedMsec = (System.nanoTime() - start) / 1e6 / epochs;
+
+		start = System.nanoTime();
+		MaterializedDataSetIterator materialized = new MaterializedDataSetIterator(source, true, 1, Long.MAX_VALUE);
+		double packMsec = (System.nanoTime() - start) / 1e6;
+		start = System.nanoTime();
+		for (int i=0; i<epochs; i++) 
+			iterate(materialized);
+		double materializedMsec = (System.nanoTime() - start) / 1e6 / epochs;
+
+		AISPLogger.logger.info("Per-epoch iteration time: streamed=" + streamedMsec + " msec, materialized=" + materializedMsec 
+				+ " msec, packing=" + packMsec + " msec");
+		Assert.assertTrue("Materialized epochs (" + materializedMsec + " msec) are not faster than streamed (" + streamedMsec + " msec)", 
+				materializedMsec < streamedMsec);
+	}
+
+	private static void iterate(DataSetIterator iterator) {
+		iterator.reset();
+		while (iterator.hasNext())
+			iterator.next();
+	}
+
+	private static List<SoundRecording> getSounds() {
+		List<SoundRecording> sounds = new ArrayList<SoundRecording>();
+		int htz = 1000;
+		for (int i=0; i<LABEL_VALUES; i++) {
+			Properties labels = new Properties();
+			labels.setProperty(LABEL, "value" + i);
+			sounds.addAll(SoundTestUtils.createTrainingRecordings(6, 800, htz, labels, true));
+			htz *= 2;
+		}
+		return sounds;
+	}
+
+	private static List<Map<String, Classification>> train(List<SoundRecording> sounds, boolean materialize, boolean shuffle) throws AISPException {
+		CNNClassifier classifier = (CNNClassifier)new CNNClassifierBuilder()
+				.setNumberOfEpochs(3)
+				.setBatchSize(4)
+				.setTrainingFolds(0)
+				.setEarlyStoppingEnabled(false)
+				.setMaterializeTrainingData(materialize)
+				.setShuffleTrainingData(shuffle)
+				.build();
+		classifier.train(LABEL, sounds);
+		List<Map<String, Classification>> classifications = new ArrayList<Map<String, Classification>>();
+		for (SoundRecording sr : sounds)
+			classifications.add(classifier.classify(sr.getDataWindow()));
+		return classifications;
+	}
+
+	private static void assertSameClassifications(List<Map<String, Classification>> expected, List<Map<String, Classification>> actual) {
+		Assert.assertEquals(expected.size(), actual.size());
+		for (int i=0; i<expected.size(); i++) {
+			List<LabelValue> e = expected.get(i).get(LABEL).getRankedValues();
+			List<LabelValue> a = actual.get(i).get(LABEL).getRankedValues();
+			Assert.assertEquals(e.size(), a.size());
+			for (int j=0; j<e.size(); j++) {
+				Assert.assertEquals(e.get(j).getLabelValue(), a.get(j).getLabelValue());
+				Assert.assertEquals(e.get(j).getConfidence(), a.get(j).getConfidence(), 0);
+			}
+		}
+	}
+
+	@Test
+	public void testTrainingMatchesStreamed() throws AISPException {
+		List<SoundRecording> sounds = getSounds();
+		List<Map<String, Classification>> expected = train(sounds, false, false);
+		assertSameClassifications(expected, train(sounds, true, false));
+		// Shuffled training is repeatable.
+		assertSameClassifications(train(sounds, true, true), train(sounds, true, true));
+	}
+
+}
@@ -0,0 +1,204 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.gaussianmixture;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eng.aisp.AISPException;
+import org.eng.aisp.classifier.Classification;
+import org.eng.aisp.feature.DoubleFeature;
+import org.eng.aisp.feature.FeatureGram;
+import org.eng.aisp.feature.IFeature;
+import org.eng.aisp.feature.IFeatureGram;
+import org.eng.aisp.feature.IFeatureGramDescriptor;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class FixedSingleGaussianMixtureTest {
+
+	private static double[] randomVector(Random rand, int dim, double offset, double scale) {
+		double[] v = new double[dim];
+		for (int i=0; i<dim; i++)
+			v[i] = offset + scale * rand.nextGaussian();
+		return v;
+	}
+
+	/**
+	 * Create a random symmetric positive definite covariance A'A/dim + I.
+	 */
+	private static double[][] randomCovariance(Random rand, int dim) {
+		double[][] a = new double[dim][];
+		for (int i=0; i<dim; i++)
+			a[i] = randomVector(rand, dim, 0, 1);
+		double[][] cov = new double[dim][dim];
+		for (int i=0; i<dim; i++) {
+			for (int j=0; j<=i; j++) {
+				double sum = 0;
+				for (int k=0; k<dim; k++)
+					sum += a[k][i] * a[k][j];
+				sum /= dim;
+				if (i == j)
+					sum += 1;
+				cov[i][j] = sum;
+				cov[j][i] = sum;
+			}
+		}
+		return cov;
+	}
+
+	private static double[] positive(double[] v) {
+		double[] p = new double[v.length];
+		for (int i=0; i<v.length; i++)
+			p[i] = 0.5 + Math.abs(v[i]);
+		return p;
+	}
+
+	@Test
+	public void testLogDensityMatchesDensity() {
+		Random rand = new Random(1);
+		int dim = 8;
+		for (int trial=0; trial<10; trial++) {
+			double[] mean = randomVector(rand, dim, 0, 1);
+			IFixedSingleGaussian full = new FixedSingleGaussianFullCovariance(mean, randomCovariance(rand, dim));
+			IFixedSingleGaussian diag = new FixedSingleGaussianDiagCovariance(mean, positive(randomVector(rand, dim, 0, 1)));
+			for (int i=0; i<10; i++) {
+				double[] sample = randomVector(rand, dim, 0, 1);
+				for (IFixedSingleGaussian g : new IFixedSingleGaussian[] { full, diag }) {
+					double density = g.density(sample);
+					Assert.assertTrue(density > 0);
+					Assert.assertEquals(Math.log(density), g.logDensity(sample), 1e-9);
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testFullCovarianceMatchesDiagonal() {
+		Random rand = new Random(2);
+		int dim = 16;
+		double[] mean = randomVector(rand, dim, 0, 1);
+		double[] variance = positive(randomVector(rand, dim, 0, 1));
+		double[][] covariance = new double[dim][dim];
+		for (int i=0; i<dim; i++)
+			covariance[i][i] = variance[i];
+		IFixedSingleGaussian full = new FixedSingleGaussianFullCovariance(mean, covariance);
+		IFixedSingleGaussian diag = new FixedSingleGaussianDiagCovariance(mean, variance);
+		for (int i=0; i<20; i++) {
+			double[] sample = randomVector(rand, dim, 0, 3);
+			Assert.assertEquals(diag.logDensity(sample), full.logDensity(sample), 1e-9);
+		}
+	}
+
+	@Test
+	public void testMixtureLogDensityMatchesDensity() {
+		Random rand = new Random(3);
+		int dim = 6;
+		FixedSingleGaussianMixture mixture = new FixedSingleGaussianMixture(new double[] { 0.2, 0.5, 0.3 }, new IFixedSingleGaussian[] {
+			new FixedSingleGaussianFullCovariance(randomVector(rand, dim, 0, 1), randomCovariance(rand, dim)),
+			new FixedSingleGaussianFullCovariance(randomVector(rand, dim, 1, 1), randomCovariance(rand, dim)),
+			new FixedSingleGaussianDiagCovariance(randomVector(rand, dim, -1, 1), positive(randomVector(rand, dim, 0, 1))),
+		});
+		for (int i=0; i<20; i++) {
+			double[] sample = randomVector(rand, dim, 0, 1);
+			Assert.assertEquals(Math.log(mixture.density(sample)), mixture.logDensity(sample), 1e-9);
+		}
+	}
+
+	@Test
+	public void testNoUnderflowHighDimension() throws AISPException {
+		Random rand = new Random(4);
+		int dim = 256;
+		double[] mean1 = randomVector(rand, dim, 0, 1);
+		double[] mean2 = randomVector(rand, dim, 0, 1);
+		double[][] covariance = randomCovariance(rand, dim);
+		double[] variance = positive(randomVector(rand, dim, 0, 1));
+		FixedSingleGaussianMixture model1 = new FixedSingleGaussianMixture(new double[] { 0.5, 0.5 }, new IFixedSingleGaussian[] {
+			new FixedSingleGaussianFullCovariance(mean1, covariance),
+			new FixedSingleGaussianDiagCovariance(mean1, variance),
+		});
+		FixedSingleGaussianMixture model2 = new FixedSingleGaussianMixture(new double[] { 0.5, 0.5 }, new IFixedSingleGaussian[] {
+			new FixedSingleGaussianFullCovariance(mean2, covariance),
+			new FixedSingleGaussianDiagCovariance(mean2, variance),
+		});
+
+		// Samples near mean1, but far enough from both means in 256 dimensions for the densities to underflow.
+		IFeature<double[]>[] features = new IFeature[4];
+		for (int i=0; i<features.length; i++) {
+			double[] sample = randomVector(rand, dim, 0, 3);
+			for (int k=0; k<dim; k++)
+				sample[k] += mean1[k];
+			// Both linear densities are reduced to the floor of MIN_POSTERIOR_PROBABILITY per component, so cannot be told apart.
+			Assert.assertEquals(model1.density(sample), model2.density(sample), 0);
+			Assert.assertTrue(model1.density(sample) <= 2 * FixedSingleGaussianMixture.MIN_POSTERIOR_PROBABILITY);
+			double logDensity1 = model1.logDensity(sample);
+			double logDensity2 = model2.logDensity(sample);
+			Assert.assertTrue(!Double.isInfinite(logDensity1) && !Double.isNaN(logDensity1));
+			Assert.assertTrue(!Double.isInfinite(logDensity2) && !Double.isNaN(logDensity2));
+			Assert.assertTrue(logDensity1 > logDensity2);
+			features[i] = new DoubleFeature(i * 100, (i+1) * 100, sample);
+		}
+
+		List<String> labels = new ArrayList<String>();
+		labels.add("near");
+		labels.add("far");
+		List<FixedSingleGaussianMixture> models = new ArrayList<FixedSingleGaussianMixture>();
+		models.add(model1);
+		models.add(model2);
+		FixedGMMClassifier classifier = new FixedGMMClassifier("label", new ArrayList<IFeatureGramDescriptor<double[],double[]>>(),
+				labels, models, -Double.MAX_VALUE);
+		List<Classification> classifications = classifier.classify(new IFeatureGram[] { new FeatureGram<double[]>(features) });
+		Assert.assertEquals(1, classifications.size());
+		Classification c = classifications.get(0);
+		Assert.assertEquals("near", c.getLabelValue());
+		Assert.assertTrue(c.getConfidence() > 0.99);
+		Assert.assertFalse(Double.isNaN(c.getConfidence()));
+	}
+
+	@Test
+	public void testSerializedFullCovariance() throws Exception {
+		Random rand = new Random(5);
+		int dim = 32;
+		FixedSingleGaussianFullCovariance g = new FixedSingleGaussianFullCovariance(randomVector(rand, dim, 0, 1), randomCovariance(rand, dim));
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(g);
+		oos.close();
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+		FixedSingleGaussianFullCovariance g2 = (FixedSingleGaussianFullCovariance)ois.readObject();
+		Assert.assertEquals(g, g2);
+		for (int i=0; i<10; i++) {
+			double[] sample = randomVector(rand, dim, 0, 1);
+			Assert.assertEquals(g.logDensity(sample), g2.logDensity(sample), 0);
+		}
+	}
+
+	@Test
+	public void testSingularCovariance() {
+		double[] mean = new double[] { 1, 2, 3 };
+		double[][] covariance = new double[][] { { 1, 1, 0 }, { 1, 1, 0 }, { 0, 0, 2 } };
+		IFixedSingleGaussian g = new FixedSingleGaussianFullCovariance(mean, covariance);
+		double[] sample = new double[] { 1.5, 2.5, 2 };
+		Assert.assertFalse(Double.isNaN(g.logDensity(sample)));
+		Assert.assertEquals(Math.log(g.density(sample)), g.logDensity(sample), 1e-9);
+	}
+
+}
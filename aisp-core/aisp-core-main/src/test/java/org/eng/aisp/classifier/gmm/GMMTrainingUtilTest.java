@@ -0,0 +1,222 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.gmm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.eng.aisp.AISPException;
+import org.eng.aisp.classifier.gaussianmixture.FixedSingleGaussianDiagCovariance;
+import org.eng.aisp.classifier.gaussianmixture.FixedSingleGaussianFullCovariance;
+import org.eng.aisp.classifier.gaussianmixture.FixedSingleGaussianMixture;
+import org.eng.aisp.classifier.gaussianmixture.FixedSingleGaussianMixture.PosteriorAndSumProb;
+import org.eng.aisp.classifier.gaussianmixture.IFixedSingleGaussian;
+import org.eng.aisp.feature.DoubleFeature;
+import org.eng.aisp.feature.IFeature;
+import org.eng.aisp.util.MatrixUtil;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class GMMTrainingUtilTest {
+
+	private static final int DIM = 6;
+	private static final int GAUSSIANS = 4;
+
+	/**
+	 * Create features drawn from a few clusters with different spreads.
+	 */
+	private static List<IFeature<double[]>> getFeatures(int count, long seed) {
+		Random rand = new Random(seed);
+		int clusters = 3;
+		double[][] centers = new double[clusters][DIM];
+		for (int c=0; c<clusters; c++) {
+			for (int i=0; i<DIM; i++)
+				centers[c][i] = 4 * rand.nextGaussian();
+		}
+		List<IFeature<double[]>> features = new ArrayList<IFeature<double[]>>();
+		for (int k=0; k<count; k++) {
+			int c = k % clusters;
+			double[] fv = new double[DIM];
+			for (int i=0; i<DIM; i++)
+				fv[i] = centers[c][i] + (c + 1) * 0.5 * rand.nextGaussian() + (i > 0 ? 0.3 * fv[i-1] : 0);
+			features.add(new DoubleFeature(k * 20, k * 20 + 40, fv));
+		}
+		return features;
+	}
+
+	private static double averageLogLikelihood(FixedSingleGaussianMixture model, List<IFeature<double[]>> features) {
+		double sum = 0;
+		for (IFeature<double[]> fe : features)
+			sum += model.logDensity(fe.getData());
+		return sum / features.size();
+	}
+
+	@Test
+	public void testDiagonalMatchesSerialEM() throws AISPException {
+		compareToSerialEM(true);
+	}
+
+	@Test
+	public void testFullMatchesSerialEM() throws AISPException {
+		compareToSerialEM(false);
+	}
+
+	private void compareToSerialEM(boolean diagonalCovariance) throws AISPException {
+		// Enough features to be divided into several partitions.
+		List<IFeature<double[]>> features = getFeatures(4000, 1);
+		FixedSingleGaussianMixture expected = serialEM(DIM, GAUSSIANS, diagonalCovariance, features);
+		FixedSingleGaussianMixture model = GMMTrainingUtil.train(DIM, GAUSSIANS, diagonalCovariance, features);
+		double expectedLL = averageLogLikelihood(expected, features);
+		double ll = averageLogLikelihood(model, features);
+		Assert.assertEquals(expectedLL, ll, Math.abs(expectedLL) * 1e-6);
+
+		// The statistics of the partitions are summed in a fixed order, so training is repeatable.
+		Assert.assertEquals(model, GMMTrainingUtil.train(DIM, GAUSSIANS, diagonalCovariance, features));
+	}
+
+	@Test
+	public void testSinglePrecision() throws AISPException {
+		List<IFeature<double[]>> features = getFeatures(2000, 2);
+		for (boolean diagonalCovariance : new boolean[] { true, false }) {
+			FixedSingleGaussianMixture expected = GMMTrainingUtil.train(DIM, GAUSSIANS, diagonalCovariance, features);
+			FixedSingleGaussianMixture model = GMMTrainingUtil.train(DIM, GAUSSIANS, diagonalCovariance, features, true, 0);
+			double expectedLL = averageLogLikelihood(expected, features);
+			double ll = averageLogLikelihood(model, features);
+			Assert.assertEquals(expectedLL, ll, Math.abs(expectedLL) * 1e-3);
+		}
+	}
+
+	@Test
+	public void testMiniBatch() throws AISPException {
+		List<IFeature<double[]>> features = getFeatures(20000, 3);
+		for (boolean diagonalCovariance : new boolean[] { true, false }) {
+			FixedSingleGaussianMixture expected = GMMTrainingUtil.train(DIM, GAUSSIANS, diagonalCovariance, features);
+			FixedSingleGaussianMixture model = GMMTrainingUtil.train(DIM, GAUSSIANS, diagonalCovariance, features, false, 1000);
+			double expectedLL = averageLogLikelihood(expected, features);
+			double ll = averageLogLikelihood(model, features);
+			// Mini-batches may find a better or slightly worse optimum.
+			Assert.assertTrue(ll > expectedLL - Math.abs(expectedLL) * 0.02);
+			Assert.assertEquals(model, GMMTrainingUtil.train(DIM, GAUSSIANS, diagonalCovariance, features, false, 1000));
+		}
+	}
+
+	@Test
+	public void testShortFeatures() throws AISPException {
+		List<IFeature<double[]>> features = getFeatures(1000, 4);
+		features.set(10, new DoubleFeature(0, 40, Arrays.copyOf(features.get(10).getData(), DIM - 2)));
+		FixedSingleGaussianMixture expected = serialEM(DIM, GAUSSIANS, false, features);
+		FixedSingleGaussianMixture model = GMMTrainingUtil.train(DIM, GAUSSIANS, false, features);
+		double expectedLL = averageLogLikelihood(expected, features);
+		double ll = averageLogLikelihood(model, features);
+		Assert.assertEquals(expectedLL, ll, Math.abs(expectedLL) * 1e-6);
+	}
+
+	@Test(expected=AISPException.class)
+	public void testNoFeatures() throws AISPException {
+		GMMTrainingUtil.train(DIM, GAUSSIANS, true, new ArrayList<IFeature<double[]>>());
+	}
+
+	/**
+	 * The EM implementation that iterated the features serially in each round, before they were copied into a matrix.
+	 */
+	private static FixedSingleGaussianMixture serialEM(int dim, int numGaussiansToMix, boolean diagonalCovariance, Iterable<IFeature<double[]>> features) throws AISPException {
+		Random random = new Random(1443523423);
+		double[] mixtureWeights = new double[numGaussiansToMix];
+		IFixedSingleGaussian[] fixedModels = new IFixedSingleGaussian[numGaussiansToMix];
+		for (int m=0; m<numGaussiansToMix; m++) {
+			double[] newMean = new double[dim];
+			double[][] newCovariance = new double[dim][dim];
+			for (int i=0; i<dim; i++) {
+				newMean[i] = random.nextDouble() - 0.5;
+				newCovariance[i][i] = GMMTrainingUtil.INITIAL_VALUE_DIAGONAL_COVARIANCE;
+			}
+			if (diagonalCovariance) 
+				fixedModels[m] = new FixedSingleGaussianDiagCovariance(newMean, MatrixUtil.selectDiagonalComponents(newCovariance));
+			else
+				fixedModels[m] = new FixedSingleGaussianFullCovariance(newMean, newCovariance);
+			mixtureWeights[m] = 1.0 / numGaussiansToMix;
+		}
+
+		double prevSumProb = 0.0;
+		for (int emRound = 0; emRound < GMMTrainingUtil.EM_MAX_ROUND; emRound++) {
+			boolean isLastRound = false;
+			FixedSingleGaussianMixture tmpModel = new FixedSingleGaussianMixture(mixtureWeights, fixedModels);
+			double[][] newMean = new double[numGaussiansToMix][dim];
+			double[][][] newCovariance = new double[numGaussiansToMix][dim][dim];
+			double[] posteriorProbAllSamples = new double[numGaussiansToMix];
+			int sampleCount = 0;
+			double sumProb = 0.0;
+			for (IFeature<double[]> fe : features) {
+				double[] fv = fe.getData();
+				PosteriorAndSumProb posteriorAndSumProb = tmpModel.computePosteriorAndSumProb(fv);
+				double[] posteriorProb = posteriorAndSumProb.getPosteriorProb();
+				sumProb += posteriorAndSumProb.getSumProb();
+				for (int n=0; n<numGaussiansToMix; n++) {
+					for (int i=0; i<Math.min(dim, fv.length); i++) 
+						newMean[n][i] += posteriorProb[n] * fv[i];
+					posteriorProbAllSamples[n] += posteriorProb[n]; 
+					for (int i=0; i<Math.min(dim, fv.length); i++) {
+						if (diagonalCovariance) {
+							newCovariance[n][i][i] += posteriorProb[n] * fv[i] * fv[i];
+						} else {
+							for (int j=0; j<Math.min(dim, fv.length); j++) 
+								newCovariance[n][i][j] += posteriorProb[n] * fv[i] * fv[j];
+						}
+					}
+				}
+				sampleCount++;
+			}
+			if (sampleCount == 0)
+				throw new AISPException("No features");
+			for (int n=0; n<numGaussiansToMix; n++) {
+				for (int i=0; i<dim; i++) 
+					newMean[n][i] /= posteriorProbAllSamples[n];
+				for (int i=0; i<dim; i++) {
+					for (int j=0; j<dim; j++) {
+						if (diagonalCovariance && i != j)
+							continue;
+						newCovariance[n][i][j] /= posteriorProbAllSamples[n];
+						newCovariance[n][i][j] -= newMean[n][i] * newMean[n][j];
+						if (i == j) 
+							newCovariance[n][i][j] += GMMTrainingUtil.ADDED_VALUE_ON_DIAGONAL_COVARIANCE;
+					}
+				}
+			}
+			if (numGaussiansToMix == 1) {
+				isLastRound = true;
+			} else if (prevSumProb != 0) {
+				double sumProbRatio = sumProb / prevSumProb;
+				if ((sumProbRatio >= 1.0) && (sumProbRatio < 1.0 + GMMTrainingUtil.TERMINATION_REL_INCREMENT)) 
+					isLastRound = true;   
+			}
+			prevSumProb = sumProb;
+			double scale = 1.0 / sampleCount;
+			for (int n=0; n<numGaussiansToMix; n++) {
+				if (diagonalCovariance) 
+					fixedModels[n] = new FixedSingleGaussianDiagCovariance(newMean[n], MatrixUtil.selectDiagonalComponents(newCovariance[n]));
+				else 
+					fixedModels[n] = new FixedSingleGaussianFullCovariance(newMean[n], newCovariance[n]);
+				mixtureWeights[n] = scale * posteriorProbAllSamples[n];
+			}
+			if (isLastRound) 
+				break;
+		}
+		return new FixedSingleGaussianMixture(mixtureWeights, fixedModels);
+	}
+
+}
@@ -0,0 +1,277 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.knn;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.eng.aisp.AISPException;
+import org.eng.aisp.classifier.Classification;
+import org.eng.aisp.classifier.knn.BaseKNNDataSummary.LabeledData;
+import org.eng.aisp.classifier.knn.merge.EuclidianDistanceMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.LpDistanceMergeKNNFunc;
+import org.eng.util.ClassUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class IncrementalKNNVectorSummarizerTest {
+
+	private final static int FEATURE_LENGTH = 40;
+	/** The dimension of the space in which the features are generated before being embedded in the FEATURE_LENGTH space */
+	private final static int INTRINSIC_DIMENSION = 3;
+	private final static int CLUSTERS = 20;
+	private final static int LABELS = 4;
+
+	/**
+	 * Generates labeled features near a set of clusters in a low dimensional space that is randomly embedded in the feature space,
+	 * similar to features extracted from sounds.
+	 */
+	private static class FeatureGenerator {
+		final Random rand;
+		final double[][] embedding = new double[INTRINSIC_DIMENSION][FEATURE_LENGTH];
+		final double[][] centers = new double[CLUSTERS][INTRINSIC_DIMENSION];
+
+		FeatureGenerator(long seed) {
+			rand = new Random(seed);
+			for (int i=0 ; i<INTRINSIC_DIMENSION ; i++) {
+				for (int j=0 ; j<FEATURE_LENGTH ; j++)
+					embedding[i][j] = rand.nextGaussian();
+			}
+			for (int i=0 ; i<CLUSTERS ; i++) {
+				for (int j=0 ; j<INTRINSIC_DIMENSION ; j++)
+					centers[i][j] = 10 * rand.nextDouble();
+			}
+		}
+
+		LabeledData<double[]> next() {
+			int cluster = rand.nextInt(CLUSTERS);
+			double[] feature = new double[FEATURE_LENGTH];
+			for (int i=0 ; i<INTRINSIC_DIMENSION ; i++) {
+				double x = centers[cluster][i] + rand.nextGaussian();
+				for (int j=0 ; j<FEATURE_LENGTH ; j++)
+					feature[j] += x * embedding[i][j];
+			}
+			for (int j=0 ; j<FEATURE_LENGTH ; j++)
+				feature[j] += 0.01 * rand.nextGaussian();
+			return new LabeledData<double[]>("L" + cluster % LABELS, feature);
+		}
+	}
+
+	/**
+	 * Make sure the closest pair of the same label is merged when the size is exceeded.
+	 */
+	@Test
+	public void testClosestPairMerged() throws AISPException {
+		// The default Lp distance is not a metric, so the indexes do a linear scan.
+		for (IDistanceFunction<double[]> distFunc : new IDistanceFunction[] { new EuclidianDistanceMergeKNNFunc(false), new LpDistanceMergeKNNFunc(false) }) 
+			testClosestPairMerged(distFunc);
+	}
+
+	private void testClosestPairMerged(IDistanceFunction<double[]> distFunc) throws AISPException {
+		IncrementalKNNVectorSummarizer summarizer = new IncrementalKNNVectorSummarizer(3, distFunc, 3, false, -1);
+		summarizer.mergeData("a", new double[] { 0 });
+		summarizer.mergeData("b", new double[] { 2 });
+		summarizer.mergeData("a", new double[] { 5 });
+		summarizer.mergeData("a", new double[] { 1 });
+		List<LabeledData<double[]>> data = summarizer.getListOfLabeledData();
+		Assert.assertEquals(3, data.size());
+		Assert.assertTrue(contains(data, "a", 0.5));
+		Assert.assertTrue(contains(data, "b", 2));
+		Assert.assertTrue(contains(data, "a", 5));
+
+		// The merged vector is weighted by the number of vectors merged into it.
+		summarizer.mergeData("a", new double[] { 3.5 });
+		Assert.assertEquals(3, data.size());
+		Assert.assertTrue(contains(data, "a", 0.5));
+		Assert.assertTrue(contains(data, "a", 4.25));
+
+		summarizer.mergeData("a", new double[] { 6.5 });
+		Assert.assertEquals(3, data.size());
+		Assert.assertTrue(contains(data, "a", (2 * 4.25 + 6.5) / 3));
+		Assert.assertTrue(contains(data, "b", 2));
+
+		// Labels with a single vector are never merged.
+		summarizer.mergeData("c", new double[] { 7 });
+		summarizer.mergeData("d", new double[] { 8 });
+		Assert.assertEquals(4, data.size());
+		Set<String> labels = new HashSet<String>();
+		for (LabeledData<double[]> ld : data)
+			labels.add(ld.getLabel());
+		Assert.assertEquals(4, labels.size());
+	}
+
+	/**
+	 * Make sure new vectors within the threshold are merged into the nearest vector of the same label.
+	 */
+	@Test
+	public void testMergeThreshold() throws AISPException {
+		IncrementalKNNVectorSummarizer summarizer = new IncrementalKNNVectorSummarizer(10, new EuclidianDistanceMergeKNNFunc(false), 3, false, 0.5);
+		summarizer.mergeData("a", new double[] { 0 });
+		summarizer.mergeData("b", new double[] { 0.25 });
+		summarizer.mergeData("a", new double[] { 3 });
+		summarizer.mergeData("a", new double[] { 0.5 });
+		List<LabeledData<double[]>> data = summarizer.getListOfLabeledData();
+		Assert.assertEquals(3, data.size());
+		Assert.assertTrue(contains(data, "a", 0.25));
+		Assert.assertTrue(contains(data, "b", 0.25));
+		Assert.assertTrue(contains(data, "a", 3));
+	}
+
+	private static boolean contains(List<LabeledData<double[]>> data, String label, double value) {
+		for (LabeledData<double[]> ld : data) {
+			if (ld.getLabel().equals(label) && Math.abs(ld.getData()[0] - value) < 1e-12)
+				return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Make sure the statistics computed using the indexes are the same as those computed by comparing all pairs.
+	 * Duplicates are included since their zero distance is ignored. 
+	 */
+	@Test
+	public void testStatistics() throws AISPException {
+		FeatureGenerator generator = new FeatureGenerator(1);
+		for (IDistanceFunction<double[]> distFunc : new IDistanceFunction[] { new EuclidianDistanceMergeKNNFunc(false), new LpDistanceMergeKNNFunc(false) }) {
+			IncrementalKNNVectorSummarizer incremental = new IncrementalKNNVectorSummarizer(1000, distFunc, 3, true, -1);
+			KNNVectorSummarizer expected = new KNNVectorSummarizer(1000, distFunc, 3, true, 0.5);
+			for (int i=0 ; i<500 ; i++) {
+				LabeledData<double[]> ld = generator.next();
+				incremental.mergeData(ld.getLabel(), ld.getData());
+				expected.mergeData(ld.getLabel(), ld.getData());
+				if (i % 100 == 0) {
+					incremental.mergeData(ld.getLabel(), ld.getData());
+					expected.mergeData(ld.getLabel(), ld.getData());
+				}
+			}
+			Assert.assertEquals(expected.getListOfLabeledData(), incremental.getListOfLabeledData());
+			Assert.assertEquals(expected.getMaxDistBetweenSameLabel(), incremental.getMaxDistBetweenSameLabel(), 1e-12);
+			Assert.assertEquals(expected.getLowerBoundDelta(), incremental.getLowerBoundDelta(), 1e-12);
+		}
+	}
+
+	/**
+	 * Make sure the classification accuracy using the summary is at least about the same as when using the summary from KNNVectorSummarizer. 
+	 */
+	@Test
+	public void testAccuracy() throws AISPException {
+		FeatureGenerator generator = new FeatureGenerator(2);
+		int maxListSize = 200;
+		IDistanceFunction<double[]> distFunc = new EuclidianDistanceMergeKNNFunc(false);
+		IncrementalKNNVectorSummarizer incremental = new IncrementalKNNVectorSummarizer(maxListSize, distFunc, 3, false);
+		KNNVectorSummarizer expected = new KNNVectorSummarizer(maxListSize, distFunc, 3, false, 0.5);
+		int count = 5000;
+		for (int i=0 ; i<count ; i++) {
+			LabeledData<double[]> ld = generator.next();
+			incremental.mergeData(ld.getLabel(), ld.getData());
+			expected.mergeData(ld.getLabel(), ld.getData());
+		}
+		Assert.assertEquals(maxListSize, incremental.getListOfLabeledData().size());
+		int weights = 0;
+		for (int weight : incremental.labeledDataWeights) 
+			weights += weight;
+		Assert.assertEquals(count, weights);
+
+		double incrementalAccuracy = getAccuracy(incremental, generator, 2000);
+		double expectedAccuracy = getAccuracy(expected, generator, 2000);
+		System.out.println("Accuracy of incremental summary=" + incrementalAccuracy + ", shrinking summary=" + expectedAccuracy);
+		Assert.assertTrue(incrementalAccuracy >= expectedAccuracy - 0.02);
+	}
+
+	private static double getAccuracy(KNNVectorSummarizer summarizer, FeatureGenerator generator, int count) {
+		KNNDataSummaryClassifier<double[]> classifier = new KNNDataSummaryClassifier<double[]>(summarizer.getDistFunc(), summarizer.getListOfLabeledData(), 
+				summarizer.getLowerBoundDelta(), summarizer.getMaxDistBetweenSameLabel(), summarizer.isEnableOutlierDetection());
+		int correct = 0;
+		for (int i=0 ; i<count ; i++) {
+			LabeledData<double[]> ld = generator.next();
+			Classification c = classifier.classify("label", ld.getData());
+			if (ld.getLabel().equals(c.getLabelValue()))
+				correct++;
+		}
+		return (double)correct / count;
+	}
+
+	/**
+	 * Make sure summarizing continues correctly after serialization, which does not include the indexes.
+	 */
+	@Test
+	public void testSerialization() throws Exception {
+		FeatureGenerator generator = new FeatureGenerator(3);
+		IncrementalKNNVectorSummarizer summarizer = new IncrementalKNNVectorSummarizer(100, new EuclidianDistanceMergeKNNFunc(false), 3, true);
+		List<LabeledData<double[]>> data = new ArrayList<LabeledData<double[]>>();
+		for (int i=0 ; i<1000 ; i++)
+			data.add(generator.next());
+		for (LabeledData<double[]> ld : data.subList(0, 500))
+			summarizer.mergeData(ld.getLabel(), ld.getData());
+		IncrementalKNNVectorSummarizer copy = (IncrementalKNNVectorSummarizer)ClassUtilities.deserialize(ClassUtilities.serialize(summarizer));
+		Assert.assertEquals(summarizer, copy);
+		for (LabeledData<double[]> ld : data.subList(500, 1000)) {
+			summarizer.mergeData(ld.getLabel(), ld.getData());
+			copy.mergeData(ld.getLabel(), ld.getData());
+		}
+		// The merge queue is rebuilt without the entries made stale by earlier merges, so the merges may differ.
+		Assert.assertEquals(100, copy.getListOfLabeledData().size());
+		Assert.assertEquals(copy.getListOfLabeledData().size(), copy.labeledDataWeights.size());
+		int weights = 0;
+		for (int weight : copy.labeledDataWeights) 
+			weights += weight;
+		Assert.assertEquals(data.size(), weights);
+		Assert.assertEquals(summarizer.getMaxDistBetweenSameLabel(), copy.getMaxDistBetweenSameLabel(), 0.1 * summarizer.getMaxDistBetweenSameLabel());
+
+		summarizer.reset();
+		Assert.assertEquals(0, summarizer.getListOfLabeledData().size());
+		summarizer.mergeData("a", new double[FEATURE_LENGTH]);
+		Assert.assertEquals(1, summarizer.getListOfLabeledData().size());
+	}
+
+	/**
+	 * Make sure the time to summarize grows close to linearly with the amount of data when the summary is allowed to hold all of it.
+	 */
+	@Test
+	public void testScaling() throws AISPException {
+		FeatureGenerator generator = new FeatureGenerator(4);
+		int count = 2500; 
+		List<LabeledData<double[]>> data = new ArrayList<LabeledData<double[]>>();
+		for (int i=0 ; i<4 * count ; i++)
+			data.add(generator.next());
+
+		summarize(new IncrementalKNNVectorSummarizer(data.size(), new EuclidianDistanceMergeKNNFunc(false), 3, true), data);	// Warm up 
+		double incrementalTime = Double.MAX_VALUE, incrementalTime4 = Double.MAX_VALUE;
+		for (int i=0 ; i<2 ; i++) {
+			incrementalTime = Math.min(incrementalTime, summarize(new IncrementalKNNVectorSummarizer(data.size(), new EuclidianDistanceMergeKNNFunc(false), 3, true), data.subList(0, count)));
+			incrementalTime4 = Math.min(incrementalTime4, summarize(new IncrementalKNNVectorSummarizer(data.size(), new EuclidianDistanceMergeKNNFunc(false), 3, true), data));
+		}
+		double expectedTime = summarize(new KNNVectorSummarizer(data.size(), new EuclidianDistanceMergeKNNFunc(false), 3, true, 0.5), data.subList(0, count));
+		double expectedTime4 = summarize(new KNNVectorSummarizer(data.size(), new EuclidianDistanceMergeKNNFunc(false), 3, true, 0.5), data);
+		System.out.println("Incremental summary msec: " + count + " vectors=" + incrementalTime + ", " + 4 * count + " vectors=" + incrementalTime4);
+		System.out.println("Shrinking summary msec: " + count + " vectors=" + expectedTime + ", " + 4 * count + " vectors=" + expectedTime4);
+		// Quadratic growth would be 16 times longer.  At these sizes the searches of the indexes still get more expensive as they grow, so allow more than 4 times.
+		Assert.assertTrue(incrementalTime4 < 10 * incrementalTime); 
+		Assert.assertTrue(incrementalTime4 < expectedTime4); 
+	}
+
+	private static double summarize(KNNVectorSummarizer summarizer, List<LabeledData<double[]>> data) throws AISPException {
+		long start = System.nanoTime();
+		for (LabeledData<double[]> ld : data)
+			summarizer.mergeData(ld.getLabel(), ld.getData());
+		summarizer.getMaxDistBetweenSameLabel();
+		return (System.nanoTime() - start) / 1000000.0;
+	}
+
+}
@@ -0,0 +1,370 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.knn;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.eng.aisp.classifier.Classification;
+import org.eng.aisp.classifier.Classification.LabelValue;
+import org.eng.aisp.classifier.knn.BaseKNNDataSummary.LabeledData;
+import org.eng.aisp.classifier.knn.merge.CorrelationMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.CosineDistanceMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.EuclidianDistanceMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.L1DistanceMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.LpDistanceMergeKNNFunc;
+import org.eng.aisp.util.ArrayIndexComparator;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KNNDataSummaryClassifierTest {
+
+	/**
+	 * Make sure the classifications are the same as those produced by the implementation that sorted all the distances.
+	 * Small integer valued features are used so that there are many ties in the distances.
+	 */
+	@Test
+	public void testMatchesSortingClassifier() {
+		List<IDistanceFunction<double[]>> distFuncs = new ArrayList<IDistanceFunction<double[]>>();
+		distFuncs.add(new EuclidianDistanceMergeKNNFunc(false));
+		distFuncs.add(new L1DistanceMergeKNNFunc(false));
+		distFuncs.add(new CosineDistanceMergeKNNFunc(false));
+		distFuncs.add(new LpDistanceMergeKNNFunc(3, false));
+		distFuncs.add(new CorrelationMergeKNNFunc(false));
+		int[] referenceCounts = new int[] { 1, 7, 300, 2000 };
+		int[] featureLengths = new int[] { 1, 6, 13 };
+		Random rand = new Random(1234);
+		for (IDistanceFunction<double[]> distFunc : distFuncs) {
+			for (int referenceCount : referenceCounts) {
+				for (int featureLength : featureLengths) {
+					List<LabeledData<double[]>> references = createReferences(rand, referenceCount, featureLength, 5, 3);
+					for (boolean enableOutlierDetection : new boolean[] { false, true }) {
+						KNNDataSummaryClassifier<double[]> classifier = new KNNDataSummaryClassifier<double[]>(distFunc, references, 0.01, 0.05, enableOutlierDetection);
+						KNNDataSummaryClassifier<double[]> expectedClassifier = new SortingKNNDataSummaryClassifier<double[]>(distFunc, references, 0.01, 0.05, enableOutlierDetection);
+						String msg = distFunc + ", references=" + referenceCount + ", length=" + featureLength + ", outliers=" + enableOutlierDetection;
+						List<double[]> queries = new ArrayList<double[]>();
+						for (int i=0 ; i<20 ; i++) { 
+							double[] query = createFeature(rand, featureLength, 3);
+							queries.add(query);
+							Assert.assertEquals(msg, expectedClassifier.classify("label", query), classifier.classify("label", query));
+						}
+						// A reference itself to get a zero distance
+						double[] query = references.get(rand.nextInt(referenceCount)).getData();
+						Assert.assertEquals(msg, expectedClassifier.classify("label", query), classifier.classify("label", query));
+						// A query of a different length than the references. 
+						query = createFeature(rand, featureLength + 1, 3);
+						Assert.assertEquals(msg, expectedClassifier.classify("label", query), classifier.classify("label", query));
+						// And with voting over a list of queries.
+						Assert.assertEquals(msg, expectedClassifier.classify("label", queries), classifier.classify("label", queries));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Make sure a label whose only reference is farther than the nearest references selected by the bounded heap is still found.
+	 */
+	@Test
+	public void testDistantLabel() {
+		Random rand = new Random(2468);
+		List<LabeledData<double[]>> references = createReferences(rand, 1000, 4, 3, 3);
+		references.add(500, new LabeledData<double[]>("distant", new double[] { 100, 100, 100, 100 }));
+		for (IDistanceFunction<double[]> distFunc : new IDistanceFunction[] { new EuclidianDistanceMergeKNNFunc(false), new CosineDistanceMergeKNNFunc(false) }) {
+			KNNDataSummaryClassifier<double[]> classifier = new KNNDataSummaryClassifier<double[]>(distFunc, references, 0.01, 0.05, false);
+			KNNDataSummaryClassifier<double[]> expectedClassifier = new SortingKNNDataSummaryClassifier<double[]>(distFunc, references, 0.01, 0.05, false);
+			List<double[]> queries = new ArrayList<double[]>();
+			for (int i=0 ; i<20 ; i++) { 
+				double[] query = createFeature(rand, 4, 3);
+				queries.add(query);
+				Classification c = classifier.classify("label", query);
+				Assert.assertEquals(expectedClassifier.classify("label", query), c);
+				Assert.assertEquals(5, c.getRankedValues().size());	// 4 labels and the unknown label.
+			}
+			Assert.assertEquals(expectedClassifier.classify("label", queries), classifier.classify("label", queries));
+		}
+	}
+
+	/**
+	 * Make sure the voting weight of each query uses the distance to the nearest reference with a label other than that of the nearest reference. 
+	 * The implementation that sorted all the distances used the distance to the reference whose index was the sorted position of that reference,
+	 * which in this case gives one label all the votes.
+	 */
+	@Test
+	public void testVotingDistanceToOtherLabel() {
+		List<LabeledData<double[]>> references = new ArrayList<LabeledData<double[]>>();
+		references.add(new LabeledData<double[]>("B", new double[] { 10 }));
+		references.add(new LabeledData<double[]>("A", new double[] { 0 }));
+		references.add(new LabeledData<double[]>("A", new double[] { 20 }));
+		KNNDataSummaryClassifier<double[]> classifier = new KNNDataSummaryClassifier<double[]>(new EuclidianDistanceMergeKNNFunc(false), references, 0.01, 0.05, false);
+		List<double[]> queries = new ArrayList<double[]>();
+		queries.add(new double[] { 1 });	// Nearest is A at 1 and B is at 9. 
+		queries.add(new double[] { 11 });	// Nearest is B at 1 and A is at 9. 
+		Classification c = classifier.classify("label", queries);
+		Assert.assertEquals(2, c.getRankedValues().size());
+		for (LabelValue lv : c.getRankedValues()) 
+			Assert.assertEquals(lv.getLabelValue(), 0.5, lv.getConfidence(), 0.000001);
+	}
+
+	/**
+	 * Make sure classifying against a large number of references is faster than the implementation that sorted all the distances.
+	 */
+	@Test
+	public void testPerformance() {
+		Random rand = new Random(4321);
+		int referenceCount = 100000, featureLength = 40, count = 10;
+		List<LabeledData<double[]>> references = createReferences(rand, referenceCount, featureLength, 10, 100);
+		IDistanceFunction<double[]> distFunc = new EuclidianDistanceMergeKNNFunc(false);
+		KNNDataSummaryClassifier<double[]> classifier = new KNNDataSummaryClassifier<double[]>(distFunc, references, 0.01, 0.05, true);
+		KNNDataSummaryClassifier<double[]> expectedClassifier = new SortingKNNDataSummaryClassifier<double[]>(distFunc, references, 0.01, 0.05, true);
+		List<double[]> queries = new ArrayList<double[]>();
+		for (int i=0 ; i<count ; i++) 
+			queries.add(createFeature(rand, featureLength, 100));
+
+		// Warm up both and make sure they agree.
+		for (double[] query : queries) 
+			Assert.assertEquals(expectedClassifier.classify("label", query), classifier.classify("label", query));
+
+		long start = System.nanoTime();
+		for (double[] query : queries) 
+			expectedClassifier.classify("label", query);
+		long sortingMsec = (System.nanoTime() - start) / 1000000;
+
+		start = System.nanoTime();
+		for (double[] query : queries) 
+			classifier.classify("label", query);
+		long msec = (System.nanoTime() - start) / 1000000;
+
+		System.out.println("Msec/classification over " + referenceCount + " references, sorting=" + (double)sortingMsec / count + ", current=" + (double)msec / count);
+		Assert.assertTrue(msec < sortingMsec);
+	}
+
+	private static List<LabeledData<double[]>> createReferences(Random rand, int count, int featureLength, int labelCount, int maxValue) {
+		List<LabeledData<double[]>> references = new ArrayList<LabeledData<double[]>>();
+		for (int i=0 ; i<count ; i++)
+			references.add(new LabeledData<double[]>("L" + rand.nextInt(labelCount), createFeature(rand, featureLength, maxValue)));
+		return references;
+	}
+
+	private static double[] createFeature(Random rand, int featureLength, int maxValue) {
+		double[] feature = new double[featureLength];
+		for (int j=0 ; j<featureLength ; j++)
+			feature[j] = rand.nextInt(maxValue + 1);
+		return feature;
+	}
+
+	/**
+	 * The implementation of classification prior to storing the references in a dense matrix and selecting the nearest reference of each label.
+	 */
+	private static class SortingKNNDataSummaryClassifier<DATA extends Serializable> extends KNNDataSummaryClassifier<DATA> {
+
+		private static final long serialVersionUID = 1L;
+
+		public SortingKNNDataSummaryClassifier(IDistanceFunction<DATA> distFunc, List<LabeledData<DATA>> data, double lowerBoundDelta,
+				double maxDistBetweenSameLabel, boolean enableOutlierDetection) {
+			super(distFunc, data, lowerBoundDelta, maxDistBetweenSameLabel, enableOutlierDetection);
+		}
+
+		@Override
+		public Classification classify(String trainingLabel, DATA data) {
+		
+			Double[] distances = new Double[this.listOfLabeledData.size()];
+			for (int i=0; i<this.listOfLabeledData.size(); i++)
+				distances[i] = distFunc.distance(data, this.listOfLabeledData.get(i).getData());
+			if (distances.length == 0)
+				throw new RuntimeException("unexpected zero length distances");
+		
+			ArrayIndexComparator comparator = new ArrayIndexComparator(distances);
+			Integer[] indexes = comparator.createIndexArray();   //this contains indexes of sorted distances
+			Arrays.sort(indexes, comparator);	// Can't use parallelSort() until we get off of 1.7 JVM
+		
+			int minIndex = indexes[0];
+			double minDist = distances[minIndex];
+		
+		
+			//find min. distances for all labels
+			List<String> labels = new ArrayList<String>();
+			List<Double> minDistAllLabels = new ArrayList<Double>();
+		
+			for (int i=0; i<indexes.length; i++) {
+				String thisLabel = this.listOfLabeledData.get(indexes[i]).getLabel();
+			
+				boolean labelExists = false;
+				for (String l : labels) {
+					if (l.equals(thisLabel)) {
+						labelExists = true;
+						break;
+					}
+				}
+			
+				if (labelExists == false) {
+					labels.add(thisLabel);
+					minDistAllLabels.add(distances[indexes[i]]);
+				}
+			}
+		
+			//softmax computation
+		
+			double maxMinDist = 0.0;
+			for (Double d : minDistAllLabels) {
+				if (d > maxMinDist) maxMinDist = d;
+			}
+			if (maxMinDist==0.0) maxMinDist = 0.0001;
+	
+		
+			double sumExpMinDists = 0.0;
+			for (Double d : minDistAllLabels) {
+				sumExpMinDists += Math.exp(-d/maxMinDist);
+			}
+			if (sumExpMinDists==0.0) sumExpMinDists = 0.0001;
+		
+			double[] softMaxValues = new double[minDistAllLabels.size()];
+			for (int i=0; i<minDistAllLabels.size(); i++) {
+				softMaxValues[i] = Math.exp(-minDistAllLabels.get(i)/maxMinDist) / sumExpMinDists;
+			}
+		
+			String status;
+			if(!this.isEnableOutlierDetection() || this.getMaxDistBetweenSameLabel() < 0 || minDist < this.getMaxDistBetweenSameLabel() ) { 
+				status = this.listOfLabeledData.get(minIndex).getLabel();
+			} else {
+				status = Classification.UndefinedLabelValue;
+			}
+			
+			double confidenceBaseKnown;
+			double confidenceUnknown;
+			if (!Classification.UndefinedLabelValue.equals(status)) {
+				confidenceBaseKnown = Math.max(0.5, 1.0 - Math.max(0.0, minDist - this.getLowerBoundDelta())/this.getMaxDistBetweenSameLabel());
+				if (softMaxValues[0] * confidenceBaseKnown < 1-confidenceBaseKnown) {
+					confidenceBaseKnown = Math.min(1.0, 1.0 / (1.0 + softMaxValues[0]) + 0.01);  // Make sure that confidence of max. known label is not smaller than confidence for unknown
+				}
+				confidenceUnknown = 1-confidenceBaseKnown;
+			} else { 
+				confidenceUnknown = Math.max(0.5, Math.min(1.0, minDist/this.getMaxDistBetweenSameLabel() - 1.0));
+				confidenceBaseKnown = 1-confidenceUnknown;
+			}
+		
+			List<LabelValue> rankedValues = new ArrayList<LabelValue>();
+			if (!Classification.UndefinedLabelValue.equals(status)) {
+				boolean unknownLabelAdded = false;
+				for (int i=0; i<labels.size(); i++) {
+					if (softMaxValues[i] * confidenceBaseKnown < confidenceUnknown && !unknownLabelAdded) {
+						rankedValues.add(new LabelValue(Classification.UndefinedLabelValue, confidenceUnknown));
+						unknownLabelAdded = true;
+					}
+					rankedValues.add(new LabelValue(labels.get(i), softMaxValues[i] * confidenceBaseKnown));
+				}
+				if (!unknownLabelAdded) {
+					rankedValues.add(new LabelValue(Classification.UndefinedLabelValue, confidenceUnknown));
+					unknownLabelAdded = true;
+				}
+			} else {
+				rankedValues.add(new LabelValue(Classification.UndefinedLabelValue, confidenceUnknown));
+				for (int i=0; i<labels.size(); i++) {
+					rankedValues.add(new LabelValue(labels.get(i), softMaxValues[i] * confidenceBaseKnown));
+				}
+			}
+	
+			return new Classification(trainingLabel, rankedValues);
+		}
+
+		@Override
+		public Classification classify(String trainingLabel, List<DATA> data) {
+				Map<String, Double> votes = new HashMap<>();
+	
+				for (DATA freqComponents : data) {
+					Double[] distances = new Double[this.listOfLabeledData.size()];
+					for (int i=0; i<this.listOfLabeledData.size(); i++) {
+						DATA reference = this.listOfLabeledData.get(i).getData();
+						distances[i] = distFunc.distance(freqComponents, reference);
+					}
+				
+					ArrayIndexComparator comparator = new ArrayIndexComparator(distances);
+					Integer[] indexes = comparator.createIndexArray();   //this contains indexes of sorted distances
+					Arrays.sort(indexes, comparator);
+				
+					int minIndex = indexes[0];
+					double minDist = distances[minIndex];
+	
+					String thisLabel = this.listOfLabeledData.get(minIndex).getLabel();
+				
+					double distNearestOtherLabel = -1;
+					for (int i=0; i<indexes.length; i++) {
+						String comparingLabel = this.listOfLabeledData.get(indexes[i]).getLabel();
+						if (!thisLabel.equals(comparingLabel)) {
+							distNearestOtherLabel = distances[indexes[i]];	// Was distances[i], the distance to the reference at the sorted position.
+							break;
+						}
+					}
+				
+					if (distNearestOtherLabel < 0.00001) distNearestOtherLabel = 0.00001;
+				
+						double votingWeight = Math.max(0, 1 - minDist/distNearestOtherLabel);  //weights between 0 and 1
+						Double currentVotesForThisLabel = votes.get(thisLabel);
+						if (currentVotesForThisLabel == null) {
+							votes.put(thisLabel, votingWeight);
+						} else {
+							votes.put(thisLabel, currentVotesForThisLabel+votingWeight);
+						}
+				}
+			
+			
+				//Count votes
+				Set<String> labelsSet = votes.keySet();
+				Double[] votesValues = new Double[labelsSet.size()];
+				String[] labels = labelsSet.toArray(new String[0]);
+				for (int i=0; i<labelsSet.size(); i++) {
+					votesValues[i] = votes.get(labels[i]);
+				}
+			
+			
+				//Computation of the relative weight of each vote (for confidence value and ranking)
+				double sumVoteWeights = 0.0;
+				for (Double d : votesValues) {
+					sumVoteWeights += d;
+				}
+			
+				double[] voteRelativeWeights = new double[votesValues.length];
+				for (int i=0; i<votesValues.length; i++) {
+					if (sumVoteWeights > 0.0) 
+						voteRelativeWeights[i] = votesValues[i] / sumVoteWeights;
+					else
+						voteRelativeWeights[i] = 1.0 / votesValues.length;  // If sumVoteWeights is zero (shouldn't usually happen), assign equal weights
+				}
+			
+			
+				//Rank and add ranking to classifications
+				ArrayIndexComparator comparatorVotes = new ArrayIndexComparator(votesValues);
+				Integer[] indexesVotes = comparatorVotes.createIndexArray();   //this contains indexes of sorted distances
+				Arrays.sort(indexesVotes, comparatorVotes);
+			
+				List<LabelValue> rankedValues = new ArrayList<LabelValue>();
+				for (int i=indexesVotes.length-1; i>=0; i--) {
+					rankedValues.add(new LabelValue(labels[indexesVotes[i]], voteRelativeWeights[indexesVotes[i]]));
+				}
+			
+			
+				return new Classification(trainingLabel, rankedValues);
+			}
+
+	}
+
+}
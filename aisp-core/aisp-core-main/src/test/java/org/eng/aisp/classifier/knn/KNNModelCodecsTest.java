@@ -0,0 +1,303 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.knn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eng.aisp.SoundRecording;
+import org.eng.aisp.SoundTestUtils;
+import org.eng.aisp.classifier.IFixableClassifier;
+import org.eng.aisp.classifier.IFixedClassifier;
+import org.eng.aisp.classifier.knn.BaseKNNDataSummary.LabeledData;
+import org.eng.aisp.classifier.knn.merge.CorrelationMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.CosineDistanceMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.EuclidianDistanceMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.L1DistanceMergeKNNFunc;
+import org.eng.aisp.util.FixedClassifiers;
+import org.eng.aisp.util.ModelCodecs;
+import org.eng.util.ClassUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class KNNModelCodecsTest {
+
+	/**
+	 * Make sure a data summary read from its codec has the same references and indexes, and so produces the same classifications.
+	 */
+	@Test
+	public void testDataSummaryRoundTrip() throws IOException, ClassNotFoundException {
+		Random rand = new Random(2468);
+		List<LabeledData<double[]>> matrix = createReferences(rand, 3000, 13, false); 
+		List<LabeledData<double[]>> vectors = createReferences(rand, 500, 13, true);
+		LSHParameters lsh = new LSHParameters();
+
+		verifyRoundTrip(rand, new KNNDataSummaryClassifier<double[]>(new EuclidianDistanceMergeKNNFunc(false), matrix, 0.01, 0.05, true), 13);
+		verifyRoundTrip(rand, new KNNDataSummaryClassifier<double[]>(new EuclidianDistanceMergeKNNFunc(false), matrix, 0.01, 0.05, false, lsh), 13);
+		verifyRoundTrip(rand, new KNNDataSummaryClassifier<double[]>(new CosineDistanceMergeKNNFunc(false), matrix, 0.01, 0.05, true, lsh), 13);
+		verifyRoundTrip(rand, new KNNDataSummaryClassifier<double[]>(new L1DistanceMergeKNNFunc(false), matrix.subList(0, 100), 0.01, 0.05, true), 13);
+		verifyRoundTrip(rand, new KNNDataSummaryClassifier<double[]>(new CorrelationMergeKNNFunc(false), matrix, 0.01, 0.05, true), 13);
+		verifyRoundTrip(rand, new KNNDataSummaryClassifier<double[]>(new L1DistanceMergeKNNFunc(false), vectors, 0.01, 0.05, true), 13);
+		verifyRoundTrip(rand, new KNNDataSummaryClassifier<double[]>(new L1DistanceMergeKNNFunc(false), new ArrayList<LabeledData<double[]>>(), 0.01, 0.05, true), 13);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void verifyRoundTrip(Random rand, KNNDataSummaryClassifier<double[]> summary, int featureLength) throws IOException, ClassNotFoundException {
+		byte[] encoded = ModelCodecs.encode(summary);
+		Assert.assertTrue(ModelCodecs.isEncoded(encoded));
+		KNNDataSummaryClassifier<double[]> decoded = (KNNDataSummaryClassifier<double[]>)ModelCodecs.decode(encoded);
+		String msg = summary.getDistFunc().toString();
+
+		Assert.assertEquals(msg, summary, decoded);
+		Assert.assertEquals(msg, summary.getApproximateSearch(), decoded.getApproximateSearch());
+		Assert.assertEquals(msg, summary.peekIndex() != null, decoded.peekIndex() != null);
+		Assert.assertEquals(msg, summary.peekLSHIndex() != null, decoded.peekLSHIndex() != null);
+		List<LabeledData<double[]>> expected = summary.getListOfLabeledData();
+		List<LabeledData<double[]>> actual = decoded.getListOfLabeledData();
+		Assert.assertEquals(msg, expected.size(), actual.size());
+		for (int i=0 ; i<expected.size() ; i++) {
+			Assert.assertEquals(msg, expected.get(i).getLabel(), actual.get(i).getLabel());
+			Assert.assertArrayEquals(msg, expected.get(i).getData(), actual.get(i).getData(), 0);
+		}
+
+		if (expected.isEmpty())
+			return;
+		List<double[]> queries = new ArrayList<double[]>();
+		for (int i=0 ; i<20 ; i++) {
+			double[] query = createFeature(rand, featureLength);
+			queries.add(query);
+			Assert.assertEquals(msg, summary.classify("label", query), decoded.classify("label", query));
+		}
+		Assert.assertEquals(msg, summary.classify("label", queries), decoded.classify("label", queries));
+	}
+
+	/**
+	 * Make sure a data summary mapped from a file keeps its references in the file and classifies exactly as the one read onto the heap.
+	 */
+	@Test
+	public void testMappedDataSummary() throws IOException, ClassNotFoundException {
+		Random rand = new Random(8642);
+		List<LabeledData<double[]>> matrix = createReferences(rand, 3000, 13, false); 
+		List<LabeledData<double[]>> vectors = createReferences(rand, 500, 13, true);
+		LSHParameters lsh = new LSHParameters();
+
+		verifyMapped(rand, new KNNDataSummaryClassifier<double[]>(new EuclidianDistanceMergeKNNFunc(false), matrix, 0.01, 0.05, true), 13, true);
+		verifyMapped(rand, new KNNDataSummaryClassifier<double[]>(new EuclidianDistanceMergeKNNFunc(false), matrix, 0.01, 0.05, false, lsh), 13, true);
+		verifyMapped(rand, new KNNDataSummaryClassifier<double[]>(new CosineDistanceMergeKNNFunc(false), matrix, 0.01, 0.05, true, lsh), 13, true);
+		verifyMapped(rand, new KNNDataSummaryClassifier<double[]>(new CosineDistanceMergeKNNFunc(false), matrix, 0.01, 0.05, true), 13, true);
+		verifyMapped(rand, new KNNDataSummaryClassifier<double[]>(new L1DistanceMergeKNNFunc(false), matrix, 0.01, 0.05, true), 13, true);
+		verifyMapped(rand, new KNNDataSummaryClassifier<double[]>(new L1DistanceMergeKNNFunc(false), matrix.subList(0, 100), 0.01, 0.05, true), 13, true);
+		// Without a dense kernel, each distance would copy a reference out of the file, so they are read onto the heap.
+		verifyMapped(rand, new KNNDataSummaryClassifier<double[]>(new CorrelationMergeKNNFunc(false), matrix, 0.01, 0.05, true), 13, false);
+		verifyMapped(rand, new KNNDataSummaryClassifier<double[]>(new L1DistanceMergeKNNFunc(false), vectors, 0.01, 0.05, true), 13, false);
+		verifyMapped(rand, new KNNDataSummaryClassifier<double[]>(new L1DistanceMergeKNNFunc(false), new ArrayList<LabeledData<double[]>>(), 0.01, 0.05, true), 13, true);
+	}
+
+	@SuppressWarnings("unchecked")
+	private static void verifyMapped(Random rand, KNNDataSummaryClassifier<double[]> summary, int featureLength, boolean expectMapped) throws IOException, ClassNotFoundException {
+		File file = File.createTempFile("summary", ".ser");
+		try {
+			FileOutputStream fos = new FileOutputStream(file);
+			try {
+				ModelCodecs.write(fos, summary);
+			} finally {
+				fos.close();
+			}
+			FileInputStream fis = new FileInputStream(file);
+			KNNDataSummaryClassifier<double[]> heap;
+			try {
+				heap = (KNNDataSummaryClassifier<double[]>)ModelCodecs.read(fis);
+			} finally {
+				fis.close();
+			}
+			KNNDataSummaryClassifier<double[]> mapped = (KNNDataSummaryClassifier<double[]>)ModelCodecs.map(file);
+			String msg = summary.getDistFunc().toString();
+
+			Assert.assertFalse(msg, heap.getListOfLabeledData() instanceof MappedReferenceList);
+			Assert.assertEquals(msg, expectMapped, mapped.getListOfLabeledData() instanceof MappedReferenceList);
+			Assert.assertEquals(msg, heap, mapped);
+			List<LabeledData<double[]>> expected = heap.getListOfLabeledData();
+			List<LabeledData<double[]>> actual = mapped.getListOfLabeledData();
+			Assert.assertEquals(msg, expected.size(), actual.size());
+			for (int i=0 ; i<expected.size() ; i++) {
+				Assert.assertEquals(msg, expected.get(i).getLabel(), actual.get(i).getLabel());
+				Assert.assertArrayEquals(msg, expected.get(i).getData(), actual.get(i).getData(), 0);
+			}
+
+			if (!expected.isEmpty()) {
+				List<double[]> queries = new ArrayList<double[]>();
+				for (int i=0 ; i<20 ; i++) {
+					double[] query = createFeature(rand, featureLength);
+					queries.add(query);
+					Assert.assertEquals(msg, heap.classify("label", query), mapped.classify("label", query));
+				}
+				Assert.assertEquals(msg, heap.classify("label", queries), mapped.classify("label", queries));
+			}
+
+			// Java serialization of a mapped instance must not depend on the file.
+			KNNDataSummaryClassifier<double[]> deserialized = (KNNDataSummaryClassifier<double[]>)ClassUtilities.deserialize(ClassUtilities.serialize(mapped));
+			Assert.assertFalse(msg, deserialized.getListOfLabeledData() instanceof MappedReferenceList);
+			Assert.assertEquals(msg, heap, deserialized);
+			for (int i=0 ; i<expected.size() ; i++) 
+				Assert.assertArrayEquals(msg, expected.get(i).getData(), deserialized.getListOfLabeledData().get(i).getData(), 0);
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Make sure a trained KNN classifier mapped with {@link FixedClassifiers#map(String)} classifies sounds as the one read onto the heap.
+	 * The references are only left in the file when the distance function has a dense kernel, which the default Lp distance does not.
+	 */
+	@Test
+	public void testMappedClassifier() throws Exception {
+		testMappedClassifier(new EuclidianDistanceMergeKNNFunc(KNNClassifier.DEFAULT_NORMALIZE_FEATURES), true);
+		testMappedClassifier(KNNClassifier.DEFAULT_KNN_FUNCTION, false);
+	}
+
+	private static void testMappedClassifier(INearestNeighborFunction<double[]> knnFunc, boolean expectMapped) throws Exception {
+		String trainingLabel = "source";
+		List<SoundRecording> srList = new ArrayList<SoundRecording>();
+		srList.addAll(SoundTestUtils.createTrainingRecordings(0, 1000, 0, 1000, 10, trainingLabel, "low"));
+		srList.addAll(SoundTestUtils.createTrainingRecordings(0, 1000, 0, 3000, 10, trainingLabel, "high"));
+		IFixableClassifier<double[]> classifier = new KNNClassifierBuilder().setKnnFunc(knnFunc).build();
+		classifier.train(trainingLabel, srList);
+		IFixedClassifier<double[]> fixed = classifier.getFixedClassifier();
+		File file = File.createTempFile("knn", ".cfr");
+		try {
+			FixedClassifiers.write(file.getAbsolutePath(), fixed, true);
+			FixedKNNClassifier heap, mapped;
+			FileInputStream fis = new FileInputStream(file);
+			try {
+				heap = (FixedKNNClassifier)FixedClassifiers.read(fis);
+			} finally {
+				fis.close();
+			}
+			mapped = (FixedKNNClassifier)FixedClassifiers.map(file.getAbsolutePath());
+			Assert.assertEquals(expectMapped, mapped.getDataSummary().getListOfLabeledData() instanceof MappedReferenceList);
+			for (SoundRecording sr : srList) 
+				Assert.assertEquals(heap.classify(sr.getDataWindow()), mapped.classify(sr.getDataWindow()));
+		} finally {
+			file.delete();
+		}
+	}
+
+	/**
+	 * Make sure classifiers are written with Java serialization unless the binary form is requested, so that older readers can load them.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testDefaultFormat() throws Exception {
+		String trainingLabel = "source";
+		List<SoundRecording> srList = SoundTestUtils.createTrainingRecordings(0, 1000, 0, 1000, 4, trainingLabel, "low");
+		IFixableClassifier<double[]> classifier = new KNNClassifierBuilder().build();
+		classifier.train(trainingLabel, srList);
+		IFixedClassifier<double[]> fixed = classifier.getFixedClassifier();
+		Assert.assertFalse(FixedClassifiers.DEFAULT_USE_CODECS);
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		FixedClassifiers.write(bos, fixed);
+		byte[] bytes = bos.toByteArray();
+		Assert.assertTrue(bytes[0] == (byte)0xAC && bytes[1] == (byte)0xED);	// The Java serialization stream header.
+		IFixedClassifier<?> read = FixedClassifiers.read(new ByteArrayInputStream(bytes));
+		Assert.assertEquals(fixed.classify(srList.get(0).getDataWindow()), ((IFixedClassifier<double[]>)read).classify(srList.get(0).getDataWindow()));
+
+		bos = new ByteArrayOutputStream();
+		FixedClassifiers.write(bos, fixed, true);
+		bytes = bos.toByteArray();
+		Assert.assertFalse(bytes[0] == (byte)0xAC && bytes[1] == (byte)0xED);
+	}
+
+	/**
+	 * Make sure reading a large data summary with its codec is faster than reading it with Java serialization, 
+	 * and that mapping it leaves the references in the file.
+	 */
+	@SuppressWarnings("unchecked")
+	@Test
+	public void testLoadTime() throws IOException, ClassNotFoundException {
+		Random rand = new Random(1357);
+		int referenceCount = 100000, featureLength = 40;
+		List<LabeledData<double[]>> references = createReferences(rand, referenceCount, featureLength, false); 
+		KNNDataSummaryClassifier<double[]> summary = new KNNDataSummaryClassifier<double[]>(new EuclidianDistanceMergeKNNFunc(false), references, 0.01, 0.05, true);
+		Assert.assertTrue(summary.isIndexed());
+		byte[] serialized = ClassUtilities.serialize(summary);
+		byte[] encoded = ModelCodecs.encode(summary);
+		// Java serialization does not include the tree, so compare it to an encoding without the tree.
+		KNNDataSummaryClassifier<double[]> unindexed = new KNNDataSummaryClassifier<double[]>(new EuclidianDistanceMergeKNNFunc(false), references, 0.01, 0.05, true, -1);
+		Assert.assertTrue(ModelCodecs.encode(unindexed).length < serialized.length);
+
+		long javaMsec = Long.MAX_VALUE, codecMsec = Long.MAX_VALUE;
+		for (int i=0 ; i<3 ; i++) {
+			long start = System.nanoTime();
+			Assert.assertEquals(summary, ClassUtilities.deserialize(serialized));
+			javaMsec = Math.min(javaMsec, (System.nanoTime() - start) / 1000000);
+			start = System.nanoTime();
+			Assert.assertEquals(summary, ModelCodecs.decode(encoded));
+			codecMsec = Math.min(codecMsec, (System.nanoTime() - start) / 1000000);
+		}
+
+		File file = File.createTempFile("summary", ".ser");
+		long mapMsec = Long.MAX_VALUE;
+		KNNDataSummaryClassifier<double[]> mapped = null;
+		try {
+			FileOutputStream fos = new FileOutputStream(file);
+			try {
+				fos.write(encoded);
+			} finally {
+				fos.close();
+			}
+			for (int i=0 ; i<3 ; i++) {
+				long start = System.nanoTime();
+				mapped = (KNNDataSummaryClassifier<double[]>)ModelCodecs.map(file);
+				Assert.assertEquals(summary, mapped);
+				mapMsec = Math.min(mapMsec, (System.nanoTime() - start) / 1000000);
+			}
+		} finally {
+			file.delete();
+		}
+		System.out.println("Load of " + referenceCount + " references, java=" + javaMsec + " msec (" + serialized.length + " bytes), codec=" 
+				+ codecMsec + " msec (" + encoded.length + " bytes), mapped=" + mapMsec + " msec");
+		Assert.assertTrue(codecMsec < javaMsec);
+		Assert.assertTrue(mapped.getListOfLabeledData() instanceof MappedReferenceList);
+	}
+
+	/**
+	 * @param varyLengths if true, then the references have lengths from 1 to featureLength, otherwise all are featureLength long.
+	 */
+	private static List<LabeledData<double[]>> createReferences(Random rand, int count, int featureLength, boolean varyLengths) {
+		List<LabeledData<double[]>> references = new ArrayList<LabeledData<double[]>>();
+		for (int i=0 ; i<count ; i++) {
+			int len = varyLengths ? 1 + rand.nextInt(featureLength) : featureLength;
+			references.add(new LabeledData<double[]>("L" + rand.nextInt(7), createFeature(rand, len)));
+		}
+		return references;
+	}
+
+	private static double[] createFeature(Random rand, int featureLength) {
+		double[] feature = new double[featureLength];
+		for (int i=0 ; i<featureLength ; i++)
+			feature[i] = rand.nextGaussian() * 10;
+		return feature;
+	}
+
+}
@@ -17,6 +17,7 @@ package org.eng.aisp.classifier.knn;
 
 
 import org.eng.aisp.classifier.knn.merge.EuclideanDistanceMergeKNNModelerTest;
+import org.eng.aisp.classifier.knn.merge.IncrementalEuclideanDistanceMergeKNNModelerTest;
 import org.eng.aisp.classifier.knn.merge.L1DistanceMergeKNNModelerTest;
 import org.eng.aisp.classifier.knn.merge.LpDistanceMergeKNNClassifierBuilderTest;
 import org.eng.aisp.classifier.knn.merge.LpDistanceMergeKNNModelerTest;
@@ -32,10 +33,16 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
 	EuclideanDistanceMergeKNNModelerTest.class,
+	IncrementalEuclideanDistanceMergeKNNModelerTest.class,
 	L1DistanceMergeKNNModelerTest.class,
 	LpDistanceMergeKNNModelerTest.class,
 	LpDistanceMergeKNNClassifierBuilderTest.class,
 	NormalizeLpDistanceMergeKNNModelerTest.class,
+	KNNDataSummaryClassifierTest.class,
+	VPTreeIndexTest.class,
+	LSHIndexTest.class,
+	IncrementalKNNVectorSummarizerTest.class,
+	KNNModelCodecsTest.class,
         })
 public class KNNTestSuite {
 
@@ -0,0 +1,183 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.knn;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.eng.aisp.classifier.Classification;
+import org.eng.aisp.classifier.knn.BaseKNNDataSummary.LabeledData;
+import org.eng.aisp.classifier.knn.merge.CosineDistanceMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.EuclidianDistanceMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.L1DistanceMergeKNNFunc;
+import org.eng.aisp.util.ArrayIndexComparator;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LSHIndexTest {
+
+	private final static int CLUSTERS = 50;
+	private final static int FEATURE_LENGTH = 40;
+	private final static int REFERENCES = 20000;
+	private final static int QUERIES = 200;
+	private final static int K = 10;
+	private final static double MIN_RECALL = 0.9;
+
+	@Test
+	public void testEuclidianRecall() {
+		validateRecall(new EuclidianDistanceMergeKNNFunc(false));
+	}
+
+	@Test
+	public void testCosineRecall() {
+		validateRecall(new CosineDistanceMergeKNNFunc(false));
+	}
+
+	/**
+	 * Make sure the fraction of the true k nearest neighbors found among the candidates is above a threshold, and that fewer candidates and more
+	 * tables and probes give higher recall.
+	 */
+	private void validateRecall(IDistanceFunction<double[]> distFunc) {
+		Random rand = new Random(97531);
+		double[][] centers = createCenters(rand);
+		List<LabeledData<double[]>> references = createReferences(rand, centers, REFERENCES);
+		List<double[]> queries = new ArrayList<double[]>();
+		for (int i=0 ; i<QUERIES ; i++)
+			queries.add(createFeature(rand, centers[rand.nextInt(CLUSTERS)]));
+
+		double lastRecall = 0;
+		for (LSHParameters parameters : new LSHParameters[] { new LSHParameters(2, 1), new LSHParameters(4, 4), new LSHParameters() }) {
+			LSHIndex index = LSHIndex.newIndex(distFunc, references, parameters);
+			Assert.assertTrue(index != null);
+			int found = 0;
+			long candidateCount = 0;
+			for (double[] query : queries) {
+				int[] expected = nearest(distFunc, references, query, null, K);
+				int[] candidates = index.candidates(query);
+				candidateCount += candidates.length;
+				int[] actual = nearest(distFunc, references, query, candidates, K);
+				for (int e : expected) {
+					for (int a : actual) {
+						if (a == e) {
+							found++;
+							break;
+						}
+					}
+				}
+			}
+			double recall = (double)found / (K * queries.size());
+			double candidateFraction = (double)candidateCount / queries.size() / references.size();
+			System.out.println(distFunc.getClass().getSimpleName() + " " + parameters + ": recall@" + K + "=" + recall + ", fraction of references searched=" + candidateFraction);
+			Assert.assertTrue(recall >= lastRecall);
+			Assert.assertTrue(candidateFraction < 0.25);
+			lastRecall = recall;
+		}
+		Assert.assertTrue("Recall " + lastRecall + " is below " + MIN_RECALL, lastRecall >= MIN_RECALL);
+	}
+
+	/**
+	 * Make sure the same seed gives the same candidates and a different seed does not.
+	 */
+	@Test
+	public void testSeed() {
+		Random rand = new Random(13579);
+		double[][] centers = createCenters(rand);
+		List<LabeledData<double[]>> references = createReferences(rand, centers, 2000);
+		double[] query = createFeature(rand, centers[0]);
+		IDistanceFunction<double[]> distFunc = new EuclidianDistanceMergeKNNFunc(false);
+		int[] candidates1 = LSHIndex.newIndex(distFunc, references, new LSHParameters(4, 12, 2, 0, 1)).candidates(query);
+		int[] candidates2 = LSHIndex.newIndex(distFunc, references, new LSHParameters(4, 12, 2, 0, 1)).candidates(query);
+		int[] candidates3 = LSHIndex.newIndex(distFunc, references, new LSHParameters(4, 12, 2, 0, 2)).candidates(query);
+		Assert.assertTrue(candidates1.length > 0);
+		Assert.assertTrue(Arrays.equals(candidates1, candidates2));
+		Assert.assertTrue(!Arrays.equals(candidates1, candidates3));
+
+		Assert.assertTrue(LSHIndex.newIndex(new L1DistanceMergeKNNFunc(false), references, new LSHParameters()) == null);
+	}
+
+	/**
+	 * Make sure the approximate classifier mostly agrees with the exact classifier.
+	 */
+	@Test
+	public void testClassifier() {
+		Random rand = new Random(24680);
+		double[][] centers = createCenters(rand);
+		List<LabeledData<double[]>> references = createReferences(rand, centers, REFERENCES);
+		for (IDistanceFunction<double[]> distFunc : new IDistanceFunction[] { new EuclidianDistanceMergeKNNFunc(false), new CosineDistanceMergeKNNFunc(false) }) { 
+			KNNDataSummaryClassifier<double[]> exact = new KNNDataSummaryClassifier<double[]>(distFunc, references, 0.01, 0.05, false);
+			KNNDataSummaryClassifier<double[]> approximate = new KNNDataSummaryClassifier<double[]>(distFunc, references, 0.01, 0.05, false, new LSHParameters());
+			int agree = 0;
+			for (int i=0 ; i<QUERIES ; i++) {
+				double[] query = createFeature(rand, centers[rand.nextInt(CLUSTERS)]);
+				Classification expected = exact.classify("label", query);
+				Classification actual = approximate.classify("label", query);
+				if (expected.getLabelValue().equals(actual.getLabelValue()))
+					agree++;
+			}
+			Assert.assertTrue(distFunc + " agreed on " + agree, agree >= 0.95 * QUERIES);
+			Assert.assertTrue(!approximate.equals(exact));
+		}
+	}
+
+	/**
+	 * Find the k nearest references, using a sort since this is the reference implementation.
+	 * @param candidates if not null, then only consider these references.
+	 */
+	private static int[] nearest(IDistanceFunction<double[]> distFunc, List<LabeledData<double[]>> references, double[] query, int[] candidates, int k) {
+		int count = candidates == null ? references.size() : candidates.length;
+		Double[] distances = new Double[count];
+		for (int i=0 ; i<count ; i++) 
+			distances[i] = distFunc.distance(query, references.get(candidates == null ? i : candidates[i]).getData());
+		ArrayIndexComparator comparator = new ArrayIndexComparator(distances);
+		Integer[] indexes = comparator.createIndexArray();
+		Arrays.sort(indexes, comparator);
+		int[] nearest = new int[Math.min(k, count)];
+		for (int i=0 ; i<nearest.length ; i++)
+			nearest[i] = candidates == null ? indexes[i] : candidates[indexes[i]];
+		return nearest;
+	}
+
+	private static double[][] createCenters(Random rand) {
+		double[][] centers = new double[CLUSTERS][FEATURE_LENGTH];
+		for (int i=0 ; i<CLUSTERS ; i++) {
+			for (int j=0 ; j<FEATURE_LENGTH ; j++)
+				centers[i][j] = 20 * rand.nextDouble() - 10;
+		}
+		return centers;
+	}
+
+	/**
+	 * Create references around the given cluster centers, labeled by cluster modulo 5.
+	 */
+	private static List<LabeledData<double[]>> createReferences(Random rand, double[][] centers, int count) {
+		List<LabeledData<double[]>> references = new ArrayList<LabeledData<double[]>>();
+		for (int i=0 ; i<count ; i++) {
+			int cluster = rand.nextInt(centers.length);
+			references.add(new LabeledData<double[]>("L" + cluster % 5, createFeature(rand, centers[cluster])));
+		}
+		return references;
+	}
+
+	private static double[] createFeature(Random rand, double[] center) {
+		double[] feature = new double[center.length];
+		for (int j=0 ; j<feature.length ; j++)
+			feature[j] = center[j] + rand.nextGaussian();
+		return feature;
+	}
+
+}
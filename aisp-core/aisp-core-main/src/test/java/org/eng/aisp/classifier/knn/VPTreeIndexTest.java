@@ -0,0 +1,189 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.classifier.knn;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.eng.aisp.classifier.knn.BaseKNNDataSummary.LabeledData;
+import org.eng.aisp.classifier.knn.merge.CorrelationMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.CosineDistanceMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.EuclidianDistanceMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.L1DistanceMergeKNNFunc;
+import org.eng.aisp.classifier.knn.merge.LpDistanceMergeKNNFunc;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class VPTreeIndexTest {
+
+	private static List<IDistanceFunction<double[]>> getMetrics() {
+		List<IDistanceFunction<double[]>> distFuncs = new ArrayList<IDistanceFunction<double[]>>();
+		distFuncs.add(new EuclidianDistanceMergeKNNFunc(false));
+		distFuncs.add(new L1DistanceMergeKNNFunc(false));
+		distFuncs.add(new LpDistanceMergeKNNFunc(1, false));
+		distFuncs.add(new LpDistanceMergeKNNFunc(3, false));
+		distFuncs.add(new LpDistanceMergeKNNFunc(0, false));
+		distFuncs.add(new LpDistanceMergeKNNFunc(Double.MAX_VALUE, false));
+		return distFuncs;
+	}
+
+	@Test
+	public void testIsMetric() {
+		for (IDistanceFunction<double[]> distFunc : getMetrics())
+			Assert.assertTrue(distFunc.toString(), VPTreeIndex.isMetric(distFunc));
+		Assert.assertTrue(!VPTreeIndex.isMetric(new LpDistanceMergeKNNFunc(false)));	// p=.5
+		Assert.assertTrue(!VPTreeIndex.isMetric(new CosineDistanceMergeKNNFunc(false)));
+		Assert.assertTrue(!VPTreeIndex.isMetric(new CorrelationMergeKNNFunc(false)));
+		Assert.assertTrue(!VPTreeIndex.isMetric(null));
+	}
+
+	/**
+	 * Make sure the nearest reference of each label and the count of nearer references found with the tree are the same as those found with a linear scan.
+	 */
+	@Test
+	public void testMatchesLinearScan() {
+		Random rand = new Random(2468);
+		int[] referenceCounts = new int[] { 1, 17, 100, 3000 };
+		int[] featureLengths = new int[] { 1, 3, 10 };
+		for (IDistanceFunction<double[]> distFunc : getMetrics()) {
+			for (int referenceCount : referenceCounts) {
+				for (int featureLength : featureLengths) {
+					// Integer values to get ties and continuous clusters to get pruning.
+					for (boolean quantize : new boolean[] { true, false }) {
+						String msg = distFunc + ", references=" + referenceCount + ", length=" + featureLength + ", quantize=" + quantize;
+						List<LabeledData<double[]>> references = createClusteredReferences(rand, referenceCount, featureLength, 4, quantize);
+						VPTreeIndex<double[]> index = VPTreeIndex.newIndex(distFunc, references, 4, 1);
+						Assert.assertTrue(msg, index != null);
+						for (int i=0 ; i<20 ; i++) {
+							double[] query = i == 0 ? references.get(0).getData() : createClusteredFeature(rand, featureLength, 4, quantize);
+							validateSearch(msg, index, distFunc, references, query);
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Make sure the classifier using the tree gives the same classifications as when it scans all the references, including after serialization.
+	 */
+	@Test
+	public void testClassifierMatchesLinearScan() throws Exception {
+		Random rand = new Random(1357);
+		int referenceCount = 5000, featureLength = 5;
+		for (IDistanceFunction<double[]> distFunc : getMetrics()) {
+			List<LabeledData<double[]>> references = createClusteredReferences(rand, referenceCount, featureLength, 6, false);
+			KNNDataSummaryClassifier<double[]> expected = new KNNDataSummaryClassifier<double[]>(distFunc, references, 0.01, 0.05, true, -1);
+			KNNDataSummaryClassifier<double[]> classifier = new KNNDataSummaryClassifier<double[]>(distFunc, references, 0.01, 0.05, true, 0);
+			Assert.assertTrue(getTree(classifier) == null);	// Built on first use.
+			Assert.assertTrue(!expected.isIndexed());
+			Assert.assertTrue(classifier.isIndexed());
+			List<double[]> queries = new ArrayList<double[]>();
+			for (int i=0 ; i<20 ; i++) 
+				queries.add(createClusteredFeature(rand, featureLength, 6, false));
+			validateClassifier(distFunc.toString(), expected, classifier, queries);
+
+			// The tree is not serialized with the classifier and is rebuilt on first use.
+			KNNDataSummaryClassifier<double[]> deserialized = copy(classifier);
+			Assert.assertTrue(getTree(deserialized) == null);
+			validateClassifier(distFunc.toString(), expected, deserialized, queries);
+			Assert.assertTrue(getTree(deserialized) != null);	// Since referenceCount is above the default min size.
+		}
+
+		// Non-metric distances are not indexed.
+		List<LabeledData<double[]>> references = createClusteredReferences(rand, 100, 5, 6, false);
+		Assert.assertTrue(!new KNNDataSummaryClassifier<double[]>(new CosineDistanceMergeKNNFunc(false), references, 0.01, 0.05, true, 0).isIndexed());
+		Assert.assertTrue(!new KNNDataSummaryClassifier<double[]>(new CorrelationMergeKNNFunc(false), references, 0.01, 0.05, true, 0).isIndexed());
+	}
+
+	private static void validateClassifier(String msg, KNNDataSummaryClassifier<double[]> expected, KNNDataSummaryClassifier<double[]> classifier, List<double[]> queries) {
+		for (double[] query : queries)
+			Assert.assertEquals(msg, expected.classify("label", query), classifier.classify("label", query));
+		Assert.assertEquals(msg, expected.classify("label", queries), classifier.classify("label", queries));
+	}
+
+	private static void validateSearch(String msg, VPTreeIndex<double[]> index, IDistanceFunction<double[]> distFunc, List<LabeledData<double[]>> references, double[] query) {
+		// Find the nearest of each label with a linear scan.
+		List<String> labels = new ArrayList<String>();
+		List<Integer> expectedNearest = new ArrayList<Integer>();
+		double[] distances = new double[references.size()];
+		for (int i=0 ; i<references.size() ; i++) {
+			distances[i] = distFunc.distance(query, references.get(i).getData());
+			String label = references.get(i).getLabel();
+			int slot = labels.indexOf(label);
+			if (slot < 0) {
+				labels.add(label);
+				expectedNearest.add(i);
+			} else if (distances[i] < distances[expectedNearest.get(slot)]) {
+				expectedNearest.set(slot, i);
+			}
+		}
+
+		int[] nearest = new int[index.getLabelCount()];
+		double[] nearestDistances = new double[nearest.length];
+		Assert.assertEquals(msg, labels.size(), nearest.length);
+		Assert.assertTrue(msg, index.nearestPerLabel(query, distFunc, references, nearest, nearestDistances, Integer.MAX_VALUE));
+		for (int slot=0 ; slot<nearest.length ; slot++) {
+			int expectedIndex = expectedNearest.get(slot);
+			Assert.assertEquals(msg, expectedIndex, nearest[slot]);
+			Assert.assertTrue(msg, distances[expectedIndex] == nearestDistances[slot]);
+		}
+	}
+
+	private static List<LabeledData<double[]>> createClusteredReferences(Random rand, int count, int featureLength, int labelCount, boolean quantize) {
+		List<LabeledData<double[]>> references = new ArrayList<LabeledData<double[]>>();
+		for (int i=0 ; i<count ; i++)
+			references.add(new LabeledData<double[]>("L" + rand.nextInt(labelCount), createClusteredFeature(rand, featureLength, labelCount, quantize)));
+		return references;
+	}
+
+	/**
+	 * Create a feature near one of a set of cluster centers.
+	 */
+	private static double[] createClusteredFeature(Random rand, int featureLength, int clusterCount, boolean quantize) {
+		double center = 10 * rand.nextInt(clusterCount);
+		double[] feature = new double[featureLength];
+		for (int j=0 ; j<featureLength ; j++) {
+			feature[j] = center + 2 * rand.nextGaussian();
+			if (quantize)
+				feature[j] = Math.round(feature[j]);
+		}
+		return feature;
+	}
+
+	@SuppressWarnings("unchecked")
+	private static KNNDataSummaryClassifier<double[]> copy(KNNDataSummaryClassifier<double[]> classifier) throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(classifier);
+		oos.close();
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+		return (KNNDataSummaryClassifier<double[]>)ois.readObject();
+	}
+
+	private static Object getTree(KNNDataSummaryClassifier<double[]> classifier) throws Exception {
+		Field field = KNNDataSummaryClassifier.class.getDeclaredField("vpTree");
+		field.setAccessible(true);
+		return field.get(classifier);
+	}
+
+}
@@ -18,7 +18,10 @@ package org.eng.aisp.feature;
 
 import org.eng.aisp.feature.extractor.FeatureExtractorTestSuite;
 import org.eng.aisp.feature.pipeline.CachingFeatureExtractionPipelineTest;
+import org.eng.aisp.feature.pipeline.DiskFeatureGramCacheTest;
 import org.eng.aisp.feature.pipeline.FeatureExtractionPipelineTest;
+import org.eng.aisp.feature.pipeline.LabeledFeatureIteratorTest;
+import org.eng.aisp.feature.pipeline.StreamingBatchedFeatureExtractorTest;
 import org.eng.aisp.feature.processor.vector.FeatureProcessorTestSuite;
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
@@ -35,6 +38,9 @@ import org.junit.runners.Suite;
 	FeatureGramNormalizerTest.class,
 	FeatureExtractionPipelineTest.class,
 	CachingFeatureExtractionPipelineTest.class,
+	StreamingBatchedFeatureExtractorTest.class,
+	LabeledFeatureIteratorTest.class,
+	DiskFeatureGramCacheTest.class,
 	CSVFeatureReadWriteTest.class
         })
 public class FeatureTestSuite {
@@ -15,6 +15,8 @@
  *******************************************************************************/
 package org.eng.aisp.feature.extractor;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 import org.eng.aisp.DoubleWindow;
@@ -24,6 +26,7 @@ import org.eng.aisp.SoundTestUtils;
 import org.eng.aisp.feature.DoubleFeature;
 import org.eng.aisp.feature.IFeature;
 import org.eng.aisp.feature.extractor.vector.util.ExtendedFFT;
+import org.eng.aisp.processor.GenericCachingDataProcessor;
 import org.eng.aisp.util.VectorUtils;
 import org.eng.util.ISignalGenerator;
 import org.eng.util.MathUtil;
@@ -144,6 +147,67 @@ public abstract class AbstractFeatureExtractorTest {
        	Assert.assertTrue("v1=" + v1 + ", v2=" + v2, diffRelative <= threshFactor || diffAbsolute == 0.0);  
 	}
 
+	/**
+	 * Make sure extractors that support batch extraction produce the same features as extraction on each sub-window.
+	 */
+	@Test
+	public void testBatchExtraction() {
+		IFeatureExtractor<double[], double[]> fe = getFeatureExtractor();
+		Assume.assumeTrue(fe instanceof IBatchFeatureExtractor);
+		IBatchFeatureExtractor<double[], double[]> bfe = (IBatchFeatureExtractor<double[], double[]>)fe;
+		double[][] sizeAndShift = new double[][] { { 40, 20 }, { 40, 40 }, { 25, 10 }, { 50, 0 } };
+		for (int samplingRate : new int[] { 16000, 44100 }) {
+			SoundClip clip = SoundTestUtils.createClips(1, 1000, 0, 1000, 1, samplingRate, 16, 1, 0, 1000, true).get(0);
+			for (double[] ss : sizeAndShift) {
+				double windowSizeMsec = ss[0], windowShiftMsec = ss[1] <= 0 ? ss[0] : ss[1];
+				List<IFeature<double[]>> expected = new ArrayList<IFeature<double[]>>();
+				double startMsec = clip.getStartTimeMsec(), endMsec = startMsec + windowSizeMsec;
+				while (endMsec <= clip.getEndTimeMsec()) {
+					IDataWindow<double[]> subwin = clip.subWindow(startMsec, endMsec);
+					if (subwin != null)
+						expected.add(fe.apply(subwin));
+					startMsec += windowShiftMsec;
+					endMsec += windowShiftMsec;
+				}
+				List<IFeature<double[]>> actual = bfe.applyBatch(clip, ss[0], ss[1]);
+				Assert.assertTrue(expected.size() > 0);
+				Assert.assertTrue(expected.size() == actual.size());
+				for (int i=0 ; i<expected.size() ; i++) {
+					IFeature<double[]> e = expected.get(i), a = actual.get(i);
+					Assert.assertTrue(e.getStartTimeMsec() == a.getStartTimeMsec());
+					Assert.assertTrue(e.getEndTimeMsec() == a.getEndTimeMsec());
+					Assert.assertTrue(Arrays.equals(e.getData(), a.getData()));
+					Assert.assertTrue(Arrays.equals(e.getIndependentValues(), a.getIndependentValues()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Make sure batch extraction uses and fills the feature cache when it is enabled.
+	 */
+	@Test
+	public void testBatchExtractionCache() {
+		IFeatureExtractor<double[], double[]> fe = getFeatureExtractor();
+		Assume.assumeTrue(fe instanceof IBatchFeatureExtractor);
+		IBatchFeatureExtractor<double[], double[]> bfe = (IBatchFeatureExtractor<double[], double[]>)fe;
+		SoundClip clip = SoundTestUtils.createClips(1, 1000, 0, 1000, 1, 44100, 16, 1, 0, 1000, true).get(0);
+		boolean useCache = GenericCachingDataProcessor.USE_FEATURE_CACHE;
+		try {
+			GenericCachingDataProcessor.USE_FEATURE_CACHE = true;
+			// Extract one sub-window before the batch to make sure it is found in the cache.
+			IFeature<double[]> first = fe.apply(clip.subWindow(clip.getStartTimeMsec(), clip.getStartTimeMsec() + 40));
+			List<IFeature<double[]>> features = bfe.applyBatch(clip, 40, 20);
+			Assert.assertTrue(features.get(0) == first);
+			List<IFeature<double[]>> cachedFeatures = bfe.applyBatch(clip, 40, 20);
+			Assert.assertTrue(features.size() == cachedFeatures.size());
+			for (int i=0 ; i<features.size() ; i++) 
+				Assert.assertTrue(features.get(i) == cachedFeatures.get(i));
+		} finally {
+			GenericCachingDataProcessor.USE_FEATURE_CACHE = useCache;
+		}
+	}
+
 	@Test
 	public void testFrequencyRange() {
 		int maxFFTSize = 32;
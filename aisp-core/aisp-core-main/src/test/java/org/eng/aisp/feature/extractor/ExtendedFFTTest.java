@@ -0,0 +1,250 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.feature.extractor;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.math3.complex.Complex;
+import org.apache.commons.math3.transform.DftNormalization;
+import org.apache.commons.math3.transform.FastFourierTransformer;
+import org.apache.commons.math3.transform.TransformType;
+import org.eng.aisp.DoubleWindow;
+import org.eng.aisp.IDataWindow;
+import org.eng.aisp.SoundClip;
+import org.eng.aisp.SoundTestUtils;
+import org.eng.aisp.feature.extractor.vector.util.ExtendedFFT;
+import org.eng.aisp.util.Signal2D;
+import org.eng.aisp.util.VectorUtils;
+import org.eng.util.MathUtil;
+import org.eng.util.Sample;
+import org.junit.Assert;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class ExtendedFFTTest {
+
+	/**
+	 * Make sure the power matches that computed by the implementation that created a new FFT and arrays on each call.
+	 */
+	@Test
+	public void testMatchesUncachedPower() {
+		double maxPeakToNoise = ExtendedFFT.MAX_PEAK_TO_NOISE_FLOOR_RATIO;
+		int[] samplingRates = new int[] { 8000, 16000, 44100, 48000 };
+		int[] durationsMsec = new int[] { 25, 40, 100, 1000 };
+		int[] targetRates = new int[] { 0, 16000, 44100 };
+		int[] extraPadding = new int[] { 0, 2 };
+		for (int samplingRate : samplingRates) {
+			for (int durationMsec : durationsMsec) {
+				SoundClip clip = SoundTestUtils.createClips(1, 0, 0, durationMsec, 1, samplingRate, 16, 1, 0, 1000, true).get(0);
+				double[] data = clip.getData();
+				for (int targetRate : targetRates) {
+					for (int extra : extraPadding) {
+						String msg = "rate=" + samplingRate + ", msec=" + durationMsec + ", target=" + targetRate + ", extra=" + extra;
+						Signal2D expected = uncachedPower(data.clone(), samplingRate, targetRate, ExtendedFFT.DEFAULT_PAD_TO_POWER_OF_TWO, extra, maxPeakToNoise);
+						Signal2D actual = ExtendedFFT.power(data, samplingRate, targetRate, extra, maxPeakToNoise);
+						// Call it a 2nd time to use the cached FFT plan and buffer.
+						Signal2D actual2 = ExtendedFFT.power(data, samplingRate, targetRate, extra, maxPeakToNoise, actual.getYValues().clone());
+						validatePower(msg, expected, actual);
+						validatePower(msg, expected, actual2);
+					}
+				}
+				if (samplingRate == ExtendedFFT.DEFAULT_FFT_MAX_SAMPLING_RATE) {
+					Signal2D expected = uncachedPower(data.clone(), samplingRate, 0, ExtendedFFT.DEFAULT_PAD_TO_POWER_OF_TWO, 0, maxPeakToNoise);
+					validatePower("clip", expected, ExtendedFFT.power(clip, maxPeakToNoise));
+				}
+			}
+		}
+		// Make sure the data is not modified.
+		double[] data = SoundTestUtils.createClips(1, 0, 0, 40, 1, 44100, 16, 1, 0, 1000, true).get(0).getData();
+		double[] copy = data.clone();
+		ExtendedFFT.power(data, 44100, maxPeakToNoise);
+		Assert.assertTrue(Arrays.equals(data, copy));
+	}
+
+	/**
+	 * Make sure the power spectra computed together for a list of windows are the same as those computed on each window.
+	 */
+	@Test
+	public void testWindowListPower() {
+		double maxPeakToNoise = ExtendedFFT.MAX_PEAK_TO_NOISE_FLOOR_RATIO;
+		for (int samplingRate : new int[] { 16000, 44100, 48000 }) {
+			SoundClip clip = SoundTestUtils.createClips(1, 0, 0, 1000, 1, samplingRate, 16, 1, 0, 1000, true).get(0);
+			List<IDataWindow<double[]>> windows = new ArrayList<IDataWindow<double[]>>();
+			for (double startMsec = 0 ; startMsec + 40 <= clip.getEndTimeMsec() ; startMsec += 20)
+				windows.add(clip.subWindow(startMsec, startMsec + 40));
+			// Include windows of other lengths and one that is not a sub-window view.
+			windows.add(1, clip.subWindow(100, 125));
+			windows.add(clip.subWindow(500, 1000));
+			windows.add(new DoubleWindow(0, 40, clip.subWindow(0, 40).getData()));
+			for (int targetRate : new int[] { 0, 16000, 44100 }) {
+				Signal2D[] spectra = ExtendedFFT.power(windows, targetRate, 0, maxPeakToNoise);
+				Assert.assertTrue(spectra.length == windows.size());
+				for (int i=0 ; i<windows.size() ; i++) {
+					Signal2D expected = ExtendedFFT.power(windows.get(i), targetRate, 0, maxPeakToNoise);
+					String msg = "rate=" + samplingRate + ", target=" + targetRate + ", index=" + i;
+					Assert.assertTrue(msg, expected.getXValues().equals(spectra[i].getXValues()));
+					Assert.assertTrue(msg, Arrays.equals(expected.getYValues(), spectra[i].getYValues()));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Make sure that reusing the FFT plan and buffers, and writing into a caller supplied array significantly reduces the amount of allocation.
+	 */
+	@Test
+	public void testAllocation() {
+		Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+		Assume.assumeTrue(bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled());
+		long tid = Thread.currentThread().getId();
+
+		double maxPeakToNoise = ExtendedFFT.MAX_PEAK_TO_NOISE_FLOOR_RATIO;
+		int samplingRate = ExtendedFFT.DEFAULT_FFT_MAX_SAMPLING_RATE;
+		double[] data = SoundTestUtils.createClips(1, 0, 0, 40, 1, samplingRate, 16, 1, 0, 1000, true).get(0).getData();
+		int count = 100;
+
+		// Warm up both implementations.
+		double[] power = null;
+		for (int i=0 ; i<count ; i++) {
+			uncachedPower(data.clone(), samplingRate, samplingRate, ExtendedFFT.DEFAULT_PAD_TO_POWER_OF_TWO, 0, maxPeakToNoise);
+			power = ExtendedFFT.power(data, samplingRate, samplingRate, 0, maxPeakToNoise, power).getYValues();
+		}
+
+		long start = bean.getThreadAllocatedBytes(tid);
+		for (int i=0 ; i<count ; i++)
+			uncachedPower(data, samplingRate, samplingRate, ExtendedFFT.DEFAULT_PAD_TO_POWER_OF_TWO, 0, maxPeakToNoise);
+		long uncachedBytes = bean.getThreadAllocatedBytes(tid) - start;
+
+		start = bean.getThreadAllocatedBytes(tid);
+		for (int i=0 ; i<count ; i++)
+			power = ExtendedFFT.power(data, samplingRate, samplingRate, 0, maxPeakToNoise, power).getYValues();
+		long cachedBytes = bean.getThreadAllocatedBytes(tid) - start;
+
+		start = bean.getThreadAllocatedBytes(tid);
+		for (int i=0 ; i<count ; i++)
+			ExtendedFFT.power(data, samplingRate, samplingRate, 0, maxPeakToNoise);
+		long cachedNewArrayBytes = bean.getThreadAllocatedBytes(tid) - start;
+
+		System.out.println("Bytes/call uncached=" + uncachedBytes / count + ", cached=" + cachedBytes / count + ", cached with new array=" + cachedNewArrayBytes / count);
+		Assert.assertTrue(cachedBytes * 20 < uncachedBytes);
+		Assert.assertTrue(cachedNewArrayBytes * 4 < uncachedBytes);
+	}
+
+	private static void validatePower(String msg, Signal2D expected, Signal2D actual) {
+		Assert.assertTrue(msg, expected.size() == actual.size());
+		double[] expectedFreq = expected.getXValues().getVector(), actualFreq = actual.getXValues().getVector();
+		double[] expectedPower = expected.getYValues(), actualPower = actual.getYValues();
+		double maxPower = 0;
+		for (double p : expectedPower)
+			maxPower = Math.max(maxPower, p);
+		for (int i=0 ; i<expectedPower.length ; i++) {
+			Assert.assertTrue(msg, expectedFreq[i] == actualFreq[i]);
+			Assert.assertEquals(msg, expectedPower[i], actualPower[i], 1e-9 * maxPower);
+		}
+	}
+
+	/**
+	 * The implementation of ExtendedFFT.power() prior to caching FFT plans, windows and buffers.
+	 */
+	private static Signal2D uncachedPower(final double[] data, final double samplesPerSecond,  double targetSamplingRate, final boolean padToPowerOf2, final int extraPowerOf2Padding, double maxPeakToNoiseRation) {
+		if (targetSamplingRate <= 0)
+			targetSamplingRate = ExtendedFFT.DEFAULT_FFT_MAX_SAMPLING_RATE;
+		final boolean inPlace;
+		final int usefulFFTLength;
+		final double freqStep;
+		final int totalFFTLength;
+		final Complex[] resultsComplex;
+
+		double[] dataInWindow;
+		if (samplesPerSecond == targetSamplingRate) {
+			dataInWindow = data;
+			inPlace = false;
+		} else if (samplesPerSecond < targetSamplingRate) {
+			if(padToPowerOf2) {
+				dataInWindow = VectorUtils.interpolate(data, samplesPerSecond, targetSamplingRate);
+				inPlace = true;
+			} else {
+				dataInWindow = data;
+				inPlace = false;
+			}
+		} else {
+			double durationMsec = 1000 * data.length / samplesPerSecond;
+			int samples = (int)(targetSamplingRate * durationMsec / 1000.0 + .5);
+			dataInWindow = new double[samples];
+			Sample.downSample(data , dataInWindow, true);
+			inPlace = true;
+		}
+
+		if (ExtendedFFT.USE_HAMMING_WINDOW)
+			dataInWindow = VectorUtils.applyHammingWindow(dataInWindow, inPlace);
+		else if (ExtendedFFT.USE_HANNING_WINDOW)
+			dataInWindow = VectorUtils.applyHanningWindow(dataInWindow, inPlace);
+
+		if(padToPowerOf2) {
+			dataInWindow = MathUtil.padToPowerOfTwo(dataInWindow);
+			if (extraPowerOf2Padding > 1)
+				dataInWindow = Arrays.copyOf(dataInWindow, extraPowerOf2Padding*dataInWindow.length);
+	        FastFourierTransformer trans=new FastFourierTransformer(DftNormalization.UNITARY);
+	        resultsComplex = trans.transform(dataInWindow,TransformType.FORWARD);
+	        usefulFFTLength = resultsComplex.length / 2;
+		} else {
+			if (extraPowerOf2Padding > 1)
+				dataInWindow = Arrays.copyOf(dataInWindow, extraPowerOf2Padding*dataInWindow.length);
+	        org.jtransforms.fft.DoubleFFT_1D doubleFFT = new org.jtransforms.fft.DoubleFFT_1D(dataInWindow.length);
+	        double[] resultsFFT = Arrays.copyOf(dataInWindow, dataInWindow.length);
+	        doubleFFT.realForward(resultsFFT);
+	        resultsComplex = new Complex[resultsFFT.length / 2];
+	        for (int i=0; i < resultsComplex.length; i++) {
+	        	if (i*2 + 1 < resultsFFT.length)
+	        		resultsComplex[i] = new Complex(resultsFFT[i*2], resultsFFT[i*2 + 1]);
+	        	else
+	        		resultsComplex[i] = new Complex(resultsFFT[i*2], 0.0);
+	        }
+	        usefulFFTLength = resultsComplex.length;
+		}
+
+        double lenDouble = (double)dataInWindow.length;
+        double scalingParam = 1.0 / (lenDouble * lenDouble);
+		if(padToPowerOf2) {
+	        freqStep =  (double)targetSamplingRate / usefulFFTLength / 2.0 ;
+	        totalFFTLength = usefulFFTLength;
+		} else {
+	        freqStep =  1.0/ (double)usefulFFTLength * samplesPerSecond / 2.0;
+	        totalFFTLength = (int) (targetSamplingRate / 2.0 / freqStep);
+		}
+
+        double[] fftPower = new double[totalFFTLength];
+        double thresh = 0.0;
+        for (int i=0; i<fftPower.length; i++) {
+        	if (i < resultsComplex.length) {
+        		double amp = resultsComplex[i].abs();
+		        fftPower[i] = amp * amp * scalingParam;
+		        thresh = Math.max(thresh, fftPower[i]);
+        	}
+        }
+        thresh /= maxPeakToNoiseRation;
+        for (int i=0; i<fftPower.length; i++) {
+        	if ((fftPower[i] < thresh) || (i >= resultsComplex.length))
+        		fftPower[i] = thresh;
+        }
+        return new Signal2D(new org.eng.util.Vector(0, freqStep, totalFFTLength), fftPower);
+	}
+
+}
@@ -32,7 +32,9 @@ import org.junit.runners.Suite;
 	FFTFeatureExtractorTest.class,
 	MFCCFeatureExtractorTest.class,
 	MFFBFeatureExtractorTest.class,
-	LogMelFeatureExtractorTest.class
+	LogMelFeatureExtractorTest.class,
+	ExtendedFFTTest.class,
+	TriangleFilterTest.class
 	})
 public class FeatureExtractorTestSuite {
 
@@ -0,0 +1,150 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.feature.extractor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eng.aisp.SoundClip;
+import org.eng.aisp.SoundTestUtils;
+import org.eng.aisp.feature.extractor.vector.util.ExtendedFFT;
+import org.eng.aisp.feature.extractor.vector.util.TriangleFilter;
+import org.eng.aisp.util.Signal2D;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class TriangleFilterTest {
+
+	/**
+	 * Make sure the filter bank produces the same values as the filter that scanned all the FFT frequencies for each band.
+	 */
+	@Test
+	public void testMatchesScanningFilter() {
+		double maxPeakToNoise = ExtendedFFT.MAX_PEAK_TO_NOISE_FLOOR_RATIO;
+		int[] samplingRates = new int[] { 8000, 16000, 44100 };
+		int[] durationsMsec = new int[] { 40, 250 };
+		int[] bandCounts = new int[] { 20, 40, 64, 128 };
+		int[][] freqRanges = new int[][] { { 20, 20000 }, { 0, 8000 }, { 300, 4000 } };
+		for (int samplingRate : samplingRates) {
+			for (int durationMsec : durationsMsec) {
+				SoundClip clip = SoundTestUtils.createClips(1, 0, 0, durationMsec, 1, samplingRate, 16, 1, 0, 1000, true).get(0);
+				double[] data = clip.getData();
+				for (int numBands : bandCounts) {
+					for (int[] range : freqRanges) {
+						String msg = "rate=" + samplingRate + ", msec=" + durationMsec + ", bands=" + numBands + ", range=" + range[0] + "-" + range[1];
+						Signal2D power = ExtendedFFT.power(data, samplingRate, 0, 1, maxPeakToNoise);
+						Signal2D expected = scanningFilter(power, numBands, range[0], range[1]);
+						Signal2D actual = TriangleFilter.filter(data, samplingRate, 0, numBands, range[0], range[1], maxPeakToNoise);
+						validateFilter(msg, expected, actual);
+						// And again using the cached filter bank
+						actual = TriangleFilter.filter(clip, 0, numBands, range[0], range[1], maxPeakToNoise);
+						validateFilter(msg, expected, actual);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Make sure concurrent use of the filter banks gives the same results as serial use.
+	 */
+	@Test
+	public void testConcurrentFilter() throws Exception {
+		final double maxPeakToNoise = ExtendedFFT.MAX_PEAK_TO_NOISE_FLOOR_RATIO;
+		final SoundClip clip = SoundTestUtils.createClips(1, 0, 0, 40, 1, 44100, 16, 1, 0, 1000, true).get(0);
+		final int numBands = 37, minFreq = 50, maxFreq = 12345;	// Unusual values to avoid filter banks cached by other tests.
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		try {
+			List<Future<Signal2D>> futures = new ArrayList<Future<Signal2D>>();
+			for (int i=0 ; i<64 ; i++) {
+				futures.add(executor.submit(new Callable<Signal2D>() {
+					@Override
+					public Signal2D call() {
+						return TriangleFilter.filter(clip, 0, numBands, minFreq, maxFreq, maxPeakToNoise);
+					}
+				}));
+			}
+			Signal2D power = ExtendedFFT.power(clip.getData(), clip.getSamplingRate(), 0, 1, maxPeakToNoise);
+			Signal2D expected = scanningFilter(power, numBands, minFreq, maxFreq);
+			for (Future<Signal2D> f : futures)
+				validateFilter("concurrent", expected, f.get());
+		} finally {
+			executor.shutdown();
+		}
+	}
+
+	private static void validateFilter(String msg, Signal2D expected, Signal2D actual) {
+		Assert.assertTrue(msg, expected.size() == actual.size());
+		double[] expectedFreq = expected.getXValues().getVector(), actualFreq = actual.getXValues().getVector();
+		double[] expectedPower = expected.getYValues(), actualPower = actual.getYValues();
+		for (int i=0 ; i<expectedPower.length ; i++) {
+			Assert.assertTrue(msg, expectedFreq[i] == actualFreq[i]);
+			if (Double.isNaN(expectedPower[i]))
+				Assert.assertTrue(msg, Double.isNaN(actualPower[i]));
+			else
+				Assert.assertEquals(msg, expectedPower[i], actualPower[i], 1e-12 * Math.abs(expectedPower[i]));
+		}
+	}
+
+	/**
+	 * The implementation of the triangle filter prior to using precomputed filter banks.
+	 */
+	private static Signal2D scanningFilter(Signal2D signal, int numBands, int minFreq, int maxFreq) {
+		double[] fftFreq = signal.getXValues().getVector();
+		double[] fftPower = signal.getYValues();
+		minFreq= Math.max(minFreq, 0);
+		maxFreq = Math.min(maxFreq, (int)fftFreq[fftFreq.length-1]);
+
+		int[] centerFreqs = new int[numBands+2];
+		int minMel = TriangleFilter.freqToMel(minFreq);
+		int maxMel = TriangleFilter.freqToMel(maxFreq);
+		for (int i=0; i<numBands+2; i++) {
+			int mel = minMel + i*(maxMel-minMel)/ (numBands+1);
+			centerFreqs[i] = TriangleFilter.melToFreq(mel);
+			centerFreqs[i] = Math.max(centerFreqs[i], minFreq);
+			centerFreqs[i] = Math.min(centerFreqs[i], maxFreq);
+		}
+
+		double[] power = new double[numBands];
+		double[] frequency = new double[numBands];
+		for(int i = 1; i < numBands+1; i++) {
+			int startFreq  = centerFreqs[i-1];
+			int centerFreq = centerFreqs[i];
+			int stopFreq   = centerFreqs[i+1];
+			double divisor1 = 1.0 / Math.pow(centerFreq - startFreq, 2);
+			double divisor2 = 1.0 / Math.pow(centerFreq - stopFreq, 2);
+			for (int j=0; j<fftFreq.length; j++) {
+				double freq = fftFreq[j];
+				boolean past = freq > stopFreq;
+				if (freq >= startFreq && !past) {
+					if (freq <= centerFreq)
+						power[i-1] += fftPower[j] * (freq - startFreq) * divisor1;
+					else
+						power[i-1] += fftPower[j] * (stopFreq - freq) * divisor2;
+				} else if (past) {
+					break;
+				}
+			}
+			frequency[i-1] = centerFreqs[i];
+		}
+		return new Signal2D(new org.eng.util.Vector(frequency), power);
+	}
+
+}
@@ -0,0 +1,350 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.feature.pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.eng.aisp.DoubleWindow;
+import org.eng.aisp.IDataWindow;
+import org.eng.aisp.SoundRecording;
+import org.eng.aisp.SoundTestUtils;
+import org.eng.aisp.feature.DoubleFeature;
+import org.eng.aisp.feature.FeatureGramDescriptor;
+import org.eng.aisp.feature.IFeature;
+import org.eng.aisp.feature.IFeatureGram;
+import org.eng.aisp.feature.IFeatureGramDescriptor;
+import org.eng.aisp.feature.ILabeledFeatureGram;
+import org.eng.aisp.feature.extractor.IFeatureExtractor;
+import org.eng.aisp.feature.extractor.vector.FFTFeatureExtractor;
+import org.eng.aisp.feature.extractor.vector.MFCCFeatureExtractor;
+import org.eng.aisp.feature.processor.vector.NormalizingFeatureProcessor;
+import org.eng.util.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DiskFeatureGramCacheTest {
+
+	private File dir;
+
+	/**
+	 * Counts the number of features extracted.
+	 */
+	private static class CountingFeatureExtractor implements IFeatureExtractor<double[],double[]> {
+		private static final long serialVersionUID = -6128452468702384539L;
+		final AtomicInteger count = new AtomicInteger();
+		final IFeatureExtractor<double[],double[]> extractor = new MFCCFeatureExtractor();
+
+		@Override
+		public IFeature<double[]> apply(IDataWindow<double[]> t) {
+			count.incrementAndGet();
+			return extractor.apply(t);
+		}
+
+		@Override
+		public int hashCode() {
+			return extractor.hashCode();
+		}
+	}
+
+	/**
+	 * Scales the MFCC features by a configured amount, with a hash code that does not depend on the scale.
+	 */
+	private static class ScalingFeatureExtractor implements IFeatureExtractor<double[],double[]> {
+		private static final long serialVersionUID = 4263179854072163527L;
+		final double scale;
+		final IFeatureExtractor<double[],double[]> extractor = new MFCCFeatureExtractor();
+
+		ScalingFeatureExtractor(double scale) {
+			this.scale = scale;
+		}
+
+		@Override
+		public IFeature<double[]> apply(IDataWindow<double[]> t) {
+			IFeature<double[]> f = extractor.apply(t);
+			double[] data = f.getData().clone();
+			for (int i=0 ; i<data.length ; i++)
+				data[i] *= scale;
+			return new DoubleFeature(f.getStartTimeMsec(), f.getEndTimeMsec(), data);
+		}
+
+		@Override
+		public int hashCode() {
+			return 1;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			return obj instanceof ScalingFeatureExtractor && ((ScalingFeatureExtractor)obj).scale == scale;
+		}
+	}
+
+	@Before
+	public void createDir() throws IOException {
+		dir = FileUtils.createTempDir();
+	}
+
+	@After
+	public void deleteDir() {
+		FileUtils.deleteFile(dir);
+	}
+
+	private static IFeatureGram<double[]> extract(IFeatureGramDescriptor<double[],double[]> fgd, IDataWindow<double[]> window) {
+		return new FeatureExtractionPipeline<double[],double[]>(fgd).extract(window)[0];
+	}
+
+	private static List<SoundRecording> getRecordings(int count) {
+		Properties labels = new Properties();
+		labels.setProperty("source", "test");
+		return SoundTestUtils.createTrainingRecordings(count, 1000, 1000, labels, true);
+	}
+
+	/**
+	 * Make sure feature grams come back from the cache exactly as they went in.
+	 */
+	@Test
+	public void testRoundTrip() throws IOException {
+		List<SoundRecording> srList = getRecordings(4);
+		List<IFeatureGramDescriptor<double[],double[]>> fgdList = new ArrayList<IFeatureGramDescriptor<double[],double[]>>();
+		fgdList.add(new FeatureGramDescriptor<double[],double[]>(40, 20, new MFCCFeatureExtractor(), null));
+		fgdList.add(new FeatureGramDescriptor<double[],double[]>(40, 40, new FFTFeatureExtractor(), new NormalizingFeatureProcessor()));
+
+		DiskFeatureGramCache cache = new DiskFeatureGramCache(dir, 1024 * 1024 * 1024, 1024 * 1024, false);
+		for (IFeatureGramDescriptor<double[],double[]> fgd : fgdList) {
+			for (SoundRecording sr : srList) {
+				long hash = DiskFeatureGramCache.getWindowHash(sr.getDataWindow());
+				Assert.assertTrue(hash != 0);
+				Assert.assertTrue(cache.get(hash, fgd) == null);
+				IFeatureGram<double[]> fg = extract(fgd, sr.getDataWindow());
+				Assert.assertTrue(cache.put(hash, fgd, fg));
+				IFeatureGram<double[]> cachedFG = cache.get(hash, fgd);
+				Assert.assertTrue(cachedFG != null);
+				Assert.assertTrue(fg.equals(cachedFG));
+			}
+		}
+		Assert.assertTrue(cache.size() == srList.size() * fgdList.size());
+
+		// Make sure they survive closing and reopening.
+		cache.close();
+		cache = new DiskFeatureGramCache(dir, 1024 * 1024 * 1024, 1024 * 1024, false);
+		Assert.assertTrue(cache.size() == srList.size() * fgdList.size());
+		for (IFeatureGramDescriptor<double[],double[]> fgd : fgdList) {
+			for (SoundRecording sr : srList) {
+				IFeatureGram<double[]> cachedFG = cache.get(DiskFeatureGramCache.getWindowHash(sr.getDataWindow()), fgd);
+				Assert.assertTrue(extract(fgd, sr.getDataWindow()).equals(cachedFG));
+			}
+		}
+
+		// Reopening with a different precision discards the previous entries.
+		cache.close();
+		cache = new DiskFeatureGramCache(dir, 1024 * 1024 * 1024, 1024 * 1024, true);
+		Assert.assertTrue(cache.size() == 0);
+		IFeatureGramDescriptor<double[],double[]> fgd = fgdList.get(0);
+		IDataWindow<double[]> window = srList.get(0).getDataWindow();
+		IFeatureGram<double[]> fg = extract(fgd, window);
+		long hash = DiskFeatureGramCache.getWindowHash(window);
+		cache.put(hash, fgd, fg);
+		IFeature<double[]>[] features = fg.getFeatures();
+		IFeature<double[]>[] cachedFeatures = cache.get(hash, fgd).getFeatures();
+		Assert.assertTrue(features.length == cachedFeatures.length);
+		for (int i=0 ; i<features.length ; i++) {
+			double[] data = features[i].getData();
+			double[] cachedData = cachedFeatures[i].getData();
+			for (int j=0 ; j<data.length ; j++)
+				Assert.assertTrue(cachedData[j] == (float)data[j]);
+		}
+		cache.close();
+	}
+
+	/**
+	 * Make sure the size cap is respected and the least recently used segments are removed.
+	 */
+	@Test
+	public void testEviction() throws IOException {
+		List<SoundRecording> srList = getRecordings(20);
+		IFeatureGramDescriptor<double[],double[]> fgd = new FeatureGramDescriptor<double[],double[]>(40, 20, new MFCCFeatureExtractor(), null);
+		List<Long> hashes = new ArrayList<Long>();
+		List<IFeatureGram<double[]>> fgList = new ArrayList<IFeatureGram<double[]>>();
+		for (SoundRecording sr : srList) {
+			hashes.add(DiskFeatureGramCache.getWindowHash(sr.getDataWindow()));
+			fgList.add(extract(fgd, sr.getDataWindow()));
+		}
+		// Size the segments to hold 2 feature grams each and the cache to hold 3 segments.
+		DiskFeatureGramCache cache = new DiskFeatureGramCache(dir, 1024 * 1024 * 1024, 1024 * 1024, false);
+		cache.put(hashes.get(0), fgd, fgList.get(0));
+		int fgBytes = (int)cache.getSizeBytes();
+		cache.close();
+		FileUtils.deleteDirContents(dir);
+		int segmentBytes = 2 * fgBytes;
+		long maxBytes = 3 * segmentBytes;
+		cache = new DiskFeatureGramCache(dir, maxBytes, segmentBytes, false);
+
+		for (int i=0 ; i<srList.size() ; i++) {
+			Assert.assertTrue(cache.put(hashes.get(i), fgd, fgList.get(i)));
+			// Keep the first segment in use.
+			Assert.assertTrue(cache.get(hashes.get(0), fgd) != null);
+			Assert.assertTrue(cache.getSizeBytes() <= maxBytes);
+			Assert.assertTrue(cache.getSegmentCount() <= 3);
+		}
+		Assert.assertTrue(cache.size() == 6);
+		// The first, most recent and oldest unused entries.
+		Assert.assertTrue(fgList.get(1).equals(cache.get(hashes.get(1), fgd)));
+		Assert.assertTrue(fgList.get(19).equals(cache.get(hashes.get(19), fgd)));
+		Assert.assertTrue(cache.get(hashes.get(2), fgd) == null);
+		Assert.assertTrue(dir.listFiles().length == 2 * 3 + 1);	// index and segment files plus the lock file.
+
+		cache.clear();
+		Assert.assertTrue(cache.size() == 0);
+		Assert.assertTrue(cache.getSizeBytes() == 0);
+		cache.close();
+	}
+
+	/**
+	 * Make sure entries are not returned when the feature gram configuration changes.
+	 */
+	@Test
+	public void testInvalidation() throws IOException {
+		IDataWindow<double[]> window = getRecordings(1).get(0).getDataWindow();
+		IFeatureGramDescriptor<double[],double[]> fgd1 = new FeatureGramDescriptor<double[],double[]>(40, 20, new MFCCFeatureExtractor(),
+					new NormalizingFeatureProcessor(true, true, false, true));
+		IFeatureGramDescriptor<double[],double[]> fgd2 = new FeatureGramDescriptor<double[],double[]>(40, 20, new MFCCFeatureExtractor(),
+					new NormalizingFeatureProcessor(false, true, false, true));
+		IFeatureGramDescriptor<double[],double[]> fgd3 = new FeatureGramDescriptor<double[],double[]>(40, 20, new MFCCFeatureExtractor(20),
+					new NormalizingFeatureProcessor(true, true, false, true));
+		DiskFeatureGramCache cache = new DiskFeatureGramCache(dir, 1024 * 1024 * 1024, 1024 * 1024, false);
+		long hash = DiskFeatureGramCache.getWindowHash(window);
+		cache.put(hash, fgd1, extract(fgd1, window));
+		Assert.assertTrue(cache.get(hash, fgd1) != null);
+		Assert.assertTrue(cache.get(hash, fgd2) == null);
+		Assert.assertTrue(cache.get(hash, fgd3) == null);
+
+		// Also the same data at a different time.
+		IDataWindow<double[]> shifted = new DoubleWindow(window.getStartTimeMsec() + 1000, window.getEndTimeMsec() + 1000, window.getData());
+		Assert.assertTrue(DiskFeatureGramCache.getWindowHash(shifted) != hash);
+		Assert.assertTrue(cache.get(DiskFeatureGramCache.getWindowHash(shifted), fgd1) == null);
+
+		Assert.assertTrue(cache.invalidate(fgd1) == 1);
+		Assert.assertTrue(cache.get(hash, fgd1) == null);
+		Assert.assertTrue(cache.getSegmentCount() == 0);
+		Assert.assertTrue(dir.listFiles().length == 1);	// Only the lock file.
+
+		// Make sure invalidated entries are not loaded by a later instance when they share a segment with other entries.
+		cache.put(hash, fgd1, extract(fgd1, window));
+		cache.put(hash, fgd2, extract(fgd2, window));
+		Assert.assertTrue(cache.invalidate(fgd1) == 1);
+		Assert.assertTrue(cache.size() == 1);
+		cache.close();
+		// Also include files left behind by a process that exited while a get() was reading an evicted segment or an index was being rewritten.
+		Assert.assertTrue(new File(dir, "99999999.seg").createNewFile());
+		Assert.assertTrue(new File(dir, "99999998.idx.tmp").createNewFile());
+		cache = new DiskFeatureGramCache(dir, 1024 * 1024 * 1024, 1024 * 1024, false);
+		Assert.assertTrue(cache.size() == 1);
+		Assert.assertTrue(cache.get(hash, fgd1) == null);
+		Assert.assertTrue(cache.get(hash, fgd2) != null);
+		Assert.assertFalse(new File(dir, "99999999.seg").exists());
+		Assert.assertFalse(new File(dir, "99999998.idx.tmp").exists());
+		// New entries go to a new segment so the rewritten index is never appended to.
+		cache.put(hash, fgd1, extract(fgd1, window));
+		Assert.assertTrue(cache.getSegmentCount() == 2);
+		cache.close();
+		cache = new DiskFeatureGramCache(dir, 1024 * 1024 * 1024, 1024 * 1024, false);
+		Assert.assertTrue(cache.size() == 2);
+		cache.close();
+	}
+
+	/**
+	 * Make sure different descriptors with the same hash code do not read each other's feature grams, 
+	 * and that equal descriptors created by a later instance find them.
+	 */
+	@Test
+	public void testDescriptorHashCollision() throws IOException {
+		IDataWindow<double[]> window = getRecordings(1).get(0).getDataWindow();
+		IFeatureGramDescriptor<double[],double[]> fgd1 = new FeatureGramDescriptor<double[],double[]>(40, 20, new ScalingFeatureExtractor(1), null);
+		IFeatureGramDescriptor<double[],double[]> fgd2 = new FeatureGramDescriptor<double[],double[]>(40, 20, new ScalingFeatureExtractor(2), null);
+		Assert.assertTrue(fgd1.hashCode() == fgd2.hashCode());
+		Assert.assertFalse(fgd1.equals(fgd2));
+		IFeatureGram<double[]> fg1 = extract(fgd1, window);
+		IFeatureGram<double[]> fg2 = extract(fgd2, window);
+		Assert.assertFalse(fg1.equals(fg2));
+
+		DiskFeatureGramCache cache = new DiskFeatureGramCache(dir, 1024 * 1024 * 1024, 1024 * 1024, false);
+		long hash = DiskFeatureGramCache.getWindowHash(window);
+		Assert.assertTrue(cache.put(hash, fgd1, fg1));
+		Assert.assertTrue(cache.get(hash, fgd2) == null);
+		Assert.assertTrue(cache.put(hash, fgd2, fg2));
+		Assert.assertTrue(cache.size() == 2);
+		Assert.assertTrue(fg1.equals(cache.get(hash, fgd1)));
+		Assert.assertTrue(fg2.equals(cache.get(hash, fgd2)));
+		cache.close();
+
+		cache = new DiskFeatureGramCache(dir, 1024 * 1024 * 1024, 1024 * 1024, false);
+		fgd1 = new FeatureGramDescriptor<double[],double[]>(40, 20, new ScalingFeatureExtractor(1), null);
+		fgd2 = new FeatureGramDescriptor<double[],double[]>(40, 20, new ScalingFeatureExtractor(2), null);
+		Assert.assertTrue(fg1.equals(cache.get(hash, fgd1)));
+		Assert.assertTrue(fg2.equals(cache.get(hash, fgd2)));
+		Assert.assertTrue(cache.invalidate(fgd1) == 1);
+		Assert.assertTrue(cache.get(hash, fgd1) == null);
+		Assert.assertTrue(fg2.equals(cache.get(hash, fgd2)));
+		cache.close();
+
+		cache = new DiskFeatureGramCache(dir, 1024 * 1024 * 1024, 1024 * 1024, false);
+		Assert.assertTrue(cache.get(hash, fgd1) == null);
+		Assert.assertTrue(fg2.equals(cache.get(hash, fgd2)));
+		cache.close();
+	}
+
+	/**
+	 * Make sure the iterable created by LabeledFeatureIterable produces the same features and reads them from the cache on the second pass.
+	 */
+	@Test
+	public void testDiskCachingIterable() throws IOException {
+		List<SoundRecording> srList = getRecordings(10);
+		CountingFeatureExtractor fe = new CountingFeatureExtractor();
+		List<IFeatureGramDescriptor<double[],double[]>> fgdList = new ArrayList<IFeatureGramDescriptor<double[],double[]>>();
+		fgdList.add(new FeatureGramDescriptor<double[],double[]>(40, 20, fe, null));
+		LabeledFeatureIterable<double[],double[]> lfi = new LabeledFeatureIterable<double[],double[]>(srList, null, fgdList, true);
+		List<ILabeledFeatureGram<double[]>[]> expected = new ArrayList<ILabeledFeatureGram<double[]>[]>();
+		for (ILabeledFeatureGram<double[]>[] lfg : lfi)
+			expected.add(lfg);
+
+		DiskFeatureGramCache cache = new DiskFeatureGramCache(dir, 1024 * 1024 * 1024, 1024 * 1024, false);
+		Iterable<ILabeledFeatureGram<double[]>[]> cachingIterable = lfi.newDiskCachingIterable(cache);
+		for (int pass=0 ; pass<2 ; pass++) {
+			fe.count.set(0);
+			Iterator<ILabeledFeatureGram<double[]>[]> expectedIter = expected.iterator();
+			for (ILabeledFeatureGram<double[]>[] lfg : cachingIterable) {
+				ILabeledFeatureGram<double[]>[] expectedLFG = expectedIter.next();
+				Assert.assertTrue(lfg.length == expectedLFG.length);
+				Assert.assertTrue(lfg[0].getLabels().equals(expectedLFG[0].getLabels()));
+				Assert.assertTrue(lfg[0].getFeatureGram().equals(expectedLFG[0].getFeatureGram()));
+			}
+			Assert.assertTrue(!expectedIter.hasNext());
+			if (pass == 0)
+				Assert.assertTrue(fe.count.get() > 0);
+			else
+				Assert.assertTrue(fe.count.get() == 0);
+		}
+		Assert.assertTrue(cache.size() == srList.size());
+		cache.close();
+	}
+}
@@ -34,6 +34,7 @@ import org.eng.aisp.feature.IFeatureGramDescriptor;
 import org.eng.aisp.feature.ILabeledFeatureGram;
 import org.eng.aisp.feature.extractor.IFeatureExtractor;
 import org.eng.aisp.feature.extractor.vector.IdentityFeatureExtractor;
+import org.eng.aisp.feature.extractor.vector.MFCCFeatureExtractor;
 import org.eng.aisp.feature.processor.IFeatureProcessor;
 import org.eng.aisp.feature.processor.vector.IdentityFeatureProcessor;
 import org.eng.cache.Cache;
@@ -211,6 +212,30 @@ public class FeatureExtractionPipelineTest {
 	 * @throws IOException
 	 * @throws InterruptedException
 	 */
+	/**
+	 * Make sure enabling batch extraction of sub-window features does not change the feature grams.
+	 */
+	@Test
+	public void testBatchExtraction() {
+		Properties labels = new Properties();
+		labels.setProperty("source", "test");
+		List<SoundRecording> srList = SoundTestUtils.createTrainingRecordings(2, 1000, 1000, labels, true);
+		FeatureGramExtractor<double[],double[]> fge = new FeatureGramExtractor<double[],double[]>(40, 20, new MFCCFeatureExtractor(), null);
+		boolean useBatch = FeatureGramExtractor.USE_BATCH_EXTRACTION;
+		try {
+			for (SoundRecording sr : srList) {
+				FeatureGramExtractor.USE_BATCH_EXTRACTION = false;
+				IFeatureGram<double[]> expected = fge.extractFeatureGram(sr.getDataWindow());
+				FeatureGramExtractor.USE_BATCH_EXTRACTION = true;
+				IFeatureGram<double[]> actual = fge.extractFeatureGram(sr.getDataWindow());
+				Assert.assertTrue(expected.getFeatures().length > 1);
+				Assert.assertTrue(expected.equals(actual));
+			}
+		} finally {
+			FeatureGramExtractor.USE_BATCH_EXTRACTION = useBatch;
+		}
+	}
+
 	@Test
 	public void testExtractorProcessorCalling() throws AISPException, IOException, InterruptedException  {
 		String trainingLabel = "status";
@@ -0,0 +1,214 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.feature.pipeline;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+import org.eng.aisp.AISPLogger;
+import org.eng.aisp.DoubleWindow;
+import org.eng.aisp.ILabeledDataWindow;
+import org.eng.aisp.LabeledDataWindow;
+import org.eng.aisp.feature.FeatureGramDescriptor;
+import org.eng.aisp.feature.IFeatureGramDescriptor;
+import org.eng.aisp.feature.ILabeledFeatureGram;
+import org.eng.aisp.feature.extractor.vector.IdentityFeatureExtractor;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LabeledFeatureIteratorTest {
+
+	/**
+	 * Counts the windows pulled from it and optionally fails after a given number of windows.
+	 */
+	private static class CountingIterator implements Iterator<ILabeledDataWindow<double[]>> {
+		final Iterator<ILabeledDataWindow<double[]>> iterator;
+		final AtomicInteger count = new AtomicInteger();
+		final int failAt;
+
+		CountingIterator(List<ILabeledDataWindow<double[]>> ldwList, int failAt) {
+			this.iterator = ldwList.iterator();
+			this.failAt = failAt;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return iterator.hasNext();
+		}
+
+		@Override
+		public ILabeledDataWindow<double[]> next() {
+			if (count.incrementAndGet() == failAt)
+				throw new IllegalStateException("Intentional failure at window " + failAt);
+			return iterator.next();
+		}
+	}
+
+	/**
+	 * Adds a delay to the extraction of each batch.
+	 */
+	private static class SlowBatchedFeatureExtractor extends StreamingBatchedFeatureExtractor<double[],double[]> {
+		final int delayMsec;
+
+		SlowBatchedFeatureExtractor(int delayMsec) {
+			this.delayMsec = delayMsec;
+		}
+
+		@Override
+		public Iterable<? extends ILabeledFeatureGram<double[]>[]> nextBatch(List<? extends ILabeledDataWindow<double[]>> data, FeatureExtractionPipeline<double[], double[]> featurePipeline) {
+			try {
+				Thread.sleep(delayMsec);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return null;
+			}
+			return super.nextBatch(data, featurePipeline);
+		}
+	}
+
+	private static List<ILabeledDataWindow<double[]>> createWindows(int count) {
+		List<ILabeledDataWindow<double[]>> ldwList = new ArrayList<ILabeledDataWindow<double[]>>();
+		Properties labels = new Properties();
+		labels.setProperty("label", "value");
+		for (int i=0 ; i<count ; i++) {
+			double[] data = new double[16];
+			data[0] = i;
+			DoubleWindow dw = new DoubleWindow(i * 10, i * 10 + 10, data);
+			ldwList.add(new LabeledDataWindow<double[]>(dw, labels));
+		}
+		return ldwList;
+	}
+
+	private static FeatureExtractionPipeline<double[],double[]> getPipeline() {
+		List<IFeatureGramDescriptor<double[],double[]>> fgList = new ArrayList<IFeatureGramDescriptor<double[],double[]>>();
+		fgList.add(new FeatureGramDescriptor<double[],double[]>(0, 0, new IdentityFeatureExtractor(), null));
+		return new FeatureExtractionPipeline<double[],double[]>(fgList);
+	}
+
+	private static List<Double> getFirstValues(Iterator<ILabeledFeatureGram<double[]>[]> iter) {
+		List<Double> values = new ArrayList<Double>();
+		while (iter.hasNext()) {
+			ILabeledFeatureGram<double[]>[] lfg = iter.next();
+			values.add(lfg[0].getFeatureGram().getFeatures()[0].getData()[0]);
+		}
+		return values;
+	}
+
+	/**
+	 * Make sure the prefetched features come back in the same order as when computed synchronously.
+	 */
+	@Test
+	public void testPrefetchOrdering() {
+		List<ILabeledDataWindow<double[]>> ldwList = createWindows(203);
+		Predicate<ILabeledDataWindow<double[]>> predicate = (ldw) -> ldw.getDataWindow().getData()[0] % 3 != 0;
+		FeatureExtractionPipeline<double[],double[]> fep = getPipeline();
+		List<Double> expected = getFirstValues(new LabeledFeatureIterator<double[],double[]>(ldwList.iterator(), predicate,
+				new StreamingBatchedFeatureExtractor<double[],double[]>(), fep, 8, 0));
+		Assert.assertTrue(expected.size() == 203 - 68);
+		for (int depth=1 ; depth<=3 ; depth++) {
+			List<Double> values = getFirstValues(new LabeledFeatureIterator<double[],double[]>(ldwList.iterator(), predicate,
+					new StreamingBatchedFeatureExtractor<double[],double[]>(), fep, 8, depth));
+			Assert.assertTrue("depth=" + depth, expected.equals(values));
+		}
+	}
+
+	/**
+	 * Make sure extraction of the next batch overlaps with a slow consumer.
+	 */
+	@Test
+	public void testPrefetchOverlap() {
+		int batchSize = 4, batches = 10, delayMsec = 100;
+		List<ILabeledDataWindow<double[]>> ldwList = createWindows(batchSize * batches);
+		FeatureExtractionPipeline<double[],double[]> fep = getPipeline();
+		long syncMsec = 0, asyncMsec = 0;
+		for (int depth=0 ; depth<=1 ; depth++) {
+			Iterator<ILabeledFeatureGram<double[]>[]> iter = new LabeledFeatureIterator<double[],double[]>(ldwList.iterator(), null,
+					new SlowBatchedFeatureExtractor(delayMsec), fep, batchSize, depth);
+			long start = System.currentTimeMillis();
+			int count = 0;
+			while (iter.hasNext()) {
+				iter.next();
+				if (++count % batchSize == 0) {	// Consume each batch as slowly as it is produced.
+					try {
+						Thread.sleep(delayMsec);
+					} catch (InterruptedException e) {
+						Assert.fail("Interrupted");
+					}
+				}
+			}
+			long msec = System.currentTimeMillis() - start;
+			Assert.assertTrue(count == ldwList.size());
+			if (depth == 0)
+				syncMsec = msec;
+			else
+				asyncMsec = msec;
+		}
+		AISPLogger.logger.info("Synchronous msec=" + syncMsec + ", prefetched msec=" + asyncMsec);
+		// Ideally the prefetched time is about half the synchronous time.
+		Assert.assertTrue("Synchronous msec=" + syncMsec + ", prefetched msec=" + asyncMsec, asyncMsec < 0.8 * syncMsec);
+	}
+
+	/**
+	 * Make sure an exception in the background reaches the caller.
+	 */
+	@Test
+	public void testPrefetchException() {
+		List<ILabeledDataWindow<double[]>> ldwList = createWindows(100);
+		FeatureExtractionPipeline<double[],double[]> fep = getPipeline();
+		for (int depth=0 ; depth<=2 ; depth++) {
+			CountingIterator data = new CountingIterator(ldwList, 20);
+			Iterator<ILabeledFeatureGram<double[]>[]> iter = new LabeledFeatureIterator<double[],double[]>(data, null,
+					new StreamingBatchedFeatureExtractor<double[],double[]>(), fep, 8, depth);
+			int count = 0;
+			IllegalStateException caught = null;
+			try {
+				while (true) {
+					iter.next();
+					count++;
+				}
+			} catch (IllegalStateException e) {
+				caught = e;
+			}
+			Assert.assertTrue("depth=" + depth, caught != null);
+			Assert.assertTrue("depth=" + depth, count == 16);	// The 3rd batch fails.
+		}
+	}
+
+	/**
+	 * Make sure closing the iterator stops the background extraction.
+	 */
+	@Test
+	public void testClose() throws InterruptedException {
+		List<ILabeledDataWindow<double[]>> ldwList = createWindows(1000);
+		FeatureExtractionPipeline<double[],double[]> fep = getPipeline();
+		CountingIterator data = new CountingIterator(ldwList, -1);
+		LabeledFeatureIterator<double[],double[]> iter = new LabeledFeatureIterator<double[],double[]>(data, null,
+				new SlowBatchedFeatureExtractor(10), fep, 8, 2);
+		Assert.assertTrue(iter.hasNext());
+		iter.next();
+		iter.close();
+		Thread.sleep(200);
+		int count = data.count.get();
+		Thread.sleep(200);
+		Assert.assertTrue(data.count.get() == count);
+		Assert.assertTrue(count < ldwList.size());
+		Assert.assertTrue(!iter.hasNext());
+	}
+}
@@ -0,0 +1,156 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.feature.pipeline;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Properties;
+
+import org.eng.aisp.DoubleWindow;
+import org.eng.aisp.IDataWindow;
+import org.eng.aisp.ILabeledDataWindow;
+import org.eng.aisp.LabeledDataWindow;
+import org.eng.aisp.feature.DoubleFeature;
+import org.eng.aisp.feature.FeatureGramDescriptor;
+import org.eng.aisp.feature.IFeature;
+import org.eng.aisp.feature.IFeatureGramDescriptor;
+import org.eng.aisp.feature.ILabeledFeatureGram;
+import org.eng.aisp.feature.extractor.IFeatureExtractor;
+import org.eng.aisp.feature.extractor.vector.IdentityFeatureExtractor;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class StreamingBatchedFeatureExtractorTest {
+
+	/**
+	 * Fails on any window whose first data value is negative.
+	 */
+	private static class FailingExtractor implements IFeatureExtractor<double[],double[]> {
+		private static final long serialVersionUID = 3479287226148018432L;
+
+		@Override
+		public IFeature<double[]> apply(IDataWindow<double[]> t) {
+			double[] data = t.getData();
+			if (data[0] < 0)
+				throw new RuntimeException("Intentional failure on window starting at " + t.getStartTimeMsec());
+			return new DoubleFeature(t.getStartTimeMsec(), t.getEndTimeMsec(), data);
+		}
+	}
+
+	private static List<ILabeledDataWindow<double[]>> createWindows(int count, int samples, int failEvery) {
+		List<ILabeledDataWindow<double[]>> ldwList = new ArrayList<ILabeledDataWindow<double[]>>();
+		Properties labels = new Properties();
+		labels.setProperty("label", "value");
+		for (int i=0 ; i<count ; i++) {
+			double[] data = new double[samples];
+			data[0] = failEvery > 0 && i % failEvery == 0 ? -1 : i;
+			DoubleWindow dw = new DoubleWindow(i * 10, i * 10 + 10, data);
+			ldwList.add(new LabeledDataWindow<double[]>(dw, labels));
+		}
+		return ldwList;
+	}
+
+	private static FeatureExtractionPipeline<double[],double[]> getPipeline(IFeatureExtractor<double[],double[]> fe) {
+		List<IFeatureGramDescriptor<double[],double[]>> fgList = new ArrayList<IFeatureGramDescriptor<double[],double[]>>();
+		fgList.add(new FeatureGramDescriptor<double[],double[]>(0, 0, fe, null));
+		return new FeatureExtractionPipeline<double[],double[]>(fgList);
+	}
+
+	/**
+	 * Make sure the threads used for extraction are reused across batches and not created anew for each batch.
+	 */
+	@Test
+	public void testFlatThreadCount() {
+		int windowCount = 5000, batchSize = 8;
+		List<ILabeledDataWindow<double[]>> ldwList = createWindows(windowCount, 16, 0);
+		StreamingBatchedFeatureExtractor<double[],double[]> sbfe = new StreamingBatchedFeatureExtractor<double[],double[]>();
+		FeatureExtractionPipeline<double[],double[]> fep = getPipeline(new IdentityFeatureExtractor());
+		Iterator<ILabeledFeatureGram<double[]>[]> iter = new LabeledFeatureIterator<double[],double[]>(ldwList.iterator(), null, sbfe, fep, batchSize);
+
+		// Warm up the pool with more than a full set of threads.
+		int count = 0;
+		while (count < 4 * StreamingBatchedFeatureExtractor.NUM_BATCHED_THREADS && iter.hasNext()) {
+			iter.next();
+			count++;
+		}
+		int startThreads = ManagementFactory.getThreadMXBean().getThreadCount();
+		int maxThreads = startThreads;
+		while (iter.hasNext()) {
+			iter.next();
+			count++;
+			if (count % 100 == 0)
+				maxThreads = Math.max(maxThreads, ManagementFactory.getThreadMXBean().getThreadCount());
+		}
+		Assert.assertTrue(count == windowCount);
+		Assert.assertTrue(sbfe.getFailedExtractionCount() == 0);
+		// Allow some slack for threads coming and going in the JVM that are not ours.
+		Assert.assertTrue("startThreads=" + startThreads + ", maxThreads=" + maxThreads, maxThreads <= startThreads + 2);
+	}
+
+	/**
+	 * Make sure failed windows are skipped and counted, and the remaining windows are returned in order.
+	 */
+	@Test
+	public void testPartialBatch() {
+		int windowCount = 100, failEvery = 7, batchSize = 8;
+		List<ILabeledDataWindow<double[]>> ldwList = createWindows(windowCount, 16, failEvery);
+		StreamingBatchedFeatureExtractor<double[],double[]> sbfe = new StreamingBatchedFeatureExtractor<double[],double[]>();
+		FeatureExtractionPipeline<double[],double[]> fep = getPipeline(new FailingExtractor());
+
+		// A single batch returns what it can in order.
+		List<ILabeledDataWindow<double[]>> batch = ldwList.subList(0, batchSize);
+		Iterable<? extends ILabeledFeatureGram<double[]>[]> results = sbfe.nextBatch(batch, fep);
+		Assert.assertTrue(results != null);
+		int expectedIndex = 1;	// window 0 fails.
+		int count = 0;
+		for (ILabeledFeatureGram<double[]>[] lfg : results) {
+			if (expectedIndex == failEvery)
+				expectedIndex++;
+			double value = lfg[0].getFeatureGram().getFeatures()[0].getData()[0];
+			Assert.assertTrue(value == expectedIndex);
+			expectedIndex++;
+			count++;
+		}
+		Assert.assertTrue(count == batchSize - 2);	// Windows 0 and 7 fail.
+		Assert.assertTrue(sbfe.getFailedExtractionCount() == 2);
+
+		// Iteration continues past failed windows.
+		sbfe = new StreamingBatchedFeatureExtractor<double[],double[]>();
+		Iterator<ILabeledFeatureGram<double[]>[]> iter = new LabeledFeatureIterator<double[],double[]>(ldwList.iterator(), null, sbfe, fep, batchSize);
+		count = 0;
+		while (iter.hasNext()) {
+			iter.next();
+			count++;
+		}
+		int expectedFailures = (windowCount + failEvery - 1) / failEvery;
+		Assert.assertTrue(count == windowCount - expectedFailures);
+		Assert.assertTrue(sbfe.getFailedExtractionCount() == expectedFailures);
+
+		// A batch of only failures continues to the next batch.
+		ldwList = createWindows(3 * batchSize, 16, 1);
+		ldwList.addAll(createWindows(batchSize, 16, 0));
+		iter = new LabeledFeatureIterator<double[],double[]>(ldwList.iterator(), null, new StreamingBatchedFeatureExtractor<double[],double[]>(), fep, batchSize);
+		count = 0;
+		while (iter.hasNext()) {
+			iter.next();
+			count++;
+		}
+		Assert.assertTrue(count == batchSize);
+	}
+
+}
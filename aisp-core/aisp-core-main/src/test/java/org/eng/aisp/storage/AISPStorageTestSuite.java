@@ -26,6 +26,7 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
 	FileSoundStorageTest.class,
+	FileSoundStorageLogTest.class,
 	FileVibrationMagnitudeStorageTest.class,
 	FileVibrationXYZStorageTest.class,
         })
@@ -0,0 +1,264 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.storage;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import org.eng.aisp.SoundClip;
+import org.eng.aisp.SoundRecording;
+import org.eng.aisp.dataset.MetaData;
+import org.eng.storage.StorageException;
+import org.eng.util.FileUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs the {@link FileSoundStorageTest} tests with the metadata kept in a {@link MetaDataLog} and tests the log itself.
+ */
+public class FileSoundStorageLogTest extends FileSoundStorageTest {
+
+	@Override
+	public FileSoundStorage getStorage() {
+		return new FileSoundStorage(new File(TEST_DIR), true);
+	}
+
+	private static SoundRecording getSmallRecording(int index) {
+		double[] data = new double[16];
+		for (int i=0 ; i<data.length ; i++)
+			data[i] = (index + i) % 7 / 10.0;
+		SoundClip clip = new SoundClip(index, index + 16, data);
+		Properties labels = new Properties();
+		labels.setProperty("index", String.valueOf(index));
+		labels.setProperty("class", "c" + index % 3);
+		return new SoundRecording(clip, labels);
+	}
+
+	private static void assertSameContents(FileSoundStorage expected, FileSoundStorage actual) throws StorageException {
+		List<String> expectedIDs = toList(expected.getIDs());
+		Assert.assertEquals(expectedIDs, toList(actual.getIDs()));
+		Assert.assertEquals(expected.count(), actual.count());
+		for (String id : expectedIDs) {
+			SoundRecording sr1 = expected.findItem(id);
+			SoundRecording sr2 = actual.findItem(id);
+			Assert.assertEquals(sr1.getLabels(), sr2.getLabels());
+			Assert.assertEquals(sr1.getTagsAsProperties(), sr2.getTagsAsProperties());
+			Assert.assertEquals(sr1.getDataWindow().getStartTimeMsec(), sr2.getDataWindow().getStartTimeMsec(), 0.001);
+			Assert.assertEquals(expected.getItemName(id), actual.getItemName(id));
+		}
+	}
+
+	private static List<String> toList(Iterable<String> ids) {
+		List<String> list = new ArrayList<String>();
+		for (String id : ids)
+			list.add(id);
+		return list;
+	}
+
+	/**
+	 * Make sure the log is read back the same from a checkpointed index, the records after the checkpoint and from the log alone.
+	 */
+	@Test
+	public void testReopen() throws StorageException, IOException {
+		FileSoundStorage storage = getStorage();
+		List<String> ids = new ArrayList<String>();
+		for (int i=0 ; i<10 ; i++) 
+			ids.add(storage.addNamed("name" + i % 2, getSmallRecording(i)));
+		storage.getMetaDataLog().checkpoint();
+		for (int i=10 ; i<15 ; i++) 
+			ids.add(storage.addNamed("name" + i % 2, getSmallRecording(i)));
+		Assert.assertTrue(storage.delete(ids.get(3)));
+		Assert.assertTrue(storage.update(ids.get(12), getSmallRecording(100)));
+		Assert.assertTrue(storage.update(ids.get(5), getSmallRecording(101)));
+		Assert.assertEquals("name1", storage.getItemName(ids.get(5)));
+		Assert.assertEquals(ids.get(5), storage.getIDs().iterator().next());	// updates move to the end
+		Assert.assertEquals(8, toList(storage.findNamedIDs("name0")).size());
+
+		// From the index and the records after it.
+		FileSoundStorage expected = new FileSoundStorage(new File(TEST_DIR), false);
+		storage.exportMetaData(new File(TEST_DIR, MetaData.DEFAULT_METADATA_FILE_NAME).getAbsolutePath());
+		MetaDataLog.closeLog(new File(TEST_DIR));
+		FileSoundStorage reopened = getStorage();
+		assertSameContents(expected, reopened);
+
+		// From the log alone. 
+		MetaDataLog.closeLog(new File(TEST_DIR));
+		FileUtils.deleteFile(new File(TEST_DIR, MetaDataLog.INDEX_FILE_NAME).getAbsolutePath());
+		reopened = getStorage();
+		assertSameContents(expected, reopened);
+
+		// After compaction.
+		reopened.getMetaDataLog().compact();
+		assertSameContents(expected, reopened);
+		MetaDataLog.closeLog(new File(TEST_DIR));
+		reopened = getStorage();
+		assertSameContents(expected, reopened);
+
+		// New ids are not reused after reopening. 
+		String id = reopened.add(getSmallRecording(200));
+		Assert.assertFalse(ids.contains(id));
+	}
+
+	/**
+	 * Make sure a partially written record at the end of the log is dropped.
+	 */
+	@Test
+	public void testTruncatedRecord() throws StorageException, IOException {
+		FileSoundStorage storage = getStorage();
+		for (int i=0 ; i<3 ; i++) 
+			storage.add(getSmallRecording(i));
+		long length = storage.getMetaDataLog().getLogLength();
+		MetaDataLog.closeLog(new File(TEST_DIR));
+
+		FileOutputStream fos = new FileOutputStream(new File(TEST_DIR, MetaDataLog.LOG_FILE_NAME), true);
+		fos.write(new byte[] { 0, 0, 0, 100, 1, 2, 3 });
+		fos.close();
+
+		storage = getStorage();
+		Assert.assertEquals(3, storage.count());
+		Assert.assertEquals(length, storage.getMetaDataLog().getLogLength());
+		String id = storage.add(getSmallRecording(3));
+		Assert.assertEquals(4, storage.count());
+		Assert.assertNotNull(storage.findItem(id));
+	}
+
+	/**
+	 * Make sure an existing metadata file is imported into a new log and the log can be exported back to a metadata file.
+	 */
+	@Test
+	public void testImportExport() throws StorageException, IOException {
+		FileSoundStorage csvStorage = new FileSoundStorage(new File(TEST_DIR), false);
+		for (int i=0 ; i<5 ; i++) 
+			csvStorage.addNamed("name", getSmallRecording(i));
+
+		FileSoundStorage logStorage = getStorage();
+		assertSameContents(csvStorage, logStorage);
+
+		logStorage.add(getSmallRecording(5));
+		Assert.assertEquals(5, csvStorage.count());	// The metadata file is not updated by the log
+		logStorage.exportMetaData(new File(TEST_DIR, MetaData.DEFAULT_METADATA_FILE_NAME).getAbsolutePath());
+		Assert.assertEquals(6, csvStorage.count());
+		assertSameContents(csvStorage, logStorage);
+	}
+
+	/**
+	 * Make sure the log is closed once all storage instances using it are disconnected, and opened again when used after that.
+	 */
+	@Test
+	public void testDisconnect() throws StorageException, IOException {
+		// Use a directory not used by other tests, which do not disconnect their instances.
+		File dir = new File(TEST_DIR, "disconnect");
+		FileSoundStorage storage1 = new FileSoundStorage(dir, true);
+		FileSoundStorage storage2 = new FileSoundStorage(dir, true);
+		String id = storage1.add(getSmallRecording(0));
+		Assert.assertEquals(1, storage2.count());
+		MetaDataLog log = storage1.getMetaDataLog();
+
+		storage1.disconnect();
+		Assert.assertTrue(storage2.getMetaDataLog() == log);
+		Assert.assertNotNull(log.get(id));
+
+		storage2.disconnect();
+		try {
+			log.get(id);
+			Assert.fail("log was not closed");
+		} catch (IOException e) {
+			;	// expected
+		}
+		Assert.assertNotNull(storage1.findItem(id));
+		Assert.assertTrue(storage1.getMetaDataLog() != log);
+		storage1.disconnect();
+	}
+
+	/**
+	 * Make sure concurrent updates and deletes of the same sounds never leave a sound file without a record in the log, or the reverse.
+	 */
+	@Test
+	public void testConcurrentUpdateDelete() throws StorageException, InterruptedException {
+		final FileSoundStorage storage = getStorage();
+		final List<String> ids = new ArrayList<String>();
+		for (int i=0 ; i<50 ; i++) 
+			ids.add(storage.add(getSmallRecording(i)));
+		final List<Exception> errors = new ArrayList<Exception>();
+		Thread updater = new Thread() {
+			public void run() {
+				try {
+					for (int i=0 ; i<5 ; i++) {
+						for (String id : ids)
+							storage.update(id, getSmallRecording(i));
+					}
+				} catch (StorageException e) {
+					errors.add(e);
+				}
+			}
+		};
+		Thread deleter = new Thread() {
+			public void run() {
+				try {
+					for (String id : ids)
+						storage.delete(id);
+				} catch (StorageException e) {
+					errors.add(e);
+				}
+			}
+		};
+		updater.start();
+		deleter.start();
+		updater.join();
+		deleter.join();
+		Assert.assertTrue(errors.isEmpty());
+		Assert.assertEquals(0, storage.count());
+		for (String id : ids) 
+			Assert.assertFalse(id, new File(TEST_DIR, id).exists());
+	}
+
+	/**
+	 * Make sure the time to add a sound does not grow with the number of sounds in storage.
+	 */
+	@Test
+	public void testIngestThroughput() throws StorageException, IOException {
+		final int count = 100000, blocks = 10, blockSize = count / blocks;
+		FileSoundStorage storage = getStorage();
+		SoundRecording sr = getSmallRecording(0);
+		long[] blockMsec = new long[blocks];
+		String firstID = null, lastID = null;
+		for (int i=0 ; i<blocks ; i++) {
+			long start = System.currentTimeMillis();
+			for (int j=0 ; j<blockSize ; j++) {
+				lastID = storage.add(sr);
+				if (firstID == null)
+					firstID = lastID;
+			}
+			blockMsec[i] = System.currentTimeMillis() - start;
+		}
+		Assert.assertEquals(count, storage.count());
+		Assert.assertNotNull(storage.findItem(firstID));
+		Assert.assertNotNull(storage.findItem(lastID));
+
+		// Ignore the first block, which includes JIT warm-up.
+		long fastest = Long.MAX_VALUE;
+		for (int i=1 ; i<blocks ; i++)
+			fastest = Math.min(fastest, blockMsec[i]);
+		long last = blockMsec[blocks - 1];
+		Assert.assertTrue("Last block of " + blockSize + " adds took " + last + " msec, compared to the fastest of " + fastest, 
+				last < 3 * fastest + 100);
+	}
+
+}
@@ -34,7 +34,9 @@ import org.junit.runners.Suite;
 	BoundedLabelValueWindowShuffleIterableTest.class,
 	FixedDurationSoundRecordingIterableTest.class,
 	FixedDurationSoundRecordingShuffleIterableTest.class,
-	FixedDurationSoundRecordingShuffleIterableTest2.class
+	FixedDurationSoundRecordingShuffleIterableTest2.class,
+	PartitionerTest.class,
+	ModelCodecsTest.class
 
 })
 	
@@ -0,0 +1,306 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.eng.aisp.classifier.gaussianmixture.FixedSingleGaussianDiagCovariance;
+import org.eng.aisp.classifier.gaussianmixture.FixedSingleGaussianFullCovariance;
+import org.eng.aisp.classifier.gaussianmixture.FixedSingleGaussianMixture;
+import org.eng.aisp.classifier.gaussianmixture.IFixedSingleGaussian;
+import org.eng.util.ClassUtilities;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class ModelCodecsTest {
+
+	/**
+	 * Make sure gaussian mixtures read from their codec have the same densities, including the full covariance gaussian
+	 * which is read from its inverse covariance.
+	 */
+	@Test
+	public void testGaussianMixtureRoundTrip() throws IOException, ClassNotFoundException {
+		Random rand = new Random(97);
+		int dim = 6;
+		double[] variance = new double[dim];
+		for (int i=0 ; i<dim ; i++)
+			variance[i] = 0.5 + rand.nextDouble();
+		double[][] a = new double[dim][dim];
+		for (int i=0 ; i<dim ; i++) {
+			for (int j=0 ; j<dim ; j++)
+				a[i][j] = rand.nextGaussian();
+		}
+		double[][] covariance = new double[dim][dim];	// A A' + I is symmetric positive definite.
+		for (int i=0 ; i<dim ; i++) {
+			for (int j=0 ; j<dim ; j++) {
+				for (int k=0 ; k<dim ; k++)
+					covariance[i][j] += a[i][k] * a[j][k];
+			}
+			covariance[i][i] += 1;
+		}
+		IFixedSingleGaussian[] gaussians = new IFixedSingleGaussian[] {
+			new FixedSingleGaussianDiagCovariance(createVector(rand, dim), variance),
+			new FixedSingleGaussianFullCovariance(createVector(rand, dim), covariance)
+		};
+		FixedSingleGaussianMixture mixture = new FixedSingleGaussianMixture(new double[] { 0.3, 0.7 }, gaussians);
+
+		Assert.assertTrue(ModelCodecs.hasCodec(mixture));
+		byte[] encoded = ModelCodecs.encode(mixture);
+		Assert.assertTrue(ModelCodecs.isEncoded(encoded));
+		FixedSingleGaussianMixture decoded = (FixedSingleGaussianMixture)ModelCodecs.decode(encoded);
+		Assert.assertEquals(mixture, decoded);
+		for (int i=0 ; i<10 ; i++) {
+			double[] sample = createVector(rand, dim);
+			Assert.assertEquals(mixture.logDensity(sample), decoded.logDensity(sample), 0);
+		}
+	}
+
+	/**
+	 * Make sure objects without a codec are written with plain Java serialization. 
+	 */
+	@Test
+	public void testJavaSerializationFallback() throws IOException, ClassNotFoundException {
+		ArrayList<String> list = new ArrayList<String>(Arrays.asList("a", "b", null));
+		Assert.assertFalse(ModelCodecs.hasCodec(list));
+		byte[] encoded = ModelCodecs.encode(list);
+		Assert.assertFalse(ModelCodecs.isEncoded(encoded));
+		Assert.assertArrayEquals(ClassUtilities.serialize(list), encoded);
+		Assert.assertEquals(list, ModelCodecs.decode(encoded));
+	}
+
+	/**
+	 * Make sure models written with Java serialization, as they were before codecs, can still be read.
+	 */
+	@Test
+	public void testReadJavaSerialization() throws IOException, ClassNotFoundException {
+		FixedSingleGaussianMixture mixture = new FixedSingleGaussianMixture(new double[] { 1 }, 
+				new IFixedSingleGaussian[] { new FixedSingleGaussianDiagCovariance(new double[] { 1, 2 }, new double[] { 3, 4 }) });
+		byte[] serialized = ClassUtilities.serialize(mixture);
+		Assert.assertFalse(ModelCodecs.isEncoded(serialized));
+		Assert.assertEquals(mixture, ModelCodecs.read(new ByteArrayInputStream(serialized)));
+	}
+
+	/**
+	 * Make sure a truncated or newer stream produces an IOException.
+	 */
+	@Test
+	public void testInvalidStream() throws IOException, ClassNotFoundException {
+		FixedSingleGaussianMixture mixture = new FixedSingleGaussianMixture(new double[] { 1 }, 
+				new IFixedSingleGaussian[] { new FixedSingleGaussianDiagCovariance(new double[] { 1, 2 }, new double[] { 3, 4 }) });
+		byte[] encoded = ModelCodecs.encode(mixture);
+		try {
+			ModelCodecs.decode(Arrays.copyOf(encoded, encoded.length - 4));
+			Assert.fail("Read a truncated stream");
+		} catch (IOException e) {
+			;	// Expected
+		}
+		byte[] newer = Arrays.copyOf(encoded, encoded.length);
+		newer[4] = (byte)(ModelCodecs.FORMAT_VERSION + 1);
+		try {
+			ModelCodecs.decode(newer);
+			Assert.fail("Read a newer format");
+		} catch (IOException e) {
+			;	// Expected
+		}
+	}
+
+	/**
+	 * Make sure a codec registered by an application is used for its class and for nested instances of it.
+	 */
+	@Test
+	public void testRegisteredCodec() throws IOException, ClassNotFoundException {
+		ModelCodecs.register(new PointCodec());
+		Point p = new Point("p", new double[] { 1, 2, 3 });
+		byte[] encoded = ModelCodecs.encode(p);
+		Assert.assertTrue(ModelCodecs.isEncoded(encoded));
+		Assert.assertEquals(p, ModelCodecs.decode(encoded));
+
+		List<Point> points = new ArrayList<Point>();
+		points.add(p);
+		points.add(null);
+		points.add(new Point(null, null));
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ModelCodecOutputStream mcos = new ModelCodecOutputStream(bos);
+		mcos.writeModelList(points);
+		mcos.writeModels(points.toArray(new Point[points.size()]));
+		mcos.flush();
+		ModelCodecInputStream mcis = new ModelCodecInputStream(new ByteArrayInputStream(bos.toByteArray()));
+		Assert.assertEquals(points, mcis.readModelList());
+		Object[] array = mcis.readModels();
+		Assert.assertTrue(array instanceof Point[]);
+		Assert.assertEquals(points, Arrays.asList(array));
+	}
+
+	/**
+	 * Make sure a double section is aligned and reads the same from a stream and as a mapped view.
+	 */
+	@Test
+	public void testDoubleSection() throws IOException {
+		Random rand = new Random(31);
+		double[][] rows = new double[5][];
+		for (int i=0 ; i<rows.length ; i++)
+			rows[i] = createVector(rand, 3);
+		for (int lead=0 ; lead<8 ; lead++) {
+			ByteArrayOutputStream bos = new ByteArrayOutputStream();
+			ModelCodecOutputStream mcos = new ModelCodecOutputStream(bos);
+			for (int i=0 ; i<lead ; i++)
+				mcos.writeByte(i);
+			mcos.writeDoubleSection(rows);
+			mcos.writeDoubleSection(new double[0][]);
+			mcos.writeInt(lead);
+			mcos.flush();
+			byte[] bytes = bos.toByteArray();
+
+			ModelCodecInputStream mcis = new ModelCodecInputStream(new ByteArrayInputStream(bytes));
+			Assert.assertFalse(mcis.isMapped());
+			mcis.skipBytes(lead);
+			double[][] heap = mcis.readDoubleSection();
+			Assert.assertEquals(rows.length, heap.length);
+			for (int i=0 ; i<rows.length ; i++)
+				Assert.assertArrayEquals(rows[i], heap[i], 0);
+			Assert.assertEquals(0, mcis.readDoubleSection().length);
+			Assert.assertEquals(lead, mcis.readInt());
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+			buffer.put(bytes).flip();
+			mcis = new ModelCodecInputStream(buffer);
+			Assert.assertTrue(mcis.isMapped());
+			mcis.skipBytes(lead);
+			int start = buffer.position() + 9;
+			ModelCodecInputStream.DoubleSection section = mcis.mapDoubleSection();
+			Assert.assertEquals(0, (buffer.position() - rows.length * 3 * 8) % 8);
+			Assert.assertTrue(buffer.position() - rows.length * 3 * 8 >= start);
+			Assert.assertEquals(rows.length, section.getRows());
+			Assert.assertEquals(3, section.getColumns());
+			Assert.assertTrue(section.getValues().isReadOnly());
+			for (int i=0 ; i<rows.length ; i++) {
+				for (int j=0 ; j<3 ; j++)
+					Assert.assertEquals(rows[i][j], section.getValues().get(i * 3 + j), 0);
+			}
+			Assert.assertEquals(0, mcis.mapDoubleSection().getRows());
+			Assert.assertEquals(lead, mcis.readInt());
+		}
+	}
+
+	/**
+	 * Make sure a model mapped from a file is the same as the one written, and that a file written with Java serialization 
+	 * is read instead of mapped.
+	 */
+	@Test
+	public void testMap() throws IOException, ClassNotFoundException {
+		FixedSingleGaussianMixture mixture = new FixedSingleGaussianMixture(new double[] { 1 }, 
+				new IFixedSingleGaussian[] { new FixedSingleGaussianDiagCovariance(new double[] { 1, 2 }, new double[] { 3, 4 }) });
+		File file = File.createTempFile("model", ".ser");
+		try {
+			FileOutputStream fos = new FileOutputStream(file);
+			try {
+				ModelCodecs.write(fos, mixture);
+			} finally {
+				fos.close();
+			}
+			Assert.assertEquals(mixture, ModelCodecs.map(file));
+
+			fos = new FileOutputStream(file);
+			try {
+				ClassUtilities.serialize(fos, mixture);
+			} finally {
+				fos.close();
+			}
+			Assert.assertEquals(mixture, ModelCodecs.map(file));
+		} finally {
+			file.delete();
+		}
+	}
+
+	private static double[] createVector(Random rand, int dim) {
+		double[] v = new double[dim];
+		for (int i=0 ; i<dim ; i++)
+			v[i] = rand.nextGaussian();
+		return v;
+	}
+
+	private static class Point implements Serializable {
+		private static final long serialVersionUID = 1L;
+		private final String name;
+		private final double[] values;
+
+		public Point(String name, double[] values) {
+			this.name = name;
+			this.values = values;
+		}
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + ((name == null) ? 0 : name.hashCode());
+			result = prime * result + Arrays.hashCode(values);
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Point))
+				return false;
+			Point other = (Point) obj;
+			if (name == null) {
+				if (other.name != null)
+					return false;
+			} else if (!name.equals(other.name))
+				return false;
+			if (!Arrays.equals(values, other.values))
+				return false;
+			return true;
+		}
+	}
+
+	private static class PointCodec implements IModelCodec<Point> {
+
+		@Override
+		public Class<Point> getModelClass() {
+			return Point.class;
+		}
+
+		@Override
+		public int getVersion() {
+			return 0;
+		}
+
+		@Override
+		public void write(ModelCodecOutputStream ostream, Point model) throws IOException {
+			ostream.writeString(model.name);
+			ostream.writeDoubleArray(model.values);
+		}
+
+		@Override
+		public Point read(ModelCodecInputStream istream, int version) throws IOException {
+			return new Point(istream.readString(), istream.readDoubleArray());
+		}
+	}
+
+}
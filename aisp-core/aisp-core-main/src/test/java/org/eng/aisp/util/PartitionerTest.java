@@ -0,0 +1,191 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.aisp.util;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Properties;
+import java.util.Set;
+
+import org.eng.aisp.AISPException;
+import org.eng.aisp.SoundRecording;
+import org.eng.aisp.SoundTestUtils;
+import org.eng.aisp.dataset.LabeledSoundFiles;
+import org.eng.aisp.dataset.MetaData;
+import org.eng.aisp.storage.FileSoundStorage;
+import org.eng.storage.StorageException;
+import org.eng.util.CachingShuffleIterable;
+import org.eng.util.FileUtils;
+import org.eng.util.ILabelProjectingIterable;
+import org.eng.util.ILabelProjection;
+import org.eng.util.IShuffleIterable;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PartitionerTest {
+
+	private final static String LABEL_NAME = "class";
+	private final static int LABEL_VALUES = 5;
+
+	/**
+	 * Write a metadata file in the given directory that references sound files that do NOT exist, so that any attempt to read the sounds fails.
+	 * @param extraLabels additional labels to add to each record.  May be null.
+	 */
+	private static void writeMissingSoundsMetaData(File dir, int count, Properties extraLabels) throws IOException {
+		MetaData md = new MetaData(dir.getAbsolutePath());
+		for (int i=0 ; i<count ; i++) {
+			Properties labels = new Properties();
+			if (extraLabels != null)
+				labels.putAll(extraLabels);
+			labels.setProperty(LABEL_NAME, "value" + (i % LABEL_VALUES));
+			Properties tags = new Properties();
+			tags.setProperty("index", String.valueOf(i));
+			md.add(new MetaData.Record("missing" + i + ".wav", labels, tags));
+		}
+		md.write(dir.getAbsolutePath() + "/" + MetaData.DEFAULT_METADATA_FILE_NAME);
+	}
+
+	/**
+	 * Partition the data and verify the partitions are stratified by label value using the label projection, which must be available.
+	 */
+	private static void verifyPartitions(IShuffleIterable<SoundRecording> sounds, int count, int partitions) throws AISPException {
+		Assert.assertTrue(sounds instanceof ILabelProjectingIterable);
+		ILabelProjection projection = ((ILabelProjectingIterable<SoundRecording>)sounds).getLabelProjection();
+		Assert.assertNotNull(projection);
+
+		List<IShuffleIterable<SoundRecording>> partitionList = Partitioner.partition(sounds, LABEL_NAME, partitions, 0);
+		Assert.assertEquals(partitions, partitionList.size());
+		Set<String> allRefs = new HashSet<String>();
+		for (IShuffleIterable<SoundRecording> partition : partitionList) {
+			int[] labelValueCounts = new int[LABEL_VALUES];
+			int size = 0;
+			for (String ref : partition.getReferences()) {
+				Assert.assertTrue(allRefs.add(ref));
+				String labelValue = projection.getLabels(ref).getProperty(LABEL_NAME);
+				labelValueCounts[Integer.parseInt(labelValue.substring("value".length()))]++;
+				size++;
+			}
+			Assert.assertEquals(count / partitions, size);
+			for (int c : labelValueCounts) 
+				Assert.assertEquals(count / partitions / LABEL_VALUES, c);
+			// The partitions provide the same projection so they can be partitioned again without loading the sounds.
+			Assert.assertTrue(((ILabelProjectingIterable<SoundRecording>)partition).getLabelProjection() != null);
+		}
+		Assert.assertEquals(count, allRefs.size());
+
+		// Make sure the sounds would have been read if dereferenced.
+		String ref = sounds.getReferences().iterator().next();
+		try {
+			sounds.dereference(ref);
+			Assert.fail("Did not get exception reading missing sound file");
+		} catch (NoSuchElementException e) {
+			;
+		}
+	}
+
+	/**
+	 * Partition 10k recordings whose sound files do not exist, which only succeeds if no sound is read.
+	 */
+	@Test
+	public void testMetaDataPartitionWithoutReadingSounds() throws IOException, AISPException {
+		int count = 10000;
+		int partitions = 4;
+		File dir = FileUtils.createTempDir();
+		try {
+			writeMissingSoundsMetaData(dir, count, null);
+			IShuffleIterable<SoundRecording> sounds = LabeledSoundFiles.loadMetaDataSounds(dir.getAbsolutePath(), true);
+			verifyPartitions(sounds, count, partitions);
+			// As done by the KFoldModelEvaluator
+			verifyPartitions(new CachingShuffleIterable<SoundRecording>(sounds.shuffle(1)), count, partitions);
+		} finally {
+			FileUtils.deleteFile(dir);
+		}
+	}
+
+	/**
+	 * Partition 10k stored recordings whose sound files do not exist, which only succeeds if no sound is read.
+	 */
+	@Test
+	public void testFileStoragePartitionWithoutReadingSounds() throws IOException, AISPException, StorageException {
+		int count = 10000;
+		int partitions = 5;
+		File dir = FileUtils.createTempDir();
+		try {
+			Properties hiddenLabels = new Properties();
+			hiddenLabels.setProperty("__nAmE__", "name");	// Removed from the labels when the stored sounds are read.
+			writeMissingSoundsMetaData(dir, count, hiddenLabels);
+			FileSoundStorage storage = new FileSoundStorage(dir);
+			IShuffleIterable<SoundRecording> sounds = (IShuffleIterable<SoundRecording>)storage.items();
+			verifyPartitions(sounds, count, partitions);
+			verifyPartitions(sounds.shuffle(1), count, partitions);
+
+			ILabelProjection projection = ((ILabelProjectingIterable<SoundRecording>)sounds).getLabelProjection();
+			String ref = sounds.getReferences().iterator().next();
+			Assert.assertEquals(1, projection.getLabels(ref).size());
+			Assert.assertEquals("0", projection.getTags(ref).getProperty("index"));
+		} finally {
+			FileUtils.deleteFile(dir);
+		}
+	}
+
+	/**
+	 * Make sure the projected labels are those of the sounds that are read.
+	 */
+	@Test
+	public void testProjectedLabelsMatchSounds() throws IOException, AISPException, StorageException {
+		List<SoundRecording> srList = new ArrayList<SoundRecording>();
+		for (int i=0 ; i<6 ; i++) {
+			Properties labels = new Properties();
+			labels.setProperty(LABEL_NAME, "value" + (i % 2));
+			SoundRecording sr = SoundTestUtils.createTrainingRecordings(1, 0, 100, 0, 1000, labels).get(0);
+			sr.addTag("index", String.valueOf(i));
+			srList.add(sr);
+		}
+		File dir = FileUtils.createTempDir();
+		File storageDir = FileUtils.createTempDir();
+		try {
+			MetaData.writeMetaDataSounds(dir.getAbsolutePath(), srList);
+			verifyProjectedLabels(LabeledSoundFiles.loadMetaDataSounds(dir.getAbsolutePath(), true));
+
+			FileSoundStorage storage = new FileSoundStorage(storageDir);
+			for (SoundRecording sr : srList)
+				storage.add(sr);
+			verifyProjectedLabels((IShuffleIterable<SoundRecording>)storage.items());
+		} finally {
+			FileUtils.deleteFile(dir);
+			FileUtils.deleteFile(storageDir);
+		}
+	}
+
+	private static void verifyProjectedLabels(IShuffleIterable<SoundRecording> sounds) {
+		ILabelProjection projection = ((ILabelProjectingIterable<SoundRecording>)sounds).getLabelProjection();
+		int count = 0;
+		for (String ref : sounds.getReferences()) {
+			SoundRecording sr = sounds.dereference(ref);
+			Assert.assertEquals(sr.getLabels(), projection.getLabels(ref));
+			Properties tags = sr.getTagsAsProperties();
+			for (Object key : projection.getTags(ref).keySet())
+				Assert.assertEquals(tags.get(key), projection.getTags(ref).get(key));
+			count++;
+		}
+		Assert.assertEquals(6, count);
+	}
+
+}
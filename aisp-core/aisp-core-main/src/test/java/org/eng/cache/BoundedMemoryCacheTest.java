@@ -0,0 +1,140 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.cache;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eng.aisp.feature.DoubleFeature;
+import org.eng.aisp.feature.FeatureGram;
+import org.eng.aisp.feature.IFeature;
+import org.eng.aisp.feature.IFeatureGram;
+import org.eng.aisp.feature.LabeledFeatureGram;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BoundedMemoryCacheTest {
+
+	private final static int ITEM_BYTES = CacheItemSizer.ARRAY_HEADER_BYTES + 8 * 1000;
+
+	/**
+	 * Make sure the cache stays within its budget and evicts the least recently used items.
+	 */
+	@Test
+	public void testLRUEviction() {
+		int capacity = 10;
+		BoundedMemoryCache<Integer,double[]> cache = new BoundedMemoryCache<Integer,double[]>(capacity * (ITEM_BYTES + 200), 1);
+		for (int i=0 ; i<3 * capacity ; i++) {
+			cache.put(new double[1000], i);
+			Assert.assertTrue(cache.get(0) != null);	// Keep the first item in use.
+			Assert.assertTrue(cache.getResidentBytes() <= cache.getMaxBytes());
+		}
+		Assert.assertTrue(cache.size() == capacity);
+		Assert.assertTrue(cache.getEvictionCount() == 2 * capacity);
+		Assert.assertTrue(cache.get(0) != null);
+		Assert.assertTrue(cache.get(1) == null);
+		Assert.assertTrue(cache.get(3 * capacity - 1) != null);
+
+		// Replacing an item does not change the size
+		long bytes = cache.getResidentBytes();
+		cache.put(new double[1000], 0);
+		Assert.assertTrue(cache.getResidentBytes() == bytes);
+		Assert.assertTrue(cache.size() == capacity);
+
+		// Items larger than the cache are not stored.
+		cache.put(new double[100 * 1000], -1);
+		Assert.assertTrue(cache.get(-1) == null);
+		Assert.assertTrue(cache.getResidentBytes() == bytes);
+
+		cache.remove(0);
+		Assert.assertTrue(cache.get(0) == null);
+		Assert.assertTrue(cache.getResidentBytes() < bytes);
+		cache.clear();
+		Assert.assertTrue(cache.size() == 0);
+		Assert.assertTrue(cache.getResidentBytes() == 0);
+	}
+
+	@Test
+	public void testStats() {
+		BoundedMemoryCache<String,String> cache = new BoundedMemoryCache<String,String>(1024 * 1024);
+		cache.put("value", "a", "b");
+		Assert.assertTrue("value".equals(cache.get("a", "b")));
+		Assert.assertTrue("value".equals(cache.get("a", "b")));
+		Assert.assertTrue(cache.get("a") == null);
+		Assert.assertTrue(cache.getHitCount() == 2);
+		Assert.assertTrue(cache.getMissCount() == 1);
+		Assert.assertTrue(cache.getEvictionCount() == 0);
+		Assert.assertTrue(cache.getResidentBytes() > 0);
+	}
+
+	/**
+	 * Make sure the sizes of features and feature grams account for their data.
+	 */
+	@Test
+	public void testFeatureSizes() {
+		int featureLen = 64, featureCount = 100;
+		IFeature<double[]>[] features = new IFeature[featureCount];
+		for (int i=0 ; i<featureCount ; i++)
+			features[i] = new DoubleFeature(i * 10, i * 10 + 10, new double[featureLen]);
+		long dataBytes = 8L * featureLen * featureCount;
+		long featureBytes = CacheItemSizer.estimateBytes(features);
+		Assert.assertTrue(featureBytes > dataBytes);
+		Assert.assertTrue(featureBytes < 2 * dataBytes);
+		IFeatureGram<double[]> fg = new FeatureGram<double[]>(features);
+		long fgBytes = CacheItemSizer.estimateBytes(fg);
+		Assert.assertTrue(fgBytes > featureBytes);
+		Assert.assertTrue(fgBytes < featureBytes + 100);
+		long lfgBytes = CacheItemSizer.estimateBytes(new LabeledFeatureGram<double[]>(fg, new Properties()));
+		Assert.assertTrue(lfgBytes > fgBytes);
+		Assert.assertTrue(lfgBytes < fgBytes + 100);
+	}
+
+	/**
+	 * Make sure concurrent access keeps the accounting consistent.
+	 */
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		final BoundedMemoryCache<Integer,double[]> cache = new BoundedMemoryCache<Integer,double[]>(100 * ITEM_BYTES, 8);
+		ExecutorService executor = Executors.newFixedThreadPool(8);
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		for (int t=0 ; t<8 ; t++) {
+			final int seed = t;
+			futures.add(executor.submit(() -> {
+				for (int i=0 ; i<10000 ; i++) {
+					int key = (seed * 31 + i * 17) % 500;
+					double[] item = cache.get(key);
+					if (item == null)
+						cache.put(new double[1000], key);
+					else if (i % 10 == 0)
+						cache.remove(key);
+				}
+				return true;
+			}));
+		}
+		for (Future<Boolean> f : futures)
+			Assert.assertTrue(f.get());
+		executor.shutdown();
+		Assert.assertTrue(cache.getResidentBytes() <= cache.getMaxBytes());
+		Assert.assertTrue(cache.getHitCount() + cache.getMissCount() == 8 * 10000);
+		Assert.assertTrue(cache.getEvictionCount() > 0);
+		cache.clear();
+		Assert.assertTrue(cache.getResidentBytes() == 0);
+	}
+}
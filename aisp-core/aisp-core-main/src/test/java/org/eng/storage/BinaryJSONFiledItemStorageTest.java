@@ -0,0 +1,200 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.storage;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.eng.storage.JSONFiledItemStorage.ItemFormat;
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Runs the {@link JSONFiledItemStorageTest} tests with items written in the binary format and tests the round trip of items in each format.
+ */
+public class BinaryJSONFiledItemStorageTest extends JSONFiledItemStorageTest {
+
+	@Override
+	public IItemStorage<Map> getStorage() {
+		return new JSONFiledItemStorage<Map>(STORAGE_DIR_FILE.getPath(), "map-test-binary", ItemFormat.BINARY);
+	}
+
+	/**
+	 * An item with the kinds of fields found in stored feature data and models.
+	 */
+	private static class NumericItem {
+		String name;
+		boolean flag;
+		int count;
+		long seed;
+		double scale;
+		double[] vector;
+		double[][] matrix;
+		float[] floats;
+		int[] ints;
+		List<NumericItem> children = new ArrayList<NumericItem>();
+		Map<String,Double> weights = new HashMap<String,Double>();
+		String missing = null;
+
+		@Override
+		public int hashCode() {
+			final int prime = 31;
+			int result = 1;
+			result = prime * result + count;
+			result = prime * result + (int) (seed ^ (seed >>> 32));
+			result = prime * result + ((name == null) ? 0 : name.hashCode());
+			result = prime * result + Arrays.hashCode(vector);
+			return result;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (obj == null)
+				return false;
+			if (!(obj instanceof NumericItem))
+				return false;
+			NumericItem other = (NumericItem) obj;
+			if (children == null) {
+				if (other.children != null)
+					return false;
+			} else if (!children.equals(other.children))
+				return false;
+			if (count != other.count)
+				return false;
+			if (flag != other.flag)
+				return false;
+			if (!Arrays.equals(floats, other.floats))
+				return false;
+			if (!Arrays.equals(ints, other.ints))
+				return false;
+			if (!Arrays.deepEquals(matrix, other.matrix))
+				return false;
+			if (missing == null) {
+				if (other.missing != null)
+					return false;
+			} else if (!missing.equals(other.missing))
+				return false;
+			if (name == null) {
+				if (other.name != null)
+					return false;
+			} else if (!name.equals(other.name))
+				return false;
+			if (Double.doubleToLongBits(scale) != Double.doubleToLongBits(other.scale))
+				return false;
+			if (seed != other.seed)
+				return false;
+			if (!Arrays.equals(vector, other.vector))
+				return false;
+			if (weights == null) {
+				if (other.weights != null)
+					return false;
+			} else if (!weights.equals(other.weights))
+				return false;
+			return true;
+		}
+	}
+
+	private static NumericItem getNumericItem(int size, long seed) {
+		Random rand = new Random(seed);
+		NumericItem item = new NumericItem();
+		item.name = "item é中 " + seed;
+		item.flag = seed % 2 == 0;
+		item.count = size;
+		item.seed = Long.MAX_VALUE - seed;		// Not exactly representable as a double.
+		item.scale = rand.nextGaussian();
+		item.vector = new double[size];
+		for (int i=0 ; i<size ; i++)
+			item.vector[i] = rand.nextGaussian() * 1e-3;
+		item.matrix = new double[3][];
+		for (int i=0 ; i<item.matrix.length ; i++) 
+			item.matrix[i] = Arrays.copyOf(item.vector, i);	// includes empty
+		item.floats = new float[] { 1.5f, -0.1f, Float.MAX_VALUE };
+		item.ints = new int[] { 0, -1, Integer.MAX_VALUE, Integer.MIN_VALUE };
+		item.weights.put("a", 0.25);
+		item.weights.put("b", 1.0 / 3);
+		NumericItem child = new NumericItem();
+		child.name = "child";
+		child.vector = new double[] { Double.MIN_VALUE, -Double.MAX_VALUE };
+		item.children.add(child);
+		return item;
+	}
+
+	private static JSONFiledItemStorage<NumericItem> getNumericStorage(ItemFormat format) {
+		return new JSONFiledItemStorage<NumericItem>(STORAGE_DIR_FILE.getPath(), "numeric-test", format);
+	}
+
+	@Test
+	public void testRoundTrip() throws StorageException {
+		for (ItemFormat format : ItemFormat.values()) {
+			JSONFiledItemStorage<NumericItem> storage = getNumericStorage(format);
+			storage.clear();
+			NumericItem item = getNumericItem(100, format.ordinal());
+			String id = storage.add(item);
+			NumericItem read = storage.findItem(id);
+			Assert.assertEquals("format " + format, item, read);
+			storage.clear();
+			storage.disconnect();
+		}
+	}
+
+	/**
+	 * Make sure items written in any format can be read and updated by an instance using any other format.
+	 */
+	@Test
+	public void testMixedFormats() throws StorageException {
+		for (ItemFormat writeFormat : ItemFormat.values()) {
+			for (ItemFormat readFormat : ItemFormat.values()) {
+				JSONFiledItemStorage<NumericItem> writer = getNumericStorage(writeFormat);
+				JSONFiledItemStorage<NumericItem> reader = getNumericStorage(readFormat);
+				writer.clear();
+				NumericItem item = getNumericItem(10, 1);
+				String id = writer.add(item);
+				Assert.assertEquals(item, reader.findItem(id));
+				NumericItem updated = getNumericItem(20, 2);
+				reader.update(id, updated);
+				Assert.assertEquals(updated, writer.findItem(id));
+				writer.clear();
+				writer.disconnect();
+			}
+		}
+	}
+
+	@Test
+	public void testBinaryIsSmaller() throws StorageException {
+		long[] sizes = new long[ItemFormat.values().length];
+		NumericItem item = getNumericItem(10000, 3);
+		for (ItemFormat format : ItemFormat.values()) {
+			JSONFiledItemStorage<NumericItem> storage = getNumericStorage(format);
+			storage.clear();
+			String id = storage.add(item);
+			sizes[format.ordinal()] = new File(storage.itemsDirectoryPath, id + JSONFiledItemStorage.JSON_EXTENSION).length();
+			storage.clear();
+			storage.disconnect();
+		}
+		long json = sizes[ItemFormat.JSON.ordinal()];
+		long binary = sizes[ItemFormat.BINARY.ordinal()];
+		long deflated = sizes[ItemFormat.DEFLATED_BINARY.ordinal()];
+		Assert.assertTrue("binary=" + binary + ", json=" + json, 2 * binary < json);
+		Assert.assertTrue("deflated=" + deflated + ", binary=" + binary, deflated <= binary);
+	}
+}
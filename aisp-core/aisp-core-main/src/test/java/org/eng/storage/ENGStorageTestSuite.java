@@ -27,7 +27,9 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
 		JSONFiledItemStorageTest.class,
-		SerializedFiledItemStorageTest.class
+		BinaryJSONFiledItemStorageTest.class,
+		SerializedFiledItemStorageTest.class,
+		FiledItemStorageJournalTest.class
         })
 public class ENGStorageTestSuite {
 
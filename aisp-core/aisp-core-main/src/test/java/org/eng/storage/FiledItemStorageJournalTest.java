@@ -0,0 +1,187 @@
+/*******************************************************************************
+ * Copyright [2022] [IBM]
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *******************************************************************************/
+package org.eng.storage;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.eng.util.ClassUtilities;
+import org.eng.util.FileUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests the id journal and per-id locking of {@link AbstractFiledItemStorage}.
+ */
+public class FiledItemStorageJournalTest {
+
+	final static File STORAGE_DIR_FILE = new File("junit-journal-storage");
+
+	@Before
+	public void setup() {
+		removeDir();
+		STORAGE_DIR_FILE.mkdir();
+	}
+
+	@After
+	public void removeDir() {
+		FileUtils.deleteDirContents(STORAGE_DIR_FILE);
+		STORAGE_DIR_FILE.delete();
+	}
+
+	/**
+	 * Write item files as {@link SerializedFiledItemStorage} would, but without recording their ids.
+	 * @return the ids of the items, oldest first.
+	 */
+	private static List<String> writeItemFiles(String name, int count) throws IOException {
+		File itemsDir = new File(STORAGE_DIR_FILE, name + "-items");
+		itemsDir.mkdirs();
+		List<String> ids = new ArrayList<String>();
+		for (int i=0 ; i<count ; i++) {
+			String id = UUID.randomUUID().toString();
+			File f = new File(itemsDir, id + SerializedFiledItemStorage.FILE_EXTENSION);
+			FileUtils.writeByteArrayToFile(f.getPath(), ClassUtilities.serialize(Integer.valueOf(i)));
+			f.setLastModified(1000000000000L + i * 1000);
+			ids.add(id);
+		}
+		return ids;
+	}
+
+	@Test
+	public void testLegacyIDFile() throws IOException, StorageException {
+		String name = "legacy-" + UUID.randomUUID();
+		List<String> ids = writeItemFiles(name, 3);
+		StringBuilder sb = new StringBuilder();
+		for (int i=ids.size()-1 ; i>=0 ; i--) 	// Most recent first.
+			sb.append(ids.get(i)).append('\n');
+		File legacyFile = new File(STORAGE_DIR_FILE, name + ".txt");
+		FileUtils.writeStringToTextFile(sb.toString(), legacyFile);
+
+		SerializedFiledItemStorage<Integer> storage = new SerializedFiledItemStorage<Integer>(STORAGE_DIR_FILE.getPath(), name);
+		List<String> expected = new ArrayList<String>(ids);
+		Collections.reverse(expected);
+		Assert.assertEquals(expected, storage.getIDs());
+		Assert.assertEquals(Integer.valueOf(1), storage.findItem(ids.get(1)));
+		Assert.assertFalse(legacyFile.exists());
+		Assert.assertTrue(storage.journalFile.exists());
+	}
+
+	@Test
+	public void testRecovery() throws IOException, StorageException {
+		String name = "recover-" + UUID.randomUUID();
+		List<String> ids = writeItemFiles(name, 5);
+
+		// No journal, so the ids are recovered from the item files.
+		SerializedFiledItemStorage<Integer> storage = new SerializedFiledItemStorage<Integer>(STORAGE_DIR_FILE.getPath(), name);
+		Assert.assertEquals(5, storage.count());
+		Assert.assertEquals(ids.get(4), storage.getIDs().get(0));
+		Assert.assertEquals(Integer.valueOf(3), storage.findItem(ids.get(3)));
+
+		// Lose the journal.
+		storage.delete(ids.get(0));
+		FileUtils.deleteFile(storage.journalFile);
+		Assert.assertEquals(0, storage.count());
+		storage.rebuildIDs();
+		Assert.assertEquals(4, storage.count());
+		Assert.assertNull(storage.findItem(ids.get(0)));
+		Assert.assertEquals(Integer.valueOf(2), storage.findItem(ids.get(2)));
+
+		// Damage the end of the journal.
+		String id = storage.add(10);
+		FileUtils.writeStringToTextFile(FileUtils.readTextFileIntoString(storage.journalFile) + "+0123", storage.journalFile);
+		SerializedFiledItemStorage<Integer> storage2 = new SerializedFiledItemStorage<Integer>(STORAGE_DIR_FILE.getPath(), name);
+		Assert.assertEquals(5, storage2.count());
+		Assert.assertEquals(id, storage2.getIDs().get(0));
+		String id2 = storage2.add(11);
+		Assert.assertEquals(6, storage.count());
+		Assert.assertEquals(Integer.valueOf(11), storage.findItem(id2));
+
+		storage.clear();
+		Assert.assertFalse(storage.journalFile.exists());
+		storage.disconnect();
+	}
+
+	/**
+	 * Add, find, update and delete items from several threads at once and make sure each thread sees its own changes
+	 * and the storage ends up with the items that were not deleted.
+	 */
+	@Test
+	public void testConcurrentAccess() throws Exception {
+		final SerializedFiledItemStorage<Integer> storage = new SerializedFiledItemStorage<Integer>(STORAGE_DIR_FILE.getPath(), "stress");
+		final int threads = 8, opsPerThread = 1000;
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		List<Future<List<String>>> futures = new ArrayList<Future<List<String>>>();
+		for (int t=0 ; t<threads ; t++) {
+			final int seed = t;
+			futures.add(executor.submit(new Callable<List<String>>() {
+				@Override
+				public List<String> call() throws Exception {
+					Random rand = new Random(seed);
+					List<String> live = new ArrayList<String>();
+					for (int i=0 ; i<opsPerThread ; i++) {
+						int value = seed * opsPerThread + i;
+						String id = storage.add(value);
+						Assert.assertEquals(Integer.valueOf(value), storage.findItem(id));
+						live.add(id);
+						int op = rand.nextInt(4);
+						if (op == 0 && live.size() > 1) {	
+							String deleted = live.remove(rand.nextInt(live.size()));
+							Assert.assertTrue(storage.delete(deleted));
+							Assert.assertNull(storage.findItem(deleted));
+						} else if (op == 1) {
+							String updated = live.get(rand.nextInt(live.size()));
+							Assert.assertTrue(storage.update(updated, -value));
+							Assert.assertEquals(Integer.valueOf(-value), storage.findItem(updated));
+						} else {
+							Assert.assertNotNull(storage.findItem(live.get(rand.nextInt(live.size()))));
+						}
+					}
+					return live;
+				}
+			}));
+		}
+		Set<String> expected = new HashSet<String>();
+		for (Future<List<String>> f : futures)
+			expected.addAll(f.get());
+		executor.shutdown();
+
+		Assert.assertEquals(expected.size(), storage.count());
+		Assert.assertEquals(expected, new HashSet<String>(storage.getIDs()));
+
+		// Make sure the journal on disk agrees after recovering from the item files and re-reading the journal. 
+		FileUtils.deleteFile(new File(STORAGE_DIR_FILE, "stress.journal"));
+		storage.rebuildIDs();
+		Assert.assertEquals(expected, new HashSet<String>(storage.getIDs()));
+
+		storage.clear();
+		Assert.assertEquals(0, storage.count());
+		storage.disconnect();
+	}
+
+}